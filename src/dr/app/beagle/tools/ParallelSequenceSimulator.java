@@ -0,0 +1,615 @@
+/*
+ * ParallelSequenceSimulator.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.beagle.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.math.random.MersenneTwister;
+
+import dr.app.tools.NexusExporter;
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.datatype.Codons;
+import dr.evolution.datatype.DataType;
+import dr.evolution.datatype.HiddenDataType;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.util.Taxon;
+import dr.evomodel.branchmodel.BranchModel;
+import dr.evomodel.branchratemodel.BranchRateModel;
+import dr.evomodel.substmodel.SubstitutionModel;
+import dr.evomodel.tree.TreeModel;
+import dr.math.MathUtils;
+import dr.util.NumberFormatter;
+
+/**
+ * Simulates the same partitions as the BeagleSequenceSimulator but shares the work between
+ * threads and streams the alignment to a FASTA or NEXUS file instead of building it in memory.
+ *
+ * The sites are split into blocks which are simulated independently, each with its own random
+ * number generator seeded (in the order of the blocks) from MathUtils so the alignment for a given
+ * seed doesn't depend on the number of threads. The transition probabilities are calculated once
+ * for each branch and rate category, directly from the substitution models, and are shared by all
+ * the blocks. All the rows of the output file have the same length so each block is written
+ * straight to its place in the file and only the blocks being simulated are held in memory.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class ParallelSequenceSimulator {
+
+	public static final int DEFAULT_BLOCK_SIZE = 1000;
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	public ParallelSequenceSimulator(List<Partition> partitions, //
+									 SimpleAlignment.OutputType outputType, //
+									 int threadCount, //
+									 int blockSize //
+	) {
+
+		if (outputType != SimpleAlignment.OutputType.FASTA && outputType != SimpleAlignment.OutputType.NEXUS) {
+			throw new IllegalArgumentException("Only FASTA and NEXUS output can be streamed");
+		}
+		if (threadCount < 1 || blockSize < 1) {
+			throw new IllegalArgumentException("The thread count and the block size must be at least 1");
+		}
+
+		this.outputType = outputType;
+		this.threadCount = threadCount;
+		this.blockSize = blockSize;
+
+		int siteCount = 0;
+		for (Partition partition : partitions) {
+
+			if (dataType == null) {
+				dataType = partition.getDataType();
+			} else if (dataType.getType() != partition.getDataType().getType()) {
+				throw new RuntimeException("Partitions must have the same data type.");
+			}
+
+			if (partition.to + 1 > siteCount) {
+				siteCount = partition.to + 1;
+			}
+
+			this.partitions.add(new PartitionSimulation(partition));
+
+		}// END: partitions loop
+
+		this.siteCount = siteCount;
+
+		setStateCodes();
+	}// END: Constructor
+
+	/**
+	 * Simulates an alignment into the given file.
+	 *
+	 * @param file the output file
+	 * @throws IOException if the file can't be written
+	 */
+	public void simulate(File file) throws IOException {
+		simulate(new File[] { file });
+	}// END: simulate
+
+	/**
+	 * Simulates an independent alignment into each of the given files. The transition
+	 * probabilities are only calculated once for all of them.
+	 *
+	 * @param files the output files
+	 * @throws IOException if a file can't be written
+	 */
+	public void simulate(File[] files) throws IOException {
+
+		ExecutorService threadPool = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ParallelSequenceSimulator");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		try {
+
+			for (PartitionSimulation partition : partitions) {
+				partition.computeTransitionMatrices(threadPool);
+			}
+
+			for (File file : files) {
+				simulateAlignment(file, threadPool);
+			}
+
+		} finally {
+			threadPool.shutdown();
+		}
+
+	}// END: simulate
+
+	private void simulateAlignment(File file, ExecutorService threadPool) throws IOException {
+
+		int blockCount = (siteCount + blockSize - 1) / blockSize;
+
+		// the seeds are drawn before any block is started so they don't depend on the threads
+		MersenneTwister seeds = new MersenneTwister(MathUtils.nextLong());
+		long[] blockSeeds = new long[blockCount];
+		for (int i = 0; i < blockCount; i++) {
+			blockSeeds[i] = seeds.nextLong();
+		}
+
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+
+		try {
+
+			randomAccessFile.setLength(0);
+			final FileChannel channel = randomAccessFile.getChannel();
+			final long[] rowOffsets = writeLayout(channel);
+
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int i = 0; i < blockCount; i++) {
+
+				final int start = i * blockSize;
+				final int end = Math.min(start + blockSize, siteCount);
+				final long seed = blockSeeds[i];
+
+				futures.add(threadPool.submit(new Runnable() {
+					public void run() {
+						try {
+							simulateBlock(start, end, seed, channel, rowOffsets);
+						} catch (IOException e) {
+							throw new RuntimeException("Unable to write simulated sequences: " + e.getMessage(), e);
+						}
+					}
+				}));
+
+			}// END: blocks loop
+
+			waitForAll(futures);
+
+		} finally {
+			randomAccessFile.close();
+		}
+
+	}// END: simulateAlignment
+
+	private void simulateBlock(int start, int end, long seed, FileChannel channel, long[] rowOffsets) throws IOException {
+
+		MersenneTwister random = new MersenneTwister(seed);
+
+		int rowLength = (end - start) * codeWidth;
+		byte[] block = new byte[taxonRows.size() * rowLength];
+		for (int i = 0; i < block.length; i += codeWidth) {
+			System.arraycopy(gapCode, 0, block, i, codeWidth);
+		}
+
+		for (PartitionSimulation partition : partitions) {
+			partition.simulateSites(start, end, random, block, rowLength);
+		}
+
+		for (int row = 0; row < taxonRows.size(); row++) {
+
+			ByteBuffer buffer = ByteBuffer.wrap(block, row * rowLength, rowLength);
+			long position = rowOffsets[row] + (long) start * codeWidth;
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+
+		}// END: rows loop
+
+	}// END: simulateBlock
+
+	/**
+	 * Writes everything except the sequences and returns where each sequence starts in the file.
+	 */
+	private long[] writeLayout(FileChannel channel) throws IOException {
+
+		long sequenceLength = (long) siteCount * codeWidth;
+		long[] rowOffsets = new long[taxonRows.size()];
+
+		StringBuilder builder = new StringBuilder();
+		long position = 0;
+
+		if (outputType == SimpleAlignment.OutputType.NEXUS) {
+			builder.append("#NEXUS\n");
+			builder.append("begin data;\n");
+			builder.append("\tdimensions ntax=").append(taxonRows.size()).append(" nchar=").append(sequenceLength).append(";\n");
+			builder.append("\tformat datatype=").append(dataType.getDescription())
+					.append(" missing=").append(DataType.UNKNOWN_CHARACTER)
+					.append(" gap=").append(DataType.GAP_CHARACTER).append(";\n");
+			builder.append("\tmatrix\n");
+		}
+
+		NumberFormatter formatter = new NumberFormatter(6);
+		int row = 0;
+		for (Taxon taxon : taxonRows.keySet()) {
+
+			String name = taxon.getId();
+			if (outputType == SimpleAlignment.OutputType.NEXUS) {
+				if (name.matches(NexusExporter.SPECIAL_CHARACTERS_REGEX)) {
+					name = "'" + name.replace("'", "''") + "'";
+				}
+				builder.append("\t").append(name).append("\t");
+			} else {
+				builder.append(">").append(formatter.formatToFieldWidth(name, 10)).append("\n");
+			}
+
+			position += write(channel, builder, position);
+			rowOffsets[row] = position;
+			position += sequenceLength;
+
+			builder.append("\n");
+			row++;
+
+		}// END: taxa loop
+
+		if (outputType == SimpleAlignment.OutputType.NEXUS) {
+			builder.append(";\nend;\n");
+		}
+		write(channel, builder, position);
+
+		return rowOffsets;
+	}// END: writeLayout
+
+	private static int write(FileChannel channel, StringBuilder builder, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(builder.toString().getBytes(CHARSET));
+		builder.setLength(0);
+
+		int length = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + length - buffer.remaining());
+		}
+		return length;
+	}// END: write
+
+	private void setStateCodes() {
+
+		int stateCount = dataType.getStateCount();
+		stateCodes = new byte[stateCount][];
+		for (int i = 0; i < stateCount; i++) {
+
+			String code;
+			if (dataType instanceof Codons) {
+				code = dataType.getTriplet(i);
+			} else if (dataType instanceof HiddenDataType) {
+				code = dataType.getCode(i % (stateCount / ((HiddenDataType) dataType).getHiddenClassCount()));
+			} else {
+				code = dataType.getCode(i);
+			}
+			stateCodes[i] = code.getBytes(CHARSET);
+
+		}// END: states loop
+
+		if (dataType instanceof Codons) {
+			gapCode = dataType.getTriplet(dataType.getGapState()).getBytes(CHARSET);
+		} else {
+			gapCode = dataType.getCode(dataType.getGapState()).getBytes(CHARSET);
+		}
+
+		codeWidth = gapCode.length;
+		for (byte[] code : stateCodes) {
+			if (code.length != codeWidth) {
+				throw new IllegalArgumentException("The states of data type " + dataType.getDescription()
+						+ " don't all have codes of the same length so can't be streamed");
+			}
+		}
+
+	}// END: setStateCodes
+
+	private static void waitForAll(List<Future<?>> futures) {
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while simulating sequences");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}// END: waitForAll
+
+	/**
+	 * draws a state using a set of cumulative probabilities (which may not quite add up to 1.0)
+	 */
+	private static int draw(MersenneTwister random, double[] cumulativeProbabilities, int offset, int count) {
+		double u = random.nextDouble() * cumulativeProbabilities[offset + count - 1];
+		for (int i = 0; i < count - 1; i++) {
+			if (u < cumulativeProbabilities[offset + i]) {
+				return i;
+			}
+		}
+		return count - 1;
+	}// END: draw
+
+	private static double[] cumulate(double[] probabilities) {
+		double[] cumulative = new double[probabilities.length];
+		double sum = 0.0;
+		for (int i = 0; i < probabilities.length; i++) {
+			sum += probabilities[i];
+			cumulative[i] = sum;
+		}
+		return cumulative;
+	}// END: cumulate
+
+	/**
+	 * The flattened tree and transition probabilities of a partition.
+	 */
+	private class PartitionSimulation {
+
+		PartitionSimulation(Partition partition) {
+
+			this.partition = partition;
+
+			TreeModel tree = partition.getTreeModel();
+			stateCount = dataType.getStateCount();
+			categoryCount = partition.getSiteRateModel().getCategoryCount();
+
+			tipRows = new int[tree.getExternalNodeCount()];
+			for (int i = 0; i < tree.getExternalNodeCount(); i++) {
+
+				NodeRef tip = tree.getExternalNode(i);
+				Taxon taxon = tree.getNodeTaxon(tip);
+				Integer row = taxonRows.get(taxon);
+				if (row == null) {
+					row = taxonRows.size();
+					taxonRows.put(taxon, row);
+				}
+				tipRows[tip.getNumber()] = row;
+
+			}// END: tips loop
+
+			Sequence rootSequence = partition.getRootSequence();
+			if (rootSequence != null) {
+
+				int partitionSiteCount = partition.getPartitionSiteCount();
+				if (rootSequence.getLength() != partitionSiteCount &&
+						!(dataType instanceof Codons && rootSequence.getLength() == 3 * partitionSiteCount)) {
+					throw new RuntimeException("Ancestral sequence length of " + rootSequence.getLength()
+							+ " does not match partition site count of " + partitionSiteCount + ".");
+				}
+				rootStates = partition.sequence2intArray(rootSequence);
+
+			}// END: rootSequence check
+
+		}// END: Constructor
+
+		void computeTransitionMatrices(ExecutorService threadPool) {
+
+			final TreeModel tree = partition.getTreeModel();
+			BranchModel branchModel = partition.getBranchModel();
+			BranchRateModel branchRateModel = partition.getBranchRateModel();
+
+			final int nodeCount = tree.getNodeCount();
+			root = tree.getRoot().getNumber();
+
+			// flatten the tree into a pre-order traversal
+			preOrder = new int[nodeCount - 1];
+			parents = new int[nodeCount];
+			List<NodeRef> stack = new ArrayList<NodeRef>();
+			stack.add(tree.getRoot());
+			int k = 0;
+			while (!stack.isEmpty()) {
+				NodeRef node = stack.remove(stack.size() - 1);
+				if (!tree.isRoot(node)) {
+					preOrder[k] = node.getNumber();
+					parents[node.getNumber()] = tree.getParent(node).getNumber();
+					k++;
+				}
+				for (int i = tree.getChildCount(node) - 1; i >= 0; i--) {
+					stack.add(tree.getChild(node, i));
+				}
+			}// END: traversal
+
+			categoryProbabilities = cumulate(partition.getSiteRateModel().getCategoryProportions());
+			rootFrequencies = cumulate(partition.getFreqModel().getFrequencies());
+
+			// the models are called on this thread as they may update themselves lazily
+			final double[] categoryRates = partition.getSiteRateModel().getCategoryRates();
+			final double[] branchTimes = new double[nodeCount];
+			final BranchModel.Mapping[] mappings = new BranchModel.Mapping[nodeCount];
+			for (int node : preOrder) {
+				NodeRef nodeRef = tree.getNode(node);
+				branchTimes[node] = tree.getBranchLength(nodeRef) * branchRateModel.getBranchRate(tree, nodeRef);
+				mappings[node] = branchModel.getBranchModelMapping(nodeRef);
+			}
+			final List<SubstitutionModel> substitutionModels = branchModel.getSubstitutionModels();
+
+			matrices = new double[nodeCount][];
+
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			int chunkSize = (preOrder.length + threadCount - 1) / threadCount;
+			for (int start = 0; start < preOrder.length; start += chunkSize) {
+
+				final int from = start;
+				final int to = Math.min(start + chunkSize, preOrder.length);
+				futures.add(threadPool.submit(new Runnable() {
+					public void run() {
+						for (int i = from; i < to; i++) {
+							int node = preOrder[i];
+							matrices[node] = computeTransitionMatrix(substitutionModels, mappings[node],
+									branchTimes[node], categoryRates);
+						}
+					}
+				}));
+
+			}// END: chunks loop
+
+			waitForAll(futures);
+		}// END: computeTransitionMatrices
+
+		/**
+		 * Returns the cumulative transition probabilities of a branch for each rate category,
+		 * with the branch model's substitution models applied from the parent end of the branch.
+		 */
+		private double[] computeTransitionMatrix(List<SubstitutionModel> substitutionModels, //
+												 BranchModel.Mapping mapping, //
+												 double branchTime, //
+												 double[] categoryRates //
+		) {
+
+			int matrixSize = stateCount * stateCount;
+			double[] cumulativeMatrices = new double[categoryCount * matrixSize];
+
+			int[] order = mapping.getOrder();
+			double[] weights = mapping.getWeights();
+			double weightSum = 0.0;
+			for (double weight : weights) {
+				weightSum += weight;
+			}
+
+			double[] matrix = new double[matrixSize];
+			double[] segment = new double[matrixSize];
+			double[] product = new double[matrixSize];
+
+			for (int category = 0; category < categoryCount; category++) {
+
+				double time = branchTime * categoryRates[category];
+
+				if (order.length == 1) {
+					substitutionModels.get(order[0]).getTransitionProbabilities(time, matrix);
+				} else {
+
+					int last = order.length - 1;
+					substitutionModels.get(order[last]).getTransitionProbabilities(time * weights[last] / weightSum, matrix);
+					for (int j = last - 1; j >= 0; j--) {
+
+						substitutionModels.get(order[j]).getTransitionProbabilities(time * weights[j] / weightSum, segment);
+						for (int from = 0; from < stateCount; from++) {
+							for (int to = 0; to < stateCount; to++) {
+								double sum = 0.0;
+								for (int via = 0; via < stateCount; via++) {
+									sum += matrix[from * stateCount + via] * segment[via * stateCount + to];
+								}
+								product[from * stateCount + to] = sum;
+							}
+						}
+						double[] tmp = matrix;
+						matrix = product;
+						product = tmp;
+
+					}// END: segments loop
+
+				}// END: convolution check
+
+				int offset = category * matrixSize;
+				for (int from = 0; from < stateCount; from++) {
+					double sum = 0.0;
+					for (int to = 0; to < stateCount; to++) {
+						sum += matrix[from * stateCount + to];
+						cumulativeMatrices[offset + from * stateCount + to] = sum;
+					}
+				}
+
+			}// END: categories loop
+
+			return cumulativeMatrices;
+		}// END: computeTransitionMatrix
+
+		/**
+		 * Simulates the sites of this partition that are between start (inclusive) and end (exclusive)
+		 * and puts the codes of the tips' states in their rows of the block.
+		 */
+		void simulateSites(int start, int end, MersenneTwister random, byte[] block, int rowLength) {
+
+			int partitionSiteCount = partition.getPartitionSiteCount();
+			int every = partition.every;
+
+			// the first of this partition's sites in the block
+			int j = 0;
+			if (start > partition.from) {
+				j = (start - partition.from + every - 1) / every;
+			}
+
+			int[] states = new int[parents.length];
+
+			for (int site = partition.from + j * every; j < partitionSiteCount && site < end; j++, site += every) {
+
+				int category = draw(random, categoryProbabilities, 0, categoryCount);
+
+				if (rootStates != null) {
+					states[root] = rootStates[j];
+				} else {
+					states[root] = draw(random, rootFrequencies, 0, stateCount);
+				}
+
+				int categoryOffset = category * stateCount * stateCount;
+				for (int node : preOrder) {
+					states[node] = draw(random, matrices[node],
+							categoryOffset + states[parents[node]] * stateCount, stateCount);
+				}
+
+				int offset = (site - start) * codeWidth;
+				for (int tip = 0; tip < tipRows.length; tip++) {
+					System.arraycopy(stateCodes[states[tip]], 0, block, tipRows[tip] * rowLength + offset, codeWidth);
+				}
+
+			}// END: sites loop
+
+		}// END: simulateSites
+
+		private final Partition partition;
+		private final int stateCount;
+		private final int categoryCount;
+		private final int[] tipRows;
+		private int[] rootStates = null;
+
+		private int root;
+		private int[] preOrder;
+		private int[] parents;
+		private double[] categoryProbabilities;
+		private double[] rootFrequencies;
+		private double[][] matrices;
+
+	}// END: PartitionSimulation class
+
+	private final SimpleAlignment.OutputType outputType;
+	private final int threadCount;
+	private final int blockSize;
+	private final int siteCount;
+
+	private final List<PartitionSimulation> partitions = new ArrayList<PartitionSimulation>();
+	private final Map<Taxon, Integer> taxonRows = new LinkedHashMap<Taxon, Integer>();
+	private DataType dataType = null;
+
+	private byte[][] stateCodes;
+	private byte[] gapCode;
+	private int codeWidth;
+
+}// END: class
@@ -127,10 +127,6 @@ public class Partition {
 		}
 		partitionSiteCount = getPartitionSiteCount();
 
-		setBufferHelpers();
-		setSubstitutionModelDelegate();
-		loadBeagleInstance();
-
 		alignmentMap = new LinkedHashMap<Taxon, int[]>();
 		random = new MersenneTwister(MathUtils.nextLong());
 
@@ -196,6 +192,12 @@ public class Partition {
 
 		try {
 
+			// the BEAGLE instance is only created when it is needed (the
+			// ParallelSequenceSimulator uses the models directly)
+			setBufferHelpers();
+			setSubstitutionModelDelegate();
+			loadBeagleInstance();
+
 			NodeRef root = treeModel.getRoot();
 
 			// gamma category rates
@@ -490,7 +492,7 @@ public class Partition {
 	// ---END: EXPERIMENTAL---//
 	// /////////////////////////
 
-	private int[] sequence2intArray(Sequence sequence) {
+	int[] sequence2intArray(Sequence sequence) {
 
 		int array[] = new int[partitionSiteCount];
 
@@ -566,6 +568,14 @@ public class Partition {
 		return ((to - from) / every) + 1;
 	}// END: getPartitionSiteCount
 
+	public GammaSiteRateModel getSiteRateModel() {
+		return siteRateModel;
+	}// END: getSiteRateModel
+
+	public BranchRateModel getBranchRateModel() {
+		return branchRateModel;
+	}// END: getBranchRateModel
+
 	public BranchModel getBranchModel() {
 		return this.branchModel;
 	}// END: getBranchModelic
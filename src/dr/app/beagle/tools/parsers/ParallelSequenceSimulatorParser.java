@@ -0,0 +1,149 @@
+/*
+ * ParallelSequenceSimulatorParser.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.beagle.tools.parsers;
+
+import dr.app.beagle.tools.ParallelSequenceSimulator;
+import dr.app.beagle.tools.Partition;
+import dr.evolution.alignment.SimpleAlignment;
+import dr.util.FileHelpers;
+import dr.xml.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.logging.Logger;
+
+/**
+ * Simulates alignments for the given partitions on several threads and writes them straight
+ * to FASTA or NEXUS files.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class ParallelSequenceSimulatorParser extends AbstractXMLObjectParser {
+
+    public static final String PARALLEL_SEQUENCE_SIMULATOR = "parallelSequenceSimulator";
+    public static final String OUTPUT = "output";
+    public static final String REPLICATES = "replicates";
+    public static final String THREADS = "threads";
+    public static final String BLOCK_SIZE = "blockSize";
+
+    public String getParserName() {
+        return PARALLEL_SEQUENCE_SIMULATOR;
+    }
+
+    @Override
+    public String getParserDescription() {
+        return "Simulates sequences for partitions using multiple threads and writes them directly to files";
+    }
+
+    @Override
+    public Class getReturnType() {
+        return ParallelSequenceSimulator.class;
+    }
+
+    @Override
+    public XMLSyntaxRule[] getSyntaxRules() {
+        return new XMLSyntaxRule[]{
+                new StringAttributeRule(FileHelpers.FILE_NAME, "The file to write the alignment to (numbered for each replicate if there is more than one)"),
+                new StringAttributeRule(OUTPUT, "The output format, default is fasta",
+                        new String[] { SimpleAlignment.OutputType.FASTA.getText(), SimpleAlignment.OutputType.NEXUS.getText() },
+                        true),
+                AttributeRule.newIntegerRule(REPLICATES, true, "The number of alignments to simulate, default is 1"),
+                AttributeRule.newIntegerRule(THREADS, true, "The number of threads to use, default is the number of processors"),
+                AttributeRule.newIntegerRule(BLOCK_SIZE, true, "The number of sites that are simulated together, default is "
+                        + ParallelSequenceSimulator.DEFAULT_BLOCK_SIZE),
+                new ElementRule(Partition.class, 1, Integer.MAX_VALUE)
+        };
+    }
+
+    @Override
+    public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+
+        SimpleAlignment.OutputType output = SimpleAlignment.OutputType.FASTA;
+        if (xo.hasAttribute(OUTPUT)) {
+            output = SimpleAlignment.OutputType.parseFromString(xo.getStringAttribute(OUTPUT));
+        }
+
+        int replicates = xo.getAttribute(REPLICATES, 1);
+        int threads = xo.getAttribute(THREADS, Runtime.getRuntime().availableProcessors());
+        int blockSize = xo.getAttribute(BLOCK_SIZE, ParallelSequenceSimulator.DEFAULT_BLOCK_SIZE);
+        if (replicates < 1 || threads < 1 || blockSize < 1) {
+            throw new XMLParseException("The " + REPLICATES + ", " + THREADS + " and " + BLOCK_SIZE
+                    + " attributes of " + getParserName() + " must be at least 1");
+        }
+
+        int siteCount = 0;
+        for (int i = 0; i < xo.getChildCount(); i++) {
+            Partition partition = (Partition) xo.getChild(i);
+            if (partition.to + 1 > siteCount) {
+                siteCount = partition.to + 1;
+            }
+        }
+
+        ArrayList<Partition> partitions = new ArrayList<Partition>();
+        for (int i = 0; i < xo.getChildCount(); i++) {
+            Partition partition = (Partition) xo.getChild(i);
+            if (partition.from > siteCount) {
+                throw new XMLParseException("Illegal 'from' attribute in " + PartitionParser.PARTITION + " element");
+            }
+            if (partition.to == -1) {
+                partition.to = siteCount - 1;
+            }
+            partitions.add(partition);
+        }
+
+        File file = XMLParser.getLogFile(xo, FileHelpers.FILE_NAME);
+        File[] files = new File[replicates];
+        if (replicates == 1) {
+            files[0] = file;
+        } else {
+            String name = file.getName();
+            int dot = name.lastIndexOf('.');
+            for (int i = 0; i < replicates; i++) {
+                String replicateName = (dot > 0 ?
+                        name.substring(0, dot) + "_" + (i + 1) + name.substring(dot) :
+                        name + "_" + (i + 1));
+                files[i] = new File(file.getParentFile(), replicateName);
+            }
+        }
+
+        Logger.getLogger("dr.app.beagle.tools").info("\nUsing Parallel Sequence Simulator:\n\t"
+                + partitions.size() + " partitions with a total of " + siteCount + " sites, "
+                + replicates + (replicates > 1 ? " replicates" : " replicate") + " written to " + file.getName()
+                + (replicates > 1 ? " (numbered)" : "") + " using " + threads + (threads > 1 ? " threads" : " thread") + "\n");
+
+        ParallelSequenceSimulator simulator = new ParallelSequenceSimulator(partitions, output, threads, blockSize);
+        try {
+            simulator.simulate(files);
+        } catch (IOException e) {
+            throw new XMLParseException("Unable to write simulated alignment to " + file.getName() + ": " + e.getMessage());
+        }
+
+        return simulator;
+    }
+
+}// END: class
@@ -33,12 +33,14 @@ import dr.app.plugin.PluginLoader;
 import dr.app.util.Arguments;
 import dr.app.util.Utils;
 import dr.inference.mcmc.MCMC;
+import dr.inference.mcmc.ReplicateMCMC;
 import dr.inference.mcmcmc.MCMCMC;
 import dr.inference.mcmcmc.MCMCMCOptions;
 import dr.math.MathUtils;
 import dr.util.ErrorLogHandler;
 import dr.util.MessageLogHandler;
 import dr.util.Version;
+import dr.xml.Replicator;
 import dr.xml.XMLObjectParser;
 import dr.xml.XMLParser;
 import jam.util.IconUtils;
@@ -81,7 +83,7 @@ public class BeastMain {
 
     public BeastMain(File inputFile, BeastConsoleApp consoleApp, int maxErrorCount, final boolean verbose,
                      boolean parserWarning, boolean strictXML, List<String> additionalParsers,
-                     boolean useMC3, double[] chainTemperatures, int swapChainsEvery) {
+                     boolean useMC3, double[] chainTemperatures, int swapChainsEvery, int replicateCount) {
 
         if (inputFile == null) {
             throw new RuntimeException("Error: no input file specified");
@@ -159,7 +161,35 @@ public class BeastMain {
             // appropriate savers and loaders according to the user's options.
             new BeastCheckpointer();
 
-            if (!useMC3) {
+            // Install the replicator. This allows elements (such as the marginal likelihood
+            // estimator) to obtain independent copies of the model graph by re-parsing the file.
+            new BeastReplicator(parser, inputFile, additionalParsers, verbose, parserWarning, strictXML, version);
+
+            if (replicateCount > 1) {
+                MCMC[] chains = new MCMC[replicateCount];
+
+                Logger.getLogger("dr.apps.beast").info("Running " + replicateCount + " independent replicate chains");
+
+                // parse the file for the first chain returning the MCMC object
+                chains[0] = (MCMC) parser.parse(fileReader, MCMC.class);
+                if (chains[0] == null) {
+                    throw new dr.xml.XMLParseException("BEAST XML file is missing an MCMC element");
+                }
+                fileReader.close();
+
+                for (int i = 1; i < replicateCount; i++) {
+                    // each replicate has its own model graph and output files but shares the data
+                    chains[i] = Replicator.INSTANCE.replicate(MCMC.class, 0, i);
+                }
+
+                // runs the chains in their own threads and waits for them to finish
+                ReplicateMCMC replicates = new ReplicateMCMC(chains, ReplicateMCMC.DEFAULT_REPORT_INTERVAL);
+                replicates.run();
+
+                // then runs anything following the MCMC element (i.e., analyses of the first chain's logs)
+                parser.runRemainingElements();
+
+            } else if (!useMC3) {
                 // just parse the file running all threads...
 
                 parser.parse(fileReader, true);
@@ -369,6 +399,9 @@ public class BeastMain {
 
                         new Arguments.StringOption("particles", "FOLDER", "Specify a folder of particle start states"),
 
+                        new Arguments.IntegerOption("replicates", 1, Integer.MAX_VALUE, "The number of independent replicate chains to run concurrently"),
+                        new Arguments.IntegerOption("worker", 1, 65535, "Run as a worker for a distributed likelihood listening on this port"),
+
                         new Arguments.IntegerOption("mc3_chains", 1, Integer.MAX_VALUE, "number of chains"),
                         new Arguments.RealOption("mc3_delta", 0.0, Double.MAX_VALUE, "temperature increment parameter"),
                         new Arguments.RealArrayOption("mc3_temperatures", -1, "a comma-separated list of the hot chain temperatures"),
@@ -456,6 +489,8 @@ public class BeastMain {
         double[] chainTemperatures = null;
         int swapChainsEvery = DEFAULT_SWAP_CHAIN_EVERY;
 
+        int replicateCount = 1;
+
         if (arguments.hasOption("particles")) {
             System.setProperty("smc.particle_folder", arguments.getStringOption("particles"));
             usingSMC = true;
@@ -524,6 +559,16 @@ public class BeastMain {
             }
 
             usingMC3 = chainCount > 1;
+
+            if (arguments.hasOption("replicates")) {
+                if (usingMC3) {
+                    System.err.println("The -replicates option can't be used with MC3");
+                    System.err.println();
+                    printUsage(arguments);
+                    System.exit(1);
+                }
+                replicateCount = arguments.getIntegerOption("replicates");
+            }
         }
 
         // ============= BEAGLE settings =============
@@ -700,6 +745,11 @@ public class BeastMain {
             }
         }
 
+        int workerPort = 0;
+        if (arguments.hasOption("worker")) {
+            workerPort = arguments.getIntegerOption("worker");
+        }
+
         int maxErrorCount = 0;
         if (arguments.hasOption("errors")) {
             maxErrorCount = arguments.getIntegerOption("errors");
@@ -889,9 +939,20 @@ public class BeastMain {
 
         System.out.println("Random number seed: " + seed);
 
+        if (workerPort > 0) {
+            // host likelihoods for a distributedLikelihood running in another process
+            try {
+                new BeastWorker(inputFile, workerPort, additionalParsers, verbose, warnings, strictXML, version).run();
+            } catch (IOException ioe) {
+                System.err.println("Worker error: " + ioe.getMessage());
+                System.exit(1);
+            }
+            System.exit(0);
+        }
+
         try {
             new BeastMain(inputFile, consoleApp, maxErrorCount, verbose, warnings, strictXML, additionalParsers,
-                    usingMC3, chainTemperatures, swapChainsEvery);
+                    usingMC3, chainTemperatures, swapChainsEvery, replicateCount);
         } catch (RuntimeException rte) {
             // The stack trace here is not useful
 //            rte.printStackTrace(System.err);
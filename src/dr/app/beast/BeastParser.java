@@ -34,6 +34,7 @@ import dr.xml.XMLObjectParser;
 import dr.xml.XMLParser;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -52,11 +53,15 @@ public class BeastParser extends XMLParser {
     public static final String RELEASE ="release";
     public static final String DEV = "development";
     public static final String PARSER_PROPERTIES_SUFFIX ="_parsers.properties";
+    // set -Dparser.index=false to load all the parsers at startup rather than use the index
+    public static final String PARSER_INDEX_PROPERTY = "parser.index";
     public String parsers;
 
     public BeastParser(String[] args, List<String> additionalParsers, boolean verbose, boolean parserWarnings, boolean strictXML, Version version) {
         super(verbose, parserWarnings, strictXML, version);
 
+        long startTime = System.nanoTime();
+
         addCitable(BeastVersion.INSTANCE);
 
         setup(args);
@@ -111,6 +116,8 @@ public class BeastParser extends XMLParser {
             e.printStackTrace();
         }
 
+        setSetupTime(System.nanoTime() - startTime);
+
         // Now search the package hierarchy for 'beast.properties' files.
 //        try {
 //            loadProperties(this.getClass(), verbose);
@@ -141,65 +148,111 @@ public class BeastParser extends XMLParser {
         if (stream == null) {
             throw new RuntimeException("Parsers file not found: " + parsersFile);
         }
-        BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+        byte[] content = ParserIndex.readContent(stream);
+
+        // if there is an up to date index (built at compile time) then the parsers can be
+        // registered by name and only loaded if they are used
+        List<ParserIndex.Entry> index = null;
+        if (!verbose && !"false".equalsIgnoreCase(System.getProperty(PARSER_INDEX_PROPERTY))) {
+            index = ParserIndex.read(c, parsersFile, content);
+        }
+
+        if (index != null) {
+            for (ParserIndex.Entry entry : index) {
+                if (entry.getParserNames().length > 0) {
+                    loadParser(entry, parsersFile, parserWarning, canReplace);
+                } else {
+                    loadParser(entry.getClassName(), parsersFile, verbose, parserWarning, canReplace);
+                }
+            }
+            return;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(content)));
         String line = reader.readLine();
 
         while (line != null) {
             if (verbose && line.trim().startsWith("#")) System.out.println(line);
 
             if (line.trim().length() > 0 && !line.trim().startsWith("#")) {
-                try {
-                    if (line.contains("Vector")) {
-                        System.out.println("");
-                    }
-                    Class parser = Class.forName(line);
-                    if (XMLObjectParser.class.isAssignableFrom(parser)) {
-                        // if this class is an XMLObjectParser then create an instance
-                        boolean replaced = addXMLObjectParser((XMLObjectParser) parser.newInstance(), canReplace);
-                        if (verbose) {
-                            System.out.println((replaced ? "Replaced" : "Loaded") + " parser: " + parser.getName());
-                        } else if (parserWarning && replaced) {
-                            System.out.println("WARNING: parser - " + parser.getName() + " in " + parsersFile +" is duplicated, "
-                                    + "which is REPLACING the same parser loaded previously.\n");
-                        }
-                    } else {
-                        boolean parserFound = false;
-                        // otherwise look for a static member which is an instance of XMLObjectParser
-                        Field[] fields = parser.getDeclaredFields();
-                        for (Field field : fields) {
-                            if (XMLObjectParser.class.isAssignableFrom(field.getType())) {
-                                try {
-                                    boolean replaced = addXMLObjectParser((XMLObjectParser) field.get(null), canReplace);
-                                    if (verbose) {
-                                        System.out.println((replaced ? "Replaced" : "Loaded") + " parser: "
-                                                + parser.getName() + "." + field.getName());
-                                    } else if (parserWarning && replaced) {
-                                        System.out.println("WARNING: parser - " + parser.getName() + " in " + parsersFile +" is duplicated, "
-                                                + "which is REPLACING the same parser loaded previously.\n");
-                                    }
-                                } catch (IllegalArgumentException iae) {
-                                    System.err.println("Failed to install parser: " + iae.getMessage());
-                                }
-                                parserFound = true;
-                            }
-                        }
+                loadParser(line, parsersFile, verbose, parserWarning, canReplace);
+            }
+            line = reader.readLine();
+        }
+
+        if (verbose) {
+            System.out.println("load " + parsersFile + " successfully.\n");
+        }
+    }
 
-                        if (!parserFound) {
-                            throw new IllegalArgumentException(parser.getName() + " is not of type XMLObjectParser " +
-                                    "and doesn't contain any static members of this type");
+    private void loadParser(String line, String parsersFile, boolean verbose, boolean parserWarning, boolean canReplace) {
+        try {
+            if (line.contains("Vector")) {
+                System.out.println("");
+            }
+            Class parser = Class.forName(line);
+            if (XMLObjectParser.class.isAssignableFrom(parser)) {
+                // if this class is an XMLObjectParser then create an instance
+                boolean replaced = addXMLObjectParser((XMLObjectParser) parser.newInstance(), canReplace);
+                if (verbose) {
+                    System.out.println((replaced ? "Replaced" : "Loaded") + " parser: " + parser.getName());
+                } else if (parserWarning && replaced) {
+                    System.out.println("WARNING: parser - " + parser.getName() + " in " + parsersFile +" is duplicated, "
+                            + "which is REPLACING the same parser loaded previously.\n");
+                }
+            } else {
+                boolean parserFound = false;
+                // otherwise look for a static member which is an instance of XMLObjectParser
+                Field[] fields = parser.getDeclaredFields();
+                for (Field field : fields) {
+                    if (XMLObjectParser.class.isAssignableFrom(field.getType())) {
+                        try {
+                            boolean replaced = addXMLObjectParser((XMLObjectParser) field.get(null), canReplace);
+                            if (verbose) {
+                                System.out.println((replaced ? "Replaced" : "Loaded") + " parser: "
+                                        + parser.getName() + "." + field.getName());
+                            } else if (parserWarning && replaced) {
+                                System.out.println("WARNING: parser - " + parser.getName() + " in " + parsersFile +" is duplicated, "
+                                        + "which is REPLACING the same parser loaded previously.\n");
+                            }
+                        } catch (IllegalArgumentException iae) {
+                            System.err.println("Failed to install parser: " + iae.getMessage());
                         }
+                        parserFound = true;
                     }
+                }
 
-                } catch (Exception e) {
-                    System.err.println("\nFailed to load parser: " + e.getMessage());
-                    System.err.println("line = " + line + "\n");
+                if (!parserFound) {
+                    throw new IllegalArgumentException(parser.getName() + " is not of type XMLObjectParser " +
+                            "and doesn't contain any static members of this type");
                 }
             }
-            line = reader.readLine();
+
+        } catch (Exception e) {
+            System.err.println("\nFailed to load parser: " + e.getMessage());
+            System.err.println("line = " + line + "\n");
         }
+    }
 
-        if (verbose) {
-            System.out.println("load " + parsersFile + " successfully.\n");
+    private void loadParser(ParserIndex.Entry entry, String parsersFile, boolean parserWarning, boolean canReplace) {
+        try {
+            boolean replaced = addXMLObjectParserFactory(entry.getParserNames(), entry, canReplace);
+            if (parserWarning && replaced) {
+                System.out.println("WARNING: parser - " + entry.getClassName() + " in " + parsersFile +" is duplicated, "
+                        + "which is REPLACING the same parser loaded previously.\n");
+            }
+        } catch (IllegalArgumentException iae) {
+            // this clashes with an existing parser so create it now to report this as when not indexed
+            try {
+                addXMLObjectParser(entry.createParser(), false);
+            } catch (Exception e) {
+                if (entry.getFieldName() != null) {
+                    System.err.println("Failed to install parser: " + e.getMessage());
+                } else {
+                    System.err.println("\nFailed to load parser: " + e.getMessage());
+                    System.err.println("line = " + entry.getClassName() + "\n");
+                }
+            }
         }
     }
 
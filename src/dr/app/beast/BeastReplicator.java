@@ -0,0 +1,191 @@
+/*
+ * BeastReplicator.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.beast;
+
+import dr.app.plugin.Plugin;
+import dr.app.plugin.PluginLoader;
+import dr.evolution.alignment.Alignment;
+import dr.evolution.alignment.PatternList;
+import dr.evolution.datatype.DataType;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.TaxonList;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
+import dr.util.Version;
+import dr.xml.Replicator;
+import dr.xml.XMLObject;
+import dr.xml.XMLObjectParser;
+import dr.xml.XMLParseException;
+import dr.xml.XMLParser;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates replicates by re-parsing the BEAST input file with a fresh BeastParser (in the
+ * same way as the hot chains are created for MC3). Immutable data objects (alignments,
+ * patterns, taxa and data types) that have already been created by the original parser
+ * are shared by the replicates rather than parsed again. Installing an instance sets
+ * Replicator.INSTANCE.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class BeastReplicator extends Replicator {
+
+    public BeastReplicator(XMLParser originalParser, File inputFile, List<String> additionalParsers,
+                           boolean verbose, boolean parserWarning, boolean strictXML, Version version) {
+        this.originalParser = originalParser;
+        this.inputFile = inputFile;
+        this.additionalParsers = additionalParsers;
+        this.verbose = verbose;
+        this.parserWarning = parserWarning;
+        this.strictXML = strictXML;
+        this.version = version;
+
+        Replicator.INSTANCE = this;
+    }
+
+    @Override
+    public synchronized <T> T replicate(Class<T> target, int ordinal, int index, boolean logToFiles) throws XMLParseException {
+        Logger logger = Logger.getLogger("dr");
+        Level level = logger.getLevel();
+
+        // turn off all messages for subsequent reads of the file (they will be the same as the
+        // first time).
+        logger.setLevel(Level.OFF);
+        System.setProperty(REPLICATE_POSTFIX, ".rep" + index);
+
+        // the global registers of parameters and models will also gain the replicate's components
+        // so note these so they can be distinguished from the originals (i.e., for checkpointing).
+        Set<Object> existing = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        existing.addAll(Parameter.CONNECTED_PARAMETER_SET);
+        existing.addAll(Model.CONNECTED_MODEL_SET);
+
+        try {
+            XMLParser parser = createParser();
+            parser.setSharedObjects(getSharedObjects());
+
+            FileReader fileReader = new FileReader(inputFile);
+            Object object = parser.parse(fileReader, target, ordinal, logToFiles);
+            fileReader.close();
+
+            if (object == null) {
+                throw new XMLParseException("BEAST XML file is missing an element of type " + target.getSimpleName());
+            }
+            return target.cast(object);
+
+        } catch (IOException ioe) {
+            throw new XMLParseException("File error creating replicate " + index + ": " + ioe.getMessage());
+        } catch (org.xml.sax.SAXException se) {
+            throw new XMLParseException("Parsing error creating replicate " + index + ": " + se.getMessage());
+        } catch (javax.xml.parsers.ParserConfigurationException pce) {
+            throw new XMLParseException("Parser configuration error creating replicate " + index + ": " + pce.getMessage());
+        } finally {
+            List<Object> replicated = new ArrayList<Object>();
+            for (Object object : Parameter.CONNECTED_PARAMETER_SET) {
+                if (!existing.contains(object)) {
+                    replicated.add(object);
+                }
+            }
+            for (Object object : Model.CONNECTED_MODEL_SET) {
+                if (!existing.contains(object)) {
+                    replicated.add(object);
+                }
+            }
+            addReplicatedObjects(replicated);
+
+            System.clearProperty(REPLICATE_POSTFIX);
+            logger.setLevel(level);
+        }
+    }
+
+    private Map<String, XMLObject> getSharedObjects() {
+        Map<String, XMLObject> sharedObjects = new LinkedHashMap<String, XMLObject>();
+        for (Map.Entry<String, XMLObject> entry : originalParser.getObjectStore().entrySet()) {
+            Object object = entry.getValue().getNativeObject();
+            if (isShareable(object)) {
+                sharedObjects.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return sharedObjects;
+    }
+
+    private static boolean isShareable(Object object) {
+        if (object == null || object instanceof Model || object instanceof Variable || object instanceof Likelihood) {
+            // anything that is part of the model graph can change state
+            return false;
+        }
+        if (object instanceof Tree) {
+            // trees are taxon lists but starting trees (which may be random) should be created for each replicate
+            return false;
+        }
+        for (Class sharedClass : SHARED_CLASSES) {
+            if (sharedClass.isInstance(object)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final Class[] SHARED_CLASSES = {
+            Alignment.class,
+            PatternList.class,
+            TaxonList.class,
+            Taxon.class,
+            DataType.class
+    };
+
+    private XMLParser createParser() {
+        XMLParser parser = new BeastParser(new String[]{inputFile.getName()}, additionalParsers,
+                verbose, parserWarning, strictXML, version);
+
+        for (String pluginName : PluginLoader.getAvailablePlugins()) {
+            Plugin plugin = PluginLoader.loadPlugin(pluginName);
+            if (plugin != null) {
+                for (XMLObjectParser pluginParser : plugin.getParsers()) {
+                    parser.addXMLObjectParser(pluginParser);
+                }
+            }
+        }
+        return parser;
+    }
+
+    private final XMLParser originalParser;
+    private final File inputFile;
+    private final List<String> additionalParsers;
+    private final boolean verbose;
+    private final boolean parserWarning;
+    private final boolean strictXML;
+    private final Version version;
+}
@@ -0,0 +1,119 @@
+/*
+ * BeastWorker.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.beast;
+
+import dr.app.plugin.Plugin;
+import dr.app.plugin.PluginLoader;
+import dr.inference.model.Likelihood;
+import dr.inference.parallel.LikelihoodServer;
+import dr.util.Version;
+import dr.xml.XMLObject;
+import dr.xml.XMLObjectParser;
+import dr.xml.XMLParseException;
+import dr.xml.XMLParser;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs BEAST as a worker process for a distributedLikelihood element. When the master
+ * connects, the likelihoods it asks for (and the elements they depend on) are parsed from
+ * the input file, which should be the same one the master is running.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class BeastWorker {
+
+    public BeastWorker(File inputFile, int port, List<String> additionalParsers,
+                       boolean verbose, boolean parserWarning, boolean strictXML, Version version) {
+        this.inputFile = inputFile;
+        this.port = port;
+        this.additionalParsers = additionalParsers;
+        this.verbose = verbose;
+        this.parserWarning = parserWarning;
+        this.strictXML = strictXML;
+        this.version = version;
+    }
+
+    public void run() throws IOException {
+        LikelihoodServer server = new LikelihoodServer(port, new LikelihoodServer.LikelihoodFactory() {
+            public List<Likelihood> createLikelihoods(List<String> ids) throws XMLParseException {
+                return parseLikelihoods(ids);
+            }
+        });
+        server.serve();
+    }
+
+    private List<Likelihood> parseLikelihoods(List<String> ids) throws XMLParseException {
+        XMLParser parser = new BeastParser(new String[]{inputFile.getName()}, additionalParsers,
+                verbose, parserWarning, strictXML, version);
+
+        for (String pluginName : PluginLoader.getAvailablePlugins()) {
+            Plugin plugin = PluginLoader.loadPlugin(pluginName);
+            if (plugin != null) {
+                for (XMLObjectParser pluginParser : plugin.getParsers()) {
+                    parser.addXMLObjectParser(pluginParser);
+                }
+            }
+        }
+
+        Map<String, XMLObject> store;
+        try {
+            FileReader fileReader = new FileReader(inputFile);
+            store = parser.parse(fileReader, ids);
+            fileReader.close();
+        } catch (IOException ioe) {
+            throw new XMLParseException("File error: " + ioe.getMessage());
+        } catch (org.xml.sax.SAXException se) {
+            throw new XMLParseException("Parsing error: " + se.getMessage());
+        } catch (javax.xml.parsers.ParserConfigurationException pce) {
+            throw new XMLParseException("Parser configuration error: " + pce.getMessage());
+        }
+
+        List<Likelihood> likelihoods = new ArrayList<Likelihood>();
+        for (String id : ids) {
+            Object object = store.get(id).getNativeObject();
+            if (!(object instanceof Likelihood)) {
+                throw new XMLParseException("The element with id, " + id + ", is not a likelihood");
+            }
+            likelihoods.add((Likelihood) object);
+        }
+        return likelihoods;
+    }
+
+    private final File inputFile;
+    private final int port;
+    private final List<String> additionalParsers;
+    private final boolean verbose;
+    private final boolean parserWarning;
+    private final boolean strictXML;
+    private final Version version;
+}
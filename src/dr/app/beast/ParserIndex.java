@@ -0,0 +1,264 @@
+/*
+ * ParserIndex.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.beast;
+
+import dr.xml.XMLObjectParser;
+import dr.xml.XMLParser;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An index of the parsers listed in a parsers properties file giving the element names that
+ * each one handles. The index is built at compile time (by the compile-all target in build.xml)
+ * so that BeastParser can register parsers by name and only load the classes of those that are
+ * used by the XML file being run. The index records a checksum of the properties file and is
+ * ignored if this doesn't match, i.e., if the properties file has been edited since the build.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class ParserIndex {
+
+    public static final String PARSER_INDEX_SUFFIX = "_parsers.index";
+
+    private static final String CHECKSUM = "#checksum=";
+
+    /**
+     * A parser in the index - either a class that is an XMLObjectParser or a static field of
+     * a class holding one. An entry with no parser names couldn't be indexed (e.g., the class
+     * failed to load when the index was built) and should be loaded from the class name as before.
+     */
+    public static class Entry implements XMLParser.ParserFactory {
+
+        Entry(String className, String fieldName, String[] parserNames) {
+            this.className = className;
+            this.fieldName = fieldName;
+            this.parserNames = parserNames;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public String getFieldName() {
+            return fieldName;
+        }
+
+        public String[] getParserNames() {
+            return parserNames;
+        }
+
+        public XMLObjectParser createParser() throws Exception {
+            Class parserClass = Class.forName(className);
+            if (fieldName == null) {
+                return (XMLObjectParser) parserClass.newInstance();
+            }
+            return (XMLObjectParser) parserClass.getDeclaredField(fieldName).get(null);
+        }
+
+        private final String className;
+        private final String fieldName;
+        private final String[] parserNames;
+    }
+
+    /**
+     * Reads the index of a parsers file.
+     *
+     * @param c           the class used to find the index resource
+     * @param parsersFile the parsers file name (*_parsers.properties)
+     * @param content     the content of the parsers file
+     * @return the entries in the order of the parsers file or null if there is no index or it
+     *         was built from a different version of the parsers file
+     * @throws IOException IOException
+     */
+    public static List<Entry> read(Class c, String parsersFile, byte[] content) throws IOException {
+        if (!parsersFile.endsWith(BeastParser.PARSER_PROPERTIES_SUFFIX)) {
+            return null;
+        }
+        String indexFile = parsersFile.substring(0, parsersFile.length() - BeastParser.PARSER_PROPERTIES_SUFFIX.length())
+                + PARSER_INDEX_SUFFIX;
+        InputStream stream = c.getResourceAsStream(indexFile);
+        if (stream == null) {
+            return null;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+        try {
+            List<Entry> entries = new ArrayList<Entry>();
+            boolean checked = false;
+            String line = reader.readLine();
+            while (line != null) {
+                if (line.startsWith(CHECKSUM)) {
+                    if (!line.substring(CHECKSUM.length()).equals(getChecksum(content))) {
+                        return null;
+                    }
+                    checked = true;
+                } else if (line.length() > 0 && !line.startsWith("#")) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length == 1) {
+                        entries.add(new Entry(line, null, new String[0]));
+                    } else {
+                        String[] parserNames = new String[fields.length - 2];
+                        System.arraycopy(fields, 2, parserNames, 0, parserNames.length);
+                        entries.add(new Entry(fields[0], fields[1].length() > 0 ? fields[1] : null, parserNames));
+                    }
+                }
+                line = reader.readLine();
+            }
+            return checked ? entries : null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Creates the index entries for a parsers file by loading each of the parsers it lists.
+     */
+    public static List<Entry> createEntries(byte[] content) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(content), "UTF-8"));
+        String line = reader.readLine();
+        while (line != null) {
+            if (line.trim().length() > 0 && !line.trim().startsWith("#")) {
+                entries.addAll(createEntries(line));
+            }
+            line = reader.readLine();
+        }
+        return entries;
+    }
+
+    private static List<Entry> createEntries(String line) {
+        List<Entry> entries = new ArrayList<Entry>();
+        try {
+            Class parser = Class.forName(line);
+            if (XMLObjectParser.class.isAssignableFrom(parser)) {
+                entries.add(new Entry(line, null, ((XMLObjectParser) parser.newInstance()).getParserNames()));
+            } else {
+                for (Field field : parser.getDeclaredFields()) {
+                    if (XMLObjectParser.class.isAssignableFrom(field.getType())) {
+                        entries.add(new Entry(line, field.getName(), ((XMLObjectParser) field.get(null)).getParserNames()));
+                    }
+                }
+            }
+        } catch (Throwable t) {
+            entries.clear();
+        }
+
+        for (Entry entry : entries) {
+            for (String parserName : entry.getParserNames()) {
+                if (parserName.length() == 0 || parserName.contains("\t")) {
+                    entries.clear();
+                    break;
+                }
+            }
+        }
+
+        if (entries.isEmpty()) {
+            // leave this one to be loaded (and any problems reported) when BEAST starts
+            entries.add(new Entry(line, null, new String[0]));
+        }
+        return entries;
+    }
+
+    public static void write(List<Entry> entries, byte[] content, String source, Writer writer) throws IOException {
+        PrintWriter printWriter = new PrintWriter(writer);
+        printWriter.println("# Generated from " + source + " at build time - do not edit");
+        printWriter.println(CHECKSUM + getChecksum(content));
+        for (Entry entry : entries) {
+            printWriter.print(entry.getClassName());
+            if (entry.getParserNames().length > 0) {
+                printWriter.print("\t" + (entry.getFieldName() != null ? entry.getFieldName() : ""));
+                for (String parserName : entry.getParserNames()) {
+                    printWriter.print("\t" + parserName);
+                }
+            }
+            printWriter.println();
+        }
+        printWriter.flush();
+    }
+
+    public static byte[] readContent(InputStream stream) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = stream.read(buffer)) > 0) {
+            content.write(buffer, 0, count);
+        }
+        stream.close();
+        return content.toByteArray();
+    }
+
+    private static String getChecksum(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * Builds the indices for all the parsers files in a directory.
+     *
+     * @param args the directory containing the *_parsers.properties files and the directory to write the indices to
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: ParserIndex <parsers directory> <output directory>");
+            System.exit(1);
+        }
+
+        File[] files = new File(args[0]).listFiles();
+        if (files == null) {
+            System.err.println("Parsers directory not found: " + args[0]);
+            System.exit(1);
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(BeastParser.PARSER_PROPERTIES_SUFFIX)) {
+                byte[] content = readContent(new FileInputStream(file));
+                List<Entry> entries = createEntries(content);
+
+                File indexFile = new File(args[1], name.substring(0, name.length() - BeastParser.PARSER_PROPERTIES_SUFFIX.length())
+                        + PARSER_INDEX_SUFFIX);
+                Writer writer = new OutputStreamWriter(new FileOutputStream(indexFile), "UTF-8");
+                write(entries, content, name, writer);
+                writer.close();
+
+                int indexed = 0;
+                for (Entry entry : entries) {
+                    if (entry.getParserNames().length > 0) {
+                        indexed++;
+                    }
+                }
+                System.out.println("Indexed " + indexed + " of " + entries.size() + " parsers in " + name);
+            }
+        }
+        System.exit(0);
+    }
+}
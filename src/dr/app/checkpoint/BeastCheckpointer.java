@@ -31,14 +31,18 @@ import dr.evomodel.tree.TreeModel;
 import dr.evomodel.tree.TreeParameterModel;
 import dr.inference.markovchain.MarkovChain;
 import dr.inference.markovchain.MarkovChainListener;
+import dr.inference.model.CompoundParameter;
 import dr.inference.model.Likelihood;
 import dr.inference.model.Model;
 import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
 import dr.inference.operators.AdaptableMCMCOperator;
+import dr.inference.operators.AdaptiveOperatorSchedule;
 import dr.inference.operators.MCMCOperator;
 import dr.inference.operators.OperatorSchedule;
 import dr.inference.state.*;
 import dr.math.MathUtils;
+import dr.xml.Replicator;
 
 import java.io.*;
 import java.text.SimpleDateFormat;
@@ -65,6 +69,9 @@ public class BeastCheckpointer implements StateLoaderSaver {
     public final static String FORCE_RESUME = "force.resume";
     public final static String CHECKPOINT_SEED = "checkpoint.seed";
 
+    // the log importance weight of an SMC particle (only in particle states)
+    private final static String LOG_WEIGHT = "logWeight";
+
     private final String loadStateFileName;
     private final String saveStateFileName;
 
@@ -105,23 +112,71 @@ public class BeastCheckpointer implements StateLoaderSaver {
             }
 
             @Override
-            public StateLoaderSaver getStateLoaderSaver(final File loadFile, final File saveFile) {
-                return new StateLoaderSaver() {
+            public ParticleStateLoaderSaver getStateLoaderSaver(final File loadFile, final File saveFile) {
+                return new ParticleStateLoaderSaver() {
 
                     @Override
                     public boolean saveState(MarkovChain markovChain, long state, double lnL) {
                         return BeastCheckpointer.this.writeStateToFile(saveFile, state, lnL, markovChain);
                     }
 
+                    @Override
+                    public boolean saveState(MarkovChain markovChain, long state, double lnL, double logWeight) {
+                        return BeastCheckpointer.this.writeStateToFile(saveFile, state, lnL, logWeight, markovChain);
+                    }
+
                     @Override
                     public long loadState(MarkovChain markovChain, double[] savedLnL) {
                         return BeastCheckpointer.this.readStateFromFile(loadFile, markovChain, savedLnL);
                     }
 
+                    @Override
+                    public long loadState(MarkovChain markovChain, double[] savedLnL, double[] logWeight) {
+                        return BeastCheckpointer.this.readStateFromFile(loadFile, markovChain, savedLnL, logWeight);
+                    }
+
+                    @Override
+                    public void checkLoadState(double savedLnL, double lnL) {
+                        // do nothing.
+                    }
+                };
+            }
+
+            @Override
+            public StateLoaderSaver getStateLoaderSaver() {
+                return new StateLoaderSaver() {
+
+                    @Override
+                    public boolean saveState(MarkovChain markovChain, long state, double lnL) {
+                        ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+                        PrintStream out = new PrintStream(byteOut);
+                        writeState(out, state, lnL, markovChain,
+                                getConnectedParameters(markovChain), getConnectedModels(markovChain), false);
+                        out.close();
+                        savedState = byteOut.toByteArray();
+                        return true;
+                    }
+
+                    @Override
+                    public long loadState(MarkovChain markovChain, double[] savedLnL) {
+                        if (savedState == null) {
+                            throw new RuntimeException("No state has been saved");
+                        }
+                        try {
+                            BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(savedState)));
+                            return readState(in, markovChain, savedLnL,
+                                    getConnectedParameters(markovChain), getConnectedModels(markovChain), false);
+                        } catch (IOException ioe) {
+                            throw new RuntimeException("Unable to read saved state: " + ioe.getMessage());
+                        }
+                    }
+
                     @Override
                     public void checkLoadState(double savedLnL, double lnL) {
                         // do nothing.
                     }
+
+                    private byte[] savedState = null;
                 };
             }
         };
@@ -132,6 +187,69 @@ public class BeastCheckpointer implements StateLoaderSaver {
         return this;
     }
 
+    /**
+     * Returns the connected parameters that are part of the model graph of the given chain in the
+     * order they are held in Parameter.CONNECTED_PARAMETER_SET. When more than one replicate of a
+     * model has been created within this JVM this distinguishes the parameters of each.
+     */
+    private static List<Parameter> getConnectedParameters(MarkovChain markovChain) {
+        Set<Model> models = new HashSet<Model>();
+        Set<Parameter> parameters = new HashSet<Parameter>();
+        collectModelGraph(markovChain.getLikelihood(), models, parameters);
+
+        List<Parameter> connected = new ArrayList<Parameter>();
+        for (Parameter parameter : Parameter.CONNECTED_PARAMETER_SET) {
+            if (parameters.contains(parameter)) {
+                connected.add(parameter);
+            }
+        }
+        return connected;
+    }
+
+    private static List<Model> getConnectedModels(MarkovChain markovChain) {
+        Set<Model> models = new HashSet<Model>();
+        collectModelGraph(markovChain.getLikelihood(), models, new HashSet<Parameter>());
+
+        List<Model> connected = new ArrayList<Model>();
+        for (Model model : Model.CONNECTED_MODEL_SET) {
+            if (models.contains(model)) {
+                connected.add(model);
+            }
+        }
+        return connected;
+    }
+
+    private static void collectModelGraph(Likelihood likelihood, Set<Model> models, Set<Parameter> parameters) {
+        collectModelGraph(likelihood.getModel(), models, parameters);
+        for (Likelihood l : likelihood.getLikelihoodSet()) {
+            collectModelGraph(l.getModel(), models, parameters);
+        }
+    }
+
+    private static void collectModelGraph(Model model, Set<Model> models, Set<Parameter> parameters) {
+        if (model == null || !models.add(model)) {
+            return;
+        }
+        for (int i = 0; i < model.getVariableCount(); i++) {
+            Variable variable = model.getVariable(i);
+            if (variable instanceof Parameter) {
+                collectParameter((Parameter) variable, parameters);
+            }
+        }
+        for (int i = 0; i < model.getModelCount(); i++) {
+            collectModelGraph(model.getModel(i), models, parameters);
+        }
+    }
+
+    private static void collectParameter(Parameter parameter, Set<Parameter> parameters) {
+        if (parameters.add(parameter) && parameter instanceof CompoundParameter) {
+            CompoundParameter compoundParameter = (CompoundParameter) parameter;
+            for (int i = 0; i < compoundParameter.getParameterCount(); i++) {
+                collectParameter(compoundParameter.getParameter(i), parameters);
+            }
+        }
+    }
+
     @Override
     public boolean saveState(MarkovChain markovChain, long state, double lnL) {
         String fileName = "";
@@ -220,15 +338,50 @@ public class BeastCheckpointer implements StateLoaderSaver {
     }
 
     protected boolean writeStateToFile(File file, long state, double lnL, MarkovChain markovChain) {
-        OperatorSchedule operatorSchedule = markovChain.getSchedule();
+        return writeStateToFile(file, state, lnL, null, markovChain);
+    }
 
+    /**
+     * @param logWeight the log weight of an SMC particle (or null if this isn't a particle)
+     */
+    private boolean writeStateToFile(File file, long state, double lnL, Double logWeight, MarkovChain markovChain) {
         OutputStream fileOut = null;
         try {
             fileOut = new FileOutputStream(file);
             PrintStream out = new PrintStream(fileOut);
 
-            ArrayList<TreeParameterModel> traitModels = new ArrayList<TreeParameterModel>();
+            writeState(out, state, lnL, logWeight, markovChain,
+                    Replicator.getOriginalObjects(Parameter.CONNECTED_PARAMETER_SET),
+                    Replicator.getOriginalObjects(Model.CONNECTED_MODEL_SET), true);
+
+            out.close();
+            fileOut.close();
+        } catch (IOException ioe) {
+            System.err.println("Unable to write file: " + ioe.getMessage());
+            return false;
+        }
 
+        if (DEBUG) {
+            for (Likelihood likelihood : Likelihood.CONNECTED_LIKELIHOOD_SET) {
+                System.err.println(likelihood.getId() + ": " + likelihood.getLogLikelihood());
+            }
+        }
+
+        return true;
+    }
+
+    protected void writeState(PrintStream out, long state, double lnL, MarkovChain markovChain,
+                              Collection<Parameter> parameters, Collection<Model> models, boolean saveRandomState) {
+        writeState(out, state, lnL, null, markovChain, parameters, models, saveRandomState);
+    }
+
+    private void writeState(PrintStream out, long state, double lnL, Double logWeight, MarkovChain markovChain,
+                            Collection<Parameter> parameters, Collection<Model> models, boolean saveRandomState) {
+        OperatorSchedule operatorSchedule = markovChain.getSchedule();
+
+        ArrayList<TreeParameterModel> traitModels = new ArrayList<TreeParameterModel>();
+
+        if (saveRandomState) {
             int[] rngState = MathUtils.getRandomState();
             out.print("rng");
             for (int i = 0; i < rngState.length; i++) {
@@ -236,444 +389,507 @@ public class BeastCheckpointer implements StateLoaderSaver {
                 out.print(rngState[i]);
             }
             out.println();
+        }
 
-            out.print("state\t");
-            out.println(state);
+        out.print("state\t");
+        out.println(state);
 
-            out.print("lnL\t");
-            out.println(lnL);
+        out.print("lnL\t");
+        out.println(lnL);
 
-            for (Parameter parameter : Parameter.CONNECTED_PARAMETER_SET) {
-                if (!parameter.isImmutable()) {
-                    out.print("parameter");
-                    out.print("\t");
-                    out.print(parameter.getParameterName());
+        if (logWeight != null) {
+            out.print(LOG_WEIGHT + "\t");
+            out.println(logWeight);
+        }
+
+        for (Parameter parameter : parameters) {
+            if (!parameter.isImmutable()) {
+                out.print("parameter");
+                out.print("\t");
+                out.print(parameter.getParameterName());
+                out.print("\t");
+                out.print(parameter.getDimension());
+                for (int dim = 0; dim < parameter.getDimension(); dim++) {
                     out.print("\t");
-                    out.print(parameter.getDimension());
-                    for (int dim = 0; dim < parameter.getDimension(); dim++) {
-                        out.print("\t");
-                        out.print(parameter.getParameterUntransformedValue(dim));
-                    }
-                    out.print("\n");
+                    out.print(parameter.getParameterUntransformedValue(dim));
                 }
+                out.print("\n");
             }
+        }
 
-            for (int i = 0; i < operatorSchedule.getOperatorCount(); i++) {
-                MCMCOperator operator = operatorSchedule.getOperator(i);
-                out.print("operator");
+        for (int i = 0; i < operatorSchedule.getOperatorCount(); i++) {
+            MCMCOperator operator = operatorSchedule.getOperator(i);
+            out.print("operator");
+            out.print("\t");
+            out.print(operator.getOperatorName());
+            out.print("\t");
+            out.print(operator.getAcceptCount());
+            out.print("\t");
+            out.print(operator.getRejectCount());
+            if (operator instanceof AdaptableMCMCOperator) {
                 out.print("\t");
-                out.print(operator.getOperatorName());
+                out.print(((AdaptableMCMCOperator)operator).getAdaptableParameter());
                 out.print("\t");
-                out.print(operator.getAcceptCount());
+                out.print(((AdaptableMCMCOperator)operator).getAdaptationCount());
+            }
+            out.println();
+        }
+
+        if (operatorSchedule instanceof AdaptiveOperatorSchedule) {
+            out.print("adaptiveOperators");
+            out.print("\t");
+            out.print(((AdaptiveOperatorSchedule) operatorSchedule).getAdaptationStepCount());
+            for (int i = 0; i < operatorSchedule.getOperatorCount(); i++) {
                 out.print("\t");
-                out.print(operator.getRejectCount());
-                if (operator instanceof AdaptableMCMCOperator) {
-                    out.print("\t");
-                    out.print(((AdaptableMCMCOperator)operator).getAdaptableParameter());
-                    out.print("\t");
-                    out.print(((AdaptableMCMCOperator)operator).getAdaptationCount());
-                }
-                out.println();
+                out.print(operatorSchedule.getOperator(i).getWeight());
             }
+            out.println();
+        }
 
-            //check up front if there are any TreeParameterModel objects
-            for (Model model : Model.CONNECTED_MODEL_SET) {
-                if (model instanceof TreeParameterModel) {
-                    //System.out.println("\nDetected TreeParameterModel: " + ((TreeParameterModel) model).toString());
-                    traitModels.add((TreeParameterModel) model);
-                }
+        //check up front if there are any TreeParameterModel objects
+        for (Model model : models) {
+            if (model instanceof TreeParameterModel) {
+                //System.out.println("\nDetected TreeParameterModel: " + ((TreeParameterModel) model).toString());
+                traitModels.add((TreeParameterModel) model);
             }
+        }
 
-            for (Model model : Model.CONNECTED_MODEL_SET) {
+        for (Model model : models) {
 
-                if (model instanceof TreeModel) {
-                    out.print("tree");
-                    out.print("\t");
-                    out.println(model.getModelName());
+            if (model instanceof TreeModel) {
+                out.print("tree");
+                out.print("\t");
+                out.println(model.getModelName());
 
-                    //replace Newick format by printing general graph structure
-                    //out.println(((TreeModel) model).getNewick());
+                //replace Newick format by printing general graph structure
+                //out.println(((TreeModel) model).getNewick());
 
-                    out.println("#node height taxon");
-                    int nodeCount = ((TreeModel) model).getNodeCount();
-                    out.println(nodeCount);
-                    for (int i = 0; i < nodeCount; i++) {
-                        out.print(((TreeModel) model).getNode(i).getNumber());
+                out.println("#node height taxon");
+                int nodeCount = ((TreeModel) model).getNodeCount();
+                out.println(nodeCount);
+                for (int i = 0; i < nodeCount; i++) {
+                    out.print(((TreeModel) model).getNode(i).getNumber());
+                    out.print("\t");
+                    out.print(((TreeModel) model).getNodeHeight(((TreeModel) model).getNode(i)));
+                    if (((TreeModel) model).isExternal(((TreeModel) model).getNode(i))) {
                         out.print("\t");
-                        out.print(((TreeModel) model).getNodeHeight(((TreeModel) model).getNode(i)));
-                        if (((TreeModel) model).isExternal(((TreeModel) model).getNode(i))) {
-                            out.print("\t");
-                            out.print(((TreeModel) model).getNodeTaxon(((TreeModel) model).getNode(i)).getId());
-                        }
-                        out.println();
+                        out.print(((TreeModel) model).getNodeTaxon(((TreeModel) model).getNode(i)).getId());
                     }
+                    out.println();
+                }
 
-                    out.println("#edges");
-                    out.println("#child-node parent-node L/R-child traits");
+                out.println("#edges");
+                out.println("#child-node parent-node L/R-child traits");
 
-                    out.println(nodeCount);
-                    for (int i = 0; i < nodeCount; i++) {
-                        NodeRef parent = ((TreeModel) model).getParent(((TreeModel) model).getNode(i));
-                        if (parent != null) {
-                            out.print(((TreeModel) model).getNode(i).getNumber());
-                            out.print("\t");
-                            out.print(((TreeModel) model).getParent(((TreeModel) model).getNode(i)).getNumber());
-                            out.print("\t");
-
-                            if ((((TreeModel) model).getChild(parent, 0) == ((TreeModel) model).getNode(i))) {
-                                //left child
-                                out.print(0);
-                            } else if ((((TreeModel) model).getChild(parent, 1) == ((TreeModel) model).getNode(i))) {
-                                //right child
-                                out.print(1);
-                            } else {
-                                throw new RuntimeException("Operation currently only supported for nodes with 2 children.");
-                            }
+                out.println(nodeCount);
+                for (int i = 0; i < nodeCount; i++) {
+                    NodeRef parent = ((TreeModel) model).getParent(((TreeModel) model).getNode(i));
+                    if (parent != null) {
+                        out.print(((TreeModel) model).getNode(i).getNumber());
+                        out.print("\t");
+                        out.print(((TreeModel) model).getParent(((TreeModel) model).getNode(i)).getNumber());
+                        out.print("\t");
 
-                            //only print the TreeParameterModel that matches the TreeModel currently being written
-                            for (TreeParameterModel tpm : traitModels) {
-                                if (model == tpm.getTreeModel()) {
-                                    out.print("\t");
-                                    out.print(tpm.getNodeValue((TreeModel) model, ((TreeModel) model).getNode(i)));
-                                }
-                            }
-                            out.println();
+                        if ((((TreeModel) model).getChild(parent, 0) == ((TreeModel) model).getNode(i))) {
+                            //left child
+                            out.print(0);
+                        } else if ((((TreeModel) model).getChild(parent, 1) == ((TreeModel) model).getNode(i))) {
+                            //right child
+                            out.print(1);
                         } else {
-                            if (DEBUG) {
-                                System.out.println(((TreeModel) model).getNode(i) + " has no parent.");
+                            throw new RuntimeException("Operation currently only supported for nodes with 2 children.");
+                        }
+
+                        //only print the TreeParameterModel that matches the TreeModel currently being written
+                        for (TreeParameterModel tpm : traitModels) {
+                            if (model == tpm.getTreeModel()) {
+                                out.print("\t");
+                                out.print(tpm.getNodeValue((TreeModel) model, ((TreeModel) model).getNode(i)));
                             }
                         }
+                        out.println();
+                    } else {
+                        if (DEBUG) {
+                            System.out.println(((TreeModel) model).getNode(i) + " has no parent.");
+                        }
                     }
-
                 }
 
             }
 
-            out.close();
-            fileOut.close();
-        } catch (IOException ioe) {
-            System.err.println("Unable to write file: " + ioe.getMessage());
-            return false;
-        }
-
-        if (DEBUG) {
-            for (Likelihood likelihood : Likelihood.CONNECTED_LIKELIHOOD_SET) {
-                System.err.println(likelihood.getId() + ": " + likelihood.getLogLikelihood());
-            }
         }
-
-        return true;
     }
 
     protected long readStateFromFile(File file, MarkovChain markovChain, double[] lnL) {
-        OperatorSchedule operatorSchedule = markovChain.getSchedule();
-
-        long state = -1;
+        return readStateFromFile(file, markovChain, lnL, null);
+    }
 
-        ArrayList<TreeParameterModel> traitModels = new ArrayList<TreeParameterModel>();
+    /**
+     * @param logWeight returns the log weight of an SMC particle (zero if the state has none)
+     */
+    protected long readStateFromFile(File file, MarkovChain markovChain, double[] lnL, double[] logWeight) {
+        long state;
 
         try {
             FileReader fileIn = new FileReader(file);
             BufferedReader in = new BufferedReader(fileIn);
 
-            int[] rngState = null;
+            state = readState(in, markovChain, lnL, logWeight,
+                    Replicator.getOriginalObjects(Parameter.CONNECTED_PARAMETER_SET),
+                    Replicator.getOriginalObjects(Model.CONNECTED_MODEL_SET), true);
 
-            String line = in.readLine();
-            String[] fields = line.split("\t");
-            if (fields[0].equals("rng")) {
-                // if there is a random number generator state present then load it...
-                try {
-                    rngState = new int[fields.length - 1];
-                    for (int i = 0; i < rngState.length; i++) {
-                        rngState[i] = Integer.parseInt(fields[i + 1]);
-                    }
+            in.close();
+            fileIn.close();
 
-                } catch (NumberFormatException nfe) {
-                    throw new RuntimeException("Unable to read state number from state file");
-                }
+            //This shouldn't be necessary and if it is then it might be hiding a bug...
+            /*for (Likelihood likelihood : Likelihood.CONNECTED_LIKELIHOOD_SET) {
+                likelihood.makeDirty();
+            }*/
 
-                line = in.readLine();
-                fields = line.split("\t");
-            }
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to read file: " + ioe.getMessage());
+        }
+
+        return state;
+    }
+
+    protected long readState(BufferedReader in, MarkovChain markovChain, double[] lnL,
+                             Collection<Parameter> parameters, Collection<Model> models,
+                             boolean restoreRandomState) throws IOException {
+        return readState(in, markovChain, lnL, null, parameters, models, restoreRandomState);
+    }
 
+    private long readState(BufferedReader in, MarkovChain markovChain, double[] lnL, double[] logWeight,
+                           Collection<Parameter> parameters, Collection<Model> models,
+                           boolean restoreRandomState) throws IOException {
+        OperatorSchedule operatorSchedule = markovChain.getSchedule();
+
+        long state = -1;
+
+        ArrayList<TreeParameterModel> traitModels = new ArrayList<TreeParameterModel>();
+
+        int[] rngState = null;
+
+        String line = in.readLine();
+        String[] fields = line.split("\t");
+        if (fields[0].equals("rng")) {
+            // if there is a random number generator state present then load it...
             try {
-                if (!fields[0].equals("state")) {
-                    throw new RuntimeException("Unable to read state number from state file");
+                rngState = new int[fields.length - 1];
+                for (int i = 0; i < rngState.length; i++) {
+                    rngState[i] = Integer.parseInt(fields[i + 1]);
                 }
-                state = Long.parseLong(fields[1]);
+
             } catch (NumberFormatException nfe) {
                 throw new RuntimeException("Unable to read state number from state file");
             }
 
             line = in.readLine();
             fields = line.split("\t");
+        }
+
+        try {
+            if (!fields[0].equals("state")) {
+                throw new RuntimeException("Unable to read state number from state file");
+            }
+            state = Long.parseLong(fields[1]);
+        } catch (NumberFormatException nfe) {
+            throw new RuntimeException("Unable to read state number from state file");
+        }
+
+        line = in.readLine();
+        fields = line.split("\t");
+        try {
+            if (!fields[0].equals("lnL")) {
+                throw new RuntimeException("Unable to read lnL from state file");
+            }
+            if (lnL != null) {
+                lnL[0] = Double.parseDouble(fields[1]);
+            }
+        } catch (NumberFormatException nfe) {
+            throw new RuntimeException("Unable to read lnL from state file");
+        }
+
+        // a particle's weight is optional (it follows the lnL if present)
+        if (logWeight != null) {
+            logWeight[0] = 0.0;
+        }
+        in.mark(1024);
+        line = in.readLine();
+        if (line != null && line.startsWith(LOG_WEIGHT + "\t")) {
+            fields = line.split("\t");
             try {
-                if (!fields[0].equals("lnL")) {
-                    throw new RuntimeException("Unable to read lnL from state file");
-                }
-                if (lnL != null) {
-                    lnL[0] = Double.parseDouble(fields[1]);
+                if (logWeight != null) {
+                    logWeight[0] = Double.parseDouble(fields[1]);
                 }
             } catch (NumberFormatException nfe) {
-                throw new RuntimeException("Unable to read lnL from state file");
+                throw new RuntimeException("Unable to read the particle weight from state file");
             }
+        } else {
+            in.reset();
+        }
 
-            for (Parameter parameter : Parameter.CONNECTED_PARAMETER_SET) {
+        for (Parameter parameter : parameters) {
 
-                if (!parameter.isImmutable()) {
-                    line = in.readLine();
-                    fields = line.split("\t");
-                    //if (!fields[0].equals(parameter.getParameterName())) {
-                    //  System.err.println("Unable to match state parameter: " + fields[0] + ", expecting " + parameter.getParameterName());
-                    //}
-                    int dimension = Integer.parseInt(fields[2]);
-
-                    if (dimension != parameter.getDimension()) {
-                        System.err.println("Unable to match state parameter dimension: " + dimension + ", expecting " + parameter.getDimension() + " for parameter: " + parameter.getParameterName());
-                        System.err.print("Read from file: ");
-                        for (int i = 0; i < fields.length; i++) {
-                            System.err.print(fields[i] + "\t");
-                        }
-                        System.err.println();
+            if (!parameter.isImmutable()) {
+                line = in.readLine();
+                fields = line.split("\t");
+                //if (!fields[0].equals(parameter.getParameterName())) {
+                //  System.err.println("Unable to match state parameter: " + fields[0] + ", expecting " + parameter.getParameterName());
+                //}
+                int dimension = Integer.parseInt(fields[2]);
+
+                if (dimension != parameter.getDimension()) {
+                    System.err.println("Unable to match state parameter dimension: " + dimension + ", expecting " + parameter.getDimension() + " for parameter: " + parameter.getParameterName());
+                    System.err.print("Read from file: ");
+                    for (int i = 0; i < fields.length; i++) {
+                        System.err.print(fields[i] + "\t");
                     }
+                    System.err.println();
+                }
 
-                    if (fields[1].equals("branchRates.categories.rootNodeNumber")) {
-                        // System.out.println("eek");
-                        double value = Double.parseDouble(fields[3]);
-                        parameter.setParameterValue(0, value);
-                        if (DEBUG) {
-                            System.out.println("restoring " + fields[1] + " with value " + value);
-                        }
-                    } else {
-                        if (DEBUG) {
-                            System.out.print("restoring " + fields[1] + " with values ");
-                        }
-                        for (int dim = 0; dim < parameter.getDimension(); dim++) {
-                            try {
-                                parameter.setParameterUntransformedValue(dim, Double.parseDouble(fields[dim + 3]));
-                            } catch (RuntimeException rte) {
-                                System.err.println(rte);
-                                continue;
-                            }
-                            if (DEBUG) {
-                                System.out.print(Double.parseDouble(fields[dim + 3]) + " ");
-                            }
+                if (fields[1].equals("branchRates.categories.rootNodeNumber")) {
+                    // System.out.println("eek");
+                    double value = Double.parseDouble(fields[3]);
+                    parameter.setParameterValue(0, value);
+                    if (DEBUG) {
+                        System.out.println("restoring " + fields[1] + " with value " + value);
+                    }
+                } else {
+                    if (DEBUG) {
+                        System.out.print("restoring " + fields[1] + " with values ");
+                    }
+                    for (int dim = 0; dim < parameter.getDimension(); dim++) {
+                        try {
+                            parameter.setParameterUntransformedValue(dim, Double.parseDouble(fields[dim + 3]));
+                        } catch (RuntimeException rte) {
+                            System.err.println(rte);
+                            continue;
                         }
                         if (DEBUG) {
-                            System.out.println();
+                            System.out.print(Double.parseDouble(fields[dim + 3]) + " ");
                         }
                     }
+                    if (DEBUG) {
+                        System.out.println();
+                    }
                 }
             }
+        }
 
-            for (int i = 0; i < operatorSchedule.getOperatorCount(); i++) {
-                //TODO we can no longer assume these are in the right order
-                //TODO best parse all the "operator" lines and store them so we can mix and match within this for loop
-                //TODO does not only apply to the operators but also to the parameters
-                //TODO test using additional tip-date sampling compared to previous run
-                MCMCOperator operator = operatorSchedule.getOperator(i);
-                line = in.readLine();
-                fields = line.split("\t");
-                if (!fields[1].equals(operator.getOperatorName())) {
-                    throw new RuntimeException("Unable to match " + operator.getOperatorName() + " operator: " + fields[1]);
-                }
-                if (fields.length < 4) {
-                    throw new RuntimeException("Operator missing values: " + fields[1]);
-                }
-                operator.setAcceptCount(Integer.parseInt(fields[2]));
-                operator.setRejectCount(Integer.parseInt(fields[3]));
-                if (operator instanceof AdaptableMCMCOperator) {
-                    if (fields.length != 6) {
-                        throw new RuntimeException("Coercable operator missing parameter: " + fields[1]);
-                    }
-                    ((AdaptableMCMCOperator)operator).setAdaptableParameter(Double.parseDouble(fields[4]));
-                    ((AdaptableMCMCOperator)operator).setAdaptationCount(Long.parseLong(fields[5]));
+        for (int i = 0; i < operatorSchedule.getOperatorCount(); i++) {
+            //TODO we can no longer assume these are in the right order
+            //TODO best parse all the "operator" lines and store them so we can mix and match within this for loop
+            //TODO does not only apply to the operators but also to the parameters
+            //TODO test using additional tip-date sampling compared to previous run
+            MCMCOperator operator = operatorSchedule.getOperator(i);
+            line = in.readLine();
+            fields = line.split("\t");
+            if (!fields[1].equals(operator.getOperatorName())) {
+                throw new RuntimeException("Unable to match " + operator.getOperatorName() + " operator: " + fields[1]);
+            }
+            if (fields.length < 4) {
+                throw new RuntimeException("Operator missing values: " + fields[1]);
+            }
+            operator.setAcceptCount(Integer.parseInt(fields[2]));
+            operator.setRejectCount(Integer.parseInt(fields[3]));
+            if (operator instanceof AdaptableMCMCOperator) {
+                if (fields.length != 6) {
+                    throw new RuntimeException("Coercable operator missing parameter: " + fields[1]);
                 }
+                ((AdaptableMCMCOperator)operator).setAdaptableParameter(Double.parseDouble(fields[4]));
+                ((AdaptableMCMCOperator)operator).setAdaptationCount(Long.parseLong(fields[5]));
             }
+        }
 
-            // load the tree models last as we get the node heights from the tree (not the parameters which
-            // which may not be associated with the right node
-            Set<String> expectedTreeModelNames = new HashSet<String>();
+        if (operatorSchedule instanceof AdaptiveOperatorSchedule) {
+            line = in.readLine();
+            fields = line.split("\t");
+            if (!fields[0].equals("adaptiveOperators") || fields.length != operatorSchedule.getOperatorCount() + 2) {
+                throw new RuntimeException("Unable to find the adapted operator weights");
+            }
+            double[] weights = new double[operatorSchedule.getOperatorCount()];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = Double.parseDouble(fields[i + 2]);
+            }
+            ((AdaptiveOperatorSchedule) operatorSchedule).setAdaptedWeights(Long.parseLong(fields[1]), weights);
+        }
 
-            //store list of TreeModels for debugging purposes
-            ArrayList<TreeModel> treeModelList = new ArrayList<TreeModel>();
+        // load the tree models last as we get the node heights from the tree (not the parameters which
+        // which may not be associated with the right node
+        Set<String> expectedTreeModelNames = new HashSet<String>();
 
-            for (Model model : Model.CONNECTED_MODEL_SET) {
+        //store list of TreeModels for debugging purposes
+        ArrayList<TreeModel> treeModelList = new ArrayList<TreeModel>();
 
-                if (model instanceof TreeModel) {
-                    if (DEBUG) {
-                        System.out.println("model " + model.getModelName());
-                    }
-                    treeModelList.add((TreeModel)model);
-                    expectedTreeModelNames.add(model.getModelName());
-                    if (DEBUG) {
-                        System.out.println("\nexpectedTreeModelNames:");
-                        for (String s : expectedTreeModelNames) {
-                            System.out.println(s);
-                        }
-                        System.out.println();
-                    }
-                }
+        for (Model model : models) {
 
-                //first add all TreeParameterModels to a list
-                if (model instanceof TreeParameterModel) {
-                    traitModels.add((TreeParameterModel)model);
+            if (model instanceof TreeModel) {
+                if (DEBUG) {
+                    System.out.println("model " + model.getModelName());
                 }
+                treeModelList.add((TreeModel)model);
+                expectedTreeModelNames.add(model.getModelName());
+                if (DEBUG) {
+                    System.out.println("\nexpectedTreeModelNames:");
+                    for (String s : expectedTreeModelNames) {
+                        System.out.println(s);
+                    }
+                    System.out.println();
+                }
+            }
 
+            //first add all TreeParameterModels to a list
+            if (model instanceof TreeParameterModel) {
+                traitModels.add((TreeParameterModel)model);
             }
 
-            //explicitly link TreeModel (using its unique ID) to a list of TreeParameterModels
-            //this information is currently not yet used
-            HashMap<String, ArrayList<TreeParameterModel>> linkedModels = new HashMap<String, ArrayList<TreeParameterModel>>();
-            for (String name : expectedTreeModelNames) {
-                ArrayList<TreeParameterModel> tpmList = new ArrayList<TreeParameterModel>();
-                for (TreeParameterModel tpm : traitModels) {
-                    if (tpm.getTreeModel().getId().equals(name)) {
-                        tpmList.add(tpm);
-                        if (DEBUG) {
-                            System.out.println("TreeModel: " + name + " has been assigned TreeParameterModel: " + tpm.toString());
-                        }
+        }
+
+        //explicitly link TreeModel (using its unique ID) to a list of TreeParameterModels
+        //this information is currently not yet used
+        HashMap<String, ArrayList<TreeParameterModel>> linkedModels = new HashMap<String, ArrayList<TreeParameterModel>>();
+        for (String name : expectedTreeModelNames) {
+            ArrayList<TreeParameterModel> tpmList = new ArrayList<TreeParameterModel>();
+            for (TreeParameterModel tpm : traitModels) {
+                if (tpm.getTreeModel().getId().equals(name)) {
+                    tpmList.add(tpm);
+                    if (DEBUG) {
+                        System.out.println("TreeModel: " + name + " has been assigned TreeParameterModel: " + tpm.toString());
                     }
                 }
-                linkedModels.put(name, tpmList);
             }
+            linkedModels.put(name, tpmList);
+        }
 
-            line = in.readLine();
+        line = in.readLine();
+        if (line != null) {
             fields = line.split("\t");
-            // Read in all (possibly more than one) trees
-            while (fields[0].equals("tree")) {
-
-                if (DEBUG) {
-                    System.out.println("\ntree: " + fields[1]);
-                }
+        }
+        // Read in all (possibly more than one) trees (there may be none)
+        while (line != null && fields[0].equals("tree")) {
 
-                for (Model model : Model.CONNECTED_MODEL_SET) {
-                    if (model instanceof TreeModel && fields[1].equals(model.getModelName())) {
-                        line = in.readLine();
-                        line = in.readLine();
-                        fields = line.split("\t");
-                        //read number of nodes
-                        int nodeCount = Integer.parseInt(fields[0]);
-                        double[] nodeHeights = new double[nodeCount];
-                        String[] taxaNames = new String[(nodeCount+1)/2];
+            if (DEBUG) {
+                System.out.println("\ntree: " + fields[1]);
+            }
 
-                        for (int i = 0; i < nodeCount; i++) {
-                            line = in.readLine();
-                            fields = line.split("\t");
-                            nodeHeights[i] = Double.parseDouble(fields[1]);
-                            if (i < taxaNames.length) {
-                                taxaNames[i] = fields[2];
-                            }
-                        }
+            for (Model model : models) {
+                if (model instanceof TreeModel && fields[1].equals(model.getModelName())) {
+                    line = in.readLine();
+                    line = in.readLine();
+                    fields = line.split("\t");
+                    //read number of nodes
+                    int nodeCount = Integer.parseInt(fields[0]);
+                    double[] nodeHeights = new double[nodeCount];
+                    String[] taxaNames = new String[(nodeCount+1)/2];
 
-                        //on to reading edge information
-                        line = in.readLine();
-                        line = in.readLine();
+                    for (int i = 0; i < nodeCount; i++) {
                         line = in.readLine();
                         fields = line.split("\t");
-
-                        int edgeCount = Integer.parseInt(fields[0]);
-                        if (DEBUG) {
-                            System.out.println("edge count = " + edgeCount);
+                        nodeHeights[i] = Double.parseDouble(fields[1]);
+                        if (i < taxaNames.length) {
+                            taxaNames[i] = fields[2];
                         }
+                    }
 
-                        //create data matrix of doubles to store information from list of TreeParameterModels
-                        //size of matrix depends on the number of TreeParameterModels assigned to a TreeModel
-                        double[][] traitValues = new double[linkedModels.get(model.getId()).size()][edgeCount];
+                    //on to reading edge information
+                    line = in.readLine();
+                    line = in.readLine();
+                    line = in.readLine();
+                    fields = line.split("\t");
 
-                        //create array to store whether a node is left or right child of its parent
-                        //can be important for certain tree transition kernels
-                        int[] childOrder = new int[edgeCount];
-                        for (int i = 0; i < childOrder.length; i++) {
-                            childOrder[i] = -1;
-                        }
+                    int edgeCount = Integer.parseInt(fields[0]);
+                    if (DEBUG) {
+                        System.out.println("edge count = " + edgeCount);
+                    }
 
-                        int[] parents = new int[edgeCount];
-                        for (int i = 0; i < edgeCount; i++){
-                            parents[i] = -1;
-                        }
-                        for (int i = 0; i < edgeCount-1; i++) {
-                            line = in.readLine();
-                            if (line != null) {
-                                if (DEBUG) {
-                                    System.out.println("DEBUG: " + line);
-                                }
-                                fields = line.split("\t");
-                                parents[Integer.parseInt(fields[0])] = Integer.parseInt(fields[1]);
-                                // childOrder[i] = Integer.parseInt(fields[2]);
-                                childOrder[Integer.parseInt(fields[0])] = Integer.parseInt(fields[2]);
-                                for (int j = 0; j < linkedModels.get(model.getId()).size(); j++) {
-                                    //   traitValues[j][i] = Double.parseDouble(fields[3+j]);
-                                    traitValues[j][Integer.parseInt(fields[0])] = Double.parseDouble(fields[3+j]);
-                                }
-                            }
-                        }
+                    //create data matrix of doubles to store information from list of TreeParameterModels
+                    //size of matrix depends on the number of TreeParameterModels assigned to a TreeModel
+                    double[][] traitValues = new double[linkedModels.get(model.getId()).size()][edgeCount];
 
-                        //perform magic with the acquired information
-                        if (DEBUG) {
-                            System.out.println("adopting tree structure");
-                        }
+                    //create array to store whether a node is left or right child of its parent
+                    //can be important for certain tree transition kernels
+                    int[] childOrder = new int[edgeCount];
+                    for (int i = 0; i < childOrder.length; i++) {
+                        childOrder[i] = -1;
+                    }
 
-                        //adopt the loaded tree structure;
-                        ((TreeModel) model).beginTreeEdit();
-                        ((TreeModel) model).adoptTreeStructure(parents, nodeHeights, childOrder, taxaNames);
-                        if (traitModels.size() > 0) {
-                            System.out.println("adopting " + traitModels.size() + " trait models to treeModel " + ((TreeModel)model).getId());
-                            ((TreeModel) model).adoptTraitData(parents, traitModels, traitValues, taxaNames);
+                    int[] parents = new int[edgeCount];
+                    for (int i = 0; i < edgeCount; i++){
+                        parents[i] = -1;
+                    }
+                    for (int i = 0; i < edgeCount-1; i++) {
+                        line = in.readLine();
+                        if (line != null) {
+                            if (DEBUG) {
+                                System.out.println("DEBUG: " + line);
+                            }
+                            fields = line.split("\t");
+                            parents[Integer.parseInt(fields[0])] = Integer.parseInt(fields[1]);
+                            // childOrder[i] = Integer.parseInt(fields[2]);
+                            childOrder[Integer.parseInt(fields[0])] = Integer.parseInt(fields[2]);
+                            for (int j = 0; j < linkedModels.get(model.getId()).size(); j++) {
+                                //   traitValues[j][i] = Double.parseDouble(fields[3+j]);
+                                traitValues[j][Integer.parseInt(fields[0])] = Double.parseDouble(fields[3+j]);
+                            }
                         }
-                        ((TreeModel) model).endTreeEdit();
+                    }
 
-                        expectedTreeModelNames.remove(model.getModelName());
+                    //perform magic with the acquired information
+                    if (DEBUG) {
+                        System.out.println("adopting tree structure");
+                    }
 
+                    //adopt the loaded tree structure;
+                    ((TreeModel) model).beginTreeEdit();
+                    ((TreeModel) model).adoptTreeStructure(parents, nodeHeights, childOrder, taxaNames);
+                    if (traitModels.size() > 0) {
+                        System.out.println("adopting " + traitModels.size() + " trait models to treeModel " + ((TreeModel)model).getId());
+                        ((TreeModel) model).adoptTraitData(parents, traitModels, traitValues, taxaNames);
                     }
+                    ((TreeModel) model).endTreeEdit();
 
-                }
+                    expectedTreeModelNames.remove(model.getModelName());
 
-                line = in.readLine();
-                if (line != null) {
-                    fields = line.split("\t");
                 }
 
             }
 
-            if (expectedTreeModelNames.size() > 0) {
-                StringBuilder sb = new StringBuilder();
-                for (String notFoundName : expectedTreeModelNames) {
-                    sb.append("Expecting, but unable to match state parameter:" + notFoundName + "\n");
-                }
-                throw new RuntimeException("\n" + sb.toString());
+            line = in.readLine();
+            if (line != null) {
+                fields = line.split("\t");
             }
 
-            if (DEBUG) {
-                System.out.println("\nDouble checking:");
-                for (Parameter parameter : Parameter.CONNECTED_PARAMETER_SET) {
-                    if (parameter.getParameterName().equals("branchRates.categories.rootNodeNumber")) {
-                        System.out.println(parameter.getParameterName() + ": " + parameter.getParameterValue(0));
-                    }
-                }
-                System.out.println("\nPrinting trees:");
-                for (TreeModel tm : treeModelList) {
-                    System.out.println(tm.getId() + ": ");
-                    System.out.println(tm.getNewick());
+        }
+
+        if (expectedTreeModelNames.size() > 0) {
+            StringBuilder sb = new StringBuilder();
+            for (String notFoundName : expectedTreeModelNames) {
+                sb.append("Expecting, but unable to match state parameter:" + notFoundName + "\n");
+            }
+            throw new RuntimeException("\n" + sb.toString());
+        }
+
+        if (DEBUG) {
+            System.out.println("\nDouble checking:");
+            for (Parameter parameter : parameters) {
+                if (parameter.getParameterName().equals("branchRates.categories.rootNodeNumber")) {
+                    System.out.println(parameter.getParameterName() + ": " + parameter.getParameterValue(0));
                 }
             }
+            System.out.println("\nPrinting trees:");
+            for (TreeModel tm : treeModelList) {
+                System.out.println(tm.getId() + ": ");
+                System.out.println(tm.getNewick());
+            }
+        }
 
+        if (restoreRandomState) {
             if (System.getProperty(BeastCheckpointer.CHECKPOINT_SEED) != null) {
                 MathUtils.setSeed(Long.parseLong(System.getProperty(BeastCheckpointer.CHECKPOINT_SEED)));
             } else if (rngState != null) {
                 MathUtils.setRandomState(rngState);
             }
-
-            in.close();
-            fileIn.close();
-
-            //This shouldn't be necessary and if it is then it might be hiding a bug...
-            /*for (Likelihood likelihood : Likelihood.CONNECTED_LIKELIHOOD_SET) {
-                likelihood.makeDirty();
-            }*/
-
-        } catch (IOException ioe) {
-            throw new RuntimeException("Unable to read file: " + ioe.getMessage());
         }
 
         return state;
@@ -16,6 +16,7 @@ import java.util.function.Consumer;
 class BaseTreeTool {
 
     static final String NAME_CONTENT = "nameContent";
+    static final String THREADS = "threads";
 
     // Messages to stderr, output to stdout
     static PrintStream progressStream = System.err;
@@ -101,6 +102,31 @@ class BaseTreeTool {
 
     }
 
+    /**
+     * Reads the trees one at a time, sharing the calls to function between threadCount threads,
+     * and gives the results to handler in the order of the trees in the file.
+     */
+    <R> void mapTrees(String inputFileName, int burnIn, int threadCount,
+                      TreeProcessingPipeline.TreeFunction<R> function, Consumer<R> handler) throws IOException {
+
+        TreeProgressPrinter progressPrinter = new TreeProgressPrinter(progressStream);
+        progressPrinter.printReadingTrees();
+
+        TreeProcessingPipeline pipeline = new TreeProcessingPipeline(Math.max(burnIn, 0), 0, 1, threadCount);
+        pipeline.setProgressStream(progressStream);
+        try {
+            pipeline.map(inputFileName, function, handler);
+        } catch (Importer.ImportException e) {
+            System.err.println("Error Parsing Input Tree: " + e.getMessage());
+            return;
+        }
+
+        totalTrees = pipeline.getTotalTrees();
+        totalUsedTrees = pipeline.getTotalTreesUsed();
+
+        progressPrinter.printSummary(totalTrees, totalUsedTrees, burnIn);
+    }
+
     protected PrintStream openOutputFile(String outputFileName) {
         PrintStream ps = null;
 
@@ -34,6 +34,9 @@ import dr.evolution.tree.MutableTree;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 import dr.evolution.util.Taxon;
+import dr.util.BackgroundWriter;
+import dr.util.FileHelpers;
+import dr.util.PrefetchReader;
 import dr.util.Version;
 import jam.console.ConsoleApplication;
 
@@ -41,10 +44,15 @@ import javax.swing.*;
 import java.io.*;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -60,6 +68,17 @@ public class LogCombiner {
     public LogCombiner(long[] burnins, long resample, String[] inputFileNames, String outputFileName, boolean treeFiles,
                        boolean convertToDecimal, boolean stripAnnotations,
                        boolean renumberOutput, boolean useScale, double scale) throws IOException {
+        this(burnins, resample, inputFileNames, outputFileName, treeFiles, convertToDecimal, stripAnnotations,
+                renumberOutput, useScale, scale, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Input files (which may be gzipped) are decompressed and read ahead on up to 'threadCount'
+     * threads and the output (gzipped if the file name ends with '.gz') is written on another thread.
+     */
+    public LogCombiner(long[] burnins, long resample, String[] inputFileNames, String outputFileName, boolean treeFiles,
+                       boolean convertToDecimal, boolean stripAnnotations,
+                       boolean renumberOutput, boolean useScale, double scale, int threadCount) throws IOException {
 
         System.out.println("Creating combined " + (treeFiles ? "tree" : "log") + " file: '" + outputFileName + "'");
 
@@ -81,151 +100,151 @@ public class LogCombiner {
 
         System.out.println();
 
-        PrintWriter writer = new PrintWriter(new FileOutputStream(outputFileName));
-
-        boolean firstFile = true;
-        boolean firstTree = true;
-        long stateCount = (renumberOutput ? -1 : 0);
-        long stateStep = -1;
-        int columnCount = 0;
-
-        String[] titles = null;
+        PrintWriter writer = new PrintWriter(new BackgroundWriter(FileHelpers.getOutputWriter(new File(outputFileName))));
 
-        System.out.println();
-        for (int i = 0; i < inputFileNames.length; i++) {
-            File inputFile = new File(inputFileNames[i]);
-
-            if (!inputFile.exists()) {
-                System.err.println(inputFileNames[i] + " does not exist!");
-                return;
-            } else if (inputFile.isDirectory()) {
-                System.err.println(inputFileNames[i] + " is a directory.");
-                return;
+        // start reading the input files in order so the one being combined is always being decoded
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threadCount, inputFileNames.length)),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "LogCombiner reader");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        Reader[] readers = new Reader[inputFileNames.length];
+        try {
+            for (int i = 0; i < inputFileNames.length; i++) {
+                File inputFile = new File(inputFileNames[i]);
+                if (inputFile.isFile()) {
+                    readers[i] = new PrefetchReader(FileHelpers.getInputReader(inputFile), executor);
+                }
             }
+            executor.shutdown();
+
+            boolean firstFile = true;
+            boolean firstTree = true;
+            long stateCount = (renumberOutput ? -1 : 0);
+            long stateStep = -1;
+            int columnCount = 0;
+
+            String[] titles = null;
+
+            System.out.println();
+            for (int i = 0; i < inputFileNames.length; i++) {
+                File inputFile = new File(inputFileNames[i]);
+
+                if (!inputFile.exists()) {
+                    System.err.println(inputFileNames[i] + " does not exist!");
+                    return;
+                } else if (inputFile.isDirectory()) {
+                    System.err.println(inputFileNames[i] + " is a directory.");
+                    return;
+                }
 
-            long burnin = burnins[0];
-            if (burnins.length > i) {
-                burnin = burnins[i];
-            }
+                long burnin = burnins[0];
+                if (burnins.length > i) {
+                    burnin = burnins[i];
+                }
 
-            if (burnin > 0) {
-                System.out.print("Combining file: '" + inputFileNames[i] + "' removing burnin: " + burnin);
-            } else {
-                System.out.print("Combining file: '" + inputFileNames[i] + "' without removing burnin");
-            }
+                if (burnin > 0) {
+                    System.out.print("Combining file: '" + inputFileNames[i] + "' removing burnin: " + burnin);
+                } else {
+                    System.out.print("Combining file: '" + inputFileNames[i] + "' without removing burnin");
+                }
 
-            if (resample > 0) {
-                System.out.print(", resampling with frequency: " + resample);
-            }
+                if (resample > 0) {
+                    System.out.print(", resampling with frequency: " + resample);
+                }
 
-            if (useScale) {
-                System.out.println(", rescaling by: " + scale);
-            } else {
-                System.out.println();
-            }
+                if (useScale) {
+                    System.out.println(", rescaling by: " + scale);
+                } else {
+                    System.out.println();
+                }
 
-            boolean processTrees = stripAnnotations || convertToDecimal;
+                // annotations alone can be stripped from the tree lines without parsing the trees
+                boolean processTrees = convertToDecimal;
 
-            if (treeFiles) {
+                if (treeFiles) {
 
-                if (processTrees) { // then we need to read each tree and write it.
-                    TreeImporter importer = new NexusImporter(new FileReader(inputFile), stripAnnotations);
-                    try {
-                        while (importer.hasTree()) {
-                            Tree tree = importer.importNextTree();
-                            if (firstTree) {
-                                startLog(tree, writer);
-                                firstTree = false;
-                            }
+                    Reader input = readers[i];
+                    BufferedReader reader = null;
+                    String line = null;
 
-                            String name = tree.getId();
-                            if (name == null) {
-                                System.err.println("ERROR: Trees do not give state numbers as tree attributes.");
-                                return;
-                            }
+                    if (!processTrees) {
+                        reader = new BufferedReader(input);
 
-                            // split on underscore in STATE_xxxx
-                            String[] bits = name.split("_");
-                            long state = Long.parseLong(bits[1]);
+                        // read the header (up to the first tree) as the trees can only be copied if the
+                        // taxa have the same numbers as in the first file
+                        List<String> header = new ArrayList<String>();
+                        line = reader.readLine();
+                        while (line != null && !line.trim().startsWith("tree ")) {
+                            header.add(line);
+                            line = reader.readLine();
+                        }
+                        Map<String, String> translateTable = getTranslateTable(header);
 
-                            if (stateStep < 0 && state > 0) {
-                                stateStep = state;
+                        if (firstFile) {
+                            for (String headerLine : header) {
+                                writer.println(headerLine);
                             }
-
-                            if (state >= burnin) {
-                                if (stateStep > 0) {
-                                    if (!renumberOutput) {
-                                        stateCount += stateStep;
-                                    } else {
-                                        stateCount += 1;
-                                    }
-                                }
-
-                                if (resample >= 0) {
-                                    if (resample % stateStep != 0) {
-                                        System.err.println("ERROR: Resampling frequency is not a multiple of existing sampling frequency");
-                                        return;
+                            firstTranslateTable = translateTable;
+                            if (translateTable != null) {
+                                // the numbers for writing the trees of any file that has to be parsed
+                                for (Map.Entry<String, String> entry : translateTable.entrySet()) {
+                                    if (entry.getKey().matches("\\d+")) {
+                                        taxonMap.put(entry.getValue(), Integer.valueOf(entry.getKey()));
                                     }
                                 }
-
-                                boolean logThis;
-                                if (resample < 0) {
-                                    // not resampling, log every state
-                                    logThis = true;
-                                } else if (!renumberOutput) {
-                                    // resampling but not renumbering
-                                    logThis = (stateCount % resample == 0);
-                                } else {
-                                    logThis = (stateCount * stateStep % resample == 0);
-                                }
-
-                                long stateLineEntry;
-                                if (!renumberOutput) {
-                                    stateLineEntry = stateCount;
-                                } else {
-                                    stateLineEntry = stateCount / (resample / stateStep);
-                                }
-
-                                if (logThis) {
-                                    writeTree(stateLineEntry, tree, convertToDecimal, writer);
-                                }
-
                             }
-                        }
-                    } catch (Importer.ImportException e) {
-                        System.err.println("Error Parsing Input Tree: " + e.getMessage());
-                        return;
-                    }
-                } else {
-                    BufferedReader reader = new BufferedReader(new FileReader(inputFile));
-
-                    String line = reader.readLine();
+                            firstTree = false;
+                        } else if (translateTable == null ? firstTranslateTable != null : !translateTable.equals(firstTranslateTable)) {
+                            if (firstTranslateTable == null) {
+                                System.err.println("ERROR: The file, " + inputFileNames[i] + ", has a translate table but the first file does not");
+                                return;
+                            }
+                            System.out.println("The translate table of file, " + inputFileNames[i] + ", differs from that of the first file so its trees will be parsed");
 
-                    // skip (or write) the headers
-                    while (line != null && !line.trim().startsWith("tree ")) {
-                        if (firstFile) {
-                            writer.println(line);
+                            // put back what has been read for the tree importer
+                            StringBuilder text = new StringBuilder();
+                            for (String headerLine : header) {
+                                text.append(headerLine).append("\n");
+                            }
+                            if (line != null) {
+                                text.append(line).append("\n");
+                            }
+                            PushbackReader pushbackReader = new PushbackReader(reader, Math.max(1, text.length()));
+                            pushbackReader.unread(text.toString().toCharArray());
+                            input = pushbackReader;
+                            processTrees = true;
                         }
-                        line = reader.readLine();
                     }
 
-                    Pattern pattern = Pattern.compile("tree STATE_(\\d+)(\\s.*)");
-
-                    while (line != null) {
-                        Matcher m = pattern.matcher(line);
-                        if (m.matches()) {
+                    if (processTrees) { // then we need to read each tree and write it.
+                        TreeImporter importer = new NexusImporter(input, stripAnnotations);
+                        try {
+                            while (importer.hasTree()) {
+                                Tree tree = importer.importNextTree();
+                                if (firstTree) {
+                                    startLog(tree, writer);
+                                    firstTree = false;
+                                }
 
-                            long state = Long.parseLong(m.group(1));
+                                String name = tree.getId();
+                                if (name == null) {
+                                    System.err.println("ERROR: Trees do not give state numbers as tree attributes.");
+                                    return;
+                                }
 
-                            String treeString = m.group(2);
+                                // split on underscore in STATE_xxxx
+                                String[] bits = name.split("_");
+                                long state = Long.parseLong(bits[1]);
 
-                            boolean skip = false;
-                            if (!skip) {
                                 if (stateStep < 0 && state > 0) {
                                     stateStep = state;
                                 }
 
-                                // if the columnCount is not the same then perhaps the line is corrupt so skip it.
                                 if (state >= burnin) {
                                     if (stateStep > 0) {
                                         if (!renumberOutput) {
@@ -244,181 +263,289 @@ public class LogCombiner {
 
                                     boolean logThis;
                                     if (resample < 0) {
+                                        // not resampling, log every state
                                         logThis = true;
                                     } else if (!renumberOutput) {
+                                        // resampling but not renumbering
                                         logThis = (stateCount % resample == 0);
                                     } else {
-                                        logThis = ((stateCount * stateStep) % resample == 0);
+                                        logThis = (stateCount * stateStep % resample == 0);
                                     }
 
                                     long stateLineEntry;
                                     if (!renumberOutput) {
                                         stateLineEntry = stateCount;
                                     } else {
-
-//                                	System.out.println("stateCount: " + stateCount);
-//                                	System.out.println("resample: " + resample);
-//                                	System.out.println("stateStep: " + stateStep);
-//                                	System.out.println("resample / stateStep: " + (resample / stateStep));
-
                                         stateLineEntry = stateCount / (resample / stateStep);
                                     }
 
                                     if (logThis) {
-                                        writer.print("tree STATE_");
-                                        writer.print(stateLineEntry);
-                                        writer.println(treeString);
+                                        writeTree(stateLineEntry, tree, convertToDecimal, writer);
                                     }
+
                                 }
                             }
+                        } catch (Importer.ImportException e) {
+                            System.err.println("Error Parsing Input Tree: " + e.getMessage());
+                            return;
                         }
-                        line = reader.readLine();
-                        //lineCount++;
-                    }
-                }
+                    } else {
+                        Pattern pattern = Pattern.compile("tree STATE_(\\d+)(\\s.*)");
 
-                firstFile = false;
+                        while (line != null) {
+                            Matcher m = pattern.matcher(line);
+                            if (m.matches()) {
 
+                                long state = Long.parseLong(m.group(1));
 
-            } else {
-                BufferedReader reader = new BufferedReader(new FileReader(inputFile));
-                //int lineCount = 1;
-                String line = reader.readLine();
+                                String treeString = m.group(2);
 
-                // lines starting with [ are ignored, assuming comments in MrBayes file
-                // lines starting with # are ignored, assuming comments in Migrate or BEAST file
-                while (line.startsWith("[") || line.startsWith("#")) {
+                                boolean skip = false;
+                                if (!skip) {
+                                    if (stateStep < 0 && state > 0) {
+                                        stateStep = state;
+                                    }
 
-                    line = reader.readLine();
-                }
+                                    // if the columnCount is not the same then perhaps the line is corrupt so skip it.
+                                    if (state >= burnin) {
+                                        if (stateStep > 0) {
+                                            if (!renumberOutput) {
+                                                stateCount += stateStep;
+                                            } else {
+                                                stateCount += 1;
+                                            }
+                                        }
 
+                                        if (resample >= 0) {
+                                            if (resample % stateStep != 0) {
+                                                System.err.println("ERROR: Resampling frequency is not a multiple of existing sampling frequency");
+                                                return;
+                                            }
+                                        }
 
-                if (firstFile) {
-                    titles = line.split("\t");
-                    writer.println(line);
-                } else {
-                    String[] newTitles = line.split("\t");
-                    if (newTitles.length != titles.length) {
-                        System.err.println("ERROR: The number of columns in file, " + inputFileNames[i] + ", does not match that of the first file");
-                        return;
-                    }
-                    for (int k = 0; k < newTitles.length; k++) {
-                        if (!newTitles[k].equals(titles[k])) {
-                            System.err.println("WARNING: The column heading, " + newTitles[k] + " in file, " + inputFileNames[i] + ", does not match the first file's heading, " + titles[k]);
+                                        boolean logThis;
+                                        if (resample < 0) {
+                                            logThis = true;
+                                        } else if (!renumberOutput) {
+                                            logThis = (stateCount % resample == 0);
+                                        } else {
+                                            logThis = ((stateCount * stateStep) % resample == 0);
+                                        }
+
+                                        long stateLineEntry;
+                                        if (!renumberOutput) {
+                                            stateLineEntry = stateCount;
+                                        } else {
+
+    //                                	System.out.println("stateCount: " + stateCount);
+    //                                	System.out.println("resample: " + resample);
+    //                                	System.out.println("stateStep: " + stateStep);
+    //                                	System.out.println("resample / stateStep: " + (resample / stateStep));
+
+                                            stateLineEntry = stateCount / (resample / stateStep);
+                                        }
+
+                                        if (logThis) {
+                                            writer.print("tree STATE_");
+                                            writer.print(stateLineEntry);
+                                            writer.println(stripAnnotations ? stripComments(treeString) : treeString);
+                                        }
+                                    }
+                                }
+                            }
+                            line = reader.readLine();
+                            //lineCount++;
                         }
                     }
-                }
-                line = reader.readLine();
-                //lineCount++;
 
-                while (line != null) {
-                    String[] parts = line.split("\t");
+                    firstFile = false;
+
+
+                } else {
+                    BufferedReader reader = new BufferedReader(readers[i]);
+                    //int lineCount = 1;
+                    String line = reader.readLine();
 
-                    long state = -1;
+                    // lines starting with [ are ignored, assuming comments in MrBayes file
+                    // lines starting with # are ignored, assuming comments in Migrate or BEAST file
+                    while (line.startsWith("[") || line.startsWith("#")) {
 
-                    boolean skip = false;
-                    try {
-                        state = Long.parseLong(parts[0]);
-                    } catch (NumberFormatException nfe) {
-                        skip = true;
+                        line = reader.readLine();
                     }
 
-                    if (!skip) {
-                        if (stateStep < 0 && state > 0) {
-                            stateStep = state;
-                            columnCount = parts.length;
+
+                    if (firstFile) {
+                        titles = line.split("\t");
+                        writer.println(line);
+                    } else {
+                        String[] newTitles = line.split("\t");
+                        if (newTitles.length != titles.length) {
+                            System.err.println("ERROR: The number of columns in file, " + inputFileNames[i] + ", does not match that of the first file");
+                            return;
                         }
+                        for (int k = 0; k < newTitles.length; k++) {
+                            if (!newTitles[k].equals(titles[k])) {
+                                System.err.println("WARNING: The column heading, " + newTitles[k] + " in file, " + inputFileNames[i] + ", does not match the first file's heading, " + titles[k]);
+                            }
+                        }
+                    }
+                    line = reader.readLine();
+                    //lineCount++;
+
+                    while (line != null) {
+                        String[] parts = line.split("\t");
 
-                        // if the columnCount is not the same then perhaps the line is corrupt so skip it.
-                        if (state >= burnin && parts.length == columnCount) {
-                            for (int j = 1; j < parts.length; j++) {
-                                try {
-                                    if (!parts[j].startsWith("{")) {
-                                        // complex log values start with a curly bracket - otherwise attempt to parse
-                                        // it as a number. If it fails, skip the line as a possible corruption.
+                        long state = -1;
 
-                                        // attempt to convert the column value...
-                                        double value = Double.valueOf(parts[j]);
-                                    }
-                                } catch (NumberFormatException nfe) {
-                                    skip = true;
-                                    break;
-                                }
+                        boolean skip = false;
+                        try {
+                            state = Long.parseLong(parts[0]);
+                        } catch (NumberFormatException nfe) {
+                            skip = true;
+                        }
+
+                        if (!skip) {
+                            if (stateStep < 0 && state > 0) {
+                                stateStep = state;
+                                columnCount = parts.length;
                             }
 
-                            if (!skip) {
+                            // if the columnCount is not the same then perhaps the line is corrupt so skip it.
+                            if (state >= burnin && parts.length == columnCount) {
+                                for (int j = 1; j < parts.length; j++) {
+                                    try {
+                                        if (!parts[j].startsWith("{")) {
+                                            // complex log values start with a curly bracket - otherwise attempt to parse
+                                            // it as a number. If it fails, skip the line as a possible corruption.
 
-                                if (stateStep > 0) {
-                                    if (!renumberOutput) {
-                                        stateCount += stateStep;
-                                    } else {
-                                        stateCount += 1;
+                                            // attempt to convert the column value...
+                                            double value = Double.valueOf(parts[j]);
+                                        }
+                                    } catch (NumberFormatException nfe) {
+                                        skip = true;
+                                        break;
                                     }
                                 }
 
-                                if (resample >= 0) {
-                                    if (resample % stateStep != 0) {
-                                        System.err.println("ERROR: Resampling frequency is not a multiple of existing sampling frequency");
-                                        return;
+                                if (!skip) {
+
+                                    if (stateStep > 0) {
+                                        if (!renumberOutput) {
+                                            stateCount += stateStep;
+                                        } else {
+                                            stateCount += 1;
+                                        }
                                     }
-                                }
 
-                                boolean logThis;
-                                if (resample < 0) {
-                                    logThis = true;
-                                } else if (!renumberOutput){
-                                    logThis = (stateCount % resample == 0);
-                                } else {
-                                    logThis = ((stateCount * stateStep) % resample == 0);
-                                }
+                                    if (resample >= 0) {
+                                        if (resample % stateStep != 0) {
+                                            System.err.println("ERROR: Resampling frequency is not a multiple of existing sampling frequency");
+                                            return;
+                                        }
+                                    }
 
-                                long stateLineEntry;
-                                if (!renumberOutput){
-                                    stateLineEntry = stateCount;
-                                } else {
+                                    boolean logThis;
+                                    if (resample < 0) {
+                                        logThis = true;
+                                    } else if (!renumberOutput){
+                                        logThis = (stateCount % resample == 0);
+                                    } else {
+                                        logThis = ((stateCount * stateStep) % resample == 0);
+                                    }
 
-//                                	System.out.println("stateCount: " + stateCount);
-//                                	System.out.println("resample: " + resample);
-//                                	System.out.println("stateStep: " + stateStep);
-//                                	System.out.println("resample / stateStep: " + (resample / stateStep));
+                                    long stateLineEntry;
+                                    if (!renumberOutput){
+                                        stateLineEntry = stateCount;
+                                    } else {
 
-                                    stateLineEntry = stateCount / (resample / stateStep);
-                                }
+    //                                	System.out.println("stateCount: " + stateCount);
+    //                                	System.out.println("resample: " + resample);
+    //                                	System.out.println("stateStep: " + stateStep);
+    //                                	System.out.println("resample / stateStep: " + (resample / stateStep));
 
-                                if (logThis) {
-                                    writer.print(stateLineEntry);
-                                    for (int j = 1; j < parts.length; j++) {
-                                        String value = parts[j];
+                                        stateLineEntry = stateCount / (resample / stateStep);
+                                    }
 
-                                        if (useScale) {
-                                            if (titles[j].equals("clock.rate") || titles[j].startsWith("skyline.popSize")) {
-                                                value = reformatNumbers(value, convertToDecimal, true, 1.0 / scale);
-                                            } else if (titles[j].equals("treeModel.rootHeight")) {
-                                                value = reformatNumbers(value, convertToDecimal, true, scale);
+                                    if (logThis) {
+                                        writer.print(stateLineEntry);
+                                        for (int j = 1; j < parts.length; j++) {
+                                            String value = parts[j];
+
+                                            if (useScale) {
+                                                if (titles[j].equals("clock.rate") || titles[j].startsWith("skyline.popSize")) {
+                                                    value = reformatNumbers(value, convertToDecimal, true, 1.0 / scale);
+                                                } else if (titles[j].equals("treeModel.rootHeight")) {
+                                                    value = reformatNumbers(value, convertToDecimal, true, scale);
+                                                }
+                                            } else  if (convertToDecimal) {
+                                                value = reformatNumbers(value, convertToDecimal, false, 1.0);
                                             }
-                                        } else  if (convertToDecimal) {
-                                            value = reformatNumbers(value, convertToDecimal, false, 1.0);
+                                            writer.print("\t" + value);
                                         }
-                                        writer.print("\t" + value);
+                                        writer.println();
                                     }
-                                    writer.println();
                                 }
-                            }
 
+                            }
                         }
+                        line = reader.readLine();
+                        //lineCount++;
                     }
-                    line = reader.readLine();
-                    //lineCount++;
                 }
+
+                firstFile = false;
             }
 
-            firstFile = false;
+            if (treeFiles) {
+                stopLog(writer);
+            }
+            writer.close();
+            if (writer.checkError()) {
+                throw new IOException("Error writing to the output file: '" + outputFileName + "'");
+            }
+        } finally {
+            // the readers are still decoding if a file isn't read to the end
+            for (Reader reader : readers) {
+                if (reader != null) {
+                    reader.close();
+                }
+            }
         }
+    }
 
-        if (treeFiles) {
-            stopLog(writer);
+    /**
+     * Removes the comments (including annotations) from a tree line except for the [&R] or [&U]
+     * rooting comments. Comments inside quoted labels are left alone.
+     */
+    public static String stripComments(String treeString) {
+        StringBuilder builder = new StringBuilder(treeString.length());
+        boolean quoted = false;
+        int i = 0;
+        while (i < treeString.length()) {
+            char c = treeString.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (c == '[' && !quoted) {
+                int end = treeString.indexOf(']', i);
+                if (end < 0) {
+                    end = treeString.length() - 1;
+                }
+                String comment = treeString.substring(i, end + 1);
+                i = end + 1;
+                if (comment.equalsIgnoreCase("[&R]") || comment.equalsIgnoreCase("[&U]")) {
+                    builder.append(comment);
+                } else if (builder.length() > 0 && Character.isWhitespace(builder.charAt(builder.length() - 1))) {
+                    // don't leave a double space where the comment was
+                    while (i < treeString.length() && Character.isWhitespace(treeString.charAt(i))) {
+                        i++;
+                    }
+                }
+                continue;
+            }
+            builder.append(c);
+            i++;
         }
-        writer.close();
+        return builder.toString();
     }
 
     private void rescaleTree(Tree tree, double scale) {
@@ -437,7 +564,73 @@ public class LogCombiner {
         }
     }
 
+    /**
+     * @return the taxon labels (without quotes) of the translate block in the header of a tree
+     * file keyed by their numbers, or null if there is no translate block.
+     */
+    public static Map<String, String> getTranslateTable(List<String> header) {
+        Pattern pattern = Pattern.compile("(?i)^\\s*translate\\b(.*)");
+        StringBuilder text = null;
+        for (String line : header) {
+            if (text != null) {
+                text.append(line).append("\n");
+            } else {
+                Matcher m = pattern.matcher(line);
+                if (m.matches()) {
+                    text = new StringBuilder(m.group(1)).append("\n");
+                }
+            }
+        }
+        if (text == null) {
+            return null;
+        }
+
+        Map<String, String> translateTable = new HashMap<String, String>();
+        List<String> tokens = new ArrayList<String>();
+        StringBuilder token = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quoted) {
+                if (c == '\'') {
+                    if (i + 1 < text.length() && text.charAt(i + 1) == '\'') {
+                        // a doubled quote is a quote in the label
+                        token.append(c);
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    token.append(c);
+                }
+            } else if (c == '\'') {
+                quoted = true;
+            } else if (c == '[') {
+                int end = text.indexOf("]", i);
+                i = (end < 0 ? text.length() : end);
+            } else if (c == ',' || c == ';' || Character.isWhitespace(c)) {
+                if (token.length() > 0) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                }
+                if (c == ',' || c == ';') {
+                    if (tokens.size() == 2) {
+                        translateTable.put(tokens.get(0), tokens.get(1));
+                    }
+                    tokens.clear();
+                    if (c == ';') {
+                        break;
+                    }
+                }
+            } else {
+                token.append(c);
+            }
+        }
+        return translateTable;
+    }
+
     private final Map<String, Integer> taxonMap = new HashMap<String, Integer>();
+    private Map<String, String> firstTranslateTable = null;
 
     private void startLog(Tree tree, PrintWriter writer) {
 
@@ -741,6 +934,7 @@ public class LogCombiner {
                             new Arguments.RealOption("scale", "a scaling factor that will multiply any time units by this value"),
                             new Arguments.Option("strip", "strip out all annotations (trees only)"),
                             new Arguments.Option("renumber", "this option renumbers output states consecutively"),
+                            new Arguments.IntegerOption("threads", "the number of threads used to read the input files (which may be gzipped) [default = number of cores]"),
                             new Arguments.Option("help", "option to print this message")
                     });
 
@@ -782,6 +976,11 @@ public class LogCombiner {
                 useScale = true;
             }
 
+            int threadCount = Runtime.getRuntime().availableProcessors();
+            if (arguments.hasOption("threads")) {
+                threadCount = arguments.getIntegerOption("threads");
+            }
+
             String[] args2 = arguments.getLeftoverArguments();
 
             if (args2.length < 2) {
@@ -796,7 +995,7 @@ public class LogCombiner {
             String outputFileName = args2[args2.length - 1];
 
             new LogCombiner(new long[]{burnin}, resample, inputFileNames, outputFileName, treeFiles, convertToDecimal,
-                    stripAnnotations, renumberOutput, useScale, scale);
+                    stripAnnotations, renumberOutput, useScale, scale, threadCount);
 
             System.out.println("Finished.");
         }
@@ -30,42 +30,30 @@ public class PersistenceSummarizer extends BaseTreeTool {
                                   double[] evaluationTimes,
                                   double[] ancestralTimes,
 //                                         double mrsd,
-                                  String nodeStateAnnotation
+                                  String nodeStateAnnotation,
+                                  int threadCount
     ) throws IOException {
 
-//        List<Tree> trees = new ArrayList<>();
-
-//        readTrees(trees, inputFileName, burnIn);
-
-        SequentialTreeReader treeReader = new SequentialTreeReader(inputFileName, burnIn);
         //       this.mrsd = mrsd;
         //        this.evaluationTime = evaluationTime;
         //        this.ancestryTime = ancestryTime;
 
-        this.ps = openOutputFile(outputFileName);
-        //processTrees(trees, burnIn, evaluationTime, ancestryTime, nodeStateAnnotation);
-        processTrees(treeReader, burnIn, evaluationTimes, ancestralTimes, nodeStateAnnotation);
-        closeOutputFile(ps);
-    }
-
-    private void processTrees(SequentialTreeReader treeReader, int burnIn, double[] evaluationTimes, double[] ancestralTimes, String nodeStateAnnotation) throws IOException {
-        if (burnIn < 0) {
-            burnIn = 0;
-        }
-
-        int index = burnIn;
-        Tree tree;
-
-        while (treeReader.getTree(index) != null) {
-            tree = treeReader.getTree(index);
+        final PrintStream ps = openOutputFile(outputFileName);
+        mapTrees(inputFileName, burnIn, threadCount, (tree, index) -> {
+            List<Row> rows = new ArrayList<>();
             for (int i = 0; i < evaluationTimes.length; i++) {
-                processOneTree(tree, evaluationTimes[i], ancestralTimes[i], nodeStateAnnotation);
+                processOneTree(tree, evaluationTimes[i], ancestralTimes[i], nodeStateAnnotation, rows);
             }
-            index++;
-        }
+            return rows;
+        }, rows -> {
+            for (Row row : rows) {
+                ps.println(row);
+            }
+        });
+        closeOutputFile(ps);
     }
 
-    private void processOneTree(Tree tree, double evaluationTime, double ancestralTime, String nodeStateAnnotation) {
+    private void processOneTree(Tree tree, double evaluationTime, double ancestralTime, String nodeStateAnnotation, List<Row> rows) {
 
         String treeId = tree.getId();
         if (treeId.startsWith("STATE_")) {
@@ -200,7 +188,7 @@ public class PersistenceSummarizer extends BaseTreeTool {
                             nodeDescendants.size(),getSameStateDescendants(nodeDescendants,tree,currentState,nodeStateAnnotation, 0),
                             totalEventDescendents.size(),getSameStateDescendants(totalEventDescendents,tree,currentState,nodeStateAnnotation, 0),
                             nodesAfterEvalTime(totalEventDescendents, tree, evaluationTime),getSameStateDescendants(totalEventDescendents,tree,currentState,nodeStateAnnotation, evaluationTime));
-                    ps.println(row);
+                    rows.add(row);
                 }
             }
 
@@ -392,8 +380,6 @@ public class PersistenceSummarizer extends BaseTreeTool {
     private double mrsd;
 //    private double ancestryTime;
 
-    private PrintStream ps;
-
     public static void printTitle() {
         progressStream.println();
         centreLine("PersistVsIntroSummarizer " + version.getVersionString() + ", " + version.getDateString(), 60);
@@ -423,6 +409,7 @@ public class PersistenceSummarizer extends BaseTreeTool {
         double[] evaluationTimes = new double[1];
         double[] ancestralTimes = new double[]{Double.MAX_VALUE};
         String nodeStateAnnotation = null;
+        int threadCount = 1;
 
         printTitle();
 
@@ -434,6 +421,7 @@ public class PersistenceSummarizer extends BaseTreeTool {
 //                        new Arguments.RealOption("independenceTime", "The time for which a lineage should not share a common ancestor with another lineage to be called a unique persistence/introduction  [default=MAX_VALUE]"),
                         new Arguments.RealArrayOption(ANCESTRAL_TIME, -1, "The time(s) in the past until which the the ancestral persistence of lineages is evaluated [default=MAX_VALUE]"),
                         new Arguments.StringOption(NODE_STATE_ANNOTATION, "String", "use node state annotations as poor proxy to MJs based on a annotation string for the discrete trait"),
+                        new Arguments.IntegerOption(THREADS, "the number of threads used to process the trees [default = 1]"),
                         new Arguments.Option("help", "option to print this message"),
                 });
 
@@ -470,13 +458,18 @@ public class PersistenceSummarizer extends BaseTreeTool {
                     NODE_STATE_ANNOTATION + " (e.g. -" + NODE_STATE_ANNOTATION + " yourStateName)");
         }
 
+        if (arguments.hasOption(THREADS)) {
+            threadCount = Math.max(arguments.getIntegerOption(THREADS), 1);
+        }
+
         String[] fileNames = getInputOutputFileNames(arguments, PersistenceSummarizer::printUsage);
 
         new PersistenceSummarizer(fileNames[0], fileNames[1], burnIn,
  //               mrsd,
                 evaluationTimes,
                 ancestralTimes,
-                nodeStateAnnotation
+                nodeStateAnnotation,
+                threadCount
         );
         System.exit(0);
     }
@@ -58,20 +58,22 @@ public class TaxaMarkovJumpHistoryAnalyzer extends BaseTreeTool {
                                           String endSister,
                                           String stateAnnotationName,
                                           double mrsd,
-                                          int burnIn
+                                          int burnIn,
+                                          int threadCount
     ) throws IOException {
 
-        List<Tree> trees = new ArrayList<>();
-
-        readTrees(trees, inputFileName, burnIn);
-
-        List<Taxon> taxa = getTaxaToProcess(trees.get(0), taxaToProcess);
-
         this.mrsd = mrsd;
         this.stateAnnotationName = stateAnnotationName;
 
-        this.ps = openOutputFile(outputFileName);
-        processTrees(trees, taxa, endState, endTime, endSister, burnIn);
+        final PrintStream ps = openOutputFile(outputFileName);
+        // the taxa are looked up in each tree as the trees are processed in parallel
+        mapTrees(inputFileName, burnIn, threadCount,
+                (tree, index) -> processOneTree(tree, getTaxaToProcess(tree, taxaToProcess), endState, endTime, endSister),
+                rows -> {
+                    for (Row row : rows) {
+                        ps.println(row);
+                    }
+                });
         closeOutputFile(ps);
     }
 
@@ -85,17 +87,9 @@ public class TaxaMarkovJumpHistoryAnalyzer extends BaseTreeTool {
         return taxa;
     }
 
-    private void processTrees(List<Tree> trees, List<Taxon> taxa, String endState, double endTime, String endSister, int burnIn) {
-        if (burnIn < 0) {
-            burnIn = 0;
-        }
-        for (int i = burnIn; i < trees.size(); ++i) {
-            Tree tree = trees.get(i);
-            processOneTree(tree, taxa, endState, endTime, endSister);
-        }
-    }
+    private List<Row> processOneTree(Tree tree, List<Taxon> taxa, String endState, double endTime, String endSister) {
 
-    private void processOneTree(Tree tree, List<Taxon> taxa, String endState, double endTime, String endSister) {
+        List<Row> rows = new ArrayList<>();
 
         String treeId = tree.getId();
         if (treeId.startsWith("STATE_")) {
@@ -103,16 +97,18 @@ public class TaxaMarkovJumpHistoryAnalyzer extends BaseTreeTool {
         }
 
         for (Taxon taxon : taxa) {
-            processOneTreeForOneTaxon(tree, taxon, endState, endTime, endSister, treeId);
+            processOneTreeForOneTaxon(tree, taxon, endState, endTime, endSister, treeId, rows);
         }
+        return rows;
     }
 
-    private void processOneTreeForOneTaxon(Tree tree, Taxon taxon, String endState, double endTime, String endSister, String treeId) {
+    private void processOneTreeForOneTaxon(Tree tree, Taxon taxon, String endState, double endTime, String endSister,
+                                           String treeId, List<Row> rows) {
 
         for (int i = 0; i < tree.getExternalNodeCount(); ++i) {
             NodeRef tip = tree.getExternalNode(i);
             if (tree.getNodeTaxon(tip) == taxon) {
-                processOneTip(tree, tip, endState, endTime, endSister, treeId, taxon.getId());
+                processOneTip(tree, tip, endState, endTime, endSister, treeId, taxon.getId(), rows);
             }
         }
     }
@@ -174,7 +170,8 @@ public class TaxaMarkovJumpHistoryAnalyzer extends BaseTreeTool {
         return time;
     }
 
-    private void processOneTip(Tree tree, NodeRef tip, String endState, double endTime, String endSister, String treeId, String taxonId) {
+    private void processOneTip(Tree tree, NodeRef tip, String endState, double endTime, String endSister, String treeId,
+                               String taxonId, List<Row> rows) {
 
         String currentState = (String) tree.getNodeAttribute(tip, stateAnnotationName);
         if (currentState == null) {
@@ -200,8 +197,7 @@ public class TaxaMarkovJumpHistoryAnalyzer extends BaseTreeTool {
 
                     double jumpTime = adjust((Double) jump[0]);
 
-                    Row row = new Row(taxonId, treeId, currentState, startTime, jumpTime);
-                    ps.println(row);
+                    rows.add(new Row(taxonId, treeId, currentState, startTime, jumpTime));
 
                     startTime = jumpTime;
                     currentState = ((String) jump[1]);
@@ -211,9 +207,7 @@ public class TaxaMarkovJumpHistoryAnalyzer extends BaseTreeTool {
         }
 
         double tipTime = adjust(tree.getNodeHeight(tip));
-        Row row = new Row(taxonId, treeId, currentState, startTime, tipTime);
-
-        ps.println(row);
+        rows.add(new Row(taxonId, treeId, currentState, startTime, tipTime));
     }
 
     private static Object[] readCJH(NodeRef node, Tree treeTime) {
@@ -240,8 +234,6 @@ public class TaxaMarkovJumpHistoryAnalyzer extends BaseTreeTool {
     private double mrsd;
     private String stateAnnotationName;
 
-    private PrintStream ps;
-
     public static void printTitle() {
         progressStream.println();
         centreLine("TaxonMarkovJumpHistory " + version.getVersionString() + ", " + version.getDateString(), 60);
@@ -270,6 +262,7 @@ public class TaxaMarkovJumpHistoryAnalyzer extends BaseTreeTool {
         String stateAnnotationName = "location";
         double mrsd = Double.MAX_VALUE;
         int burnIn = -1;
+        int threadCount = 1;
 
         printTitle();
 
@@ -282,6 +275,7 @@ public class TaxaMarkovJumpHistoryAnalyzer extends BaseTreeTool {
                         new Arguments.StringOption("endSister", "end_sister", "to stop at node that is the common ancestor of the relevant taxon and the specified sister taxon"),
                         new Arguments.StringOption("stateAnnotation", "state_annotation_name", "The annotation name for the discrete state string"),
                         new Arguments.RealOption("mrsd", "The most recent sampling time to convert heights to times [default=MAX_VALUE]"),
+                        new Arguments.IntegerOption(THREADS, "the number of threads used to process the trees [default = 1]"),
                         new Arguments.Option("help", "option to print this message"),
                 });
 
@@ -317,12 +311,16 @@ public class TaxaMarkovJumpHistoryAnalyzer extends BaseTreeTool {
             System.err.println("Ignoring a burn-in of " + burnIn + " trees.");
         }
 
+        if (arguments.hasOption(THREADS)) {
+            threadCount = Math.max(arguments.getIntegerOption(THREADS), 1);
+        }
+
         String[] fileNames = getInputOutputFileNames(arguments, TaxaMarkovJumpHistoryAnalyzer::printUsage);
 
         new TaxaMarkovJumpHistoryAnalyzer(fileNames[0], fileNames[1], taxaToProcess,
                 endState, endTime, endSister,
                 stateAnnotationName,
-                mrsd, burnIn);
+                mrsd, burnIn, threadCount);
 
         System.exit(0);
     }
@@ -0,0 +1,193 @@
+/*
+ * TimeSliceBuffer.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.tools;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The values of one trait in one time slice for TimeSlicer. Numerical values are held as
+ * blocks of primitive doubles rather than Trait objects. The blocks held in memory by all the
+ * buffers are counted against a shared budget and, once this is exceeded, further full blocks
+ * are appended to a temporary file and read back when the slice is summarized.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class TimeSliceBuffer {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    public TimeSliceBuffer(AtomicLong memoryCount, long maxMemoryCount) {
+        this.memoryCount = memoryCount;
+        this.maxMemoryCount = maxMemoryCount;
+    }
+
+    public void add(TimeSlicer.Trait trait) {
+        if (count == 0) {
+            isNumber = trait.isNumber();
+            isMultivariate = trait.isMultivariate();
+            dim = trait.getDim();
+        }
+
+        if (isNumber) {
+            addValues(trait.getValue());
+        } else {
+            strings.add(trait.toString());
+        }
+        count++;
+    }
+
+    /**
+     * Adds a numerical value (with one element per dimension).
+     */
+    public void add(double[] value) {
+        if (count == 0) {
+            isNumber = true;
+            isMultivariate = value.length > 1;
+            dim = value.length;
+        }
+        addValues(value);
+        count++;
+    }
+
+    private void addValues(double[] values) {
+        for (double value : values) {
+            if (block == null) {
+                block = new double[BLOCK_SIZE];
+            }
+            block[blockCount] = value;
+            blockCount++;
+            if (blockCount == BLOCK_SIZE) {
+                storeBlock();
+            }
+        }
+    }
+
+    private void storeBlock() {
+        if (memoryCount.addAndGet(BLOCK_SIZE) > maxMemoryCount) {
+            memoryCount.addAndGet(-BLOCK_SIZE);
+            try {
+                if (spillFile == null) {
+                    spillFile = File.createTempFile("timeslicer", ".tmp");
+                    spillFile.deleteOnExit();
+                }
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile, true)));
+                for (double value : block) {
+                    out.writeDouble(value);
+                }
+                out.close();
+            } catch (IOException ioe) {
+                throw new RuntimeException("Unable to write slice values to a temporary file: " + ioe.getMessage());
+            }
+            // a null block is read back from the file
+            blocks.add(null);
+        } else {
+            blocks.add(block);
+            block = null;
+        }
+        blockCount = 0;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public boolean isNumber() {
+        return isNumber;
+    }
+
+    public boolean isMultivariate() {
+        return isMultivariate;
+    }
+
+    public int getDim() {
+        return dim;
+    }
+
+    /**
+     * @return the numerical values as an array of [dim][count]
+     */
+    public double[][] getValues() {
+        double[][] values = new double[dim][count];
+        int k = 0;
+        try {
+            DataInputStream in = null;
+            if (spillFile != null) {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+            }
+            for (double[] stored : blocks) {
+                for (int i = 0; i < BLOCK_SIZE; i++) {
+                    values[k % dim][k / dim] = (stored != null ? stored[i] : in.readDouble());
+                    k++;
+                }
+            }
+            if (in != null) {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to read slice values from a temporary file: " + ioe.getMessage());
+        }
+        for (int i = 0; i < blockCount; i++) {
+            values[k % dim][k / dim] = block[i];
+            k++;
+        }
+        return values;
+    }
+
+    /**
+     * @param index  the index of the value
+     * @param values the numerical values (from getValues)
+     * @return the value formatted as the Trait would be
+     */
+    public String getString(int index, double[][] values) {
+        if (!isNumber) {
+            return strings.get(index);
+        }
+        StringBuilder sb = new StringBuilder(Double.toString(values[0][index]));
+        for (int j = 1; j < dim; j++) {
+            sb.append(TimeSlicer.sep).append(values[j][index]);
+        }
+        return sb.toString();
+    }
+
+    private final AtomicLong memoryCount;
+    private final long maxMemoryCount;
+
+    private final List<double[]> blocks = new ArrayList<double[]>();
+    private double[] block = null;
+    private int blockCount = 0;
+    private File spillFile = null;
+
+    private final List<String> strings = new ArrayList<String>();
+
+    private int count = 0;
+    private boolean isNumber;
+    private boolean isMultivariate;
+    private int dim;
+}
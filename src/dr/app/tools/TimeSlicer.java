@@ -41,6 +41,7 @@ import dr.geo.contouring.*;
 import dr.geo.math.SphericalPolarCoordinates;
 import dr.inference.trace.TraceDistribution;
 import dr.inference.trace.TraceType;
+import dr.math.MathUtils;
 import dr.math.distributions.MultivariateNormalDistribution;
 import dr.util.HeapSort;
 import dr.util.Version;
@@ -52,6 +53,8 @@ import java.awt.geom.Point2D;
 import java.io.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Marc A. Suchard
@@ -132,6 +135,12 @@ public class TimeSlicer {
     public static final boolean GREATCIRCLEDISTANCE = true;
     public static final String SUBSTITUTION = "N";
     public static final String DESCENDENTS = "descendents";
+    public static final String THREADS = "threads";
+    public static final String BUFFER = "buffer";
+    public static final String SEED = "seed";
+
+    private static final int PENDING_TREES_PER_THREAD = 4;
+    private static final long DEFAULT_BUFFER_SIZE = Runtime.getRuntime().maxMemory() / (4 * 1024 * 1024);
 
     public static final String[] falseTrue = {"false", "true"};
 
@@ -142,7 +151,8 @@ public class TimeSlicer {
                       boolean trueNoise, double mrsd, ContourMode contourMode, SliceMode sliceMode,
                       final boolean summarizeRoot, final boolean summarizeTips, Normalization normalize, boolean getSDR, boolean getSNR,
                       String progress, boolean branchNormalization, BranchSet branchset, Set taxaSet, int grid,
-                      double latMin, double latMax, double longMin, double longMax, Set descendentTaxaSet, String rateString) {
+                      double latMin, double latMax, double longMin, double longMax, Set descendentTaxaSet, String rateString,
+                      int threadCount, long bufferSize) {
 
         this.traits = traits;
         traitCount = traits.length;
@@ -192,13 +202,15 @@ public class TimeSlicer {
             }
         }
 
-        values = new ArrayList<List<List<Trait>>>(sliceCount);
+        this.threadCount = threadCount;
+
+        // the slice values held in memory are limited to the buffer size (in MB)
+        AtomicLong memoryCount = new AtomicLong(0);
+        long maxMemoryCount = bufferSize * 1024 * 1024 / 8;
+        values = new TimeSliceBuffer[sliceCount][traitCount];
         for (int i = 0; i < sliceCount; i++) {
-            List<List<Trait>> thisSlice = new ArrayList<List<Trait>>(traitCount);
-            values.add(thisSlice);
             for (int j = 0; j < traitCount; j++) {
-                List<Trait> thisTraitSlice = new ArrayList<Trait>();
-                thisSlice.add(thisTraitSlice);
+                values[i][j] = new TimeSliceBuffer(memoryCount, maxMemoryCount);
             }
         }
         if (summarizeRoot) {
@@ -368,6 +380,11 @@ public class TimeSlicer {
                 rootElement.addContent(documentElement);
             }
 
+            if (threadCount > 1 && contours && outputFormat != OutputFormat.TAB && contourMode != ContourMode.R) {
+                // R is not thread safe
+                calculateSliceContours(hpdValues);
+            }
+
             if (sliceHeights == null) {
                 for (double hpdValue : hpdValues) {
                     summarizeSlice(0, Double.NaN, contours, points, outputFormat, hpdValue);
@@ -895,8 +912,8 @@ public class TimeSlicer {
             }
         }
 
-        List<List<Trait>> thisSlice = values.get(slice);
-        int traitCount = thisSlice.size();
+        TimeSliceBuffer[] thisSlice = values[slice];
+        int traitCount = thisSlice.length;
 
         for (int traitIndex = 0; traitIndex < traitCount; traitIndex++) {
 
@@ -906,7 +923,7 @@ public class TimeSlicer {
 //                        hpdValue);
 //
 //            } else {
-            summarizeSliceTrait(contourElement, pointsElement, slice, thisSlice.get(traitIndex), traitIndex, sliceValue,
+            summarizeSliceTrait(contourElement, pointsElement, slice, thisSlice[traitIndex], traitIndex, sliceValue,
                     outputFormat,
                     hpdValue);
 
@@ -932,17 +949,17 @@ public class TimeSlicer {
         }
     }
 
-    private void summarizeSliceTrait(Element contourElement, Element pointsElement, int slice, List<Trait> thisTrait, int traitIndex, double sliceValue,
+    private void summarizeSliceTrait(Element contourElement, Element pointsElement, int slice, TimeSliceBuffer thisTrait, int traitIndex, double sliceValue,
                                      OutputFormat outputFormat,
                                      double hpdValue) {
 
-        if (thisTrait.size() == 0) {
+        if (thisTrait.getCount() == 0) {
             return;
         }
 
-        boolean isNumber = thisTrait.get(0).isNumber();
-        boolean isMultivariate = thisTrait.get(0).isMultivariate();
-        int dim = thisTrait.get(0).getDim();
+        boolean isNumber = thisTrait.isNumber();
+        boolean isMultivariate = thisTrait.isMultivariate();
+        int dim = thisTrait.getDim();
         boolean isBivariate = isMultivariate && dim == 2;
         if (sliceProgressReport) {
             progressStream.print("slice " + sliceValue + "\t");
@@ -968,17 +985,8 @@ public class TimeSlicer {
                 }
             }
 
-            int count = thisTrait.size();
 //            System.out.println("count = "+count+", dim = "+dim);
-            double[][] y = new double[dim][count];
-            for (int i = 0; i < count; i++) {
-                Trait trait = thisTrait.get(i);
-                double[] value = trait.getValue();
-
-                for (int j = 0; j < dim; j++) {
-                    y[j][i] = value[j];
-                }
-            }
+            double[][] y = thisTrait.getValues();
 //            System.out.println(y.length+"\t"+y[0].length);
 
             if (outputFormat == OutputFormat.XML || outputFormat == OutputFormat.TAB) {
@@ -1045,7 +1053,14 @@ public class TimeSlicer {
 
                 if (contourElement != null) {
                     String name = "" + date + "_hpd" + hpdValue;
-                    generateContours(name, contourElement, traitElement, y, slice, date, sliceValue, hpdValue);
+                    ContourPath[] paths = null;
+                    if (sliceContourPaths != null && sliceContourPaths.get(slice).get(traitIndex) != null) {
+                        paths = sliceContourPaths.get(slice).get(traitIndex).get(hpdValue);
+                    }
+                    if (paths == null) {
+                        paths = getContourPaths(y, hpdValue);
+                    }
+                    generateContours(name, contourElement, traitElement, y, slice, date, sliceValue, hpdValue, paths);
                 }
 
             }
@@ -1117,26 +1132,17 @@ public class TimeSlicer {
     }
 
     private void generateContours(String name, Element sliceElement, Element traitElement, double[][] y, int slice, double date, double height, double hpdValue) {
+        generateContours(name, sliceElement, traitElement, y, slice, date, height, hpdValue, getContourPaths(y, hpdValue));
+    }
+
+    private void generateContours(String name, Element sliceElement, Element traitElement, double[][] y, int slice, double date, double height, double hpdValue,
+                                  ContourPath[] paths) {
         //to test how much points are within the polygons
         double numberOfPointsInPolygons = 0;
         double totalArea = 0;
 
-        ContourMaker contourMaker;
-        if (contourMode == ContourMode.JAVA)
-//            contourMaker = new KernelDensityEstimator2D(y[0], y[1], gridSize);
-            contourMaker = new KernelDensityEstimator2D(y[0], y[1], BANDWIDTHLIMIT);
-        else if (contourMode == ContourMode.R)
-            contourMaker = new ContourWithR(y[0], y[1], gridSize);
-        else if (contourMode == ContourMode.SNYDER)
-//            contourMaker = new ContourWithSynder(y[0], y[1], gridSize);
-            contourMaker = new ContourWithSynder(y[0], y[1], BANDWIDTHLIMIT);
-        else
-            throw new RuntimeException("Unimplemented ContourModel!");
-
-        ContourPath[] paths = contourMaker.getContourPaths(hpdValue);
         int pathCounter = 1;
         for (ContourPath path : paths) {
-
             KMLCoordinates coords = new KMLCoordinates(path.getAllX(), path.getAllY());
             if (traitElement != null) {
                 Element regionElement = new Element(REGIONS_ELEMENT);
@@ -1182,6 +1188,73 @@ public class TimeSlicer {
         }
     }
 
+    /**
+     * Calculates the contours for the bivariate slices on a pool of threads before the summary is
+     * written.
+     */
+    private void calculateSliceContours(final double[] hpdValues) {
+        sliceContourPaths = new ArrayList<List<Map<Double, ContourPath[]>>>(sliceCount);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int i = 0; i < sliceCount; i++) {
+            List<Map<Double, ContourPath[]>> slicePaths = new ArrayList<Map<Double, ContourPath[]>>(traitCount);
+            sliceContourPaths.add(slicePaths);
+            for (int j = 0; j < traitCount; j++) {
+                final TimeSliceBuffer buffer = values[i][j];
+                if (buffer.getCount() > 0 && buffer.isNumber() && buffer.isMultivariate() && buffer.getDim() == 2) {
+                    final Map<Double, ContourPath[]> paths = new HashMap<Double, ContourPath[]>();
+                    slicePaths.add(paths);
+                    tasks.add(new Callable<Object>() {
+                        public Object call() {
+                            double[][] y = buffer.getValues();
+                            for (double hpdValue : hpdValues) {
+                                ContourPath[] hpdPaths = getContourPaths(y, hpdValue);
+                                synchronized (paths) {
+                                    paths.put(hpdValue, hpdPaths);
+                                }
+                            }
+                            return null;
+                        }
+                    });
+                } else {
+                    slicePaths.add(null);
+                }
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+        try {
+            for (Future<Object> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while calculating contours");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error calculating contours: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // the contours of each slice and trait indexed by HPD value (null if not bivariate)
+    private List<List<Map<Double, ContourPath[]>>> sliceContourPaths = null;
+
+    private ContourPath[] getContourPaths(double[][] y, double hpdValue) {
+        ContourMaker contourMaker;
+        if (contourMode == ContourMode.JAVA)
+//            contourMaker = new KernelDensityEstimator2D(y[0], y[1], gridSize);
+            contourMaker = new KernelDensityEstimator2D(y[0], y[1], BANDWIDTHLIMIT);
+        else if (contourMode == ContourMode.R)
+            contourMaker = new ContourWithR(y[0], y[1], gridSize);
+        else if (contourMode == ContourMode.SNYDER)
+//            contourMaker = new ContourWithSynder(y[0], y[1], gridSize);
+            contourMaker = new ContourWithSynder(y[0], y[1], BANDWIDTHLIMIT);
+        else
+            throw new RuntimeException("Unimplemented ContourModel!");
+
+        return contourMaker.getContourPaths(hpdValue);
+    }
+
     public static int getNumberOfPointsInPolygon(double[][] pointsArray, Polygon2D testPolygon) {
         int numberOfPointsInPolygon = 0;
         for (int x = 0; x < pointsArray[0].length; x++) {
@@ -1438,7 +1511,7 @@ public class TimeSlicer {
         StringBuffer sb = new StringBuffer("slice");
         for (int i = 0; i < traits.length; i++) {
             // Load first value to check dimensionality
-            Trait trait = values.get(0).get(i).get(0);
+            TimeSliceBuffer trait = values[0][i];
             if (trait.isMultivariate()) {
                 int dim = trait.getDim();
                 for (int j = 1; j <= dim; j++)
@@ -1488,9 +1561,9 @@ public class TimeSlicer {
 //    }
 
     private void readAndAnalyzeTrees(String treeFileName, int burnin, int skipEvery,
-                                     String[] traits, double[] slices,
-                                     boolean impute, boolean trueNoise, Normalization normalize,
-                                     boolean divideByBranchLength, BranchSet branchset, Set taxaSet)
+                                     final String[] traits, final double[] slices,
+                                     final boolean impute, final boolean trueNoise, final Normalization normalize,
+                                     final boolean divideByBranchLength, final BranchSet branchset, final Set taxaSet)
             throws IOException, Importer.ImportException {
 
         int totalTrees = 10000;
@@ -1514,12 +1587,35 @@ public class TimeSlicer {
         }
         totalTrees = 0;
 
+        // with more than one thread the trees are sliced by a pool of workers while this
+        // thread carries on reading them. The results are added in the order the trees were
+        // read and only a few trees per thread are in progress at any time. Each tree has its
+        // own random number stream (for the noise added to imputed values) seeded in the order
+        // the trees are read so the results don't depend on the number of threads.
+        ExecutorService pool = null;
+        Deque<Future<AnalyzedTree>> pending = new ArrayDeque<Future<AnalyzedTree>>();
+        if (threadCount > 1) {
+            pool = Executors.newFixedThreadPool(threadCount);
+        }
+
         while (importer1.hasTree()) {
-            Tree treeTime = importer1.importNextTree();
+            final Tree treeTime = importer1.importNextTree();
             if (totalTrees % skipEvery == 0) {
                 treesRead++;
                 if (totalTrees >= burnin) {
-                    analyzeTree(treeTime, traits, slices, impute, trueNoise, normalize, divideByBranchLength, branchset, taxaSet);
+                    final long seed = MathUtils.nextLong();
+                    if (pool == null) {
+                        addAnalyzedTree(analyzeTree(seed, treeTime, traits, slices, impute, trueNoise, normalize, divideByBranchLength, branchset, taxaSet));
+                    } else {
+                        if (pending.size() >= threadCount * PENDING_TREES_PER_THREAD) {
+                            addAnalyzedTree(getAnalyzedTree(pending.removeFirst()));
+                        }
+                        pending.addLast(pool.submit(new Callable<AnalyzedTree>() {
+                            public AnalyzedTree call() {
+                                return analyzeTree(seed, treeTime, traits, slices, impute, trueNoise, normalize, divideByBranchLength, branchset, taxaSet);
+                            }
+                        }));
+                    }
                 }
             }
             if (totalTrees > 0 && totalTrees % stepSize == 0) {
@@ -1531,9 +1627,40 @@ public class TimeSlicer {
             }
             totalTrees++;
         }
+
+        if (pool != null) {
+            while (!pending.isEmpty()) {
+                addAnalyzedTree(getAnalyzedTree(pending.removeFirst()));
+            }
+            pool.shutdown();
+        }
         progressStream.print("\n");
     }
 
+    private AnalyzedTree analyzeTree(long seed, Tree treeTime, String[] traits, double[] slices, boolean impute,
+                                     boolean trueNoise, Normalization normalize, boolean divideByBranchLength,
+                                     BranchSet branchset, Set taxaSet) {
+        AnalyzedTree result = new AnalyzedTree();
+        MathUtils.setThreadSeed(seed == 0 ? 1 : seed);
+        try {
+            analyzeTree(treeTime, traits, slices, impute, trueNoise, normalize, divideByBranchLength, branchset, taxaSet, result);
+        } finally {
+            MathUtils.clearThreadSeed();
+        }
+        return result;
+    }
+
+    private static AnalyzedTree getAnalyzedTree(Future<AnalyzedTree> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while analyzing trees");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error analyzing tree: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
     class Trait {
 
         Trait(Object obj) {
@@ -1612,16 +1739,23 @@ public class TimeSlicer {
         }
     }
 
-    private List<List<List<Trait>>> values;
+    private TimeSliceBuffer[][] values;
     private List<List<Trait>> rootValues;
     private List<List<List<Trait>>> tipValues;
     private List<String> tipNames;
 
     private void outputSlice(int slice, double sliceValue) {
 
-        List<List<Trait>> thisSlice = values.get(slice);
-        int traitCount = thisSlice.size();
-        int valueCount = thisSlice.get(0).size();
+        TimeSliceBuffer[] thisSlice = values[slice];
+        int traitCount = thisSlice.length;
+        int valueCount = thisSlice[0].getCount();
+
+        double[][][] sliceValues = new double[traitCount][][];
+        for (int t = 0; t < traitCount; t++) {
+            if (thisSlice[t].isNumber()) {
+                sliceValues[t] = thisSlice[t].getValues();
+            }
+        }
 
         StringBuffer sb = new StringBuffer();
 
@@ -1632,7 +1766,7 @@ public class TimeSlicer {
                 sb.append(sliceValue);
             for (int t = 0; t < traitCount; t++) {
                 sb.append(sep);
-                sb.append(thisSlice.get(t).get(v));
+                sb.append(thisSlice[t].getString(v, sliceValues[t]));
             }
             sb.append("\n");
         }
@@ -1696,7 +1830,7 @@ public class TimeSlicer {
 
     private void analyzeTree(Tree treeTime, String[] traits, double[] slices, boolean impute,
                              boolean trueNoise, Normalization normalize, boolean divideByBranchlength,
-                             BranchSet branchset, Set taxaSet) {
+                             BranchSet branchset, Set taxaSet, AnalyzedTree result) {
 
         double[][] precision = null;
 
@@ -1725,19 +1859,15 @@ public class TimeSlicer {
         }
 
 
-        if (tipValues != null && tipValues.size() == 0) {
-            // this is the first tree so initialize the tip value lists
+        if (tipValues != null) {
+            result.tipNames = new String[treeTime.getExternalNodeCount()];
+            result.tipTraits = new Trait[treeTime.getExternalNodeCount()][traitCount];
             for (int i = 0; i < treeTime.getExternalNodeCount(); i++) {
-                List<List<Trait>> thisTip = new ArrayList<List<Trait>>(traitCount);
-                tipValues.add(thisTip);
-                for (int j = 0; j < traitCount; j++) {
-                    List<Trait> thisTipTrait = new ArrayList<Trait>();
-                    thisTip.add(thisTipTrait);
-                }
-
-                tipNames.add(treeTime.getNodeTaxon(treeTime.getExternalNode(i)).getId());
+                result.tipNames[i] = treeTime.getNodeTaxon(treeTime.getExternalNode(i)).getId();
             }
-
+        }
+        if (rootValues != null) {
+            result.rootTraits = new Trait[traitCount];
         }
 
 //  employed to get dispersal rates across the whole tree
@@ -1758,7 +1888,7 @@ public class TimeSlicer {
         double[][] treeSliceDiffusionCoefficients = new double[sliceCount][treeTime.getNodeCount() - 1];
         double[] treeSliceBranchCount = new double[sliceCount];
 
-        treeLengths.add(TreeUtils.getTreeLength(treeTime, treeTime.getRoot()));
+        result.treeLength = TreeUtils.getTreeLength(treeTime, treeTime.getRoot());
 
         for (int x = 0; x < treeTime.getNodeCount(); x++) {
 
@@ -1910,10 +2040,8 @@ public class TimeSlicer {
 
                         if (proceed) {
 
-                            List<List<Trait>> thisSlice = values.get(i);
                             for (int j = 0; j < traitCount; j++) {
 
-                                List<Trait> thisTraitSlice = thisSlice.get(j);
                                 Object tmpTrait = treeTime.getNodeAttribute(node, traits[j]);
                                 if (tmpTrait == null) {
                                     System.err.println("Trait '" + traits[j] + "' not found on branch.");
@@ -1952,7 +2080,7 @@ public class TimeSlicer {
 //                                } else if (impute && (sliceMode == SliceMode.NODES)) {
 //                                    progressStream.println("no imputation for slice mode = nodes");
                                 }
-                                thisTraitSlice.add(trait);
+                                result.addSliceValue(i, j, trait);
                                 //System.out.println("trees "+treesAnalyzed+"\tslice "+slices[i]+"\t"+trait.toString());
 
                                 treeSliceTime[i] += (parentHeight - slices[i]);
@@ -1995,15 +2123,13 @@ public class TimeSlicer {
                 }
 
                 if (tipValues != null && treeTime.isExternal(node)) {
-                    List<List<Trait>> thisTip = tipValues.get(x);
-
                     for (int j = 0; j < traitCount; j++) {
                         Object tmpTrait = treeTime.getNodeAttribute(node, traits[j]);
                         if (tmpTrait == null) {
                             System.err.println("Trait '" + traits[j] + "' not found for tip.");
                             System.exit(-1);
                         }
-                        thisTip.get(j).add(new Trait(tmpTrait, treeTime.getNodeHeight(node)));
+                        result.tipTraits[x][j] = new Trait(tmpTrait, treeTime.getNodeHeight(node));
 
                     }
                 }
@@ -2017,16 +2143,14 @@ public class TimeSlicer {
                             height = slices[i + 1];
                         }
                         if ((slices[i] < nodeHeight && height >= nodeHeight)){
-                            List<List<Trait>> thisSlice = values.get(i);
                             for (int j = 0; j < traitCount; j++) {
-                                List<Trait> thisTraitSlice = thisSlice.get(j);
                                 Object tmpTrait = treeTime.getNodeAttribute(node, traits[j]);
                                 if (tmpTrait == null) {
                                     System.err.println("Trait '" + traits[j] + "' not found on node.");
                                     System.exit(-1);
                                 }
                                 Trait trait = new Trait(tmpTrait);
-                                thisTraitSlice.add(trait);
+                                result.addSliceValue(i, j, trait);
 
                             }
 
@@ -2037,14 +2161,12 @@ public class TimeSlicer {
 
                 if (rootValues != null) {
                     for (int j = 0; j < traitCount; j++) {
-                        List<Trait> thisRootTrait = rootValues.get(j);
                         Object tmpTrait = treeTime.getNodeAttribute(node, traits[j]);
                         if (tmpTrait == null) {
                             System.err.println("Trait '" + traits[j] + "' not found on root node.");
                             System.exit(-1);
                         }
-                        Trait trait = new Trait(tmpTrait, treeTime.getNodeHeight(node));
-                        thisRootTrait.add(trait);
+                        result.rootTraits[j] = new Trait(tmpTrait, treeTime.getNodeHeight(node));
 
                     }
                 }
@@ -2054,12 +2176,12 @@ public class TimeSlicer {
         //System.out.println(Tree.Utils.getTreeLength(treeTime, treeTime.getRoot())+"\t"+test);
 
         if (sdr || snr) {
-            sliceTreeDistanceArrays.add(treeSliceDistance);
-            sliceTreeTimeArrays.add(treeSliceTime);
+            result.treeSliceDistance = treeSliceDistance;
+            result.treeSliceTime = treeSliceTime;
             if (sdr){
-                sliceTreeMaxPathDistanceArrays.add(treeSliceMaxDistance);
-                sliceTreeMaxDistanceFromRootArrays.add(maxDistanceFromRoot);
-                sliceTreeTimeFromRootArrays.add(treeTimeFromRoot);
+                result.treeSliceMaxDistance = treeSliceMaxDistance;
+                result.maxDistanceFromRoot = maxDistanceFromRoot;
+                result.treeTimeFromRoot = treeTimeFromRoot;
                 for (int i = 0; i < treeSliceDiffusionCoefficientA.length; i++) {
                     //treeSliceDiffusionCoefficientWA[i] = treeSliceDiffusionCoefficientWA[i]/treeSliceTime[i];
                     treeSliceDiffusionCoefficientA[i] = treeSliceDiffusionCoefficientA[i] / treeSliceBranchCount[i];
@@ -2069,8 +2191,8 @@ public class TimeSlicer {
                     treeSliceDiffusionCoefficientV[i] = treeSliceDiffusionCoefficientV[i] / treeSliceBranchCount[i];
                     //System.out.println(treeSliceTime[i]+"\t"+treeLengths.get(i));
                 }
-                sliceTreeDiffusionCoefficientArrays.add(treeSliceDiffusionCoefficientA);
-                sliceTreeDiffusionCoefficientVarianceArrays.add(treeSliceDiffusionCoefficientV);
+                result.treeSliceDiffusionCoefficientA = treeSliceDiffusionCoefficientA;
+                result.treeSliceDiffusionCoefficientV = treeSliceDiffusionCoefficientV;
             }
         }
 
@@ -2084,8 +2206,107 @@ public class TimeSlicer {
 //            dispersalrates.add(dispersalNativeRate+"\t"+dispersalKilometerRate);
 //        }
 
+    }
+
+    /**
+     * Adds the values from an analyzed tree to the slice buffers and summaries. This is always
+     * done in the order the trees were read.
+     */
+    private void addAnalyzedTree(AnalyzedTree result) {
+        for (int i = 0; i < sliceCount; i++) {
+            for (int j = 0; j < traitCount; j++) {
+                List<Trait> sliceValues = result.getSliceValues(i, j);
+                if (sliceValues != null) {
+                    for (Trait trait : sliceValues) {
+                        values[i][j].add(trait);
+                    }
+                }
+            }
+        }
+
+        if (tipValues != null) {
+            if (tipValues.size() == 0) {
+                // this is the first tree so initialize the tip value lists
+                for (int i = 0; i < result.tipNames.length; i++) {
+                    List<List<Trait>> thisTip = new ArrayList<List<Trait>>(traitCount);
+                    tipValues.add(thisTip);
+                    for (int j = 0; j < traitCount; j++) {
+                        List<Trait> thisTipTrait = new ArrayList<Trait>();
+                        thisTip.add(thisTipTrait);
+                    }
+
+                    tipNames.add(result.tipNames[i]);
+                }
+            }
+            for (int x = 0; x < result.tipTraits.length; x++) {
+                for (int j = 0; j < traitCount; j++) {
+                    tipValues.get(x).get(j).add(result.tipTraits[x][j]);
+                }
+            }
+        }
+
+        if (rootValues != null) {
+            for (int j = 0; j < traitCount; j++) {
+                if (result.rootTraits[j] != null) {
+                    rootValues.get(j).add(result.rootTraits[j]);
+                }
+            }
+        }
+
+        treeLengths.add(result.treeLength);
+
+        if (sdr || snr) {
+            sliceTreeDistanceArrays.add(result.treeSliceDistance);
+            sliceTreeTimeArrays.add(result.treeSliceTime);
+            if (sdr) {
+                sliceTreeMaxPathDistanceArrays.add(result.treeSliceMaxDistance);
+                sliceTreeMaxDistanceFromRootArrays.add(result.maxDistanceFromRoot);
+                sliceTreeTimeFromRootArrays.add(result.treeTimeFromRoot);
+                sliceTreeDiffusionCoefficientArrays.add(result.treeSliceDiffusionCoefficientA);
+                sliceTreeDiffusionCoefficientVarianceArrays.add(result.treeSliceDiffusionCoefficientV);
+            }
+        }
+
         treesAnalyzed++;
+    }
+
+    /**
+     * The values sliced from a single tree.
+     */
+    private class AnalyzedTree {
+        AnalyzedTree() {
+            sliceValues = new ArrayList<List<Trait>>(Collections.<List<Trait>>nCopies(sliceCount * traitCount, null));
+        }
+
+        void addSliceValue(int slice, int trait, Trait value) {
+            int index = slice * traitCount + trait;
+            if (sliceValues.get(index) == null) {
+                sliceValues.set(index, new ArrayList<Trait>());
+            }
+            sliceValues.get(index).add(value);
+        }
+
+        /**
+         * @return the values of the trait in the slice (null if there are none)
+         */
+        List<Trait> getSliceValues(int slice, int trait) {
+            return sliceValues.get(slice * traitCount + trait);
+        }
 
+        // the values of each slice and trait (slice-major)
+        private final List<List<Trait>> sliceValues;
+        String[] tipNames;
+        Trait[][] tipTraits;
+        Trait[] rootTraits;
+
+        double treeLength;
+        double[] treeSliceDistance;
+        double[] treeSliceTime;
+        double[] treeSliceMaxDistance;
+        double[] maxDistanceFromRoot;
+        double[] treeTimeFromRoot;
+        double[] treeSliceDiffusionCoefficientA;
+        double[] treeSliceDiffusionCoefficientV;
     }
 
     private static double getNativeDistance(double[] location1, double[] location2) {
@@ -2154,6 +2375,7 @@ public class TimeSlicer {
     private boolean doSlices;
     private int treesRead = 0;
     private int treesAnalyzed = 0;
+    private int threadCount;
     private double mostRecentSamplingDate;
     private ContourMode contourMode;
     private SliceMode sliceMode;
@@ -2179,16 +2401,16 @@ public class TimeSlicer {
 //        }
 //    }
 
-    private ArrayList sliceTreeDistanceArrays = new ArrayList();
-    private ArrayList sliceTreeTimeArrays = new ArrayList();
-    private ArrayList sliceTreeMaxPathDistanceArrays = new ArrayList();
-    private ArrayList sliceTreeMaxDistanceFromRootArrays = new ArrayList();
-    private ArrayList sliceTreeTimeFromRootArrays = new ArrayList();
-    private ArrayList sliceTreeDiffusionCoefficientArrays = new ArrayList();
-    private ArrayList sliceTreeDiffusionCoefficientVarianceArrays = new ArrayList();
+    private ArrayList<double[]> sliceTreeDistanceArrays = new ArrayList<double[]>();
+    private ArrayList<double[]> sliceTreeTimeArrays = new ArrayList<double[]>();
+    private ArrayList<double[]> sliceTreeMaxPathDistanceArrays = new ArrayList<double[]>();
+    private ArrayList<double[]> sliceTreeMaxDistanceFromRootArrays = new ArrayList<double[]>();
+    private ArrayList<double[]> sliceTreeTimeFromRootArrays = new ArrayList<double[]>();
+    private ArrayList<double[]> sliceTreeDiffusionCoefficientArrays = new ArrayList<double[]>();
+    private ArrayList<double[]> sliceTreeDiffusionCoefficientVarianceArrays = new ArrayList<double[]>();
     private boolean sdr;
     private boolean snr;
-    private ArrayList treeLengths = new ArrayList();
+    private ArrayList<Double> treeLengths = new ArrayList<Double>();
 
     private boolean outputRateWarning = true;
 
@@ -2656,6 +2878,8 @@ public class TimeSlicer {
         double longMin = -Double.MAX_VALUE;
         String rateString = "location.rate";
         Set descendents = null;
+        int threadCount = 1;
+        long bufferSize = DEFAULT_BUFFER_SIZE;
 
 //        if (args.length == 0) {
 //          // TODO Make flash GUI
@@ -2708,7 +2932,10 @@ public class TimeSlicer {
                         new Arguments.RealOption(LONGMAX, "specifies the maximum longitude for a child node for a branch to be included in the summary [default=MAX_VALUE]"),
                         new Arguments.RealOption(LONGMIN, "specifies the minimum longitude for a child node for a branch to be included in the summary [default=MIN_VALUE]"),
                         new Arguments.IntegerOption(GRIDSIZE, "the grid size for contouring [default=200]"),
-                        new Arguments.StringOption(DESCENDENTS, "descendent taxa", "specifies a branch based on the descendent taxa [default=all branches]")
+                        new Arguments.StringOption(DESCENDENTS, "descendent taxa", "specifies a branch based on the descendent taxa [default=all branches]"),
+                        new Arguments.IntegerOption(THREADS, "the number of threads used to slice trees and calculate contours [default=1]"),
+                        new Arguments.LongOption(BUFFER, "the memory (in MB) for slice values before they are written to temporary files [default=a quarter of the heap]"),
+                        new Arguments.LongOption(SEED, "the random number seed for the noise added to imputed values [default=set by the clock]")
 
                 });
 
@@ -2978,6 +3205,18 @@ public class TimeSlicer {
                 grid = arguments.getIntegerOption(GRIDSIZE);
             }
 
+            if (arguments.hasOption(THREADS)) {
+                threadCount = arguments.getIntegerOption(THREADS);
+            }
+
+            if (arguments.hasOption(BUFFER)) {
+                bufferSize = arguments.getLongOption(BUFFER);
+            }
+
+            if (arguments.hasOption(SEED)) {
+                MathUtils.setSeed(arguments.getLongOption(SEED));
+            }
+
 
 
         } catch (Arguments.ArgumentException e) {
@@ -3009,7 +3248,8 @@ public class TimeSlicer {
 
         TimeSlicer timeSlicer = new TimeSlicer(inputFileName, burnin, skipEvery, traitNames, sliceHeights, impute,
                 trueNoise, mrsd, contourMode, sliceMode,summarizeRoot, summarizeTips, normalize, getSDR, getSNR, progress,
-                branchNormalization, set, taxaSet, grid, latMin, latMax, longMin, longMax, descendents, rateString);
+                branchNormalization, set, taxaSet, grid, latMin, latMax, longMin, longMax, descendents, rateString,
+                threadCount, bufferSize);
         timeSlicer.output(outputFileName, summaryOnly, summarizeRoot, summarizeTips, contours, points, outputFormat, hpdValues, outputFileSDR, outputFileSNR);
 
         System.exit(0);
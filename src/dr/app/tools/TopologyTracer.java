@@ -60,7 +60,8 @@ public class TopologyTracer {
                           final String focalTreeFileName,
                           final String outputFile,
                           final ArrayList<Double> lambdaValues,
-                          final boolean pairwise) {
+                          final boolean pairwise,
+                          final int threadCount) {
 
         // output to stdout
         PrintStream progressStream = System.out;
@@ -113,13 +114,13 @@ public class TopologyTracer {
 
             List<TreeMetric> treeMetrics = new ArrayList<TreeMetric>();
             if (metric.equals("all") || metric.equals("rf")) {
-                treeMetrics.add(new RobinsonFouldsMetric());
+                treeMetrics.add(new SplitHashMetric(TreeMetric.Type.ROBINSON_FOULDS));
             }
             if (metric.equals("all") || metric.equals("clade")) {
-                treeMetrics.add(new CladeHeightMetric());
+                treeMetrics.add(new SplitHashMetric(TreeMetric.Type.CLADE_HEIGHT));
             }
             if (metric.equals("all") || metric.equals("branch")) {
-                treeMetrics.add(new RootedBranchScoreMetric());
+                treeMetrics.add(new SplitHashMetric(TreeMetric.Type.ROOTED_BRANCH_SCORE));
             }
             if (metric.equals("all") || metric.equals("sp")) {
                 treeMetrics.add(new SteelPennyPathDifferenceMetric());
@@ -240,7 +241,12 @@ public class TopologyTracer {
 
                 TreeMetric treeMetric = treeMetrics.get(0);
 
+                // the clade based metrics encode each tree once and then calculate the
+                // distances in parallel
+                SplitHashMetric splitHashMetric = (treeMetric instanceof SplitHashMetric ? (SplitHashMetric) treeMetric : null);
+
                 List<Tree> trees = new ArrayList<Tree>();
+                List<SplitHashTree> encodedTrees = new ArrayList<SplitHashTree>();
                 while (importer.hasTree()) {
 
                     Tree tree = importer.importNextTree();
@@ -248,7 +254,11 @@ public class TopologyTracer {
 
                     // one or other of burninTrees and burninStates should be 0
                     if (numberOfTrees >= burninTrees && state >= burninStates) {
-                        trees.add(tree);
+                        if (splitHashMetric != null) {
+                            encodedTrees.add(splitHashMetric.encode(tree));
+                        } else {
+                            trees.add(tree);
+                        }
                         treeIds.add(tree.getId());
                         treeStates.add(state);
                     }
@@ -262,6 +272,12 @@ public class TopologyTracer {
 
                 }
 
+                double[][] distances = null;
+                if (splitHashMetric != null) {
+                    progressStream.println("\nCalculating distances using " + threadCount + " threads ...");
+                    distances = SplitHashTree.getDistanceMatrix(encodedTrees, splitHashMetric.getType(), threadCount);
+                }
+
                 progressStream.println("\nWriting log file ...");
 
                 BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile));
@@ -272,15 +288,16 @@ public class TopologyTracer {
                 }
                 writer.write("\n");
 
-                for (int i = 0; i < trees.size(); i++) {
+                for (int i = 0; i < treeStates.size(); i++) {
                     writer.write(Long.toString(treeStates.get(i)));
 
-                    Tree tree1 = trees.get(i);
-                    for (int j = 0; j < trees.size(); j++) {
+                    for (int j = 0; j < treeStates.size(); j++) {
                         if (j < i) {
-                            Tree tree2 = trees.get(j);
-
-                            writer.write("," + treeMetric.getMetric(tree1, tree2));
+                            if (distances != null) {
+                                writer.write("," + distances[i][j]);
+                            } else {
+                                writer.write("," + treeMetric.getMetric(trees.get(i), trees.get(j)));
+                            }
                         } else {
                             writer.write(",");
                         }
@@ -335,6 +352,7 @@ public class TopologyTracer {
                                 "which tree metric to use ('kc', 'sp', 'rf', 'clade', 'branch') [default = all]"
                         ),
                         new Arguments.RealOption("lambda", "the lambda value to be used for the 'Kendall-Colijn metric' [default = {0,0.5,1}]"),
+                        new Arguments.IntegerOption("threads", "the number of threads used for the 'pairwise' option [default = available cores]"),
                         new Arguments.Option("help", "option to print this message")
                 });
 
@@ -391,6 +409,11 @@ public class TopologyTracer {
             lambdaValues.add(0.5);
         }
 
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        if (arguments.hasOption("threads")) {
+            threadCount = arguments.getIntegerOption("threads");
+        }
+
         String focalTreeFileName = null;
         if (arguments.hasOption("tree")) {
             focalTreeFileName = arguments.getStringOption("tree");
@@ -429,7 +452,7 @@ public class TopologyTracer {
             inputFileName = Utils.getLoadFileName("TopologyTracer " + version.getVersionString() + " - Select log file to analyse");
         }
 
-        new TopologyTracer(burninStates, burninTrees, metric, inputFileName, inputFileName2, focalTreeFileName, outputFileName, lambdaValues, pairwise);
+        new TopologyTracer(burninStates, burninTrees, metric, inputFileName, inputFileName2, focalTreeFileName, outputFileName, lambdaValues, pairwise, threadCount);
 
         System.exit(0);
 
@@ -124,6 +124,7 @@ public class TreeAnnotator {
      * @param targetTreeFileName
      * @param inputFileName
      * @param outputFileName
+     * @param threadCount the number of threads used to read the trees
      * @throws IOException
      */
     public TreeAnnotator(final int burninTrees,
@@ -135,10 +136,12 @@ public class TreeAnnotator {
                          Target targetOption,
                          String targetTreeFileName,
                          String inputFileName,
-                         String outputFileName
+                         String outputFileName,
+                         int threadCount
     ) throws IOException {
 
         this.posteriorLimit = posteriorLimit;
+        this.threadCount = threadCount;
         this.hpd2D = hpd2D;
         this.computeESS = computeESS;
 
@@ -160,53 +163,32 @@ public class TreeAnnotator {
         if (stepSize < 1) stepSize = 1;
 
         if (targetOption != Target.USER_TARGET_TREE) {
-            cladeSystem = new CladeSystem();
-            FileReader fileReader = new FileReader(inputFileName);
-            TreeImporter importer = new NexusImporter(fileReader, true);
+            // the clades are counted separately by each thread and then added together
+            TreeProcessingPipeline pipeline = new TreeProcessingPipeline(burninTrees, burninStates, 1, threadCount);
+            pipeline.setIgnoreMetaComments(true);
+            pipeline.setProgressStream(progressStream);
             try {
-                totalTrees = 0;
-                while (importer.hasTree()) {
-                    Tree tree = importer.importNextTree();
-
-                    long state = Long.MAX_VALUE;
-
-                    if (burninStates > 0) {
-                        // if burnin has been specified in states, try to parse it out...
-                        String name = tree.getId().trim();
-
-                        if (name != null && name.length() > 0 && name.startsWith("STATE_")) {
-                            state = Long.parseLong(name.split("_")[1]);
-                            maxState = state;
-                        }
-                    }
-
-                    if (totalTrees >= burninTrees && state >= burninStates) {
-                        // if either of the two burnin thresholds have been reached...
-
-                        if (burnin < 0) {
-                            // if this is the first time this point has been reached,
-                            // record the number of trees this represents for future use...
-                            burnin = totalTrees;
-                        }
-
-                        cladeSystem.add(tree, true);
-
-                        totalTreesUsed += 1;
-                    }
-
-                    if (totalTrees > 0 && totalTrees % stepSize == 0) {
-                        progressStream.print("*");
-                        progressStream.flush();
+                cladeSystem = pipeline.process(inputFileName, new TreeProcessingPipeline.AccumulatorFactory<CladeSystem>() {
+                    public CladeSystem createAccumulator(Tree firstTree) {
+                        CladeSystem clades = new CladeSystem();
+                        clades.taxonList = firstTree;
+                        return clades;
                     }
-                    totalTrees++;
-                }
-
+                });
             } catch (Importer.ImportException e) {
                 System.err.println("Error Parsing Input Tree: " + e.getMessage());
                 return;
             }
-            fileReader.close();
-            progressStream.println();
+            if (cladeSystem == null) {
+                cladeSystem = new CladeSystem();
+            }
+
+            totalTrees = pipeline.getTotalTrees();
+            totalTreesUsed = pipeline.getTotalTreesUsed();
+            burnin = pipeline.getBurnin();
+            if (burninStates > 0 && pipeline.getLastState() >= 0) {
+                maxState = pipeline.getLastState();
+            }
             progressStream.println();
 
             if (totalTrees < 1) {
@@ -369,51 +351,64 @@ public class TreeAnnotator {
         }
     }
 
-    private Tree getMCCTree(int burnin, CladeSystem cladeSystem, String inputFileName)
+    private Tree getMCCTree(int burnin, final CladeSystem cladeSystem, String inputFileName)
             throws IOException {
 
-        Tree bestTree = null;
-        double bestScore = Double.NEGATIVE_INFINITY;
-
         progressStream.println("Analyzing " + totalTreesUsed + " trees...");
         progressStream.println("0              25             50             75            100");
         progressStream.println("|--------------|--------------|--------------|--------------|");
 
-        int stepSize = totalTrees / 60;
-        if (stepSize < 1) stepSize = 1;
-
-        int counter = 0;
-        int bestTreeNumber = 0;
-        TreeImporter importer = new NexusImporter(new FileReader(inputFileName), true);
+        // each thread keeps the best of the trees it scores
+        TreeProcessingPipeline pipeline = new TreeProcessingPipeline(Math.max(burnin, 0), 0, 1, threadCount);
+        pipeline.setIgnoreMetaComments(true);
+        pipeline.setProgressStream(progressStream, totalTrees);
+        BestTree best;
         try {
-            while (importer.hasTree()) {
-                Tree tree = importer.importNextTree();
-
-                if (counter >= burnin) {
-                    double score = scoreTree(tree, cladeSystem);
-//                    progressStream.println(score);
-                    if (score > bestScore) {
-                        bestTree = tree;
-                        bestScore = score;
-                        bestTreeNumber = counter + 1;
-                    }
+            best = pipeline.process(inputFileName, new TreeProcessingPipeline.AccumulatorFactory<BestTree>() {
+                public BestTree createAccumulator(Tree firstTree) {
+                    return new BestTree(cladeSystem);
                 }
-                if (counter > 0 && counter % stepSize == 0) {
-                    progressStream.print("*");
-                    progressStream.flush();
-                }
-                counter++;
-            }
+            });
         } catch (Importer.ImportException e) {
             System.err.println("Error Parsing Input Tree: " + e.getMessage());
             return null;
         }
         progressStream.println();
-        progressStream.println();
-        progressStream.println("Best tree: " + bestTree.getId() + " (tree number " + bestTreeNumber + ")");
-        progressStream.println("Highest Log Clade Credibility: " + bestScore);
+        progressStream.println("Best tree: " + best.tree.getId() + " (tree number " + (best.index + 1) + ")");
+        progressStream.println("Highest Log Clade Credibility: " + best.score);
+
+        return best.tree;
+    }
+
+    /**
+     * The tree with the highest log clade credibility (the first one if there is a tie).
+     */
+    private class BestTree implements TreeProcessingPipeline.Accumulator<BestTree> {
+        BestTree(CladeSystem cladeSystem) {
+            this.cladeSystem = cladeSystem;
+        }
+
+        public void addTree(Tree tree, int index) {
+            double score = scoreTree(tree, cladeSystem);
+            if (score > this.score) {
+                this.tree = tree;
+                this.score = score;
+                this.index = index;
+            }
+        }
+
+        public void merge(BestTree other) {
+            if (other.tree != null && (tree == null || other.score > score || (other.score == score && other.index < index))) {
+                tree = other.tree;
+                score = other.score;
+                index = other.index;
+            }
+        }
 
-        return bestTree;
+        private final CladeSystem cladeSystem;
+        private Tree tree = null;
+        private double score = Double.NEGATIVE_INFINITY;
+        private int index = -1;
     }
 
     private Tree getMMCCTree(CladeSystem cladeSystem) {
@@ -494,7 +489,7 @@ public class TreeAnnotator {
         return cladeSystem.getLogCladeCredibility(tree, tree.getRoot(), null);
     }
 
-    private class CladeSystem {
+    private class CladeSystem implements TreeProcessingPipeline.Accumulator<CladeSystem> {
         //
         // Public stuff
         //
@@ -526,6 +521,36 @@ public class TreeAnnotator {
             rootClade = cladeMap.get(rootBits);
         }
 
+        public void addTree(Tree tree, int index) {
+            add(tree, true);
+        }
+
+        /**
+         * adds the clades counted by another clade system (with the same taxon list)
+         */
+        public void merge(CladeSystem other) {
+            for (Clade otherClade : other.cladeMap.values()) {
+                Clade clade = cladeMap.get(otherClade.bits);
+                if (clade == null) {
+                    clade = new Clade(otherClade.bits);
+                    cladeMap.put(otherClade.bits, clade);
+                }
+                clade.setCount(clade.getCount() + otherClade.getCount());
+                if (clade.taxon == null) {
+                    clade.taxon = otherClade.taxon;
+                }
+                if (otherClade.subClades != null) {
+                    if (clade.subClades == null) {
+                        clade.subClades = new HashSet<>();
+                    }
+                    clade.subClades.addAll(otherClade.subClades);
+                }
+            }
+            if (rootClade == null && other.rootClade != null) {
+                rootClade = cladeMap.get(other.rootClade.bits);
+            }
+        }
+
         public Clade getRootClade() {
             return rootClade;
         }
@@ -1348,6 +1373,7 @@ public class TreeAnnotator {
 
     int totalTrees = 0;
     int totalTreesUsed = 0;
+    private int threadCount = 1;
     double posteriorLimit = 0.0;
     //PL:    double hpd2D = 0.80;
     double[] hpd2D = {0.80};
@@ -1517,7 +1543,8 @@ public class TreeAnnotator {
                         targetOption,
                         targetTreeFileName,
                         inputFileName,
-                        outputFileName);
+                        outputFileName,
+                        1);
 
             } catch (Exception ex) {
                 System.err.println("Exception: " + ex.getMessage());
@@ -1547,7 +1574,8 @@ public class TreeAnnotator {
                         new Arguments.Option("help", "option to print this message"),
                         new Arguments.Option("forceDiscrete", "forces integer traits to be treated as discrete traits."),
                         new Arguments.StringOption("hpd2D", "the HPD interval to be used for the bivariate traits", "specifies a (vector of comma separated) HPD proportion(s)"),
-                        new Arguments.Option("ess", "compute ess for branch parameters")
+                        new Arguments.Option("ess", "compute ess for branch parameters"),
+                        new Arguments.IntegerOption("threads", "the number of threads used to read the trees [default=1]")
                 });
 
         try {
@@ -1625,6 +1653,11 @@ public class TreeAnnotator {
             targetTreeFileName = arguments.getStringOption("target");
         }
 
+        int threadCount = 1;
+        if (arguments.hasOption("threads")) {
+            threadCount = Math.max(arguments.getIntegerOption("threads"), 1);
+        }
+
         final String[] args2 = arguments.getLeftoverArguments();
 
         switch (args2.length) {
@@ -1642,7 +1675,7 @@ public class TreeAnnotator {
             }
         }
 
-        new TreeAnnotator(burninTrees, burninStates, heights, posteriorLimit, hpd2D, computeESS, target, targetTreeFileName, inputFileName, outputFileName);
+        new TreeAnnotator(burninTrees, burninStates, heights, posteriorLimit, hpd2D, computeESS, target, targetTreeFileName, inputFileName, outputFileName, threadCount);
 
         System.exit(0);
     }
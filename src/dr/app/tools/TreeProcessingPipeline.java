@@ -0,0 +1,420 @@
+/*
+ * TreeProcessingPipeline.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.tools;
+
+import dr.evolution.io.Importer;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.io.NexusImporter;
+import dr.evolution.io.TreeImporter;
+import dr.evolution.tree.Tree;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Reads a file of sampled trees once and shares the work on the trees between threads. The
+ * trees are read on the calling thread and handed, through a bounded queue, to the workers so
+ * only a few trees per thread are in memory at any time.
+ *
+ * The trees can either be added to accumulators, one per worker, that are merged when all the
+ * trees have been read (process) or each tree can be turned into a result that is handed back
+ * to the calling thread in the order the trees were read (map). With one thread everything is
+ * done on the calling thread.
+ *
+ * Trees before the burn-in (given as a number of trees and/or of states, taken from the
+ * STATE_ tree names) are skipped, as are all but every thin'th tree in the file.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class TreeProcessingPipeline {
+
+    private static final int PENDING_TREES_PER_THREAD = 4;
+
+    /**
+     * Collects whatever is needed from the trees given to one worker.
+     */
+    public interface Accumulator<A extends Accumulator<A>> {
+        /**
+         * @param tree  the tree
+         * @param index the position of the tree in the file (starting at 0)
+         */
+        void addTree(Tree tree, int index);
+
+        /**
+         * Adds everything collected by another worker's accumulator to this one. The trees
+         * are shared between the workers as they become free so the result shouldn't depend
+         * on which worker got which tree.
+         */
+        void merge(A other);
+    }
+
+    public interface AccumulatorFactory<A extends Accumulator<A>> {
+        /**
+         * @param firstTree the first tree that will be used (e.g., to get the taxa from)
+         */
+        A createAccumulator(Tree firstTree);
+    }
+
+    public interface TreeFunction<R> {
+        R apply(Tree tree, int index);
+    }
+
+    public TreeProcessingPipeline(int burninTrees, long burninStates, int thin, int threadCount) {
+        if (thin < 1 || threadCount < 1) {
+            throw new IllegalArgumentException("Thinning and the number of threads must be at least 1");
+        }
+        this.burninTrees = burninTrees;
+        this.burninStates = burninStates;
+        this.thin = thin;
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * @param ignoreMetaComments don't read the annotations of the trees (faster if they aren't needed)
+     */
+    public void setIgnoreMetaComments(boolean ignoreMetaComments) {
+        this.ignoreMetaComments = ignoreMetaComments;
+    }
+
+    /**
+     * @param progressStream a stream to print a star to every 10,000 / 60 trees read (or null for none)
+     */
+    public void setProgressStream(PrintStream progressStream) {
+        this.progressStream = progressStream;
+    }
+
+    /**
+     * @param progressStream a stream to print a star to every expectedTreeCount / 60 trees read
+     * @param expectedTreeCount the number of trees in the file, if known from an earlier pass
+     */
+    public void setProgressStream(PrintStream progressStream, int expectedTreeCount) {
+        this.progressStream = progressStream;
+        this.progressStepSize = Math.max(expectedTreeCount / 60, 1);
+    }
+
+    /**
+     * Adds all the trees in the file to the accumulators and returns them merged into one.
+     *
+     * @return the merged accumulator or null if no trees were used
+     */
+    public <A extends Accumulator<A>> A process(String inputFileName, AccumulatorFactory<A> factory)
+            throws IOException, Importer.ImportException {
+
+        Reader reader = openReader(inputFileName);
+        TreeImporter importer = createImporter(inputFileName, reader);
+
+        ExecutorService pool = null;
+        try {
+            Tree firstTree = nextTree(importer);
+            if (firstTree == null) {
+                return null;
+            }
+
+            if (threadCount == 1) {
+                A accumulator = factory.createAccumulator(firstTree);
+                for (Tree tree = firstTree; tree != null; tree = nextTree(importer)) {
+                    accumulator.addTree(tree, treeIndex);
+                }
+                return accumulator;
+            }
+
+            final List<A> accumulators = new ArrayList<A>();
+            for (int i = 0; i < threadCount; i++) {
+                accumulators.add(factory.createAccumulator(firstTree));
+            }
+
+            final BlockingQueue<IndexedTree> queue = new ArrayBlockingQueue<IndexedTree>(threadCount * PENDING_TREES_PER_THREAD);
+            final IndexedTree end = new IndexedTree(null, -1);
+            final RuntimeException[] failure = new RuntimeException[1];
+
+            pool = Executors.newFixedThreadPool(threadCount);
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final A accumulator : accumulators) {
+                futures.add(pool.submit(new Callable<Object>() {
+                    public Object call() throws InterruptedException {
+                        // a worker that fails keeps taking trees so the reader can't get stuck
+                        for (IndexedTree next = queue.take(); next != end; next = queue.take()) {
+                            try {
+                                accumulator.addTree(next.tree, next.index);
+                            } catch (RuntimeException e) {
+                                synchronized (failure) {
+                                    if (failure[0] == null) {
+                                        failure[0] = e;
+                                    }
+                                }
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            try {
+                for (Tree tree = firstTree; tree != null && !hasFailed(failure); tree = nextTree(importer)) {
+                    queue.put(new IndexedTree(tree, treeIndex));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while reading trees");
+            } finally {
+                for (int i = 0; i < threadCount; i++) {
+                    putQuietly(queue, end);
+                }
+            }
+
+            for (Future<?> future : futures) {
+                getResult(future);
+            }
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+
+            A accumulator = accumulators.get(0);
+            for (int i = 1; i < accumulators.size(); i++) {
+                accumulator.merge(accumulators.get(i));
+            }
+            return accumulator;
+
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+            reader.close();
+            endProgress();
+        }
+    }
+
+    /**
+     * Applies the function to all the trees in the file and gives the results to the handler,
+     * on this thread and in the order of the trees in the file.
+     */
+    public <R> void map(String inputFileName, final TreeFunction<R> function, Consumer<R> handler)
+            throws IOException, Importer.ImportException {
+
+        Reader reader = openReader(inputFileName);
+        TreeImporter importer = createImporter(inputFileName, reader);
+
+        ExecutorService pool = null;
+        try {
+            if (threadCount == 1) {
+                for (Tree tree = nextTree(importer); tree != null; tree = nextTree(importer)) {
+                    handler.accept(function.apply(tree, treeIndex));
+                }
+                return;
+            }
+
+            pool = Executors.newFixedThreadPool(threadCount);
+            Deque<Future<R>> pending = new ArrayDeque<Future<R>>();
+            for (Tree tree = nextTree(importer); tree != null; tree = nextTree(importer)) {
+                if (pending.size() >= threadCount * PENDING_TREES_PER_THREAD) {
+                    handler.accept(getResult(pending.removeFirst()));
+                }
+                final Tree next = tree;
+                final int index = treeIndex;
+                pending.addLast(pool.submit(new Callable<R>() {
+                    public R call() {
+                        return function.apply(next, index);
+                    }
+                }));
+            }
+            while (!pending.isEmpty()) {
+                handler.accept(getResult(pending.removeFirst()));
+            }
+
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+            reader.close();
+            endProgress();
+        }
+    }
+
+    /**
+     * @return the number of trees read from the last file
+     */
+    public int getTotalTrees() {
+        return totalTrees;
+    }
+
+    /**
+     * @return the number of trees that were used from the last file
+     */
+    public int getTotalTreesUsed() {
+        return totalTreesUsed;
+    }
+
+    /**
+     * @return the number of trees in the burn-in of the last file (-1 if the burn-in was never reached)
+     */
+    public int getBurnin() {
+        return burnin;
+    }
+
+    /**
+     * @return the state of the last tree read, if the burn-in was given in states (otherwise -1)
+     */
+    public long getLastState() {
+        return lastState;
+    }
+
+    private Reader openReader(String inputFileName) throws IOException {
+        lastState = -1;
+        totalTrees = 0;
+        totalTreesUsed = 0;
+        burnin = -1;
+        treeIndex = -1;
+        return new BufferedReader(new FileReader(inputFileName));
+    }
+
+    private TreeImporter createImporter(String inputFileName, Reader reader) throws IOException {
+        BufferedReader firstLineReader = new BufferedReader(new FileReader(inputFileName));
+        String firstLine = firstLineReader.readLine();
+        firstLineReader.close();
+
+        if (firstLine != null && !firstLine.toUpperCase().startsWith("#NEXUS")) {
+            return new NewickImporter(reader);
+        }
+        return new NexusImporter(reader, ignoreMetaComments);
+    }
+
+    /**
+     * Reads trees until the next one to use (setting treeIndex to its position) or returns null at the end.
+     */
+    private Tree nextTree(TreeImporter importer) throws IOException, Importer.ImportException {
+        while (importer.hasTree()) {
+            Tree tree = importer.importNextTree();
+            int index = totalTrees;
+            totalTrees++;
+            printProgress();
+
+            long state = Long.MAX_VALUE;
+            if (burninStates > 0) {
+                // if burnin has been specified in states, try to parse it out...
+                String name = tree.getId() == null ? "" : tree.getId().trim();
+                if (name.startsWith("STATE_")) {
+                    state = Long.parseLong(name.split("_")[1]);
+                    lastState = state;
+                }
+            }
+
+            if (index >= burninTrees && state >= burninStates) {
+                if (burnin < 0) {
+                    burnin = index;
+                }
+                if (index % thin == 0) {
+                    totalTreesUsed++;
+                    treeIndex = index;
+                    return tree;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void printProgress() {
+        if (progressStream != null && totalTrees % progressStepSize == 0) {
+            progressStream.print("*");
+            if ((totalTrees / progressStepSize) % 61 == 0) {
+                progressStream.println();
+            }
+            progressStream.flush();
+        }
+    }
+
+    private void endProgress() {
+        if (progressStream != null) {
+            progressStream.println();
+        }
+    }
+
+    private static boolean hasFailed(RuntimeException[] failure) {
+        synchronized (failure) {
+            return failure[0] != null;
+        }
+    }
+
+    private static void putQuietly(BlockingQueue<IndexedTree> queue, IndexedTree tree) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(tree);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static <R> R getResult(Future<R> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while processing trees");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Error processing tree: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private static class IndexedTree {
+        IndexedTree(Tree tree, int index) {
+            this.tree = tree;
+            this.index = index;
+        }
+
+        final Tree tree;
+        final int index;
+    }
+
+
+    private final int burninTrees;
+    private final long burninStates;
+    private final int thin;
+    private final int threadCount;
+
+    private boolean ignoreMetaComments = false;
+    private PrintStream progressStream = null;
+    private int progressStepSize = 10000 / 60;
+
+    private int totalTrees;
+    private int totalTreesUsed;
+    private int burnin;
+    private int treeIndex;
+    private long lastState;
+}
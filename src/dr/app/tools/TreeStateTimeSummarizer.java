@@ -24,32 +24,25 @@ public class TreeStateTimeSummarizer extends BaseTreeTool {
                                     int burnIn,
                                     double startTime,
                                     double endTime,
-                                    String nodeStateAnnotation) throws IOException {
-
-        List<Tree> trees = new ArrayList<>();
-
-        readTrees(trees, inputFileName, burnIn);
+                                    String nodeStateAnnotation,
+                                    int threadCount) throws IOException {
 
         this.startTime = startTime;
         this.endTime = endTime;
         this.nodeStateAnnotation = nodeStateAnnotation;
 
-        this.ps = openOutputFile(outputFileName);
-        processTrees(trees, burnIn);
+        final PrintStream ps = openOutputFile(outputFileName);
+        mapTrees(inputFileName, burnIn, threadCount, (tree, index) -> processOneTree(tree), rows -> {
+            for (Row row : rows) {
+                ps.println(row);
+            }
+        });
         closeOutputFile(ps);
     }
 
-    private void processTrees(List<Tree> trees, int burnIn) {
-        if (burnIn < 0) {
-            burnIn = 0;
-        }
-        for (int i = burnIn; i < trees.size(); ++i) {
-            Tree tree = trees.get(i);
-            processOneTree(tree);
-        }
-    }
+    private List<Row> processOneTree(Tree tree) {
 
-    private void processOneTree(Tree tree) {
+        List<Row> rows = new ArrayList<>();
 
         String treeId = tree.getId();
         if (treeId.startsWith("STATE_")) {
@@ -64,12 +57,12 @@ public class TreeStateTimeSummarizer extends BaseTreeTool {
             System.exit(-1);
         }
 
-        StateHistory history = traversePostOrder(tree, root, treeId);
+        StateHistory history = traversePostOrder(tree, root, treeId, rows);
 
         checkEqual(rootState, history.state);
-        Row row = new Row(treeId, history.state, history.duration);
-        ps.println(row);
+        rows.add(new Row(treeId, history.state, history.duration));
 
+        return rows;
     }
 
     private class StateHistory {
@@ -89,7 +82,7 @@ public class TreeStateTimeSummarizer extends BaseTreeTool {
         }
     }
 
-    private StateHistory traversePostOrder(Tree tree, NodeRef node, String treeId) {
+    private StateHistory traversePostOrder(Tree tree, NodeRef node, String treeId, List<Row> rows) {
 
         StateHistory history;
 
@@ -97,8 +90,8 @@ public class TreeStateTimeSummarizer extends BaseTreeTool {
         if (tree.isExternal(node)) {
             history = new StateHistory((String) tree.getNodeAttribute(node, nodeStateAnnotation), 0.0);
         } else {
-            StateHistory history0 = traversePostOrder(tree, tree.getChild(node, 0), treeId);
-            StateHistory history1 = traversePostOrder(tree, tree.getChild(node, 1), treeId);
+            StateHistory history0 = traversePostOrder(tree, tree.getChild(node, 0), treeId, rows);
+            StateHistory history1 = traversePostOrder(tree, tree.getChild(node, 1), treeId, rows);
 
             checkEqual(history0.state, history1.state);
 
@@ -120,8 +113,7 @@ public class TreeStateTimeSummarizer extends BaseTreeTool {
 
                     history.duration += clippedDuration(jumpTime, currentTime); //(jumpTime - currentTime);
 
-                    Row row = new Row(treeId, history.state, history.duration);
-                    ps.println(row);
+                    rows.add(new Row(treeId, history.state, history.duration));
 
                     currentTime = jumpTime;
                     history = new StateHistory((String) jump[1], 0.0);
@@ -196,7 +188,6 @@ public class TreeStateTimeSummarizer extends BaseTreeTool {
 
     private double startTime;
     private double endTime;
-    private PrintStream ps;
     private String nodeStateAnnotation;
 
     public static void printTitle() {
@@ -223,6 +214,7 @@ public class TreeStateTimeSummarizer extends BaseTreeTool {
         double startTime = 0; //default start time considered to be time zero
         double endTime = Double.MAX_VALUE; //end time, backwards in time
         String nodeStateAnnotation = "states";
+        int threadCount = 1;
 
         printTitle();
 
@@ -232,6 +224,7 @@ public class TreeStateTimeSummarizer extends BaseTreeTool {
                         new Arguments.RealOption("startTime", "The start time for to time summaries [default = 0] "),
                         new Arguments.RealOption("endTime", "The end time for to time summaries [default = Double.MAX_VALUE] "),
                         new Arguments.StringOption("nodeStateAnnotation", "String", "string used for node state annotations [default = states] "),
+                        new Arguments.IntegerOption(THREADS, "the number of threads used to process the trees [default = 1]"),
                         new Arguments.Option("help", "option to print this message")
                 });
 
@@ -256,12 +249,17 @@ public class TreeStateTimeSummarizer extends BaseTreeTool {
             System.err.print("no state annotation string provided... trying with 'states...\n");
         }
 
+        if (arguments.hasOption(THREADS)) {
+            threadCount = Math.max(arguments.getIntegerOption(THREADS), 1);
+        }
+
         String[] fileNames = getInputOutputFileNames(arguments, TreeStateTimeSummarizer::printUsage);
 
         new TreeStateTimeSummarizer(fileNames[0], fileNames[1], burnIn,
                 startTime,
                 endTime,
-                nodeStateAnnotation
+                nodeStateAnnotation,
+                threadCount
         );
         System.exit(0);
     }
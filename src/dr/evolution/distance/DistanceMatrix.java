@@ -30,8 +30,12 @@ import dr.evolution.datatype.DataType;
 import dr.evolution.util.Taxon;
 import dr.evolution.util.TaxonList;
 import dr.matrix.Matrix;
+import dr.util.SharedThreadPool;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * storage for pairwise distance matrices.<p>
@@ -79,6 +83,15 @@ public class DistanceMatrix extends Matrix.AbstractMatrix implements TaxonList {
         dimension = patterns.getTaxonCount();
         dataType = patterns.getDataType();
         distancesKnown = false;
+        packedPatterns = null;
+    }
+
+    /**
+     * set the number of threads used to calculate the distances (defaults to the number set by
+     * the thread.count property, see SharedThreadPool)
+     */
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
     }
 
     /**
@@ -120,56 +133,84 @@ public class DistanceMatrix extends Matrix.AbstractMatrix implements TaxonList {
     }
 
     /**
-     * Calculate the distances
+     * Calculate the distances. The matrix is split into square tiles so the packed states of the
+     * taxa of a tile stay in the cache while they are compared and the tiles are shared out
+     * between threads, so calculatePairwiseDistance may be called from several threads at once.
      */
     public void calculateDistances() {
-        distances = new double[dimension][dimension];
+        final double[][] distances = new double[dimension][dimension];
 
-        for (int i = 0; i < dimension; i++) {
-            for (int j = i + 1; j < dimension; j++) {
-                distances[i][j] = calculatePairwiseDistance(i, j);
-                distances[j][i] = distances[i][j];
+        int tileCount = (dimension + TILE_SIZE - 1) / TILE_SIZE;
+        int threads = Math.min(threadCount, tileCount * (tileCount + 1) / 2);
+
+        if (threads <= 1) {
+            for (int i = 0; i < tileCount; i++) {
+                for (int j = i; j < tileCount; j++) {
+                    calculateTile(distances, i * TILE_SIZE, j * TILE_SIZE);
+                }
+            }
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<?>> futures = new ArrayList<Future<?>>();
+                for (int i = 0; i < tileCount; i++) {
+                    for (int j = i; j < tileCount; j++) {
+                        final int row = i * TILE_SIZE;
+                        final int column = j * TILE_SIZE;
+                        futures.add(pool.submit(new Runnable() {
+                            public void run() {
+                                calculateTile(distances, row, column);
+                            }
+                        }));
+                    }
+                }
+                SharedThreadPool.waitFor(futures, "calculating distances");
+            } finally {
+                pool.shutdown();
             }
-            distances[i][i] = 0.0;
         }
 
+        this.distances = distances;
         distancesKnown = true;
     }
 
+    private void calculateTile(double[][] distances, int row, int column) {
+        int rowEnd = Math.min(row + TILE_SIZE, dimension);
+        int columnEnd = Math.min(column + TILE_SIZE, dimension);
+        for (int i = row; i < rowEnd; i++) {
+            for (int j = Math.max(column, i + 1); j < columnEnd; j++) {
+                distances[i][j] = calculatePairwiseDistance(i, j);
+                distances[j][i] = distances[i][j];
+            }
+        }
+    }
+
     /**
-     * Calculate a pairwise distance
+     * @return the patterns packed as bits, created the first time they are needed
      */
-    protected double calculatePairwiseDistance(int taxon1, int taxon2) {
-        int state1, state2;
-
-        int n = patterns.getPatternCount();
-        double weight, distance;
-        double sumDistance = 0.0;
-        double sumWeight = 0.0;
-
-        int[] pattern;
-
-        for (int i = 0; i < n; i++) {
-            pattern = patterns.getPattern(i);
-
-            state1 = pattern[taxon1];
-            state2 = pattern[taxon2];
-
-            weight = patterns.getPatternWeight(i);
-//			sumDistance += dataType.getObservedDistance(state1, state2) * weight;
-            if (!dataType.isAmbiguousState(state1) && !dataType.isAmbiguousState(state2) &&
-                    state1 != state2) {
-                sumDistance += weight;
+    protected PackedPatterns getPackedPatterns() {
+        PackedPatterns packed = packedPatterns;
+        if (packed == null) {
+            synchronized (this) {
+                packed = packedPatterns;
+                if (packed == null) {
+                    packed = new PackedPatterns(patterns);
+                    packedPatterns = packed;
+                }
             }
-            sumWeight += weight;
         }
+        return packed;
+    }
 
-        distance = sumDistance / sumWeight;
+    /**
+     * Calculate a pairwise distance
+     */
+    protected double calculatePairwiseDistance(int taxon1, int taxon2) {
+        PackedPatterns packed = getPackedPatterns();
 
-        return distance;
+        return packed.getMismatchWeight(taxon1, taxon2) / packed.getTotalWeight();
     }
 
-
     /**
      * Returns the mean pairwise distance of this matrix
      */
@@ -308,4 +349,8 @@ public class DistanceMatrix extends Matrix.AbstractMatrix implements TaxonList {
     private double[][] distances = null;
     protected PatternList patterns = null;
     private TaxonList taxa = null;
+
+    private static final int TILE_SIZE = 32;
+    private int threadCount = SharedThreadPool.getThreadCount();
+    private volatile PackedPatterns packedPatterns = null;
 }
@@ -81,35 +81,14 @@ public class F84DistanceMatrix extends DistanceMatrix
 	 * Calculate a pairwise distance
 	 */
 	protected double calculatePairwiseDistance(int taxon1, int taxon2) {
-		int state1, state2;
-		
-		int n = patterns.getPatternCount();
-		double weight, distance;
-		double sumTs = 0.0;
-		double sumTv = 0.0;
-		double sumWeight = 0.0;
-		
-		int[] pattern;
-		
-		for (int i = 0; i < n; i++) {
-			pattern = patterns.getPattern(i);
-			
-			state1 = pattern[taxon1];
-			state2 = pattern[taxon2];
-			
-			weight = patterns.getPatternWeight(i);
-			if (!dataType.isAmbiguousState(state1) && !dataType.isAmbiguousState(state2) && state1 != state2) {
+		double distance;
 
-				if ((state1 == 0 && state2 == 2) || (state1 == 2 && state2 == 0)) { 
-					// it's a transition
-					sumTs += weight;
-				} else {
-					// it's a transversion
-					sumTv += weight;
-				}
-			}
-			sumWeight += weight;
-		}
+		PackedPatterns packed = getPackedPatterns();
+
+		// a transition is counted between A and G
+		double sumTs = packed.getChangeWeight(taxon1, taxon2, 0, 2);
+		double sumTv = packed.getMismatchWeight(taxon1, taxon2) - sumTs;
+		double sumWeight = packed.getTotalWeight();
 		
 		double P = sumTs / sumWeight;
 		double Q = sumTv / sumWeight;
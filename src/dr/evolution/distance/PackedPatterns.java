@@ -0,0 +1,183 @@
+/*
+ * PackedPatterns.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.distance;
+
+import dr.evolution.alignment.PatternList;
+import dr.evolution.datatype.DataType;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The states of a pattern list packed as bits so that pairs of taxa can be compared 64 patterns
+ * at a time. Each taxon has a bit plane for each state, with a bit set where the taxon has that
+ * state, and a plane marking the patterns where the state is known (i.e., not ambiguous). The
+ * planes for each word of patterns are stored together.
+ *
+ * Patterns with the same weight are packed into the same run of words so a whole run can be
+ * counted before applying the weight. With integer weights the sums are exactly those of a
+ * pattern-by-pattern loop.
+ *
+ * Once constructed this is read only so can be shared between threads.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class PackedPatterns {
+
+    public PackedPatterns(PatternList patterns) {
+        DataType dataType = patterns.getDataType();
+
+        taxonCount = patterns.getTaxonCount();
+        stateCount = patterns.getStateCount();
+
+        Map<Double, List<Integer>> weightClasses = new LinkedHashMap<Double, List<Integer>>();
+        double totalWeight = 0.0;
+        for (int i = 0; i < patterns.getPatternCount(); i++) {
+            double weight = patterns.getPatternWeight(i);
+            List<Integer> weightClass = weightClasses.get(weight);
+            if (weightClass == null) {
+                weightClass = new ArrayList<Integer>();
+                weightClasses.put(weight, weightClass);
+            }
+            weightClass.add(i);
+            totalWeight += weight;
+        }
+        this.totalWeight = totalWeight;
+
+        classWeights = new double[weightClasses.size()];
+        classEnds = new int[weightClasses.size()];
+
+        int wordCount = 0;
+        int c = 0;
+        for (Map.Entry<Double, List<Integer>> entry : weightClasses.entrySet()) {
+            classWeights[c] = entry.getKey();
+            wordCount += (entry.getValue().size() + 63) >>> 6;
+            classEnds[c] = wordCount;
+            c++;
+        }
+        this.wordCount = wordCount;
+
+        known = new long[taxonCount][wordCount];
+        states = new long[taxonCount][wordCount * stateCount];
+
+        int firstWord = 0;
+        c = 0;
+        for (List<Integer> weightClass : weightClasses.values()) {
+            for (int i = 0; i < weightClass.size(); i++) {
+                int word = firstWord + (i >>> 6);
+                long bit = 1L << (i & 63);
+                int[] pattern = patterns.getPattern(weightClass.get(i));
+                for (int j = 0; j < taxonCount; j++) {
+                    int state = pattern[j];
+                    if (state < stateCount && !dataType.isAmbiguousState(state)) {
+                        known[j][word] |= bit;
+                        states[j][word * stateCount + state] |= bit;
+                    }
+                }
+            }
+            firstWord = classEnds[c];
+            c++;
+        }
+    }
+
+    public int getTaxonCount() {
+        return taxonCount;
+    }
+
+    /**
+     * @return the number of bytes of packed states for each taxon
+     */
+    public int getBytesPerTaxon() {
+        return wordCount * (stateCount + 1) * 8;
+    }
+
+    /**
+     * @return the summed weight of all the patterns, including those with ambiguous states
+     */
+    public double getTotalWeight() {
+        return totalWeight;
+    }
+
+    /**
+     * @return the summed weight of the patterns where both taxa have known but different states
+     */
+    public double getMismatchWeight(int taxon1, int taxon2) {
+        final long[] known1 = known[taxon1];
+        final long[] known2 = known[taxon2];
+        final long[] states1 = states[taxon1];
+        final long[] states2 = states[taxon2];
+
+        double sum = 0.0;
+        int word = 0;
+        for (int c = 0; c < classWeights.length; c++) {
+            long count = 0;
+            for (; word < classEnds[c]; word++) {
+                long same = 0L;
+                for (int k = word * stateCount, end = k + stateCount; k < end; k++) {
+                    same |= states1[k] & states2[k];
+                }
+                count += Long.bitCount(known1[word] & known2[word] & ~same);
+            }
+            sum += count * classWeights[c];
+        }
+        return sum;
+    }
+
+    /**
+     * @return the summed weight of the patterns where one taxon has state1 and the other state2
+     */
+    public double getChangeWeight(int taxon1, int taxon2, int state1, int state2) {
+        final long[] states1 = states[taxon1];
+        final long[] states2 = states[taxon2];
+
+        double sum = 0.0;
+        int word = 0;
+        for (int c = 0; c < classWeights.length; c++) {
+            long count = 0;
+            for (; word < classEnds[c]; word++) {
+                int k = word * stateCount;
+                count += Long.bitCount((states1[k + state1] & states2[k + state2]) |
+                        (states1[k + state2] & states2[k + state1]));
+            }
+            sum += count * classWeights[c];
+        }
+        return sum;
+    }
+
+    private final int taxonCount;
+    private final int stateCount;
+    private final int wordCount;
+    private final double totalWeight;
+
+    private final double[] classWeights;
+    private final int[] classEnds;
+
+    private final long[][] known;
+    private final long[][] states;
+}
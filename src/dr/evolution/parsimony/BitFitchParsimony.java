@@ -0,0 +1,398 @@
+/*
+ * BitFitchParsimony.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.parsimony;
+
+import dr.evolution.alignment.PatternList;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.tree.TreeUtils;
+
+/**
+ * Fitch parsimony with the state sets stored as bit planes so that 64 patterns are processed
+ * with each machine word operation (one plane of words per state so any data type works but
+ * it is fastest for binary and nucleotide data).
+ *
+ * The state sets of each node are kept between calls. If the tree is the same object as the
+ * last call then only nodes whose children have changed (e.g., after an NNI or SPR move) or
+ * whose children's state sets have changed are recalculated, stopping as soon as a node's
+ * state sets are unchanged. The results are the same as FitchParsimony.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class BitFitchParsimony implements ParsimonyCriterion {
+
+    public BitFitchParsimony(PatternList patterns, boolean gapsAreStates) {
+        if (patterns == null) {
+            throw new IllegalArgumentException("The patterns cannot be null");
+        }
+
+        this.patterns = patterns;
+        this.gapsAreStates = gapsAreStates;
+        this.stateCount = patterns.getDataType().getStateCount() + (gapsAreStates ? 1 : 0);
+        this.patternCount = patterns.getPatternCount();
+        this.wordCount = (patternCount + 63) / 64;
+        this.setLength = stateCount * wordCount;
+
+        weights = patterns.getPatternWeights();
+        boolean equal = true;
+        for (double weight : weights) {
+            equal = equal && weight == weights[0];
+        }
+        equalWeights = equal;
+
+        lastWordMask = (patternCount % 64 == 0 ? -1L : (1L << (patternCount % 64)) - 1);
+
+        siteScores = new double[patternCount];
+        intersection = new long[stateCount];
+        union = new long[stateCount];
+    }
+
+    public PatternList getPatterns() {
+        return patterns;
+    }
+
+    /**
+     * Sets up the state sets at the tips of the tree (if the tree is a different object
+     * from the last one this is done automatically).
+     */
+    public void initialize(Tree tree) {
+        this.tree = tree;
+
+        int nodeCount = tree.getNodeCount();
+        stateSets = new long[nodeCount][setLength];
+        changes = new long[nodeCount][];
+        nodeScores = new double[nodeCount];
+        childNumbers = new int[nodeCount][];
+        isValid = new boolean[nodeCount];
+        isUpdated = new boolean[nodeCount];
+        nodeStack = new NodeRef[nodeCount];
+        childIndices = new int[nodeCount];
+        states = null;
+
+        for (int j = 0; j < tree.getExternalNodeCount(); j++) {
+            NodeRef node = tree.getExternalNode(j);
+            int taxonIndex = patterns.getTaxonIndex(tree.getNodeTaxon(node).getId());
+            if (taxonIndex < 0) {
+                throw new IllegalArgumentException("The taxon, " + tree.getNodeTaxon(node).getId() + ", is not in the patterns");
+            }
+            long[] stateSet = stateSets[node.getNumber()];
+            for (int i = 0; i < patternCount; i++) {
+                int state = patterns.getPatternState(taxonIndex, i);
+                long bit = 1L << (i & 63);
+                int word = i >> 6;
+                if (gapsAreStates && patterns.getDataType().isGapState(state)) {
+                    stateSet[(stateCount - 1) * wordCount + word] |= bit;
+                } else {
+                    boolean[] set = patterns.getDataType().getStateSet(state);
+                    for (int k = 0; k < set.length; k++) {
+                        if (set[k]) {
+                            stateSet[k * wordCount + word] |= bit;
+                        }
+                    }
+                }
+            }
+            isValid[node.getNumber()] = true;
+        }
+    }
+
+    /**
+     * Brings the state sets up to date with the tree, recalculating only the nodes that
+     * have changed. This is a non-recursive postorder traversal so it works on very large trees.
+     */
+    public void update(Tree tree) {
+        if (tree == null) {
+            throw new IllegalArgumentException("The tree cannot be null");
+        }
+        if (this.tree != tree || stateSets.length != tree.getNodeCount()) {
+            initialize(tree);
+        }
+
+        double score = 0.0;
+        isRecalculated = false;
+
+        int top = 0;
+        nodeStack[0] = tree.getRoot();
+        childIndices[0] = 0;
+        while (top >= 0) {
+            NodeRef node = nodeStack[top];
+            if (childIndices[top] < tree.getChildCount(node)) {
+                NodeRef child = tree.getChild(node, childIndices[top]);
+                childIndices[top]++;
+                top++;
+                nodeStack[top] = child;
+                childIndices[top] = 0;
+            } else {
+                top--;
+                int number = node.getNumber();
+                if (tree.isExternal(node)) {
+                    isUpdated[number] = false;
+                } else {
+                    isUpdated[number] = updateNode(tree, node);
+                    score += nodeScores[number];
+                }
+            }
+        }
+
+        this.score = score;
+        if (isRecalculated) {
+            // the steps or the topology may have changed even if the state sets haven't
+            hasSiteScores = false;
+            hasReconstructedStates = false;
+        }
+    }
+
+    /**
+     * Recalculates the state sets of an internal node if it has new children or any of its
+     * children have been updated.
+     *
+     * @return true if the state sets have changed
+     */
+    private boolean updateNode(Tree tree, NodeRef node) {
+        int number = node.getNumber();
+        int childCount = tree.getChildCount(node);
+
+        boolean needsUpdate = !isValid[number];
+        if (childNumbers[number] == null || childNumbers[number].length != childCount) {
+            childNumbers[number] = new int[childCount];
+            needsUpdate = true;
+        }
+        for (int c = 0; c < childCount; c++) {
+            int childNumber = tree.getChild(node, c).getNumber();
+            if (childNumbers[number][c] != childNumber || isUpdated[childNumber]) {
+                childNumbers[number][c] = childNumber;
+                needsUpdate = true;
+            }
+        }
+        if (!needsUpdate) {
+            return false;
+        }
+
+        isRecalculated = true;
+
+        if (changes[number] == null) {
+            changes[number] = new long[wordCount];
+        }
+
+        long[] stateSet = stateSets[number];
+        long[] change = changes[number];
+        boolean isChanged = !isValid[number];
+        double nodeScore = 0.0;
+
+        for (int w = 0; w < wordCount; w++) {
+            long[] first = stateSets[childNumbers[number][0]];
+            for (int k = 0; k < stateCount; k++) {
+                intersection[k] = first[k * wordCount + w];
+                union[k] = intersection[k];
+            }
+            for (int c = 1; c < childCount; c++) {
+                long[] other = stateSets[childNumbers[number][c]];
+                for (int k = 0; k < stateCount; k++) {
+                    intersection[k] &= other[k * wordCount + w];
+                    union[k] |= other[k * wordCount + w];
+                }
+            }
+
+            // the patterns with a non-empty intersection take it, the others take the union and score a step
+            long any = 0L;
+            for (int k = 0; k < stateCount; k++) {
+                any |= intersection[k];
+            }
+            long step = ~any & (w == wordCount - 1 ? lastWordMask : -1L);
+
+            for (int k = 0; k < stateCount; k++) {
+                long set = intersection[k] | (union[k] & step);
+                if (set != stateSet[k * wordCount + w]) {
+                    stateSet[k * wordCount + w] = set;
+                    isChanged = true;
+                }
+            }
+            change[w] = step;
+
+            if (equalWeights) {
+                nodeScore += Long.bitCount(step);
+            } else {
+                while (step != 0L) {
+                    nodeScore += weights[(w << 6) + Long.numberOfTrailingZeros(step)];
+                    step &= step - 1;
+                }
+            }
+        }
+
+        nodeScores[number] = (equalWeights && weights.length > 0 ? nodeScore * weights[0] : nodeScore);
+        isValid[number] = true;
+
+        return isChanged;
+    }
+
+    /**
+     * @return the number of steps for each site pattern
+     */
+    public double[] getSiteScores(Tree tree) {
+        update(tree);
+
+        if (!hasSiteScores) {
+            for (int i = 0; i < patternCount; i++) {
+                siteScores[i] = 0.0;
+            }
+            for (int n = 0; n < tree.getInternalNodeCount(); n++) {
+                long[] change = changes[tree.getInternalNode(n).getNumber()];
+                for (int w = 0; w < wordCount; w++) {
+                    long step = change[w];
+                    while (step != 0L) {
+                        siteScores[(w << 6) + Long.numberOfTrailingZeros(step)] += 1.0;
+                        step &= step - 1;
+                    }
+                }
+            }
+            hasSiteScores = true;
+        }
+        return siteScores;
+    }
+
+    /**
+     * @return the weighted sum of the steps over the site patterns
+     */
+    public double getScore(Tree tree) {
+        update(tree);
+        return score;
+    }
+
+    /**
+     * Returns the Fitch state sets calculated for a node in the first (postorder) pass as an array
+     * of booleans for each pattern (for the root this is the set of most parsimonious states).
+     */
+    public boolean[][] getStateSets(Tree tree, NodeRef node) {
+        update(tree);
+        long[] stateSet = stateSets[node.getNumber()];
+        boolean[][] sets = new boolean[patternCount][stateCount];
+        for (int i = 0; i < patternCount; i++) {
+            for (int k = 0; k < stateCount; k++) {
+                sets[i][k] = (stateSet[k * wordCount + (i >> 6)] & (1L << (i & 63))) != 0L;
+            }
+        }
+        return sets;
+    }
+
+    /**
+     * Returns the reconstructed character states for a given node in the tree (choosing the
+     * parent's state if it is in the node's set or otherwise the lowest state in the set).
+     * As this is usually called for every node in turn, the tree is not checked for changes
+     * unless it is a new tree - update should be called when the tree has changed.
+     */
+    public int[] getStates(Tree tree, NodeRef node) {
+
+        if (this.tree != tree || !isValid[tree.getRoot().getNumber()]) {
+            update(tree);
+        }
+
+        if (!hasReconstructedStates) {
+            if (!TreeUtils.isBinary(tree)) {
+                throw new IllegalArgumentException("The Fitch algorithm can only reconstruct ancestral states on binary trees");
+            }
+            if (states == null) {
+                states = new int[tree.getNodeCount()][patternCount];
+            }
+            reconstructStates(tree);
+            hasReconstructedStates = true;
+        }
+
+        return states[node.getNumber()];
+    }
+
+    /**
+     * The second (preorder) pass of the Fitch algorithm.
+     */
+    private void reconstructStates(Tree tree) {
+        int top = 0;
+        nodeStack[0] = tree.getRoot();
+        while (top >= 0) {
+            NodeRef node = nodeStack[top];
+            top--;
+
+            NodeRef parent = tree.getParent(node);
+            int[] parentStates = (parent != null ? states[parent.getNumber()] : null);
+            long[] stateSet = stateSets[node.getNumber()];
+            int[] nodeStates = states[node.getNumber()];
+
+            for (int i = 0; i < patternCount; i++) {
+                int word = i >> 6;
+                long bit = 1L << (i & 63);
+                if (parentStates != null && (stateSet[parentStates[i] * wordCount + word] & bit) != 0L) {
+                    nodeStates[i] = parentStates[i];
+                } else {
+                    nodeStates[i] = -1;
+                    for (int k = 0; k < stateCount; k++) {
+                        if ((stateSet[k * wordCount + word] & bit) != 0L) {
+                            nodeStates[i] = k;
+                            break;
+                        }
+                    }
+                }
+            }
+
+            for (int c = tree.getChildCount(node) - 1; c >= 0; c--) {
+                top++;
+                nodeStack[top] = tree.getChild(node, c);
+            }
+        }
+    }
+
+    private final PatternList patterns;
+    private final boolean gapsAreStates;
+    private final int stateCount;
+    private final int patternCount;
+    private final int wordCount;
+    private final int setLength;
+    private final double[] weights;
+    private final boolean equalWeights;
+    private final long lastWordMask;
+
+    private Tree tree = null;
+
+    // the state sets of each node as a plane of words for each state
+    private long[][] stateSets = new long[0][];
+    // the patterns that score a step at each internal node
+    private long[][] changes;
+    private double[] nodeScores;
+    private int[][] childNumbers;
+    private boolean[] isValid;
+    private boolean[] isUpdated;
+    private boolean isRecalculated;
+
+    private NodeRef[] nodeStack;
+    private int[] childIndices;
+
+    private final long[] intersection;
+    private final long[] union;
+
+    private double score;
+    private final double[] siteScores;
+    private boolean hasSiteScores = false;
+
+    private int[][] states = null;
+    private boolean hasReconstructedStates = false;
+}
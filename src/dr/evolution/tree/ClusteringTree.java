@@ -27,6 +27,8 @@ package dr.evolution.tree;
 
 import dr.evolution.distance.DistanceMatrix;
 
+import java.util.Arrays;
+
 /**
  * An abstract base class for clustering algorithms from pairwise distances
  *
@@ -73,6 +75,15 @@ public abstract class ClusteringTree extends SimpleTree {
 	
 		return distance[alias[a]][alias[b]];
 	}
+
+	/**
+	 * @return the current index of the cluster held in the given row of the distance
+	 * matrix (the aliases stay in increasing order as clusters are joined)
+	 */
+	protected int getClusterIndex(int row) {
+
+		return Arrays.binarySearch(alias, 0, numClusters, row);
+	}
 	
 	protected void init(DistanceMatrix distanceMatrix) {
 	
@@ -55,40 +55,235 @@ public class NeighborJoiningTree extends ClusteringTree {
 	private double[] r;
 	private double scale, maxHeight;
 
+	// The pair to join is found with the bounds of rapid neighbour-joining (Simonsen, Mailund
+	// & Pedersen 2008). Each cluster has a row of the distances to the clusters that existed
+	// when it was created, sorted in increasing order, so each pair is in the row of the later
+	// of the two. A row is scanned until the remaining distances can't give a better pair than
+	// the best so far, given the largest r of any cluster.
+	private int[] rowCluster;
+	private int[] clusterRow;
+	private double[][] sortedDistances;
+	private int[][] sortedClusters;
+	private int[] sortedLength;
+	private int[] joinedCount;
+	private int nextCluster;
+
 	protected void init(DistanceMatrix distanceMatrix) {
 	
 		super.init(distanceMatrix);
 
-		r = new double[numClusters];
+		int n = numClusters;
+
+		r = new double[n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				r[i] += distance[i][j];
+			}
+		}
 		maxHeight = 0.0;
+
+		rowCluster = new int[n];
+		clusterRow = new int[2 * n - 1];
+		sortedDistances = new double[2 * n - 1][];
+		sortedClusters = new int[2 * n - 1][];
+		sortedLength = new int[2 * n - 1];
+		joinedCount = new int[2 * n - 1];
+
+		for (int i = 0; i < n; i++) {
+			rowCluster[i] = i;
+			clusterRow[i] = i;
+
+			sortedDistances[i] = new double[i];
+			sortedClusters[i] = new int[i];
+			for (int j = 0; j < i; j++) {
+				sortedDistances[i][j] = distance[i][j];
+				sortedClusters[i][j] = j;
+			}
+			sortedLength[i] = i;
+			sort(sortedDistances[i], sortedClusters[i], 0, i - 1);
+		}
+		nextCluster = n;
 	}
 
 	protected void findNextPair() {
-	
-		for (int i = 0; i < numClusters; i++) {
-			r[i] = 0;
-			for (int j = 0; j < numClusters; j++) {
-				r[i] += getDist(i,j);
+
+		if (numClusters < 3) {
+			return;
+		}
+
+		double rMax = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < rowCluster.length; i++) {
+			if (rowCluster[i] >= 0 && r[i] > rMax) {
+				rMax = r[i];
 			}
 		}
 
-		besti = 0;
-		bestj = 1;
-		double smax = -1.0;
+		abi = -1;
+		abj = -1;
+		double smax = Double.NEGATIVE_INFINITY;
 		scale = 1.0/(numClusters-2);
-		for (int i = 0; i < numClusters-1; i++) {
-			for (int j = i+1; j < numClusters; j++) {
-				double sij = (r[i] + r[j] ) * scale - getDist(i, j);
-			
-				if (sij > smax) {
+		for (int i = 0; i < rowCluster.length; i++) {
+			int cluster = rowCluster[i];
+			if (cluster < 0) {
+				continue;
+			}
+
+			double[] distances = sortedDistances[cluster];
+			int[] clusters = sortedClusters[cluster];
+			double bound = (r[i] + rMax) * scale;
+
+			for (int k = 0; k < sortedLength[cluster]; k++) {
+				double dij = distances[k];
+				if (bound - dij < smax) {
+					break;
+				}
+
+				int j = clusterRow[clusters[k]];
+				if (j < 0) {
+					continue;
+				}
+
+				double sij = (r[i] + r[j]) * scale - dij;
+
+				// ties go to the first pair in the order of the matrix
+				int ai = Math.min(i, j);
+				int aj = Math.max(i, j);
+				if (sij > smax || (sij == smax && (ai < abi || (ai == abi && aj < abj)))) {
 					smax = sij;
-					besti = i;
-					bestj = j;
+					abi = ai;
+					abj = aj;
+				}
+			}
+		}
+		besti = getClusterIndex(abi);
+		bestj = getClusterIndex(abj);
+	}
+
+	protected void newCluster() {
+
+		int clusteri = rowCluster[abi];
+		int clusterj = rowCluster[abj];
+
+		for (int k = 0; k < rowCluster.length; k++) {
+			if (rowCluster[k] >= 0 && k != abi && k != abj) {
+				r[k] -= distance[k][abi] + distance[k][abj];
+			}
+		}
+
+		super.newCluster();
+
+		int cluster = nextCluster;
+		nextCluster++;
+
+		rowCluster[abi] = cluster;
+		rowCluster[abj] = -1;
+		clusterRow[cluster] = abi;
+		clusterRow[clusteri] = -1;
+		clusterRow[clusterj] = -1;
+		sortedDistances[clusteri] = null;
+		sortedClusters[clusteri] = null;
+		sortedDistances[clusterj] = null;
+		sortedClusters[clusterj] = null;
+
+		double[] distances = new double[numClusters - 1];
+		int[] clusters = new int[numClusters - 1];
+		int length = 0;
+		r[abi] = 0.0;
+		for (int k = 0; k < rowCluster.length; k++) {
+			if (rowCluster[k] >= 0 && k != abi) {
+				r[k] += distance[k][abi];
+				r[abi] += distance[abi][k];
+
+				distances[length] = distance[abi][k];
+				clusters[length] = rowCluster[k];
+				length++;
+
+				// the rows created after a joined cluster still hold it
+				int other = rowCluster[k];
+				if (other > clusteri) {
+					joinedCount[other]++;
+				}
+				if (other > clusterj) {
+					joinedCount[other]++;
+				}
+				if (joinedCount[other] * 2 > sortedLength[other]) {
+					compact(other);
 				}
 			}
 		}
-		abi = alias[besti];
-		abj = alias[bestj];
+		sort(distances, clusters, 0, length - 1);
+		sortedDistances[cluster] = distances;
+		sortedClusters[cluster] = clusters;
+		sortedLength[cluster] = length;
+	}
+
+	/**
+	 * removes the joined clusters from a row, keeping the order
+	 */
+	private void compact(int cluster) {
+
+		double[] distances = sortedDistances[cluster];
+		int[] clusters = sortedClusters[cluster];
+		int length = 0;
+		for (int k = 0; k < sortedLength[cluster]; k++) {
+			if (clusterRow[clusters[k]] >= 0) {
+				distances[length] = distances[k];
+				clusters[length] = clusters[k];
+				length++;
+			}
+		}
+		sortedLength[cluster] = length;
+		joinedCount[cluster] = 0;
+	}
+
+	/**
+	 * sorts the distances in increasing order, along with their clusters
+	 */
+	private static void sort(double[] distances, int[] clusters, int from, int to) {
+
+		while (to - from > 16) {
+			int mid = (from + to) >>> 1;
+			if (distances[mid] < distances[from]) swap(distances, clusters, mid, from);
+			if (distances[to] < distances[from]) swap(distances, clusters, to, from);
+			if (distances[to] < distances[mid]) swap(distances, clusters, to, mid);
+			double pivot = distances[mid];
+
+			int i = from;
+			int j = to;
+			while (i <= j) {
+				while (distances[i] < pivot) i++;
+				while (distances[j] > pivot) j--;
+				if (i <= j) {
+					swap(distances, clusters, i, j);
+					i++;
+					j--;
+				}
+			}
+
+			// recurse into the smaller part
+			if (j - from < to - i) {
+				sort(distances, clusters, from, j);
+				from = i;
+			} else {
+				sort(distances, clusters, i, to);
+				to = j;
+			}
+		}
+
+		for (int i = from + 1; i <= to; i++) {
+			for (int j = i; j > from && distances[j] < distances[j - 1]; j--) {
+				swap(distances, clusters, j, j - 1);
+			}
+		}
+	}
+
+	private static void swap(double[] distances, int[] clusters, int i, int j) {
+		double d = distances[i];
+		distances[i] = distances[j];
+		distances[j] = d;
+		int c = clusters[i];
+		clusters[i] = clusters[j];
+		clusters[j] = c;
 	}
 
 	protected void finish() {
@@ -132,8 +327,8 @@ public class NeighborJoiningTree extends ClusteringTree {
 	protected double newNodeHeight() {
 	
 		double dij = getDist(besti, bestj);
-		double li = (dij + (r[besti] - r[bestj]) * scale) * 0.5;
-		double lj = dij - li; // = (dij + (r[bestj]-r[besti])*scale)*0.5
+		double li = (dij + (r[abi] - r[abj]) * scale) * 0.5;
+		double lj = dij - li; // = (dij + (r[abj]-r[abi])*scale)*0.5
 
 		if (li < 0.0)
 			li = 0.0;
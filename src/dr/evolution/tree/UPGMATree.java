@@ -51,25 +51,74 @@ public class UPGMATree extends ClusteringTree {
 	// Protected and Private stuff
 	//
 
+	protected void init(DistanceMatrix distanceMatrix) {
+
+		super.init(distanceMatrix);
+
+		nearest = new int[numClusters];
+		nearestDistance = new double[numClusters];
+		for (int i = 0; i < numClusters; i++) {
+			updateNearest(i);
+		}
+	}
+
+	/**
+	 * Finds the closest pair from the nearest later cluster of each row, which picks the same
+	 * pair as searching the whole matrix in order.
+	 */
 	protected void findNextPair() {
-	
-		besti = 0;
-		bestj = 1;
-		double dmin = getDist(0, 1);
-		for (int i = 0; i < numClusters-1; i++) {
-		
-			for (int j = i+1; j < numClusters; j++) {
-			
-				if (getDist(i, j) < dmin) {
-				
-					dmin = getDist(i, j);
-					besti = i;
-					bestj = j;
+
+		if (numClusters < 2) {
+			return;
+		}
+
+		abi = -1;
+		for (int i = 0; i < nearest.length; i++) {
+
+			if (tipCount[i] > 0 && nearest[i] >= 0 &&
+					(abi < 0 || nearestDistance[i] < nearestDistance[abi])) {
+				abi = i;
+			}
+		}
+		abj = nearest[abi];
+		besti = getClusterIndex(abi);
+		bestj = getClusterIndex(abj);
+	}
+
+	/**
+	 * The new cluster can only be closer than the nearest cluster of the rows before it, so
+	 * only those and the rows whose nearest cluster was joined need updating.
+	 */
+	protected void newCluster() {
+
+		super.newCluster();
+
+		for (int k = 0; k < nearest.length; k++) {
+
+			if (tipCount[k] > 0 && k != abi) {
+
+				if (nearest[k] == abi || nearest[k] == abj) {
+					updateNearest(k);
+				} else if (k < abi && (nearest[k] < 0 || distance[k][abi] < nearestDistance[k] ||
+						(distance[k][abi] == nearestDistance[k] && abi < nearest[k]))) {
+					nearest[k] = abi;
+					nearestDistance[k] = distance[k][abi];
 				}
 			}
 		}
-		abi = alias[besti];
-		abj = alias[bestj];
+		updateNearest(abi);
+	}
+
+	private void updateNearest(int row) {
+
+		nearest[row] = -1;
+		for (int k = row + 1; k < nearest.length; k++) {
+
+			if (tipCount[k] > 0 && (nearest[row] < 0 || distance[row][k] < nearestDistance[row])) {
+				nearest[row] = k;
+				nearestDistance[row] = distance[row][k];
+			}
+		}
 	}
 
 	protected double newNodeHeight() {
@@ -90,4 +139,8 @@ public class UPGMATree extends ClusteringTree {
 		return 	(((double)tipCount[ai]) / tipSum) * getDist(k, i) +
 				(((double)tipCount[aj]) / tipSum) * getDist(k, j);
 	}
+
+	// the closest cluster in a later row of the distance matrix for each row
+	private int[] nearest;
+	private double[] nearestDistance;
 }
@@ -86,36 +86,35 @@ public class BranchScoreMetric implements TreeMetric {
         Collections.sort(clades1);
         Collections.sort(clades2);
         double distance = 0.0;
-        int indexClade2 = 0;
-        Clade clade2 = null;
-        Clade parent1, parent2 = null;
+        int index1 = 0;
+        int index2 = 0;
         double height1, height2;
 
-        for (Clade clade1 : clades1) {
-
-            parent1 = findParent(clade1, clades1);
-            height1 = parent1.getHeight() - clade1.getHeight();
-
-            if (indexClade2 < clades2.size()) {
-                clade2 = clades2.get(indexClade2);
-                parent2 = findParent(clade2, clades2);
+        // merge the sorted clades: a clade missing from one tree has a branch length of
+        // zero in that tree
+        while (index1 < clades1.size() || index2 < clades2.size()) {
+            int c;
+            if (index1 == clades1.size()) {
+                c = 1;
+            } else if (index2 == clades2.size()) {
+                c = -1;
+            } else {
+                c = clades1.get(index1).compareTo(clades2.get(index2));
             }
-            while (clade1.compareTo(clade2) > 0 && indexClade2 < clades2.size()) {
-                height2 = parent2.getHeight() - clade2.getHeight();
-                distance += height2 * height2;
-                indexClade2++;
-                if (indexClade2 < clades2.size()) {
-                    clade2 = clades2.get(indexClade2);
-                    parent2 = findParent(clade2, clades2);
-                }
+
+            height1 = 0.0;
+            height2 = 0.0;
+            if (c <= 0) {
+                Clade clade1 = clades1.get(index1);
+                height1 = findParent(clade1, clades1).getHeight() - clade1.getHeight();
+                index1++;
             }
-            if (clade1.compareTo(clade2) == 0) {
-                height2 = parent2.getHeight() - clade2.getHeight();
-                distance += (height1 - height2) * (height1 - height2);
-                indexClade2++;
-            } else {
-                distance += height1 * height1;
+            if (c >= 0) {
+                Clade clade2 = clades2.get(index2);
+                height2 = findParent(clade2, clades2).getHeight() - clade2.getHeight();
+                index2++;
             }
+            distance += (height1 - height2) * (height1 - height2);
         }
 
         return Math.sqrt(distance);
@@ -112,15 +112,19 @@ public class CladeHeightMetric implements TreeMetric {
 	    return Math.sqrt(distance);
 	}
 
+	/**
+	 * @return the smallest clade containing all the taxa of clade1
+	 */
 	private Clade findMRCA(Clade clade1, Set<Clade> clades) {
 
+	    Clade mrca = null;
 	    for (Clade clade2 : clades) {
-	        if (isMRCA(clade1, clade2)) {
-	            return clade2;
+	        if (isMRCA(clade1, clade2) && (mrca == null || clade2.getSize() < mrca.getSize())) {
+	            mrca = clade2;
 	        }
 	    }
 
-	    return null;
+	    return mrca;
 	}
 
 	private boolean isMRCA(Clade clade1, Clade clade2) {
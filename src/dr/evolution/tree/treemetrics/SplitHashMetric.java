@@ -0,0 +1,90 @@
+/*
+ * SplitHashMetric.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.tree.treemetrics;
+
+import dr.evolution.tree.Tree;
+
+/**
+ * The Robinson-Foulds, branch score and clade height metrics calculated from clade hashes
+ * (see SplitHashTree). The taxa are matched by name rather than by node number. The first
+ * tree of each comparison is cached so comparing many trees to a focal tree only encodes the
+ * focal tree once.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class SplitHashMetric implements TreeMetric {
+
+    public SplitHashMetric(Type type) {
+        if (!SplitHashTree.isSupported(type)) {
+            throw new IllegalArgumentException("The " + type + " metric can't be calculated from clade hashes");
+        }
+        this.type = type;
+    }
+
+    @Override
+    public double getMetric(Tree tree1, Tree tree2) {
+        return getEncodedTree(tree1).getDistance(encode(tree2), type);
+    }
+
+    private synchronized SplitHashTree getEncodedTree(Tree tree) {
+        if (tree != focalTree) {
+            if (encoder == null) {
+                encoder = new SplitHashTree.Encoder(tree);
+            }
+            focalTree = tree;
+            encodedFocalTree = encoder.encode(tree);
+        }
+        return encodedFocalTree;
+    }
+
+    /**
+     * Encodes a tree for use with SplitHashTree.getDistanceMatrix. The taxa are taken from the
+     * first tree compared or encoded.
+     */
+    public synchronized SplitHashTree encode(Tree tree) {
+        if (encoder == null) {
+            encoder = new SplitHashTree.Encoder(tree);
+        }
+        return encoder.encode(tree);
+    }
+
+    @Override
+    public Type getType() {
+        return type;
+    }
+
+    @Override
+    public String toString() {
+        return getType().getShortName();
+    }
+
+    private final Type type;
+
+    private SplitHashTree.Encoder encoder = null;
+    private Tree focalTree = null;
+    private SplitHashTree encodedFocalTree = null;
+}
@@ -0,0 +1,475 @@
+/*
+ * SplitHashTree.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.tree.treemetrics;
+
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.TaxonList;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A tree encoded once for fast comparison with other trees on the same taxa. Each clade
+ * (the set of tips below an internal node) is represented by a 128 bit hash: the exclusive-or
+ * of a pair of random 64 bit numbers given to each taxon. The clades are held as arrays sorted
+ * by hash so that the clades shared by two trees can be found by a single merge of the
+ * arrays rather than building and intersecting sets of Clade objects. The node heights and
+ * parents are kept as primitive arrays so the MRCA of a clade in the other tree can be found
+ * for the clade height metric.
+ *
+ * Distances between all pairs of a list of trees can be computed in parallel blocks for
+ * tree space visualisation.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class SplitHashTree {
+
+    private static final int BLOCK_SIZE = 64;
+
+    /**
+     * Gives the random hashes to the taxa. All the trees to be compared must be encoded with
+     * the same encoder.
+     */
+    public static class Encoder {
+
+        public Encoder(TaxonList taxa) {
+            // a fixed seed so the encoding doesn't depend on (or disturb) the global random number generator
+            Random random = new Random(taxa.getTaxonCount());
+            taxonCount = taxa.getTaxonCount();
+            taxonHashes = new long[taxonCount * 2];
+            for (int i = 0; i < taxonCount; i++) {
+                taxonIndices.put(taxa.getTaxonId(i), i);
+                taxonHashes[i * 2] = random.nextLong();
+                taxonHashes[i * 2 + 1] = random.nextLong();
+            }
+        }
+
+        public SplitHashTree encode(Tree tree) {
+            if (tree.getExternalNodeCount() != taxonCount) {
+                throw new IllegalArgumentException("Different number of taxa in both trees.");
+            }
+            return new SplitHashTree(tree, this);
+        }
+
+        int getTaxonIndex(String id) {
+            Integer index = taxonIndices.get(id);
+            if (index == null) {
+                throw new IllegalArgumentException("Mismatch between taxa in both trees: " + id + " is not in the first tree");
+            }
+            return index;
+        }
+
+        private final int taxonCount;
+        private final long[] taxonHashes;
+        private final Map<String, Integer> taxonIndices = new HashMap<String, Integer>();
+    }
+
+    private SplitHashTree(Tree tree, Encoder encoder) {
+        this.encoder = encoder;
+
+        int n = tree.getNodeCount();
+        parents = new int[n];
+        children = new int[n][];
+        heights = new double[n];
+        depths = new int[n];
+        nodeTaxa = new int[n];
+        taxonNodes = new int[encoder.taxonCount];
+        Arrays.fill(taxonNodes, -1);
+
+        internalNodeCount = tree.getInternalNodeCount();
+        splitHashes = new long[internalNodeCount * 2];
+        splitNodes = new int[internalNodeCount];
+
+        long[] hash = new long[2];
+        encode(tree, tree.getRoot(), 0, hash);
+        if (nodeCount != n) {
+            throw new IllegalArgumentException("Tree has unconnected nodes");
+        }
+
+        sortSplits(0, internalNodeCount - 1);
+    }
+
+    /**
+     * Numbers the nodes in post-order and calculates the hash of each clade.
+     *
+     * @return the number given to the node
+     */
+    private int encode(Tree tree, NodeRef node, int depth, long[] hash) {
+        int[] childNumbers = new int[tree.getChildCount(node)];
+        long hi = 0;
+        long lo = 0;
+
+        if (tree.isExternal(node)) {
+            int taxon = encoder.getTaxonIndex(tree.getNodeTaxon(node).getId());
+            if (taxonNodes[taxon] != -1) {
+                throw new IllegalArgumentException("Taxon, " + tree.getNodeTaxon(node).getId() + ", occurs twice in the tree");
+            }
+            hi = encoder.taxonHashes[taxon * 2];
+            lo = encoder.taxonHashes[taxon * 2 + 1];
+            int number = nodeCount;
+            taxonNodes[taxon] = number;
+            nodeTaxa[number] = taxon;
+            setNode(number, node, tree, depth, childNumbers);
+            nodeCount++;
+            hash[0] = hi;
+            hash[1] = lo;
+            return number;
+        }
+
+        for (int i = 0; i < childNumbers.length; i++) {
+            childNumbers[i] = encode(tree, tree.getChild(node, i), depth + 1, hash);
+            hi ^= hash[0];
+            lo ^= hash[1];
+        }
+
+        int number = nodeCount;
+        for (int child : childNumbers) {
+            parents[child] = number;
+        }
+        nodeTaxa[number] = -1;
+        setNode(number, node, tree, depth, childNumbers);
+        nodeCount++;
+
+        splitHashes[splitCount * 2] = hi;
+        splitHashes[splitCount * 2 + 1] = lo;
+        splitNodes[splitCount] = number;
+        splitCount++;
+
+        hash[0] = hi;
+        hash[1] = lo;
+        return number;
+    }
+
+    private void setNode(int number, NodeRef node, Tree tree, int depth, int[] childNumbers) {
+        // the parent is set when the parent node is numbered
+        parents[number] = -1;
+        children[number] = childNumbers;
+        heights[number] = tree.getNodeHeight(node);
+        depths[number] = depth;
+    }
+
+    private void sortSplits(int left, int right) {
+        while (left < right) {
+            int pivot = (left + right) >>> 1;
+            long pivotHi = splitHashes[pivot * 2];
+            long pivotLo = splitHashes[pivot * 2 + 1];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (compare(splitHashes[i * 2], splitHashes[i * 2 + 1], pivotHi, pivotLo) < 0) {
+                    i++;
+                }
+                while (compare(splitHashes[j * 2], splitHashes[j * 2 + 1], pivotHi, pivotLo) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swapSplits(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            // recurse into the smaller part to bound the stack depth
+            if (j - left < right - i) {
+                sortSplits(left, j);
+                left = i;
+            } else {
+                sortSplits(i, right);
+                right = j;
+            }
+        }
+    }
+
+    private void swapSplits(int i, int j) {
+        long hi = splitHashes[i * 2];
+        long lo = splitHashes[i * 2 + 1];
+        splitHashes[i * 2] = splitHashes[j * 2];
+        splitHashes[i * 2 + 1] = splitHashes[j * 2 + 1];
+        splitHashes[j * 2] = hi;
+        splitHashes[j * 2 + 1] = lo;
+        int node = splitNodes[i];
+        splitNodes[i] = splitNodes[j];
+        splitNodes[j] = node;
+    }
+
+    private static int compare(long hi1, long lo1, long hi2, long lo2) {
+        if (hi1 != hi2) {
+            return hi1 < hi2 ? -1 : 1;
+        }
+        return lo1 < lo2 ? -1 : (lo1 > lo2 ? 1 : 0);
+    }
+
+    private double getBranchLength(int node) {
+        return parents[node] == -1 ? 0.0 : heights[parents[node]] - heights[node];
+    }
+
+    private void checkEncoder(SplitHashTree other) {
+        if (other.encoder != encoder) {
+            throw new IllegalArgumentException("Trees must be encoded with the same encoder to be compared");
+        }
+    }
+
+    /**
+     * @return the number of clades in this tree that are not in the other (as RobinsonFouldsMetric)
+     */
+    public double getRobinsonFoulds(SplitHashTree other) {
+        checkEncoder(other);
+        int shared = 0;
+        int i = 0;
+        int j = 0;
+        while (i < splitCount && j < other.splitCount) {
+            int c = compare(splitHashes[i * 2], splitHashes[i * 2 + 1], other.splitHashes[j * 2], other.splitHashes[j * 2 + 1]);
+            if (c == 0) {
+                shared++;
+                i++;
+                j++;
+            } else if (c < 0) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return splitCount - shared;
+    }
+
+    /**
+     * @return the branch score over the clades of both trees (clades missing from one tree
+     *         have a branch length of zero in that tree)
+     */
+    public double getBranchScore(SplitHashTree other) {
+        checkEncoder(other);
+        return Math.sqrt(getInternalBranchScore(other));
+    }
+
+    /**
+     * @return the branch score including the external branches (as RootedBranchScoreMetric)
+     */
+    public double getRootedBranchScore(SplitHashTree other) {
+        checkEncoder(other);
+        double distance = getInternalBranchScore(other);
+        for (int taxon = 0; taxon < taxonNodes.length; taxon++) {
+            double diff = getBranchLength(taxonNodes[taxon]) - other.getBranchLength(other.taxonNodes[taxon]);
+            distance += diff * diff;
+        }
+        return Math.sqrt(distance);
+    }
+
+    private double getInternalBranchScore(SplitHashTree other) {
+        double distance = 0.0;
+        int i = 0;
+        int j = 0;
+        while (i < splitCount || j < other.splitCount) {
+            int c;
+            if (i == splitCount) {
+                c = 1;
+            } else if (j == other.splitCount) {
+                c = -1;
+            } else {
+                c = compare(splitHashes[i * 2], splitHashes[i * 2 + 1], other.splitHashes[j * 2], other.splitHashes[j * 2 + 1]);
+            }
+            double diff;
+            if (c == 0) {
+                diff = getBranchLength(splitNodes[i]) - other.getBranchLength(other.splitNodes[j]);
+                i++;
+                j++;
+            } else if (c < 0) {
+                diff = getBranchLength(splitNodes[i]);
+                i++;
+            } else {
+                diff = other.getBranchLength(other.splitNodes[j]);
+                j++;
+            }
+            distance += diff * diff;
+        }
+        return distance;
+    }
+
+    /**
+     * @return the clade height distance: for each clade in either tree, the difference between
+     *         its height and that of the MRCA of its taxa in the other tree (see CladeHeightMetric)
+     */
+    public double getCladeHeightDistance(SplitHashTree other) {
+        checkEncoder(other);
+
+        // the shared clades are found by merging, the MRCAs of the others are found from
+        // those of their children
+        int[] mrcas = new int[nodeCount];
+        int[] otherMrcas = new int[other.nodeCount];
+        Arrays.fill(mrcas, -1);
+        Arrays.fill(otherMrcas, -1);
+        int i = 0;
+        int j = 0;
+        while (i < splitCount && j < other.splitCount) {
+            int c = compare(splitHashes[i * 2], splitHashes[i * 2 + 1], other.splitHashes[j * 2], other.splitHashes[j * 2 + 1]);
+            if (c == 0) {
+                mrcas[splitNodes[i]] = other.splitNodes[j];
+                otherMrcas[other.splitNodes[j]] = splitNodes[i];
+                i++;
+                j++;
+            } else if (c < 0) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+
+        return Math.sqrt(getCladeHeightDistance(other, mrcas) + other.getCladeHeightDistance(this, otherMrcas));
+    }
+
+    private double getCladeHeightDistance(SplitHashTree other, int[] mrcas) {
+        double distance = 0.0;
+        // the nodes are numbered in post-order so the children are always done first
+        for (int node = 0; node < nodeCount; node++) {
+            if (nodeTaxa[node] != -1) {
+                mrcas[node] = other.taxonNodes[nodeTaxa[node]];
+            } else {
+                if (mrcas[node] == -1) {
+                    int mrca = mrcas[children[node][0]];
+                    for (int k = 1; k < children[node].length; k++) {
+                        mrca = other.getCommonAncestor(mrca, mrcas[children[node][k]]);
+                    }
+                    mrcas[node] = mrca;
+                }
+                double diff = heights[node] - other.heights[mrcas[node]];
+                distance += diff * diff;
+            }
+        }
+        return distance;
+    }
+
+    private int getCommonAncestor(int node1, int node2) {
+        while (depths[node1] > depths[node2]) {
+            node1 = parents[node1];
+        }
+        while (depths[node2] > depths[node1]) {
+            node2 = parents[node2];
+        }
+        while (node1 != node2) {
+            node1 = parents[node1];
+            node2 = parents[node2];
+        }
+        return node1;
+    }
+
+    public double getDistance(SplitHashTree other, TreeMetric.Type type) {
+        switch (type) {
+            case ROBINSON_FOULDS:
+                return getRobinsonFoulds(other);
+            case BRANCH_SCORE:
+                return getBranchScore(other);
+            case ROOTED_BRANCH_SCORE:
+                return getRootedBranchScore(other);
+            case CLADE_HEIGHT:
+                return getCladeHeightDistance(other);
+            default:
+                throw new IllegalArgumentException("The " + type + " metric can't be calculated from clade hashes");
+        }
+    }
+
+    public static boolean isSupported(TreeMetric.Type type) {
+        return type == TreeMetric.Type.ROBINSON_FOULDS || type == TreeMetric.Type.BRANCH_SCORE ||
+                type == TreeMetric.Type.ROOTED_BRANCH_SCORE || type == TreeMetric.Type.CLADE_HEIGHT;
+    }
+
+    /**
+     * Calculates the distances between all pairs of trees. The lower triangle of the matrix is
+     * divided into square blocks which are calculated by a pool of threads.
+     *
+     * @param trees       the trees (all encoded with the same encoder)
+     * @param type        the metric
+     * @param threadCount the number of threads
+     * @return the lower triangle of the distance matrix: element [i][j] (for j < i) is the
+     *         distance from tree i to tree j.
+     */
+    public static double[][] getDistanceMatrix(final List<SplitHashTree> trees, final TreeMetric.Type type, int threadCount) {
+        if (!isSupported(type)) {
+            throw new IllegalArgumentException("The " + type + " metric can't be calculated from clade hashes");
+        }
+
+        final int n = trees.size();
+        final double[][] distances = new double[n][];
+        for (int i = 0; i < n; i++) {
+            distances[i] = new double[i];
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threadCount));
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int rowStart = 0; rowStart < n; rowStart += BLOCK_SIZE) {
+            for (int columnStart = 0; columnStart <= rowStart; columnStart += BLOCK_SIZE) {
+                final int rowStart1 = rowStart;
+                final int columnStart1 = columnStart;
+                futures.add(pool.submit(new Runnable() {
+                    public void run() {
+                        int rowEnd = Math.min(n, rowStart1 + BLOCK_SIZE);
+                        for (int i = rowStart1; i < rowEnd; i++) {
+                            SplitHashTree tree = trees.get(i);
+                            int columnEnd = Math.min(i, columnStart1 + BLOCK_SIZE);
+                            for (int j = columnStart1; j < columnEnd; j++) {
+                                distances[i][j] = tree.getDistance(trees.get(j), type);
+                            }
+                        }
+                    }
+                }));
+            }
+        }
+        pool.shutdown();
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ie) {
+            pool.shutdownNow();
+            throw new RuntimeException("Distance calculation interrupted");
+        } catch (ExecutionException ee) {
+            pool.shutdownNow();
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        return distances;
+    }
+
+    private final Encoder encoder;
+
+    // the nodes numbered in post-order
+    private final int[] parents;
+    private final int[][] children;
+    private final double[] heights;
+    private final int[] depths;
+    private final int[] nodeTaxa;
+    private final int[] taxonNodes;
+    private int nodeCount = 0;
+
+    // the clade hashes (as pairs of longs) sorted and the node of each
+    private final int internalNodeCount;
+    private final long[] splitHashes;
+    private final int[] splitNodes;
+    private int splitCount = 0;
+}
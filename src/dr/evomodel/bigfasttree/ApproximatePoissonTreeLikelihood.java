@@ -24,7 +24,6 @@
  */
 
 package dr.evomodel.bigfasttree;
-
 import dr.evolution.tree.NodeRef;
 import dr.evomodel.branchratemodel.BranchRateModel;
 import dr.evomodel.tree.TreeChangedEvent;
@@ -33,13 +32,14 @@ import dr.inference.model.AbstractModelLikelihood;
 import dr.inference.model.Model;
 import dr.inference.model.Parameter;
 import dr.inference.model.Variable;
+import dr.util.SharedThreadPool;
 import dr.xml.Reportable;
 import org.apache.commons.math.special.Gamma;
 import org.apache.commons.math.util.FastMath;
 
-import java.util.BitSet;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * ApproximatePoissonTreeLikelihood - a tree likelihood which uses an ML tree as expected number
@@ -50,6 +50,11 @@ import java.util.Map;
  *
  * And more recently Didelot et al (2018) BioRxiv
  *
+ * The log likelihood is a sum of a term for each branch. Only the terms for branches that have changed
+ * are recalculated and the sum is kept in a binary tree of partial sums so updating it takes O(log n) per
+ * changed branch. As the partial sums only depend on the current terms the total is exactly the same as
+ * it would be if calculated from scratch.
+ *
  * @author Andrew Rambaut
  * @author JT McCrone
  */
@@ -63,9 +68,6 @@ public class ApproximatePoissonTreeLikelihood extends AbstractModelLikelihood im
 
         this.treeModel = treeModel;
         addModel(treeModel);
-        cachedRoot = treeModel.getRoot().getNumber();
-        cachedRootChild1 = treeModel.getChild(treeModel.getRoot(), 0).getNumber();
-        cachedRootChild2 = treeModel.getChild(treeModel.getRoot(), 1).getNumber();
 
         this.branchRateModel = branchRateModel;
         addModel(branchRateModel);
@@ -73,29 +75,41 @@ public class ApproximatePoissonTreeLikelihood extends AbstractModelLikelihood im
         this.branchLengthProvider = branchLengthProvider;
         addModel(branchLengthProvider);
 
-        updateNode = new boolean[treeModel.getNodeCount()];
+        int nodeCount = treeModel.getNodeCount();
 
-        for (int i = 0; i <this.treeModel.getNodeCount() ; i++) {
-            updateNode[i] = true;
+        updateNode = new boolean[nodeCount];
+        updateNodes = new int[nodeCount];
+        storedUpdateNodes = new int[nodeCount];
+
+        int leaves = 2;
+        while (leaves < nodeCount) {
+            leaves *= 2;
         }
+        leafCount = leaves;
+        branchLogLSums = new double[leafCount * 2];
 
-        branchLogL = new double[treeModel.getNodeCount()];
-        storedBranchLogL = new double[treeModel.getNodeCount()];
-        likelihoodKnown = false;
+        branchStored = new boolean[nodeCount];
+        storedBranches = new int[nodeCount];
+        storedBranchLogL = new double[nodeCount];
+
+        branchMeans = new double[nodeCount];
+        branchCounts = new int[nodeCount];
+        branchLogL = new double[nodeCount];
+
+        updateAllNodes();
     }
 
 
     /**
-     * Set update flag for node and remove it's old contribution to the likelihood.
-     * Also handle the root and children so that the 1 branch between children is marked as updated.
+     * Set update flag for node so its branch's contribution to the likelihood is recalculated.
      * @param node
      */
     protected void updateNode(NodeRef node) {
-
-        updateNode[node.getNumber()] = true;
-        NodeRef parent = treeModel.getParent(node);
-        if (parent != null && !updateNode[parent.getNumber()]) {
-            updateNode(parent);
+        int nodeIndex = node.getNumber();
+        if (!updateNode[nodeIndex]) {
+            updateNode[nodeIndex] = true;
+            updateNodes[updateNodeCount] = nodeIndex;
+            updateNodeCount++;
         }
         likelihoodKnown = false;
     }
@@ -111,33 +125,25 @@ public class ApproximatePoissonTreeLikelihood extends AbstractModelLikelihood im
             NodeRef child = treeModel.getChild(node, i);
             updateNode(child);
         }
-
-//        likelihoodKnown = false;
     }
 
-
-
     /**
      * Set update flag for a node and all its descendents
      */
     protected void updateNodeAndDescendents(NodeRef node) {
-        updateNode[node.getNumber()] = true;
+        updateNode(node);
 
         for (int i = 0; i < treeModel.getChildCount(node); i++) {
             NodeRef child = treeModel.getChild(node, i);
             updateNodeAndDescendents(child);
         }
-
-        likelihoodKnown = false;
     }
 
     /**
      * Set update flag for all nodes
      */
     protected void updateAllNodes() {
-        for (int i = 0; i < treeModel.getNodeCount(); i++) {
-            updateNode[i] = true;
-        }
+        updateAllNodes = true;
         likelihoodKnown = false;
     }
 
@@ -164,29 +170,17 @@ public class ApproximatePoissonTreeLikelihood extends AbstractModelLikelihood im
             if (object instanceof TreeChangedEvent) {
 
                 if (((TreeChangedEvent) object).isNodeChanged()) {
-                    // If a node event occurs the node and its two child nodes
-                    // are flagged for updating (this will result in everything
-                    // above being updated as well. Node events occur when a node
+                    // If a node event occurs the node and its child nodes
+                    // are flagged for updating. Node events occur when a node
                     // is added to a branch, removed from a branch or its height or
-                    // rate changes.
+                    // rate changes. Changes to the root and its children are
+                    // picked up when the likelihood is calculated.
                     NodeRef node= ((TreeChangedEvent) object).getNode();
                     updateNodeAndChildren(node);
-                    if(treeModel.getRoot()== node){
-                        // If the root is changed then the old root's children must be updated so that they are
-                        // no longer counted as 1 branch in the likelihood
-                        // This currently updates more often than needed.
-                        NodeRef oldRootNode = treeModel.getNode(cachedRoot);
-                        if(oldRootNode!=node){
-                            updateNodeAndChildren(oldRootNode);
-
-                        }
-                    }
 
                 } else if (((TreeChangedEvent) object).isTreeChanged()) {
                     // Full tree events result in a complete updating of the tree likelihood
                     // This event type is now used for EmpiricalTreeDistributions.
-//                    System.err.println("Full tree update event - these events currently aren't used\n" +
-//                            "so either this is in error or a new feature is using them so remove this message.");
                     updateAllNodes();
                 } else {
                     // Other event types are ignored (probably trait changes).
@@ -201,24 +195,35 @@ public class ApproximatePoissonTreeLikelihood extends AbstractModelLikelihood im
                 updateNode(treeModel.getNode(index));
             }
 
+        } else if (model == branchLengthProvider) {
+            updateAllNodes();
+
         } else {
             throw new RuntimeException("Unknown componentChangedEvent");
         }
     }
 
     /**
-     * Stores the additional state other than model components
+     * Stores the additional state other than model components. Rather than copying all the branch terms,
+     * the old values of those that change are kept until the next store.
      */
     protected void storeState() {
         storedLikelihoodKnown = likelihoodKnown;
         storedLogLikelihood = logLikelihood;
 
-        storedCachedRoot = cachedRoot;
-        storedCachedRootChild1 = cachedRootChild1;
-        storedCachedRootChild2 = cachedRootChild2;
+        storedCalculatedRoot = calculatedRoot;
+        storedCalculatedRootChild1 = calculatedRootChild1;
+        storedCalculatedRootChild2 = calculatedRootChild2;
 
+        for (int i = 0; i < storedBranchCount; i++) {
+            branchStored[storedBranches[i]] = false;
+        }
+        storedBranchCount = 0;
 
-        System.arraycopy(branchLogL, 0, storedBranchLogL, 0, branchLogL.length);
+        // any updates that haven't been calculated yet are needed again after a restore
+        System.arraycopy(updateNodes, 0, storedUpdateNodes, 0, updateNodeCount);
+        storedUpdateNodeCount = updateNodeCount;
+        storedUpdateAllNodes = updateAllNodes;
     }
 
     /**
@@ -229,62 +234,36 @@ public class ApproximatePoissonTreeLikelihood extends AbstractModelLikelihood im
         likelihoodKnown = storedLikelihoodKnown;
         logLikelihood = storedLogLikelihood;
 
-        cachedRoot = storedCachedRoot;
-        cachedRootChild1 = storedCachedRootChild1;
-        cachedRootChild2 = storedCachedRootChild2;
-        double[] tmp = storedBranchLogL;
-        storedBranchLogL = branchLogL;
-        branchLogL = tmp;
+        calculatedRoot = storedCalculatedRoot;
+        calculatedRootChild1 = storedCalculatedRootChild1;
+        calculatedRootChild2 = storedCalculatedRootChild2;
+
+        for (int i = 0; i < storedBranchCount; i++) {
+            branchLogLSums[leafCount + storedBranches[i]] = storedBranchLogL[i];
+            branchStored[storedBranches[i]] = false;
+        }
+        updatePartialSums(storedBranches, storedBranchCount);
+        storedBranchCount = 0;
+
+        clearUpdates();
+        for (int i = 0; i < storedUpdateNodeCount; i++) {
+            updateNode[storedUpdateNodes[i]] = true;
+            updateNodes[i] = storedUpdateNodes[i];
+        }
+        updateNodeCount = storedUpdateNodeCount;
+        updateAllNodes = storedUpdateAllNodes;
     }
 
     protected void acceptState() {
-        cachedRoot = treeModel.getRoot().getNumber();
-        cachedRootChild1 = treeModel.getChild(treeModel.getRoot(), 0).getNumber();
-        cachedRootChild2 = treeModel.getChild(treeModel.getRoot(), 1).getNumber();
+        // nothing to do
     }
 
     // **************************************************************
     // Likelihood IMPLEMENTATION
     // **************************************************************
 
-    private double calculateLogLikelihood(NodeRef node,int root, int rootChild1, int rootChild2) {
-        int nodeIndex = node.getNumber();
-
-        if (updateNode[nodeIndex]) {
-            double logL;
-            if(nodeIndex==root || nodeIndex==rootChild2){
-                logL=0;
-            }else{
-                double expected = treeModel.getBranchLength(node) * branchRateModel.getBranchRate(treeModel, node);
-
-                double x = Math.round(branchLengthProvider.getBranchLength(treeModel,node)*sequenceLength);
-
-                if (nodeIndex == rootChild1) {
-                    // sum the branches on both sides of the root
-                    NodeRef node2 = treeModel.getNode(rootChild2);
-                    expected += treeModel.getBranchLength(node2) * branchRateModel.getBranchRate(treeModel, node2);
-                    x += Math.round(branchLengthProvider.getBranchLength(treeModel,node2)*sequenceLength);
-                }
-                double mean = expected * sequenceLength;
-
-//                gamma.setScale(1.0);
-//                branchLogL[i] = gamma.logPdf(x);
-                logL = SaddlePointExpansion.logPoissonProbability(mean, (int) x); //SaddlePointExpansion.logBinomialProbability((int)x, sequenceLength, expected, 1.0D - expected);
-            }
-
-            for (int i = 0; i < treeModel.getChildCount(node); i++) {
-                logL += calculateLogLikelihood(treeModel.getChild(node, i),root,rootChild1,rootChild2);
-            }
-            branchLogL[nodeIndex] = logL;
-            updateNode[nodeIndex] = false;
-        }
-        return branchLogL[nodeIndex];
-    }
-
     private double calculateLogLikelihoodLinearTraversal() {
 
-//        makeDirty();
-//Could make this faster by only adding the changed values
         int root = treeModel.getRoot().getNumber();
         int rootChild1 = treeModel.getChild(treeModel.getRoot(), 0).getNumber();
         int rootChild2 = treeModel.getChild(treeModel.getRoot(), 1).getNumber();
@@ -303,13 +282,10 @@ public class ApproximatePoissonTreeLikelihood extends AbstractModelLikelihood im
                     // sum the branches on both sides of the root
                     NodeRef node2 = treeModel.getNode(rootChild2);
                     expected += treeModel.getBranchLength(node2) * branchRateModel.getBranchRate(treeModel, node2);
-                    x += Math.round(branchLengthProvider.getBranchLength(treeModel,node2));
+                    x += Math.round(branchLengthProvider.getBranchLength(treeModel,node2) * sequenceLength);
                 }
                 double mean = expected * sequenceLength;
 
-//                gamma.setScale(1.0);
-//                branchLogL[i] = gamma.logPdf(x);
-
                 logL += SaddlePointExpansion.logPoissonProbability(mean,(int)x); //SaddlePointExpansion.logBinomialProbability((int)x, sequenceLength, expected, 1.0D - expected);
             }
         }
@@ -319,18 +295,144 @@ public class ApproximatePoissonTreeLikelihood extends AbstractModelLikelihood im
 
     private double calculateLogLikelihood() {
 
-
         int root = treeModel.getRoot().getNumber();
         int rootChild1 = treeModel.getChild(treeModel.getRoot(), 0).getNumber();
         int rootChild2 = treeModel.getChild(treeModel.getRoot(), 1).getNumber();
-        updateNode[rootChild1] = updateNode[rootChild1] || updateNode[rootChild2] ;
-        assert updateNode[root];
 
+        if (!updateAllNodes) {
+            if (root != calculatedRoot || rootChild1 != calculatedRootChild1 || rootChild2 != calculatedRootChild2) {
+                // the old root's children were counted as 1 branch and the new ones now are
+                updateNode(treeModel.getNode(calculatedRoot));
+                updateNode(treeModel.getNode(calculatedRootChild1));
+                updateNode(treeModel.getNode(calculatedRootChild2));
+                updateNode(treeModel.getNode(root));
+                updateNode(treeModel.getNode(rootChild1));
+                updateNode(treeModel.getNode(rootChild2));
+            } else if (updateNode[rootChild1] || updateNode[rootChild2]) {
+                updateNode(treeModel.getNode(rootChild1));
+                updateNode(treeModel.getNode(rootChild2));
+            }
+        }
+
+        if (updateAllNodes) {
+            for (int i = 0; i < treeModel.getNodeCount(); i++) {
+                updateNodes[i] = i;
+            }
+            updateNodeCount = treeModel.getNodeCount();
+        }
+
+        // the branch lengths and rates are collected first as the models may not be thread safe
+        for (int i = 0; i < updateNodeCount; i++) {
+            int nodeIndex = updateNodes[i];
+            if (nodeIndex == root || nodeIndex == rootChild2) {
+                branchCounts[i] = -1;
+            } else {
+                NodeRef node = treeModel.getNode(nodeIndex);
+                double expected = treeModel.getBranchLength(node) * branchRateModel.getBranchRate(treeModel, node);
+                double x = Math.round(branchLengthProvider.getBranchLength(treeModel, node) * sequenceLength);
+
+                if (nodeIndex == rootChild1) {
+                    // sum the branches on both sides of the root
+                    NodeRef node2 = treeModel.getNode(rootChild2);
+                    expected += treeModel.getBranchLength(node2) * branchRateModel.getBranchRate(treeModel, node2);
+                    x += Math.round(branchLengthProvider.getBranchLength(treeModel, node2) * sequenceLength);
+                }
+                branchMeans[i] = expected * sequenceLength;
+                branchCounts[i] = (int) x;
+            }
+        }
+
+        calculateBranchLogLikelihoods(updateNodeCount);
+
+        for (int i = 0; i < updateNodeCount; i++) {
+            setBranchLogLikelihood(updateNodes[i], branchLogL[i]);
+        }
+        if (updateAllNodes) {
+            for (int i = leafCount - 1; i > 0; i--) {
+                branchLogLSums[i] = branchLogLSums[2 * i] + branchLogLSums[2 * i + 1];
+            }
+        } else {
+            updatePartialSums(updateNodes, updateNodeCount);
+        }
+
+        clearUpdates();
+
+        calculatedRoot = root;
+        calculatedRootChild1 = rootChild1;
+        calculatedRootChild2 = rootChild2;
+
+        return branchLogLSums[1];
+    }
+
+    /**
+     * Calculates the Poisson terms for the collected branches, sharing them between threads if there are
+     * many (i.e., a full recalculation on a large tree).
+     */
+    private void calculateBranchLogLikelihoods(int count) {
+        final int threadCount = Math.min(SharedThreadPool.getThreadCount(), count / MIN_BRANCHES_PER_THREAD);
+        if (threadCount <= 1) {
+            calculateBranchLogLikelihoods(0, count);
+        } else {
+            int chunkSize = (count + threadCount - 1) / threadCount;
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int from = 0; from < count; from += chunkSize) {
+                final int start = from;
+                final int end = Math.min(from + chunkSize, count);
+                futures.add(SharedThreadPool.getPool().submit(new Runnable() {
+                    public void run() {
+                        calculateBranchLogLikelihoods(start, end);
+                    }
+                }));
+            }
+            SharedThreadPool.waitFor(futures, "calculating the approximate Poisson likelihood");
+        }
+    }
+
+    private void calculateBranchLogLikelihoods(int start, int end) {
+        for (int i = start; i < end; i++) {
+            // the root and the second child of the root (this is added to the first child) have no term
+            branchLogL[i] = (branchCounts[i] < 0 ? 0.0 :
+                    SaddlePointExpansion.logPoissonProbability(branchMeans[i], branchCounts[i])); //SaddlePointExpansion.logBinomialProbability((int)x, sequenceLength, expected, 1.0D - expected);
+        }
+    }
 
-        return calculateLogLikelihood(treeModel.getRoot(), root, rootChild1, rootChild2);
+    /**
+     * Sets the term for a branch, keeping the old value for a restore if it hasn't been kept since the last store
+     */
+    private void setBranchLogLikelihood(int nodeIndex, double logL) {
+        if (!branchStored[nodeIndex]) {
+            branchStored[nodeIndex] = true;
+            storedBranches[storedBranchCount] = nodeIndex;
+            storedBranchLogL[storedBranchCount] = branchLogLSums[leafCount + nodeIndex];
+            storedBranchCount++;
+        }
+        branchLogLSums[leafCount + nodeIndex] = logL;
+    }
 
+    /**
+     * Recalculates the partial sums above the given branches
+     */
+    private void updatePartialSums(int[] nodeIndices, int count) {
+        if ((long) count * Integer.numberOfTrailingZeros(leafCount) > leafCount) {
+            for (int i = leafCount - 1; i > 0; i--) {
+                branchLogLSums[i] = branchLogLSums[2 * i] + branchLogLSums[2 * i + 1];
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                for (int j = (leafCount + nodeIndices[i]) / 2; j > 0; j /= 2) {
+                    branchLogLSums[j] = branchLogLSums[2 * j] + branchLogLSums[2 * j + 1];
+                }
+            }
+        }
     }
 
+    private void clearUpdates() {
+        for (int i = 0; i < updateNodeCount; i++) {
+            updateNode[updateNodes[i]] = false;
+        }
+        updateNodeCount = 0;
+        updateAllNodes = false;
+    }
 
     public final Model getModel() {
         return this;
@@ -340,10 +442,7 @@ public class ApproximatePoissonTreeLikelihood extends AbstractModelLikelihood im
         if (!likelihoodKnown) {
             logLikelihood = calculateLogLikelihood();
             if(testing){
-                makeDirty();
-                assert logLikelihood==calculateLogLikelihood();
                 double linearLL = calculateLogLikelihoodLinearTraversal();
-                assert linearLL !=logLikelihood;
                 assert Math.abs(linearLL-logLikelihood)<1E-10;
             }
             likelihoodKnown = true;
@@ -381,24 +480,51 @@ public class ApproximatePoissonTreeLikelihood extends AbstractModelLikelihood im
     //private final double[][] distanceMatrix;
 
     /**
-     * Flags to specify which nodes are to be updated
+     * Flags to specify which nodes are to be updated and a list of them
      */
     protected boolean[] updateNode;
+    private final int[] updateNodes;
+    private int updateNodeCount = 0;
+    private boolean updateAllNodes;
+    private final int[] storedUpdateNodes;
+    private int storedUpdateNodeCount;
+    private boolean storedUpdateAllNodes;
 
     private double logLikelihood;
     private double storedLogLikelihood;
     private boolean likelihoodKnown;
     private boolean storedLikelihoodKnown = false;
 
-    private double[] branchLogL;
-    private double[] storedBranchLogL;
-    private int cachedRoot;
-    private int storedCachedRoot;
-    private int cachedRootChild1;
-    private int cachedRootChild2;
-    private int storedCachedRootChild1;
-    private int storedCachedRootChild2;
+    /**
+     * The branch terms (at leafCount + node number) and a binary tree of their partial sums with the total at 1
+     */
+    private final int leafCount;
+    private final double[] branchLogLSums;
+
+    /**
+     * The branch terms as they were at the last store
+     */
+    private final boolean[] branchStored;
+    private final int[] storedBranches;
+    private final double[] storedBranchLogL;
+    private int storedBranchCount = 0;
+
+    /**
+     * Work arrays for the branches being updated
+     */
+    private final double[] branchMeans;
+    private final int[] branchCounts;
+    private final double[] branchLogL;
+
+    private int calculatedRoot = -1;
+    private int storedCalculatedRoot;
+    private int calculatedRootChild1 = -1;
+    private int calculatedRootChild2 = -1;
+    private int storedCalculatedRootChild1;
+    private int storedCalculatedRootChild2;
     private final boolean testing =false;
+
+    private static final int MIN_BRANCHES_PER_THREAD = 10000;
 }
 
 // Grabbed some stuff from Commons Maths as it is not public
@@ -477,17 +603,18 @@ final class SaddlePointExpansion {
     }
 
     static public double logPoissonProbability(double mean,int x) {
+        // kept on the log scale as very unlikely branches (e.g., on large trees) would underflow
         double ret;
         if (x >= 0 && x != 2147483647) {
             if (x == 0) {
-                ret = FastMath.exp(-mean);
+                ret = -mean;
             } else {
-                ret = FastMath.exp(-getStirlingError((double)x) - getDeviancePart((double)x, mean)) / FastMath.sqrt(6.283185307179586D * (double)x);
+                ret = -getStirlingError((double)x) - getDeviancePart((double)x, mean) - 0.5D * FastMath.log(6.283185307179586D * (double)x);
             }
         } else {
-            ret = 0.0D;
+            ret = Double.NEGATIVE_INFINITY;
         }
 
-        return Math.log(ret);
+        return ret;
     }
 }
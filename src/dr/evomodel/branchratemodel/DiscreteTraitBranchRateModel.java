@@ -27,7 +27,7 @@ package dr.evomodel.branchratemodel;
 
 import dr.evolution.alignment.PatternList;
 import dr.evolution.datatype.DataType;
-import dr.evolution.parsimony.FitchParsimony;
+import dr.evolution.parsimony.BitFitchParsimony;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 import dr.evolution.tree.TreeTrait;
@@ -78,7 +78,7 @@ public class DiscreteTraitBranchRateModel extends AbstractBranchRateModel {
 
     private TreeTrait[] traits;
 
-    private FitchParsimony fitchParsimony;
+    private BitFitchParsimony fitchParsimony;
 
     private boolean treeChanged = true;
 
@@ -103,7 +103,7 @@ public class DiscreteTraitBranchRateModel extends AbstractBranchRateModel {
 
         ratesParameter.setDimension(patternList.getDataType().getStateCount());
 
-        fitchParsimony = new FitchParsimony(patternList, false);
+        fitchParsimony = new BitFitchParsimony(patternList, false);
         mode = Mode.PARSIMONY;
     }
 
@@ -355,7 +355,8 @@ public class DiscreteTraitBranchRateModel extends AbstractBranchRateModel {
             // at the top and bottom of each branch.
 
             if (treeChanged) {
-                fitchParsimony.initialize(tree);
+                // only the nodes affected by the change are recalculated
+                fitchParsimony.update(tree);
                 // Debugging test to count work
 //                treeInitializeCounter += 1;
 //                if (treeInitializeCounter % 10 == 0) {
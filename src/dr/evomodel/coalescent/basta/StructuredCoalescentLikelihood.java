@@ -48,7 +48,10 @@ import dr.util.*;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 /**
  * @author Guy Baele
@@ -131,23 +134,14 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
             this.nodeProbDist[refNode.getNumber()].rightChild = null;
         }
 
-        this.maxCoalescentIntervals = treeModel.getTaxonCount() * 2 - 2;
-        //System.out.println("maxCoalescentIntervals = " + maxCoalescentIntervals);
-        this.currentCoalescentInterval = 0;
-        this.migrationMatrices = new double[maxCoalescentIntervals][this.demes*this.demes];
-        this.storedMigrationMatrices = new double[maxCoalescentIntervals][this.demes*this.demes];
+        this.migrationMatrices = new HashMap<Double, double[]>();
+        this.storedMigrationMatrices = this.migrationMatrices;
+        this.inversePopSizes = new double[this.demes];
 
         this.times = new ArrayList<ComparableDouble>();
         this.children = new ArrayList<Integer>();
         this.nodes = new ArrayList<NodeRef>();
 
-        this.storedTimes = new ArrayList<ComparableDouble>();
-        this.storedChildren = new ArrayList<Integer>();
-        this.storedNodes = new ArrayList<NodeRef>();
-
-        this.treeModelUpdateFired = false;
-        this.rateChanged = false;
-
         this.likelihoodKnown = false;
 
         reconstructedStates = new int[treeModel.getNodeCount()][patternList.getPatternCount()];
@@ -221,27 +215,26 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
 
     //based on the traverseTree method in OldAbstractCoalescentLikelihood
     private double traverseTree(Tree tree, NodeRef root, PatternList patternList) {
-        double MULTIFURCATION_LIMIT = 1e-9;
 
-        if (treeModelUpdateFired && !rateChanged) {
-            if (DEBUG) {
-                System.out.println("treeModelUpdateFired");
-                System.out.println("current coalescent intervals:");
-                for (int i = 1; i < times.size(); i++) {
-                    System.out.println((i-1) + ": " + (times.get(indices[i]).doubleValue() - times.get(indices[i-1]).doubleValue()));
-                }
-            }
-            updateTransitionProbabilities();
-            treeModelUpdateFired = false;
-        } else {
-            times.clear();
-            children.clear();
-            nodes.clear();
-            collectAllTimes(tree, root, nodes, times, children);
+        times.clear();
+        children.clear();
+        nodes.clear();
+        collectAllTimes(tree, root, nodes, times, children);
+        if (indices == null || indices.length != times.size()) {
             indices = new int[times.size()];
+        }
 
-            HeapSort.sort(times, indices);
+        HeapSort.sort(times, indices);
+
+        synchronized (branchRateModel) {
+            branchRate = branchRateModel.getBranchRate(treeModel, treeModel.getRoot());
         }
+        for (int i = 0; i < demes; i++) {
+            inversePopSizes[i] = 1.0 / popSizes.getParameterValue(i);
+        }
+
+        // get all the migration matrices needed for the intervals at once
+        prepareMigrationMatrices();
 
         double lnL = 0.0;
 
@@ -462,11 +455,9 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
             System.out.println("Structured coalescent lnL = " + lnL);
         }
 
-        this.finalCoalescentInterval = this.currentCoalescentInterval;
-        //System.out.println("finalCoalescentInterval = " + finalCoalescentInterval);
-        this.currentCoalescentInterval = 0;
-        this.matricesKnown = true;
-        this.rateChanged = false;
+        // only keep the matrices used by this tree
+        migrationMatrices = nextMigrationMatrices;
+        nextMigrationMatrices = null;
 
         return lnL;
     }
@@ -519,8 +510,8 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
         }*/
 
         for (int i = 0; i < demes; i++) {
-            intervalOne += (startExpected[i]*startExpected[i] - startProbs[i])/popSizes.getParameterValue(i);
-            intervalTwo += (endExpected[i]*endExpected[i] - endProbs[i])/popSizes.getParameterValue(i);
+            intervalOne += (startExpected[i]*startExpected[i] - startProbs[i]) * inversePopSizes[i];
+            intervalTwo += (endExpected[i]*endExpected[i] - endProbs[i]) * inversePopSizes[i];
         }
 
         intervalOne *= -intervalLength/4.0;
@@ -590,198 +581,148 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
             System.out.println("Incrementing active lineages by " + increment);
         }
 
-        final double branchRate;
-        synchronized (branchRateModel) {
-            branchRate = branchRateModel.getBranchRate(treeModel, treeModel.getRoot());
-        }
-        if (!matricesKnown) {
-            generalSubstitutionModel.getTransitionProbabilities(branchRate * increment, migrationMatrices[this.currentCoalescentInterval]);
-
-            if (MATRIX_DEBUG) {
-                System.out.println("-----------");
-                double[] matrix = new double[demes*demes];
-                generalSubstitutionModel.getInfinitesimalMatrix(matrix);
-                for (int i = 0; i < demes; i++) {
-                    for (int j = 0; j < demes; j++) {
-                        System.out.print(matrix[i*demes+j] + " ");
-                    }
+        final double[] migrationMatrix = getMigrationMatrix(branchRate * increment);
+
+        if (MATRIX_DEBUG) {
+            System.out.println("-----------");
+            System.out.println("Matrix exponentiation (t=" + increment + ") is: ");
+            for (int i = 0; i < demes * demes; i++) {
+                System.out.print(migrationMatrix[i] + " ");
+                if ((i + 1) % demes == 0) {
                     System.out.println();
                 }
-                System.out.println("-----------");
-                System.out.println("Matrix exponentiation (t=" + increment + ") is: ");
-                for (int i = 0; i < demes * demes; i++) {
-                    System.out.print(migrationMatrices[this.currentCoalescentInterval][i] + " ");
-                    if ((i + 1) % demes == 0) {
-                        System.out.println();
-                    }
-                }
-                System.out.println("-----------");
             }
+            System.out.println("-----------");
         }
 
-        //TODO evaluate later if this should be done in parallel
-        //double start = System.currentTimeMillis();
-        /*for (ProbDist pd : activeLineageList) {
-            pd.incrementIntervalLength(increment, migrationMatrices[this.currentCoalescentInterval]);
-            if (DEBUG) {
-                System.out.println("  " + pd);
+        // each lineage is independent so large numbers of lineages and demes are shared between threads
+        final long work = (long) addedLength * demes * demes;
+        final int threadCount = (int) Math.min(SharedThreadPool.getThreadCount(), work / MIN_WORK_PER_THREAD);
+        if (threadCount <= 1) {
+            incrementLineages(0, addedLength, increment, migrationMatrix);
+        } else {
+            int chunkSize = (addedLength + threadCount - 1) / threadCount;
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int from = 0; from < addedLength; from += chunkSize) {
+                final int start = from;
+                final int end = Math.min(from + chunkSize, addedLength);
+                futures.add(SharedThreadPool.getPool().submit(new Runnable() {
+                    public void run() {
+                        incrementLineages(start, end, increment, migrationMatrix);
+                    }
+                }));
             }
-        }*/
-        for (int i = 0; i < addedLength; i++) {
-            activeLineageList[i].incrementIntervalLength(increment, migrationMatrices[this.currentCoalescentInterval]);
+            SharedThreadPool.waitFor(futures, "calculating the structured coalescent");
         }
-        //double end = System.currentTimeMillis();
-        this.currentCoalescentInterval++;
     }
 
-    /**
-     * Extract coalescent times and tip information into ArrayList times from tree.
-     * Upon return times contain the time of each node in the subtree below top, and at the corresponding index
-     * of children is the descendant count for that time.
-     *
-     * @param top          the node to start from
-     * @param tree         given tree
-     * @param times        array to fill with times
-     * @param children     array to fill with descendents count
-     */
-    private void collectAllTimes(Tree tree, NodeRef top, ArrayList<NodeRef> nodes,
-                                        ArrayList<ComparableDouble> times, ArrayList<Integer> children) {
-
-        times.add(new ComparableDouble(tree.getNodeHeight(top)));
-        nodes.add(top);
-        children.add(tree.getChildCount(top));
-
-        for (int i = 0; i < tree.getChildCount(top); i++) {
-            NodeRef child = tree.getChild(top, i);
-            collectAllTimes(tree, child, nodes, times, children);
+    private void incrementLineages(int start, int end, double increment, double[] migrationMatrix) {
+        for (int i = start; i < end; i++) {
+            activeLineageList[i].incrementIntervalLength(increment, migrationMatrix);
         }
     }
 
     /**
-     * compare the two times lists and only recompute those matrices that correspond to different coalescent
-     * interval lengths
+     * Finds the distances (interval length times the rate) of all the intervals between the sorted times and
+     * calculates the migration matrices for those that weren't used by the last evaluation, sharing them out
+     * between threads if there are enough of them.
      */
-    private void updateTransitionProbabilities() {
+    private void prepareMigrationMatrices() {
+        nextMigrationMatrices = new HashMap<Double, double[]>();
 
-        if (MATRIX_DEBUG) {
-            int index = 0;
-            for (int i = 1; i < storedTimes.size(); i++) {
-                double length = storedTimes.get(storedIndices[i]).doubleValue() - storedTimes.get(storedIndices[i-1]).doubleValue();
-                if (length != 0.0) {
-                    System.out.println("----------- START ----------- updateTransitionProbabilities()");
-                    System.out.println("Matrix exponentiation (t=" + length + ") is: ");
-                    for (int j = 0; j < demes * demes; j++) {
-                        System.out.print(migrationMatrices[index][j] + " ");
-                        if ((j + 1) % demes == 0) {
-                            System.out.println();
-                        }
+        final List<Double> distances = new ArrayList<Double>();
+        double start = times.get(indices[0]).doubleValue();
+        for (int i = 1; i < indices.length; i++) {
+            double finish = times.get(indices[i]).doubleValue();
+            if (Math.abs(finish - start) >= MULTIFURCATION_LIMIT) {
+                Double distance = branchRate * (finish - start);
+                if (!nextMigrationMatrices.containsKey(distance)) {
+                    double[] matrix = migrationMatrices.get(distance);
+                    nextMigrationMatrices.put(distance, matrix);
+                    if (matrix == null) {
+                        distances.add(distance);
                     }
-                    System.out.println("-----------");
-                    index++;
                 }
+                start = finish;
             }
         }
 
-        double[] oldLengths = new double[times.size()-1];
-        for (int i = 1; i < times.size(); i++) {
-            oldLengths[i-1] = times.get(indices[i]).doubleValue() - times.get(indices[i-1]).doubleValue();
-        }
-
-        if (DEBUG) {
-            System.out.println("old coalescent intervals:");
-            for (int i = 1; i < times.size(); i++) {
-                System.out.println((i - 1) + ": " + (times.get(indices[i]).doubleValue() - times.get(indices[i - 1]).doubleValue()));
-            }
+        if (distances.isEmpty()) {
+            return;
         }
 
-        storedTimes.clear();
-        storedNodes.clear();
-        storedChildren.clear();
-
-        collectAllTimes(treeModel, treeModel.getRoot(), storedNodes, storedTimes, storedChildren);
-
-        storedIndices = new int[storedTimes.size()];
-        HeapSort.sort(storedTimes, storedIndices);
-
-        if (DEBUG) {
-            System.out.println("new coalescent intervals:");
-            for (int i = 1; i < storedTimes.size(); i++) {
-                System.out.println((i - 1) + ": " + (storedTimes.get(storedIndices[i]).doubleValue() - storedTimes.get(storedIndices[i - 1]).doubleValue()));
+        final double[][] matrices = new double[distances.size()][];
+        final long work = (long) distances.size() * demes * demes * demes;
+        final int threadCount = (int) Math.min(SharedThreadPool.getThreadCount(), work / MIN_WORK_PER_THREAD);
+        if (threadCount <= 1) {
+            computeMigrationMatrices(distances, matrices, 0, distances.size());
+        } else {
+            // make sure the eigen decomposition is done before the threads start
+            generalSubstitutionModel.getEigenDecomposition();
+
+            int chunkSize = (distances.size() + threadCount - 1) / threadCount;
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int from = 0; from < distances.size(); from += chunkSize) {
+                final int start1 = from;
+                final int end = Math.min(from + chunkSize, distances.size());
+                futures.add(SharedThreadPool.getPool().submit(new Runnable() {
+                    public void run() {
+                        computeMigrationMatrices(distances, matrices, start1, end);
+                    }
+                }));
             }
+            SharedThreadPool.waitFor(futures, "calculating the structured coalescent");
         }
 
-        double[] newLengths = new double[storedTimes.size()-1];
-        for (int i = 1; i < storedTimes.size(); i++) {
-            newLengths[i-1] = storedTimes.get(storedIndices[i]).doubleValue() - storedTimes.get(storedIndices[i-1]).doubleValue();
+        for (int i = 0; i < matrices.length; i++) {
+            nextMigrationMatrices.put(distances.get(i), matrices[i]);
         }
+    }
 
-        final double branchRate;
-        synchronized (branchRateModel) {
-            branchRate = branchRateModel.getBranchRate(treeModel, treeModel.getRoot());
+    private void computeMigrationMatrices(List<Double> distances, double[][] matrices, int start, int end) {
+        for (int i = start; i < end; i++) {
+            matrices[i] = new double[demes * demes];
+            generalSubstitutionModel.getTransitionProbabilities(distances.get(i), matrices[i]);
         }
+    }
 
-        if (UPDATE_DEBUG) {
-            for (int i = 0; i < times.size(); i++) {
-                System.out.print(times.get(i) + " ");
-            }
-            System.out.println();
-            for (int i = 0; i < storedTimes.size(); i++) {
-                System.out.print(storedTimes.get(i) + " ");
+    /**
+     * @return the migration matrix for the given distance, calculating it if it wasn't prepared
+     */
+    private double[] getMigrationMatrix(double distance) {
+        double[] matrix = nextMigrationMatrices.get(distance);
+        if (matrix == null) {
+            matrix = migrationMatrices.get(distance);
+            if (matrix == null) {
+                matrix = new double[demes * demes];
+                generalSubstitutionModel.getTransitionProbabilities(distance, matrix);
             }
-            System.out.println();
+            nextMigrationMatrices.put(distance, matrix);
         }
+        return matrix;
+    }
 
-        int matrixIndex = 0;
+    /**
+     * Extract coalescent times and tip information into ArrayList times from tree.
+     * Upon return times contain the time of each node in the subtree below top, and at the corresponding index
+     * of children is the descendant count for that time.
+     *
+     * @param top          the node to start from
+     * @param tree         given tree
+     * @param times        array to fill with times
+     * @param children     array to fill with descendents count
+     */
+    private void collectAllTimes(Tree tree, NodeRef top, ArrayList<NodeRef> nodes,
+                                        ArrayList<ComparableDouble> times, ArrayList<Integer> children) {
 
-        //take into account interval length of 0.0
-        //if the number of intervals would increase, currently throw an error but full evaluation would be better
-        if (oldLengths.length == newLengths.length) {
-            for (int i = 0; i < oldLengths.length; i++) {
-                if ((oldLengths[i] != newLengths[i]) && (newLengths[i] != 0.0)) {
-                    if (UPDATE_DEBUG) {
-                        System.out.println("updating transition probability matrix for coalescent interval length " + newLengths[i] + " at index " + matrixIndex);
-                    }
-                    generalSubstitutionModel.getTransitionProbabilities(branchRate * newLengths[i], migrationMatrices[matrixIndex]);
-                    matrixIndex++;
-                } else {
-                    if (MATRIX_DEBUG) {
-                        System.out.println("no matrix update required");
-                    }
-                    if (newLengths[i] != 0.0) {
-                        matrixIndex++;
-                    }
-                }
-            }
-        } else {
-            throw new RuntimeException("Number of coalescent intervals has increased?");
-        }
+        times.add(new ComparableDouble(tree.getNodeHeight(top)));
+        nodes.add(top);
+        children.add(tree.getChildCount(top));
 
-        if (MATRIX_DEBUG) {
-            int index = 0;
-            for (int i = 1; i < storedTimes.size(); i++) {
-                double length = storedTimes.get(storedIndices[i]).doubleValue() - storedTimes.get(storedIndices[i-1]).doubleValue();
-                if (length != 0.0) {
-                    System.out.println("----------- END ----------- updateTransitionProbabilities()");
-                    System.out.println("Matrix exponentiation (t=" + length + ") is: ");
-                    for (int j = 0; j < demes * demes; j++) {
-                        System.out.print(migrationMatrices[index][j] + " ");
-                        if ((j + 1) % demes == 0) {
-                            System.out.println();
-                        }
-                    }
-                    System.out.println("-----------");
-                    index++;
-                }
-            }
+        for (int i = 0; i < tree.getChildCount(top); i++) {
+            NodeRef child = tree.getChild(top, i);
+            collectAllTimes(tree, child, nodes, times, children);
         }
-
-        times = storedTimes;
-        nodes = storedNodes;
-        children = storedChildren;
-        indices = storedIndices;
-
-        matricesKnown = true;
-
     }
 
     // **************************************************************
@@ -823,15 +764,11 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
             //for all the nodes that are older than the event, set needsUpdate to true
             //then trigger a recalculation that makes use of an adjusted traverseTree method (that checks whether
             //or not the ProbDist needs to be updated
+            //the matrices for the intervals that haven't changed length are reused
             likelihoodKnown = false;
-            //TODO not all matrices will have to be recomputed all the time
-            matricesKnown = false;
-            treeModelUpdateFired = true;
             areStatesRedrawn = false;
         } else if (model == branchRateModel) {
-            matricesKnown = false;
-            //the following to accommodate events stemming from the upDownOperator
-            this.rateChanged = true;
+            //the matrices are keyed by the rate times the interval length so don't need to be cleared
             /*likelihoodKnown = false;
             for (ProbDist pd : this.nodeProbDist) {
                 pd.needsUpdate = true;
@@ -840,9 +777,8 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
             likelihoodKnown = false;
             areStatesRedrawn = false;
         } else if (model == generalSubstitutionModel) {
-            matricesKnown = false;
-            //TODO is this necessary? turns out it is to avoid store/restore issues but why??
-            this.rateChanged = true;
+            //a new map so the stored matrices are kept for a restore
+            migrationMatrices = new HashMap<Double, double[]>();
             /*likelihoodKnown = false;
             for (ProbDist pd : this.nodeProbDist) {
                 pd.needsUpdate = true;
@@ -869,14 +805,12 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
         likelihoodKnown = false;
         areStatesRedrawn = false;
         //a change in one of the popSizes does not affect matrix exponentiation
-        matricesKnown = true;
     }
 
     protected void storeState() {
         //super.storeState();
-        for (int i = 0; i < this.finalCoalescentInterval; i++) {
-            System.arraycopy(this.migrationMatrices[i],0, this.storedMigrationMatrices[i], 0, demes*demes);
-        }
+        //the maps of matrices are replaced rather than changed so the current one can just be kept
+        storedMigrationMatrices = migrationMatrices;
         storedLikelihoodKnown = likelihoodKnown;
         storedLogLikelihood = logLikelihood;
 
@@ -893,12 +827,7 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
 
     protected void restoreState() {
         //super.restoreState();
-        double[] tmp;
-        for (int i = 0; i < this.finalCoalescentInterval; i++) {
-            tmp = this.migrationMatrices[i];
-            this.migrationMatrices[i] = this.storedMigrationMatrices[i];
-            this.storedMigrationMatrices[i] = tmp;
-        }
+        migrationMatrices = storedMigrationMatrices;
         likelihoodKnown = storedLikelihoodKnown;
         logLikelihood = storedLogLikelihood;
 
@@ -918,7 +847,7 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
 
     public void makeDirty() {
         likelihoodKnown = false;
-        matricesKnown = false;
+        migrationMatrices = new HashMap<Double, double[]>();
         areStatesRedrawn = false;
     }
 
@@ -1360,12 +1289,6 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
     private ArrayList<NodeRef> nodes;
     private int[] indices;
 
-    //stored versions of the coalescent intervals and times
-    private ArrayList<ComparableDouble> storedTimes;
-    private ArrayList<Integer> storedChildren;
-    private ArrayList<NodeRef> storedNodes;
-    private int[] storedIndices;
-
     //list of currently active lineages
     //private ArrayList<ProbDist> activeLineageList;
     //temporary list of lineages
@@ -1384,15 +1307,17 @@ public class StructuredCoalescentLikelihood extends AbstractModelLikelihood impl
     //number of demes for the structured coalescent model
     private int demes;
 
-    //variables that allow to use storeState and restoreState
-    private int maxCoalescentIntervals;
-    private int currentCoalescentInterval;
-    private double[][] migrationMatrices;
-    private int finalCoalescentInterval;
-    private double[][] storedMigrationMatrices;
+    //migration matrices keyed by the interval length times the rate, only containing those used by the last
+    //evaluation, and the stored map for restoreState
+    private Map<Double, double[]> migrationMatrices;
+    private Map<Double, double[]> storedMigrationMatrices;
+    private Map<Double, double[]> nextMigrationMatrices;
+
+    private double branchRate;
+    private double[] inversePopSizes;
+
+    private static final double MULTIFURCATION_LIMIT = 1e-9;
 
-    private boolean matricesKnown;
-    private boolean rateChanged;
-    private boolean treeModelUpdateFired;
+    private static final long MIN_WORK_PER_THREAD = 250000;
 
 }
@@ -32,6 +32,7 @@ import dr.evomodel.coalescent.CoalescentSimulator;
 import dr.evomodel.coalescent.demographicmodel.DemographicModel;
 import dr.evomodel.tree.DefaultTreeModel;
 import dr.evomodel.tree.TreeModel;
+import dr.evomodelxml.tree.TreeModelParser;
 import dr.inference.operators.GibbsOperator;
 import dr.inference.operators.MCMCOperator;
 import dr.inference.operators.SimpleMCMCOperator;
@@ -115,7 +116,7 @@ public class CoalescentTreeRejectionSampler extends SimpleMCMCOperator implement
         public Object parseXMLObject(XMLObject xo) throws XMLParseException {
 
             double weight = xo.getDoubleAttribute(MCMCOperator.WEIGHT);
-            DefaultTreeModel treeModel = (DefaultTreeModel) xo.getChild(TreeModel.class);
+            DefaultTreeModel treeModel = TreeModelParser.getDefaultTreeModelChild(xo, getParserName());
             DemographicModel demoModel = (DemographicModel) xo.getChild(DemographicModel.class);
 
             List<TaxonList> allTaxa = new ArrayList<TaxonList>();
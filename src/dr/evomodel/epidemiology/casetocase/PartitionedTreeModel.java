@@ -574,8 +574,8 @@ public class PartitionedTreeModel extends DefaultTreeModel {
 
     private AbstractCase[] prepareExternalNodeMap(AbstractCase[] map){
         for(int i=0; i< getExternalNodeCount(); i++){
-            DefaultTreeModel.Node currentExternalNode = (DefaultTreeModel.Node) getExternalNode(i);
-            Taxon currentTaxon = currentExternalNode.taxon;
+            NodeRef currentExternalNode = getExternalNode(i);
+            Taxon currentTaxon = getNodeTaxon(currentExternalNode);
             for(AbstractCase thisCase : outbreak.getCases()){
                 if(thisCase.wasEverInfected()) {
                     for (Taxon caseTaxon : thisCase.getAssociatedTaxa()) {
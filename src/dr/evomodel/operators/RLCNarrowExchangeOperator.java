@@ -28,6 +28,7 @@ package dr.evomodel.operators;
 import dr.evolution.tree.NodeRef;
 import dr.evomodel.tree.DefaultTreeModel;
 import dr.evomodel.tree.TreeModel;
+import dr.evomodelxml.tree.TreeModelParser;
 import dr.inference.operators.SimpleMCMCOperator;
 import dr.math.MathUtils;
 import dr.xml.*;
@@ -149,7 +150,7 @@ public class RLCNarrowExchangeOperator extends SimpleMCMCOperator {
 
         public Object parseXMLObject(XMLObject xo) throws XMLParseException {
 
-            DefaultTreeModel treeModel = (DefaultTreeModel) xo.getChild(DefaultTreeModel.class);
+            DefaultTreeModel treeModel = TreeModelParser.getDefaultTreeModelChild(xo, getParserName());
             double weight = xo.getDoubleAttribute("weight");
 
             return new RLCNarrowExchangeOperator(treeModel, weight);
@@ -174,7 +175,7 @@ public class RLCNarrowExchangeOperator extends SimpleMCMCOperator {
 
         private final XMLSyntaxRule[] rules = {
                 AttributeRule.newDoubleRule("weight"),
-                new ElementRule(DefaultTreeModel.class)
+                new ElementRule(TreeModel.class)
         };
 
     };
@@ -27,7 +27,7 @@ package dr.evomodel.operators;
 
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
-import dr.evomodel.tree.DefaultTreeModel;
+import dr.evomodel.tree.NodeParameterProvider;
 import dr.evomodel.tree.TreeModel;
 import dr.evomodelxml.operators.SubtreeSlideOperatorParser;
 import dr.inference.model.Statistic;
@@ -47,7 +47,9 @@ public class SubtreeSlideOperator extends AbstractAdaptableTreeOperator {
 
     private static final boolean DEBUG = false;
 
-    private DefaultTreeModel tree = null;
+    private TreeModel tree = null;
+    // the node rates and traits (null if the tree doesn't provide them)
+    private final NodeParameterProvider nodeParameters;
     private double size = 1.0;
     private boolean gaussian = false;
     private final boolean swapInRandomRate;
@@ -56,12 +58,16 @@ public class SubtreeSlideOperator extends AbstractAdaptableTreeOperator {
     private AdaptationMode mode = AdaptationMode.DEFAULT;
     private final double targetAcceptance;
 
-    public SubtreeSlideOperator(DefaultTreeModel tree, double weight, double size, boolean gaussian,
+    public SubtreeSlideOperator(TreeModel tree, double weight, double size, boolean gaussian,
                                 boolean swapRates, boolean swapTraits, boolean scaleDirichletBranches,
                                 AdaptationMode mode, double targetAcceptance) {
         super(mode, targetAcceptance);
 
         this.tree = tree;
+        this.nodeParameters = (tree instanceof NodeParameterProvider ? (NodeParameterProvider) tree : null);
+        if ((swapRates || swapTraits) && nodeParameters == null) {
+            throw new IllegalArgumentException("Swapping rates or traits requires a tree model with node parameters");
+        }
         setWeight(weight);
 
         if (size == 0.0) {
@@ -140,16 +146,16 @@ public class SubtreeSlideOperator extends AbstractAdaptableTreeOperator {
                     tree.setRoot(iP);
                     //System.err.println("Creating new root!");
 
-                    if (tree.hasNodeTraits()) {
+                    if (nodeParameters != null && nodeParameters.hasNodeTraits()) {
                         // **********************************************
                         // swap traits and rates so that root keeps it trait and rate values
                         // **********************************************
 
-                        tree.swapAllTraits(newChild, iP);
+                        nodeParameters.swapAllTraits(newChild, iP);
 
                     }
 
-                    if (tree.hasRates()) {
+                    if (nodeParameters != null && nodeParameters.hasRates()) {
                         final double rootNodeRate = tree.getNodeRate(newChild);
                         tree.setNodeRate(newChild, tree.getNodeRate(iP));
                         tree.setNodeRate(iP, rootNodeRate);
@@ -238,16 +244,16 @@ public class SubtreeSlideOperator extends AbstractAdaptableTreeOperator {
                     tree.addChild(newParent, iP);
                     tree.setRoot(CiP);
 
-                    if (tree.hasNodeTraits()) {
+                    if (nodeParameters != null && nodeParameters.hasNodeTraits()) {
                         // **********************************************
                         // swap traits and rates, so that root keeps it trait and rate values
                         // **********************************************
 
-                        tree.swapAllTraits(iP, CiP);
+                        nodeParameters.swapAllTraits(iP, CiP);
 
                     }
 
-                    if (tree.hasRates()) {
+                    if (nodeParameters != null && nodeParameters.hasRates()) {
                         final double rootNodeRate = tree.getNodeRate(iP);
                         tree.setNodeRate(iP, tree.getNodeRate(CiP));
                         tree.setNodeRate(CiP, rootNodeRate);
@@ -291,7 +297,7 @@ public class SubtreeSlideOperator extends AbstractAdaptableTreeOperator {
             final NodeRef j = tree.getNode(MathUtils.nextInt(tree.getNodeCount()));
             if (j != i) {
 
-                tree.swapAllTraits(i, j);
+                nodeParameters.swapAllTraits(i, j);
 
 //                final double tmp = tree.getNodeTrait(i, TRAIT);
 //                tree.setNodeTrait(i, TRAIT, tree.getNodeTrait(j, TRAIT));
@@ -43,7 +43,7 @@ import java.util.Set;
  *
  * @author Alexei Drummond
  */
-public class BirthDeathSerialSamplingModel extends MaskableSpeciationModel implements Citable {
+public class BirthDeathSerialSamplingModel extends MaskableSpeciationModel implements NodeLogDensities, Citable {
 
     // R0
     Variable<Double> R0;
@@ -360,6 +360,53 @@ public class BirthDeathSerialSamplingModel extends MaskableSpeciationModel imple
         return logL;
     }
 
+    @Override
+    public boolean hasNodeLogDensities() {
+        // a mask's parameters can change without this model being told
+        return mask == null && isSamplingOrigin();
+    }
+
+    @Override
+    public boolean prepareNodeLogDensities(Tree tree) {
+        if (!hasFinalSample && !extantTipChecked) {
+            boolean hasExtantTip = false;
+            for (int i = 0; i < tree.getExternalNodeCount(); i++) {
+                if (tree.getNodeHeight(tree.getExternalNode(i)) == 0.0) {
+                    hasExtantTip = true;
+                }
+            }
+            if (!hasExtantTip) {
+                throw new RuntimeException(
+                        "For sampling-through-time model there must be at least one tip at time zero.");
+            }
+            extantTipChecked = true;
+        }
+        return true;
+    }
+
+    /**
+     * The terms of calculateTreeLogLikelihood for a single node
+     */
+    @Override
+    public double getNodeLogDensity(Tree tree, NodeRef node) {
+        double height = tree.getNodeHeight(node);
+        if (!tree.isExternal(node)) {
+            return Math.log(birth()) - q(height);
+        }
+        if (height > 0.0 || !hasFinalSample) {
+            return Math.log(psi()) + q(height);
+        }
+        return Math.log(4.0 * p());
+    }
+
+    @Override
+    public double getTreeLogDensity(Tree tree) {
+        if (x0() < tree.getNodeHeight(tree.getRoot())) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return -q(x0());
+    }
+
     public double calculateTreeLogLikelihood(Tree tree, Set<Taxon> exclude) {
         if (exclude.size() == 0) return calculateTreeLogLikelihood(tree);
         throw new RuntimeException("Not implemented!");
@@ -380,6 +427,8 @@ public class BirthDeathSerialSamplingModel extends MaskableSpeciationModel imple
     // if a mask exists then use the mask's parameters instead (except for origin and finalTimeInterval)
     BirthDeathSerialSamplingModel mask = null;
 
+    private boolean extantTipChecked = false;
+
     @Override
     public Citation.Category getCategory() {
         return Citation.Category.TREE_PRIORS;
@@ -27,6 +27,7 @@ package dr.evomodel.speciation;
 
 import dr.evolution.io.Importer;
 import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 import dr.evolution.util.Taxon;
 import dr.inference.model.Parameter;
@@ -45,7 +46,7 @@ import java.util.Set;
  *
  * @author Alexei Drummond
  */
-public class BirthDeathSerialSkylineModel extends SpeciationModel {
+public class BirthDeathSerialSkylineModel extends SpeciationModel implements NodeLogDensities {
 
     // times
     Variable<Double> times;
@@ -83,6 +84,21 @@ public class BirthDeathSerialSkylineModel extends SpeciationModel {
     protected boolean timesStartFromOrigin = true;
     protected double[] timesFromTips;
 
+    // the log of g at the start of each epoch (for the last product term)
+    protected double[] logGi;
+
+    // the epoch constants are kept until the parameters (or the origin time) change
+    private boolean epochsKnown = false;
+    private double epochsX0;
+
+    private boolean storedEpochsKnown = false;
+    private double storedEpochsX0;
+    private double[] storedTimesFromTips;
+    private double[] storedAi;
+    private double[] storedBi;
+    private double[] storedP0_iMinus1;
+    private double[] storedLogGi;
+
     public BirthDeathSerialSkylineModel(
             Variable<Double> times,
             Variable<Double> lambda,
@@ -255,14 +271,29 @@ public class BirthDeathSerialSkylineModel extends SpeciationModel {
 
     /*    calculate and store Ai, Bi and p0_iMinus1        */
     public void preCalculation(Tree tree) {
+        epochsKnown = false;
+        updateEpochs(tree);
+    }
+
+    /**
+     * Calculates the epoch constants (Ai, Bi, p0_iMinus1 and logGi) unless they are already known. They
+     * only change with the parameters or, if the times are measured from the origin, with the root height.
+     * New arrays are created each time so the old ones can simply be kept for a restore.
+     *
+     * @param tree the tree
+     * @return true if the constants were recalculated
+     */
+    private boolean updateEpochs(Tree tree) {
 
         t_root = tree.getNodeHeight(tree.getRoot());
         x0 = t_root + origin.getValue(0);
 
-        // set up timesFromTips array
-        if (timesFromTips == null) {
-            timesFromTips = new double[times.getSize()];
+        if (epochsKnown && (!timesStartFromOrigin || x0 == epochsX0)) {
+            return false;
         }
+
+        // set up timesFromTips array
+        timesFromTips = new double[times.getSize()];
         if (timesStartFromOrigin) {
             timesFromTips[0] = 0;
             for (int i = 1; i < timesFromTips.length; i++) {
@@ -293,6 +324,15 @@ public class BirthDeathSerialSkylineModel extends SpeciationModel {
 
             //System.out.println("Bi[" + i + "]=" + Bi[i]);
         }
+
+        logGi = new double[size];
+        for (int j = 0; j < size - 1; j++) {
+            logGi[j] = Math.log(g(j, t(j + 1), t(j)));
+        }
+
+        epochsX0 = x0;
+        epochsKnown = true;
+        return true;
     }
 
     /**
@@ -306,7 +346,7 @@ public class BirthDeathSerialSkylineModel extends SpeciationModel {
         // number of lineages at each time ti
         int[] n = new int[size];
         int nTips = tree.getExternalNodeCount();
-        preCalculation(tree);
+        updateEpochs(tree);
 
         int index = size - 1;      // x0 must be in last interval
 
@@ -366,6 +406,73 @@ public class BirthDeathSerialSkylineModel extends SpeciationModel {
         return logP;
     }
 
+    @Override
+    public boolean hasNodeLogDensities() {
+        return true;
+    }
+
+    @Override
+    public boolean prepareNodeLogDensities(Tree tree) {
+        return !updateEpochs(tree);
+    }
+
+    /**
+     * The terms of calculateTreeLogLikelihood for a single node, including its share of the lineage
+     * counts in the last product term.
+     */
+    @Override
+    public double getNodeLogDensity(Tree tree, NodeRef node) {
+        double height = tree.getNodeHeight(node);
+        int index = index(height);
+
+        double logG = 0.0;
+        for (int j = 0; j < size - 1; j++) {
+            if (t(j + 1) < height) {
+                logG += logGi[j];
+            }
+        }
+
+        if (tree.isExternal(node)) {
+            return Math.log(psi(samplingChanges ? index : 0)) - Math.log(g(index, height, t(index))) - logG;
+        }
+        return Math.log(birth(birthChanges ? index : 0) * g(index, height, t(index))) + logG;
+    }
+
+    @Override
+    public double getTreeLogDensity(Tree tree) {
+        double logP = Math.log(g(size - 1, x0, t(size - 1)));
+
+        // the lineage counts all start at one
+        for (int j = 0; j < size - 1; j++) {
+            logP += logGi[j];
+        }
+        return logP;
+    }
+
+    protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+        epochsKnown = false;
+    }
+
+    protected void storeState() {
+        storedEpochsKnown = epochsKnown;
+        storedEpochsX0 = epochsX0;
+        storedTimesFromTips = timesFromTips;
+        storedAi = Ai;
+        storedBi = Bi;
+        storedP0_iMinus1 = p0_iMinus1;
+        storedLogGi = logGi;
+    }
+
+    protected void restoreState() {
+        epochsKnown = storedEpochsKnown;
+        epochsX0 = storedEpochsX0;
+        timesFromTips = storedTimesFromTips;
+        Ai = storedAi;
+        Bi = storedBi;
+        p0_iMinus1 = storedP0_iMinus1;
+        logGi = storedLogGi;
+    }
+
     public double calculateTreeLogLikelihood(Tree tree, Set<Taxon> exclude) {
         if (exclude.size() == 0) return calculateTreeLogLikelihood(tree);
         throw new RuntimeException("Not implemented!");
@@ -0,0 +1,64 @@
+/*
+ * NodeLogDensities.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.speciation;
+
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+
+/**
+ * Implemented by speciation models whose tree density is a term for the whole tree plus a term
+ * for each node that only depends on the height of that node (and whether it is a tip), so that
+ * SpeciationLikelihood can keep the node terms and only recalculate those of the nodes whose
+ * heights have changed.
+ *
+ * @author Andrew Rambaut
+ */
+public interface NodeLogDensities {
+
+    /**
+     * @return true if the density can currently be calculated from the node terms (otherwise the
+     * whole tree density is calculated)
+     */
+    boolean hasNodeLogDensities();
+
+    /**
+     * Called before the node and tree terms are calculated for the tree.
+     *
+     * @param tree the tree
+     * @return false if the node terms already calculated are no longer valid
+     */
+    boolean prepareNodeLogDensities(Tree tree);
+
+    /**
+     * @return the term of the tree density for the node
+     */
+    double getNodeLogDensity(Tree tree, NodeRef node);
+
+    /**
+     * @return the term of the tree density that doesn't belong to any node
+     */
+    double getTreeLogDensity(Tree tree);
+}
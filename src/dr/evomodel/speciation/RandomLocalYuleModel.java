@@ -29,7 +29,7 @@ import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 import dr.evolution.tree.TreeTrait;
 import dr.evolution.tree.TreeTraitProvider;
-import dr.evomodel.tree.DefaultTreeModel;
+import dr.evomodel.tree.NodeParameterProvider;
 import dr.evomodel.tree.TreeModel;
 import dr.evomodel.tree.randomlocalmodel.RandomLocalTreeVariable;
 import dr.evomodelxml.speciation.RandomLocalYuleModelParser;
@@ -108,11 +108,11 @@ public class RandomLocalYuleModel extends UltrametricSpeciationModel implements
     }
 
     public final double getVariable(Tree tree, NodeRef node) {
-        return ((DefaultTreeModel)tree).getNodeTrait(node, birthRatesName);
+        return ((NodeParameterProvider) tree).getNodeTrait(node, birthRatesName);
     }
 
     public final boolean isVariableSelected(Tree tree, NodeRef node) {
-        return ((DefaultTreeModel)tree).getNodeTrait(node, indicatorsName) > 0.5;
+        return ((NodeParameterProvider) tree).getNodeTrait(node, indicatorsName) > 0.5;
     }
 
     //
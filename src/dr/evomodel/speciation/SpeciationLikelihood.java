@@ -28,6 +28,7 @@ package dr.evomodel.speciation;
 import dr.evolution.tree.Tree;
 import dr.evolution.util.Taxon;
 import dr.evolution.util.Units;
+import dr.evomodel.tree.TreeChangedEvent;
 import dr.evomodelxml.speciation.SpeciationLikelihoodParser;
 import dr.inference.model.AbstractModelLikelihood;
 import dr.inference.model.Model;
@@ -89,6 +90,24 @@ public class SpeciationLikelihood extends AbstractModelLikelihood implements Uni
     // **************************************************************
 
     protected final void handleModelChangedEvent(Model model, Object object, int index) {
+        if (model == tree && nodeLogDensities != null) {
+            if (object instanceof TreeChangedEvent) {
+                if (((TreeChangedEvent) object).isNodeChanged()) {
+                    // only the density of this node needs recalculating
+                    int nodeNumber = ((TreeChangedEvent) object).getNode().getNumber();
+                    if (!nodeChanged[nodeNumber]) {
+                        nodeChanged[nodeNumber] = true;
+                        changedNodes[changedNodeCount] = nodeNumber;
+                        changedNodeCount++;
+                    }
+                } else {
+                    nodeLogDensitiesKnown = false;
+                }
+            }
+            // changes to the tree's parameters are also passed on but are covered by the TreeChangedEvent
+        } else {
+            nodeLogDensitiesKnown = false;
+        }
         likelihoodKnown = false;
     }
 
@@ -109,6 +128,11 @@ public class SpeciationLikelihood extends AbstractModelLikelihood implements Uni
     protected final void storeState() {
         storedLikelihoodKnown = likelihoodKnown;
         storedLogLikelihood = logLikelihood;
+
+        if (nodeLogDensities != null) {
+            System.arraycopy(nodeLogDensities, 0, storedNodeLogDensities, 0, nodeLogDensities.length);
+            storedNodeLogDensitiesKnown = nodeLogDensitiesKnown;
+        }
     }
 
     /**
@@ -117,6 +141,14 @@ public class SpeciationLikelihood extends AbstractModelLikelihood implements Uni
     protected final void restoreState() {
         likelihoodKnown = storedLikelihoodKnown;
         logLikelihood = storedLogLikelihood;
+
+        if (nodeLogDensities != null) {
+            double[] tmp = nodeLogDensities;
+            nodeLogDensities = storedNodeLogDensities;
+            storedNodeLogDensities = tmp;
+            nodeLogDensitiesKnown = storedNodeLogDensitiesKnown;
+            clearChangedNodes();
+        }
     }
 
     protected final void acceptState() {
@@ -140,6 +172,7 @@ public class SpeciationLikelihood extends AbstractModelLikelihood implements Uni
 
     public final void makeDirty() {
         likelihoodKnown = false;
+        nodeLogDensitiesKnown = false;
     }
 
     /**
@@ -149,6 +182,12 @@ public class SpeciationLikelihood extends AbstractModelLikelihood implements Uni
      * @return the log likelihood
      */
     private double calculateLogLikelihood() {
+        if (exclude == null && calibration == null && tree instanceof Model &&
+                speciationModel instanceof NodeLogDensities && ((NodeLogDensities) speciationModel).hasNodeLogDensities()) {
+            return calculateLogLikelihoodFromNodes((NodeLogDensities) speciationModel);
+        }
+        nodeLogDensitiesKnown = false;
+
         if (exclude != null) {
             return speciationModel.calculateTreeLogLikelihood(tree, exclude);
         }
@@ -160,6 +199,52 @@ public class SpeciationLikelihood extends AbstractModelLikelihood implements Uni
         return speciationModel.calculateTreeLogLikelihood(tree);
     }
 
+    /**
+     * Calculates the log likelihood from the density terms of each node, only recalculating those of the
+     * nodes that have changed since the last calculation (unless the speciation model has changed).
+     *
+     * @return the log likelihood
+     */
+    private double calculateLogLikelihoodFromNodes(NodeLogDensities speciationModel) {
+        if (nodeLogDensities == null) {
+            int nodeCount = tree.getNodeCount();
+            nodeLogDensities = new double[nodeCount];
+            storedNodeLogDensities = new double[nodeCount];
+            nodeChanged = new boolean[nodeCount];
+            changedNodes = new int[nodeCount];
+        }
+
+        if (!speciationModel.prepareNodeLogDensities(tree)) {
+            nodeLogDensitiesKnown = false;
+        }
+
+        if (!nodeLogDensitiesKnown) {
+            for (int i = 0; i < nodeLogDensities.length; i++) {
+                nodeLogDensities[i] = speciationModel.getNodeLogDensity(tree, tree.getNode(i));
+            }
+            nodeLogDensitiesKnown = true;
+        } else {
+            for (int i = 0; i < changedNodeCount; i++) {
+                int nodeNumber = changedNodes[i];
+                nodeLogDensities[nodeNumber] = speciationModel.getNodeLogDensity(tree, tree.getNode(nodeNumber));
+            }
+        }
+        clearChangedNodes();
+
+        double logL = speciationModel.getTreeLogDensity(tree);
+        for (double nodeLogDensity : nodeLogDensities) {
+            logL += nodeLogDensity;
+        }
+        return logL;
+    }
+
+    private void clearChangedNodes() {
+        for (int i = 0; i < changedNodeCount; i++) {
+            nodeChanged[changedNodes[i]] = false;
+        }
+        changedNodeCount = 0;
+    }
+
     // **************************************************************
     // Loggable IMPLEMENTATION
     // **************************************************************
@@ -239,4 +324,14 @@ public class SpeciationLikelihood extends AbstractModelLikelihood implements Uni
     private double storedLogLikelihood;
     private boolean likelihoodKnown = false;
     private boolean storedLikelihoodKnown = false;
+
+    // the density terms of each node (if the speciation model has them) and the nodes changed since they
+    // were calculated
+    private double[] nodeLogDensities = null;
+    private double[] storedNodeLogDensities = null;
+    private boolean nodeLogDensitiesKnown = false;
+    private boolean storedNodeLogDensitiesKnown = false;
+    private boolean[] nodeChanged;
+    private int[] changedNodes;
+    private int changedNodeCount = 0;
 }
\ No newline at end of file
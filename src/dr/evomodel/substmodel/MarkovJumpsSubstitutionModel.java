@@ -26,6 +26,7 @@
 package dr.evomodel.substmodel;
 
 import dr.evolution.datatype.DataType;
+import dr.inference.markovjumps.EigenMarkovJumps;
 import dr.inference.markovjumps.MarkovJumpsCore;
 import dr.inference.markovjumps.MarkovJumpsType;
 import dr.inference.markovjumps.StateHistory;
@@ -145,11 +146,52 @@ public class MarkovJumpsSubstitutionModel extends AbstractModel {
                     stateCount, ievcRateRegEvec);
         }
 
+        eigenMarkovJumps = null;
         regRateChanged = false;
     }
 
+    /**
+     * The substitution model makes a new eigen decomposition when its rates change (and swaps
+     * back to the stored one on restore) so check it is still the one being used.
+     */
+    private void checkEigenDecomposition() {
+        EigenDecomposition current = substModel.getEigenDecomposition();
+        if (current != eigenDecomposition) {
+            eigenDecomposition = current;
+            regRateChanged = true;
+        }
+    }
+
+    /**
+     * @return the conditional expectations for pairs of states under the current eigen system and
+     * registration. A new instance is returned whenever these change.
+     */
+    public EigenMarkovJumps getEigenMarkovJumps() {
+
+        checkEigenDecomposition();
+        if (regRateChanged) {
+            makeRateRegistrationMatrix(registration, rateReg, ievcRateRegEvec);
+        }
+
+        if (eigenMarkovJumps == null) {
+            double[] ievcRateRegEvc = ievcRateRegEvec;
+            if (!PRECOMPUTE) {
+                ievcRateRegEvc = new double[stateCount * stateCount];
+                double[] tmp = new double[stateCount * stateCount];
+                MarkovJumpsCore.matrixMultiply(rateReg, eigenDecomposition.getEigenVectors(), stateCount, tmp);
+                MarkovJumpsCore.matrixMultiply(eigenDecomposition.getInverseEigenVectors(), tmp,
+                        stateCount, ievcRateRegEvc);
+            }
+            eigenMarkovJumps = new EigenMarkovJumps(eigenDecomposition.getEigenVectors(),
+                    eigenDecomposition.getInverseEigenVectors(), eigenDecomposition.getEigenValues(),
+                    ievcRateRegEvc);
+        }
+        return eigenMarkovJumps;
+    }
+
     public double getMarginalRate() {
 
+        checkEigenDecomposition();
         if (regRateChanged) {
             makeRateRegistrationMatrix(registration, rateReg, ievcRateRegEvec);
         }
@@ -189,6 +231,7 @@ public class MarkovJumpsSubstitutionModel extends AbstractModel {
                                            double[] transitionProbs,
                                            double[] countMatrix) {
 
+        checkEigenDecomposition();
         if (regRateChanged) {
             makeRateRegistrationMatrix(registration, rateReg, ievcRateRegEvec);
         }
@@ -208,6 +251,7 @@ public class MarkovJumpsSubstitutionModel extends AbstractModel {
     public void computeJointStatMarkovJumps(double time,
                                             double[] countMatrix) {
 
+        checkEigenDecomposition();
         if (regRateChanged) {
             makeRateRegistrationMatrix(registration, rateReg, ievcRateRegEvec);
         }
@@ -261,6 +305,7 @@ public class MarkovJumpsSubstitutionModel extends AbstractModel {
     protected SubstitutionModel substModel;
     private EigenDecomposition eigenDecomposition;
     private MarkovJumpsCore markovJumpsCore;
+    private EigenMarkovJumps eigenMarkovJumps = null;
 
     private boolean regRateChanged = true;
 
@@ -340,6 +340,9 @@ public class AncestralTraitTreeModel extends AbstractModel implements MutableTre
 
     private Parameter getNodeHeightParameter(NodeRef iNode) {
         assert (iNode != null);
+        if (!(iNode instanceof DefaultTreeModel.Node)) {
+            throw new IllegalArgumentException("Ancestral paths are only available with a DefaultTreeModel");
+        }
         return  ((DefaultTreeModel.Node) iNode).getHeightParameter();
     }
 
@@ -0,0 +1,974 @@
+/*
+ * ArrayTreeModel.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.tree;
+
+import dr.evolution.tree.*;
+import dr.evolution.util.Taxon;
+import dr.inference.model.*;
+
+import java.util.*;
+
+/**
+ * A model component for trees that keeps the tree in flat arrays. The parent and child indices, the
+ * node heights and any node rates or traits are held in contiguous primitive arrays indexed by node
+ * number so storing and restoring the tree is just a set of array copies. Heights, rates and traits
+ * are made available as parameters that are views on these arrays so this can be used in place of
+ * DefaultTreeModel.
+ *
+ * As in DefaultTreeModel the parameter for the root node stays with the root when the root changes
+ * (the parameters are views on 'slots' which are swapped between nodes when the root moves) but the
+ * values stay with the nodes.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class ArrayTreeModel extends TreeModel implements NodeParameterProvider {
+
+    //
+    // Public stuff
+    //
+
+    public static final String ARRAY_TREE_MODEL = "arrayTreeModel";
+
+    public ArrayTreeModel(Tree tree) {
+        this(ARRAY_TREE_MODEL, tree, false, false);
+    }
+
+    public ArrayTreeModel(String id, Tree tree) { this(id, tree, false, false); }
+
+    public ArrayTreeModel(String id, Tree tree, boolean fixHeights, boolean fixTree) {
+
+        super(id, !fixTree);
+        setId(id);
+
+        // get a rooted version of the tree to clone
+        FlexibleTree binaryTree = new FlexibleTree(tree);
+        binaryTree.resolveTree();
+
+        // adjust the heights to be compatible with the tip dates and perturb
+        // any zero branches.
+        if (!fixHeights) {
+            MutableTree.Utils.correctHeightsForTips(binaryTree);
+        }
+
+        internalNodeCount = binaryTree.getInternalNodeCount();
+        externalNodeCount = binaryTree.getExternalNodeCount();
+
+        nodeCount = internalNodeCount + externalNodeCount;
+
+        nodes = new Node[nodeCount];
+
+        parents = new int[nodeCount];
+        storedParents = new int[nodeCount];
+        children = new int[nodeCount * 2];
+        storedChildren = new int[nodeCount * 2];
+
+        heights = new NodeValues(1, true);
+
+        // number the nodes in post-order with the tips first (as DefaultTreeModel does)
+        int[] numbers = new int[binaryTree.getNodeCount()];
+        int nextExternal = 0;
+        int nextInternal = externalNodeCount;
+
+        NodeRef node = binaryTree.getRoot();
+        do {
+            node = TreeUtils.postorderSuccessor(binaryTree, node);
+
+            int number;
+            if (binaryTree.isExternal(node)) {
+                number = nextExternal;
+                nextExternal++;
+                children[number * 2] = -1;
+                children[number * 2 + 1] = -1;
+            } else {
+                number = nextInternal;
+                nextInternal++;
+                for (int i = 0; i < 2; i++) {
+                    int child = numbers[binaryTree.getChild(node, i).getNumber()];
+                    children[number * 2 + i] = child;
+                    parents[child] = number;
+                }
+            }
+            nodes[number] = new Node(number, binaryTree.getNodeTaxon(node));
+            heights.values[number] = binaryTree.getNodeHeight(node);
+            numbers[node.getNumber()] = number;
+
+        } while (node != binaryTree.getRoot());
+
+        root = numbers[binaryTree.getRoot().getNumber()];
+        parents[root] = -1;
+
+        slotOfNode = new int[nodeCount];
+        storedSlotOfNode = new int[nodeCount];
+        nodeOfSlot = new int[nodeCount];
+        storedNodeOfSlot = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            slotOfNode[i] = i;
+            nodeOfSlot[i] = i;
+        }
+    }
+
+    protected void handleModelChangedEvent(Model model, Object object, int index) {
+        // no submodels so nothing to do
+    }
+
+    /**
+     * Called when a parameter changes.
+     */
+    public void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+        // the node parameters are views which notify the tree directly
+    }
+
+    @Override
+    public boolean beginTreeEdit() {
+        oldRoot = root;
+        return super.beginTreeEdit();
+    }
+
+    @Override
+    public void endTreeEdit() {
+        super.endTreeEdit();
+        if (root != oldRoot) {
+            swapSlots(oldRoot, root);
+        }
+    }
+
+    public boolean hasRates() {
+        return rates != null;
+    }
+
+    // *****************************************************************
+    // Interface Tree
+    // *****************************************************************
+
+    /**
+     * @return a count of the number of nodes (internal + external) in this
+     *         tree.
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public double getNodeHeight(NodeRef node) {
+        return heights.values[node.getNumber()];
+    }
+
+    public final double getNodeHeightUpper(NodeRef node) {
+        return getNodeHeightUpper(node.getNumber());
+    }
+
+    public final double getNodeHeightLower(NodeRef node) {
+        return getNodeHeightLower(node.getNumber());
+    }
+
+    /**
+     * @param node
+     * @return the rate parameter associated with this node.
+     */
+    public double getNodeRate(NodeRef node) {
+        if (rates == null) {
+            return 1.0;
+        }
+        return rates.values[node.getNumber()];
+    }
+
+    public Object getNodeAttribute(NodeRef node, String name) {
+
+        if (name.equals("rate")) {
+            return getNodeRate(node);
+        }
+
+        return null;
+    }
+
+    public Iterator getNodeAttributeNames(NodeRef node) {
+        return Collections.singletonList("rate").iterator();
+    }
+
+    public boolean hasNodeTraits() {
+        return !traits.isEmpty();
+    }
+
+    public double getNodeTrait(NodeRef node, String name) {
+        NodeValues trait = getTrait(name);
+        return trait.values[node.getNumber() * trait.dim];
+    }
+
+    public double[] getMultivariateNodeTrait(NodeRef node, String name) {
+        NodeValues trait = getTrait(name);
+        double[] values = new double[trait.dim];
+        System.arraycopy(trait.values, node.getNumber() * trait.dim, values, 0, trait.dim);
+        return values;
+    }
+
+    public Parameter getNodeTraitParameter(NodeRef node, String name) {
+        NodeValues trait = getTrait(name);
+        return trait.getSlotParameter(slotOfNode[node.getNumber()], getNodeParameterName(node, name));
+    }
+
+    public final void swapAllTraits(NodeRef node1, NodeRef node2) {
+        if (traits.isEmpty()) throw new IllegalArgumentException("Trait parameters have not been created");
+
+        int number1 = node1.getNumber();
+        int number2 = node2.getNumber();
+        for (NodeValues trait : traits.values()) {
+            for (int i = 0; i < trait.dim; i++) {
+                double transfer = trait.values[number1 * trait.dim + i];
+                setNodeValue(trait, number1, i, trait.values[number2 * trait.dim + i], null);
+                setNodeValue(trait, number2, i, transfer, null);
+            }
+        }
+    }
+
+    public Taxon getNodeTaxon(NodeRef node) {
+        return ((Node) node).taxon;
+    }
+
+    public void setNodeTaxon(NodeRef node, Taxon taxon) {
+        ((Node) node).taxon = taxon;
+    }
+
+    public boolean isExternal(NodeRef node) {
+        return node.getNumber() < externalNodeCount;
+    }
+
+    public boolean isRoot(NodeRef node) {
+        return node.getNumber() == root;
+    }
+
+    public int getChildCount(NodeRef node) {
+        int number = node.getNumber();
+        int n = 0;
+        if (children[number * 2] != -1) n++;
+        if (children[number * 2 + 1] != -1) n++;
+        return n;
+    }
+
+    public NodeRef getChild(NodeRef node, int i) {
+        if (i != 0 && i != 1) {
+            throw new IllegalArgumentException("TreeModel.Nodes can only have 2 children");
+        }
+        int child = children[node.getNumber() * 2 + i];
+        return child == -1 ? null : nodes[child];
+    }
+
+    public NodeRef getParent(NodeRef node) {
+        int parent = parents[node.getNumber()];
+        return parent == -1 ? null : nodes[parent];
+    }
+
+    public NodeRef getExternalNode(int i) {
+        return nodes[i];
+    }
+
+    public NodeRef getInternalNode(int i) {
+        return nodes[i + externalNodeCount];
+    }
+
+    public NodeRef getNode(int i) {
+        return nodes[i];
+    }
+
+    public NodeRef[] getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Returns the number of external nodes.
+     */
+    public int getExternalNodeCount() {
+        return externalNodeCount;
+    }
+
+    /**
+     * Returns the ith internal node.
+     */
+    public int getInternalNodeCount() {
+        return internalNodeCount;
+    }
+
+    /**
+     * Returns the root node of this tree.
+     */
+    public NodeRef getRoot() {
+        return nodes[root];
+    }
+
+    public void setTipDateSampled(boolean tipDateSampled) {
+        isTipDateSampled = tipDateSampled;
+    }
+
+    @Override
+    public boolean isTipDateSampled() {
+        return isTipDateSampled;
+    }
+
+    // *****************************************************************
+    // Interface MutableTree
+    // *****************************************************************
+
+    /**
+     * Set a new node as root node.
+     */
+    public void setRoot(NodeRef newRoot) {
+
+        if (!inEdit) throw new RuntimeException("Must be in edit transaction to call this method!");
+
+        root = newRoot.getNumber();
+
+        pushTreeChangedEvent(newRoot);
+    }
+
+    public void addChild(NodeRef p, NodeRef c) {
+
+        if (!inEdit) throw new RuntimeException("Must be in edit transaction to call this method!");
+
+        int parent = p.getNumber();
+        int child = c.getNumber();
+        if (children[parent * 2] == child || children[parent * 2 + 1] == child) {
+            throw new IllegalArgumentException("Child already exists in parent");
+        }
+
+        if (children[parent * 2] == -1) {
+            children[parent * 2] = child;
+        } else if (children[parent * 2 + 1] == -1) {
+            children[parent * 2 + 1] = child;
+        } else {
+            throw new IllegalArgumentException("TreeModel.Nodes can only have 2 children");
+        }
+        parents[child] = parent;
+
+        pushTreeChangedEvent(p);
+    }
+
+    public void removeChild(NodeRef p, NodeRef c) {
+
+        if (!inEdit) throw new RuntimeException("Must be in edit transaction to call this method!");
+
+        int parent = p.getNumber();
+        int child = c.getNumber();
+
+        if (children[parent * 2] == child) {
+            children[parent * 2] = -1;
+        } else if (children[parent * 2 + 1] == child) {
+            children[parent * 2 + 1] = -1;
+        } else {
+            throw new IllegalArgumentException("Unknown child node");
+        }
+        parents[child] = -1;
+    }
+
+    public void replaceChild(NodeRef node, NodeRef child, NodeRef newChild) {
+        throw new RuntimeException("Unimplemented");
+    }
+
+    @Override
+    public boolean isTreeValid() {
+        for (int i = 0; i < nodeCount; i++) {
+            double height = heights.values[i];
+            if (height < getNodeHeightLower(i) || height > getNodeHeightUpper(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void setNodeHeight(NodeRef n, double height) {
+        setNodeValue(heights, n.getNumber(), 0, height, null);
+    }
+
+    @Override
+    public void setNodeHeightQuietly(NodeRef n, double height) {
+        heights.values[n.getNumber()] = height;
+    }
+
+    public void setNodeRate(NodeRef n, double rate) {
+        if (rates == null) throw new IllegalArgumentException("Rate parameters have not been created");
+        setNodeValue(rates, n.getNumber(), 0, rate, null);
+    }
+
+    public void setNodeTrait(NodeRef n, String name, double value) {
+        setNodeValue(getTrait(name), n.getNumber(), 0, value, null);
+    }
+
+    public void setMultivariateTrait(NodeRef n, String name, double[] value) {
+        NodeValues trait = getTrait(name);
+        for (int i = 0; i < value.length; i++) {
+            setNodeValue(trait, n.getNumber(), i, value[i], null);
+        }
+    }
+
+    public void setBranchLength(NodeRef node, double length) {
+        throw new UnsupportedOperationException("TreeModel cannot have branch lengths set");
+    }
+
+    public void setNodeAttribute(NodeRef node, String name, Object value) {
+        throw new UnsupportedOperationException("TreeModel does not use NodeAttributes");
+    }
+
+    /**
+     * Modifies the current tree by adopting the provided collection of edges
+     * @param edges Edges are provided as index: child number; parent: array entry
+     * @param nodeHeights Also sets the node heights to the provided values
+     * @param childOrder Array that contains whether a child node is left or right child
+     */
+    public void adoptTreeStructure(int[] edges, double[] nodeHeights, int[] childOrder, String[] taxaNames) {
+
+        int[] nodeMap = createNodeMap(taxaNames);
+
+        if (this.nodeCount != edges.length) {
+            throw new RuntimeException("Incorrect number of edges provided: " + edges.length + " versus " + this.nodeCount + " nodes.");
+        }
+
+        Arrays.fill(parents, -1);
+        Arrays.fill(children, -1);
+
+        for (int i = 0; i < edges.length; i++) {
+            // the external nodes may be in a different order
+            int node = (i < externalNodeCount ? nodeMap[i] : i);
+
+            heights.values[node] = nodeHeights[i];
+
+            if (edges[i] != -1) {
+                int parent = edges[i];
+                int position = (childOrder[i] == 0 ? 0 : 1);
+                if (children[parent * 2 + position] != -1) {
+                    position = 1 - position;
+                }
+                children[parent * 2 + position] = node;
+                parents[node] = parent;
+            } else {
+                root = node;
+            }
+        }
+
+        pushTreeChangedEvent();
+    }
+
+    // *****************************************************************
+    // Interface ModelComponent
+    // *****************************************************************
+
+    /**
+     * Store current state
+     */
+    protected void storeState() {
+        System.arraycopy(parents, 0, storedParents, 0, parents.length);
+        System.arraycopy(children, 0, storedChildren, 0, children.length);
+        System.arraycopy(slotOfNode, 0, storedSlotOfNode, 0, slotOfNode.length);
+        System.arraycopy(nodeOfSlot, 0, storedNodeOfSlot, 0, nodeOfSlot.length);
+
+        heights.store();
+        if (rates != null) {
+            rates.store();
+        }
+        for (NodeValues trait : traits.values()) {
+            trait.store();
+        }
+
+        storedRoot = root;
+    }
+
+    /**
+     * Restore the stored state
+     */
+    protected void restoreState() {
+        int[] tmp = storedParents;
+        storedParents = parents;
+        parents = tmp;
+
+        tmp = storedChildren;
+        storedChildren = children;
+        children = tmp;
+
+        tmp = storedSlotOfNode;
+        storedSlotOfNode = slotOfNode;
+        slotOfNode = tmp;
+
+        tmp = storedNodeOfSlot;
+        storedNodeOfSlot = nodeOfSlot;
+        nodeOfSlot = tmp;
+
+        heights.restore();
+        if (rates != null) {
+            rates.restore();
+        }
+        for (NodeValues trait : traits.values()) {
+            trait.restore();
+        }
+
+        root = storedRoot;
+    }
+
+    /**
+     * accept the stored state
+     */
+    protected void acceptState() {
+    } // nothing to do
+
+    /**
+     * @return the number of statistics of this component.
+     */
+    public int getStatisticCount() {
+        return super.getStatisticCount() + 1;
+    }
+
+    /**
+     * @return the ith statistic of the component
+     */
+    public Statistic getStatistic(int i) {
+        if (i == super.getStatisticCount()) return getRootHeightParameter();
+        return super.getStatistic(i);
+    }
+
+    // **************************************************************
+    // TaxonList IMPLEMENTATION
+    // **************************************************************
+
+    /**
+     * @return the ith taxon in the list.
+     */
+    public Taxon getTaxon(int taxonIndex) {
+        return nodes[taxonIndex].taxon;
+    }
+
+    // **************************************************************
+    // Node parameters
+    // **************************************************************
+
+    /**
+     * Get the root height parameter. This always refers to the root even if the root changes.
+     */
+    public Parameter getRootHeightParameter() {
+        return heights.getSlotParameter(slotOfNode[root], "rootHeight(" + getId() + ")");
+    }
+
+    public Parameter createNodeHeightsParameter(boolean rootNode, boolean internalNodes, boolean leafNodes) {
+
+        checkValidFlags(rootNode, internalNodes, leafNodes);
+
+        return heights.createParameter("nodeHeights(" + getId() + ")", selectSlots(rootNode, internalNodes, leafNodes));
+    }
+
+    public Parameter getLeafHeightParameter(NodeRef node) {
+
+        if (!isExternal(node)) {
+            throw new RuntimeException("only leaves can be used with getLeafHeightParameter");
+        }
+
+        setTipDateSampled(true);
+
+        return heights.getSlotParameter(slotOfNode[node.getNumber()], getNodeParameterName(node, "height"));
+    }
+
+    public Parameter createNodeRatesParameter(double[] initialValues, boolean rootNode, boolean internalNodes, boolean leafNodes) {
+
+        checkValidFlags(rootNode, internalNodes, leafNodes);
+
+        if (rates == null) {
+            rates = new NodeValues(1, true);
+            Arrays.fill(rates.values, initialValues != null ? initialValues[0] : 1.0);
+        }
+
+        return rates.createParameter("nodeRates(" + getId() + ")", selectSlots(rootNode, internalNodes, leafNodes));
+    }
+
+    public Parameter createNodeTraitsParameter(String name, double[] initialValues) {
+        return createNodeTraitsParameter(name, initialValues.length,
+                initialValues, true, true, true, true);
+    }
+
+    public Parameter createNodeTraitsParameter(String name, int dim, double[] initialValues,
+                                               boolean rootNode, boolean internalNodes,
+                                               boolean leafNodes, boolean firesTreeEvents) {
+
+        checkValidFlags(rootNode, internalNodes, leafNodes);
+
+        NodeValues trait = traits.get(name);
+        if (trait == null) {
+            trait = new NodeValues(dim, firesTreeEvents);
+            if (initialValues != null && initialValues.length > 0) {
+                for (int i = 0; i < trait.values.length; i++) {
+                    trait.values[i] = (initialValues.length == dim ? initialValues[i % dim] : initialValues[0]);
+                }
+            }
+            traits.put(name, trait);
+        } else if (trait.dim != dim) {
+            throw new IllegalArgumentException("Trait, " + name + ", already exists with a different dimension");
+        }
+
+        return trait.createParameter(name, selectSlots(rootNode, internalNodes, leafNodes));
+    }
+
+    // ***********************************************************************
+    // Private methods
+    // ***********************************************************************
+
+    private double getNodeHeightUpper(int node) {
+        int parent = parents[node];
+        return parent == -1 ? Double.POSITIVE_INFINITY : heights.values[parent];
+    }
+
+    private double getNodeHeightLower(int node) {
+        if (node < externalNodeCount) {
+            return 0.0;
+        }
+        return Math.max(heights.values[children[node * 2]], heights.values[children[node * 2 + 1]]);
+    }
+
+    private NodeValues getTrait(String name) {
+        NodeValues trait = traits.get(name);
+        if (trait == null) throw new IllegalArgumentException("Trait parameters have not been created");
+        return trait;
+    }
+
+    private String getNodeParameterName(NodeRef node, String name) {
+        if (isRoot(node)) {
+            return "root." + name;
+        } else if (isExternal(node)) {
+            return getTaxonId(node.getNumber()) + "." + name;
+        } else {
+            return "node" + node.getNumber() + "." + name;
+        }
+    }
+
+    private void checkValidFlags(boolean rootNode, boolean internalNodes, boolean leafNodes) {
+        if (!rootNode && !internalNodes && !leafNodes) {
+            throw new IllegalArgumentException("At least one of rootNode, internalNodes or leafNodes must be true");
+        }
+    }
+
+    /**
+     * The slots for a parameter in the order that DefaultTreeModel adds node parameters:
+     * the internal nodes followed by the leaves.
+     */
+    private int[] selectSlots(boolean rootNode, boolean internalNodes, boolean leafNodes) {
+        int[] slots = new int[nodeCount];
+        int count = 0;
+        for (int i = externalNodeCount; i < nodeCount; i++) {
+            if ((rootNode && i == root) || (internalNodes && i != root)) {
+                slots[count] = slotOfNode[i];
+                count++;
+            }
+        }
+        if (leafNodes) {
+            for (int i = 0; i < externalNodeCount; i++) {
+                slots[count] = slotOfNode[i];
+                count++;
+            }
+        }
+        return Arrays.copyOf(slots, count);
+    }
+
+    /**
+     * Swaps the slots of the two nodes so the parameters follow the root (the values stay with the nodes).
+     */
+    private void swapSlots(int node1, int node2) {
+        int slot1 = slotOfNode[node1];
+        int slot2 = slotOfNode[node2];
+        slotOfNode[node1] = slot2;
+        slotOfNode[node2] = slot1;
+        nodeOfSlot[slot1] = node2;
+        nodeOfSlot[slot2] = node1;
+    }
+
+    /**
+     * Sets a value for a node and notifies the tree's listeners and those of any parameters
+     * that include the node.
+     */
+    private void setNodeValue(NodeValues values, int node, int index, double value, Parameter parameter) {
+        values.values[node * values.dim + index] = value;
+        if (values.firesTreeEvents) {
+            pushTreeChangedEvent(TreeChangedEvent.create(nodes[node], parameter, index, values == heights));
+        }
+        values.fireParameterChangedEvents(slotOfNode[node], index, Parameter.ChangeType.VALUE_CHANGED);
+    }
+
+    // **************************************************************
+    // Private inner classes
+    // **************************************************************
+
+    private static final class Node implements NodeRef {
+
+        private Node(int number, Taxon taxon) {
+            this.number = number;
+            this.taxon = taxon;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public void setNumber(int n) {
+            throw new UnsupportedOperationException("Node is immutable");
+        }
+
+        private final int number;
+        private Taxon taxon;
+    }
+
+    /**
+     * A set of values for each node (heights, rates or a trait of dimension dim) with the parameters
+     * that are views on them.
+     */
+    private final class NodeValues {
+
+        NodeValues(int dim, boolean firesTreeEvents) {
+            this.dim = dim;
+            this.firesTreeEvents = firesTreeEvents;
+            values = new double[nodeCount * dim];
+            storedValues = new double[nodeCount * dim];
+            parametersOfSlot = new NodeParameter[nodeCount][];
+            slotParameters = new NodeParameter[nodeCount];
+        }
+
+        /**
+         * @return the parameter for a single slot (created the first time it is asked for).
+         */
+        NodeParameter getSlotParameter(int slot, String parameterName) {
+            if (slotParameters[slot] == null) {
+                slotParameters[slot] = createParameter(parameterName, new int[] { slot });
+            }
+            return slotParameters[slot];
+        }
+
+        NodeParameter createParameter(String parameterName, int[] slots) {
+            NodeParameter parameter = new NodeParameter(parameterName, this, slots);
+            for (int slot : slots) {
+                NodeParameter[] parameters = parametersOfSlot[slot];
+                if (parameters == null) {
+                    parametersOfSlot[slot] = new NodeParameter[] { parameter };
+                } else {
+                    parametersOfSlot[slot] = Arrays.copyOf(parameters, parameters.length + 1);
+                    parametersOfSlot[slot][parameters.length] = parameter;
+                }
+            }
+            return parameter;
+        }
+
+        void fireParameterChangedEvents(int slot, int index, Parameter.ChangeType type) {
+            NodeParameter[] parameters = parametersOfSlot[slot];
+            if (parameters != null) {
+                for (NodeParameter parameter : parameters) {
+                    parameter.fireParameterChangedEvent(
+                            index == -1 ? -1 : parameter.indexOfSlot(slot) * dim + index, type);
+                }
+            }
+        }
+
+        void store() {
+            System.arraycopy(values, 0, storedValues, 0, values.length);
+        }
+
+        void restore() {
+            double[] tmp = storedValues;
+            storedValues = values;
+            values = tmp;
+        }
+
+        final int dim;
+        final boolean firesTreeEvents;
+
+        double[] values;
+        double[] storedValues;
+
+        private final NodeParameter[][] parametersOfSlot;
+        private final NodeParameter[] slotParameters;
+    }
+
+    /**
+     * A parameter that is a view on the values of a set of slots.
+     */
+    private final class NodeParameter extends Parameter.Proxy {
+
+        NodeParameter(String name, NodeValues nodeValues, int[] slots) {
+            super(name, slots.length * nodeValues.dim);
+            this.nodeValues = nodeValues;
+            this.slots = slots;
+
+            if (slots.length > 1) {
+                indexOfSlot = new int[nodeCount];
+                Arrays.fill(indexOfSlot, -1);
+                for (int i = 0; i < slots.length; i++) {
+                    indexOfSlot[slots[i]] = i;
+                }
+            } else {
+                indexOfSlot = null;
+            }
+
+            if (nodeValues == heights) {
+                bounds = new NodeHeightBounds(this);
+            } else if (nodeValues == rates) {
+                bounds = new Parameter.DefaultBounds(Double.POSITIVE_INFINITY, 0.0, dim);
+            } else {
+                bounds = new Parameter.DefaultBounds(Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, dim);
+            }
+        }
+
+        int indexOfSlot(int slot) {
+            return indexOfSlot == null ? 0 : indexOfSlot[slot];
+        }
+
+        int getNodeNumber(int index) {
+            return nodeOfSlot[slots[index / nodeValues.dim]];
+        }
+
+        @Override
+        public String getParameterName() {
+            String id = getId();
+            return id != null ? id : super.getParameterName();
+        }
+
+        @Override
+        public double getParameterValue(int index) {
+            return nodeValues.values[getNodeNumber(index) * nodeValues.dim + index % nodeValues.dim];
+        }
+
+        @Override
+        public void setParameterValue(int index, double value) {
+            setNodeValue(nodeValues, getNodeNumber(index), index % nodeValues.dim, value, this);
+        }
+
+        @Override
+        public void setParameterValueQuietly(int index, double value) {
+            nodeValues.values[getNodeNumber(index) * nodeValues.dim + index % nodeValues.dim] = value;
+        }
+
+        @Override
+        public void setParameterValueNotifyChangedAll(int index, double value) {
+            int node = getNodeNumber(index);
+            nodeValues.values[node * nodeValues.dim + index % nodeValues.dim] = value;
+            if (nodeValues.firesTreeEvents) {
+                pushTreeChangedEvent(TreeChangedEvent.create(nodes[node], this, nodeValues == heights));
+            }
+            nodeValues.fireParameterChangedEvents(slotOfNode[node], -1, Parameter.ChangeType.ALL_VALUES_CHANGED);
+        }
+
+        @Override
+        public Bounds<Double> getBounds() {
+            return bounds;
+        }
+
+        @Override
+        public void addBounds(final Bounds<Double> boundary) {
+            // the intersection of the existing bounds and the new ones
+            final Bounds<Double> existing = bounds;
+            bounds = new Bounds<Double>() {
+                public Double getUpperLimit(int i) {
+                    return Math.min(existing.getUpperLimit(i), boundary.getUpperLimit(i));
+                }
+
+                public Double getLowerLimit(int i) {
+                    return Math.max(existing.getLowerLimit(i), boundary.getLowerLimit(i));
+                }
+
+                public int getBoundsDimension() {
+                    return existing.getBoundsDimension();
+                }
+            };
+        }
+
+        private final NodeValues nodeValues;
+        private final int[] slots;
+        private final int[] indexOfSlot;
+        private Bounds<Double> bounds;
+    }
+
+    /**
+     * This class provides bounds for parameters that represent node heights
+     * in this tree model.
+     */
+    private class NodeHeightBounds implements Bounds<Double> {
+
+        public NodeHeightBounds(NodeParameter parameter) {
+            this.parameter = parameter;
+        }
+
+        public Double getUpperLimit(int i) {
+            return getNodeHeightUpper(parameter.getNodeNumber(i));
+        }
+
+        public Double getLowerLimit(int i) {
+            return getNodeHeightLower(parameter.getNodeNumber(i));
+        }
+
+        public int getBoundsDimension() {
+            return parameter.getDimension();
+        }
+
+        private final NodeParameter parameter;
+    }
+
+    // ***********************************************************************
+    // Private members
+    // ***********************************************************************
+
+    private final Node[] nodes;
+
+    /**
+     * the parent of each node and the two children of each node (-1 if none)
+     */
+    private int[] parents;
+    private int[] storedParents;
+    private int[] children;
+    private int[] storedChildren;
+
+    private int root;
+    private int storedRoot;
+    private int oldRoot;
+
+    /**
+     * the node heights and any rates and traits
+     */
+    private final NodeValues heights;
+    private NodeValues rates = null;
+    private final Map<String, NodeValues> traits = new LinkedHashMap<String, NodeValues>();
+
+    /**
+     * the slots that the node parameters refer to for each node and vice versa
+     */
+    private int[] slotOfNode;
+    private int[] storedSlotOfNode;
+    private int[] nodeOfSlot;
+    private int[] storedNodeOfSlot;
+
+    /**
+     * number of nodes (including root and tips)
+     */
+    private final int nodeCount;
+
+    /**
+     * number of external nodes
+     */
+    private final int externalNodeCount;
+
+    /**
+     * number of internal nodes (including root)
+     */
+    private final int internalNodeCount;
+
+    private boolean isTipDateSampled = false;
+}
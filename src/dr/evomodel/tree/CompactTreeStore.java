@@ -0,0 +1,613 @@
+/*
+ * CompactTreeStore.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.tree;
+
+import dr.evolution.io.Importer;
+import dr.evolution.io.NexusImporter;
+import dr.evolution.io.TreeImporter;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.TaxonList;
+import dr.evolution.util.Units;
+import dr.util.Attributable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A compact store for a set of binary trees on the same taxa (e.g., a posterior sample of
+ * trees for EmpiricalTreeDistributionModel). Each tree is packed into primitive arrays giving
+ * the children of each internal node and the height of each node and a tree is only
+ * materialised (as a StoredTree) when it is needed.
+ *
+ * The external nodes are numbered by the index of their taxon in the given taxon list and the
+ * internal nodes are numbered in post order, so for every tree the root is the last node and
+ * the internal node numbers in increasing order are a post order traversal.
+ *
+ * The trees can be held in memory or written to a binary file which is then memory mapped
+ * so the trees don't need to be held on the heap at all. The binary file records the size and
+ * modification time of the tree file it was created from and is reused for later runs.
+ *
+ * Node attributes (including rates) are not stored.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class CompactTreeStore {
+
+    private static final int MAGIC = 0x42545245; // 'BTRE'
+    private static final int VERSION = 1;
+
+    // the maximum size of a memory mapped segment of the binary file
+    private static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+    private CompactTreeStore(TaxonList taxa, Units.Type units) {
+        this.taxa = taxa;
+        this.units = units;
+        this.taxonCount = taxa.getTaxonCount();
+        this.recordSize = 4 * 2 * (taxonCount - 1) + 8 * (2 * taxonCount - 1);
+    }
+
+    /**
+     * Reads all the trees from the importer and packs them into memory.
+     *
+     * @param importer the tree importer
+     * @param taxa     the taxa (the trees must have exactly these taxa)
+     * @return the store
+     */
+    public static CompactTreeStore readTrees(TreeImporter importer, TaxonList taxa) throws IOException, Importer.ImportException {
+        List<int[]> children = new ArrayList<int[]>();
+        List<double[]> heights = new ArrayList<double[]>();
+
+        Packer packer = null;
+        while (importer.hasTree()) {
+            Tree tree = importer.importNextTree();
+            if (packer == null) {
+                packer = new Packer(taxa);
+            }
+            int[] treeChildren = new int[2 * (taxa.getTaxonCount() - 1)];
+            double[] treeHeights = new double[2 * taxa.getTaxonCount() - 1];
+            packer.pack(tree, treeChildren, treeHeights);
+            children.add(treeChildren);
+            heights.add(treeHeights);
+        }
+        if (packer == null) {
+            throw new Importer.ImportException("No trees found");
+        }
+
+        CompactTreeStore store = new CompactTreeStore(taxa, packer.getUnits());
+        store.treeCount = children.size();
+        store.children = children.toArray(new int[store.treeCount][]);
+        store.heights = heights.toArray(new double[store.treeCount][]);
+        return store;
+    }
+
+    /**
+     * Memory maps the trees from a binary file. If the binary file doesn't exist or wasn't
+     * made from the current version of the tree file (or for the same taxa) then it is (re)built
+     * from the tree file first.
+     *
+     * @param treeFile   the NEXUS tree file
+     * @param taxa       the taxa (the trees must have exactly these taxa)
+     * @param binaryFile the binary file
+     * @return the store
+     */
+    public static CompactTreeStore mapTrees(File treeFile, TaxonList taxa, File binaryFile) throws IOException, Importer.ImportException {
+        CompactTreeStore store = openBinaryFile(treeFile, taxa, binaryFile);
+        if (store == null) {
+            writeBinaryFile(treeFile, taxa, binaryFile);
+            store = openBinaryFile(treeFile, taxa, binaryFile);
+            if (store == null) {
+                throw new IOException("Unable to read tree store file, " + binaryFile.getName());
+            }
+        }
+        return store;
+    }
+
+    private static void writeBinaryFile(File treeFile, TaxonList taxa, File binaryFile) throws IOException, Importer.ImportException {
+        File tempFile = new File(binaryFile.getPath() + ".tmp");
+
+        Reader reader = new BufferedReader(new FileReader(treeFile));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16));
+        int treeCount = 0;
+        long treeCountPosition;
+        try {
+            NexusImporter importer = new NexusImporter(reader);
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(treeFile.length());
+            out.writeLong(treeFile.lastModified());
+            out.writeInt(taxa.getTaxonCount());
+            for (int i = 0; i < taxa.getTaxonCount(); i++) {
+                out.writeUTF(taxa.getTaxonId(i));
+            }
+            treeCountPosition = out.size();
+            out.writeInt(0); // the number of trees
+            out.writeInt(0); // the units
+            int[] children = new int[2 * (taxa.getTaxonCount() - 1)];
+            double[] heights = new double[2 * taxa.getTaxonCount() - 1];
+
+            Packer packer = null;
+            while (importer.hasTree()) {
+                Tree tree = importer.importNextTree();
+                if (packer == null) {
+                    packer = new Packer(taxa);
+                }
+                packer.pack(tree, children, heights);
+                for (int child : children) {
+                    out.writeInt(child);
+                }
+                for (double height : heights) {
+                    out.writeDouble(height);
+                }
+                treeCount++;
+            }
+            if (packer == null) {
+                throw new Importer.ImportException("No trees found in file, " + treeFile.getName());
+            }
+            out.close();
+
+            RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+            file.seek(treeCountPosition);
+            file.writeInt(treeCount);
+            file.writeInt(packer.getUnits().ordinal());
+            file.close();
+        } catch (IOException e) {
+            out.close();
+            tempFile.delete();
+            throw e;
+        } catch (Importer.ImportException e) {
+            out.close();
+            tempFile.delete();
+            throw e;
+        } finally {
+            reader.close();
+        }
+
+        if (binaryFile.exists() && !binaryFile.delete()) {
+            throw new IOException("Unable to replace tree store file, " + binaryFile.getName());
+        }
+        if (!tempFile.renameTo(binaryFile)) {
+            throw new IOException("Unable to create tree store file, " + binaryFile.getName());
+        }
+    }
+
+    /**
+     * @return the store mapped from the binary file or null if it doesn't exist or doesn't match the tree file and taxa
+     */
+    private static CompactTreeStore openBinaryFile(File treeFile, TaxonList taxa, File binaryFile) throws IOException {
+        if (!binaryFile.exists()) {
+            return null;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(binaryFile, "r");
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file.getFD())));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+                    in.readLong() != treeFile.length() || in.readLong() != treeFile.lastModified() ||
+                    in.readInt() != taxa.getTaxonCount()) {
+                return null;
+            }
+            long position = 4 + 4 + 8 + 8 + 4;
+            for (int i = 0; i < taxa.getTaxonCount(); i++) {
+                String id = in.readUTF();
+                if (!id.equals(taxa.getTaxonId(i))) {
+                    return null;
+                }
+                position += 2 + getUTFLength(id);
+            }
+            int treeCount = in.readInt();
+            Units.Type units = Units.Type.values()[in.readInt()];
+            position += 4 + 4;
+
+            CompactTreeStore store = new CompactTreeStore(taxa, units);
+            if (treeCount == 0 || file.length() != position + (long) treeCount * store.recordSize) {
+                return null;
+            }
+
+            store.treeCount = treeCount;
+            store.treesPerSegment = Math.max(1, MAX_SEGMENT_SIZE / store.recordSize);
+            int segmentCount = (treeCount + store.treesPerSegment - 1) / store.treesPerSegment;
+            store.segments = new ByteBuffer[segmentCount];
+            FileChannel channel = file.getChannel();
+            for (int i = 0; i < segmentCount; i++) {
+                int count = Math.min(store.treesPerSegment, treeCount - i * store.treesPerSegment);
+                store.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        position + (long) i * store.treesPerSegment * store.recordSize, (long) count * store.recordSize);
+            }
+            return store;
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            // the mapping remains valid after the file is closed
+            file.close();
+        }
+    }
+
+    /**
+     * @return the number of bytes written by DataOutput.writeUTF for the string (excluding the length)
+     */
+    private static int getUTFLength(String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length += 1;
+            } else if (c <= 0x07FF) {
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    public int getTreeCount() {
+        return treeCount;
+    }
+
+    public TaxonList getTaxa() {
+        return taxa;
+    }
+
+    /**
+     * @return the internal node numbers of every tree in post order
+     */
+    public int[] getInternalNodePostOrder() {
+        int[] postOrder = new int[taxonCount - 1];
+        for (int i = 0; i < postOrder.length; i++) {
+            postOrder[i] = taxonCount + i;
+        }
+        return postOrder;
+    }
+
+    /**
+     * Creates a tree which can be set to any of the trees in the store. The tree is
+     * immutable apart from its (tree level) attributes.
+     */
+    public StoredTree createTree(int index) {
+        StoredTree tree = new StoredTree();
+        tree.setTree(index);
+        return tree;
+    }
+
+    private void readTree(int index, int[] treeChildren, double[] treeHeights) {
+        if (segments == null) {
+            System.arraycopy(children[index], 0, treeChildren, 0, treeChildren.length);
+            System.arraycopy(heights[index], 0, treeHeights, 0, treeHeights.length);
+        } else {
+            ByteBuffer segment = segments[index / treesPerSegment];
+            int position = (index % treesPerSegment) * recordSize;
+            for (int i = 0; i < treeChildren.length; i++) {
+                treeChildren[i] = segment.getInt(position);
+                position += 4;
+            }
+            for (int i = 0; i < treeHeights.length; i++) {
+                treeHeights[i] = segment.getDouble(position);
+                position += 8;
+            }
+        }
+    }
+
+    /**
+     * Packs trees into the store's arrays - the external nodes are numbered by taxon and the
+     * internal nodes in post order.
+     */
+    private static class Packer {
+        Packer(TaxonList taxa) {
+            this.taxa = taxa;
+            taxonIndices = new HashMap<String, Integer>();
+            for (int i = 0; i < taxa.getTaxonCount(); i++) {
+                taxonIndices.put(taxa.getTaxonId(i), i);
+            }
+        }
+
+        void pack(Tree tree, int[] children, double[] heights) throws Importer.ImportException {
+            int taxonCount = taxa.getTaxonCount();
+            if (tree.getExternalNodeCount() != taxonCount) {
+                throw new Importer.ImportException("Mismatch in taxa count in tree file (" + tree.getExternalNodeCount() +
+                        ") and <taxa> block (" + taxonCount + ")");
+            }
+            if (units == null) {
+                units = tree.getUnits();
+            }
+
+            int[] numbers = new int[tree.getNodeCount()];
+            int nextInternal = taxonCount;
+
+            // an iterative post order traversal (as the trees may be very deep)
+            Deque<NodeRef> stack = new ArrayDeque<NodeRef>();
+            Deque<Boolean> visited = new ArrayDeque<Boolean>();
+            stack.push(tree.getRoot());
+            visited.push(false);
+            while (!stack.isEmpty()) {
+                NodeRef node = stack.pop();
+                boolean childrenDone = visited.pop();
+
+                if (tree.isExternal(node)) {
+                    String id = tree.getNodeTaxon(node).getId();
+                    Integer index = taxonIndices.get(id);
+                    if (index == null) {
+                        throw new Importer.ImportException("Taxon, " + id + ", in tree file not found in <taxa> block");
+                    }
+                    numbers[node.getNumber()] = index;
+                    heights[index] = tree.getNodeHeight(node);
+                } else if (!childrenDone) {
+                    if (tree.getChildCount(node) != 2) {
+                        throw new Importer.ImportException("Trees must be strictly bifurcating to be stored compactly");
+                    }
+                    stack.push(node);
+                    visited.push(true);
+                    stack.push(tree.getChild(node, 1));
+                    visited.push(false);
+                    stack.push(tree.getChild(node, 0));
+                    visited.push(false);
+                } else {
+                    int number = nextInternal++;
+                    numbers[node.getNumber()] = number;
+                    children[2 * (number - taxonCount)] = numbers[tree.getChild(node, 0).getNumber()];
+                    children[2 * (number - taxonCount) + 1] = numbers[tree.getChild(node, 1).getNumber()];
+                    heights[number] = tree.getNodeHeight(node);
+                }
+            }
+        }
+
+        Units.Type getUnits() {
+            return units != null ? units : Units.Type.SUBSTITUTIONS;
+        }
+
+        private final TaxonList taxa;
+        private final Map<String, Integer> taxonIndices;
+        private Units.Type units = null;
+    }
+
+    private static final class Node implements NodeRef {
+        Node(int number) {
+            this.number = number;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public void setNumber(int n) {
+            throw new UnsupportedOperationException("Nodes of stored trees can't be renumbered");
+        }
+
+        private final int number;
+    }
+
+    /**
+     * One of the trees in the store - setTree() switches it to another tree without allocating.
+     */
+    public class StoredTree implements Tree {
+
+        private StoredTree() {
+            int nodeCount = 2 * taxonCount - 1;
+            nodes = new Node[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                nodes[i] = new Node(i);
+            }
+            treeChildren = new int[2 * (taxonCount - 1)];
+            treeHeights = new double[nodeCount];
+            treeParents = new int[nodeCount];
+        }
+
+        public void setTree(int index) {
+            readTree(index, treeChildren, treeHeights);
+            for (int i = 0; i < treeChildren.length; i++) {
+                treeParents[treeChildren[i]] = taxonCount + (i / 2);
+            }
+            treeParents[treeParents.length - 1] = -1;
+            treeIndex = index;
+        }
+
+        public int getTreeIndex() {
+            return treeIndex;
+        }
+
+        public NodeRef getRoot() {
+            return nodes[nodes.length - 1];
+        }
+
+        public int getNodeCount() {
+            return nodes.length;
+        }
+
+        public NodeRef getNode(int i) {
+            return nodes[i];
+        }
+
+        public NodeRef getInternalNode(int i) {
+            return nodes[taxonCount + i];
+        }
+
+        public NodeRef getExternalNode(int i) {
+            return nodes[i];
+        }
+
+        public int getExternalNodeCount() {
+            return taxonCount;
+        }
+
+        public int getInternalNodeCount() {
+            return taxonCount - 1;
+        }
+
+        public Taxon getNodeTaxon(NodeRef node) {
+            return node.getNumber() < taxonCount ? taxa.getTaxon(node.getNumber()) : null;
+        }
+
+        public boolean hasNodeHeights() {
+            return true;
+        }
+
+        public double getNodeHeight(NodeRef node) {
+            return treeHeights[node.getNumber()];
+        }
+
+        public boolean hasBranchLengths() {
+            return true;
+        }
+
+        public double getBranchLength(NodeRef node) {
+            int parent = treeParents[node.getNumber()];
+            if (parent == -1) {
+                return 0.0;
+            }
+            return treeHeights[parent] - treeHeights[node.getNumber()];
+        }
+
+        public double getNodeRate(NodeRef node) {
+            return 1.0;
+        }
+
+        public Object getNodeAttribute(NodeRef node, String name) {
+            return null;
+        }
+
+        public Iterator getNodeAttributeNames(NodeRef node) {
+            return Collections.emptyList().iterator();
+        }
+
+        public boolean isExternal(NodeRef node) {
+            return node.getNumber() < taxonCount;
+        }
+
+        public boolean isRoot(NodeRef node) {
+            return node.getNumber() == nodes.length - 1;
+        }
+
+        public int getChildCount(NodeRef node) {
+            return node.getNumber() < taxonCount ? 0 : 2;
+        }
+
+        public NodeRef getChild(NodeRef node, int j) {
+            return nodes[treeChildren[2 * (node.getNumber() - taxonCount) + j]];
+        }
+
+        public NodeRef getParent(NodeRef node) {
+            int parent = treeParents[node.getNumber()];
+            return parent == -1 ? null : nodes[parent];
+        }
+
+        public Tree getCopy() {
+            return new FlexibleTree(this);
+        }
+
+        public int getTaxonCount() {
+            return taxonCount;
+        }
+
+        public Taxon getTaxon(int taxonIndex) {
+            return taxa.getTaxon(taxonIndex);
+        }
+
+        public String getTaxonId(int taxonIndex) {
+            return taxa.getTaxonId(taxonIndex);
+        }
+
+        public int getTaxonIndex(String id) {
+            return taxa.getTaxonIndex(id);
+        }
+
+        public int getTaxonIndex(Taxon taxon) {
+            return taxa.getTaxonIndex(taxon);
+        }
+
+        public List<Taxon> asList() {
+            return taxa.asList();
+        }
+
+        public Object getTaxonAttribute(int taxonIndex, String name) {
+            return taxa.getTaxonAttribute(taxonIndex, name);
+        }
+
+        public Iterator<Taxon> iterator() {
+            return taxa.iterator();
+        }
+
+        public Type getUnits() {
+            return units;
+        }
+
+        public void setUnits(Type units) {
+            throw new UnsupportedOperationException("The units of stored trees can't be changed");
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public void setAttribute(String name, Object value) {
+            if (attributes == null) {
+                attributes = new Attributable.AttributeHelper();
+            }
+            attributes.setAttribute(name, value);
+        }
+
+        public Object getAttribute(String name) {
+            return attributes != null ? attributes.getAttribute(name) : null;
+        }
+
+        public Iterator<String> getAttributeNames() {
+            return attributes != null ? attributes.getAttributeNames() : Collections.<String>emptyList().iterator();
+        }
+
+        private final Node[] nodes;
+        private final int[] treeChildren;
+        private final double[] treeHeights;
+        private final int[] treeParents;
+        private int treeIndex = -1;
+
+        private String id = null;
+        private Attributable.AttributeHelper attributes = null;
+    }
+
+    private final TaxonList taxa;
+    private final Units.Type units;
+    private final int taxonCount;
+    private final int recordSize;
+
+    private int treeCount;
+
+    // the trees held in memory...
+    private int[][] children = null;
+    private double[][] heights = null;
+
+    // ...or memory mapped from the binary file
+    private ByteBuffer[] segments = null;
+    private int treesPerSegment;
+}
@@ -41,7 +41,7 @@ import java.util.Map;
  * @author Alexei Drummond
  * @version $Id$
  */
-public class DefaultTreeModel extends TreeModel {
+public class DefaultTreeModel extends TreeModel implements NodeParameterProvider {
 
     //
     // Public stuff
@@ -965,22 +965,23 @@ public class DefaultTreeModel extends TreeModel {
         // swap all trait parameters
 
         if (hasTraits) {
-            Map<String, Parameter> traits1 = new HashMap<String, Parameter>();
-            Map<String, Parameter> traits2 = new HashMap<String, Parameter>();
+            // take copies of all the values before the parameters are swapped
+            Map<String, double[]> traits1 = new HashMap<String, double[]>();
+            Map<String, double[]> traits2 = new HashMap<String, double[]>();
 
-            traits1.putAll(n1.traitParameters);
-            traits2.putAll(n2.traitParameters);
+            for (Map.Entry<String, Parameter> entry : n1.traitParameters.entrySet()) {
+                traits1.put(entry.getKey(), entry.getValue().getParameterValues());
+            }
+            for (Map.Entry<String, Parameter> entry : n2.traitParameters.entrySet()) {
+                traits2.put(entry.getKey(), entry.getValue().getParameterValues());
+            }
 
             Map<String, Parameter> temp = n1.traitParameters;
             n1.traitParameters = n2.traitParameters;
             n2.traitParameters = temp;
 
-            for (Map.Entry<String, Parameter> entry : traits1.entrySet()) {
-                n1.traitParameters.get(entry.getKey()).setParameterValueQuietly(0, entry.getValue().getParameterValue(0));
-            }
-            for (Map.Entry<String, Parameter> entry : traits2.entrySet()) {
-                n2.traitParameters.get(entry.getKey()).setParameterValueQuietly(0, entry.getValue().getParameterValue(0));
-            }
+            setTraitValuesQuietly(n1, traits1);
+            setTraitValuesQuietly(n2, traits2);
         }
 
         Parameter temp = n1.heightParameter;
@@ -1002,6 +1003,16 @@ public class DefaultTreeModel extends TreeModel {
         }
     }
 
+    private void setTraitValuesQuietly(Node node, Map<String, double[]> traits) {
+        for (Map.Entry<String, double[]> entry : traits.entrySet()) {
+            Parameter parameter = node.traitParameters.get(entry.getKey());
+            double[] values = entry.getValue();
+            for (int i = 0; i < values.length; i++) {
+                parameter.setParameterValueQuietly(i, values[i]);
+            }
+        }
+    }
+
     // **************************************************************
     // Private inner classes
     // **************************************************************
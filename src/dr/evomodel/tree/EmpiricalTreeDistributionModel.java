@@ -29,6 +29,7 @@ import dr.evolution.io.Importer;
 import dr.evolution.io.TreeImporter;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
+import dr.evolution.tree.TreeUtils;
 import dr.evolution.util.Taxon;
 import dr.math.MathUtils;
 import dr.inference.model.Statistic;
@@ -51,7 +52,7 @@ public class EmpiricalTreeDistributionModel extends DefaultTreeModel {
      * @param startingTree
      */
     public EmpiricalTreeDistributionModel(final Tree[] trees, int startingTree) {
-        this(trees, null, startingTree);
+        this(trees, null, null, startingTree);
     }
 
     /**
@@ -61,14 +62,31 @@ public class EmpiricalTreeDistributionModel extends DefaultTreeModel {
      * @param startingTree
      */
     public EmpiricalTreeDistributionModel(final TreeImporter importer, int startingTree) {
-        this(null, importer, startingTree);
+        this(null, importer, null, startingTree);
     }
 
-    private EmpiricalTreeDistributionModel(final Tree[] trees, final TreeImporter importer, int startingTree) {
+    /**
+     * This constructor takes a compact store of trees and jumps randomly amongst them. Only
+     * the current (and stored) tree is materialised.
+     * @param store
+     * @param startingTree
+     */
+    public EmpiricalTreeDistributionModel(final CompactTreeStore store, int startingTree) {
+        this(null, null, store, startingTree);
+    }
+
+    private EmpiricalTreeDistributionModel(final Tree[] trees, final TreeImporter importer, final CompactTreeStore store, int startingTree) {
         super(EMPIRICAL_TREE_DISTRIBUTION_MODEL);
 
         this.trees = trees;
         this.importer = importer;
+        this.store = store;
+        if (trees != null) {
+            postOrders = new int[trees.length][];
+        } else if (store != null) {
+            // the stored trees have their internal nodes numbered in post order
+            storePostOrder = store.getInternalNodePostOrder();
+        }
         drawTreeIndex(startingTree);
 
         addStatistic(new Statistic.Abstract("Current Tree")  {
@@ -85,10 +103,12 @@ public class EmpiricalTreeDistributionModel extends DefaultTreeModel {
 
     protected void storeState() {
         storedCurrentTree = currentTree;
+        storedCurrentTreeIndex = currentTreeIndex;
     }
 
     protected void restoreState() {
         currentTree = storedCurrentTree;
+        currentTreeIndex = storedCurrentTreeIndex;
     }
 
     protected void acceptState() {
@@ -113,6 +133,20 @@ public class EmpiricalTreeDistributionModel extends DefaultTreeModel {
                 throw new RuntimeException("EmpiricalTreeDistributionModel unable to load next tree");
             }
             currentTreeIndex += 1;
+            currentPostOrder = null;
+        } else if (store != null) {
+            currentTreeIndex = (treeNumber == -1 ? MathUtils.nextInt(store.getTreeCount()) : treeNumber);
+
+            // two trees are materialised and reused - the stored one is left alone so it can be restored
+            CompactTreeStore.StoredTree tree = (storedTrees[0] != null && storedTrees[0] != storedCurrentTree ?
+                    storedTrees[0] : storedTrees[1]);
+            if (tree == null) {
+                tree = store.createTree(currentTreeIndex);
+                storedTrees[storedTrees[0] == null ? 0 : 1] = tree;
+            } else {
+                tree.setTree(currentTreeIndex);
+            }
+            currentTree = tree;
         } else {
             if (treeNumber == -1) {
                 currentTreeIndex = MathUtils.nextInt(trees.length);
@@ -132,6 +166,42 @@ public class EmpiricalTreeDistributionModel extends DefaultTreeModel {
         fireModelChanged(TreeChangedEvent.create());
     }
 
+    /**
+     * The internal node numbers of the current tree in post order. These are cached for each
+     * tree so a whole tree traversal (e.g., by the likelihood after a jump to a new tree) doesn't
+     * need to recurse through the tree.
+     * @return the node numbers
+     */
+    public int[] getInternalNodePostOrder() {
+        if (store != null) {
+            return storePostOrder;
+        }
+        if (trees == null) {
+            if (currentPostOrder == null) {
+                currentPostOrder = createInternalNodePostOrder(currentTree);
+            }
+            return currentPostOrder;
+        }
+        if (postOrders[currentTreeIndex] == null) {
+            postOrders[currentTreeIndex] = createInternalNodePostOrder(trees[currentTreeIndex]);
+        }
+        return postOrders[currentTreeIndex];
+    }
+
+    private static int[] createInternalNodePostOrder(Tree tree) {
+        int[] postOrder = new int[tree.getInternalNodeCount()];
+        int count = 0;
+        NodeRef node = tree.getRoot();
+        do {
+            node = TreeUtils.postorderSuccessor(tree, node);
+            if (!tree.isExternal(node)) {
+                postOrder[count] = node.getNumber();
+                count++;
+            }
+        } while (node != tree.getRoot());
+        return postOrder;
+    }
+
     public NodeRef getRoot() {
         return currentTree.getRoot();
     }
@@ -161,7 +231,7 @@ public class EmpiricalTreeDistributionModel extends DefaultTreeModel {
     }
 
     public Taxon getNodeTaxon(final NodeRef node) {
-        return trees[currentTreeIndex].getNodeTaxon(node);
+        return currentTree.getNodeTaxon(node);
     }
 
     public boolean hasNodeHeights() {
@@ -272,8 +342,15 @@ public class EmpiricalTreeDistributionModel extends DefaultTreeModel {
 
     private final Tree[] trees;
     private final TreeImporter importer;
+    private final CompactTreeStore store;
+    private final CompactTreeStore.StoredTree[] storedTrees = new CompactTreeStore.StoredTree[2];
     private Tree currentTree;
     private Tree storedCurrentTree;
 
     private int currentTreeIndex;
+    private int storedCurrentTreeIndex;
+
+    private int[][] postOrders = null;
+    private int[] currentPostOrder = null;
+    private int[] storePostOrder = null;
 }
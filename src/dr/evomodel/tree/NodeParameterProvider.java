@@ -0,0 +1,75 @@
+/*
+ * NodeParameterProvider.java
+ *
+ * Copyright (c) 2002-2018 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.tree;
+
+import dr.evolution.tree.NodeRef;
+import dr.inference.model.Parameter;
+
+/**
+ * A tree model that provides its node heights, rates and traits as parameters. These are used by
+ * the XML parser and by operators that change the node values directly.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public interface NodeParameterProvider {
+
+    /**
+     * @return the height parameter of the root (this follows the root if it changes)
+     */
+    Parameter getRootHeightParameter();
+
+    Parameter createNodeHeightsParameter(boolean rootNode, boolean internalNodes, boolean leafNodes);
+
+    /**
+     * @return the height parameter of a leaf (marking the tip dates as sampled)
+     */
+    Parameter getLeafHeightParameter(NodeRef node);
+
+    Parameter createNodeRatesParameter(double[] initialValues, boolean rootNode, boolean internalNodes, boolean leafNodes);
+
+    Parameter createNodeTraitsParameter(String name, double[] initialValues);
+
+    Parameter createNodeTraitsParameter(String name, int dim, double[] initialValues,
+                                        boolean rootNode, boolean internalNodes,
+                                        boolean leafNodes, boolean firesTreeEvents);
+
+    Parameter getNodeTraitParameter(NodeRef node, String name);
+
+    /**
+     * @return the value of a trait of a node (the first dimension of a multivariate trait)
+     */
+    double getNodeTrait(NodeRef node, String name);
+
+    boolean hasRates();
+
+    boolean hasNodeTraits();
+
+    /**
+     * Swaps the values of all the traits of the two nodes.
+     */
+    void swapAllTraits(NodeRef node1, NodeRef node2);
+}
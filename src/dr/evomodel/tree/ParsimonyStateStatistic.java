@@ -25,6 +25,7 @@
 
 package dr.evomodel.tree;
 
+import dr.evolution.parsimony.BitFitchParsimony;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 import dr.evolution.tree.TreeUtils;
@@ -47,7 +48,8 @@ public class ParsimonyStateStatistic extends TreeStatistic {
 
         super(name);
         this.tree = tree;
-        this.stateLeafSet = TreeUtils.getLeavesForTaxa(tree, stateTaxa);
+        this.parsimony = new BitFitchParsimony(
+                ParsimonyStatistic.getBinaryCharacter(tree, TreeUtils.getLeavesForTaxa(tree, stateTaxa)), false);
         if (mrcaTaxa != null) {
             this.mrcaLeafSet = TreeUtils.getLeavesForTaxa(tree, mrcaTaxa);
         }
@@ -77,10 +79,15 @@ public class ParsimonyStateStatistic extends TreeStatistic {
         } else {
             node = tree.getRoot();
         }
-        return TreeUtils.getParsimonyState(tree, node, stateLeafSet);
+        // the Fitch state set at the node: 0 for the taxon set's state, 1 for the other and 0.5 for either
+        boolean[] stateSet = parsimony.getStateSets(tree, node)[0];
+        if (stateSet[0] && stateSet[1]) {
+            return 0.5;
+        }
+        return stateSet[0] ? 0.0 : 1.0;
     }
 
     private Tree tree = null;
-    private Set stateLeafSet = null;
+    private final BitFitchParsimony parsimony;
     private Set<String> mrcaLeafSet = null;
 }
@@ -25,6 +25,10 @@
 
 package dr.evomodel.tree;
 
+import dr.evolution.alignment.PatternList;
+import dr.evolution.alignment.Patterns;
+import dr.evolution.datatype.TwoStates;
+import dr.evolution.parsimony.BitFitchParsimony;
 import dr.evolution.tree.Tree;
 import dr.evolution.tree.TreeUtils;
 import dr.evolution.util.TaxonList;
@@ -46,7 +50,20 @@ public class ParsimonyStatistic extends TreeStatistic {
 
         super(name);
         this.tree = tree;
-        this.leafSet = TreeUtils.getLeavesForTaxa(tree, taxa);
+        this.parsimony = new BitFitchParsimony(getBinaryCharacter(tree, TreeUtils.getLeavesForTaxa(tree, taxa)), false);
+    }
+
+    /**
+     * A binary character with state 0 for the taxa in the set and 1 for the others.
+     */
+    static PatternList getBinaryCharacter(TaxonList taxa, Set<String> stateTaxa) {
+        Patterns patterns = new Patterns(TwoStates.INSTANCE, taxa);
+        int[] pattern = new int[taxa.getTaxonCount()];
+        for (int i = 0; i < pattern.length; i++) {
+            pattern[i] = (stateTaxa.contains(taxa.getTaxonId(i)) ? 0 : 1);
+        }
+        patterns.addPattern(pattern);
+        return patterns;
     }
 
     public void setTree(Tree tree) {
@@ -62,14 +79,15 @@ public class ParsimonyStatistic extends TreeStatistic {
     }
 
     /**
-     * @return the parsimony tree length of the character.
+     * @return the parsimony tree length of the character (only the parts of the tree that
+     * have changed since the last call are recalculated).
      */
     public double getStatisticValue(int dim) {
 
-        return TreeUtils.getParsimonySteps(tree, leafSet);
+        return parsimony.getScore(tree);
     }
 
     private Tree tree = null;
-    private Set leafSet = null;
+    private final BitFitchParsimony parsimony;
 
 }
@@ -34,6 +34,7 @@ import dr.evolution.util.TaxonList;
 import dr.evomodel.branchmodel.BranchModel;
 import dr.evomodel.siteratemodel.SiteRateModel;
 import dr.evomodel.tipstatesmodel.TipStatesModel;
+import dr.evomodel.tree.EmpiricalTreeDistributionModel;
 import dr.evomodel.treelikelihood.PartialsRescalingScheme;
 import dr.inference.model.AbstractModel;
 import dr.inference.model.Model;
@@ -80,6 +81,8 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
     private static final String EXTRA_BUFFER_COUNT_PROPERTY = "beagle.extra.buffer.count";
     private static final String FORCE_VECTORIZATION = "beagle.force.vectorization";
     private static final String THREAD_COUNT = "beagle.thread.count";
+    // the memory (in MB) to use to cache the partials of subtrees shared between empirical trees (0 to turn off)
+    private static final String SUBTREE_CACHE_PROPERTY = "beagle.subtree.cache";
 
     // Which scheme to use if choice not specified (or 'default' is selected):
     private static final PartialsRescalingScheme DEFAULT_RESCALING_SCHEME = PartialsRescalingScheme.DYNAMIC;
@@ -95,6 +98,8 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
     private static final int RESCALE_FREQUENCY = 100;
     private static final int RESCALE_TIMES = 1;
 
+    private static final int DEFAULT_SUBTREE_CACHE_SIZE = 256; // MB
+
     // count the number of partial likelihood and matrix updates
     private long totalMatrixUpdateCount = 0;
     private long totalPartialsUpdateCount = 0;
@@ -157,6 +162,7 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
         storedScaleBufferIndices = new int[internalNodeCount];
 
         operations = new int[internalNodeCount * Beagle.OPERATION_TUPLE_SIZE];
+        nodeOperationArray = new int[internalNodeCount * LikelihoodTreeTraversal.NODE_OPERATION_SIZE];
 
         firstRescaleAttempt = true;
 
@@ -356,6 +362,20 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
                 requirementFlags |= BeagleFlag.PREORDER_TRANSPOSE_AUTO.getMask();
             }
 
+            // when jumping between the trees of an empirical distribution, keep the partials of the subtrees
+            // they share rather than recomputing the whole tree each time
+            if (tree instanceof EmpiricalTreeDistributionModel && !settings.usePreOrder && !useAutoScaling) {
+                int slotCount = getSubtreeCacheSlotCount();
+                if (slotCount > 0) {
+                    partialsCache = new SubtreePartialsCache(tipCount, internalNodeCount, slotCount);
+                    computeNodes = new int[internalNodeCount];
+                    numPartials = partialsCache.getPartialsBufferCount();
+                    numScaleBuffers = Math.max(numScaleBuffers, partialsCache.getScaleBufferCount());
+
+                    logger.info("  Caching the partials of up to " + slotCount + " subtrees across the empirical trees");
+                }
+            }
+
             // start auto resource selection
             String resourceAuto = System.getProperty(RESOURCE_AUTO_PROPERTY);
             if (resourceAuto != null && Boolean.parseBoolean(resourceAuto)) {
@@ -657,6 +677,26 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
         beagle.setTipStates(nodeIndex, states);
     }
 
+    /**
+     * @return the number of partials buffers to use for the subtree cache (or 0 if it is turned off)
+     */
+    private int getSubtreeCacheSlotCount() {
+        long megabytes = DEFAULT_SUBTREE_CACHE_SIZE;
+        String size = System.getProperty(SUBTREE_CACHE_PROPERTY);
+        if (size != null) {
+            megabytes = Long.parseLong(size);
+        }
+        if (megabytes <= 0) {
+            return 0;
+        }
+
+        long bytesPerSlot = 8L * patternCount * (stateCount * categoryCount + 1); // partials and scale factors
+        long slotCount = (megabytes << 20) / bytesPerSlot;
+
+        return (int) Math.min(Integer.MAX_VALUE / 2,
+                Math.max(slotCount, SubtreePartialsCache.getMinimumSlotCount(internalNodeCount)));
+    }
+
     /**
      * Calculate the log likelihood of the current state.
      *
@@ -665,6 +705,44 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
     @Override
     public double calculateLikelihood(List<BranchOperation> branchOperations, List<NodeOperation> nodeOperations, int rootNodeNumber) throws LikelihoodException {
 
+        int branchUpdateCount = 0;
+        for (BranchOperation op : branchOperations) {
+            branchUpdateIndices[branchUpdateCount] = op.getBranchNumber();
+            branchLengths[branchUpdateCount] = op.getBranchLength();
+            branchUpdateCount ++;
+        }
+
+        int k = 0;
+        for (NodeOperation op : nodeOperations) {
+            nodeOperationArray[k] = op.getNodeNumber();
+            nodeOperationArray[k + 1] = op.getLeftChild();
+            nodeOperationArray[k + 2] = op.getRightChild();
+            k += LikelihoodTreeTraversal.NODE_OPERATION_SIZE;
+        }
+
+        return calculateLikelihood(branchUpdateIndices, branchLengths, branchUpdateCount,
+                nodeOperationArray, nodeOperations.size(), rootNodeNumber);
+    }
+
+    /**
+     * Calculate the log likelihood of the current state using the operation arrays of the traversal directly.
+     *
+     * @return the log likelihood.
+     */
+    @Override
+    public double calculateLikelihood(LikelihoodTreeTraversal treeTraversal, int rootNodeNumber) throws LikelihoodException {
+        return calculateLikelihood(treeTraversal.getBranchNumbers(), treeTraversal.getBranchLengths(),
+                treeTraversal.getBranchOperationCount(), treeTraversal.getNodeOperationArray(),
+                treeTraversal.getNodeOperationCount(), rootNodeNumber);
+    }
+
+    /**
+     * Calculate the log likelihood given the branches to update and the node operations as tuples of
+     * (node, left child, right child).
+     */
+    private double calculateLikelihood(int[] branchNumbers, double[] branchUpdateLengths, int branchUpdateCount,
+                                       int[] nodeOperations, int operationCount, int rootNodeNumber) throws LikelihoodException {
+
         //recomputeScaleFactors = false;
         if (DEBUG) {
             System.out.println("Partition: " + this.getModelName());
@@ -729,13 +807,6 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
             recomputeScaleFactors = false;
         }
 
-        int branchUpdateCount = 0;
-        for (BranchOperation op : branchOperations) {
-            branchUpdateIndices[branchUpdateCount] = op.getBranchNumber();
-            branchLengths[branchUpdateCount] = op.getBranchLength();
-            branchUpdateCount ++;
-        }
-
         if (updateSubstitutionModel) { // TODO More efficient to update only the substitution model that changed, instead of all
             evolutionaryProcessDelegate.updateSubstitutionModels(beagle, flip);
 
@@ -761,11 +832,16 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
             beagle.setStateFrequencies(0, frequencies); // TODO make lazy?
         }
 
+        if (partialsCache != null) {
+            return calculateCachedLikelihood(branchNumbers, branchUpdateLengths, branchUpdateCount,
+                    nodeOperations, operationCount, rootNodeNumber);
+        }
+
         if (branchUpdateCount > 0) {
             evolutionaryProcessDelegate.updateTransitionMatrices(
                     beagle,
-                    branchUpdateIndices,
-                    branchLengths,
+                    branchNumbers,
+                    branchUpdateLengths,
                     branchUpdateCount,
                     flip);
         }
@@ -776,15 +852,18 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
 
         if (flip) {
             // Flip all the buffers to be written to first...
-            for (NodeOperation op : nodeOperations) {
-                partialBufferHelper.flipOffset(op.getNodeNumber());
+            for (int i = 0; i < operationCount; i++) {
+                partialBufferHelper.flipOffset(nodeOperations[i * LikelihoodTreeTraversal.NODE_OPERATION_SIZE]);
             }
         }
 
-        int operationCount = nodeOperations.size();
         int k = 0;
-        for (NodeOperation op : nodeOperations) {
-            int nodeNum = op.getNodeNumber();
+        int j = 0;
+        for (int i = 0; i < operationCount; i++) {
+            int nodeNum = nodeOperations[j];
+            int leftChild = nodeOperations[j + 1];
+            int rightChild = nodeOperations[j + 2];
+            j += LikelihoodTreeTraversal.NODE_OPERATION_SIZE;
 
             operations[k] = partialBufferHelper.getOffsetIndex(nodeNum);
 
@@ -820,10 +899,10 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
                 operations[k + 2] = Beagle.NONE;
             }
 
-            operations[k + 3] = partialBufferHelper.getOffsetIndex(op.getLeftChild()); // source node 1
-            operations[k + 4] = evolutionaryProcessDelegate.getMatrixIndex(op.getLeftChild()); // source matrix 1
-            operations[k + 5] = partialBufferHelper.getOffsetIndex(op.getRightChild()); // source node 2
-            operations[k + 6] = evolutionaryProcessDelegate.getMatrixIndex(op.getRightChild()); // source matrix 2
+            operations[k + 3] = partialBufferHelper.getOffsetIndex(leftChild); // source node 1
+            operations[k + 4] = evolutionaryProcessDelegate.getMatrixIndex(leftChild); // source matrix 1
+            operations[k + 5] = partialBufferHelper.getOffsetIndex(rightChild); // source node 2
+            operations[k + 6] = evolutionaryProcessDelegate.getMatrixIndex(rightChild); // source matrix 2
 
             k += Beagle.OPERATION_TUPLE_SIZE;
         }
@@ -852,6 +931,94 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
             beagle.accumulateScaleFactors(scaleBufferIndices, internalNodeCount, Beagle.NONE);
         }
 
+        return calculateRootLogLikelihood(rootIndex, cumulateScaleBufferIndex);
+    }
+
+    /**
+     * Calculates the likelihood using the subtree cache: only the nodes whose subtrees are not in the cache
+     * are computed, along with the transition matrices that they need.
+     */
+    private double calculateCachedLikelihood(int[] branchNumbers, double[] branchUpdateLengths, int branchUpdateCount,
+                                             int[] nodeOperations, int nodeOperationCount, int rootNodeNumber) throws LikelihoodException {
+
+        for (int i = 0; i < branchUpdateCount; i++) {
+            partialsCache.setBranchLength(branchNumbers[i], branchUpdateLengths[i]);
+        }
+
+        // partials computed without scaling don't have the scale factors to go with them
+        partialsCache.setScaled(useScaleFactors);
+
+        int operationCount = partialsCache.assignSlots(nodeOperations, nodeOperationCount, computeNodes);
+
+        int matrixUpdateCount = partialsCache.getMatrixUpdates(computeNodes, operationCount, branchUpdateIndices, branchLengths);
+        if (matrixUpdateCount > 0) {
+            evolutionaryProcessDelegate.updateTransitionMatrices(
+                    beagle,
+                    branchUpdateIndices,
+                    branchLengths,
+                    matrixUpdateCount,
+                    flip);
+        }
+
+        int k = 0;
+        for (int i = 0; i < operationCount; i++) {
+            int nodeNum = computeNodes[i];
+            int leftChild = partialsCache.getLeftChild(nodeNum);
+            int rightChild = partialsCache.getRightChild(nodeNum);
+
+            operations[k] = partialsCache.getPartialsBufferIndex(nodeNum);
+            // the scale factors are always recomputed as the partials are new
+            operations[k + 1] = (useScaleFactors ? partialsCache.getScaleBufferIndex(nodeNum) : Beagle.NONE);
+            operations[k + 2] = Beagle.NONE;
+            operations[k + 3] = partialsCache.getPartialsBufferIndex(leftChild); // source node 1
+            operations[k + 4] = evolutionaryProcessDelegate.getMatrixIndex(leftChild); // source matrix 1
+            operations[k + 5] = partialsCache.getPartialsBufferIndex(rightChild); // source node 2
+            operations[k + 6] = evolutionaryProcessDelegate.getMatrixIndex(rightChild); // source matrix 2
+
+            k += Beagle.OPERATION_TUPLE_SIZE;
+        }
+
+        if (operationCount > 0) {
+            beagle.updatePartials(operations, operationCount, Beagle.NONE);
+        }
+
+        if (useScaleFactors) {
+            // add the scale factors of the child subtrees so each slot holds those of its whole subtree
+            int[] childScaleBufferIndices = new int[2];
+            for (int i = 0; i < operationCount; i++) {
+                int nodeNum = computeNodes[i];
+                int leftChild = partialsCache.getLeftChild(nodeNum);
+                int rightChild = partialsCache.getRightChild(nodeNum);
+                int count = 0;
+                if (leftChild >= tipCount) {
+                    childScaleBufferIndices[count] = partialsCache.getScaleBufferIndex(leftChild);
+                    count++;
+                }
+                if (rightChild >= tipCount) {
+                    childScaleBufferIndices[count] = partialsCache.getScaleBufferIndex(rightChild);
+                    count++;
+                }
+                if (count > 0) {
+                    beagle.accumulateScaleFactors(childScaleBufferIndices, count, partialsCache.getScaleBufferIndex(nodeNum));
+                }
+            }
+        }
+
+        if (COUNT_CALCULATIONS) {
+            totalMatrixUpdateCount += matrixUpdateCount;
+            totalEvaluationCount += 1;
+            totalPartialsUpdateCount += operationCount;
+        }
+
+        return calculateRootLogLikelihood(partialsCache.getPartialsBufferIndex(rootNodeNumber),
+                useScaleFactors ? partialsCache.getScaleBufferIndex(rootNodeNumber) : Beagle.NONE);
+    }
+
+    /**
+     * Calculates the log likelihood from the partials at the root and deals with any underflow.
+     */
+    private double calculateRootLogLikelihood(int rootIndex, int cumulateScaleBufferIndex) throws LikelihoodException {
+
         double[] sumLogLikelihoods = new double[1];
 
         if (DEBUG) {
@@ -903,6 +1070,11 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
 
             }
 
+            if (partialsCache != null) {
+                // the partials of this calculation mustn't be found in the cache
+                partialsCache.discardComputed();
+            }
+
             // turn off double buffer flipping so the next call overwrites the
             // underflowed buffers. Flip will be turned on again in storeState for
             // next step
@@ -935,11 +1107,11 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
     public void getPartials(int number, double[] partials) {
         int cumulativeBufferIndex = Beagle.NONE;
         /* No need to rescale partials */
-        beagle.getPartials(partialBufferHelper.getOffsetIndex(number), cumulativeBufferIndex, partials);
+        beagle.getPartials(getPartialBufferIndex(number), cumulativeBufferIndex, partials);
     }
 
     private void setPartials(int number, double[] partials) {
-        beagle.setPartials(partialBufferHelper.getOffsetIndex(number), partials);
+        beagle.setPartials(getPartialBufferIndex(number), partials);
     }
 
     @Override
@@ -947,6 +1119,10 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
         updateSiteModel = true;
         updateSubstitutionModel = true;
         updateRootFrequency = true;
+
+        if (partialsCache != null) {
+            partialsCache.invalidate();
+        }
     }
 
     @Override
@@ -958,6 +1134,11 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
             updateRootFrequency = true;
         }
 
+        if (partialsCache != null) {
+            // the partials of the cached subtrees are for the old model
+            partialsCache.invalidate();
+        }
+
         // Tell TreeDataLikelihood to update all nodes
         fireModelChanged();
     }
@@ -975,6 +1156,10 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
         partialBufferHelper.storeState();
         evolutionaryProcessDelegate.storeState();
 
+        if (partialsCache != null) {
+            partialsCache.storeState();
+        }
+
         if (useScaleFactors || useAutoScaling) { // Only store when actually used
             scaleBufferHelper.storeState();
             System.arraycopy(scaleBufferIndices, 0, storedScaleBufferIndices, 0, scaleBufferIndices.length);
@@ -998,6 +1183,10 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
         partialBufferHelper.restoreState();
         evolutionaryProcessDelegate.restoreState();
 
+        if (partialsCache != null) {
+            partialsCache.restoreState();
+        }
+
         if (useScaleFactors || useAutoScaling) {
             scaleBufferHelper.restoreState();
             int[] tmp = storedScaleBufferIndices;
@@ -1045,6 +1234,9 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
     }
 
     public final int getPartialBufferIndex(int nodeNumber) {
+        if (partialsCache != null) {
+            return partialsCache.getPartialsBufferIndex(nodeNumber);
+        }
         return partialBufferHelper.getOffsetIndex(nodeNumber);
     }
 
@@ -1100,11 +1292,18 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
     private int[] storedScaleBufferIndices;
 
     private final int[] operations;
+    private final int[] nodeOperationArray;
 
     private boolean flip = true;
     private final BufferIndexHelper partialBufferHelper;
     private final BufferIndexHelper scaleBufferHelper;
 
+    /**
+     * the cache of subtree partials used when jumping between empirical trees (or null)
+     */
+    private SubtreePartialsCache partialsCache = null;
+    private int[] computeNodes = null;
+
     private PartialsRescalingScheme rescalingScheme;
     private int rescalingFrequency = RESCALE_FREQUENCY;
     private boolean delayRescalingUntilUnderflow = true;
@@ -49,6 +49,12 @@ public interface DataLikelihoodDelegate extends ProcessOnTreeDelegate, Model, Pr
     double calculateLikelihood(List<BranchOperation> branchOperations, List<NodeOperation> nodeOperations,
                                int rootNodeNumber) throws LikelihoodException;
 
+    /**
+     * Calculates the likelihood from the operation arrays of the traversal (which are reused between
+     * evaluations so no operation objects are created).
+     */
+    double calculateLikelihood(LikelihoodTreeTraversal treeTraversal, int rootNodeNumber) throws LikelihoodException;
+
     int getTraitCount();
 
     int getTraitDim();
@@ -28,6 +28,7 @@ package dr.evomodel.treedatalikelihood;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 import dr.evomodel.branchratemodel.BranchRateModel;
+import dr.evomodel.tree.EmpiricalTreeDistributionModel;
 
 import java.util.*;
 
@@ -36,17 +37,32 @@ import java.util.*;
  */
 public final class LikelihoodTreeTraversal extends TreeTraversal {
 
+    /**
+     * The number of ints for each node operation in the node operation array: the node number and the
+     * numbers of its left and right children (the children's node numbers also give their branches).
+     */
+    public static final int NODE_OPERATION_SIZE = 3;
 
     public LikelihoodTreeTraversal(final Tree treeModel,
                                    final BranchRateModel branchRateModel,
                                    final TraversalType traversalType) {
         super(treeModel, branchRateModel, traversalType);
+
+        int nodeCount = treeModel.getNodeCount();
+        branchNumbers = new int[nodeCount];
+        branchLengths = new double[nodeCount];
+        nodeOperations = new int[nodeCount * NODE_OPERATION_SIZE];
+        levelOffsets = new int[nodeCount + 1];
+        levelOperations = new int[nodeCount * NODE_OPERATION_SIZE];
+        operationLevels = new int[nodeCount];
     }
 
     @Override
     public final void dispatchTreeTraversalCollectBranchAndNodeOperations() {
-        branchOperations.clear();
-        nodeOperations.clear();
+        branchOperationCount = 0;
+        nodeOperationCount = 0;
+        levelCount = 0;
+        operationListsKnown = false;
 
         switch (traversalType) {
 
@@ -61,12 +77,98 @@ public final class LikelihoodTreeTraversal extends TreeTraversal {
         }
     }
 
+    /**
+     * @return the number of branches whose transition matrices need updating
+     */
+    public final int getBranchOperationCount() {
+        return branchOperationCount;
+    }
+
+    /**
+     * @return the branch (child node) numbers of the branch operations (the first getBranchOperationCount() are valid)
+     */
+    public final int[] getBranchNumbers() {
+        return branchNumbers;
+    }
+
+    /**
+     * @return the branch lengths of the branch operations (the first getBranchOperationCount() are valid)
+     */
+    public final double[] getBranchLengths() {
+        return branchLengths;
+    }
+
+    /**
+     * @return the number of nodes whose partials need updating
+     */
+    public final int getNodeOperationCount() {
+        return nodeOperationCount;
+    }
+
+    /**
+     * The node operations as consecutive tuples of NODE_OPERATION_SIZE ints (node, left child, right child)
+     * in the order they should be computed. The array is reused by the next traversal.
+     *
+     * @return the node operations
+     */
+    public final int[] getNodeOperationArray() {
+        return nodeOperations;
+    }
+
+    /**
+     * @return the number of levels of node operations (zero unless the traversal is in reverse level order)
+     */
+    public final int getLevelCount() {
+        return levelCount;
+    }
+
+    /**
+     * The index of the first node operation of each level, starting with the level furthest from the root,
+     * plus a final entry of getNodeOperationCount(). The operations within a level are independent.
+     *
+     * @return the level offsets
+     */
+    public final int[] getLevelOffsets() {
+        return levelOffsets;
+    }
+
+    /**
+     * The branch operations as objects for older callers (the lists are made from the arrays when first asked
+     * for after each traversal).
+     *
+     * @return the branch operations
+     */
     public final List<DataLikelihoodDelegate.BranchOperation> getBranchOperations() {
-        return branchOperations;
+        makeOperationLists();
+        return branchOperationList;
     }
 
+    /**
+     * The node operations as objects for older callers.
+     *
+     * @return the node operations
+     */
     public final List<DataLikelihoodDelegate.NodeOperation> getNodeOperations() {
-        return nodeOperations;
+        makeOperationLists();
+        return nodeOperationList;
+    }
+
+    private void makeOperationLists() {
+        if (!operationListsKnown) {
+            branchOperationList.clear();
+            for (int i = 0; i < branchOperationCount; i++) {
+                branchOperationList.add(new DataLikelihoodDelegate.BranchOperation(branchNumbers[i], branchLengths[i]));
+            }
+
+            nodeOperationList.clear();
+            int k = 0;
+            for (int i = 0; i < nodeOperationCount; i++) {
+                nodeOperationList.add(new DataLikelihoodDelegate.NodeOperation(nodeOperations[k],
+                        nodeOperations[k + 1], nodeOperations[k + 2]));
+                k += NODE_OPERATION_SIZE;
+            }
+            operationListsKnown = true;
+        }
     }
 
     /**
@@ -76,7 +178,34 @@ public final class LikelihoodTreeTraversal extends TreeTraversal {
      * @return boolean
      */
     private void traversePostOrder(Tree tree) {
-        traversePostOrder(tree, tree.getRoot());
+        if (updateAllNodes && tree instanceof EmpiricalTreeDistributionModel) {
+            // the post order is cached for each of the trees in an empirical distribution
+            traversePostOrder(tree, ((EmpiricalTreeDistributionModel) tree).getInternalNodePostOrder());
+        } else {
+            traversePostOrder(tree, tree.getRoot());
+        }
+    }
+
+    /**
+     * Update all the nodes in the tree given the internal nodes in post order.
+     *
+     * @param tree          tree
+     * @param internalNodes the internal node numbers in post order
+     */
+    private void traversePostOrder(Tree tree, int[] internalNodes) {
+
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            NodeRef node = tree.getNode(i);
+            if (!tree.isRoot(node)) {
+                addBranchUpdateOperation(tree, node);
+            }
+        }
+
+        for (int nodeNum : internalNodes) {
+            NodeRef node = tree.getNode(nodeNum);
+            addNodeOperation(nodeOperations, nodeNum,
+                    tree.getChild(node, 0).getNumber(), tree.getChild(node, 1).getNumber());
+        }
     }
 
     /**
@@ -112,7 +241,7 @@ public final class LikelihoodTreeTraversal extends TreeTraversal {
             // If either child node was updated then update this node too
             if (update1 || update2) {
 
-                nodeOperations.add(new DataLikelihoodDelegate.NodeOperation(nodeNum, child1.getNumber(), child2.getNumber()));
+                addNodeOperation(nodeOperations, nodeNum, child1.getNumber(), child2.getNumber());
 
                 update = true;
 
@@ -130,23 +259,40 @@ public final class LikelihoodTreeTraversal extends TreeTraversal {
      */
     private void traverseReverseLevelOrder(final Tree tree) {
 
-        // create a map of all the operations at each particular level
-        Map<Integer, List<DataLikelihoodDelegate.NodeOperation>> operationMap =
-                new HashMap<Integer, List<DataLikelihoodDelegate.NodeOperation>>();
+        // collect the operations in post order along with their levels
+        traverseLevelOrder(tree, tree.getRoot(), 0);
 
-        traverseLevelOrder(tree, tree.getRoot(), 0, operationMap);
+        if (nodeOperationCount == 0) {
+            return;
+        }
 
-        // get the levels as keys in reverse order (they are currently largest towards
-        // the tips) and add the operations to the nodeOperation array.
-        List<Integer> keyList = new ArrayList<Integer>(operationMap.keySet());
-        Collections.sort(keyList, Collections.reverseOrder());
+        // count the operations at each level (the levels are largest towards the tips)
+        int maxLevel = 0;
+        for (int i = 0; i < nodeOperationCount; i++) {
+            maxLevel = Math.max(maxLevel, operationLevels[i]);
+        }
+        levelCount = maxLevel + 1;
+        Arrays.fill(levelOffsets, 0, levelCount + 1, 0);
+        for (int i = 0; i < nodeOperationCount; i++) {
+            levelOffsets[maxLevel - operationLevels[i] + 1]++;
+        }
+        for (int i = 0; i < levelCount; i++) {
+            levelOffsets[i + 1] += levelOffsets[i];
+        }
 
-        for (Integer key : keyList) {
-            List<DataLikelihoodDelegate.NodeOperation> opList = operationMap.get(key);
-            for (DataLikelihoodDelegate.NodeOperation op : opList) {
-                nodeOperations.add(op);
-            }
+        // then place them in reverse level order, keeping the post order within each level
+        for (int i = 0; i < nodeOperationCount; i++) {
+            int level = maxLevel - operationLevels[i];
+            System.arraycopy(levelOperations, i * NODE_OPERATION_SIZE,
+                    nodeOperations, levelOffsets[level] * NODE_OPERATION_SIZE, NODE_OPERATION_SIZE);
+            levelOffsets[level]++;
+        }
+
+        // the offsets have been moved on to the start of the next level
+        for (int i = levelCount; i > 0; i--) {
+            levelOffsets[i] = levelOffsets[i - 1];
         }
+        levelOffsets[0] = 0;
     }
 
     /**
@@ -156,9 +302,7 @@ public final class LikelihoodTreeTraversal extends TreeTraversal {
      * @param node node
      * @return boolean
      */
-    private boolean traverseLevelOrder(final Tree tree, final NodeRef node,
-                                       final int level,
-                                       Map<Integer, List<DataLikelihoodDelegate.NodeOperation>> operationMap) {
+    private boolean traverseLevelOrder(final Tree tree, final NodeRef node, final int level) {
         boolean update = false;
 
         int nodeNum = node.getNumber();
@@ -178,20 +322,16 @@ public final class LikelihoodTreeTraversal extends TreeTraversal {
             // Traverse down the two child nodes incrementing the level (this will give
             // level order but we will reverse these later
             NodeRef child1 = tree.getChild(node, 0);
-            final boolean update1 = traverseLevelOrder(tree, child1, level + 1, operationMap);
+            final boolean update1 = traverseLevelOrder(tree, child1, level + 1);
 
             NodeRef child2 = tree.getChild(node, 1);
-            final boolean update2 = traverseLevelOrder(tree, child2, level + 1, operationMap);
+            final boolean update2 = traverseLevelOrder(tree, child2, level + 1);
 
             // If either child node was updated then update this node too
             if (update1 || update2) {
 
-                List<DataLikelihoodDelegate.NodeOperation> ops = operationMap.get(level);
-                if (ops == null) {
-                    ops = new ArrayList<DataLikelihoodDelegate.NodeOperation>();
-                    operationMap.put(level, ops);
-                }
-                ops.add(new DataLikelihoodDelegate.NodeOperation(nodeNum, child1.getNumber(), child2.getNumber()));
+                operationLevels[nodeOperationCount] = level;
+                addNodeOperation(levelOperations, nodeNum, child1.getNumber(), child2.getNumber());
 
                 update = true;
 
@@ -202,19 +342,40 @@ public final class LikelihoodTreeTraversal extends TreeTraversal {
     }
 
     /**
-     * Add this node to the branchOperation list for updating of the transition probability matrix.
+     * Add this node to the branch operations for updating of the transition probability matrix.
      *
      * @param tree tree
      * @param node node
      */
     private void addBranchUpdateOperation(final Tree tree, final NodeRef node) {
-        branchOperations.add(new DataLikelihoodDelegate.BranchOperation(node.getNumber(),
-                computeBranchLength(tree, node)));
+        branchNumbers[branchOperationCount] = node.getNumber();
+        branchLengths[branchOperationCount] = computeBranchLength(tree, node);
+        branchOperationCount++;
+    }
+
+    private void addNodeOperation(final int[] operations, final int nodeNum, final int leftChild, final int rightChild) {
+        int k = nodeOperationCount * NODE_OPERATION_SIZE;
+        operations[k] = nodeNum;
+        operations[k + 1] = leftChild;
+        operations[k + 2] = rightChild;
+        nodeOperationCount++;
     }
 
-    private final List<DataLikelihoodDelegate.BranchOperation> branchOperations = new ArrayList<DataLikelihoodDelegate.BranchOperation>();
-    private final List<DataLikelihoodDelegate.NodeOperation> nodeOperations = new ArrayList<DataLikelihoodDelegate.NodeOperation>();
+    private final int[] branchNumbers;
+    private final double[] branchLengths;
+    private int branchOperationCount;
+
+    private final int[] nodeOperations;
+    private int nodeOperationCount;
+
+    private final int[] levelOffsets;
+    private int levelCount;
+
+    // the node operations (and their levels) in post order before they are sorted by level
+    private final int[] levelOperations;
+    private final int[] operationLevels;
 
-    private List<DataLikelihoodDelegate.BranchNodeOperation> savedWholeTreeBranchOperations;
-    private List<DataLikelihoodDelegate.NodeOperation> savedWholeTreeNodeOperations;
+    private final List<DataLikelihoodDelegate.BranchOperation> branchOperationList = new ArrayList<DataLikelihoodDelegate.BranchOperation>();
+    private final List<DataLikelihoodDelegate.NodeOperation> nodeOperationList = new ArrayList<DataLikelihoodDelegate.NodeOperation>();
+    private boolean operationListsKnown = false;
 }
@@ -733,6 +733,11 @@ public class MultiPartitionDataLikelihoodDelegate extends AbstractModel implemen
         beagle.setTipStates(nodeIndex, states);
     }
 
+    @Override
+    public double calculateLikelihood(LikelihoodTreeTraversal treeTraversal, int rootNodeNumber) throws LikelihoodException {
+        return calculateLikelihood(treeTraversal.getBranchOperations(), treeTraversal.getNodeOperations(), rootNodeNumber);
+    }
+
     /**
      * Calculate the log likelihood of the current state.
      *
@@ -0,0 +1,419 @@
+/*
+ * SubtreePartialsCache.java
+ *
+ * Copyright (c) 2002-2018 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treedatalikelihood;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * SubtreePartialsCache - keeps the partials of recently seen subtrees so that jumping between the trees
+ * of an empirical tree distribution only recomputes the parts of the tree that differ.
+ *
+ * Each subtree is identified by a hash of its tips, topology and branch lengths (symmetric in the two
+ * children as the partials are). The partials of internal nodes are kept in a pool of 'slots' (a partials
+ * buffer and a scale buffer each) that are reused least-recently-used first. The slots used by the current
+ * and the stored tree are never reused. The hash is combined with a generation number that changes
+ * whenever the substitution or site model changes so the partials of one model are never used for another.
+ *
+ * The partials buffer of slot i is tipCount + i and the scale buffer is i. The scale buffer of a slot holds
+ * the scale factors accumulated over the whole subtree.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class SubtreePartialsCache {
+
+    /**
+     * @param tipCount the number of tips (which have static partials buffers)
+     * @param internalNodeCount the number of internal nodes
+     * @param slotCount the number of slots - must be at least getMinimumSlotCount(internalNodeCount)
+     */
+    public SubtreePartialsCache(int tipCount, int internalNodeCount, int slotCount) {
+        if (slotCount < getMinimumSlotCount(internalNodeCount)) {
+            throw new IllegalArgumentException("Too few slots for the subtree partials cache");
+        }
+
+        this.tipCount = tipCount;
+        this.slotCount = slotCount;
+
+        int nodeCount = tipCount + internalNodeCount;
+
+        nodeKeys = new long[nodeCount];
+        storedNodeKeys = new long[nodeCount];
+        for (int i = 0; i < tipCount; i++) {
+            nodeKeys[i] = mix(i + 1);
+        }
+
+        branchLengths = new double[nodeCount];
+        storedBranchLengths = new double[nodeCount];
+        matrixLengths = new double[nodeCount];
+        storedMatrixLengths = new double[nodeCount];
+        matrixGenerations = new long[nodeCount];
+        storedMatrixGenerations = new long[nodeCount];
+
+        nodeSlots = new int[internalNodeCount];
+        storedNodeSlots = new int[internalNodeCount];
+        Arrays.fill(nodeSlots, -1);
+        Arrays.fill(storedNodeSlots, -1);
+
+        leftChildren = new int[internalNodeCount];
+        rightChildren = new int[internalNodeCount];
+
+        slotKeys = new long[slotCount];
+        slotStamps = new int[slotCount];
+        previousSlots = new int[slotCount];
+        nextSlots = new int[slotCount];
+        computedSlots = new int[internalNodeCount];
+
+        slotMap = new HashMap<Long, Integer>();
+
+        generation = ++generationCount;
+        storedGeneration = generation;
+    }
+
+    /**
+     * The slots in use by the current tree, the stored tree and the nodes being updated must all fit at once.
+     */
+    public static int getMinimumSlotCount(int internalNodeCount) {
+        return 3 * internalNodeCount;
+    }
+
+    /**
+     * Called when the partials already computed can't be used any more (the substitution or site model has
+     * changed or the scaling has been switched on).
+     */
+    public void invalidate() {
+        generation = ++generationCount;
+    }
+
+    public boolean isScaled() {
+        return scaled;
+    }
+
+    /**
+     * Sets whether the partials are being scaled - this invalidates the cache if it changes.
+     */
+    public void setScaled(boolean scaled) {
+        if (this.scaled != scaled) {
+            this.scaled = scaled;
+            invalidate();
+        }
+    }
+
+    public void setBranchLength(int nodeNumber, double branchLength) {
+        branchLengths[nodeNumber] = branchLength;
+    }
+
+    /**
+     * Assigns a slot to each of the nodes in the operations (in post order). The nodes whose subtree is in the
+     * cache get its slot, the others get a new slot and are returned in the order they need computing.
+     *
+     * @param nodeOperations     the node operations in post order as (node, left child, right child) tuples
+     * @param nodeOperationCount the number of node operations
+     * @param computeNodes       filled with the node numbers that need computing
+     * @return the number of nodes that need computing
+     */
+    public int assignSlots(int[] nodeOperations, int nodeOperationCount, int[] computeNodes) {
+        stamp++;
+        boolean slotsPinned = false;
+
+        computedSlotCount = 0;
+        for (int j = 0; j < nodeOperationCount; j++) {
+            int nodeNumber = nodeOperations[j * LikelihoodTreeTraversal.NODE_OPERATION_SIZE];
+            int leftChild = nodeOperations[j * LikelihoodTreeTraversal.NODE_OPERATION_SIZE + 1];
+            int rightChild = nodeOperations[j * LikelihoodTreeTraversal.NODE_OPERATION_SIZE + 2];
+            int i = nodeNumber - tipCount;
+
+            leftChildren[i] = leftChild;
+            rightChildren[i] = rightChild;
+
+            long left = mix(nodeKeys[leftChild] + Double.doubleToLongBits(branchLengths[leftChild]));
+            long right = mix(nodeKeys[rightChild] + Double.doubleToLongBits(branchLengths[rightChild]));
+            long key = (left < right ? mix(left * 31 + right) : mix(right * 31 + left));
+            nodeKeys[nodeNumber] = key;
+
+            long slotKey = mix(key ^ (generation * GOLDEN_RATIO));
+            Integer slot = slotMap.get(slotKey);
+            if (slot != null) {
+                hitCount++;
+            } else {
+                if (!slotsPinned) {
+                    // the slots still referenced by the current or stored tree can't be reused
+                    pinSlots(nodeSlots);
+                    pinSlots(storedNodeSlots);
+                    slotsPinned = true;
+                }
+                slot = getFreeSlot();
+                slotKeys[slot] = slotKey;
+                slotMap.put(slotKey, slot);
+
+                computedSlots[computedSlotCount] = slot;
+                computeNodes[computedSlotCount] = nodeNumber;
+                computedSlotCount++;
+            }
+
+            nodeSlots[i] = slot;
+            slotStamps[slot] = stamp;
+            moveToTail(slot);
+        }
+
+        missCount += computedSlotCount;
+        return computedSlotCount;
+    }
+
+    /**
+     * Removes the subtrees computed by the last call to assignSlots from the cache (because the
+     * calculation underflowed).
+     */
+    public void discardComputed() {
+        for (int i = 0; i < computedSlotCount; i++) {
+            int slot = computedSlots[i];
+            slotMap.remove(slotKeys[slot]);
+            slotKeys[slot] = NO_KEY;
+        }
+        computedSlotCount = 0;
+    }
+
+    /**
+     * Gets the branches whose transition matrices need updating to compute the given nodes.
+     *
+     * @return the number of branches
+     */
+    public int getMatrixUpdates(int[] computeNodes, int computeCount, int[] branchIndices, double[] lengths) {
+        int count = 0;
+        for (int i = 0; i < computeCount; i++) {
+            int n = computeNodes[i] - tipCount;
+            count = addMatrixUpdate(leftChildren[n], branchIndices, lengths, count);
+            count = addMatrixUpdate(rightChildren[n], branchIndices, lengths, count);
+        }
+        return count;
+    }
+
+    private int addMatrixUpdate(int nodeNumber, int[] branchIndices, double[] lengths, int count) {
+        if (matrixGenerations[nodeNumber] != generation || matrixLengths[nodeNumber] != branchLengths[nodeNumber]) {
+            matrixGenerations[nodeNumber] = generation;
+            matrixLengths[nodeNumber] = branchLengths[nodeNumber];
+            branchIndices[count] = nodeNumber;
+            lengths[count] = branchLengths[nodeNumber];
+            count++;
+        }
+        return count;
+    }
+
+    public int getLeftChild(int nodeNumber) {
+        return leftChildren[nodeNumber - tipCount];
+    }
+
+    public int getRightChild(int nodeNumber) {
+        return rightChildren[nodeNumber - tipCount];
+    }
+
+    public int getPartialsBufferIndex(int nodeNumber) {
+        if (nodeNumber < tipCount) {
+            return nodeNumber;
+        }
+        return tipCount + nodeSlots[nodeNumber - tipCount];
+    }
+
+    /**
+     * @return the scale buffer of the node's slot or -1 for a tip
+     */
+    public int getScaleBufferIndex(int nodeNumber) {
+        if (nodeNumber < tipCount) {
+            return -1;
+        }
+        return nodeSlots[nodeNumber - tipCount];
+    }
+
+    public int getPartialsBufferCount() {
+        return tipCount + slotCount;
+    }
+
+    public int getScaleBufferCount() {
+        return slotCount;
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public void storeState() {
+        System.arraycopy(nodeKeys, 0, storedNodeKeys, 0, nodeKeys.length);
+        System.arraycopy(branchLengths, 0, storedBranchLengths, 0, branchLengths.length);
+        System.arraycopy(matrixLengths, 0, storedMatrixLengths, 0, matrixLengths.length);
+        System.arraycopy(matrixGenerations, 0, storedMatrixGenerations, 0, matrixGenerations.length);
+        System.arraycopy(nodeSlots, 0, storedNodeSlots, 0, nodeSlots.length);
+        storedGeneration = generation;
+        storedScaled = scaled;
+    }
+
+    public void restoreState() {
+        long[] tmp1 = storedNodeKeys;
+        storedNodeKeys = nodeKeys;
+        nodeKeys = tmp1;
+
+        double[] tmp2 = storedBranchLengths;
+        storedBranchLengths = branchLengths;
+        branchLengths = tmp2;
+
+        tmp2 = storedMatrixLengths;
+        storedMatrixLengths = matrixLengths;
+        matrixLengths = tmp2;
+
+        tmp1 = storedMatrixGenerations;
+        storedMatrixGenerations = matrixGenerations;
+        matrixGenerations = tmp1;
+
+        int[] tmp3 = storedNodeSlots;
+        storedNodeSlots = nodeSlots;
+        nodeSlots = tmp3;
+
+        generation = storedGeneration;
+        scaled = storedScaled;
+    }
+
+    private void pinSlots(int[] slots) {
+        for (int slot : slots) {
+            if (slot >= 0) {
+                slotStamps[slot] = stamp;
+            }
+        }
+    }
+
+    /**
+     * Gets an unused slot or the least recently used slot that isn't pinned.
+     */
+    private int getFreeSlot() {
+        if (usedSlotCount < slotCount) {
+            int slot = usedSlotCount;
+            usedSlotCount++;
+            slotKeys[slot] = NO_KEY;
+            if (tailSlot == -1) {
+                headSlot = slot;
+                previousSlots[slot] = -1;
+            } else {
+                nextSlots[tailSlot] = slot;
+                previousSlots[slot] = tailSlot;
+            }
+            nextSlots[slot] = -1;
+            tailSlot = slot;
+            return slot;
+        }
+
+        for (int i = 0; i < slotCount; i++) {
+            int slot = headSlot;
+            if (slotStamps[slot] != stamp) {
+                if (slotKeys[slot] != NO_KEY) {
+                    slotMap.remove(slotKeys[slot]);
+                    slotKeys[slot] = NO_KEY;
+                }
+                return slot;
+            }
+            // pinned so give it another chance
+            moveToTail(slot);
+        }
+        throw new IllegalStateException("No free slots in the subtree partials cache");
+    }
+
+    private void moveToTail(int slot) {
+        if (slot == tailSlot) {
+            return;
+        }
+        int previous = previousSlots[slot];
+        int next = nextSlots[slot];
+        if (previous == -1) {
+            headSlot = next;
+        } else {
+            nextSlots[previous] = next;
+        }
+        previousSlots[next] = previous;
+
+        nextSlots[tailSlot] = slot;
+        previousSlots[slot] = tailSlot;
+        nextSlots[slot] = -1;
+        tailSlot = slot;
+    }
+
+    /**
+     * The finalizer of the SplitMix64 generator - a cheap hash with good avalanche behaviour.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static final long GOLDEN_RATIO = 0x9e3779b97f4a7c15L;
+    private static final long NO_KEY = 0L;
+
+    private final int tipCount;
+    private final int slotCount;
+
+    private long[] nodeKeys;
+    private long[] storedNodeKeys;
+    private double[] branchLengths;
+    private double[] storedBranchLengths;
+    private double[] matrixLengths;
+    private double[] storedMatrixLengths;
+    private long[] matrixGenerations;
+    private long[] storedMatrixGenerations;
+    private int[] nodeSlots;
+    private int[] storedNodeSlots;
+
+    private final int[] leftChildren;
+    private final int[] rightChildren;
+
+    private final Map<Long, Integer> slotMap;
+    private final long[] slotKeys;
+    private final int[] slotStamps;
+    private final int[] previousSlots;
+    private final int[] nextSlots;
+    private int headSlot = -1;
+    private int tailSlot = -1;
+    private int usedSlotCount = 0;
+    private int stamp = 0;
+
+    private final int[] computedSlots;
+    private int computedSlotCount = 0;
+
+    private long generationCount = 0;
+    private long generation;
+    private long storedGeneration;
+    private boolean scaled = false;
+    private boolean storedScaled = false;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+}
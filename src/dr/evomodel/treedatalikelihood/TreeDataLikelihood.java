@@ -276,18 +276,15 @@ public final class TreeDataLikelihood extends AbstractModelLikelihood implements
         do {
             treeTraversalDelegate.dispatchTreeTraversalCollectBranchAndNodeOperations();
 
-            final List<DataLikelihoodDelegate.BranchOperation> branchOperations = treeTraversalDelegate.getBranchOperations();
-            final List<DataLikelihoodDelegate.NodeOperation> nodeOperations = treeTraversalDelegate.getNodeOperations();
-
             if (COUNT_TOTAL_OPERATIONS) {
-                totalMatrixUpdateCount += branchOperations.size();
-                totalOperationCount += nodeOperations.size();
+                totalMatrixUpdateCount += treeTraversalDelegate.getBranchOperationCount();
+                totalOperationCount += treeTraversalDelegate.getNodeOperationCount();
             }
 
             final NodeRef root = treeModel.getRoot();
 
             try {
-                logL = likelihoodDelegate.calculateLikelihood(branchOperations, nodeOperations, root.getNumber());
+                logL = likelihoodDelegate.calculateLikelihood(treeTraversalDelegate, root.getNumber());
 
                 done = true;
             } catch (DataLikelihoodDelegate.LikelihoodException e) {
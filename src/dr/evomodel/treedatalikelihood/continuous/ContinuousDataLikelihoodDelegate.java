@@ -160,6 +160,7 @@ public class ContinuousDataLikelihoodDelegate extends AbstractModel implements D
 
         operations = new int[(internalNodeCount + rootProcessDelegate.getExtraPartialBufferCount())
                 * ContinuousDiffusionIntegrator.OPERATION_TUPLE_SIZE];
+        nodeOperationArray = new int[internalNodeCount * LikelihoodTreeTraversal.NODE_OPERATION_SIZE];
 
         try {
 
@@ -660,6 +661,29 @@ public class ContinuousDataLikelihoodDelegate extends AbstractModel implements D
         return nodeOperations.size();
     }
 
+    private int vectorizeNodeOperations(final int[] nodeOperations, final int nodeOperationCount,
+                                        final int[] operations) {
+
+        int k = 0;
+        int j = 0;
+        for (int i = 0; i < nodeOperationCount; i++) {
+            final int nodeNum = nodeOperations[j];
+            final int leftChild = nodeOperations[j + 1];
+            final int rightChild = nodeOperations[j + 2];
+
+            operations[k    ] = getActiveNodeIndex(nodeNum);
+            operations[k + 1] = getActiveNodeIndex(leftChild);    // source node 1
+            operations[k + 2] = getActiveMatrixIndex(leftChild);  // source matrix 1
+            operations[k + 3] = getActiveNodeIndex(rightChild);   // source node 2
+            operations[k + 4] = getActiveMatrixIndex(rightChild); // source matrix 2
+
+            j += LikelihoodTreeTraversal.NODE_OPERATION_SIZE;
+            k += ContinuousDiffusionIntegrator.OPERATION_TUPLE_SIZE;
+        }
+
+        return nodeOperationCount;
+    }
+
 //    public static String getStringOfVectorizedOperations(final int[] operations, final int count) {
 //        StringBuilder sb = new StringBuilder();
 //        int k = 0;
@@ -731,15 +755,53 @@ public class ContinuousDataLikelihoodDelegate extends AbstractModel implements D
     public double calculateLikelihood(List<BranchOperation> branchOperations, List<NodeOperation> nodeOperations,
                                       int rootNodeNumber) {
 
-        branchNormalization = rateTransformation.getNormalization();
-
         int branchUpdateCount = 0;
         for (BranchOperation op : branchOperations) {
             branchUpdateIndices[branchUpdateCount] = op.getBranchNumber();
-            branchLengths[branchUpdateCount] = op.getBranchLength() * branchNormalization;
+            branchLengths[branchUpdateCount] = op.getBranchLength();
             branchUpdateCount ++;
         }
 
+        int k = 0;
+        for (NodeOperation op : nodeOperations) {
+            nodeOperationArray[k] = op.getNodeNumber();
+            nodeOperationArray[k + 1] = op.getLeftChild();
+            nodeOperationArray[k + 2] = op.getRightChild();
+            k += LikelihoodTreeTraversal.NODE_OPERATION_SIZE;
+        }
+
+        return calculateLikelihood(branchUpdateCount, nodeOperationArray, nodeOperations.size(), rootNodeNumber);
+    }
+
+    /**
+     * Calculate the log likelihood of the current state using the operation arrays of the traversal directly.
+     *
+     * @return the log likelihood.
+     */
+    @Override
+    public double calculateLikelihood(LikelihoodTreeTraversal treeTraversal, int rootNodeNumber) {
+
+        int branchUpdateCount = treeTraversal.getBranchOperationCount();
+        System.arraycopy(treeTraversal.getBranchNumbers(), 0, branchUpdateIndices, 0, branchUpdateCount);
+        System.arraycopy(treeTraversal.getBranchLengths(), 0, branchLengths, 0, branchUpdateCount);
+
+        return calculateLikelihood(branchUpdateCount, treeTraversal.getNodeOperationArray(),
+                treeTraversal.getNodeOperationCount(), rootNodeNumber);
+    }
+
+    /**
+     * Calculate the log likelihood given the branches to update (already in branchUpdateIndices and
+     * branchLengths) and the node operations as tuples of (node, left child, right child).
+     */
+    private double calculateLikelihood(int branchUpdateCount, int[] nodeOperations, int nodeOperationCount,
+                                       int rootNodeNumber) {
+
+        branchNormalization = rateTransformation.getNormalization();
+
+        for (int i = 0; i < branchUpdateCount; i++) {
+            branchLengths[i] *= branchNormalization;
+        }
+
         if (!updateTipData.isEmpty()) {
             if (updateTipData.getFirst() == -1) { // Update all tips
                 setAllTipData(flip);
@@ -767,12 +829,12 @@ public class ContinuousDataLikelihoodDelegate extends AbstractModel implements D
 
         if (flip) {
             // Flip all the buffers to be written to first...
-            for (NodeOperation op : nodeOperations) {
-                partialBufferHelper.flipOffset(op.getNodeNumber());
+            for (int i = 0; i < nodeOperationCount; i++) {
+                partialBufferHelper.flipOffset(nodeOperations[i * LikelihoodTreeTraversal.NODE_OPERATION_SIZE]);
             }
         }
 
-        int operationCount = vectorizeNodeOperations(nodeOperations, operations);
+        int operationCount = vectorizeNodeOperations(nodeOperations, nodeOperationCount, operations);
 
         int[] degreesOfFreedom = null;
         double[] outerProducts = null;
@@ -940,6 +1002,7 @@ public class ContinuousDataLikelihoodDelegate extends AbstractModel implements D
     private final double[] branchLengths;
 
     private final int[] operations;
+    private final int[] nodeOperationArray;
 
     private boolean flip = true;
     private final BufferIndexHelper partialBufferHelper;
@@ -42,14 +42,17 @@ import dr.evomodel.tree.TreeModel;
 import dr.evomodel.tipstatesmodel.TipStatesModel;
 import dr.inference.loggers.LogColumn;
 import dr.inference.loggers.NumberColumn;
+import dr.inference.markovjumps.EigenMarkovJumps;
 import dr.inference.markovjumps.MarkovJumpsRegisterAcceptor;
 import dr.inference.markovjumps.MarkovJumpsType;
 import dr.inference.model.Parameter;
 import dr.inference.model.Variable;
 import dr.util.Citation;
 import dr.util.CommonCitations;
+import dr.util.SharedThreadPool;
 
 import java.util.*;
+import java.util.concurrent.Future;
 
 /**
  * @author Marc Suchard
@@ -97,7 +100,6 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
 //        storedExpectedJumps = new ArrayList<double[][]>();
 
         tmpProbabilities = new double[stateCount * stateCount * categoryCount];
-        condJumps = new double[categoryCount][stateCount * stateCount];
     }
 
     public MarkovJumpsBeagleTreeLikelihood(PatternList patternList, TreeModel treeModel,
@@ -368,9 +370,23 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
 
     public double[][] getMarkovJumpsForRegister(Tree tree, int whichRegister) {
         refresh(tree);
+        if (!useUniformization && !integratedJumpsKnown) {
+            computeIntegratedMarkovJumps();
+            integratedJumpsKnown = true;
+        }
         return expectedJumps.get(whichRegister);
     }
 
+    public void redrawAncestralStates() {
+        super.redrawAncestralStates();
+        integratedJumpsKnown = false;
+    }
+
+    public void restoreState() {
+        super.restoreState();
+        integratedJumpsKnown = false;
+    }
+
     public String getHistoryForNode(Tree tree, NodeRef node, int site) {
         return getHistory(tree)[node.getNumber()][site];
     }
@@ -440,10 +456,9 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
                             expectedJumps.get(r), rateCategory,
                             (branchModel instanceof EpochBranchModel) || r == historyRegisterNumber
                     );
-                } else {
-                    computeIntegratedMarkovJumpsForBranch(thisMarkovJumps, substTime, branchRate, childNum, parentStates,
-                            childStates, probabilities, condJumps, scaleByTime[r], expectedJumps.get(r), rateCategory);
                 }
+                // otherwise the integrated expectations are calculated for all the branches together
+                // when they are next needed (see computeIntegratedMarkovJumps)
             } else {
                 // Fill with zeros
                 double[] result = expectedJumps.get(r)[childNum];
@@ -489,60 +504,182 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
         }
     }
 
-    private void computeIntegratedMarkovJumpsForBranch(MarkovJumpsSubstitutionModel thisMarkovJumps,
-                                                       double substTime,
-                                                       double branchRate,
-                                                       int childNum,
-                                                       int[] parentStates,
-                                                       int[] childStates,
-                                                       double[] probabilities,
-                                                       double[][] condJumps,
-                                                       boolean scaleByTime,
-                                                       double[][] thisExpectedJumps,
-                                                       int[] rateCategory) {
+    /**
+     * Calculates the conditional expected counts or rewards on every branch for all the registers.
+     * Each pattern needs only the entry for its drawn parent and child states so these are taken
+     * from EigenMarkovJumps rather than forming the whole matrix for each branch. The values are
+     * kept and only recalculated for the branches whose length or rate, or the patterns whose
+     * states or transition probability, have changed since they were calculated (or when the
+     * substitution model, registration or category rates change). The branches are shared
+     * out between threads when there is enough work.
+     */
+    private void computeIntegratedMarkovJumps() {
+
+        final int nodeCount = treeModel.getNodeCount();
+        final int registerCount = markovjumps.size();
+
+        if (jumpsEngines == null || jumpsEngines.length != registerCount) {
+            jumpsEngines = new EigenMarkovJumps[registerCount];
+            jumpsApplied = new boolean[registerCount][nodeCount];
+            jumpsBranchTimes = new double[nodeCount];
+            jumpsBranchRates = new double[nodeCount];
+            jumpsKeys = new int[nodeCount][patternCount];
+            jumpsProbabilities = new double[nodeCount][patternCount];
+            Arrays.fill(jumpsBranchTimes, Double.NaN);
+        }
 
-        // Fill condJumps with conditional mean values for this branch
-        for (int i = 0; i < categoryCount; i++) {
+        final double[] categoryRates = siteRateModel.getCategoryRates();
+        boolean categoryRatesChanged = !Arrays.equals(categoryRates, jumpsCategoryRates);
+        jumpsCategoryRates = categoryRates.clone();
 
-            double rate = siteRateModel.getRateForCategory(i);
-            if (rate > 0) {
+        final EigenMarkovJumps[] engines = new EigenMarkovJumps[registerCount];
+        final boolean[] enginesChanged = new boolean[registerCount];
+        for (int r = 0; r < registerCount; r++) {
+            engines[r] = markovjumps.get(r).getEigenMarkovJumps();
+            enginesChanged[r] = categoryRatesChanged || engines[r] != jumpsEngines[r];
+            jumpsEngines[r] = engines[r];
+        }
 
-                if (categoryCount == 1) {
-                    thisMarkovJumps.computeCondStatMarkovJumps(
-                            substTime * branchRate * rate,
-                            probabilities,
-                            condJumps[i]);
-                } else {
+        final int[] rateCategory = categoryCount > 1 ? this.rateCategory : null;
 
-                    System.arraycopy(probabilities, i * stateCount * stateCount, tmpProbabilities, 0,
-                            stateCount * stateCount);
+        // Collect the branches to update (the likelihood and models are not thread safe)
+        List<BranchJumps> branches = new ArrayList<BranchJumps>();
+        long work = 0;
 
-                    thisMarkovJumps.computeCondStatMarkovJumps(
-                            substTime * branchRate * rate,
-                            tmpProbabilities,
-                            condJumps[i]);
+        for (int i = 0; i < nodeCount; i++) {
+            NodeRef node = treeModel.getNode(i);
+            NodeRef parent = treeModel.getParent(node);
+            if (parent == null) {
+                continue;
+            }
+
+            final int nodeNum = node.getNumber();
+            final int[] parentStates = getStatesForNode(treeModel, parent);
+            final int[] childStates = getStatesForNode(treeModel, node);
+            final double branchRate = branchRateModel.getBranchRate(treeModel, node);
+            final double substTime = treeModel.getNodeHeight(parent) - treeModel.getNodeHeight(node);
+            final boolean branchChanged = substTime != jumpsBranchTimes[nodeNum] || branchRate != jumpsBranchRates[nodeNum];
+
+            getMatrix(nodeNum, tmpProbabilities);
+
+            BranchJumps branch = new BranchJumps(nodeNum, substTime, branchRate);
+            boolean changed = false;
+            for (int j = 0; j < patternCount; j++) {
+                final int category = rateCategory == null ? 0 : rateCategory[j];
+                final int key = (category * stateCount + parentStates[j]) * stateCount + childStates[j];
+                final double probability = tmpProbabilities[category * stateCount * stateCount +
+                        parentStates[j] * stateCount + childStates[j]];
+                if (branchChanged || key != jumpsKeys[nodeNum][j] || probability != jumpsProbabilities[nodeNum][j]) {
+                    branch.changedPatterns[j] = true;
+                    changed = true;
+                }
+                jumpsKeys[nodeNum][j] = key;
+                jumpsProbabilities[nodeNum][j] = probability;
+            }
+            jumpsBranchTimes[nodeNum] = substTime;
+            jumpsBranchRates[nodeNum] = branchRate;
+
+            BranchModel.Mapping mapping = branchModel.getBranchModelMapping(node);
+            for (int r = 0; r < registerCount; r++) {
+                final boolean applies = branchModelNumber.get(r) == mapping.getOrder()[0];
+                if (!applies) {
+                    Arrays.fill(expectedJumps.get(r)[nodeNum], 0.0);
+                } else if (enginesChanged[r] || !jumpsApplied[r][nodeNum]) {
+                    branch.registers[r] = ALL_PATTERNS;
+                    changed = true;
+                } else {
+                    branch.registers[r] = CHANGED_PATTERNS;
                 }
+                jumpsApplied[r][nodeNum] = applies;
+            }
+
+            if (changed) {
+                branches.add(branch);
+                work += (long) registerCount * (categoryCount * stateCount * stateCount + patternCount * stateCount);
+            }
+        }
 
-                if (scaleByTime) {
-                    double scalar = branchRate * rate;
-                    for (int j = 0; j < condJumps[i].length; j++) {
-                        condJumps[i][j] /= scalar;
+        final int threadCount = (int) Math.min(SharedThreadPool.getThreadCount(), work / MIN_WORK_PER_THREAD);
+        if (threadCount <= 1) {
+            computeIntegratedMarkovJumps(branches, engines, rateCategory);
+        } else {
+            int chunkSize = (branches.size() + threadCount - 1) / threadCount;
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int from = 0; from < branches.size(); from += chunkSize) {
+                final List<BranchJumps> chunk = branches.subList(from, Math.min(from + chunkSize, branches.size()));
+                futures.add(SharedThreadPool.getPool().submit(new Runnable() {
+                    public void run() {
+                        computeIntegratedMarkovJumps(chunk, engines, rateCategory);
                     }
+                }));
+            }
+            SharedThreadPool.waitFor(futures, "calculating Markov jumps");
+        }
+    }
+
+    private void computeIntegratedMarkovJumps(List<BranchJumps> branches, EigenMarkovJumps[] engines,
+                                              int[] rateCategory) {
+
+        EigenMarkovJumps.Workspace[][] workspaces = new EigenMarkovJumps.Workspace[engines.length][categoryCount];
+        for (int r = 0; r < engines.length; r++) {
+            for (int i = 0; i < categoryCount; i++) {
+                workspaces[r][i] = engines[r].createWorkspace();
+            }
+        }
+
+        for (BranchJumps branch : branches) {
+            final int nodeNum = branch.nodeNum;
+            final int[] keys = jumpsKeys[nodeNum];
+            final double[] probabilities = jumpsProbabilities[nodeNum];
+
+            for (int r = 0; r < engines.length; r++) {
+                if (branch.registers[r] == NO_PATTERNS) {
+                    continue;
                 }
-            } else {
-                Arrays.fill(condJumps[i], 0.0);
-                if (thisMarkovJumps.getType() == MarkovJumpsType.REWARDS && scaleByTime) {
-                    for (int j = 0; j < stateCount; j++) {
-                        condJumps[i][j * stateCount + j] = substTime;
+                final boolean rewards = markovjumps.get(r).getType() == MarkovJumpsType.REWARDS;
+                final double[] result = expectedJumps.get(r)[nodeNum];
+
+                for (int j = 0; j < patternCount; j++) {
+                    if (branch.registers[r] == CHANGED_PATTERNS && !branch.changedPatterns[j]) {
+                        continue;
+                    }
+
+                    final int category = rateCategory == null ? 0 : rateCategory[j];
+                    final int parentState = (keys[j] / stateCount) % stateCount;
+                    final int childState = keys[j] % stateCount;
+                    final double rate = jumpsCategoryRates[category];
+
+                    double value;
+                    if (rate > 0) {
+                        EigenMarkovJumps.Workspace workspace = workspaces[r][category];
+                        workspace.setTime(branch.substTime * branch.branchRate * rate);
+                        value = workspace.getCondStatMarkovJumps(parentState, childState, probabilities[j]);
+                        if (scaleByTime[r]) {
+                            value /= branch.branchRate * rate;
+                        }
+                    } else {
+                        value = (rewards && scaleByTime[r] && parentState == childState ? branch.substTime : 0.0);
                     }
+                    result[j] = value;
                 }
             }
         }
+    }
 
-        for (int j = 0; j < patternCount; j++) { // Pick out values given parent and child states
-            int category = rateCategory == null ? 0 : rateCategory[j];
-            thisExpectedJumps[childNum][j] = condJumps[category][parentStates[j] * stateCount + childStates[j]];
+    private class BranchJumps {
+        BranchJumps(int nodeNum, double substTime, double branchRate) {
+            this.nodeNum = nodeNum;
+            this.substTime = substTime;
+            this.branchRate = branchRate;
+            changedPatterns = new boolean[patternCount];
+            registers = new int[markovjumps.size()];
         }
+
+        final int nodeNum;
+        final double substTime;
+        final double branchRate;
+        final boolean[] changedPatterns;
+        final int[] registers;
     }
 
 //    public void storeState() {
@@ -691,7 +828,21 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
     private String[][] histories = null;
     private boolean[] scaleByTime;
     private double[] tmpProbabilities;
-    private double[][] condJumps;
+
+    private boolean integratedJumpsKnown = false;
+    private EigenMarkovJumps[] jumpsEngines = null;
+    private boolean[][] jumpsApplied;
+    private double[] jumpsBranchTimes;
+    private double[] jumpsBranchRates;
+    private int[][] jumpsKeys;
+    private double[][] jumpsProbabilities;
+    private double[] jumpsCategoryRates = null;
+
+    private static final int NO_PATTERNS = 0;
+    private static final int CHANGED_PATTERNS = 1;
+    private static final int ALL_PATTERNS = 2;
+
+    private static final long MIN_WORK_PER_THREAD = 250000;
     private int numRegisters;
     private int historyRegisterNumber = -1;
     private final boolean useUniformization;
@@ -170,6 +170,13 @@ public class AncestralTraitTreeModelParser extends AbstractXMLObjectParser {
 
             XMLObject cxo = xo.getChild(ANCESTRAL_PATH);
 
+            if (!(tree instanceof DefaultTreeModel)) {
+                // the path follows the height parameters of the nodes
+                throw new XMLParseException("An " + ANCESTRAL_PATH + " for ancestor '" + ancestor.getId() +
+                        "' needs a default tree model (a " + DefaultTreeModel.TREE_MODEL + " element without " +
+                        USE_ARRAYS + "=\"true\")");
+            }
+
             Taxon taxon = (Taxon) cxo.getChild(Taxon.class);
             Parameter time = (Parameter) cxo.getChild(Parameter.class);
 
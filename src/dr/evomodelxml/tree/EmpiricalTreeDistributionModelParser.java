@@ -31,6 +31,7 @@ import dr.evolution.io.NexusImporter;
 import dr.evolution.io.Importer;
 import dr.evolution.tree.Tree;
 import dr.evolution.util.TaxonList;
+import dr.evomodel.tree.CompactTreeStore;
 import dr.evomodel.tree.EmpiricalTreeDistributionModel;
 
 import java.io.*;
@@ -46,6 +47,8 @@ public class EmpiricalTreeDistributionModelParser extends AbstractXMLObjectParse
     public static final String RATE_ATTRIBUTE_NAME = "rateAttribute";
     public static final String STARTING_TREE = "startingTree";
     public static final String ITERATE = "iterate";
+    public static final String COMPACT = "compact";
+    public static final String BINARY_FILE = "binaryFile";
 
     public String getParserName() {
         return EmpiricalTreeDistributionModel.EMPIRICAL_TREE_DISTRIBUTION_MODEL;
@@ -71,6 +74,37 @@ public class EmpiricalTreeDistributionModelParser extends AbstractXMLObjectParse
 
         final File file = FileHelpers.getFile(fileName);
 
+        // the trees can be packed into a compact store (optionally memory mapped from a binary file)
+        final File binaryFile = xo.hasAttribute(BINARY_FILE) ? FileHelpers.getFile(xo.getStringAttribute(BINARY_FILE)) : null;
+        final boolean compact = xo.getAttribute(COMPACT, binaryFile != null);
+
+        if (compact) {
+            if (iterate) {
+                throw new XMLParseException("The " + COMPACT + " and " + ITERATE + " options can't be used together");
+            }
+
+            CompactTreeStore store;
+            try {
+                if (binaryFile != null) {
+                    store = CompactTreeStore.mapTrees(file, taxa, binaryFile);
+                } else {
+                    FileReader reader = new FileReader(file);
+                    store = CompactTreeStore.readTrees(new NexusImporter(reader), taxa);
+                    reader.close();
+                }
+            } catch (FileNotFoundException e) {
+                throw new XMLParseException(e.getMessage());
+            } catch (IOException e) {
+                throw new XMLParseException(e.getMessage());
+            } catch (Importer.ImportException e) {
+                throw new XMLParseException(e.getMessage());
+            }
+
+            Logger.getLogger("dr.evomodel").info("    Randomly jump between " + store.getTreeCount() + " trees from file, " + fileName +
+                    (binaryFile != null ? " (stored in " + binaryFile.getName() + ")" : " (stored compactly)"));
+            return new EmpiricalTreeDistributionModel(store, startingTree);
+        }
+
         Tree[] trees = null;
         NexusImporter importer = null;
         try {
@@ -105,6 +139,10 @@ public class EmpiricalTreeDistributionModelParser extends AbstractXMLObjectParse
         return new XMLSyntaxRule[]{
                 AttributeRule.newIntegerRule(STARTING_TREE, true),
                 AttributeRule.newBooleanRule(ITERATE, true),
+                AttributeRule.newBooleanRule(COMPACT, true, "Pack the trees into primitive arrays rather than " +
+                        "holding them as tree objects (node attributes are not kept)"),
+                AttributeRule.newStringRule(BINARY_FILE, true, "A binary file for the compact trees which is " +
+                        "memory mapped (and created from the tree file if it doesn't exist or is out of date)"),
                 new StringAttributeRule(FILE_NAME,
                         "The name of a NEXUS tree file"),
 //                AttributeRule.newIntegerRule(BURNIN, true,
@@ -28,8 +28,8 @@ package dr.evomodelxml.tree;
 import dr.evolution.tree.TreeUtils;
 import dr.evolution.util.Taxa;
 import dr.evolution.util.TaxonList;
-import dr.evomodel.tree.DefaultTreeModel;
 import dr.evomodel.tree.MRCATraitStatistic;
+import dr.evomodel.tree.NodeParameterProvider;
 import dr.evomodel.tree.TreeModel;
 import dr.xml.*;
 
@@ -51,7 +51,10 @@ public class MRCATraitStatisticParser extends AbstractXMLObjectParser {
         String name = xo.getAttribute(NAME, xo.getId());
         String trait = xo.getStringAttribute(TRAIT);
 
-        DefaultTreeModel tree = (DefaultTreeModel) xo.getChild(DefaultTreeModel.class);
+        TreeModel tree = (TreeModel) xo.getChild(TreeModel.class);
+        if (!(tree instanceof NodeParameterProvider)) {
+            throw new XMLParseException("the tree model, " + tree.getId() + ", used by " + getParserName() + " has no node traits");
+        }
         TaxonList taxa = (TaxonList) xo.getElementFirstChild(MRCA);
 
         try {
@@ -78,7 +81,7 @@ public class MRCATraitStatisticParser extends AbstractXMLObjectParser {
     }
 
     private XMLSyntaxRule[] rules = new XMLSyntaxRule[]{
-            new ElementRule(DefaultTreeModel.class),
+            new ElementRule(TreeModel.class),
             new StringAttributeRule("name", "A name for this statistic primarily for the purposes of logging", true),
             new StringAttributeRule("trait", "The name of the trait (can be rate)"),
             AttributeRule.newBooleanRule("rate", true),
@@ -31,7 +31,9 @@ import dr.evolution.tree.TreeUtils;
 import dr.evolution.util.Date;
 import dr.evolution.util.Taxon;
 import dr.evolution.util.TaxonList;
+import dr.evomodel.tree.ArrayTreeModel;
 import dr.evomodel.tree.DefaultTreeModel;
+import dr.evomodel.tree.NodeParameterProvider;
 import dr.evomodel.tree.TreeModel;
 import dr.inference.model.CompoundParameter;
 import dr.inference.model.Parameter;
@@ -65,6 +67,7 @@ public class TreeModelParser extends AbstractXMLObjectParser {
     public static final String FIRE_TREE_EVENTS = "fireTreeEvents";
     public static final String FIX_HEIGHTS = "fixHeights";
     public static final String FIX_TREE = "fixTree";
+    public static final String USE_ARRAYS = "useArrays";
     private static final String SIGNAL_COMPONENTS = "signalComponents";
 
     public static final String TAXON = "taxon";
@@ -90,6 +93,7 @@ public class TreeModelParser extends AbstractXMLObjectParser {
                 new ElementRule(ROOT_HEIGHT, Parameter.class, "A parameter definition with id only (cannot be a reference!)", false),
                 AttributeRule.newBooleanRule(FIX_HEIGHTS, true),
                 AttributeRule.newBooleanRule(FIX_TREE, true),
+                AttributeRule.newBooleanRule(USE_ARRAYS, true, "If true the tree is kept in flat arrays (faster to store and restore)"),
                 new ElementRule(NODE_HEIGHTS,
                         new XMLSyntaxRule[]{
                                 AttributeRule.newBooleanRule(ROOT_NODE, true, "If true the root height is included in the parameter"),
@@ -137,7 +141,15 @@ public class TreeModelParser extends AbstractXMLObjectParser {
         boolean fixHeights = xo.getAttribute(FIX_HEIGHTS, false);
         boolean fixTree = xo.getAttribute(FIX_TREE, false);
 
-        DefaultTreeModel treeModel = new DefaultTreeModel(xo.getId(), tree, fixHeights, fixTree);
+        boolean useArrays = xo.getAttribute(USE_ARRAYS, false);
+
+        TreeModel treeModel;
+        if (useArrays) {
+            treeModel = new ArrayTreeModel(xo.getId(), tree, fixHeights, fixTree);
+        } else {
+            treeModel = new DefaultTreeModel(xo.getId(), tree, fixHeights, fixTree);
+        }
+        NodeParameterProvider nodeParameters = (NodeParameterProvider) treeModel;
 
         Logger.getLogger("dr.evomodel").info("\nCreating the tree model, '" + xo.getId() + "'");
 
@@ -148,7 +160,7 @@ public class TreeModelParser extends AbstractXMLObjectParser {
 
                 if (cxo.getName().equals(ROOT_HEIGHT)) {
 
-                    ParameterParser.replaceParameter(cxo, treeModel.getRootHeightParameter());
+                    ParameterParser.replaceParameter(cxo, nodeParameters.getRootHeightParameter());
 
                 } else if (cxo.getName().equals(LEAF_HEIGHT)) {
 
@@ -165,7 +177,7 @@ public class TreeModelParser extends AbstractXMLObjectParser {
                     }
                     NodeRef node = treeModel.getExternalNode(index);
 
-                    Parameter newParameter = treeModel.getLeafHeightParameter(node);
+                    Parameter newParameter = nodeParameters.getLeafHeightParameter(node);
 
                     ParameterParser.replaceParameter(cxo, newParameter);
 
@@ -187,7 +199,7 @@ public class TreeModelParser extends AbstractXMLObjectParser {
                         }
                         NodeRef node = treeModel.getExternalNode(index);
 
-                        Parameter newParameter = treeModel.getLeafHeightParameter(node);
+                        Parameter newParameter = nodeParameters.getLeafHeightParameter(node);
 
                         leafHeights.addParameter(newParameter);
 
@@ -206,7 +218,7 @@ public class TreeModelParser extends AbstractXMLObjectParser {
                         throw new XMLParseException("one or more of root, internal or leaf nodes must be selected for the nodeHeights element");
                     }
 
-                    ParameterParser.replaceParameter(cxo, treeModel.createNodeHeightsParameter(rootNode, internalNodes, leafNodes));
+                    ParameterParser.replaceParameter(cxo, nodeParameters.createNodeHeightsParameter(rootNode, internalNodes, leafNodes));
 
                 } else if (cxo.getName().equals(NODE_RATES)) {
 
@@ -223,11 +235,11 @@ public class TreeModelParser extends AbstractXMLObjectParser {
                         throw new XMLParseException("one or more of root, internal or leaf nodes must be selected for the nodeRates element");
                     }
 
-                    ParameterParser.replaceParameter(cxo, treeModel.createNodeRatesParameter(initialValues, rootNode, internalNodes, leafNodes));
+                    ParameterParser.replaceParameter(cxo, nodeParameters.createNodeRatesParameter(initialValues, rootNode, internalNodes, leafNodes));
 
                 } else if (cxo.getName().equals(NODE_TRAITS)) {
 
-                    parseNodeTraits(cxo, treeModel);
+                    parseNodeTraits(cxo, nodeParameters);
 
                 } else if (cxo.getName().equals(LEAF_TRAIT)) {
 
@@ -246,7 +258,7 @@ public class TreeModelParser extends AbstractXMLObjectParser {
                     }
                     NodeRef node = treeModel.getExternalNode(index);
 
-                    Parameter parameter = treeModel.getNodeTraitParameter(node, name);
+                    Parameter parameter = nodeParameters.getNodeTraitParameter(node, name);
 
                     if (parameter == null)
                         throw new XMLParseException("trait '" + name + "' not found for leafTrait (taxon, " + taxonName + ") element in treeModel element");
@@ -270,7 +282,7 @@ public class TreeModelParser extends AbstractXMLObjectParser {
         return treeModel;
     }
 
-    public static void parseNodeTraits(XMLObject cxo, DefaultTreeModel treeModel) throws XMLParseException {
+    public static void parseNodeTraits(XMLObject cxo, NodeParameterProvider treeModel) throws XMLParseException {
 
         boolean rootNode = cxo.getAttribute(ROOT_NODE, false);
         boolean internalNodes = cxo.getAttribute(INTERNAL_NODES, false);
@@ -290,13 +302,32 @@ public class TreeModelParser extends AbstractXMLObjectParser {
             throw new XMLParseException("one or more of root, internal or leaf nodes must be selected for the nodeTraits element");
         }
 
-        Parameter newParameter = asMatrix ?
-                treeModel.createNodeTraitsParameterAsMatrix(name, dim, initialValues, rootNode, internalNodes, leafNodes, fireTreeEvents, signalComponents) :
-                treeModel.createNodeTraitsParameter(name, dim, initialValues, rootNode, internalNodes, leafNodes, fireTreeEvents);
+        Parameter newParameter;
+        if (asMatrix) {
+            if (!(treeModel instanceof DefaultTreeModel)) {
+                throw new XMLParseException("node traits as a matrix are only available with the default tree model (not useArrays)");
+            }
+            newParameter = ((DefaultTreeModel) treeModel).createNodeTraitsParameterAsMatrix(name, dim, initialValues, rootNode, internalNodes, leafNodes, fireTreeEvents, signalComponents);
+        } else {
+            newParameter = treeModel.createNodeTraitsParameter(name, dim, initialValues, rootNode, internalNodes, leafNodes, fireTreeEvents);
+        }
 
         ParameterParser.replaceParameter(cxo, newParameter);
     }
 
+    /**
+     * Gets the tree model child for an element that needs the nodes of the default tree model. This
+     * gives a clear error (rather than a failed syntax rule) for a tree model kept in arrays.
+     */
+    public static DefaultTreeModel getDefaultTreeModelChild(XMLObject xo, String parserName) throws XMLParseException {
+        TreeModel treeModel = (TreeModel) xo.getChild(TreeModel.class);
+        if (!(treeModel instanceof DefaultTreeModel)) {
+            throw new XMLParseException("the tree model, " + treeModel.getId() + ", used by the " + parserName +
+                    " element must be a default tree model (a " + DefaultTreeModel.TREE_MODEL + " element without " + USE_ARRAYS + "=\"true\")");
+        }
+        return (DefaultTreeModel) treeModel;
+    }
+
     private void setUncertaintyBounds(Parameter newParameter, Taxon taxon) {
         Date date = taxon.getDate();
         if (date != null) {
@@ -353,7 +384,7 @@ public class TreeModelParser extends AbstractXMLObjectParser {
     }
 
     public Class getReturnType() {
-        return DefaultTreeModel.class;
+        return TreeModel.class;
     }
 
     public XMLSyntaxRule[] getSyntaxRules() {
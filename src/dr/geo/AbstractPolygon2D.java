@@ -116,6 +116,10 @@ public abstract class AbstractPolygon2D {
             x[i] = point.getX();
             y[i] = point.getY();
         }
+        // the cached bounds and edge index are for the old points
+        min = null;
+        max = null;
+        edgeIndex = null;
     }
 
     public void addPoint2D(Point2D point2D) {
@@ -188,12 +192,26 @@ public abstract class AbstractPolygon2D {
         }
     }
 
+    public Rectangle2D getBoundingBox() {
+        if (max == null || min == null) {
+            computeBoundingBox();
+        }
+        return new Rectangle2D.Double(min[0], min[1], max[0] - min[0], max[1] - min[1]);
+    }
+
     private static boolean TRY_ROUGH = false;
 
     public abstract double getProbability(Point2D Point2D, boolean outside);
 
     public abstract double getLogProbability(Point2D Point2D, boolean outside);
 
+    /**
+     * @param contains whether the polygon contains the point
+     * @param outside  whether the point should be outside the polygon
+     * @return the log probability of a point given whether it is in the polygon
+     */
+    public abstract double getLogProbability(boolean contains, boolean outside);
+
     public boolean containsPoint2D(Point2D Point2D) {
 
         if (TRY_ROUGH) {
@@ -206,6 +224,15 @@ public abstract class AbstractPolygon2D {
         final double inY = Point2D.getY();
         boolean contains = false;
 
+        if (length > EDGE_INDEX_THRESHOLD) {
+            if (edgeIndex == null) {
+                edgeIndex = new EdgeIndex();
+            }
+            if (edgeIndex.bandCount > 0) {
+                return edgeIndex.containsPoint2D(inX, inY);
+            }
+        }
+
         // Take a horizontal ray from (inX,inY) to the right.
         // If ray across the polygon edges an odd # of times, the point is inside.
         for (int i = 0, j = length - 1; i < length; j = i++) {
@@ -217,6 +244,93 @@ public abstract class AbstractPolygon2D {
         return contains;
     }
 
+    /**
+     * Polygons with many vertices have their edges bucketed into horizontal bands so that
+     * the ray crossing test only looks at the edges that span the band containing the point.
+     * The same edges are counted so the result is identical to the full test.
+     */
+    private class EdgeIndex {
+
+        EdgeIndex() {
+            minY = Double.POSITIVE_INFINITY;
+            maxY = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < length; i++) {
+                minY = Math.min(minY, y[i]);
+                maxY = Math.max(maxY, y[i]);
+            }
+            if (!(maxY > minY)) {
+                // degenerate so use the full test
+                bandCount = 0;
+                bandHeight = 0.0;
+                bandStarts = null;
+                bandEdges = null;
+                return;
+            }
+
+            bandCount = Math.max(1, length / EDGES_PER_BAND);
+            bandHeight = (maxY - minY) / bandCount;
+
+            bandStarts = new int[bandCount + 1];
+            for (int i = 0, j = length - 1; i < length; j = i++) {
+                if (y[i] != y[j]) {
+                    for (int band = getBand(Math.min(y[i], y[j])); band <= getBand(Math.max(y[i], y[j])); band++) {
+                        bandStarts[band + 1]++;
+                    }
+                }
+            }
+            for (int band = 0; band < bandCount; band++) {
+                bandStarts[band + 1] += bandStarts[band];
+            }
+
+            bandEdges = new int[bandStarts[bandCount]];
+            int[] counts = new int[bandCount];
+            for (int i = 0, j = length - 1; i < length; j = i++) {
+                if (y[i] != y[j]) {
+                    for (int band = getBand(Math.min(y[i], y[j])); band <= getBand(Math.max(y[i], y[j])); band++) {
+                        bandEdges[bandStarts[band] + counts[band]] = i;
+                        counts[band]++;
+                    }
+                }
+            }
+        }
+
+        private int getBand(double value) {
+            int band = (int) ((value - minY) / bandHeight);
+            return Math.max(0, Math.min(bandCount - 1, band));
+        }
+
+        boolean containsPoint2D(double inX, double inY) {
+            if (inY < minY || inY > maxY) {
+                return false;
+            }
+            boolean contains = false;
+            int band = getBand(inY);
+            for (int k = bandStarts[band]; k < bandStarts[band + 1]; k++) {
+                final int i = bandEdges[k];
+                final int j = (i == 0 ? length - 1 : i - 1);
+                if ((((y[i] <= inY) && (inY < y[j])) ||
+                        ((y[j] <= inY) && (inY < y[i]))) &&
+                        (inX < (x[j] - x[i]) * (inY - y[i]) / (y[j] - y[i]) + x[i]))
+                    contains = !contains;
+            }
+            return contains;
+        }
+
+        private double minY;
+        private double maxY;
+        private final int bandCount;
+        private final double bandHeight;
+        private final int[] bandStarts;
+        private final int[] bandEdges;
+    }
+
+    /**
+     * @return whether the polygon has enough vertices to use an edge index
+     */
+    public boolean hasEdgeIndex() {
+        return length > EDGE_INDEX_THRESHOLD;
+    }
+
 //    public boolean containsPoint2D(Point2D Point2D) { // this takes 3 times as long as the above code, why???
 //
 //        final double inX = Point2D.getX();
@@ -667,4 +781,9 @@ public abstract class AbstractPolygon2D {
     protected double[] max;
     protected double[] min;
 
+    private static final int EDGE_INDEX_THRESHOLD = 32;
+    private static final int EDGES_PER_BAND = 4;
+
+    private EdgeIndex edgeIndex = null;
+
 }
@@ -27,8 +27,6 @@ package dr.geo;
 
 import dr.app.gui.ColorFunction;
 
-import javax.imageio.ImageIO;
-import javax.imageio.stream.ImageInputStream;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.geom.Rectangle2D;
@@ -47,9 +45,10 @@ public class GTOPO30Tile extends JComponent {
 
     static final int NROWS = 6000;
     static final int NCOLS = 4800;
-    static final int NODATA = -9999;
+    static final short NODATA = -9999;
 
-    short[][] height;
+    // the heights are memory mapped rather than read on to the heap
+    MappedRaster height;
     BufferedImage image;
     ColorFunction colorFunction;
 
@@ -74,7 +73,10 @@ public class GTOPO30Tile extends JComponent {
             }
         }
 
-        height = new short[NROWS][NCOLS];
+        height = new MappedRaster(new File(filename), NROWS, NCOLS, MappedRaster.DataType.INT16, ByteOrder.BIG_ENDIAN, NODATA);
+        if (bounds != null) {
+            height.setGeoreference(ulxmap, ulymap, xdim, ydim);
+        }
 
         colorFunction = function;
 
@@ -113,31 +115,18 @@ public class GTOPO30Tile extends JComponent {
 
         if (createImage) {
             image = new BufferedImage(NCOLS, NROWS, BufferedImage.TYPE_INT_RGB);
-        }
-
-        try {
-            ImageInputStream iis = ImageIO.createImageInputStream(new File(sFile));
-            iis.setByteOrder(ByteOrder.BIG_ENDIAN);
 
             for (int y = 0; y < NROWS; y++) {
-                iis.readFully(height[y], 0, NCOLS);
-
-                if (createImage) {
-
-                    for (int x = 0; x < NCOLS; x++) {
-                        int color = height[y][x];//iis.readShort();
-                        if (color == -9999) {
-                            image.setRGB(x, y, Color.blue.darker().getRGB());
-                        } else {
-                            image.setRGB(x, y, colorFunction.getColor((float) color).getRGB());
-                        }
+                for (int x = 0; x < NCOLS; x++) {
+                    int color = getHeight(y, x);
+                    if (color == NODATA) {
+                        image.setRGB(x, y, Color.blue.darker().getRGB());
+                    } else {
+                        image.setRGB(x, y, colorFunction.getColor((float) color).getRGB());
                     }
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
-        System.err.println();
     } // read
 
     protected void paintComponent(Graphics g) {
@@ -152,7 +141,16 @@ public class GTOPO30Tile extends JComponent {
      * @return the height of the pixel at y,x
      */
     public short getHeight(int y, int x) {
-        return height[y][x];
+        double value = height.getValue(y, x);
+        return (Double.isNaN(value) ? NODATA : (short) value);
+    }
+
+    /**
+     * @return the height at a location interpolated between the 4 nearest pixels (or NaN if there
+     *         is no data)
+     */
+    public double getInterpolatedHeight(double longitude, double latitude) {
+        return height.interpolate(longitude, latitude);
     }
 
     boolean contains(double longitude, double latitude) {
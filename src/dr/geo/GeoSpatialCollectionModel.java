@@ -60,6 +60,20 @@ public class GeoSpatialCollectionModel extends AbstractModelLikelihood {
         addVariable(points);
 
         this.isIntersection = isIntersection;
+
+        // the regions are indexed if the density is the first that is non-zero (a union) or the
+        // sum over all of them (an intersection)
+        boolean anyOutside = false;
+        boolean allOutside = true;
+        for (GeoSpatialDistribution distribution : geoSpatialDistributions) {
+            anyOutside |= distribution.getOutside();
+            allOutside &= distribution.getOutside();
+        }
+        isIndexedUnion = !isIntersection && !anyOutside;
+        if (isIndexedUnion || isIntersection || allOutside) {
+            index = GeoSpatialDistribution.createIndex(geoSpatialDistributions);
+            candidates = new int[geoSpatialDistributions.size()];
+        }
     }
 
     protected void handleModelChangedEvent(Model model, Object object, int index) {
@@ -118,6 +132,14 @@ public class GeoSpatialCollectionModel extends AbstractModelLikelihood {
                     point[j] = points.getParameterValue(offset + j);
 
                 double pointLogLikelihood = 0;
+                if (index != null) {
+                    cachedPointLogLikelihood[i] = getIndexedLogLikelihood(point);
+                    validPointLogLikelihood[i] = true;
+                    logLikelihood += cachedPointLogLikelihood[i];
+                    if (logLikelihood == Double.NEGATIVE_INFINITY)
+                        break; // No need to finish
+                    continue;
+                }
                 for (GeoSpatialDistribution distribution : geoSpatialDistributions) {
                     //if we consider the union of polygons and the point must be inside, than it is good enough that the point is in one polygon
                     //so we look for a polygon that does not yield -inf
@@ -147,6 +169,40 @@ public class GeoSpatialCollectionModel extends AbstractModelLikelihood {
         return logLikelihood;
     }
 
+    /**
+     * The log likelihood of a point using the spatial index: only the regions whose bounds
+     * contain the point can have a non-zero density.
+     */
+    private double getIndexedLogLikelihood(double[] point) {
+        final int count = index.getCandidates(point[0], point[1], candidates);
+        if (isIndexedUnion) {
+            for (int k = 0; k < count; k++) {
+                final double logPdf = geoSpatialDistributions.get(candidates[k]).logPdf(point);
+                if (logPdf != Double.NEGATIVE_INFINITY) {
+                    return logPdf;
+                }
+            }
+            return Double.NEGATIVE_INFINITY;
+        }
+        if (count < geoSpatialDistributions.size()) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        double pointLogLikelihood = 0.0;
+        for (GeoSpatialDistribution distribution : geoSpatialDistributions) {
+            pointLogLikelihood += distribution.logPdf(point);
+            if (pointLogLikelihood == Double.NEGATIVE_INFINITY)
+                break; // No need to finish
+        }
+        return pointLogLikelihood;
+    }
+
+    /**
+     * @return the spatial index of the regions or null if they are not indexed
+     */
+    public PolygonIndex getIndex() {
+        return index;
+    }
+
     public void makeDirty() {
         likelihoodKnown = false;
         for (int i = 0; i < dim; i++)
@@ -174,4 +230,8 @@ public class GeoSpatialCollectionModel extends AbstractModelLikelihood {
     private boolean[] storedValidPointLogLikelihood;
 
     private final boolean isIntersection;
+
+    private final boolean isIndexedUnion;
+    private PolygonIndex index = null;
+    private int[] candidates = null;
 }
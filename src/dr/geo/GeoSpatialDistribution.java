@@ -108,6 +108,40 @@ public class GeoSpatialDistribution implements MultivariateDistribution, Citable
         return region;
     }
 
+    /**
+     * @return the log density of a point that is not in the region
+     */
+    public double logPdfOutsideRegion() {
+        return region.getLogProbability(false, outside);
+    }
+
+    /**
+     * Creates a spatial index of the regions of a list of distributions. This can only be used
+     * if a point that is not in a region has zero density under that distribution so only the
+     * regions that may contain the point need to be tested.
+     *
+     * @param distributions the distributions
+     * @return the index or null if there are too few regions or they can't be indexed
+     */
+    static PolygonIndex createIndex(List<GeoSpatialDistribution> distributions) {
+        if (distributions.size() < 2) {
+            return null;
+        }
+        List<AbstractPolygon2D> polygons = new ArrayList<AbstractPolygon2D>();
+        for (GeoSpatialDistribution distribution : distributions) {
+            if (distribution.getClass() != GeoSpatialDistribution.class ||
+                    distribution.logPdfOutsideRegion() != Double.NEGATIVE_INFINITY) {
+                return null;
+            }
+            polygons.add(distribution.getRegion());
+        }
+        return new PolygonIndex(polygons);
+    }
+
+    private static String getIndexStatistics(PolygonIndex index) {
+        return (index != null ? "\tSpatial index: " + index.getStatistics() + "\n" : "");
+    }
+
     protected AbstractPolygon2D region;
     protected String label = null;
     private boolean outside = false;
@@ -208,12 +242,14 @@ public class GeoSpatialDistribution implements MultivariateDistribution, Citable
                     throw new XMLParseException("Spatial priors currently only work in " + dimPoint + "D");
 
                 if (!label.equals(DEFAULT_LABEL)) {  // For a tip-taxon
+                    MultiRegionGeoSpatialDistribution distribution =
+                            new MultiRegionGeoSpatialDistribution(label, geoSpatialDistributions, union, overAllFill);
                     Logger.getLogger("dr.geo").info(
                             "\nConstructing a multiple-region spatial prior:\n" +
                                     "\tTaxon: " + label + "\n" +
-                                    "\tNumber of regions: " + geoSpatialDistributions.size() + "\n\n");
-                    MultivariateDistributionLikelihood likelihood = new MultivariateDistributionLikelihood(
-                            new MultiRegionGeoSpatialDistribution(label, geoSpatialDistributions, union, overAllFill));
+                                    "\tNumber of regions: " + geoSpatialDistributions.size() + "\n" +
+                                    getIndexStatistics(distribution.getIndex()) + "\n");
+                    MultivariateDistributionLikelihood likelihood = new MultivariateDistributionLikelihood(distribution);
                     likelihood.addData(parameter);
                     likelihood.setId(xo.getId());
                     if (cache) {
@@ -224,12 +260,14 @@ public class GeoSpatialDistribution implements MultivariateDistribution, Citable
 
                 } else {
 
+                    GeoSpatialCollectionModel model = new GeoSpatialCollectionModel(xo.getId(), parameter, geoSpatialDistributions, !union);
                     Logger.getLogger("dr.geo").info(
                             "\nConstructing a GeoSpatialCollectionModel:\n" +
                                     "\tParameter: " + parameter.getId() + "\n" +
-                                    "\tNumber of regions: " + geoSpatialDistributions.size() + "\n\n");
+                                    "\tNumber of regions: " + geoSpatialDistributions.size() + "\n" +
+                                    getIndexStatistics(model.getIndex()) + "\n");
 
-                    return new GeoSpatialCollectionModel(xo.getId(), parameter, geoSpatialDistributions, !union);
+                    return model;
                 }
             }
 
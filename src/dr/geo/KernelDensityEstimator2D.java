@@ -27,6 +27,8 @@ package dr.geo;
 
 import cern.colt.list.DoubleArrayList;
 import cern.jet.stat.Descriptive;
+import dr.math.ComplexArray;
+import dr.math.FastFourierTransform;
 import dr.math.distributions.NormalDistribution;
 import dr.math.matrixAlgebra.Matrix;
 import dr.math.matrixAlgebra.Vector;
@@ -39,7 +41,15 @@ import dr.geo.contouring.ContourMaker;
 import java.util.Arrays;
 
 /**
- * KernelDensityEstimator2D creates a bi-variate kernel density smoother for data
+ * KernelDensityEstimator2D creates a bi-variate kernel density smoother for data.
+ *
+ * For more than BINNING_THRESHOLD points the density is not summed directly over every grid
+ * point and observation. Instead the observations are linearly binned onto a finer grid (at
+ * least GRID_POINTS_PER_BANDWIDTH points per bandwidth) and convolved with the kernel by FFT
+ * (in x and then y as the kernel is a product of normals) before sampling the density at the
+ * grid points. The bins extend KERNEL_SUPPORT bandwidths beyond the grid so observations outside
+ * the limits still contribute. The bandwidths and grid are the same in both cases.
+ *
  * @author Marc A. Suchard
  * @author Philippe Lemey
  */
@@ -120,6 +130,12 @@ public class KernelDensityEstimator2D implements ContourMaker {
     public void doKDE2D() {
         gx = makeSequence(lims[0], lims[1], n);
         gy = makeSequence(lims[2], lims[3], n);
+        if (nx > BINNING_THRESHOLD) {
+            z = binnedKDE2D();
+            if (z != null) {
+                return;
+            }
+        }
         double[][] ax = outerMinusScaled(gx, x, h[0]);
         double[][] ay = outerMinusScaled(gy, y, h[1]);
         normalize(ax);
@@ -137,6 +153,112 @@ public class KernelDensityEstimator2D implements ContourMaker {
         }
     }
 
+    /**
+     * @return the density at the grid points calculated by binning and FFT convolution (or null if
+     * the bandwidths are so wide relative to the grid that there would be too many bins)
+     */
+    private double[][] binnedKDE2D() {
+        // the number of bins between grid points in each dimension
+        final int kx = getBinsPerGridPoint(gx[1] - gx[0], h[0]);
+        final int ky = getBinsPerGridPoint(gy[1] - gy[0], h[1]);
+        final double dx = (gx[1] - gx[0]) / kx;
+        final double dy = (gy[1] - gy[0]) / ky;
+        // the number of bins beyond the grid at each end (beyond which the kernel is negligible)
+        final double extentX = Math.ceil(KERNEL_SUPPORT * h[0] / dx);
+        final double extentY = Math.ceil(KERNEL_SUPPORT * h[1] / dy);
+        if (((n - 1) * kx + 1 + 2 * extentX) * ((n - 1) * ky + 1 + 2 * extentY) > MAX_BIN_COUNT) {
+            return null;
+        }
+        final int ex = (int) extentX;
+        final int ey = (int) extentY;
+        final int mx = (n - 1) * kx + 1 + 2 * ex;
+        final int my = (n - 1) * ky + 1 + 2 * ey;
+
+        // linear binning: each observation is shared between the four surrounding bins
+        double[][] counts = new double[my][mx];
+        for (int k = 0; k < nx; k++) {
+            final double xpos = (x[k] - lims[0]) / dx + ex;
+            final double ypos = (y[k] - lims[2]) / dy + ey;
+            final int ix = (int) Math.floor(xpos);
+            final int iy = (int) Math.floor(ypos);
+            final double fx = xpos - ix;
+            final double fy = ypos - iy;
+            addCount(counts, iy, ix, (1 - fy) * (1 - fx));
+            addCount(counts, iy, ix + 1, (1 - fy) * fx);
+            addCount(counts, iy + 1, ix, fy * (1 - fx));
+            addCount(counts, iy + 1, ix + 1, fy * fx);
+        }
+
+        // convolve each row in x and keep the columns at the grid points
+        ComplexArray xKernel = getKernelTransform(mx, dx / h[0]);
+        double[][] rows = new double[n][my];
+        for (int j = 0; j < my; j++) {
+            double[] convolved = convolve(counts[j], xKernel);
+            for (int i = 0; i < n; i++) {
+                rows[i][j] = convolved[ex + i * kx];
+            }
+        }
+
+        // then convolve these columns in y and keep the grid points
+        ComplexArray yKernel = getKernelTransform(my, dy / h[1]);
+        double[][] density = new double[n][n];
+        final double scale = nx * h[0] * h[1];
+        for (int i = 0; i < n; i++) {
+            double[] convolved = convolve(rows[i], yKernel);
+            for (int j = 0; j < n; j++) {
+                // remove any small negative values left by rounding in the FFT
+                density[i][j] = Math.max(convolved[ey + j * ky], 0.0) / scale;
+            }
+        }
+        return density;
+    }
+
+    private static int getBinsPerGridPoint(double gridDelta, double bandwidth) {
+        int k = (int) Math.ceil(gridDelta * GRID_POINTS_PER_BANDWIDTH / bandwidth);
+        return Math.max(1, Math.min(k, MAX_BINS_PER_GRID_POINT));
+    }
+
+    private static void addCount(double[][] counts, int i, int j, double weight) {
+        if (i >= 0 && i < counts.length && j >= 0 && j < counts[0].length) {
+            counts[i][j] += weight;
+        }
+    }
+
+    /**
+     * @param m the number of bins
+     * @param delta the bin width in units of the bandwidth
+     * @return the transform of the kernel at each bin offset (wrapped around for negative offsets)
+     */
+    private static ComplexArray getKernelTransform(int m, double delta) {
+        int length = 1;
+        while (length < 2 * m) {
+            length <<= 1;
+        }
+        double[] ordinates = new double[length];
+        for (int d = 0; d < m; d++) {
+            double value = NormalDistribution.pdf(d * delta, 0, 1);
+            ordinates[d] = value;
+            if (d > 0) {
+                ordinates[length - d] = value;
+            }
+        }
+        ComplexArray kernel = new ComplexArray(ordinates);
+        FastFourierTransform.fft(kernel, false);
+        return kernel;
+    }
+
+    private static double[] convolve(double[] values, ComplexArray kernel) {
+        ComplexArray data = new ComplexArray(Arrays.copyOf(values, kernel.length));
+        FastFourierTransform.fft(data, false);
+        ComplexArray product = data.product(kernel);
+        FastFourierTransform.fft(product, true);
+        double[] result = new double[values.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = product.real[i] / kernel.length;
+        }
+        return result;
+    }
+
     public double findLevelCorrespondingToMass(double probabilityMass) {
         double level = 0;
         double[] sz = new double[n*n];
@@ -219,6 +341,13 @@ public class KernelDensityEstimator2D implements ContourMaker {
 
     private double margin = 0.1;
 
+    // the number of observations above which the density is calculated by binning
+    public static final int BINNING_THRESHOLD = 2000;
+    private static final int GRID_POINTS_PER_BANDWIDTH = 4;
+    private static final int MAX_BINS_PER_GRID_POINT = 20;
+    private static final double KERNEL_SUPPORT = 6.0;
+    private static final long MAX_BIN_COUNT = 1L << 22;
+
     private void setupLims() {
         lims = new double[4];
         lims[0] = DiscreteStatistics.min(x);
@@ -288,6 +417,8 @@ public class KernelDensityEstimator2D implements ContourMaker {
 
     public double[] getLims() { return lims; }
 
+    public double[] getBandwidths() { return h; }
+
     private final double[] x; // x coordinates
     private final double[] y; // y coordinates
     private double[] h; // h[0] x-bandwidth, h[1] y-bandwidth
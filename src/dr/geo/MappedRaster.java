@@ -0,0 +1,388 @@
+/*
+ * MappedRaster.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.geo;
+
+import java.awt.geom.Rectangle2D;
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * A grid of values (e.g., elevations or costs) in a binary raster file such as a GTOPO30 tile
+ * or an ESRI BIL file. Rather than reading the grid on to the heap, the file is memory mapped
+ * and the values are decoded into small square tiles on demand. The most recently used tiles
+ * are cached (the number is set by the 'dr.geo.raster.cache' property) so continent-scale grids
+ * can be used with a small heap.
+ *
+ * If the raster is georeferenced the values can be looked up by longitude and latitude, either
+ * of the nearest cell or by bilinear interpolation between the centres of the 4 nearest cells.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class MappedRaster {
+
+    public static final String CACHE_SIZE_PROPERTY = "dr.geo.raster.cache";
+
+    private static final int TILE_SIZE = 64;
+    private static final int DEFAULT_CACHE_SIZE = 1024;
+
+    public enum DataType {
+        INT16(2),
+        INT32(4),
+        FLOAT32(4),
+        FLOAT64(8);
+
+        DataType(int size) {
+            this.size = size;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        private final int size;
+    }
+
+    /**
+     * Maps a raster file of rows of values from the top (north) to the bottom (south).
+     *
+     * @param file        the file
+     * @param rowCount    the number of rows
+     * @param columnCount the number of columns
+     * @param dataType    the type of the values
+     * @param byteOrder   the byte order of the values
+     * @param noData      the value given to cells with no data (these are returned as NaN)
+     * @throws IOException
+     */
+    public MappedRaster(File file, int rowCount, int columnCount, DataType dataType, ByteOrder byteOrder, double noData) throws IOException {
+        this.rowCount = rowCount;
+        this.columnCount = columnCount;
+        this.dataType = dataType;
+        this.noData = noData;
+
+        long rowSize = (long) columnCount * dataType.getSize();
+        if (file.length() < rowSize * rowCount) {
+            throw new IOException("Raster file, " + file.getName() + ", is smaller than " + rowCount + " rows of " +
+                    columnCount + " values");
+        }
+
+        // a mapped buffer is limited to 2GB so larger files are mapped as blocks of rows
+        rowsPerSegment = (int) Math.max(1, Math.min(rowCount, Integer.MAX_VALUE / rowSize));
+        segments = new MappedByteBuffer[(rowCount + rowsPerSegment - 1) / rowsPerSegment];
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            for (int i = 0; i < segments.length; i++) {
+                int rows = Math.min(rowsPerSegment, rowCount - i * rowsPerSegment);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, i * rowsPerSegment * rowSize, rows * rowSize);
+                segments[i].order(byteOrder);
+            }
+        } finally {
+            // the mapping remains valid after the file is closed
+            randomAccessFile.close();
+        }
+
+        int cacheSize = Integer.getInteger(CACHE_SIZE_PROPERTY, DEFAULT_CACHE_SIZE);
+        this.cacheSize = Math.max(1, cacheSize);
+        tileColumnCount = (columnCount + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    /**
+     * Maps a raster file using the accompanying header file (with the extension .HDR) in the
+     * format used by GTOPO30 and ESRI BIL files.
+     *
+     * @param fileName the raster file
+     * @return the raster
+     * @throws IOException
+     */
+    public static MappedRaster readRaster(String fileName) throws IOException {
+        File file = new File(fileName);
+        String baseName = fileName.contains(".") ? fileName.substring(0, fileName.lastIndexOf('.')) : fileName;
+        File headerFile = new File(baseName + ".HDR");
+        if (!headerFile.isFile()) {
+            headerFile = new File(baseName + ".hdr");
+        }
+        if (!headerFile.isFile()) {
+            throw new FileNotFoundException("No header file found for raster file, " + fileName);
+        }
+
+        Map<String, String> properties = readHeader(headerFile);
+
+        int rowCount = Integer.parseInt(getProperty(properties, "NROWS", null, headerFile));
+        int columnCount = Integer.parseInt(getProperty(properties, "NCOLS", null, headerFile));
+        int bits = Integer.parseInt(getProperty(properties, "NBITS", "16", headerFile));
+        boolean isFloat = getProperty(properties, "PIXELTYPE", "SIGNEDINT", headerFile).equalsIgnoreCase("FLOAT");
+        ByteOrder byteOrder = getProperty(properties, "BYTEORDER", "M", headerFile).equalsIgnoreCase("I") ?
+                ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        double noData = Double.parseDouble(getProperty(properties, "NODATA", "-9999", headerFile));
+
+        DataType dataType;
+        if (isFloat) {
+            dataType = (bits == 64 ? DataType.FLOAT64 : DataType.FLOAT32);
+        } else if (bits == 16) {
+            dataType = DataType.INT16;
+        } else if (bits == 32) {
+            dataType = DataType.INT32;
+        } else {
+            throw new IOException("Unsupported raster data type (NBITS = " + bits + ") in " + headerFile);
+        }
+
+        MappedRaster raster = new MappedRaster(file, rowCount, columnCount, dataType, byteOrder, noData);
+        if (properties.containsKey("ULXMAP")) {
+            raster.setGeoreference(
+                    Double.parseDouble(getProperty(properties, "ULXMAP", null, headerFile)),
+                    Double.parseDouble(getProperty(properties, "ULYMAP", null, headerFile)),
+                    Double.parseDouble(getProperty(properties, "XDIM", null, headerFile)),
+                    Double.parseDouble(getProperty(properties, "YDIM", null, headerFile)));
+        }
+        return raster;
+    }
+
+    static Map<String, String> readHeader(File headerFile) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(headerFile));
+        Map<String, String> properties = new HashMap<String, String>();
+
+        String line = reader.readLine();
+        while (line != null) {
+            StringTokenizer tokens = new StringTokenizer(line);
+            if (tokens.countTokens() == 2) {
+                properties.put(tokens.nextToken().toUpperCase(), tokens.nextToken());
+            }
+            line = reader.readLine();
+        }
+        reader.close();
+        return properties;
+    }
+
+    private static String getProperty(Map<String, String> properties, String key, String defaultValue, File headerFile) throws IOException {
+        String value = properties.get(key);
+        if (value == null) {
+            if (defaultValue == null) {
+                throw new IOException("Header file, " + headerFile + ", is missing " + key);
+            }
+            return defaultValue;
+        }
+        return value;
+    }
+
+    /**
+     * Sets the location of the raster.
+     *
+     * @param ulxMap the longitude (x) of the centre of the upper left cell
+     * @param ulyMap the latitude (y) of the centre of the upper left cell
+     * @param xDim   the width of a cell
+     * @param yDim   the height of a cell
+     */
+    public void setGeoreference(double ulxMap, double ulyMap, double xDim, double yDim) {
+        this.ulxMap = ulxMap;
+        this.ulyMap = ulyMap;
+        this.xDim = xDim;
+        this.yDim = yDim;
+        isGeoreferenced = true;
+    }
+
+    public boolean isGeoreferenced() {
+        return isGeoreferenced;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    public double getXDim() {
+        return xDim;
+    }
+
+    public double getYDim() {
+        return yDim;
+    }
+
+    /**
+     * @return the extent of the raster (the outer edges of the cells)
+     */
+    public Rectangle2D getBounds() {
+        checkGeoreferenced();
+        return new Rectangle2D.Double(ulxMap - xDim / 2.0, ulyMap + yDim / 2.0 - yDim * rowCount,
+                xDim * columnCount, yDim * rowCount);
+    }
+
+    /**
+     * @param row    the row, increasing south from the north edge
+     * @param column the column, increasing east from the west edge
+     * @return the value of the cell or NaN if it has no data or is outside the raster
+     */
+    public double getValue(int row, int column) {
+        if (row < 0 || row >= rowCount || column < 0 || column >= columnCount) {
+            return Double.NaN;
+        }
+        double[] tile = getTile(row / TILE_SIZE, column / TILE_SIZE);
+        return tile[(row % TILE_SIZE) * TILE_SIZE + (column % TILE_SIZE)];
+    }
+
+    /**
+     * @return the value of the cell containing the location or NaN if it has no data or is
+     *         outside the raster
+     */
+    public double getValue(double longitude, double latitude) {
+        checkGeoreferenced();
+        int column = (int) Math.floor((longitude - ulxMap) / xDim + 0.5);
+        int row = (int) Math.floor((ulyMap - latitude) / yDim + 0.5);
+        return getValue(row, column);
+    }
+
+    /**
+     * Bilinear interpolation between the centres of the 4 cells around the location. Cells with
+     * no data are left out (and the weights of the others renormalized). Locations between the
+     * centre of an edge cell and the edge of the raster take the value at the edge cell.
+     *
+     * @return the interpolated value or NaN if outside the raster or there is no data
+     */
+    public double interpolate(double longitude, double latitude) {
+        checkGeoreferenced();
+        double x = (longitude - ulxMap) / xDim;
+        double y = (ulyMap - latitude) / yDim;
+        if (!(x >= -0.5 && x <= columnCount - 0.5 && y >= -0.5 && y <= rowCount - 0.5)) {
+            return Double.NaN;
+        }
+        x = Math.max(0.0, Math.min(columnCount - 1, x));
+        y = Math.max(0.0, Math.min(rowCount - 1, y));
+
+        int column0 = Math.min((int) x, Math.max(0, columnCount - 2));
+        int row0 = Math.min((int) y, Math.max(0, rowCount - 2));
+        double fx = x - column0;
+        double fy = y - row0;
+
+        double sum = 0.0;
+        double weightSum = 0.0;
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 2; j++) {
+                double weight = (i == 0 ? 1.0 - fy : fy) * (j == 0 ? 1.0 - fx : fx);
+                if (weight > 0.0) {
+                    double value = getValue(row0 + i, column0 + j);
+                    if (!Double.isNaN(value)) {
+                        sum += weight * value;
+                        weightSum += weight;
+                    }
+                }
+            }
+        }
+        return weightSum > 0.0 ? sum / weightSum : Double.NaN;
+    }
+
+    private void checkGeoreferenced() {
+        if (!isGeoreferenced) {
+            throw new IllegalStateException("Raster has no georeference");
+        }
+    }
+
+    private synchronized double[] getTile(int tileRow, int tileColumn) {
+        int key = tileRow * tileColumnCount + tileColumn;
+        if (key == lastTileKey) {
+            return lastTile;
+        }
+        double[] tile = tiles.get(key);
+        if (tile == null) {
+            tile = readTile(tileRow, tileColumn);
+            tiles.put(key, tile);
+        }
+        lastTileKey = key;
+        lastTile = tile;
+        return tile;
+    }
+
+    private double[] readTile(int tileRow, int tileColumn) {
+        double[] tile = new double[TILE_SIZE * TILE_SIZE];
+        int size = dataType.getSize();
+        int rowEnd = Math.min(rowCount, (tileRow + 1) * TILE_SIZE);
+        int columnStart = tileColumn * TILE_SIZE;
+        int columnEnd = Math.min(columnCount, columnStart + TILE_SIZE);
+        for (int row = tileRow * TILE_SIZE; row < rowEnd; row++) {
+            MappedByteBuffer segment = segments[row / rowsPerSegment];
+            int offset = ((row % rowsPerSegment) * columnCount + columnStart) * size;
+            int k = (row % TILE_SIZE) * TILE_SIZE;
+            for (int column = columnStart; column < columnEnd; column++) {
+                double value;
+                switch (dataType) {
+                    case INT16:
+                        value = segment.getShort(offset);
+                        break;
+                    case INT32:
+                        value = segment.getInt(offset);
+                        break;
+                    case FLOAT32:
+                        value = segment.getFloat(offset);
+                        break;
+                    default:
+                        value = segment.getDouble(offset);
+                }
+                tile[k] = (value == noData ? Double.NaN : value);
+                offset += size;
+                k++;
+            }
+        }
+        return tile;
+    }
+
+    public String toString() {
+        return rowCount + " x " + columnCount + " " + dataType + " raster (" + segments.length +
+                " mapped segments, cache of " + cacheSize + " tiles of " + TILE_SIZE + " x " + TILE_SIZE + ")";
+    }
+
+    private final int rowCount;
+    private final int columnCount;
+    private final DataType dataType;
+    private final double noData;
+
+    private final int rowsPerSegment;
+    private final MappedByteBuffer[] segments;
+
+    private final int cacheSize;
+    private final int tileColumnCount;
+    private final Map<Integer, double[]> tiles = new LinkedHashMap<Integer, double[]>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Integer, double[]> eldest) {
+            return size() > cacheSize;
+        }
+    };
+    private int lastTileKey = -1;
+    private double[] lastTile = null;
+
+    private boolean isGeoreferenced = false;
+    private double ulxMap;
+    private double ulyMap;
+    private double xDim;
+    private double yDim;
+}
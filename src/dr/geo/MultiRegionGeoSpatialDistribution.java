@@ -45,10 +45,29 @@ public class MultiRegionGeoSpatialDistribution extends GeoSpatialDistribution {
         this.regions = regions;
         this.union = union;
         this.fillValue = fillValue;
+        index = createIndex(regions);
+        candidates = new int[regions.size()];
     }
 
     public double logPdf(double[] x) {
 
+        if (index != null) {
+            // only the regions whose bounds contain the point can have a non-zero density
+            final int count = index.getCandidates(x[0], x[1], candidates);
+            if (fillValue || union) {
+                for (int k = 0; k < count; k++) {
+                    final double logPdf = regions.get(candidates[k]).logPdf(x);
+                    if (fillValue ? !Double.isInfinite(logPdf) : logPdf == 0.0) {
+                        return logPdf;
+                    }
+                }
+                return Double.NEGATIVE_INFINITY;
+            }
+            if (count < regions.size()) {
+                return Double.NEGATIVE_INFINITY;
+            }
+        }
+
         if (fillValue) {
             //System.err.println("fillValue set to true");
             //int test = 0;
@@ -103,8 +122,18 @@ public class MultiRegionGeoSpatialDistribution extends GeoSpatialDistribution {
         return regions;
     }
 
+    /**
+     * @return the spatial index of the regions or null if they are not indexed
+     */
+    public PolygonIndex getIndex() {
+        return index;
+    }
+
     private final List<GeoSpatialDistribution> regions;
     private final boolean union;
     private final boolean fillValue;
 
+    private PolygonIndex index = null;
+    private int[] candidates = null;
+
 }
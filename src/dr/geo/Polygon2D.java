@@ -95,7 +95,10 @@ public class Polygon2D extends AbstractPolygon2D {
     }
 
     public double getLogProbability(Point2D Point2D, boolean outside) {
-        boolean contains = containsPoint2D(Point2D);
+        return getLogProbability(containsPoint2D(Point2D), outside);
+    }
+
+    public double getLogProbability(boolean contains, boolean outside) {
         if (outside ^ contains) {
             return 0.0;
         } else {
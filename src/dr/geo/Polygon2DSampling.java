@@ -65,7 +65,10 @@ public class Polygon2DSampling extends Polygon2D {
     }
 
     public double getLogProbability(Point2D Point2D, boolean outside) {
-        boolean contains = containsPoint2D(Point2D);
+        return getLogProbability(containsPoint2D(Point2D), outside);
+    }
+
+    public double getLogProbability(boolean contains, boolean outside) {
         if (contains) {
             return this.logFillValue;
         } else {
@@ -0,0 +1,189 @@
+/*
+ * PolygonIndex.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.geo;
+
+import java.awt.geom.Rectangle2D;
+import java.util.List;
+
+/**
+ * A uniform grid over the bounding boxes of a list of polygons. Each cell lists the polygons
+ * whose bounding box overlaps it so a point only needs to be tested against the polygons listed
+ * in its cell (and whose bounding box contains it) rather than against every polygon.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class PolygonIndex {
+
+    private static final int CELLS_PER_POLYGON = 4;
+    private static final int MAX_GRID_SIZE = 1024;
+
+    public PolygonIndex(List<AbstractPolygon2D> polygons) {
+        polygonCount = polygons.size();
+        minX = new double[polygonCount];
+        minY = new double[polygonCount];
+        maxX = new double[polygonCount];
+        maxY = new double[polygonCount];
+
+        double gridMinX = Double.POSITIVE_INFINITY;
+        double gridMinY = Double.POSITIVE_INFINITY;
+        double gridMaxX = Double.NEGATIVE_INFINITY;
+        double gridMaxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < polygonCount; i++) {
+            Rectangle2D bounds = polygons.get(i).getBoundingBox();
+            // pad the bounds a little to allow for rounding in the crossing test
+            double padding = 1E-12 * (Math.abs(bounds.getMinX()) + Math.abs(bounds.getMinY()) +
+                    bounds.getWidth() + bounds.getHeight());
+            minX[i] = bounds.getMinX() - padding;
+            minY[i] = bounds.getMinY() - padding;
+            maxX[i] = bounds.getMaxX() + padding;
+            maxY[i] = bounds.getMaxY() + padding;
+            gridMinX = Math.min(gridMinX, minX[i]);
+            gridMinY = Math.min(gridMinY, minY[i]);
+            gridMaxX = Math.max(gridMaxX, maxX[i]);
+            gridMaxY = Math.max(gridMaxY, maxY[i]);
+
+            vertexCount += (int) polygons.get(i).getLength();
+            if (polygons.get(i).hasEdgeIndex()) {
+                edgeIndexCount++;
+            }
+        }
+        this.gridMinX = gridMinX;
+        this.gridMinY = gridMinY;
+        this.gridMaxX = gridMaxX;
+        this.gridMaxY = gridMaxY;
+
+        double width = gridMaxX - gridMinX;
+        double height = gridMaxY - gridMinY;
+        double cellCount = (double) polygonCount * CELLS_PER_POLYGON;
+        if (width > 0.0 && height > 0.0) {
+            gridWidth = clamp((int) Math.ceil(Math.sqrt(cellCount * width / height)));
+            gridHeight = clamp((int) Math.ceil(cellCount / gridWidth));
+        } else {
+            gridWidth = (width > 0.0 ? clamp((int) cellCount) : 1);
+            gridHeight = (height > 0.0 ? clamp((int) cellCount) : 1);
+        }
+        cellWidth = (width > 0.0 ? width / gridWidth : 1.0);
+        cellHeight = (height > 0.0 ? height / gridHeight : 1.0);
+
+        // the cells hold the polygons in the order of the list
+        cellStarts = new int[gridWidth * gridHeight + 1];
+        for (int i = 0; i < polygonCount; i++) {
+            for (int cy = getCellY(minY[i]); cy <= getCellY(maxY[i]); cy++) {
+                for (int cx = getCellX(minX[i]); cx <= getCellX(maxX[i]); cx++) {
+                    cellStarts[cy * gridWidth + cx + 1]++;
+                }
+            }
+        }
+        for (int cell = 0; cell < gridWidth * gridHeight; cell++) {
+            if (cellStarts[cell + 1] > 0) {
+                occupiedCellCount++;
+            }
+            cellStarts[cell + 1] += cellStarts[cell];
+        }
+        cellPolygons = new int[cellStarts[gridWidth * gridHeight]];
+        int[] counts = new int[gridWidth * gridHeight];
+        for (int i = 0; i < polygonCount; i++) {
+            for (int cy = getCellY(minY[i]); cy <= getCellY(maxY[i]); cy++) {
+                for (int cx = getCellX(minX[i]); cx <= getCellX(maxX[i]); cx++) {
+                    int cell = cy * gridWidth + cx;
+                    cellPolygons[cellStarts[cell] + counts[cell]] = i;
+                    counts[cell]++;
+                }
+            }
+        }
+    }
+
+    private static int clamp(int size) {
+        return Math.max(1, Math.min(MAX_GRID_SIZE, size));
+    }
+
+    private int getCellX(double x) {
+        return Math.max(0, Math.min(gridWidth - 1, (int) ((x - gridMinX) / cellWidth)));
+    }
+
+    private int getCellY(double y) {
+        return Math.max(0, Math.min(gridHeight - 1, (int) ((y - gridMinY) / cellHeight)));
+    }
+
+    /**
+     * Finds the polygons that may contain a point (i.e., those whose bounding box contains it).
+     *
+     * @param x          the x coordinate of the point
+     * @param y          the y coordinate of the point
+     * @param candidates an array (of at least the number of polygons) to be filled with the
+     *                   indices of the polygons in the order of the list
+     * @return the number of candidates
+     */
+    public int getCandidates(double x, double y, int[] candidates) {
+        if (!(x >= gridMinX && x <= gridMaxX && y >= gridMinY && y <= gridMaxY)) {
+            return 0;
+        }
+        int cell = getCellY(y) * gridWidth + getCellX(x);
+        int count = 0;
+        for (int k = cellStarts[cell]; k < cellStarts[cell + 1]; k++) {
+            int i = cellPolygons[k];
+            if (x >= minX[i] && x <= maxX[i] && y >= minY[i] && y <= maxY[i]) {
+                candidates[count] = i;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getPolygonCount() {
+        return polygonCount;
+    }
+
+    public String getStatistics() {
+        return polygonCount + " polygons (" + vertexCount + " vertices, " + edgeIndexCount +
+                " with edge indices) in a " + gridWidth + " x " + gridHeight + " grid with " +
+                String.format("%.2f", occupiedCellCount > 0 ? ((double) cellPolygons.length) / occupiedCellCount : 0.0) +
+                " polygons per occupied cell";
+    }
+
+    private final int polygonCount;
+    private final double[] minX;
+    private final double[] minY;
+    private final double[] maxX;
+    private final double[] maxY;
+
+    private final double gridMinX;
+    private final double gridMinY;
+    private final double gridMaxX;
+    private final double gridMaxY;
+    private final int gridWidth;
+    private final int gridHeight;
+    private final double cellWidth;
+    private final double cellHeight;
+
+    private final int[] cellStarts;
+    private final int[] cellPolygons;
+
+    private int vertexCount = 0;
+    private int edgeIndexCount = 0;
+    private int occupiedCellCount = 0;
+}
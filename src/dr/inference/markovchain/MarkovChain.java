@@ -179,6 +179,9 @@ public final class MarkovChain implements Serializable {
 
         Map<String, Double> diagnosticDensities = null;
 
+        final AdaptiveOperatorSchedule adaptiveSchedule =
+                (schedule instanceof AdaptiveOperatorSchedule ? (AdaptiveOperatorSchedule) schedule : null);
+
         while (!pleaseStop && (currentState < (currentLength + length))) {
 
             // periodically log states
@@ -193,6 +196,14 @@ public final class MarkovChain implements Serializable {
             final int op = schedule.getNextOperatorIndex();
             final MCMCOperator mcmcOperator = schedule.getOperator(op);
 
+            // the time of the whole step is measured while the operator weights are adapted
+            final boolean timingStep = adaptiveSchedule != null && adaptiveSchedule.isAdapting();
+            long stepStartTime = 0;
+            if (timingStep) {
+                adaptiveSchedule.startStep();
+                stepStartTime = System.nanoTime();
+            }
+
             double oldScore = currentScore;
             if (usingFullEvaluation) {
                 diagnosticDensities = new HashMap<String, Double>();
@@ -438,6 +449,9 @@ public final class MarkovChain implements Serializable {
             }
             // assert Profiler.stopProfile("Restore");
 
+            if (timingStep) {
+                adaptiveSchedule.endStep(mcmcOperator, System.nanoTime() - stepStartTime, accept);
+            }
 
             if (isAdapting(mcmcOperator)) {
                 adaptAcceptanceProbability((AdaptableMCMCOperator) mcmcOperator, logr[0]);
@@ -0,0 +1,179 @@
+/*
+ * EigenMarkovJumps.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.markovjumps;
+
+/**
+ * Conditional expected counts or rewards for individual pairs of start and end states, as needed
+ * when only the states drawn at either end of each branch are of interest.
+ * <p/>
+ * MarkovJumpsCore forms the whole stateCount x stateCount matrix E (A(t) * M) E^-1 for each
+ * branch, where E are the eigenvectors, M = E^-1 R E for the rate-register matrix R and A(t) is
+ * the auxiliary matrix of equation (37) of Minin and Suchard. Here the parts that only depend on
+ * the eigen system (M, the reciprocals of the eigenvalue differences and E^-1 transposed) are
+ * computed once. For each branch A(t) * M is formed once and then a row of E (A(t) * M) for each
+ * distinct start state, so each pair of states costs stateCount operations rather than the
+ * stateCount^3 of the full matrix product.
+ * <p/>
+ * Instances are immutable once constructed so can be shared between threads; each thread uses
+ * its own Workspace.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class EigenMarkovJumps {
+
+    public EigenMarkovJumps(double[] evec, double[] ievc, double[] eval, double[] ievcRateRegEvc) {
+        stateCount = eval.length;
+
+        this.evec = evec.clone();
+        this.eval = eval.clone();
+        this.ievcRateRegEvc = ievcRateRegEvc.clone();
+
+        transposedIevc = new double[stateCount * stateCount];
+        for (int i = 0; i < stateCount; i++) {
+            for (int j = 0; j < stateCount; j++) {
+                transposedIevc[j * stateCount + i] = ievc[i * stateCount + j];
+            }
+        }
+
+        inverseDifferences = new double[stateCount * stateCount];
+        equalValues = new boolean[stateCount * stateCount];
+        int index = 0;
+        for (int i = 0; i < stateCount; i++) {
+            for (int j = 0; j < stateCount; j++) {
+                if (Math.abs(eval[i] - eval[j]) < 1E-7) {
+                    equalValues[index] = true;
+                } else {
+                    inverseDifferences[index] = 1.0 / (eval[i] - eval[j]);
+                }
+                index++;
+            }
+        }
+    }
+
+    public int getStateCount() {
+        return stateCount;
+    }
+
+    public Workspace createWorkspace() {
+        return new Workspace();
+    }
+
+    /**
+     * The storage for one branch length at a time. Not thread safe.
+     */
+    public class Workspace {
+
+        private Workspace() {
+            auxInt = new double[stateCount * stateCount];
+            rows = new double[stateCount * stateCount];
+            rowKnown = new boolean[stateCount];
+            expEvalScalar = new double[stateCount];
+        }
+
+        /**
+         * Sets the length of the branch (in expected substitutions) that the following calls are for.
+         */
+        public void setTime(double time) {
+            if (time == this.time) {
+                return;
+            }
+
+            for (int i = 0; i < stateCount; i++) {
+                expEvalScalar[i] = Math.exp(eval[i] * time);
+            }
+
+            // Equation (37) from Minin and Suchard, multiplied by E^-1 R E
+            int index = 0;
+            for (int i = 0; i < stateCount; i++) {
+                for (int j = 0; j < stateCount; j++) {
+                    if (equalValues[index]) {
+                        auxInt[index] = expEvalScalar[i] * time * ievcRateRegEvc[index];
+                    } else {
+                        auxInt[index] = (expEvalScalar[i] - expEvalScalar[j]) * inverseDifferences[index] *
+                                ievcRateRegEvc[index];
+                    }
+                    index++;
+                }
+            }
+
+            for (int i = 0; i < stateCount; i++) {
+                rowKnown[i] = false;
+            }
+            this.time = time;
+        }
+
+        /**
+         * @return the joint expectation of the registered process and ending in state 'to' given
+         * starting in state 'from'
+         */
+        public double getJointStatMarkovJumps(int from, int to) {
+            final int rowOffset = from * stateCount;
+
+            if (!rowKnown[from]) {
+                for (int j = 0; j < stateCount; j++) {
+                    rows[rowOffset + j] = 0.0;
+                }
+                for (int k = 0; k < stateCount; k++) {
+                    final double e = evec[rowOffset + k];
+                    final int auxOffset = k * stateCount;
+                    for (int j = 0; j < stateCount; j++) {
+                        rows[rowOffset + j] += e * auxInt[auxOffset + j];
+                    }
+                }
+                rowKnown[from] = true;
+            }
+
+            final int columnOffset = to * stateCount;
+            double sum = 0.0;
+            for (int j = 0; j < stateCount; j++) {
+                sum += rows[rowOffset + j] * transposedIevc[columnOffset + j];
+            }
+            return sum;
+        }
+
+        /**
+         * @return the conditional expectation given the transition probability from 'from' to 'to'
+         */
+        public double getCondStatMarkovJumps(int from, int to, double transitionProbability) {
+            return getJointStatMarkovJumps(from, to) / transitionProbability;
+        }
+
+        private final double[] auxInt;
+        private final double[] rows;
+        private final boolean[] rowKnown;
+        private final double[] expEvalScalar;
+        private double time = Double.NaN;
+    }
+
+    private final int stateCount;
+    private final double[] evec;
+    private final double[] transposedIevc;
+    private final double[] eval;
+    private final double[] ievcRateRegEvc;
+    private final double[] inverseDifferences;
+    private final boolean[] equalValues;
+}
@@ -43,6 +43,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * An MCMC analysis that estimates parameters of a probabilistic model.
@@ -124,6 +126,18 @@ public class MCMC implements Identifiable, Spawnable, Loggable {
         return loggers;
     }
 
+    /**
+     * Adds online diagnostics to monitor the chain (must be called after init).
+     */
+    public void addDiagnostics(OnlineDiagnostics onlineDiagnostics) {
+        diagnostics.add(onlineDiagnostics);
+        mc.addMarkovChainListener(onlineDiagnostics);
+    }
+
+    public List<OnlineDiagnostics> getDiagnostics() {
+        return diagnostics;
+    }
+
     public MCMCOptions getOptions() {
         return options;
     }
@@ -190,7 +204,10 @@ public class MCMC implements Identifiable, Spawnable, Loggable {
                 }
             }
 
-            mc.runChain(chainLength, false);
+            // the chain may have been stopped during adaptation (e.g., by OnlineDiagnostics)
+            if (!mc.isStopped()) {
+                mc.runChain(chainLength, false);
+            }
 
             mc.terminateChain();
 
@@ -260,11 +277,15 @@ public class MCMC implements Identifiable, Spawnable, Loggable {
          */
         @Override
         public void finished(long chainLength, MarkovChain markovChain) {
+            // if the chain was stopped early the final state has already been logged
+            boolean isLogged = (currentState == chainLength && chainLength > 0);
             currentState = chainLength;
 
             if (loggers != null) {
                 for (Logger logger : loggers) {
-                    logger.log(currentState);
+                    if (!isLogged) {
+                        logger.log(currentState);
+                    }
                     logger.stopLogging();
                 }
             }
@@ -420,6 +441,7 @@ public class MCMC implements Identifiable, Spawnable, Loggable {
 
     protected Logger[] loggers;
     protected OperatorSchedule schedule;
+    protected final List<OnlineDiagnostics> diagnostics = new ArrayList<OnlineDiagnostics>();
 
     private String id = null;
 }
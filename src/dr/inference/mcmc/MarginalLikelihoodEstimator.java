@@ -25,6 +25,7 @@
 
 package dr.inference.mcmc;
 
+import dr.inference.loggers.LogFormatter;
 import dr.inference.loggers.Logger;
 import dr.inference.loggers.MCLogger;
 import dr.inference.markovchain.MarkovChain;
@@ -32,6 +33,9 @@ import dr.inference.markovchain.MarkovChainListener;
 import dr.inference.model.Model;
 import dr.inference.model.PathLikelihood;
 import dr.inference.operators.*;
+import dr.inference.state.Factory;
+import dr.inference.state.StateLoaderSaver;
+import dr.math.MathUtils;
 import dr.util.Author;
 import dr.util.Citable;
 import dr.util.Citation;
@@ -43,6 +47,10 @@ import org.apache.commons.math.distribution.BetaDistributionImpl;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Andrew Rambaut
@@ -98,29 +106,200 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
         scheme.init();
         ((CombinedOperatorSchedule) schedule).reset();
         for (pathParameter = scheme.nextPathParameter(); pathParameter >= 0; pathParameter = scheme.nextPathParameter()) {
-            pathLikelihood.setPathParameter(pathParameter);
             reportIteration(pathParameter, chainLength, burnin, scheme.pathSteps, scheme.step);
+            runPathStep(pathParameter);
+        }
+    }
+
+    /**
+     * Runs contiguous blocks of path steps concurrently, each on its own replicate of the model graph
+     * (created by re-parsing the XML) with an independent random number stream. Before the blocks
+     * start, this chain is walked down the path through the first value of each block (a burnin at
+     * each) so every block is warm-started from its neighbour's state. The samples of each block are
+     * then appended to this estimator's logs in path order so the result is the same log format as
+     * the sequential run.
+     */
+    public void integrateInParallel(Integrator scheme) {
+        setDefaultBurnin();
+
+        // enumerate the path parameters up front so they can be divided into blocks
+        final List<Double> pathParameters = new ArrayList<Double>();
+        scheme.init();
+        for (double value = scheme.nextPathParameter(); value >= 0; value = scheme.nextPathParameter()) {
+            pathParameters.add(value);
+        }
+        final int totalSteps = scheme.pathSteps;
+
+        final int blockCount = Math.min(threadCount, pathParameters.size());
+        final int[] blockStart = new int[blockCount + 1];
+        for (int b = 0; b <= blockCount; b++) {
+            blockStart[b] = (b * pathParameters.size()) / blockCount;
+        }
+
+        final MarginalLikelihoodEstimator[] replicates = new MarginalLikelihoodEstimator[blockCount];
+        replicates[0] = this;
+        for (int b = 1; b < blockCount; b++) {
+            try {
+                // the replicate's samples are merged into this estimator's logs so it doesn't write its own
+                replicates[b] = Replicator.INSTANCE.replicate(MarginalLikelihoodEstimator.class, ordinal, b, false);
+            } catch (XMLParseException xpe) {
+                throw new RuntimeException("Unable to create replicate for path sampling block " + b + ": " + xpe.getMessage());
+            }
+            replicates[b].burnin = burnin;
+        }
+
+        // warm start each block from the state reached at the start of the previous block
+        final StateLoaderSaver[] startStates = new StateLoaderSaver[blockCount];
+        for (int b = 0; b < blockCount; b++) {
+            if (b > 0) {
+                setPathParameter(pathParameters.get(blockStart[b]));
+                mc.setCurrentLength(0);
+                mc.runChain(burnin, false);
+            }
+            startStates[b] = Factory.INSTANCE.getStateLoaderSaver();
+            startStates[b].saveState(mc, 0, mc.getCurrentScore());
+        }
+
+        java.util.logging.Logger.getLogger("dr.inference").info("Running " + pathParameters.size() +
+                " path steps in " + blockCount + " concurrent blocks");
+
+        final List<List<List<String[]>>> blockLogs = new ArrayList<List<List<String[]>>>();
+        for (int b = 0; b < blockCount; b++) {
+            blockLogs.add(new ArrayList<List<String[]>>());
+        }
 
-            for (int i = 0; i < schedule.getOperatorCount(); ++i) {
-                MCMCOperator operator = schedule.getOperator(i);
-                if (operator instanceof PathDependent) {
-                    ((PathDependent)operator).setPathParameter(pathParameter);
+        ExecutorService pool = Executors.newFixedThreadPool(blockCount);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int b = 0; b < blockCount; b++) {
+            final int block = b;
+            final long seed = MathUtils.nextLong();
+            futures.add(pool.submit(new Runnable() {
+                public void run() {
+                    MathUtils.setThreadSeed(seed == 0 ? 1 : seed);
+                    try {
+                        replicates[block].integrateBlock(pathParameters, blockStart[block], blockStart[block + 1],
+                                totalSteps, startStates[block], block == 0 ? null : blockLogs.get(block));
+                    } finally {
+                        MathUtils.clearThreadSeed();
+                    }
                 }
+            }));
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
             }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Path sampling interrupted");
+        } catch (ExecutionException ee) {
+            throw new RuntimeException("Path sampling block failed: " + ee.getCause().getMessage(), ee.getCause());
+        } finally {
+            pool.shutdown();
+        }
 
-            long cl = mc.getCurrentLength();
-            mc.setCurrentLength(0);
-            mc.runChain(burnin, false/*, 0*/);
-            mc.setCurrentLength(cl);
-            mc.runChain(chainLength, false);
+        // merge the samples of the other blocks into this estimator's logs (in path order)
+        for (int b = 1; b < blockCount; b++) {
+            List<List<String[]>> logs = blockLogs.get(b);
+            for (int i = 0; i < loggers.size(); i++) {
+                for (String[] values : logs.get(i)) {
+                    for (LogFormatter formatter : loggers.get(i).getFormatters()) {
+                        formatter.logValues(values);
+                    }
+                }
+            }
+        }
+    }
 
-            if (SHOW_OPERATOR_ANALYSIS) {
-            	OperatorAnalysisPrinter.showOperatorAnalysis(System.out, schedule, false);
+    /**
+     * Runs the path steps [first, last) on this estimator's chain, starting from the given state.
+     * If logs is not null, the chain logs to its own loggers are also captured (one list of rows
+     * per logger) so they can be merged into the primary estimator's logs.
+     */
+    private void integrateBlock(List<Double> pathParameters, int first, int last, int totalSteps,
+                                StateLoaderSaver startState, List<List<String[]>> logs) {
+        startState.loadState(mc, new double[1]);
+
+        if (logs != null) {
+            for (MCLogger logger : loggers) {
+                BufferedLogFormatter formatter = new BufferedLogFormatter();
+                logs.add(formatter.getValues());
+                logger.addFormatter(formatter);
+                logger.startLogging();
+            }
+            mc.addMarkovChainListener(chainListener);
+        }
+
+        ((CombinedOperatorSchedule) schedule).reset();
+        for (int step = first; step < last; step++) {
+            pathParameter = pathParameters.get(step);
+            reportIteration(pathParameter, chainLength, burnin, totalSteps, step + 1);
+
+            // state numbers follow on from the previous steps as in the sequential run
+            mc.setCurrentLength(burnin + step * chainLength);
+            runPathStep(pathParameter);
+        }
+
+        if (logs != null) {
+            mc.removeMarkovChainListener(chainListener);
+            for (MCLogger logger : loggers) {
+                logger.stopLogging();
             }
-            ((CombinedOperatorSchedule) schedule).reset();
         }
     }
 
+    private void setPathParameter(double pathParameter) {
+        pathLikelihood.setPathParameter(pathParameter);
+
+        for (int i = 0; i < schedule.getOperatorCount(); ++i) {
+            MCMCOperator operator = schedule.getOperator(i);
+            if (operator instanceof PathDependent) {
+                ((PathDependent)operator).setPathParameter(pathParameter);
+            }
+        }
+    }
+
+    private void runPathStep(double pathParameter) {
+        setPathParameter(pathParameter);
+
+        long cl = mc.getCurrentLength();
+        mc.setCurrentLength(0);
+        mc.runChain(burnin, false/*, 0*/);
+        mc.setCurrentLength(cl);
+        mc.runChain(chainLength, false);
+
+        if (SHOW_OPERATOR_ANALYSIS) {
+            OperatorAnalysisPrinter.showOperatorAnalysis(System.out, schedule, false);
+        }
+        ((CombinedOperatorSchedule) schedule).reset();
+    }
+
+    /**
+     * Keeps the rows logged by a replicate so they can be merged into the primary logs.
+     */
+    private static class BufferedLogFormatter implements LogFormatter {
+        public void startLogging(String title) { }
+
+        public void logHeading(String heading) { }
+
+        public void logLine(String line) { }
+
+        public void logLabels(String[] labels) { }
+
+        public void logValues(String[] values) {
+            this.values.add(values);
+        }
+
+        public void stopLogging() { }
+
+        List<String[]> getValues() {
+            return values;
+        }
+
+        private final List<String[]> values = new ArrayList<String[]>();
+    }
+
     public abstract class Integrator {
         protected int step;
         protected int pathSteps;
@@ -319,6 +498,12 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
         }
         mc.addMarkovChainListener(chainListener);
 
+        if (threadCount > 1 && (Replicator.INSTANCE == null || Factory.INSTANCE == null)) {
+            java.util.logging.Logger.getLogger("dr.inference").warning(
+                    "Unable to create replicate chains: running path steps sequentially");
+            threadCount = 1;
+        }
+
         /*switch (scheme) {
             case LINEAR:
                 linearIntegration();
@@ -336,32 +521,39 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
                 throw new RuntimeException("Illegal path scheme");
         }*/
 
+        Integrator integrator;
         switch (scheme) {
             case FIXED:
-                integrate(new FixedThetaRun(fixedRunValues));
+                integrator = new FixedThetaRun(fixedRunValues);
                 break;
             case LINEAR:
-                integrate(new LinearIntegrator(pathSteps));
+                integrator = new LinearIntegrator(pathSteps);
                 break;
             case GEOMETRIC:
-                integrate(new GeometricIntegrator(pathSteps));
+                integrator = new GeometricIntegrator(pathSteps);
                 break;
             case ONE_SIDED_BETA:
-                integrate(new BetaIntegrator(1.0, betaFactor, pathSteps));
+                integrator = new BetaIntegrator(1.0, betaFactor, pathSteps);
                 break;
             case BETA:
-                integrate(new BetaIntegrator(alphaFactor, betaFactor, pathSteps));
+                integrator = new BetaIntegrator(alphaFactor, betaFactor, pathSteps);
                 break;
             case BETA_QUANTILE:
-                integrate(new BetaQuantileIntegrator(alphaFactor, pathSteps));
+                integrator = new BetaQuantileIntegrator(alphaFactor, pathSteps);
                 break;
             case SIGMOID:
-                integrate(new SigmoidIntegrator(alphaFactor, pathSteps));
+                integrator = new SigmoidIntegrator(alphaFactor, pathSteps);
                 break;
             default:
                 throw new RuntimeException("Illegal path scheme");
         }
 
+        if (threadCount > 1) {
+            integrateInParallel(integrator);
+        } else {
+            integrate(integrator);
+        }
+
         mc.removeMarkovChainListener(chainListener);
     }
 
@@ -497,6 +689,18 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
         return betaFactor;
     }
 
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    private void setOrdinal(int ordinal) {
+        this.ordinal = ordinal;
+    }
+
     //PRIVATE METHODS *****************************************
     public static XMLObjectParser PARSER = new AbstractXMLObjectParser() {
 
@@ -572,7 +776,8 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
             for (int i = 0; i < mcmcXML.getChildCount(); ++i) {
                 if (mcmcXML.getChild(i) instanceof MCMC) {
                     MCMC mcmc = (MCMC) mcmcXML.getChild(i);
-                    if (prerunLength > 0) {
+                    // replicates (see integrateInParallel) are warm-started from the primary chain's state
+                    if (prerunLength > 0 && System.getProperty(Replicator.REPLICATE_POSTFIX) == null) {
                         java.util.logging.Logger.getLogger("dr.inference").info("Path Sampling Marginal Likelihood Estimator:\n\tEquilibrating chain " + mcmc.getId() + " for " + prerunLength + " iterations.");
                         for (Logger log : mcmc.getLoggers()) { // Stop the loggers, so nothing gets written to normal output
                             log.stopLogging();
@@ -605,6 +810,9 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
                 mle.setBetaFactor(xo.getAttribute(BETA, 0.5));
             }
 
+            mle.setThreadCount(xo.getAttribute(THREADS, 1));
+            mle.setOrdinal(Replicator.getOrdinal(xo, MarginalLikelihoodEstimator.class));
+
             String alphaBetaText = "";
             if (scheme == PathScheme.ONE_SIDED_BETA) {
                 alphaBetaText += "(1," + mle.getBetaFactor() + ")";
@@ -618,7 +826,8 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
             java.util.logging.Logger.getLogger("dr.inference").info("\nCreating the Marginal Likelihood Estimator chain:" +
                     "\n  chainLength=" + chainLength +
                     "\n  pathSteps=" + pathSteps +
-                    "\n  pathScheme=" + scheme.getText() + alphaBetaText); //+
+                    "\n  pathScheme=" + scheme.getText() + alphaBetaText +
+                    (mle.getThreadCount() > 1 ? "\n  threads=" + mle.getThreadCount() : "")); //+
                     //"\n  If you use these results, please cite:" +
                     //"\n    Guy Baele, Philippe Lemey, Trevor Bedford, Andrew Rambaut, Marc A. Suchard, and Alexander V. Alekseyenko." +
                     //"\n    2012. Improving the accuracy of demographic and molecular clock model comparison while accommodating " +
@@ -638,7 +847,7 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
         }
 
         public Class getReturnType() {
-            return MCMC.class;
+            return MarginalLikelihoodEstimator.class;
         }
 
         public XMLSyntaxRule[] getSyntaxRules() {
@@ -658,6 +867,7 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
                 AttributeRule.newDoubleArrayRule(FIXED_VALUE, true),
                 AttributeRule.newDoubleRule(ALPHA, true),
                 AttributeRule.newDoubleRule(BETA, true),
+                AttributeRule.newIntegerRule(THREADS, true),
                 new ElementRule(MCMC,
                         new XMLSyntaxRule[]{new ElementRule(MCMC.class, 1, Integer.MAX_VALUE)}, false),
                 //new ElementRule(MCMC.class),
@@ -726,6 +936,8 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
     private double alphaFactor = 0.5;
     private double betaFactor = 0.5;
     private double[] fixedRunValues;
+    private int threadCount = 1;
+    private int ordinal = 0;
     private final double pathDelta;
     private double pathParameter;
 
@@ -748,6 +960,7 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
     public static final String BETA = "beta";
     public static final String PRERUN = "prerun";
     public static final String PRINT_OPERATOR_ANALYSIS = "printOperatorAnalysis";
+    public static final String THREADS = "threads";
     
     private static boolean SHOW_OPERATOR_ANALYSIS = false;
 }
\ No newline at end of file
@@ -0,0 +1,250 @@
+/*
+ * OnlineDiagnostics.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.mcmc;
+
+import dr.inference.loggers.LogColumn;
+import dr.inference.loggers.Loggable;
+import dr.inference.loggers.NumberColumn;
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.markovchain.MarkovChainListener;
+import dr.inference.model.Model;
+import dr.inference.state.Factory;
+import dr.inference.trace.OnlineBatchMeans;
+import dr.util.NumberFormatter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Monitors the convergence of a chain while it runs. A set of numerical columns are sampled
+ * and their ESS (by batch means in a fixed amount of memory, see OnlineBatchMeans) and split
+ * R-hat (across replicate chains if this chain is one of a set run by ReplicateMCMC) are
+ * available as log columns. Optionally the chain is stopped once every column has reached a
+ * minimum ESS (and maximum R-hat) and a checkpoint is written so it can be resumed.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class OnlineDiagnostics implements MarkovChainListener, Loggable {
+
+    /**
+     * @param columns     the columns to monitor (non-numerical columns are ignored)
+     * @param sampleEvery the number of states between samples
+     * @param burnin      the fraction of the samples discarded as burnin
+     * @param minESS      the ESS at which to stop the chain (or 0 to run to the end)
+     * @param maxRHat     the split R-hat below which the chain can stop
+     * @param checkEvery  the number of states between tests of the stopping rule
+     * @param checkpoint  the file to write the state to when stopping (or null)
+     */
+    public OnlineDiagnostics(LogColumn[] columns, long sampleEvery, double burnin, double minESS, double maxRHat,
+                             long checkEvery, File checkpoint) {
+        for (LogColumn column : columns) {
+            if (column instanceof NumberColumn) {
+                this.columns.add((NumberColumn) column);
+            }
+        }
+        this.sampleEvery = sampleEvery;
+        this.burnin = burnin;
+        this.minESS = minESS;
+        this.maxRHat = maxRHat;
+        this.checkEvery = checkEvery;
+        this.checkpoint = checkpoint;
+
+        estimators = new OnlineBatchMeans[this.columns.size()];
+        for (int i = 0; i < estimators.length; i++) {
+            estimators[i] = new OnlineBatchMeans();
+        }
+        replicates = new OnlineDiagnostics[]{this};
+    }
+
+    /**
+     * Sets the diagnostics of each of a set of replicate chains (including this one) so
+     * the R-hat and ESS are calculated across them.
+     */
+    public void setReplicates(OnlineDiagnostics[] replicates) {
+        for (OnlineDiagnostics replicate : replicates) {
+            if (replicate.estimators.length != estimators.length) {
+                throw new IllegalArgumentException("Replicate diagnostics should monitor the same columns");
+            }
+        }
+        this.replicates = replicates;
+    }
+
+    public int getColumnCount() {
+        return columns.size();
+    }
+
+    public String getColumnLabel(int column) {
+        return columns.get(column).getLabel();
+    }
+
+    /**
+     * @return the ESS of the column summed over the replicate chains
+     */
+    public double getESS(int column) {
+        double ess = 0.0;
+        for (OnlineDiagnostics replicate : replicates) {
+            ess += replicate.estimators[column].getESS(burnin);
+        }
+        return ess;
+    }
+
+    /**
+     * @return the split R-hat of the column across the replicate chains
+     */
+    public double getRHat(int column) {
+        OnlineBatchMeans[] chains = new OnlineBatchMeans[replicates.length];
+        for (int i = 0; i < replicates.length; i++) {
+            chains[i] = replicates[i].estimators[column];
+        }
+        return OnlineBatchMeans.getSplitRHat(chains, burnin);
+    }
+
+    /**
+     * @return the lowest ESS of any column (NaN until there are enough samples)
+     */
+    public double getMinESS() {
+        double min = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < estimators.length; i++) {
+            double ess = getESS(i);
+            if (Double.isNaN(ess)) {
+                return Double.NaN;
+            }
+            min = Math.min(min, ess);
+        }
+        return min;
+    }
+
+    /**
+     * @return the highest split R-hat of any column (NaN until there are enough samples)
+     */
+    public double getMaxRHat() {
+        double max = 0.0;
+        for (int i = 0; i < estimators.length; i++) {
+            double rHat = getRHat(i);
+            if (Double.isNaN(rHat)) {
+                return Double.NaN;
+            }
+            max = Math.max(max, rHat);
+        }
+        return max;
+    }
+
+    // MarkovChainListener interface *******************************************
+
+    @Override
+    public void currentState(long state, MarkovChain markovChain, Model currentModel) {
+        if (state > 0 && state % sampleEvery == 0) {
+            for (int i = 0; i < estimators.length; i++) {
+                estimators[i].add(columns.get(i).getDoubleValue());
+            }
+        }
+
+        if (minESS > 0.0 && state > 0 && state % checkEvery == 0 && !markovChain.isStopped()) {
+            double ess = getMinESS();
+            double rHat = getMaxRHat();
+            // a constant column will have an undefined ESS so wait for R-hat to be defined too
+            if (!Double.isNaN(ess) && ess >= minESS && !Double.isNaN(rHat) && rHat <= maxRHat) {
+                Logger.getLogger("dr.inference").info("Stopping the chain at state " + state +
+                        ": min ESS = " + formatter.format(ess) + ", max R-hat = " + formatter.format(rHat));
+                if (checkpoint != null) {
+                    writeCheckpoint(markovChain, state);
+                }
+                markovChain.pleaseStop();
+            }
+        }
+    }
+
+    private void writeCheckpoint(MarkovChain markovChain, long state) {
+        if (Factory.INSTANCE == null) {
+            Logger.getLogger("dr.inference").warning("Checkpointing is not available so no state was saved");
+            return;
+        }
+        if (Factory.INSTANCE.getStateLoaderSaver(null, checkpoint).saveState(markovChain, state, markovChain.getCurrentScore())) {
+            Logger.getLogger("dr.inference").info("Saved the state to '" + checkpoint.getName() + "'");
+        }
+    }
+
+    @Override
+    public void bestState(long state, MarkovChain markovChain, Model bestModel) {
+    }
+
+    @Override
+    public void finished(long chainLength, MarkovChain markovChain) {
+        StringBuilder sb = new StringBuilder("Online diagnostics at state " + chainLength + ":");
+        for (int i = 0; i < estimators.length; i++) {
+            sb.append("\n  ").append(getColumnLabel(i))
+                    .append(": ESS = ").append(formatter.format(getESS(i)))
+                    .append(", ACT = ").append(formatter.format(estimators[i].getAutoCorrelationTime(burnin) * sampleEvery))
+                    .append(", R-hat = ").append(formatter.format(getRHat(i)));
+        }
+        Logger.getLogger("dr.inference").info(sb.toString());
+    }
+
+    // Loggable interface *******************************************
+
+    @Override
+    public LogColumn[] getColumns() {
+        List<LogColumn> logColumns = new ArrayList<LogColumn>();
+        for (int i = 0; i < estimators.length; i++) {
+            final int column = i;
+            logColumns.add(new NumberColumn(getColumnLabel(i) + ".ESS") {
+                @Override
+                public double getDoubleValue() {
+                    return getESS(column);
+                }
+            });
+        }
+        logColumns.add(new NumberColumn("minESS") {
+            @Override
+            public double getDoubleValue() {
+                return getMinESS();
+            }
+        });
+        logColumns.add(new NumberColumn("maxRHat") {
+            @Override
+            public double getDoubleValue() {
+                return getMaxRHat();
+            }
+        });
+        return logColumns.toArray(new LogColumn[logColumns.size()]);
+    }
+
+    private final List<NumberColumn> columns = new ArrayList<NumberColumn>();
+    private final OnlineBatchMeans[] estimators;
+    private OnlineDiagnostics[] replicates;
+
+    private final long sampleEvery;
+    private final double burnin;
+    private final double minESS;
+    private final double maxRHat;
+    private final long checkEvery;
+    private final File checkpoint;
+
+    private final NumberFormatter formatter = new NumberFormatter(4);
+}
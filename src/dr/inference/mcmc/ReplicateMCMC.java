@@ -0,0 +1,277 @@
+/*
+ * ReplicateMCMC.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.mcmc;
+
+import dr.inference.loggers.Logger;
+import dr.inference.loggers.MCLogger;
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.markovchain.MarkovChainListener;
+import dr.inference.model.Model;
+import dr.inference.trace.OnlineBatchMeans;
+import dr.math.MathUtils;
+import dr.util.NumberFormatter;
+
+/**
+ * Runs a set of independent MCMC chains (replicates of the same analysis, each with its own
+ * model graph and output files) concurrently. The columns of the main log are sampled from
+ * each chain and the cross-chain convergence (split R-hat) and the total ESS are reported
+ * periodically while the chains run.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class ReplicateMCMC implements Runnable {
+
+    public ReplicateMCMC(MCMC[] mcmcs, long reportInterval) {
+        this.mcmcs = mcmcs;
+        this.reportInterval = reportInterval;
+
+        // monitor the (last) logger with the most columns (usually the main file log) - this will be the
+        // same for each chain as they are created from the same XML.
+        int monitoredLogger = -1;
+        int maxColumnCount = 0;
+        Logger[] loggers = mcmcs[0].getLoggers();
+        for (int i = 0; i < loggers.length; i++) {
+            if (loggers[i] instanceof MCLogger && ((MCLogger) loggers[i]).getColumnCount() >= maxColumnCount) {
+                maxColumnCount = ((MCLogger) loggers[i]).getColumnCount();
+                monitoredLogger = i;
+            }
+        }
+
+        samples = new ChainSamples[mcmcs.length];
+        for (int i = 0; i < mcmcs.length; i++) {
+            MCLogger logger = (monitoredLogger >= 0 ? (MCLogger) mcmcs[i].getLoggers()[monitoredLogger] : null);
+            samples[i] = new ChainSamples(logger);
+        }
+
+        // online diagnostics in each chain report the R-hat and ESS across all the chains
+        for (int k = 0; k < mcmcs[0].getDiagnostics().size(); k++) {
+            OnlineDiagnostics[] replicates = new OnlineDiagnostics[mcmcs.length];
+            for (int i = 0; i < mcmcs.length; i++) {
+                replicates[i] = mcmcs[i].getDiagnostics().get(k);
+            }
+            for (OnlineDiagnostics replicate : replicates) {
+                replicate.setReplicates(replicates);
+            }
+        }
+
+        sampleEvery = (monitoredLogger >= 0 ? ((MCLogger) loggers[monitoredLogger]).getLogEvery() :
+                Math.max(1, mcmcs[0].getChainLength() / 1000));
+    }
+
+    public void run() {
+        Thread[] threads = new Thread[mcmcs.length];
+
+        for (int i = 0; i < mcmcs.length; i++) {
+            final MCMC mcmc = mcmcs[i];
+            final MarkovChainListener listener = samples[i];
+            // each chain gets its own stream of random numbers seeded from the main one
+            final long seed = MathUtils.nextLong();
+
+            mcmc.getMarkovChain().addMarkovChainListener(listener);
+
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    MathUtils.setThreadSeed(seed == 0 ? 1 : seed);
+                    try {
+                        mcmc.run();
+                    } finally {
+                        MathUtils.clearThreadSeed();
+                        mcmc.getMarkovChain().removeMarkovChainListener(listener);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join(reportInterval);
+                } catch (InterruptedException ie) {
+                    // do nothing
+                }
+                if (thread.isAlive()) {
+                    report();
+                }
+            }
+        }
+
+        report();
+    }
+
+    /**
+     * Report the cross-chain diagnostics for the samples collected so far. The first
+     * 10% of each chain is discarded as burnin.
+     */
+    private void report() {
+        long sampleCount = Long.MAX_VALUE;
+        for (ChainSamples chainSamples : samples) {
+            sampleCount = Math.min(sampleCount, chainSamples.getSampleCount());
+        }
+        if (sampleCount < OnlineBatchMeans.MIN_BATCH_COUNT) {
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Replicate chains at state ").append((sampleCount - 1) * sampleEvery).append(":");
+
+        String worstLabel = null;
+        double worstRHat = 0.0;
+        String lowestLabel = null;
+        double lowestESS = Double.POSITIVE_INFINITY;
+
+        for (int j = 0; j < samples[0].getColumnCount(); j++) {
+            OnlineBatchMeans[] chains = new OnlineBatchMeans[samples.length];
+            boolean isNumerical = true;
+            double ess = 0.0;
+            for (int i = 0; i < samples.length; i++) {
+                chains[i] = samples[i].getEstimator(j);
+                isNumerical = isNumerical && chains[i] != null;
+                if (isNumerical) {
+                    ess += chains[i].getESS(BURNIN);
+                }
+            }
+            if (!isNumerical) {
+                continue;
+            }
+
+            double rHat = OnlineBatchMeans.getSplitRHat(chains, BURNIN);
+
+            String label = samples[0].getLabel(j);
+            if (j == 0) {
+                sb.append(" ").append(label).append(" R-hat = ").append(formatter.format(rHat))
+                        .append(", ESS = ").append(formatter.format(ess)).append(";");
+            }
+            if (!Double.isNaN(rHat) && rHat > worstRHat) {
+                worstRHat = rHat;
+                worstLabel = label;
+            }
+            if (!Double.isNaN(ess) && ess < lowestESS) {
+                lowestESS = ess;
+                lowestLabel = label;
+            }
+        }
+
+        if (worstLabel != null) {
+            sb.append(" max R-hat = ").append(formatter.format(worstRHat)).append(" (").append(worstLabel).append(")");
+        }
+        if (lowestLabel != null) {
+            sb.append(", min ESS = ").append(formatter.format(lowestESS)).append(" (").append(lowestLabel).append(")");
+        }
+
+        java.util.logging.Logger.getLogger("dr.inference").info(sb.toString());
+    }
+
+    /**
+     * Collects the values of the columns of a logger at the sampling frequency into batch
+     * means (see OnlineBatchMeans) so the memory used doesn't grow with the length of the
+     * chain. This is called from the chain's own thread.
+     */
+    private class ChainSamples implements MarkovChainListener {
+
+        ChainSamples(MCLogger logger) {
+            this.logger = logger;
+            int columnCount = (logger != null ? logger.getColumnCount() : 0) + 1;
+            estimators = new OnlineBatchMeans[columnCount];
+            isNumerical = new boolean[columnCount];
+            for (int j = 0; j < columnCount; j++) {
+                estimators[j] = new OnlineBatchMeans();
+                isNumerical[j] = true;
+            }
+        }
+
+        public void currentState(long state, MarkovChain markovChain, Model currentModel) {
+            if (state % sampleEvery == 0) {
+                for (int j = 1; j < estimators.length; j++) {
+                    if (isNumerical(j)) {
+                        double value;
+                        try {
+                            value = Double.parseDouble(logger.getColumnFormatted(j - 1).trim());
+                        } catch (NumberFormatException nfe) {
+                            value = Double.NaN;
+                        }
+                        if (Double.isNaN(value)) {
+                            setNotNumerical(j);
+                        } else {
+                            estimators[j].add(value);
+                        }
+                    }
+                }
+                // the joint density is added last as its sample count is used as that of the chain
+                estimators[0].add(markovChain.getCurrentScore());
+            }
+        }
+
+        public void bestState(long state, MarkovChain markovChain, Model bestModel) { }
+
+        public void finished(long chainLength, MarkovChain markovChain) { }
+
+        int getColumnCount() {
+            return estimators.length;
+        }
+
+        String getLabel(int column) {
+            return column == 0 ? "joint" : logger.getColumnLabel(column - 1).trim();
+        }
+
+        long getSampleCount() {
+            return estimators[0].getSampleCount();
+        }
+
+        /**
+         * @return the batch means of the column or null if it has values that are not numbers
+         */
+        OnlineBatchMeans getEstimator(int column) {
+            return isNumerical(column) ? estimators[column] : null;
+        }
+
+        private synchronized boolean isNumerical(int column) {
+            return isNumerical[column];
+        }
+
+        private synchronized void setNotNumerical(int column) {
+            isNumerical[column] = false;
+        }
+
+        private final MCLogger logger;
+        private final OnlineBatchMeans[] estimators;
+        private final boolean[] isNumerical;
+    }
+
+    private final MCMC[] mcmcs;
+    private final ChainSamples[] samples;
+    private final long sampleEvery;
+    private final long reportInterval;
+
+    private final NumberFormatter formatter = new NumberFormatter(4);
+
+    // the fraction of each chain discarded as burnin
+    private static final double BURNIN = 0.1;
+
+    // report the diagnostics every minute
+    public static final long DEFAULT_REPORT_INTERVAL = 60000;
+}
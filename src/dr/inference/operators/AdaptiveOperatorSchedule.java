@@ -0,0 +1,308 @@
+/*
+ * AdaptiveOperatorSchedule.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.operators;
+
+import dr.inference.model.Statistic;
+import dr.util.NumberFormatter;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * An operator schedule that re-weights the operators during an initial adaptation period
+ * so that the computational effort goes where it buys the most mixing. The mean wall time of
+ * each MCMC step is measured for each operator along with its mixing: by default the
+ * acceptance probability or, if a set of statistics is given, the expected squared jump of
+ * these relative to their variance (i.e., the operator's contribution to reducing their lag-1
+ * autocorrelation). Every tenth of the adaptation period the weights are set proportional to
+ * the XML weight times the mixing per second (relative to the average), bounded to within a
+ * factor of the XML weight so every operator keeps a share. The weights are then frozen.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class AdaptiveOperatorSchedule extends SimpleOperatorSchedule {
+
+    public static final int DEFAULT_ADAPTATION_LENGTH = 100000;
+    public static final double DEFAULT_MAX_WEIGHT_FACTOR = 10.0;
+
+    public AdaptiveOperatorSchedule(int operatorUseThreshold, double operatorAcceptanceThreshold,
+                                    long adaptationLength, double maxWeightFactor, List<Statistic> statistics) {
+        super(operatorUseThreshold, operatorAcceptanceThreshold);
+        this.adaptationLength = adaptationLength;
+        this.updateInterval = Math.max(1, adaptationLength / 10);
+        this.maxWeightFactor = maxWeightFactor;
+        this.statistics = statistics;
+
+        int dimension = 0;
+        for (Statistic statistic : statistics) {
+            dimension += statistic.getDimension();
+        }
+        startValues = new double[dimension];
+        valueMeans = new double[dimension];
+        valueSumSquares = new double[dimension];
+    }
+
+    public void addOperators(List<MCMCOperator> operators) {
+        super.addOperators(operators);
+        for (MCMCOperator operator : operators) {
+            addOperatorStatistics(operator);
+        }
+    }
+
+    public void addOperator(MCMCOperator operator) {
+        super.addOperator(operator);
+        addOperatorStatistics(operator);
+    }
+
+    private void addOperatorStatistics(MCMCOperator operator) {
+        operatorStatistics.put(operator, new OperatorStatistics(operator.getWeight(), statistics.isEmpty() ? 0 : startValues.length));
+    }
+
+    /**
+     * @return true if the weights are still being adapted (and steps should be timed)
+     */
+    public boolean isAdapting() {
+        return stepCount < adaptationLength;
+    }
+
+    /**
+     * Called by the MarkovChain after the operator is chosen and before the state is stored.
+     */
+    public void startStep() {
+        if (!statistics.isEmpty()) {
+            getValues(startValues);
+        }
+    }
+
+    /**
+     * Called by the MarkovChain once the proposal has been accepted or rejected.
+     *
+     * @param operator the operator used
+     * @param time     the wall time of the step in nanoseconds
+     * @param accepted whether the proposal was accepted
+     */
+    public void endStep(MCMCOperator operator, long time, boolean accepted) {
+        if (!isAdapting()) {
+            // the weights are fixed
+            return;
+        }
+
+        OperatorStatistics stats = operatorStatistics.get(operator);
+        stats.count++;
+        stats.time += time;
+        if (accepted) {
+            stats.acceptCount++;
+        }
+
+        if (!statistics.isEmpty()) {
+            int k = 0;
+            for (Statistic statistic : statistics) {
+                for (int i = 0; i < statistic.getDimension(); i++) {
+                    double value = statistic.getStatisticValue(i);
+                    if (accepted) {
+                        double jump = value - startValues[k];
+                        stats.squaredJumps[k] += jump * jump;
+                    }
+                    // running variance of the statistic
+                    double delta = value - valueMeans[k];
+                    valueMeans[k] += delta / (stepCount + 1);
+                    valueSumSquares[k] += delta * (value - valueMeans[k]);
+                    k++;
+                }
+            }
+        }
+
+        stepCount++;
+        if (stepCount % updateInterval == 0 || stepCount == adaptationLength) {
+            updateWeights();
+            if (stepCount == adaptationLength) {
+                Logger.getLogger("dr.inference").info("Operator weights adapted over " + stepCount +
+                        " states and now fixed (see the operator analysis)");
+            }
+        }
+    }
+
+    /**
+     * @return the number of states over which the weights have been adapted so far
+     */
+    public long getAdaptationStepCount() {
+        return stepCount;
+    }
+
+    /**
+     * Restores the adapted weights (i.e., from a checkpoint). The time and mixing measured before
+     * the checkpoint are not kept so if the adaptation period isn't complete the subsequent
+     * updates will only use the states after this.
+     *
+     * @param stepCount the number of states over which the weights had been adapted
+     * @param weights   the adapted weights in the order of the operators in the schedule
+     */
+    public void setAdaptedWeights(long stepCount, double[] weights) {
+        if (weights.length != getOperatorCount()) {
+            throw new IllegalArgumentException("Expected " + getOperatorCount() + " operator weights but got " + weights.length);
+        }
+        this.stepCount = stepCount;
+        for (int i = 0; i < weights.length; i++) {
+            MCMCOperator operator = getOperator(i);
+            operatorStatistics.get(operator).adaptedWeight = weights[i];
+            operator.setWeight(weights[i]);
+        }
+        operatorsHasBeenUpdated();
+    }
+
+    private void getValues(double[] values) {
+        int k = 0;
+        for (Statistic statistic : statistics) {
+            for (int i = 0; i < statistic.getDimension(); i++) {
+                values[k] = statistic.getStatisticValue(i);
+                k++;
+            }
+        }
+    }
+
+    private void updateWeights() {
+        double totalWeight = 0.0;
+        double totalEfficiency = 0.0;
+        for (OperatorStatistics stats : operatorStatistics.values()) {
+            if (stats.count > 0) {
+                stats.efficiency = getMixing(stats) / getMeanTime(stats);
+                totalWeight += stats.weight;
+                totalEfficiency += stats.weight * stats.efficiency;
+            }
+        }
+        if (!(totalEfficiency > 0.0) || Double.isInfinite(totalEfficiency)) {
+            // nothing has mixed yet so keep the current weights
+            return;
+        }
+        double meanEfficiency = totalEfficiency / totalWeight;
+
+        double originalTotal = 0.0;
+        double adaptedTotal = 0.0;
+        for (OperatorStatistics stats : operatorStatistics.values()) {
+            if (stats.count > 0) {
+                double weight = stats.weight * stats.efficiency / meanEfficiency;
+                weight = Math.max(stats.weight / maxWeightFactor, Math.min(stats.weight * maxWeightFactor, weight));
+                stats.adaptedWeight = weight;
+                originalTotal += stats.weight;
+                adaptedTotal += weight;
+            }
+        }
+
+        // keep the total weight the same
+        for (Map.Entry<MCMCOperator, OperatorStatistics> entry : operatorStatistics.entrySet()) {
+            OperatorStatistics stats = entry.getValue();
+            if (stats.count > 0) {
+                stats.adaptedWeight *= originalTotal / adaptedTotal;
+                entry.getKey().setWeight(stats.adaptedWeight);
+            }
+        }
+        operatorsHasBeenUpdated();
+    }
+
+    private double getMixing(OperatorStatistics stats) {
+        if (statistics.isEmpty()) {
+            return ((double) stats.acceptCount) / stats.count;
+        }
+        double mixing = 0.0;
+        int n = 0;
+        for (int k = 0; k < startValues.length; k++) {
+            double variance = valueSumSquares[k] / stepCount;
+            if (variance > 0.0) {
+                mixing += stats.squaredJumps[k] / stats.count / variance;
+                n++;
+            }
+        }
+        return n > 0 ? mixing / n : 0.0;
+    }
+
+    private static double getMeanTime(OperatorStatistics stats) {
+        // guard against a timer resolution of zero
+        return Math.max(1.0, ((double) stats.time) / stats.count);
+    }
+
+    /**
+     * @return a table of the XML and adapted weights with the measured time and mixing of
+     *         each operator
+     */
+    public String getWeightReport() {
+        NumberFormatter formatter = new NumberFormatter(8);
+        StringBuilder sb = new StringBuilder();
+        sb.append(formatter.formatToFieldWidth("Operator", 50));
+        sb.append(formatter.formatToFieldWidth("Weight", 11));
+        sb.append(formatter.formatToFieldWidth("Adapted", 11));
+        sb.append(formatter.formatToFieldWidth("Time/Op(us)", 13));
+        sb.append(statistics.isEmpty() ? "Pr(accept)" : "Mixing");
+        sb.append("\n");
+        for (Map.Entry<MCMCOperator, OperatorStatistics> entry : operatorStatistics.entrySet()) {
+            OperatorStatistics stats = entry.getValue();
+            sb.append(formatter.formatToFieldWidth(entry.getKey().getOperatorName(), 50));
+            sb.append(formatter.formatToFieldWidth(formatter.formatDecimal(stats.weight, 4), 11));
+            sb.append(formatter.formatToFieldWidth(formatter.formatDecimal(entry.getKey().getWeight(), 4), 11));
+            if (stats.count > 0) {
+                sb.append(formatter.formatToFieldWidth(formatter.formatDecimal(getMeanTime(stats) / 1000.0, 3), 13));
+                sb.append(formatter.formatDecimal(getMixing(stats), 4));
+            } else {
+                sb.append(formatter.formatToFieldWidth("-", 13));
+                sb.append("-");
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    private class OperatorStatistics {
+        OperatorStatistics(double weight, int dimension) {
+            this.weight = weight;
+            this.adaptedWeight = weight;
+            this.squaredJumps = new double[dimension];
+        }
+
+        final double weight;
+        final double[] squaredJumps;
+
+        double adaptedWeight;
+        double efficiency;
+        long count = 0;
+        long acceptCount = 0;
+        long time = 0;
+    }
+
+    private final long adaptationLength;
+    private final long updateInterval;
+    private final double maxWeightFactor;
+    private final List<Statistic> statistics;
+
+    private final Map<MCMCOperator, OperatorStatistics> operatorStatistics = new LinkedHashMap<MCMCOperator, OperatorStatistics>();
+
+    private final double[] startValues;
+    private final double[] valueMeans;
+    private final double[] valueSumSquares;
+
+    private long stepCount = 0;
+}
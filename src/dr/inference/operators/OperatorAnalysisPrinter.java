@@ -91,6 +91,11 @@ public class OperatorAnalysisPrinter {
 
         }
         out.println();
+
+        if (schedule instanceof AdaptiveOperatorSchedule) {
+            out.println("Adapted operator weights");
+            out.println(((AdaptiveOperatorSchedule) schedule).getWeightReport());
+        }
     }
 
     private static String formattedOperatorName(String operatorName) {
@@ -0,0 +1,157 @@
+/*
+ * DistributedLikelihood.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.parallel;
+
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.*;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A likelihood that is the sum of likelihoods (usually data partitions) that are evaluated
+ * by worker processes (LikelihoodServer) on this or other hosts. The changes to the parameters
+ * and trees are sent to all the workers that need to recalculate and then the results are
+ * collected so the workers evaluate concurrently.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class DistributedLikelihood extends AbstractModelLikelihood {
+
+    public DistributedLikelihood(List<LikelihoodClient> clients, List<Parameter> parameters, List<TreeModel> trees) {
+        super("DistributedLikelihood");
+        this.clients = clients;
+
+        for (Parameter parameter : parameters) {
+            addVariable(parameter);
+        }
+        for (TreeModel tree : trees) {
+            addModel(tree);
+        }
+    }
+
+    public List<LikelihoodClient> getClients() {
+        return clients;
+    }
+
+    // **************************************************************
+    // Likelihood IMPLEMENTATION
+    // **************************************************************
+
+    public Model getModel() {
+        return this;
+    }
+
+    public double getLogLikelihood() {
+        if (!likelihoodKnown) {
+            logLikelihood = calculateLogLikelihood();
+            likelihoodKnown = true;
+        }
+        return logLikelihood;
+    }
+
+    public void makeDirty() {
+        likelihoodKnown = false;
+        for (LikelihoodClient client : clients) {
+            client.makeDirty();
+        }
+    }
+
+    private double calculateLogLikelihood() {
+        double logL = 0.0;
+        LikelihoodClient client = null;
+        try {
+            boolean[] sent = new boolean[clients.size()];
+            for (int i = 0; i < sent.length; i++) {
+                client = clients.get(i);
+                sent[i] = client.sendState();
+            }
+
+            // the workers now calculate concurrently
+            for (int i = 0; i < sent.length; i++) {
+                client = clients.get(i);
+                logL += (sent[i] ? client.receiveLogLikelihood() : client.getLogLikelihood());
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException("Error communicating with likelihood worker at " + client.getAddress() +
+                    ": " + ioe.getMessage());
+        }
+        return logL;
+    }
+
+    // **************************************************************
+    // Model IMPLEMENTATION
+    // **************************************************************
+
+    protected void handleModelChangedEvent(Model model, Object object, int index) {
+        if (model instanceof TreeModel) {
+            for (LikelihoodClient client : clients) {
+                client.treeChanged((TreeModel) model, object);
+            }
+        }
+        likelihoodKnown = false;
+    }
+
+    protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+        if (variable instanceof Parameter) {
+            boolean allChanged = (type != Parameter.ChangeType.VALUE_CHANGED);
+            for (LikelihoodClient client : clients) {
+                client.parameterChanged((Parameter) variable, allChanged ? -1 : index);
+            }
+        }
+        likelihoodKnown = false;
+    }
+
+    protected void storeState() {
+        storedLogLikelihood = logLikelihood;
+        storedLikelihoodKnown = likelihoodKnown;
+        for (LikelihoodClient client : clients) {
+            client.queueOperation(LikelihoodServer.STORE);
+        }
+    }
+
+    protected void restoreState() {
+        logLikelihood = storedLogLikelihood;
+        likelihoodKnown = storedLikelihoodKnown;
+        for (LikelihoodClient client : clients) {
+            client.queueOperation(LikelihoodServer.RESTORE);
+        }
+    }
+
+    protected void acceptState() {
+        for (LikelihoodClient client : clients) {
+            client.queueOperation(LikelihoodServer.ACCEPT);
+        }
+    }
+
+    private final List<LikelihoodClient> clients;
+
+    private double logLikelihood;
+    private double storedLogLikelihood;
+    private boolean likelihoodKnown = false;
+    private boolean storedLikelihoodKnown = false;
+}
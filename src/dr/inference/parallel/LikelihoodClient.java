@@ -0,0 +1,594 @@
+/*
+ * LikelihoodClient.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.parallel;
+
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.tree.TreeChangedEvent;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.*;
+
+import static dr.inference.parallel.LikelihoodServer.*;
+
+/**
+ * The master side of the connection to a LikelihoodServer. This keeps a copy of the values
+ * of the parameters and trees as the worker has them (mirroring the worker's store and restore)
+ * so that only the values that differ need to be sent for each evaluation. Only the parameter
+ * dimensions and tree nodes that have been reported as changed (see parameterChanged and
+ * treeChanged) are compared with this copy.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class LikelihoodClient {
+
+    public LikelihoodClient(String host, int port, List<String> likelihoodIds) {
+        this.host = host;
+        this.port = port;
+        this.likelihoodIds = likelihoodIds;
+    }
+
+    /**
+     * Connects to the worker (waiting for it to start if necessary) and asks it to create the
+     * likelihoods. The ids of the parameters and trees that these depend on are then available.
+     *
+     * @param timeout the time (in milliseconds) to keep trying to connect
+     * @throws IOException if the connection failed or the worker couldn't create the likelihoods
+     */
+    public void connect(long timeout) throws IOException {
+        long giveUp = System.currentTimeMillis() + timeout;
+        while (socket == null) {
+            try {
+                socket = new Socket(host, port);
+            } catch (ConnectException ce) {
+                if (System.currentTimeMillis() > giveUp) {
+                    throw ce;
+                }
+                try {
+                    Thread.sleep(CONNECT_RETRY_INTERVAL);
+                } catch (InterruptedException ie) {
+                    throw new IOException("Interrupted");
+                }
+            }
+        }
+        socket.setTcpNoDelay(true);
+
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        // the worker uses the same random number seed so random starting trees are the same
+        out.writeLong(MathUtils.getSeed());
+        out.writeInt(likelihoodIds.size());
+        for (String id : likelihoodIds) {
+            out.writeUTF(id);
+        }
+        out.flush();
+
+        readStatus();
+
+        int parameterCount = in.readInt();
+        for (int i = 0; i < parameterCount; i++) {
+            parameterIds.add(in.readUTF());
+            parameterDimensions.add(in.readInt());
+        }
+        int treeCount = in.readInt();
+        for (int i = 0; i < treeCount; i++) {
+            treeIds.add(in.readUTF());
+            in.readInt(); // node count
+            String[] taxa = new String[in.readInt()];
+            for (int j = 0; j < taxa.length; j++) {
+                taxa[j] = in.readUTF();
+            }
+            treeTaxa.add(taxa);
+        }
+    }
+
+    public String getAddress() {
+        return host + ":" + port;
+    }
+
+    public List<String> getLikelihoodIds() {
+        return likelihoodIds;
+    }
+
+    public List<String> getParameterIds() {
+        return parameterIds;
+    }
+
+    public List<String> getTreeIds() {
+        return treeIds;
+    }
+
+    /**
+     * Sets the master's copies of the parameters and trees (in the order of their ids).
+     *
+     * @throws IOException if these don't match those of the worker
+     */
+    public void setComponents(Parameter[] parameters, TreeModel[] trees) throws IOException {
+        this.parameters = parameters;
+        this.trees = trees;
+
+        sentValues = new double[parameters.length][];
+        storedValues = new double[parameters.length][];
+        changedValues = new IndexSet[parameters.length];
+        valuesSentSinceStore = new IndexSet[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            if (parameters[i].getDimension() != parameterDimensions.get(i)) {
+                throw new IOException("Parameter " + parameterIds.get(i) + " has a different dimension in the worker at " + getAddress());
+            }
+            sentValues[i] = new double[parameters[i].getDimension()];
+            storedValues[i] = new double[parameters[i].getDimension()];
+            changedValues[i] = new IndexSet(parameters[i].getDimension());
+            valuesSentSinceStore[i] = new IndexSet(parameters[i].getDimension());
+            // force all values to be sent the first time
+            Arrays.fill(sentValues[i], Double.NaN);
+            changedValues[i].addAll();
+            parameterIndices.put(parameters[i], i);
+        }
+
+        sentHeights = new double[trees.length][];
+        storedHeights = new double[trees.length][];
+        sentChildren = new int[trees.length][][];
+        storedChildren = new int[trees.length][][];
+        sentRoots = new int[trees.length];
+        storedRoots = new int[trees.length];
+        changedNodes = new IndexSet[trees.length];
+        nodesSentSinceStore = new IndexSet[trees.length];
+        for (int i = 0; i < trees.length; i++) {
+            String[] taxa = treeTaxa.get(i);
+            if (trees[i].getExternalNodeCount() != taxa.length) {
+                throw new IOException("Tree " + treeIds.get(i) + " has a different number of tips in the worker at " + getAddress());
+            }
+            for (int j = 0; j < taxa.length; j++) {
+                // the node numbering must match as parameters may be indexed by these (i.e., branch rates)
+                if (!trees[i].getNodeTaxon(trees[i].getNode(j)).getId().equals(taxa[j])) {
+                    throw new IOException("Tree " + treeIds.get(i) + " has a different order of tips in the worker at " +
+                            getAddress() + " (try using a starting tree that is not random)");
+                }
+            }
+            int nodeCount = trees[i].getNodeCount();
+            sentHeights[i] = new double[nodeCount];
+            storedHeights[i] = new double[nodeCount];
+            Arrays.fill(sentHeights[i], Double.NaN);
+            sentChildren[i] = new int[nodeCount][];
+            storedChildren[i] = new int[nodeCount][];
+            sentRoots[i] = -1;
+            changedNodes[i] = new IndexSet(nodeCount);
+            nodesSentSinceStore[i] = new IndexSet(nodeCount);
+            changedNodes[i].addAll();
+            treeIndices.put(trees[i], i);
+        }
+    }
+
+    /**
+     * Called when the master's copy of a parameter has changed.
+     *
+     * @param parameter the parameter
+     * @param index     the dimension that changed or -1 if all may have changed
+     */
+    public void parameterChanged(Parameter parameter, int index) {
+        Integer i = parameterIndices.get(parameter);
+        if (i != null) {
+            if (index >= 0 && index < changedValues[i].capacity()) {
+                changedValues[i].add(index);
+            } else {
+                changedValues[i].addAll();
+            }
+        }
+    }
+
+    /**
+     * Called when the master's copy of a tree has changed.
+     *
+     * @param tree   the tree
+     * @param object the TreeChangedEvent (anything else is taken to mean that the whole tree may have changed)
+     */
+    public void treeChanged(TreeModel tree, Object object) {
+        Integer i = treeIndices.get(tree);
+        if (i != null) {
+            if (object instanceof TreeChangedEvent && ((TreeChangedEvent) object).getNode() != null) {
+                // events for changes to the children of a node name the parent
+                changedNodes[i].add(((TreeChangedEvent) object).getNode().getNumber());
+            } else {
+                changedNodes[i].addAll();
+            }
+        }
+    }
+
+    /**
+     * Queue an operation (STORE, RESTORE or ACCEPT) for the worker's model to be sent with the
+     * next evaluation. The copy of the worker's state is updated as if it had been done.
+     */
+    public void queueOperation(byte operation) {
+        if (operation == STORE) {
+            if (!isStored) {
+                copyState(true);
+                storedLogLikelihood = logLikelihood;
+                isStored = true;
+                operations.add(STORE);
+            }
+        } else if (isStored) {
+            if (operation == RESTORE) {
+                copyState(false);
+                logLikelihood = storedLogLikelihood;
+            }
+            for (int i = 0; i < parameters.length; i++) {
+                if (operation == RESTORE) {
+                    // the values checked since the store have been restored in the copy of the worker's
+                    // state so check them again against the master's restored values
+                    changedValues[i].addAll(valuesSentSinceStore[i]);
+                }
+                valuesSentSinceStore[i].clear();
+            }
+            for (int i = 0; i < trees.length; i++) {
+                if (operation == RESTORE) {
+                    changedNodes[i].addAll(nodesSentSinceStore[i]);
+                }
+                nodesSentSinceStore[i].clear();
+            }
+            isStored = false;
+            if (operations.size() > 0 && operations.get(operations.size() - 1) == STORE) {
+                // no changes have been sent since the store so the pair does nothing
+                operations.remove(operations.size() - 1);
+            } else {
+                operations.add(operation);
+            }
+        }
+    }
+
+    /**
+     * The worker will be asked to do a full evaluation at the next evaluation.
+     */
+    public void makeDirty() {
+        isDirty = true;
+        for (IndexSet changed : changedValues) {
+            changed.addAll();
+        }
+        for (IndexSet changed : changedNodes) {
+            changed.addAll();
+        }
+    }
+
+    /**
+     * Sends any changes to the parameters and trees (and any queued operations) to the worker.
+     *
+     * @return false if nothing needed to be sent (i.e., the log likelihood is known)
+     */
+    public boolean sendState() throws IOException {
+        changesBuffer.reset();
+        DataOutputStream changes = new DataOutputStream(changesBuffer);
+
+        int parameterCount = 0;
+        for (int i = 0; i < parameters.length; i++) {
+            if (writeParameter(i, changes)) {
+                parameterCount++;
+            }
+        }
+        int parameterBytes = changesBuffer.size();
+
+        int treeCount = 0;
+        for (int i = 0; i < trees.length; i++) {
+            if (writeTree(i, changes)) {
+                treeCount++;
+            }
+        }
+
+        if (parameterCount == 0 && treeCount == 0 && !isDirty && !Double.isNaN(logLikelihood)) {
+            // the worker's likelihood is already known - any operations are kept for next time
+            return false;
+        }
+
+        byte[] changeBytes = changesBuffer.toByteArray();
+
+        buffer.reset();
+        DataOutputStream message = new DataOutputStream(buffer);
+
+        message.writeByte(operations.size() + (isDirty ? 1 : 0));
+        for (byte operation : operations) {
+            message.writeByte(operation);
+        }
+        if (isDirty) {
+            message.writeByte(MAKE_DIRTY);
+        }
+        message.writeInt(parameterCount);
+        message.write(changeBytes, 0, parameterBytes);
+        message.writeInt(treeCount);
+        message.write(changeBytes, parameterBytes, changeBytes.length - parameterBytes);
+
+        operations.clear();
+        isDirty = false;
+
+        out.writeByte(EVALUATE);
+        out.writeInt(buffer.size());
+        buffer.writeTo(out);
+        out.flush();
+        return true;
+    }
+
+    /**
+     * Waits for the result of the evaluation requested by sendState.
+     */
+    public double receiveLogLikelihood() throws IOException {
+        readStatus();
+        logLikelihood = in.readDouble();
+        return logLikelihood;
+    }
+
+    public double getLogLikelihood() {
+        return logLikelihood;
+    }
+
+    public void close() throws IOException {
+        if (socket != null) {
+            out.writeByte(TERMINATE);
+            out.flush();
+            socket.close();
+            socket = null;
+        }
+    }
+
+    private void readStatus() throws IOException {
+        if (in.readByte() != OK) {
+            throw new IOException("Worker at " + getAddress() + " reported an error: " + in.readUTF());
+        }
+    }
+
+    private boolean writeParameter(int index, DataOutputStream message) throws IOException {
+        Parameter parameter = parameters[index];
+        double[] sent = sentValues[index];
+        IndexSet changed = changedValues[index];
+
+        int count = 0;
+        for (int k = 0; k < changed.size(); k++) {
+            int j = changed.get(k);
+            if (parameter.getParameterValue(j) != sent[j]) {
+                count++;
+            }
+        }
+        if (isStored) {
+            valuesSentSinceStore[index].addAll(changed);
+        }
+        if (count == 0) {
+            changed.clear();
+            return false;
+        }
+
+        message.writeInt(index);
+        if (count * 2 > sent.length) {
+            // cheaper to send all the values
+            message.writeInt(-1);
+            for (int j = 0; j < sent.length; j++) {
+                sent[j] = parameter.getParameterValue(j);
+                message.writeDouble(sent[j]);
+            }
+        } else {
+            message.writeInt(count);
+            for (int k = 0; k < changed.size(); k++) {
+                int j = changed.get(k);
+                double value = parameter.getParameterValue(j);
+                if (value != sent[j]) {
+                    sent[j] = value;
+                    message.writeInt(j);
+                    message.writeDouble(value);
+                }
+            }
+        }
+        changed.clear();
+        return true;
+    }
+
+    private boolean writeTree(int index, DataOutputStream message) throws IOException {
+        TreeModel tree = trees[index];
+        IndexSet changed = changedNodes[index];
+
+        List<Integer> changedChildren = new ArrayList<Integer>();
+        List<Integer> changedHeights = new ArrayList<Integer>();
+        for (int k = 0; k < changed.size(); k++) {
+            int i = changed.get(k);
+            NodeRef node = tree.getNode(i);
+            if (!tree.isExternal(node) && !Arrays.equals(getChildren(tree, i), sentChildren[index][i])) {
+                changedChildren.add(i);
+            }
+            if (tree.getNodeHeight(node) != sentHeights[index][i]) {
+                changedHeights.add(i);
+            }
+        }
+        int root = tree.getRoot().getNumber();
+
+        if (isStored) {
+            nodesSentSinceStore[index].addAll(changed);
+        }
+        changed.clear();
+
+        if (changedChildren.size() == 0 && changedHeights.size() == 0 && root == sentRoots[index]) {
+            return false;
+        }
+
+        message.writeInt(index);
+
+        message.writeInt(changedChildren.size());
+        for (int i : changedChildren) {
+            int[] children = getChildren(tree, i);
+            message.writeInt(i);
+            message.writeInt(children.length);
+            for (int child : children) {
+                message.writeInt(child);
+            }
+            sentChildren[index][i] = children;
+        }
+
+        message.writeInt(root);
+        sentRoots[index] = root;
+
+        message.writeInt(changedHeights.size());
+        for (int i : changedHeights) {
+            double height = tree.getNodeHeight(tree.getNode(i));
+            message.writeInt(i);
+            message.writeDouble(height);
+            sentHeights[index][i] = height;
+        }
+
+        return true;
+    }
+
+    private static int[] getChildren(TreeModel tree, int nodeNumber) {
+        NodeRef node = tree.getNode(nodeNumber);
+        int[] children = new int[tree.getChildCount(node)];
+        for (int j = 0; j < children.length; j++) {
+            children[j] = tree.getChild(node, j).getNumber();
+        }
+        return children;
+    }
+
+    private void copyState(boolean store) {
+        for (int i = 0; i < sentValues.length; i++) {
+            if (store) {
+                System.arraycopy(sentValues[i], 0, storedValues[i], 0, sentValues[i].length);
+            } else {
+                System.arraycopy(storedValues[i], 0, sentValues[i], 0, sentValues[i].length);
+            }
+        }
+        for (int i = 0; i < sentHeights.length; i++) {
+            if (store) {
+                System.arraycopy(sentHeights[i], 0, storedHeights[i], 0, sentHeights[i].length);
+                System.arraycopy(sentChildren[i], 0, storedChildren[i], 0, sentChildren[i].length);
+                storedRoots[i] = sentRoots[i];
+            } else {
+                System.arraycopy(storedHeights[i], 0, sentHeights[i], 0, sentHeights[i].length);
+                System.arraycopy(storedChildren[i], 0, sentChildren[i], 0, sentChildren[i].length);
+                sentRoots[i] = storedRoots[i];
+            }
+        }
+    }
+
+    /**
+     * A set of indices (i.e., parameter dimensions or node numbers) from 0 to capacity - 1 that
+     * can be iterated over and cleared in time proportional to its size.
+     */
+    private static class IndexSet {
+
+        IndexSet(int capacity) {
+            isMember = new boolean[capacity];
+            members = new int[capacity];
+        }
+
+        void add(int index) {
+            if (!isMember[index]) {
+                isMember[index] = true;
+                members[size] = index;
+                size++;
+            }
+        }
+
+        void addAll() {
+            for (int i = 0; i < isMember.length && size < isMember.length; i++) {
+                add(i);
+            }
+        }
+
+        void addAll(IndexSet set) {
+            for (int k = 0; k < set.size; k++) {
+                add(set.members[k]);
+            }
+        }
+
+        void clear() {
+            for (int k = 0; k < size; k++) {
+                isMember[members[k]] = false;
+            }
+            size = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int get(int k) {
+            return members[k];
+        }
+
+        int capacity() {
+            return isMember.length;
+        }
+
+        private final boolean[] isMember;
+        private final int[] members;
+        private int size = 0;
+    }
+
+    private static final long CONNECT_RETRY_INTERVAL = 500;
+
+    private final String host;
+    private final int port;
+    private final List<String> likelihoodIds;
+
+    private Socket socket = null;
+    private DataInputStream in;
+    private DataOutputStream out;
+
+    private final List<String> parameterIds = new ArrayList<String>();
+    private final List<Integer> parameterDimensions = new ArrayList<Integer>();
+    private final List<String> treeIds = new ArrayList<String>();
+    private final List<String[]> treeTaxa = new ArrayList<String[]>();
+
+    private Parameter[] parameters;
+    private TreeModel[] trees;
+
+    // the state as the worker has it
+    private double[][] sentValues;
+    private double[][] storedValues;
+    private double[][] sentHeights;
+    private double[][] storedHeights;
+    private int[][][] sentChildren;
+    private int[][][] storedChildren;
+    private int[] sentRoots;
+    private int[] storedRoots;
+    private double logLikelihood = Double.NaN;
+    private double storedLogLikelihood = Double.NaN;
+    private boolean isStored = false;
+
+    // the dimensions and nodes that may differ from the copy of the worker's state
+    private IndexSet[] changedValues;
+    private IndexSet[] changedNodes;
+    // those checked (and possibly sent) since the state was stored
+    private IndexSet[] valuesSentSinceStore;
+    private IndexSet[] nodesSentSinceStore;
+    private final Map<Parameter, Integer> parameterIndices = new IdentityHashMap<Parameter, Integer>();
+    private final Map<TreeModel, Integer> treeIndices = new IdentityHashMap<TreeModel, Integer>();
+
+    private final List<Byte> operations = new ArrayList<Byte>();
+    private boolean isDirty = false;
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream changesBuffer = new ByteArrayOutputStream();
+}
@@ -0,0 +1,350 @@
+/*
+ * LikelihoodServer.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.parallel;
+
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.CompoundParameter;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
+import dr.math.MathUtils;
+import dr.xml.XMLParseException;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * The worker side of a DistributedLikelihood. This hosts one or more likelihoods (i.e., data
+ * partitions) in a separate process. The master connects over a socket and sends the ids of
+ * the likelihoods to host; the server creates these and replies with the ids of the parameters
+ * and trees that they depend on. Subsequently, for each evaluation, the master sends the
+ * changes to these (along with the store/restore/accept operations of the MCMC) in a compact
+ * binary form and the server replies with the summed log likelihood.
+ *
+ * This replaces the MPI based MPILikelihoodRunner and only requires a TCP connection between
+ * the master and the workers.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class LikelihoodServer {
+
+    // the protocol
+    static final int MAGIC = 0x42454153;
+    static final int VERSION = 1;
+
+    static final byte EVALUATE = 1;
+    static final byte TERMINATE = 2;
+
+    static final byte STORE = 1;
+    static final byte RESTORE = 2;
+    static final byte ACCEPT = 3;
+    static final byte MAKE_DIRTY = 4;
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    /**
+     * Creates the likelihoods to be hosted (usually by parsing them from the XML file).
+     */
+    public interface LikelihoodFactory {
+        List<Likelihood> createLikelihoods(List<String> ids) throws XMLParseException;
+    }
+
+    public LikelihoodServer(int port, LikelihoodFactory factory) {
+        this.port = port;
+        this.factory = factory;
+    }
+
+    /**
+     * Waits for a master to connect and then serves it until it disconnects.
+     *
+     * @throws IOException
+     */
+    public void serve() throws IOException {
+        Logger logger = Logger.getLogger("dr.inference");
+
+        ServerSocket serverSocket = new ServerSocket(port);
+        logger.info("Likelihood worker waiting for connection on port " + port);
+        Socket socket = serverSocket.accept();
+        serverSocket.close();
+        socket.setTcpNoDelay(true);
+
+        logger.info("Connection from " + socket.getInetAddress().getHostName());
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        try {
+            if (connect(in, out)) {
+                while (true) {
+                    byte request = in.readByte();
+                    if (request == EVALUATE) {
+                        evaluate(in, out);
+                    } else if (request == TERMINATE) {
+                        break;
+                    } else {
+                        throw new IOException("Unknown request: " + request);
+                    }
+                }
+            }
+        } catch (EOFException eofe) {
+            // the master has gone away
+        } finally {
+            socket.close();
+        }
+
+        logger.info("Likelihood worker finished");
+    }
+
+    private boolean connect(DataInputStream in, DataOutputStream out) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Unknown protocol");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            out.writeByte(ERROR);
+            out.writeUTF("Protocol version " + version + " is not supported by the worker (version " + VERSION + ")");
+            out.flush();
+            return false;
+        }
+
+        MathUtils.setSeed(in.readLong());
+
+        List<String> ids = new ArrayList<String>();
+        int idCount = in.readInt();
+        for (int i = 0; i < idCount; i++) {
+            ids.add(in.readUTF());
+        }
+
+        try {
+            likelihoods = factory.createLikelihoods(ids);
+        } catch (XMLParseException xpe) {
+            out.writeByte(ERROR);
+            out.writeUTF(xpe.getMessage());
+            out.flush();
+            return false;
+        }
+
+        Set<Model> visited = new HashSet<Model>();
+        Set<Parameter> parameterSet = new LinkedHashSet<Parameter>();
+        Set<TreeModel> treeSet = new LinkedHashSet<TreeModel>();
+        for (Likelihood likelihood : likelihoods) {
+            findComponents(likelihood.getModel(), visited, parameterSet, treeSet);
+        }
+        parameters = parameterSet.toArray(new Parameter[parameterSet.size()]);
+        trees = treeSet.toArray(new TreeModel[treeSet.size()]);
+
+        out.writeByte(OK);
+        out.writeInt(parameters.length);
+        for (Parameter parameter : parameters) {
+            out.writeUTF(parameter.getId());
+            out.writeInt(parameter.getDimension());
+        }
+        out.writeInt(trees.length);
+        for (TreeModel tree : trees) {
+            out.writeUTF(tree.getId());
+            out.writeInt(tree.getNodeCount());
+            out.writeInt(tree.getExternalNodeCount());
+            for (int i = 0; i < tree.getExternalNodeCount(); i++) {
+                out.writeUTF(tree.getNodeTaxon(tree.getNode(i)).getId());
+            }
+        }
+        out.flush();
+
+        Logger.getLogger("dr.inference").info("Hosting " + ids + " (depending on " + parameters.length +
+                " parameters and " + trees.length + " trees)");
+        return true;
+    }
+
+    private static void findComponents(Model model, Set<Model> visited, Set<Parameter> parameters, Set<TreeModel> trees) {
+        if (model == null || !visited.add(model)) {
+            return;
+        }
+        if (model instanceof TreeModel) {
+            // trees are sent as topology and node heights
+            trees.add((TreeModel) model);
+            return;
+        }
+        for (int i = 0; i < model.getVariableCount(); i++) {
+            addParameter(model.getVariable(i), parameters);
+        }
+        for (int i = 0; i < model.getModelCount(); i++) {
+            findComponents(model.getModel(i), visited, parameters, trees);
+        }
+    }
+
+    private static void addParameter(Variable variable, Set<Parameter> parameters) {
+        if (!(variable instanceof Parameter)) {
+            return;
+        }
+        Parameter parameter = (Parameter) variable;
+        if (parameter.getId() != null) {
+            parameters.add(parameter);
+        } else if (parameter instanceof CompoundParameter) {
+            // an anonymous compound of named parameters
+            CompoundParameter compoundParameter = (CompoundParameter) parameter;
+            for (int i = 0; i < compoundParameter.getParameterCount(); i++) {
+                addParameter(compoundParameter.getParameter(i), parameters);
+            }
+        }
+    }
+
+    private void evaluate(DataInputStream connection, DataOutputStream out) throws IOException {
+        // the message is read in full first so the connection can continue if it can't be applied
+        byte[] message = new byte[connection.readInt()];
+        connection.readFully(message);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(message));
+
+        double logLikelihood = 0.0;
+        String error = null;
+
+        try {
+            int operationCount = in.readByte();
+            for (int i = 0; i < operationCount; i++) {
+                byte operation = in.readByte();
+                for (Likelihood likelihood : likelihoods) {
+                    switch (operation) {
+                        case STORE:
+                            likelihood.getModel().storeModelState();
+                            break;
+                        case RESTORE:
+                            likelihood.getModel().restoreModelState();
+                            break;
+                        case ACCEPT:
+                            likelihood.getModel().acceptModelState();
+                            break;
+                        case MAKE_DIRTY:
+                            likelihood.makeDirty();
+                            break;
+                        default:
+                            throw new IOException("Unknown operation: " + operation);
+                    }
+                }
+            }
+
+            int parameterCount = in.readInt();
+            for (int i = 0; i < parameterCount; i++) {
+                readParameter(parameters[in.readInt()], in);
+            }
+
+            int treeCount = in.readInt();
+            for (int i = 0; i < treeCount; i++) {
+                readTree(trees[in.readInt()], in);
+            }
+
+            for (Likelihood likelihood : likelihoods) {
+                logLikelihood += likelihood.getLogLikelihood();
+            }
+        } catch (RuntimeException re) {
+            error = re.getClass().getSimpleName() + ": " + re.getMessage();
+        }
+
+        if (error == null) {
+            out.writeByte(OK);
+            out.writeDouble(logLikelihood);
+        } else {
+            out.writeByte(ERROR);
+            out.writeUTF(error);
+        }
+        out.flush();
+    }
+
+    private static void readParameter(Parameter parameter, DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            // all the values
+            for (int i = 0; i < parameter.getDimension(); i++) {
+                parameter.setParameterValueQuietly(i, in.readDouble());
+            }
+            parameter.fireParameterChangedEvent();
+        } else {
+            int index = -1;
+            for (int i = 0; i < count; i++) {
+                index = in.readInt();
+                parameter.setParameterValueQuietly(index, in.readDouble());
+            }
+            if (count == 1) {
+                parameter.fireParameterChangedEvent(index, Parameter.ChangeType.VALUE_CHANGED);
+            } else {
+                parameter.fireParameterChangedEvent();
+            }
+        }
+    }
+
+    private static void readTree(TreeModel tree, DataInputStream in) throws IOException {
+        tree.beginTreeEdit();
+
+        // the internal nodes whose children have changed: first detach all the children
+        // (which may be moving between these nodes) then attach the new ones.
+        int nodeCount = in.readInt();
+        int[][] children = new int[nodeCount][];
+        NodeRef[] parents = new NodeRef[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            parents[i] = tree.getNode(in.readInt());
+            children[i] = new int[in.readInt()];
+            for (int j = 0; j < children[i].length; j++) {
+                children[i][j] = in.readInt();
+            }
+            NodeRef[] oldChildren = new NodeRef[tree.getChildCount(parents[i])];
+            for (int j = 0; j < oldChildren.length; j++) {
+                oldChildren[j] = tree.getChild(parents[i], j);
+            }
+            for (NodeRef child : oldChildren) {
+                tree.removeChild(parents[i], child);
+            }
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            for (int child : children[i]) {
+                tree.addChild(parents[i], tree.getNode(child));
+            }
+        }
+        NodeRef root = tree.getNode(in.readInt());
+        if (root != tree.getRoot()) {
+            tree.setRoot(root);
+        }
+
+        int heightCount = in.readInt();
+        for (int i = 0; i < heightCount; i++) {
+            NodeRef node = tree.getNode(in.readInt());
+            tree.setNodeHeight(node, in.readDouble());
+        }
+
+        tree.endTreeEdit();
+    }
+
+    private final int port;
+    private final LikelihoodFactory factory;
+
+    private List<Likelihood> likelihoods;
+    private Parameter[] parameters;
+    private TreeModel[] trees;
+}
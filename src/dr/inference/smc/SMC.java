@@ -36,19 +36,26 @@ import dr.inference.model.Likelihood;
 import dr.inference.model.Model;
 import dr.inference.operators.*;
 import dr.inference.state.Factory;
+import dr.inference.state.ParticleStateLoaderSaver;
 import dr.inference.state.StateLoader;
 import dr.inference.state.StateLoaderSaver;
 import dr.inference.state.StateSaver;
+import dr.math.MathUtils;
 import dr.util.Identifiable;
 import dr.util.NumberFormatter;
+import dr.xml.Replicator;
 import dr.xml.Spawnable;
+import dr.xml.XMLParseException;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A class that runs short MCMC chains for each of a set of particles as
@@ -59,7 +66,7 @@ import java.util.List;
  */
 public class SMC implements Identifiable, Spawnable, Loggable {
 
-    public SMC(String id, List<StateLoaderSaver> particleStates) {
+    public SMC(String id, List<ParticleStateLoaderSaver> particleStates) {
         this.id = id;
         this.particleStates.addAll(particleStates);
     }
@@ -133,17 +140,65 @@ public class SMC implements Identifiable, Spawnable, Loggable {
 
         mc.addMarkovChainListener(chainListener);
 
-        for (StateLoaderSaver particleState : particleStates) {
-            // Don't need the savedLnL - it won't be there
-            particleState.loadState(mc, new double[1]);
+        final int particleCount = particleStates.size();
 
-            // reset the current chain length to 0
-            mc.setCurrentLength(0);
+        // Load the particles into memory. The weight each was saved with (since the particles were
+        // last resampled) is multiplied by the ratio of the posterior under this model to the one it
+        // was saved with (these ratios will all be the same if the model hasn't changed).
+        List<StateLoaderSaver> particles = new ArrayList<StateLoaderSaver>();
+        double[] savedLogWeights = new double[particleCount];
+        double[] logWeights = new double[particleCount];
+        for (int i = 0; i < particleCount; i++) {
+            double[] savedLnL = new double[1];
+            double[] savedLogWeight = new double[1];
+            long state = particleStates.get(i).loadState(mc, savedLnL, savedLogWeight);
 
-            mc.runChain(options.getChainLength(), true);
+            mc.getLikelihood().makeDirty();
+            double lnL = mc.evaluate();
 
-            // Save state to file...
-            particleState.saveState(mc, mc.getCurrentLength(), mc.getCurrentScore());
+            StateLoaderSaver particle = Factory.INSTANCE.getStateLoaderSaver();
+            particle.saveState(mc, state, lnL);
+            particles.add(particle);
+
+            savedLogWeights[i] = savedLogWeight[0];
+            logWeights[i] = savedLogWeight[0] + lnL - savedLnL[0];
+        }
+
+        double ess = getEffectiveSampleSize(logWeights);
+        boolean resample = ess < options.getResampleThreshold() * particleCount;
+
+        java.util.logging.Logger.getLogger("dr.inference").info("SMC particle weights: ESS = " +
+                formatter.format(ess) + " (of " + particleCount + " particles), log mean weight = " +
+                formatter.format(getLogMeanWeight(logWeights) - getLogMeanWeight(savedLogWeights)) +
+                (resample ? ", resampling" : ""));
+
+        if (resample) {
+            // the resampled particles are equally weighted
+            particles = resample(particles, logWeights);
+            Arrays.fill(logWeights, 0.0);
+        }
+
+        final StateLoaderSaver[] results = new StateLoaderSaver[particleCount];
+
+        int threadCount = Math.min(options.getThreadCount(), particleCount);
+        if (threadCount > 1 && Replicator.INSTANCE == null) {
+            java.util.logging.Logger.getLogger("dr.inference").warning("Unable to create replicate chains so running particles on a single thread");
+            threadCount = 1;
+        }
+
+        if (threadCount > 1) {
+            runParticlesInParallel(particles, results, threadCount);
+        } else {
+            for (int i = 0; i < particleCount; i++) {
+                results[i] = runParticle(particles.get(i));
+            }
+        }
+
+        // Save states to files with the weights of the particles...
+        for (int i = 0; i < particleCount; i++) {
+            double[] lnL = new double[1];
+            long state = results[i].loadState(mc, lnL);
+            particleStates.get(i).saveState(mc, state, lnL[0], logWeights[i]);
         }
 
         mc.terminateChain();
@@ -153,6 +208,177 @@ public class SMC implements Identifiable, Spawnable, Loggable {
         timer.stop();
     }
 
+    /**
+     * Runs the particles on a pool of independent replicates of this SMC's model graph (this
+     * object being the first). Each thread takes the next particle to be run until there are none
+     * left.
+     */
+    private void runParticlesInParallel(final List<StateLoaderSaver> particles, final StateLoaderSaver[] results,
+                                        int threadCount) {
+        final SMC[] engines = new SMC[threadCount];
+        engines[0] = this;
+        for (int i = 1; i < threadCount; i++) {
+            try {
+                // the particle states are the output so the replicates don't log
+                engines[i] = Replicator.INSTANCE.replicate(SMC.class, ordinal, i, false);
+            } catch (XMLParseException xpe) {
+                throw new RuntimeException("Unable to create replicate for SMC particle thread " + i + ": " + xpe.getMessage());
+            }
+        }
+
+        final AtomicInteger nextParticle = new AtomicInteger(0);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < threadCount; i++) {
+            final SMC engine = engines[i];
+            final boolean isReplicate = i > 0;
+            final long seed = MathUtils.nextLong();
+
+            futures.add(executor.submit(new Runnable() {
+                public void run() {
+                    MathUtils.setThreadSeed(seed == 0 ? 1 : seed);
+                    try {
+                        if (isReplicate) {
+                            engine.startReplicate();
+                        }
+                        int particle = nextParticle.getAndIncrement();
+                        while (particle < particles.size()) {
+                            results[particle] = engine.runParticle(particles.get(particle));
+                            particle = nextParticle.getAndIncrement();
+                        }
+                        if (isReplicate) {
+                            engine.finishReplicate();
+                        }
+                    } finally {
+                        MathUtils.clearThreadSeed();
+                    }
+                }
+            }));
+        }
+        executor.shutdown();
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("SMC particle threads interrupted");
+        } catch (ExecutionException ee) {
+            throw new RuntimeException("SMC particle failed: " + ee.getCause().getMessage(), ee.getCause());
+        }
+    }
+
+    private void startReplicate() {
+        if (loggers != null) {
+            for (Logger logger : loggers) {
+                logger.startLogging();
+            }
+        }
+        mc.addMarkovChainListener(chainListener);
+    }
+
+    private void finishReplicate() {
+        mc.terminateChain();
+        mc.removeMarkovChainListener(chainListener);
+    }
+
+    /**
+     * Load the particle state into this SMC's model graph, run the chain and return the
+     * resulting state.
+     */
+    private StateLoaderSaver runParticle(StateLoaderSaver particle) {
+        particle.loadState(mc, new double[1]);
+
+        // reset the current chain length to 0
+        mc.setCurrentLength(0);
+
+        mc.runChain(options.getChainLength(), true);
+
+        StateLoaderSaver result = Factory.INSTANCE.getStateLoaderSaver();
+        result.saveState(mc, mc.getCurrentLength(), mc.getCurrentScore());
+        return result;
+    }
+
+    private static double[] getNormalizedWeights(double[] logWeights) {
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        for (double logWeight : logWeights) {
+            maxLogWeight = Math.max(maxLogWeight, logWeight);
+        }
+
+        double[] weights = new double[logWeights.length];
+        if (Double.isInfinite(maxLogWeight) || Double.isNaN(maxLogWeight)) {
+            // no usable weights so treat the particles equally
+            Arrays.fill(weights, 1.0 / weights.length);
+            return weights;
+        }
+
+        double sum = 0.0;
+        for (int i = 0; i < logWeights.length; i++) {
+            weights[i] = Double.isNaN(logWeights[i]) ? 0.0 : Math.exp(logWeights[i] - maxLogWeight);
+            sum += weights[i];
+        }
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] /= sum;
+        }
+        return weights;
+    }
+
+    /**
+     * @return the effective sample size of the weighted particles, (sum w)^2 / sum w^2
+     */
+    public static double getEffectiveSampleSize(double[] logWeights) {
+        double sumSquares = 0.0;
+        for (double w : getNormalizedWeights(logWeights)) {
+            sumSquares += w * w;
+        }
+        return 1.0 / sumSquares;
+    }
+
+    /**
+     * @return the log of the mean of the weights (an estimate of the log ratio of the marginal
+     * likelihoods of the current and previous models if the particles were equally weighted under
+     * the previous model, otherwise subtract the log mean of the previous weights)
+     */
+    public static double getLogMeanWeight(double[] logWeights) {
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        for (double logWeight : logWeights) {
+            maxLogWeight = Math.max(maxLogWeight, logWeight);
+        }
+        if (Double.isInfinite(maxLogWeight) || Double.isNaN(maxLogWeight)) {
+            return maxLogWeight;
+        }
+        double sum = 0.0;
+        for (double logWeight : logWeights) {
+            sum += Math.exp(logWeight - maxLogWeight);
+        }
+        return maxLogWeight + Math.log(sum / logWeights.length);
+    }
+
+    /**
+     * Systematic resampling of the particles in proportion to their weights. Each particle is
+     * drawn either floor(n w) or ceil(n w) times where w is its normalized weight.
+     */
+    public static <T> List<T> resample(List<T> particles, double[] logWeights) {
+        double[] weights = getNormalizedWeights(logWeights);
+        int n = particles.size();
+
+        List<T> resampled = new ArrayList<T>(n);
+        double u = MathUtils.nextDouble() / n;
+        double cumulative = weights[0];
+        int j = 0;
+        for (int i = 0; i < n; i++) {
+            while (u > cumulative && j < n - 1) {
+                j++;
+                cumulative += weights[j];
+            }
+            resampled.add(particles.get(j));
+            u += 1.0 / n;
+        }
+        return resampled;
+    }
+
     @Override
     public LogColumn[] getColumns() {
         return new LogColumn[] { new LogColumn() {
@@ -267,6 +493,13 @@ public class SMC implements Identifiable, Spawnable, Loggable {
         return id;
     }
 
+    /**
+     * @param ordinal the number of SMC objects preceding this one in the XML (used to create replicates)
+     */
+    public void setOrdinal(int ordinal) {
+        this.ordinal = ordinal;
+    }
+
     public void setId(String id) {
         this.id = id;
     }
@@ -287,9 +520,11 @@ public class SMC implements Identifiable, Spawnable, Loggable {
      */
     private SMCOptions options;
 
-    private final List<StateLoaderSaver> particleStates = new ArrayList<StateLoaderSaver>();
+    private final List<ParticleStateLoaderSaver> particleStates = new ArrayList<ParticleStateLoaderSaver>();
     private Logger[] loggers;
     private OperatorSchedule schedule;
 
+    private int ordinal = 0;
+
     private String id = null;
 }
@@ -34,13 +34,28 @@ package dr.inference.smc;
 public class SMCOptions {
 
     private final long chainLength;
+    private final int threadCount;
+    private final double resampleThreshold;
 
     /**
      * constructor
      * @param chainLength
      */
     public SMCOptions(long chainLength) {
+        this(chainLength, 1, DEFAULT_RESAMPLE_THRESHOLD);
+    }
+
+    /**
+     * constructor
+     * @param chainLength
+     * @param threadCount the number of particles to run concurrently
+     * @param resampleThreshold the particles are resampled when the effective sample size falls
+     *                          below this proportion of the number of particles
+     */
+    public SMCOptions(long chainLength, int threadCount, double resampleThreshold) {
         this.chainLength = chainLength;
+        this.threadCount = threadCount;
+        this.resampleThreshold = resampleThreshold;
     }
 
     /**
@@ -49,4 +64,20 @@ public class SMCOptions {
     public final long getChainLength() {
         return chainLength;
     }
+
+    /**
+     * @return the number of particles to run concurrently
+     */
+    public final int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * @return the proportion of the particle count below which the effective sample size triggers resampling
+     */
+    public final double getResampleThreshold() {
+        return resampleThreshold;
+    }
+
+    public static final double DEFAULT_RESAMPLE_THRESHOLD = 0.5;
 }
@@ -47,9 +47,17 @@ public abstract class Factory {
 
     /**
      * Get an instance of StateLoader/Saver for use as a particle for SMC.
+     * @return the ParticleStateLoaderSaver
+     */
+    public abstract ParticleStateLoaderSaver getStateLoaderSaver(File loadFile, File saveFile);
+
+    /**
+     * Get an instance of StateLoader/Saver that keeps the state in memory. Only the part of the
+     * model graph that is connected to the given chain is saved so a state saved from one chain
+     * can be loaded into a replicate of that chain (i.e., one parsed from the same XML).
      * @return the StateLoaderSaver
      */
-    public abstract StateLoaderSaver getStateLoaderSaver(File loadFile, File saveFile);
+    public abstract StateLoaderSaver getStateLoaderSaver();
 
     // Set this to a concrete instance to provide these classes to the MarkovChain
     public static Factory INSTANCE;
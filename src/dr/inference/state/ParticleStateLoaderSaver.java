@@ -0,0 +1,58 @@
+/*
+ * ParticleStateLoaderSaver.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.state;
+
+import dr.inference.markovchain.MarkovChain;
+
+/**
+ * A saved state for a particle of a sequential Monte Carlo (SMC) sampler. As well as the state
+ * this keeps the particle's (log) importance weight so weights accumulate over the generations
+ * until the particles are resampled.
+ *
+ * @author Andrew Rambaut
+ */
+public interface ParticleStateLoaderSaver extends StateLoaderSaver {
+
+    /**
+     * Loads the state as StateLoader.loadState and also returns the particle's log weight
+     * (zero if the state was saved without one).
+     * @param markovChain the MarkovChain object
+     * @param savedLnL    returns the lnL the state was saved with
+     * @param logWeight   returns the log weight of the particle
+     * @return the state number
+     */
+    long loadState(MarkovChain markovChain, double[] savedLnL, double[] logWeight);
+
+    /**
+     * Saves the state as StateSaver.saveState along with the particle's log weight.
+     * @param markovChain the MarkovChain object
+     * @param state       the current state number
+     * @param lnL         the current lnL
+     * @param logWeight   the log weight of the particle
+     * @return success
+     */
+    boolean saveState(MarkovChain markovChain, long state, double lnL, double logWeight);
+}
@@ -0,0 +1,243 @@
+/*
+ * OnlineBatchMeans.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.trace;
+
+/**
+ * Estimates the effective sample size of a trace as it is sampled using batch means in a fixed
+ * amount of memory. The samples are accumulated into batches (keeping the mean and sum of
+ * squared deviations of each) and when all the batches are full adjacent pairs are merged and
+ * the batch size doubles, so there are always between MAX_BATCH_COUNT / 2 and MAX_BATCH_COUNT
+ * complete batches. A burnin can be removed afterwards as a fraction of the batches.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class OnlineBatchMeans {
+
+    public static final int MAX_BATCH_COUNT = 256;
+
+    // the fewest batches from which the ESS or R-hat is calculated
+    public static final int MIN_BATCH_COUNT = 16;
+
+    public OnlineBatchMeans() {
+    }
+
+    /**
+     * Add the next sample of the trace.
+     */
+    public synchronized void add(double value) {
+        currentCount++;
+        double delta = value - currentMean;
+        currentMean += delta / currentCount;
+        currentSS += delta * (value - currentMean);
+
+        if (currentCount == batchSize) {
+            means[batchCount] = currentMean;
+            sumSquares[batchCount] = currentSS;
+            batchCount++;
+            currentCount = 0;
+            currentMean = 0.0;
+            currentSS = 0.0;
+
+            if (batchCount == MAX_BATCH_COUNT) {
+                for (int i = 0; i < MAX_BATCH_COUNT / 2; i++) {
+                    double d = means[2 * i + 1] - means[2 * i];
+                    sumSquares[i] = sumSquares[2 * i] + sumSquares[2 * i + 1] + d * d * batchSize / 2;
+                    means[i] = (means[2 * i] + means[2 * i + 1]) / 2;
+                }
+                batchCount = MAX_BATCH_COUNT / 2;
+                batchSize *= 2;
+            }
+        }
+        sampleCount++;
+    }
+
+    /**
+     * @return the number of samples added
+     */
+    public synchronized long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @param burnin the fraction of the samples to discard
+     * @return the mean of the complete batches after the burnin
+     */
+    public double getMean(double burnin) {
+        return getSummary(burnin)[MEAN];
+    }
+
+    /**
+     * @param burnin the fraction of the samples to discard
+     * @return the variance of the samples in the complete batches after the burnin
+     */
+    public double getVariance(double burnin) {
+        return getSummary(burnin)[VARIANCE];
+    }
+
+    /**
+     * The effective sample size is the number of samples times their variance divided by the
+     * asymptotic variance of the mean (which is estimated by the batch size times the variance
+     * of the batch means).
+     *
+     * @param burnin the fraction of the samples to discard
+     * @return the ESS or NaN if there aren't enough samples or the trace is constant
+     */
+    public double getESS(double burnin) {
+        double[] summary = getSummary(burnin);
+        if (summary[BATCH_VARIANCE] == 0.0) {
+            return Double.NaN;
+        }
+        return summary[COUNT] * summary[VARIANCE] / (summary[BATCH_SIZE] * summary[BATCH_VARIANCE]);
+    }
+
+    /**
+     * @param burnin the fraction of the samples to discard
+     * @return the integrated autocorrelation time in samples (the number of samples per effective sample)
+     */
+    public double getAutoCorrelationTime(double burnin) {
+        double[] summary = getSummary(burnin);
+        if (summary[VARIANCE] == 0.0) {
+            return Double.NaN;
+        }
+        return summary[BATCH_SIZE] * summary[BATCH_VARIANCE] / summary[VARIANCE];
+    }
+
+    /**
+     * Calculates the potential scale reduction factor (R-hat) of Gelman et al. (2013) with each
+     * chain split into two halves (so it can be used with a single chain). The halves are made
+     * of whole batches so the chains may have different lengths.
+     *
+     * @param chains the batch means of the same statistic in each chain
+     * @param burnin the fraction of the samples to discard
+     * @return the split R-hat or NaN if there aren't enough samples
+     */
+    public static double getSplitRHat(OnlineBatchMeans[] chains, double burnin) {
+        int m = chains.length * 2;
+        double[] means = new double[m];
+        double[] variances = new double[m];
+        double meanLength = 0.0;
+
+        for (int i = 0; i < chains.length; i++) {
+            synchronized (chains[i]) {
+                int first = chains[i].getFirstBatch(burnin);
+                int half = (chains[i].batchCount - first) / 2;
+                if (half < MIN_BATCH_COUNT / 2) {
+                    return Double.NaN;
+                }
+                for (int h = 0; h < 2; h++) {
+                    double[] summary = chains[i].summarize(first + h * half, first + (h + 1) * half);
+                    means[i * 2 + h] = summary[MEAN];
+                    variances[i * 2 + h] = summary[VARIANCE];
+                    meanLength += summary[COUNT];
+                }
+            }
+        }
+        meanLength /= m;
+
+        double grandMean = 0.0;
+        double w = 0.0;
+        for (int k = 0; k < m; k++) {
+            grandMean += means[k];
+            w += variances[k];
+        }
+        grandMean /= m;
+        w /= m;
+
+        if (w == 0.0) {
+            return Double.NaN;
+        }
+
+        double b = 0.0;
+        for (int k = 0; k < m; k++) {
+            double d = means[k] - grandMean;
+            b += d * d;
+        }
+        b *= meanLength / (m - 1);
+
+        double varPlus = ((meanLength - 1) / meanLength) * w + b / meanLength;
+        return Math.sqrt(varPlus / w);
+    }
+
+    private int getFirstBatch(double burnin) {
+        return (int) (batchCount * burnin);
+    }
+
+    private synchronized double[] getSummary(double burnin) {
+        int first = getFirstBatch(burnin);
+        if (batchCount - first < MIN_BATCH_COUNT) {
+            return new double[]{Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN};
+        }
+        return summarize(first, batchCount);
+    }
+
+    /**
+     * Combines the complete batches from 'from' to 'to' (exclusive).
+     */
+    private double[] summarize(int from, int to) {
+        int n = to - from;
+
+        double mean = 0.0;
+        for (int i = from; i < to; i++) {
+            mean += means[i];
+        }
+        mean /= n;
+
+        double ss = 0.0;
+        double batchSS = 0.0;
+        for (int i = from; i < to; i++) {
+            double d = means[i] - mean;
+            ss += sumSquares[i];
+            batchSS += d * d;
+        }
+
+        double count = (double) n * batchSize;
+        double[] summary = new double[5];
+        summary[COUNT] = count;
+        summary[MEAN] = mean;
+        summary[VARIANCE] = (ss + batchSS * batchSize) / (count - 1);
+        summary[BATCH_SIZE] = batchSize;
+        summary[BATCH_VARIANCE] = batchSS / (n - 1);
+        return summary;
+    }
+
+    private static final int COUNT = 0;
+    private static final int MEAN = 1;
+    private static final int VARIANCE = 2;
+    private static final int BATCH_SIZE = 3;
+    private static final int BATCH_VARIANCE = 4;
+
+    private final double[] means = new double[MAX_BATCH_COUNT];
+    private final double[] sumSquares = new double[MAX_BATCH_COUNT];
+    private int batchCount = 0;
+    private long batchSize = 1;
+
+    private long currentCount = 0;
+    private double currentMean = 0.0;
+    private double currentSS = 0.0;
+
+    private long sampleCount = 0;
+}
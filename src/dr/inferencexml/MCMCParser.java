@@ -29,6 +29,7 @@ import dr.inference.loggers.Logger;
 import dr.inference.markovchain.MarkovChain;
 import dr.inference.mcmc.MCMC;
 import dr.inference.mcmc.MCMCOptions;
+import dr.inference.mcmc.OnlineDiagnostics;
 import dr.inference.model.CompoundLikelihood;
 import dr.inference.model.Likelihood;
 import dr.inference.model.Model;
@@ -37,7 +38,7 @@ import dr.inference.operators.OperatorSchedule;
 import dr.inference.smc.SMC;
 import dr.inference.smc.SMCOptions;
 import dr.inference.state.Factory;
-import dr.inference.state.StateLoaderSaver;
+import dr.inference.state.ParticleStateLoaderSaver;
 import dr.xml.*;
 
 import java.io.File;
@@ -172,6 +173,12 @@ public class MCMCParser extends AbstractXMLObjectParser {
 
         mcmc.init(options, likelihood, opsched, loggerArray);
 
+        for (int i = 0; i < xo.getChildCount(); i++) {
+            Object child = xo.getChild(i);
+            if (child instanceof OnlineDiagnostics) {
+                mcmc.addDiagnostics((OnlineDiagnostics) child);
+            }
+        }
 
         MarkovChain mc = mcmc.getMarkovChain();
         double initialScore = mc.getCurrentScore();
@@ -200,7 +207,7 @@ public class MCMCParser extends AbstractXMLObjectParser {
      */
     private SMC parseSMC(String id, XMLObject xo) throws XMLParseException {
 
-        List<StateLoaderSaver> particleStates = new ArrayList<StateLoaderSaver>();
+        List<ParticleStateLoaderSaver> particleStates = new ArrayList<ParticleStateLoaderSaver>();
 
         String particleFolder = System.getProperty("smc.particle_folder");
         File folder = new File(particleFolder);
@@ -233,7 +240,18 @@ public class MCMCParser extends AbstractXMLObjectParser {
 
         long chainLength = xo.getLongIntegerAttribute(CHAIN_LENGTH);
 
-        SMCOptions options = new SMCOptions(chainLength);
+        int threadCount = xo.getAttribute(PARTICLE_THREADS, 1);
+        if (threadCount < 1) {
+            throw new XMLParseException("The " + PARTICLE_THREADS + " attribute must be at least 1");
+        }
+
+        double resampleThreshold = xo.getAttribute(RESAMPLE_THRESHOLD, SMCOptions.DEFAULT_RESAMPLE_THRESHOLD);
+        if (resampleThreshold < 0.0 || resampleThreshold > 1.0) {
+            throw new XMLParseException("The " + RESAMPLE_THRESHOLD + " attribute must be between 0 and 1");
+        }
+
+        SMCOptions options = new SMCOptions(chainLength, threadCount, resampleThreshold);
+        smc.setOrdinal(Replicator.getOrdinal(xo, SMC.class));
 
         OperatorSchedule opsched = (OperatorSchedule) xo.getChild(OperatorSchedule.class);
         Likelihood likelihood = (Likelihood) xo.getChild(Likelihood.class);
@@ -254,7 +272,8 @@ public class MCMCParser extends AbstractXMLObjectParser {
 
         java.util.logging.Logger.getLogger("dr.inference").info("\nCreating the SMC chain set:" +
                 "\n  particles = " + particleStates.size() +
-                "\n  chain length = " + options.getChainLength()
+                "\n  chain length = " + options.getChainLength() +
+                "\n  particle threads = " + options.getThreadCount()
         );
 
         smc.init(options, likelihood, opsched, loggerArray);
@@ -292,9 +311,12 @@ public class MCMCParser extends AbstractXMLObjectParser {
             AttributeRule.newBooleanRule(SPAWN, true),
             AttributeRule.newStringRule(NAME, true),
             AttributeRule.newStringRule(OPERATOR_ANALYSIS, true),
+            AttributeRule.newIntegerRule(PARTICLE_THREADS, true),
+            AttributeRule.newDoubleRule(RESAMPLE_THRESHOLD, true),
             new ElementRule(OperatorSchedule.class),
             new ElementRule(Likelihood.class),
             new ElementRule(Logger.class, 1, Integer.MAX_VALUE),
+            new ElementRule(OnlineDiagnostics.class, 0, Integer.MAX_VALUE),
     };
 
     public static final String ADAPTATION = "adaptation";
@@ -307,6 +329,8 @@ public class MCMCParser extends AbstractXMLObjectParser {
     public static final String MCMC = "mcmc";
     public static final String CHAIN_LENGTH = "chainLength";
     public static final String FULL_EVALUATION = "fullEvaluation";
+    public static final String PARTICLE_THREADS = "particleThreads";
+    public static final String RESAMPLE_THRESHOLD = "resampleThreshold";
     public static final String EVALUATION_THRESHOLD  = "evaluationThreshold";
     public static final String MIN_OPS_EVALUATIONS = "minOpsFullEvaluations";
     public static final String WEIGHT = "weight";
@@ -0,0 +1,134 @@
+/*
+ * OnlineDiagnosticsParser.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inferencexml;
+
+import dr.inference.loggers.LogColumn;
+import dr.inference.loggers.Loggable;
+import dr.inference.mcmc.OnlineDiagnostics;
+import dr.xml.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class OnlineDiagnosticsParser extends AbstractXMLObjectParser {
+
+    public static final String ONLINE_DIAGNOSTICS = "onlineDiagnostics";
+    public static final String SAMPLE_EVERY = "sampleEvery";
+    public static final String BURNIN = "burnin";
+    public static final String MIN_ESS = "minESS";
+    public static final String MAX_R_HAT = "maxRHat";
+    public static final String CHECK_EVERY = "checkEvery";
+    public static final String CHECKPOINT = "checkpoint";
+
+    public String getParserName() {
+        return ONLINE_DIAGNOSTICS;
+    }
+
+    public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+
+        long sampleEvery = xo.getAttribute(SAMPLE_EVERY, 1000L);
+        double burnin = xo.getAttribute(BURNIN, 0.1);
+        double minESS = xo.getAttribute(MIN_ESS, 0.0);
+        double maxRHat = xo.getAttribute(MAX_R_HAT, 1.01);
+        long checkEvery = xo.getAttribute(CHECK_EVERY, sampleEvery * 100);
+
+        if (sampleEvery < 1 || checkEvery < 1) {
+            throw new XMLParseException("The " + SAMPLE_EVERY + " and " + CHECK_EVERY + " attributes should be at least 1");
+        }
+        if (burnin < 0.0 || burnin >= 1.0) {
+            throw new XMLParseException("The " + BURNIN + " should be a fraction between 0 and 1");
+        }
+
+        File checkpoint = null;
+        if (xo.hasAttribute(CHECKPOINT)) {
+            checkpoint = XMLParser.getLogFile(xo, CHECKPOINT);
+        }
+
+        List<LogColumn> columns = new ArrayList<LogColumn>();
+        for (int i = 0; i < xo.getChildCount(); i++) {
+            Object child = xo.getChild(i);
+            if (child instanceof Loggable) {
+                for (LogColumn column : ((Loggable) child).getColumns()) {
+                    columns.add(column);
+                }
+            }
+        }
+
+        OnlineDiagnostics diagnostics = new OnlineDiagnostics(columns.toArray(new LogColumn[columns.size()]),
+                sampleEvery, burnin, minESS, maxRHat, checkEvery, checkpoint);
+
+        if (diagnostics.getColumnCount() == 0) {
+            throw new XMLParseException("The " + ONLINE_DIAGNOSTICS + " element has no numerical columns to monitor");
+        }
+
+        StringBuilder sb = new StringBuilder("Online diagnostics monitoring " + diagnostics.getColumnCount() +
+                " columns every " + sampleEvery + " states");
+        if (minESS > 0.0) {
+            sb.append("\n  the chain will stop when every ESS >= ").append(minESS)
+                    .append(" and R-hat <= ").append(maxRHat)
+                    .append(" (tested every ").append(checkEvery).append(" states)");
+            if (checkpoint != null) {
+                sb.append("\n  and the state will be saved to '").append(checkpoint.getName()).append("'");
+            }
+        }
+        Logger.getLogger("dr.inference").info(sb.toString());
+
+        return diagnostics;
+    }
+
+    //************************************************************************
+    // AbstractXMLObjectParser implementation
+    //************************************************************************
+
+    public XMLSyntaxRule[] getSyntaxRules() {
+        return rules;
+    }
+
+    private final XMLSyntaxRule[] rules = {
+            AttributeRule.newLongIntegerRule(SAMPLE_EVERY, true, "The number of states between samples (default 1000)"),
+            AttributeRule.newDoubleRule(BURNIN, true, "The fraction of the samples discarded as burnin (default 0.1)"),
+            AttributeRule.newDoubleRule(MIN_ESS, true, "Stop the chain when the ESS of every column reaches this value"),
+            AttributeRule.newDoubleRule(MAX_R_HAT, true, "The split R-hat of every column should also be below this value to stop (default 1.01)"),
+            AttributeRule.newLongIntegerRule(CHECK_EVERY, true, "The number of states between tests of the stopping rule (default 100 samples)"),
+            AttributeRule.newStringRule(CHECKPOINT, true, "A file to save the state to when the chain is stopped"),
+            new ElementRule(Loggable.class, 1, Integer.MAX_VALUE)
+    };
+
+    public String getParserDescription() {
+        return "Monitors the ESS and split R-hat of the given statistics as the chain runs, logs them as " +
+                "columns and optionally stops the chain when they reach a target";
+    }
+
+    public Class getReturnType() {
+        return OnlineDiagnostics.class;
+    }
+}
@@ -36,6 +36,7 @@ import dr.xml.*;
 
 import java.io.File;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Date;
 
 /**
@@ -115,6 +116,11 @@ public class LoggerParser extends AbstractXMLObjectParser {
 
         logger.setTitle(title);
 
+        if (!xo.hasAttribute(FILE_NAME) && System.getProperty(Replicator.REPLICATE_POSTFIX) != null) {
+            // replicates of the model graph don't log to the screen (it would be interleaved with the original's)
+            logger.setFormatters(new ArrayList<LogFormatter>());
+        }
+
         for (int i = 0; i < xo.getChildCount(); i++) {
 
             final Object child = xo.getChild(i);
@@ -0,0 +1,168 @@
+/*
+ * DistributedLikelihoodParser.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inferencexml.model;
+
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Parameter;
+import dr.inference.parallel.DistributedLikelihood;
+import dr.inference.parallel.LikelihoodClient;
+import dr.xml.*;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class DistributedLikelihoodParser extends AbstractXMLObjectParser implements RemoteParser {
+
+    public static final String DISTRIBUTED_LIKELIHOOD = "distributedLikelihood";
+    public static final String WORKER = "worker";
+    public static final String ADDRESS = "address";
+    public static final String LIKELIHOODS = "likelihoods";
+    public static final String TIMEOUT = "timeout";
+
+    public String getParserName() {
+        return DISTRIBUTED_LIKELIHOOD;
+    }
+
+    public Set<String> getRemoteIds(Element element) {
+        Set<String> ids = new HashSet<String>();
+        NodeList nodes = element.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Node node = nodes.item(i);
+            if (node instanceof Element && ((Element) node).getTagName().equals(WORKER)) {
+                StringTokenizer tokenizer = new StringTokenizer(((Element) node).getAttribute(LIKELIHOODS));
+                while (tokenizer.hasMoreTokens()) {
+                    ids.add(tokenizer.nextToken());
+                }
+            }
+        }
+        return ids;
+    }
+
+    public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+
+        long timeout = (long) (xo.getAttribute(TIMEOUT, 60.0) * 1000);
+
+        Logger logger = Logger.getLogger("dr.inference");
+        logger.info("Creating a distributed likelihood:");
+
+        List<LikelihoodClient> clients = new ArrayList<LikelihoodClient>();
+        Set<Parameter> parameters = new LinkedHashSet<Parameter>();
+        Set<TreeModel> trees = new LinkedHashSet<TreeModel>();
+
+        for (XMLObject cxo : xo.getAllChildren(WORKER)) {
+            String address = cxo.getStringAttribute(ADDRESS);
+            String host = "localhost";
+            int port;
+            try {
+                if (address.contains(":")) {
+                    host = address.substring(0, address.lastIndexOf(':'));
+                    port = Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+                } else {
+                    port = Integer.parseInt(address);
+                }
+            } catch (NumberFormatException nfe) {
+                throw new XMLParseException("The worker address, " + address + ", should be of the form host:port");
+            }
+
+            List<String> likelihoodIds = Arrays.asList(cxo.getStringArrayAttribute(LIKELIHOODS));
+            LikelihoodClient client = new LikelihoodClient(host, port, likelihoodIds);
+
+            try {
+                client.connect(timeout);
+
+                Parameter[] clientParameters = new Parameter[client.getParameterIds().size()];
+                for (int i = 0; i < clientParameters.length; i++) {
+                    clientParameters[i] = (Parameter) getComponent(client.getParameterIds().get(i), Parameter.class, client);
+                }
+                TreeModel[] clientTrees = new TreeModel[client.getTreeIds().size()];
+                for (int i = 0; i < clientTrees.length; i++) {
+                    clientTrees[i] = (TreeModel) getComponent(client.getTreeIds().get(i), TreeModel.class, client);
+                }
+                client.setComponents(clientParameters, clientTrees);
+
+                parameters.addAll(Arrays.asList(clientParameters));
+                trees.addAll(Arrays.asList(clientTrees));
+            } catch (IOException ioe) {
+                throw new XMLParseException("Unable to connect to likelihood worker at " + address + ": " + ioe.getMessage());
+            }
+
+            clients.add(client);
+
+            logger.info("  worker at " + client.getAddress() + " hosting " + likelihoodIds +
+                    " (" + client.getParameterIds().size() + " parameters, " + client.getTreeIds().size() + " trees)");
+        }
+
+        return new DistributedLikelihood(clients, new ArrayList<Parameter>(parameters), new ArrayList<TreeModel>(trees));
+    }
+
+    /**
+     * Find an object that a worker's likelihood depends on in the objects already parsed.
+     */
+    private Object getComponent(String id, Class type, LikelihoodClient client) throws XMLParseException {
+        XMLObject xo = getStore().get(id);
+        if (xo == null || !type.isInstance(xo.getNativeObject())) {
+            throw new XMLParseException("The likelihoods hosted by the worker at " + client.getAddress() +
+                    " depend on a " + type.getSimpleName() + " with id, " + id +
+                    ", which should be declared before the " + DISTRIBUTED_LIKELIHOOD + " element");
+        }
+        return xo.getNativeObject();
+    }
+
+    //************************************************************************
+    // AbstractXMLObjectParser implementation
+    //************************************************************************
+
+    public String getParserDescription() {
+        return "A likelihood which is the sum of likelihoods (i.e., data partitions) evaluated by worker " +
+                "processes (started with 'beast -worker PORT' using the same XML file). The likelihoods " +
+                "given by id for each worker are not created by this process and should only be referred " +
+                "to through this element.";
+    }
+
+    public Class getReturnType() {
+        return DistributedLikelihood.class;
+    }
+
+    public XMLSyntaxRule[] getSyntaxRules() {
+        return rules;
+    }
+
+    private final XMLSyntaxRule[] rules = {
+            AttributeRule.newDoubleRule(TIMEOUT, true, "The time (in seconds) to wait for workers to start"),
+            new ElementRule(WORKER, new XMLSyntaxRule[]{
+                    AttributeRule.newStringRule(ADDRESS, false, "The host:port of the worker"),
+                    AttributeRule.newStringArrayRule(LIKELIHOODS, false, "The ids of the likelihoods the worker hosts")
+            }, 1, Integer.MAX_VALUE)
+    };
+}
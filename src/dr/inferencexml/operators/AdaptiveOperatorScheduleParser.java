@@ -0,0 +1,118 @@
+/*
+ * AdaptiveOperatorScheduleParser.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inferencexml.operators;
+
+import dr.inference.model.Statistic;
+import dr.inference.operators.AdaptiveOperatorSchedule;
+import dr.inference.operators.MCMCOperator;
+import dr.xml.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class AdaptiveOperatorScheduleParser extends AbstractXMLObjectParser {
+
+    public static final String ADAPTIVE_OPERATOR_SCHEDULE = "adaptiveOperators";
+    public static final String ADAPTATION_LENGTH = "adaptationLength";
+    public static final String MAX_WEIGHT_FACTOR = "maxWeightFactor";
+    public static final String MIXING = "mixing";
+
+    public String getParserName() {
+        return ADAPTIVE_OPERATOR_SCHEDULE;
+    }
+
+    public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+
+        int useThreshold = xo.getAttribute(SimpleOperatorScheduleParser.USE_THRESHOLD, 1000);
+        double acceptanceThreshold = xo.getAttribute(SimpleOperatorScheduleParser.ACCEPTANCE_THRESHOLD, 0.0);
+        long adaptationLength = xo.getAttribute(ADAPTATION_LENGTH, (long) AdaptiveOperatorSchedule.DEFAULT_ADAPTATION_LENGTH);
+        double maxWeightFactor = xo.getAttribute(MAX_WEIGHT_FACTOR, AdaptiveOperatorSchedule.DEFAULT_MAX_WEIGHT_FACTOR);
+
+        if (adaptationLength < 1) {
+            throw new XMLParseException("The " + ADAPTATION_LENGTH + " should be at least 1");
+        }
+        if (maxWeightFactor < 1.0) {
+            throw new XMLParseException("The " + MAX_WEIGHT_FACTOR + " should be at least 1");
+        }
+
+        List<Statistic> statistics = new ArrayList<Statistic>();
+        if (xo.hasChildNamed(MIXING)) {
+            XMLObject cxo = xo.getChild(MIXING);
+            for (int i = 0; i < cxo.getChildCount(); i++) {
+                statistics.add((Statistic) cxo.getChild(i));
+            }
+        }
+
+        AdaptiveOperatorSchedule schedule = new AdaptiveOperatorSchedule(useThreshold, acceptanceThreshold,
+                adaptationLength, maxWeightFactor, statistics);
+
+        for (int i = 0; i < xo.getChildCount(); i++) {
+            Object child = xo.getChild(i);
+            if (child instanceof MCMCOperator) {
+                schedule.addOperator((MCMCOperator) child);
+            }
+        }
+
+        Logger.getLogger("dr.inference").info("Operator weights will be adapted to their time and " +
+                (statistics.isEmpty() ? "acceptance probability" : "mixing of " + statistics.size() + " statistics") +
+                " over the first " + adaptationLength + " states");
+
+        return schedule;
+    }
+
+    //************************************************************************
+    // AbstractXMLObjectParser implementation
+    //************************************************************************
+
+    public XMLSyntaxRule[] getSyntaxRules() {
+        return rules;
+    }
+
+    private final XMLSyntaxRule[] rules = {
+            AttributeRule.newLongIntegerRule(ADAPTATION_LENGTH, true, "The number of states over which the weights are adapted"),
+            AttributeRule.newDoubleRule(MAX_WEIGHT_FACTOR, true, "The maximum factor by which an operator's weight may change"),
+            AttributeRule.newDoubleRule(SimpleOperatorScheduleParser.ACCEPTANCE_THRESHOLD, true, "Acceptance rate below which an operator will be switched off"),
+            AttributeRule.newIntegerRule(SimpleOperatorScheduleParser.USE_THRESHOLD, true, "Minimum number of usage before testing acceptance threshold"),
+            new ElementRule(MIXING, new XMLSyntaxRule[]{
+                    new ElementRule(Statistic.class, 1, Integer.MAX_VALUE)
+            }, "Statistics whose squared jumps measure the mixing of each operator (otherwise the acceptance probability is used)", true),
+            new ElementRule(MCMCOperator.class, 1, Integer.MAX_VALUE)
+    };
+
+    public String getParserDescription() {
+        return "An operator schedule that adapts the operator weights to their computational cost and mixing " +
+                "over an initial period and then keeps them fixed";
+    }
+
+    public Class getReturnType() {
+        return AdaptiveOperatorSchedule.class;
+    }
+}
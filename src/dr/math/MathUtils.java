@@ -52,7 +52,47 @@ public class MathUtils {
 	 * MersenneTwisterFast class for access to a single instance of the class, that
 	 * has synchronization.
 	 */
-	private static final MersenneTwisterFast random = MersenneTwisterFast.DEFAULT_INSTANCE;
+	private static final MersenneTwisterFast defaultRandom = MersenneTwisterFast.DEFAULT_INSTANCE;
+
+	/**
+	 * Optional per-thread random number streams. If a stream has been registered for the
+	 * current thread (using setThreadSeed) then the static access methods below draw from
+	 * it rather than from the shared default instance. This allows chains that are run
+	 * concurrently within one JVM to each use an independent (and reproducible) stream.
+	 */
+	private static final ThreadLocal<MersenneTwisterFast> threadRandom = new ThreadLocal<MersenneTwisterFast>();
+	private static volatile boolean threadRandomInUse = false;
+
+	private static MersenneTwisterFast getRandom() {
+		if (threadRandomInUse) {
+			final MersenneTwisterFast random = threadRandom.get();
+			if (random != null) {
+				return random;
+			}
+		}
+		return defaultRandom;
+	}
+
+	/**
+	 * Register a new random number stream, initialized with the given seed, to be used by all
+	 * the static methods of this class when called from the current thread.
+	 *
+	 * @param seed the (non-zero) seed for this thread's stream
+	 */
+	public static void setThreadSeed(long seed) {
+		final MersenneTwisterFast random = new MersenneTwisterFast();
+		random.setSeed(seed);
+		threadRandom.set(random);
+		threadRandomInUse = true;
+	}
+
+	/**
+	 * Remove the random number stream registered for the current thread (if any) so that
+	 * it reverts to the shared default instance.
+	 */
+	public static void clearThreadSeed() {
+		threadRandom.remove();
+	}
 
 	// Chooses one category if a cumulative probability distribution is given
 	public static int randomChoice(double[] cf) {
@@ -174,6 +214,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static long getSeed() {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.getSeed();
 		}
@@ -183,6 +224,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static void setSeed(long seed) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			random.setSeed(seed);
 		}
@@ -192,6 +234,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static byte nextByte() {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextByte();
 		}
@@ -201,6 +244,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static boolean nextBoolean() {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextBoolean();
 		}
@@ -210,6 +254,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static void nextBytes(byte[] bs) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			random.nextBytes(bs);
 		}
@@ -219,6 +264,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static char nextChar() {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextChar();
 		}
@@ -228,6 +274,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static double nextGaussian() {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextGaussian();
 		}
@@ -237,6 +284,7 @@ public class MathUtils {
 	//Variance = alpha / (lambda*lambda)
 
 	public static double nextGamma(double alpha, double lambda) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextGamma(alpha, lambda);
 		}
@@ -258,6 +306,7 @@ public class MathUtils {
 	 * @return a pseudo random double precision floating point number in [01)
 	 */
 	public static double nextDouble() {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextDouble();
 		}
@@ -274,6 +323,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static double nextExponential(double lambda) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return -1.0 * Math.log(1 - random.nextDouble()) / lambda;
 		}
@@ -283,6 +333,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static double nextInverseGaussian(double mu, double lambda) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			/* CODE TAKEN FROM WIKIPEDIA. TESTING DONE WITH RESULTS GENERATED IN R AND LOOK COMPARABLE */
 			double v = random.nextGaussian();   // sample from a normal distribution with a mean of 0 and 1 standard deviation
@@ -302,6 +353,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static float nextFloat() {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextFloat();
 		}
@@ -311,6 +363,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static long nextLong() {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextLong();
 		}
@@ -320,6 +373,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static short nextShort() {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextShort();
 		}
@@ -329,6 +383,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static int nextInt() {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextInt();
 		}
@@ -338,6 +393,7 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static int nextInt(int n) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.nextInt(n);
 		}
@@ -356,6 +412,7 @@ public class MathUtils {
 	 * Shuffles an array.
 	 */
 	public static void shuffle(int[] array) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			random.shuffle(array);
 		}
@@ -365,6 +422,7 @@ public class MathUtils {
 	 * Shuffles an array. Shuffles numberOfShuffles times
 	 */
 	public static void shuffle(int[] array, int numberOfShuffles) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			random.shuffle(array, numberOfShuffles);
 		}
@@ -376,6 +434,7 @@ public class MathUtils {
 	 * @param l length of the array required.
 	 */
 	public static int[] shuffled(int l) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.shuffled(l);
 		}
@@ -383,6 +442,7 @@ public class MathUtils {
 
 
 	public static int[] sampleIndicesWithReplacement(int length) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			int[] result = new int[length];
 			for (int i = 0; i < length; i++)
@@ -395,6 +455,7 @@ public class MathUtils {
 	 * Permutes an array.
 	 */
 	public static void permute(int[] array) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			random.permute(array);
 		}
@@ -406,6 +467,7 @@ public class MathUtils {
 	 * @param l length of the array required.
 	 */
 	public static int[] permuted(int l) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.permuted(l);
 		}
@@ -451,12 +513,14 @@ public class MathUtils {
 	}
 
 	public static int[] getRandomState() {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			return random.getRandomState();
 		}
 	}
 
 	public static void setRandomState(int[] rngState) {
+		final MersenneTwisterFast random = getRandom();
 		synchronized (random) {
 			random.setRandomState(rngState);
 		}
@@ -0,0 +1,180 @@
+/*
+ * BackgroundWriter.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A writer that hands blocks of characters to a dedicated thread which writes them to the
+ * target (so compressing the output doesn't hold up the thread producing it). Errors from the
+ * target are thrown by the next write, flush or close.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class BackgroundWriter extends Writer {
+
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final int QUEUE_LENGTH = 16;
+
+    private static final char[] FLUSH = new char[0];
+    private static final char[] END_OF_STREAM = new char[0];
+
+    public BackgroundWriter(final Writer target) {
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume(target);
+            }
+        }, "BackgroundWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void consume(Writer target) {
+        try {
+            char[] block = queue.take();
+            while (block != END_OF_STREAM) {
+                if (error == null) {
+                    try {
+                        if (block == FLUSH) {
+                            target.flush();
+                        } else {
+                            target.write(block, 0, block.length);
+                        }
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                }
+                block = queue.take();
+            }
+            target.close();
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            }
+        } catch (InterruptedException e) {
+            error = new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        checkOpen();
+        while (len > 0) {
+            int count = Math.min(len, BLOCK_SIZE - position);
+            System.arraycopy(cbuf, off, buffer, position, count);
+            position += count;
+            off += count;
+            len -= count;
+            if (position == BLOCK_SIZE) {
+                put(buffer);
+                buffer = new char[BLOCK_SIZE];
+                position = 0;
+            }
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        checkOpen();
+        while (len > 0) {
+            int count = Math.min(len, BLOCK_SIZE - position);
+            str.getChars(off, off + count, buffer, position);
+            position += count;
+            off += count;
+            len -= count;
+            if (position == BLOCK_SIZE) {
+                put(buffer);
+                buffer = new char[BLOCK_SIZE];
+                position = 0;
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        putPartialBlock();
+        put(FLUSH);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        putPartialBlock();
+        put(END_OF_STREAM);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void putPartialBlock() throws IOException {
+        if (position > 0) {
+            char[] block = new char[position];
+            System.arraycopy(buffer, 0, block, 0, position);
+            put(block);
+            position = 0;
+        }
+    }
+
+    private void put(char[] block) throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        try {
+            queue.put(block);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private final Thread thread;
+    private final BlockingQueue<char[]> queue = new ArrayBlockingQueue<char[]>(QUEUE_LENGTH);
+    private volatile IOException error = null;
+    private boolean closed = false;
+
+    private char[] buffer = new char[BLOCK_SIZE];
+    private int position = 0;
+}
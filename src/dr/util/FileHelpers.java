@@ -26,6 +26,8 @@
 package dr.util;
 
 import java.io.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * @author Joseph Heled
@@ -99,6 +101,42 @@ public class FileHelpers {
         return getFile(fileName, null);
     }
 
+    private static final int GZIP_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Opens a file for reading, decompressing it if it is gzipped (recognised by the gzip
+     * header rather than the file name).
+     *
+     * @param file the file
+     * @return a reader
+     * @throws IOException
+     */
+    public static Reader getInputReader(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), GZIP_BUFFER_SIZE);
+        in.mark(2);
+        int magic = in.read() | (in.read() << 8);
+        in.reset();
+        if (magic == GZIPInputStream.GZIP_MAGIC) {
+            in = new GZIPInputStream(in, GZIP_BUFFER_SIZE);
+        }
+        return new InputStreamReader(in);
+    }
+
+    /**
+     * Opens a file for writing, compressing it if the name ends with '.gz'.
+     *
+     * @param file the file
+     * @return a writer
+     * @throws IOException
+     */
+    public static Writer getOutputWriter(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        if (file.getName().endsWith(".gz")) {
+            out = new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+        }
+        return new OutputStreamWriter(new BufferedOutputStream(out, GZIP_BUFFER_SIZE));
+    }
+
     // directory where beast xml file resides
     private static File masterDirectory = null;
 
@@ -0,0 +1,161 @@
+/*
+ * PrefetchReader.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A reader that reads (and decompresses) its source ahead of the consumer on another thread
+ * into a bounded queue of blocks. Several of these can share an Executor to decode a set of
+ * files concurrently - as long as they are submitted in the order they are to be read the
+ * reader being consumed always has a running producer.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public class PrefetchReader extends Reader {
+
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final int QUEUE_LENGTH = 16;
+
+    private static final char[] END_OF_STREAM = new char[0];
+
+    /**
+     * Starts reading the source on a new daemon thread.
+     */
+    public PrefetchReader(Reader source) {
+        this(source, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                Thread thread = new Thread(command, "PrefetchReader");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        });
+    }
+
+    /**
+     * Starts reading the source on a thread provided by the executor.
+     */
+    public PrefetchReader(final Reader source, Executor executor) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                produce(source);
+            }
+        });
+    }
+
+    private void produce(Reader source) {
+        try {
+            char[] buffer = new char[BLOCK_SIZE];
+            int length;
+            while (!closed) {
+                length = source.read(buffer, 0, BLOCK_SIZE);
+                if (length < 0) {
+                    break;
+                }
+                if (length > 0) {
+                    put(Arrays.copyOf(buffer, length));
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            error = new InterruptedIOException(e.getMessage());
+        } finally {
+            try {
+                source.close();
+            } catch (IOException e) {
+                // already finished with it
+            }
+            try {
+                put(END_OF_STREAM);
+            } catch (InterruptedException e) {
+                // the consumer will see the error or the end
+            }
+        }
+    }
+
+    private void put(char[] block) throws InterruptedException {
+        while (!closed) {
+            if (queue.offer(block, 100, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (block == END_OF_STREAM) {
+            return -1;
+        }
+        if (block == null || position == block.length) {
+            try {
+                block = queue.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException(e.getMessage());
+            }
+            position = 0;
+            if (block == END_OF_STREAM) {
+                if (error != null) {
+                    throw error;
+                }
+                return -1;
+            }
+        }
+        int count = Math.min(len, block.length - position);
+        System.arraycopy(block, position, cbuf, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        queue.clear();
+    }
+
+    private final BlockingQueue<char[]> queue = new ArrayBlockingQueue<char[]>(QUEUE_LENGTH);
+    private volatile boolean closed = false;
+    private volatile IOException error = null;
+
+    private char[] block = null;
+    private int position = 0;
+}
@@ -0,0 +1,114 @@
+/*
+ * SharedThreadPool.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.util;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A pool of daemon threads shared by the models that split a single calculation between threads.
+ * Its size is given by the 'thread.count' property (set by the -threads option of BEAST) as for
+ * the compound likelihoods: if this is not set (or is negative) there is a thread for each
+ * processor and if it is zero the calculations aren't split at all.
+ *
+ * Tasks submitted to the pool must not themselves wait for other tasks in the pool.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public final class SharedThreadPool {
+
+    public static final String THREAD_COUNT = "thread.count";
+
+    private SharedThreadPool() {
+        // static methods only
+    }
+
+    /**
+     * @return the number of threads a calculation may be split between (at least 1)
+     */
+    public static int getThreadCount() {
+        String property = System.getProperty(THREAD_COUNT);
+        if (property != null) {
+            try {
+                int threadCount = Integer.parseInt(property.trim());
+                if (threadCount >= 0 && threadCount <= MAX_THREAD_COUNT) {
+                    return Math.max(threadCount, 1);
+                }
+            } catch (NumberFormatException nfe) {
+                // use the default
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return the shared pool (created with getThreadCount() threads when first needed)
+     */
+    public static synchronized ExecutorService getPool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(getThreadCount(), new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SharedThreadPool");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return pool;
+    }
+
+    /**
+     * Waits for all the tasks to finish. A RuntimeException thrown by a task is thrown here.
+     *
+     * @param futures     the futures of the tasks
+     * @param description what the tasks are doing (for the message if the wait is interrupted)
+     */
+    public static void waitFor(List<? extends Future<?>> futures, String description) {
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while " + description);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // as for the compound likelihood
+    private static final int MAX_THREAD_COUNT = 1000;
+
+    private static ExecutorService pool = null;
+}
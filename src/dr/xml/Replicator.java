@@ -0,0 +1,118 @@
+/*
+ * Replicator.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.xml;
+
+import java.util.*;
+
+/**
+ * Provides independent replicates of objects defined in the XML file currently being run.
+ * Each replicate is created by parsing the file again so it has its own, fully independent,
+ * model graph (parameters, models, likelihoods and operators). Log files opened by a replicate
+ * are given the postfix REPLICATE_POSTFIX + index so they don't clash with the original.
+ *
+ * @author Andrew Rambaut
+ * @version $Id$
+ */
+public abstract class Replicator {
+
+    public static final String REPLICATE_POSTFIX = "replicate.postfix";
+
+    /**
+     * Parse the XML file again up to the given top-level object of the given class and return it.
+     *
+     * @param target  the class of the object to return
+     * @param ordinal the number of top-level objects of this class that precede the one required
+     * @param index   the index of this replicate (used for naming output files, should be > 0)
+     * @return the new replicate
+     * @throws XMLParseException if the file can't be parsed or doesn't contain such an object
+     */
+    public <T> T replicate(Class<T> target, int ordinal, int index) throws XMLParseException {
+        return replicate(target, ordinal, index, true);
+    }
+
+    /**
+     * As replicate(target, ordinal, index) but the replicate's own logs are only written if
+     * logToFiles is true. Replicates that report their results back to the original object
+     * (rather than running as independent chains) should pass false.
+     *
+     * @param target     the class of the object to return
+     * @param ordinal    the number of top-level objects of this class that precede the one required
+     * @param index      the index of this replicate (used for naming output files, should be > 0)
+     * @param logToFiles whether the loggers of the replicate write their output
+     * @return the new replicate
+     * @throws XMLParseException if the file can't be parsed or doesn't contain such an object
+     */
+    public abstract <T> T replicate(Class<T> target, int ordinal, int index, boolean logToFiles) throws XMLParseException;
+
+    /**
+     * @return the number of top-level elements preceding the given one that have produced objects
+     * of the given class. This is the ordinal to pass to replicate to obtain a copy of the object
+     * currently being parsed from xo.
+     */
+    public static int getOrdinal(XMLObject xo, Class target) {
+        int ordinal = 0;
+        XMLObject parent = xo.getParent();
+        if (parent != null) {
+            for (int i = 0; i < parent.getChildCount(); i++) {
+                Object child = parent.getRawChild(i);
+                if (child instanceof XMLObject && target.isInstance(((XMLObject) child).getNativeObject())) {
+                    ordinal++;
+                }
+            }
+        }
+        return ordinal;
+    }
+
+    /**
+     * Record objects that belong to replicates (so they can be distinguished from the originals in
+     * global registers such as Parameter.CONNECTED_PARAMETER_SET).
+     */
+    protected static void addReplicatedObjects(Collection<?> objects) {
+        synchronized (REPLICATED_OBJECTS) {
+            REPLICATED_OBJECTS.addAll(objects);
+        }
+    }
+
+    /**
+     * @return the objects in the collection that don't belong to a replicate, in the same order.
+     */
+    public static <T> List<T> getOriginalObjects(Collection<T> objects) {
+        List<T> originals = new ArrayList<T>();
+        synchronized (REPLICATED_OBJECTS) {
+            for (T object : objects) {
+                if (!REPLICATED_OBJECTS.contains(object)) {
+                    originals.add(object);
+                }
+            }
+        }
+        return originals;
+    }
+
+    private static final Set<Object> REPLICATED_OBJECTS = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+    // Set this to a concrete instance to allow objects to create replicates of themselves
+    public static Replicator INSTANCE;
+}
@@ -73,9 +73,9 @@ public class XMLParser {
         String[] parserNames = parser.getParserNames();
 
         for (String parserName : parserNames) {
-            XMLObjectParser oldParser = parserStore.get(parserName);
-            if (oldParser != null) {
+            if (hasParser(parserName)) {
                 if (!canReplace) {
+                    XMLObjectParser oldParser = getParser(parserName);
                     throw new IllegalArgumentException("New parser (" + parser.getParserName()
                             + ") in {" + parser.getReturnType() + "} cannot replace existing parser ("
                             + oldParser.getParserName() + ") in {" + oldParser.getReturnType() + "}");
@@ -83,28 +83,130 @@ public class XMLParser {
                     replaced = true;
                 }
             }
+            lazyParserStore.remove(parserName);
             parserStore.put(parserName, parser);
         }
 
         return replaced;
     }
 
+    /**
+     * Creates a parser when it is first needed. This allows parsers to be registered by name
+     * (e.g., from an index built at compile time) without loading their classes.
+     */
+    public interface ParserFactory {
+        XMLObjectParser createParser() throws Exception;
+    }
+
+    /**
+     * Registers a parser for the given element names that will be created by the factory when
+     * one of these elements is first parsed.
+     *
+     * @return true if this replaced an existing parser
+     * @throws IllegalArgumentException if one of the names is already taken and canReplace is false
+     */
+    public boolean addXMLObjectParserFactory(String[] parserNames, ParserFactory factory, boolean canReplace) {
+
+        boolean replaced = false;
+        for (String parserName : parserNames) {
+            if (hasParser(parserName)) {
+                if (!canReplace) {
+                    throw new IllegalArgumentException("New parser for <" + parserName
+                            + "> cannot replace existing parser");
+                }
+                replaced = true;
+            }
+        }
+
+        LazyParser lazyParser = new LazyParser(factory);
+        for (String parserName : parserNames) {
+            parserStore.remove(parserName);
+            lazyParserStore.put(parserName, lazyParser);
+        }
+        lazyParserCount++;
+
+        return replaced;
+    }
+
+    public boolean hasParser(String name) {
+        return parserStore.containsKey(name) || lazyParserStore.containsKey(name);
+    }
+
     public Iterator getParserNames() {
-        return parserStore.keySet().iterator();
+        Set<String> parserNames = new TreeSet<String>(new ParserComparator());
+        parserNames.addAll(parserStore.keySet());
+        parserNames.addAll(lazyParserStore.keySet());
+        return parserNames.iterator();
     }
 
     public XMLObjectParser getParser(String name) {
-        return parserStore.get(name);
+        XMLObjectParser parser = parserStore.get(name);
+        if (parser == null) {
+            LazyParser lazyParser = lazyParserStore.remove(name);
+            if (lazyParser != null) {
+                parser = lazyParser.getParser(name);
+                parserStore.put(name, parser);
+            }
+        }
+        return parser;
     }
 
     public Iterator getParsers() {
+        // the parsers are all needed so create any that haven't been yet
+        for (String name : new ArrayList<String>(lazyParserStore.keySet())) {
+            getParser(name);
+        }
         return parserStore.values().iterator();
     }
 
+    private class LazyParser {
+        LazyParser(ParserFactory factory) {
+            this.factory = factory;
+        }
+
+        XMLObjectParser getParser(String name) {
+            if (parser == null) {
+                try {
+                    parser = factory.createParser();
+                } catch (Exception e) {
+                    throw new RuntimeException("Failed to load parser for <" + name + ">: " + e.getMessage(), e);
+                }
+                lazyParsersLoaded++;
+            }
+            return parser;
+        }
+
+        private final ParserFactory factory;
+        private XMLObjectParser parser = null;
+    }
+
     public Iterator getThreads() {
         return threads.iterator();
     }
 
+    /**
+     * Sets the time taken to set up this parser (i.e., to register the element parsers) to
+     * be included in the startup report.
+     *
+     * @param setupTime the time in nanoseconds
+     */
+    protected void setSetupTime(long setupTime) {
+        this.setupTime = setupTime;
+    }
+
+    /**
+     * Logs the time taken to set up the parsers, read the XML document and create the objects
+     * up to the point at which the first analysis is run.
+     */
+    private void reportStartupTimes() {
+        startupReported = true;
+        double creationTime = (System.nanoTime() - creationStartTime) / 1.0E9;
+        java.util.logging.Logger.getLogger("dr.xml").info(String.format(
+                "\nStartup: setting up parsers %.3fs, reading XML %.3fs, creating objects %.3fs",
+                setupTime / 1.0E9, readTime / 1.0E9, creationTime)
+                + (lazyParserCount > 0 ? " (" + lazyParsersLoaded + " of " + lazyParserCount + " indexed parsers loaded)" : ""));
+    }
+
     public void storeObject(String name, Object object) {
 
         XMLObject xo = new XMLObject(null, null /*, objectStore*/);
@@ -130,6 +232,69 @@ public class XMLParser {
             org.xml.sax.SAXException,
             dr.xml.XMLParseException,
             javax.xml.parsers.ParserConfigurationException {
+        skipUnreferencedElements = false;
+        return parseTarget(reader, target, 0);
+    }
+
+    /**
+     * As parse(reader, target) but returns the object of the given class that has
+     * 'ordinal' objects of the same class before it. This is used to create replicates
+     * of objects so top-level elements that can't produce the target and aren't referred
+     * to (directly or indirectly) by an element that can are skipped as these are
+     * generally analyses, reports or loggers that would be repeated.
+     *
+     * @param reader  the reader
+     * @param target  the target class
+     * @param ordinal the number of objects of the target class to skip
+     * @return
+     * @throws java.io.IOException
+     * @throws org.xml.sax.SAXException
+     * @throws dr.xml.XMLParseException
+     * @throws javax.xml.parsers.ParserConfigurationException
+     *
+     */
+    public Object parse(Reader reader, Class target, int ordinal)
+            throws java.io.IOException,
+            org.xml.sax.SAXException,
+            dr.xml.XMLParseException,
+            javax.xml.parsers.ParserConfigurationException {
+        return parse(reader, target, ordinal, true);
+    }
+
+    /**
+     * As parse(reader, target, ordinal) but if logToFiles is false then any files (or
+     * screen logs) opened by the target are discarded. Files opened by the top-level
+     * elements that the target depends on (i.e., the loggers of an MCMC element that
+     * provides the target's operators) are always discarded.
+     *
+     * @param reader     the reader
+     * @param target     the target class
+     * @param ordinal    the number of objects of the target class to skip
+     * @param logToFiles whether the target's logs should be written
+     * @return
+     * @throws java.io.IOException
+     * @throws org.xml.sax.SAXException
+     * @throws dr.xml.XMLParseException
+     * @throws javax.xml.parsers.ParserConfigurationException
+     *
+     */
+    public Object parse(Reader reader, Class target, int ordinal, boolean logToFiles)
+            throws java.io.IOException,
+            org.xml.sax.SAXException,
+            dr.xml.XMLParseException,
+            javax.xml.parsers.ParserConfigurationException {
+        skipUnreferencedElements = true;
+        this.logToFiles = logToFiles;
+        return parseTarget(reader, target, ordinal);
+    }
+
+    private Object parseTarget(Reader reader, Class target, int ordinal)
+            throws java.io.IOException,
+            org.xml.sax.SAXException,
+            dr.xml.XMLParseException,
+            javax.xml.parsers.ParserConfigurationException {
+
+        targetsToSkip = ordinal;
 
         InputSource in = new InputSource(reader);
         javax.xml.parsers.DocumentBuilderFactory documentBuilderFactory = javax.xml.parsers.DocumentBuilderFactory.newInstance();
@@ -140,6 +305,12 @@ public class XMLParser {
         Element e = document.getDocumentElement();
         if (e.getTagName().equals("beast")) {
 
+            findRemoteIds(e);
+
+            if (skipUnreferencedElements) {
+                requiredElements = findRequiredElements(e, target);
+            }
+
             concurrent = false;
             return convert(e, target, null, false, true);
 
@@ -148,6 +319,30 @@ public class XMLParser {
         }
     }
 
+    /**
+     * Parses and runs the top-level elements that follow the one that produced the target
+     * returned by the last call to parse(reader, target). These are typically analyses of the
+     * output of the target (i.e., trace analyses or a marginal likelihood estimator) which
+     * can then be run after the target has been run.
+     *
+     * @throws dr.xml.XMLParseException
+     */
+    public void runRemainingElements() throws XMLParseException {
+        if (remainingElements == null) {
+            return;
+        }
+        List<Element> elements = remainingElements;
+        remainingElements = null;
+
+        for (Element element : elements) {
+            if (remoteIds.contains(element.getAttribute(ID))) {
+                continue;
+            }
+            if (verbose) System.out.println("Parsing " + element.getTagName());
+            remainingParent.addChild(convert(element, null, remainingParent, true, true));
+        }
+    }
+
     public Map<String, XMLObject> parse(Reader reader, boolean run)
             throws java.io.IOException,
             org.xml.sax.SAXException,
@@ -159,7 +354,11 @@ public class XMLParser {
 
         javax.xml.parsers.DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
         documentBuilder.setErrorHandler(new MyErrorHandler());
+        long startTime = System.nanoTime();
         Document document = documentBuilder.parse(in);
+        readTime = System.nanoTime() - startTime;
+        creationStartTime = System.nanoTime();
+        startupReported = false;
 
         Element e = document.getDocumentElement();
         if (e.getTagName().equals("beast")) {
@@ -171,9 +370,15 @@ public class XMLParser {
                 }
             }
 
+            findRemoteIds(e);
+
             concurrent = false;
             root = (XMLObject) convert(e, null, null, run, true);
 
+            if (!startupReported) {
+                reportStartupTimes();
+            }
+
         } else {
             throw new dr.xml.XMLParseException("Unknown root document element, " + e.getTagName());
         }
@@ -181,6 +386,200 @@ public class XMLParser {
         return objectStore;
     }
 
+    /**
+     * An alternative parser that only parses the elements with the given ids along with the
+     * top-level elements that these refer to (directly or indirectly). Nothing is run. This is
+     * used to create components of a model to be evaluated in another process (see RemoteParser)
+     * without creating the rest of the analysis.
+     *
+     * @param reader the reader
+     * @param ids    the ids of the elements to parse
+     * @return the object store
+     * @throws java.io.IOException
+     * @throws org.xml.sax.SAXException
+     * @throws dr.xml.XMLParseException
+     * @throws javax.xml.parsers.ParserConfigurationException
+     *
+     */
+    public Map<String, XMLObject> parse(Reader reader, Collection<String> ids)
+            throws java.io.IOException,
+            org.xml.sax.SAXException,
+            dr.xml.XMLParseException,
+            javax.xml.parsers.ParserConfigurationException {
+
+        InputSource in = new InputSource(reader);
+        javax.xml.parsers.DocumentBuilderFactory documentBuilderFactory = javax.xml.parsers.DocumentBuilderFactory.newInstance();
+
+        javax.xml.parsers.DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
+        Document document = documentBuilder.parse(in);
+
+        Element e = document.getDocumentElement();
+        if (!e.getTagName().equals("beast")) {
+            throw new dr.xml.XMLParseException("Unknown root document element, " + e.getTagName());
+        }
+
+        List<Element> elements = new ArrayList<Element>();
+        Map<String, Element> definitions = new HashMap<String, Element>();
+        Map<String, Element> topLevelDefinitions = new HashMap<String, Element>();
+        NodeList nodes = e.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i) instanceof Element) {
+                Element element = (Element) nodes.item(i);
+                elements.add(element);
+                findDefinitions(element, element, definitions, topLevelDefinitions);
+            }
+        }
+
+        Set<Element> targets = new HashSet<Element>();
+        for (String id : ids) {
+            Element element = definitions.get(id);
+            if (element == null) {
+                throw new XMLParseException("Element with id=" + id + " was not found");
+            }
+            targets.add(element);
+        }
+
+        // find the top-level elements that the targets depend on
+        Set<Element> required = new HashSet<Element>();
+        Deque<String> idrefs = new ArrayDeque<String>();
+        for (Element element : targets) {
+            findIdrefs(element, idrefs);
+        }
+        for (Element element : elements) {
+            if (isTaxonDefinition(element) && findTargets(element, targets).size() == 0) {
+                required.add(element);
+                findIdrefs(element, idrefs);
+            }
+        }
+        while (!idrefs.isEmpty()) {
+            Element element = topLevelDefinitions.get(idrefs.pop());
+            if (element != null && !required.contains(element) && findTargets(element, targets).size() == 0) {
+                required.add(element);
+                findIdrefs(element, idrefs);
+            }
+        }
+
+        XMLObject xo = new XMLObject(e, null);
+        concurrent = false;
+        for (Element element : elements) {
+            if (required.contains(element)) {
+                if (verbose) System.out.println("Parsing " + element.getTagName());
+                convert(element, null, xo, false, true);
+            } else {
+                for (Element target : findTargets(element, targets)) {
+                    if (verbose) System.out.println("Parsing " + target.getTagName());
+                    convert(target, null, xo, false, true);
+                }
+            }
+        }
+
+        return objectStore;
+    }
+
+    /**
+     * @return the top-level elements that are referred to (directly or indirectly) by the
+     * top-level elements that can produce the target.
+     */
+    private Set<Element> findRequiredElements(Element root, Class target) {
+        Map<String, Element> definitions = new HashMap<String, Element>();
+        Map<String, Element> topLevelDefinitions = new HashMap<String, Element>();
+        Deque<String> idrefs = new ArrayDeque<String>();
+        NodeList nodes = root.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i) instanceof Element) {
+                Element element = (Element) nodes.item(i);
+                findDefinitions(element, element, definitions, topLevelDefinitions);
+                if (canProduce(element, target) || isTaxonDefinition(element)) {
+                    findIdrefs(element, idrefs);
+                }
+            }
+        }
+
+        Set<Element> required = new HashSet<Element>();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i) instanceof Element && isTaxonDefinition((Element) nodes.item(i))) {
+                required.add((Element) nodes.item(i));
+            }
+        }
+        while (!idrefs.isEmpty()) {
+            Element element = topLevelDefinitions.get(idrefs.pop());
+            if (element != null && !required.contains(element)) {
+                required.add(element);
+                findIdrefs(element, idrefs);
+            }
+        }
+        return required;
+    }
+
+    /**
+     * Taxa are often referred to by name rather than by idref (i.e., in newick trees) so these
+     * top-level elements are always required.
+     */
+    private static boolean isTaxonDefinition(Element e) {
+        return e.getTagName().equals("taxa") || e.getTagName().equals("taxon");
+    }
+
+    private static void findDefinitions(Element e, Element topLevel, Map<String, Element> definitions,
+                                        Map<String, Element> topLevelDefinitions) {
+        if (e.hasAttribute(ID)) {
+            definitions.put(e.getAttribute(ID), e);
+            topLevelDefinitions.put(e.getAttribute(ID), topLevel);
+        }
+        NodeList nodes = e.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i) instanceof Element) {
+                findDefinitions((Element) nodes.item(i), topLevel, definitions, topLevelDefinitions);
+            }
+        }
+    }
+
+    private static void findIdrefs(Element e, Deque<String> idrefs) {
+        if (e.hasAttribute(IDREF)) {
+            idrefs.push(e.getAttribute(IDREF));
+        }
+        NodeList nodes = e.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i) instanceof Element) {
+                findIdrefs((Element) nodes.item(i), idrefs);
+            }
+        }
+    }
+
+    /**
+     * @return the elements in targets that are (or are contained within) the given element in document order.
+     */
+    private static List<Element> findTargets(Element e, Set<Element> targets) {
+        List<Element> found = new ArrayList<Element>();
+        if (targets.contains(e)) {
+            found.add(e);
+        } else {
+            NodeList nodes = e.getChildNodes();
+            for (int i = 0; i < nodes.getLength(); i++) {
+                if (nodes.item(i) instanceof Element) {
+                    found.addAll(findTargets((Element) nodes.item(i), targets));
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Collects the ids of elements that are to be parsed in another process as declared
+     * by the parsers of elements that implement RemoteParser.
+     */
+    private void findRemoteIds(Element e) {
+        XMLObjectParser parser = getParser(e.getTagName());
+        if (parser instanceof RemoteParser) {
+            remoteIds.addAll(((RemoteParser) parser).getRemoteIds(e));
+        }
+        NodeList nodes = e.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i) instanceof Element) {
+                findRemoteIds((Element) nodes.item(i));
+            }
+        }
+    }
+
     private class MyErrorHandler extends DefaultHandler {
         public void warning(SAXParseException e) throws SAXException {
             System.out.println("Warning: ");
@@ -245,7 +644,7 @@ public class XMLParser {
                 throw new XMLParseException("Object with idref=" + idref + " has not been parsed.");
             }
 
-            XMLObjectParser parser = parserStore.get(e.getTagName());
+            XMLObjectParser parser = getParser(e.getTagName());
             boolean classMatch = parser != null && parser.getReturnType().isAssignableFrom(restoredXMLObject.getNativeObject().getClass());
 
             if (!e.getTagName().equals(restoredXMLObject.getName()) && !classMatch) {
@@ -264,6 +663,14 @@ public class XMLParser {
 
             return new Reference(restoredXMLObject);
 
+        } else if (isShared(e)) {
+            // an immutable object from another parse of this file can be used in place of parsing it again
+            storeSharedObjects(e);
+
+            if (verbose) System.out.println("  Sharing id=" + e.getAttribute(ID));
+
+            return new Reference(sharedObjects.get(e.getAttribute(ID)));
+
         } else {
             int repeats = 1;
             if (e.getTagName().equals(CONCURRENT)) {
@@ -277,7 +684,7 @@ public class XMLParser {
 
             XMLObject xo = new XMLObject(e, parent);
 
-            final XMLObjectParser parser = doParse ? parserStore.get(xo.getName()) : null;
+            final XMLObjectParser parser = doParse ? getParser(xo.getName()) : null;
 
             String id = null;
             NodeList nodes = e.getChildNodes();
@@ -289,17 +696,58 @@ public class XMLParser {
 
                         final Element element = (Element) child;
                         final String tag = element.getTagName();
+
+                        boolean discardOutput = false;
+                        if (target != null && skipUnreferencedElements && parent == null) {
+                            boolean producer = canProduce(element, target);
+                            if (!producer && !requiredElements.contains(element)) {
+                                if (verbose) System.out.println("Skipping " + tag);
+                                continue;
+                            }
+                            // only the target itself may write to files
+                            discardOutput = !producer || targetsToSkip > 0 || !logToFiles;
+                        }
+
+                        if (remoteIds.contains(element.getAttribute(ID))) {
+                            // this will be created and evaluated in another process
+                            if (verbose) System.out.println("Skipping remote " + tag + " with id=" + element.getAttribute(ID));
+                            continue;
+                        }
+
                         if (verbose) System.out.println("Parsing " + tag);
 
                         // don't parse elements that may be legal here with global parsers
                         final boolean parseIt = parser == null || !parser.isAllowed(tag);
-                        Object xoc = convert(element, target, xo, run, parseIt);
+                        Object xoc;
+                        if (discardOutput) {
+                            DISCARD_OUTPUT.set(Boolean.TRUE);
+                            try {
+                                xoc = convert(element, target, xo, run, parseIt);
+                            } finally {
+                                DISCARD_OUTPUT.remove();
+                            }
+                        } else {
+                            xoc = convert(element, target, xo, run, parseIt);
+                        }
                         xo.addChild(xoc);
 
                         if (target != null && xoc instanceof XMLObject) {
                             Object obj = ((XMLObject) xoc).getNativeObject();
                             if (obj != null && target.isInstance(obj)) {
-                                return obj;
+                                if (targetsToSkip == 0) {
+                                    if (parent == null) {
+                                        // keep the top-level elements that follow so they can be run later
+                                        remainingElements = new ArrayList<Element>();
+                                        for (int j = i + 1; j < nodes.getLength(); j++) {
+                                            if (nodes.item(j) instanceof Element) {
+                                                remainingElements.add((Element) nodes.item(j));
+                                            }
+                                        }
+                                        remainingParent = xo;
+                                    }
+                                    return obj;
+                                }
+                                targetsToSkip--;
                             }
                         }
 
@@ -350,6 +798,10 @@ public class XMLParser {
             }
 
             if (run) {
+                if (!startupReported && (e.getTagName().equals(CONCURRENT) || (obj instanceof Runnable && !concurrent))) {
+                    reportStartupTimes();
+                }
+
                 if (e.getTagName().equals(CONCURRENT)) {
                     for (int i = 0; i < xo.getChildCount(); i++) {
                         Object child = xo.getChild(i);
@@ -384,6 +836,60 @@ public class XMLParser {
         }
     }
 
+    /**
+     * @return true if the element defines an object that is shared, along with all the identified
+     * elements it contains.
+     */
+    private boolean isShared(Element e) {
+        if (sharedObjects == null || !e.hasAttribute(ID) || !sharedObjects.containsKey(e.getAttribute(ID))) {
+            return false;
+        }
+        NodeList nodes = e.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i) instanceof Element) {
+                Element child = (Element) nodes.item(i);
+                if ((child.hasAttribute(ID) || hasIdentifiedElement(child)) && !isShared(child)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void storeSharedObjects(Element e) throws XMLParseException {
+        if (e.hasAttribute(ID)) {
+            String id = e.getAttribute(ID);
+            if (objectStore.get(id) != null) {
+                throw new XMLParseException("Object with Id=" + id + " already exists");
+            }
+            objectStore.put(id, sharedObjects.get(id));
+        }
+        NodeList nodes = e.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i) instanceof Element) {
+                storeSharedObjects((Element) nodes.item(i));
+            }
+        }
+    }
+
+    private boolean canProduce(Element e, Class target) {
+        XMLObjectParser parser = getParser(e.getTagName());
+        return parser == null || target.isAssignableFrom(parser.getReturnType());
+    }
+
+    private static boolean hasIdentifiedElement(Element e) {
+        if (e.hasAttribute(ID)) {
+            return true;
+        }
+        NodeList nodes = e.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i) instanceof Element && hasIdentifiedElement((Element) nodes.item(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     protected void executingRunnable() {
         // do nothing - for overriding by subclasses
     }
@@ -394,7 +900,7 @@ public class XMLParser {
 
     public static FileReader getFileReader(XMLObject xo, String attributeName) throws XMLParseException {
         if (xo.hasAttribute(attributeName)) {
-            final File inFile = getFileHandle(xo, attributeName);
+            final File inFile = getFileHandle(xo, attributeName, false);
             try {
                 return new FileReader(inFile);
             } catch (FileNotFoundException e) {
@@ -410,9 +916,10 @@ public class XMLParser {
      * Get filename and path from BEAST XML object
      *
      * @param xo
+     * @param isOutput true if the file is to be written to
      * @return
      */
-    private static File getFileHandle(XMLObject xo, String attributeName) throws XMLParseException {
+    private static File getFileHandle(XMLObject xo, String attributeName, boolean isOutput) throws XMLParseException {
         String fileName = xo.getStringAttribute(attributeName);
 
         // Check to see if a filename prefix has been specified, check it doesn't contain directory
@@ -427,17 +934,36 @@ public class XMLParser {
 
         final String fileRankPostfix = System.getProperty("mpi.rank.postfix");
         if (fileRankPostfix != null) {
-            if (fileName.endsWith(".log")) {
-                fileName = fileName.substring(0, fileName.length() - 4) + fileRankPostfix + ".log";
-            }
-            if (fileName.endsWith(".trees")) {
-                fileName = fileName.substring(0, fileName.length() - 6) + fileRankPostfix + ".trees";
-            }
+            fileName = addPostfix(fileName, fileRankPostfix, false);
+        }
+
+        // replicate model graphs parsed from the same file (see Replicator) write to their own files
+        final String fileReplicatePostfix = System.getProperty(Replicator.REPLICATE_POSTFIX);
+        if (isOutput && fileReplicatePostfix != null) {
+            fileName = addPostfix(fileName, fileReplicatePostfix, true);
         }
 
         return FileHelpers.getFile(fileName, fileNamePrefix);
     }
 
+    private static String addPostfix(String fileName, String postfix, boolean anyExtension) {
+        if (fileName.endsWith(".log")) {
+            return fileName.substring(0, fileName.length() - 4) + postfix + ".log";
+        }
+        if (fileName.endsWith(".trees")) {
+            return fileName.substring(0, fileName.length() - 6) + postfix + ".trees";
+        }
+        if (!anyExtension) {
+            return fileName;
+        }
+        // other output files (e.g., checkpoints) get the postfix before their extension
+        int dot = fileName.lastIndexOf('.');
+        if (dot > fileName.lastIndexOf(File.separatorChar) + 1) {
+            return fileName.substring(0, dot) + postfix + fileName.substring(dot);
+        }
+        return fileName + postfix;
+    }
+
     /**
      * Allow a file relative to beast xml file with a prefix of ./
      *
@@ -453,6 +979,19 @@ public class XMLParser {
 
     public static PrintWriter getFilePrintWriter(XMLObject xo, String parserName, String attributeName) throws XMLParseException {
 
+        if (DISCARD_OUTPUT.get()) {
+            // a component of a replicate whose output isn't wanted (see parse(reader, target, ordinal, logToFiles))
+            return new PrintWriter(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            });
+        }
+
         if (xo.hasAttribute(attributeName)) {
             File logFile = getLogFile(xo, attributeName);
 
@@ -468,7 +1007,7 @@ public class XMLParser {
     }
 
     public static File getLogFile(XMLObject xo, String attributeName) throws XMLParseException {
-        final File logFile = getFileHandle(xo, attributeName);
+        final File logFile = getFileHandle(xo, attributeName, true);
         boolean allowOverwrite = false;
 
         if (xo.hasAttribute(LoggerParser.ALLOW_OVERWRITE_LOG)) {
@@ -494,6 +1033,17 @@ public class XMLParser {
         return objectStore;
     }
 
+    /**
+     * Set objects, keyed by id, from a previous parse of the same file. These should be
+     * immutable (i.e., data such as alignments and taxa) and the elements that define them
+     * are not parsed again but the existing objects are used instead.
+     *
+     * @param sharedObjects the objects to share
+     */
+    public void setSharedObjects(Map<String, XMLObject> sharedObjects) {
+        this.sharedObjects = sharedObjects;
+    }
+
     public class ArrayParser extends AbstractXMLObjectParser {
 
         public String getParserName() {
@@ -594,9 +1144,32 @@ public class XMLParser {
 
     //    private final Hashtable<String, XMLObject> store = new Hashtable<String, XMLObject>();
     private final Map<String, XMLObjectParser> parserStore = new TreeMap<String, XMLObjectParser>(new ParserComparator());
+    private final Map<String, LazyParser> lazyParserStore = new TreeMap<String, LazyParser>(new ParserComparator());
+    private int lazyParserCount = 0;
+    private int lazyParsersLoaded = 0;
+
+    private long setupTime = 0;
+    private long readTime = 0;
+    private long creationStartTime = 0;
+    private boolean startupReported = false;
     private final Map<String, XMLObject> objectStore = new LinkedHashMap<String, XMLObject>();
     private final Map<Pair<String, String>, List<Citation>> citationStore = new LinkedHashMap<Pair<String, String>, List<Citation>>();
     private boolean concurrent = false;
+    private static final ThreadLocal<Boolean> DISCARD_OUTPUT = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return Boolean.FALSE;
+        }
+    };
+
+    private int targetsToSkip = 0;
+    private boolean skipUnreferencedElements = false;
+    private boolean logToFiles = true;
+    private Set<Element> requiredElements = null;
+    private List<Element> remainingElements = null;
+    private XMLObject remainingParent = null;
+    private Map<String, XMLObject> sharedObjects = null;
+    private final Set<String> remoteIds = new HashSet<String>();
     private XMLObject root = null;
 
     private boolean verbose = false;
@@ -0,0 +1,128 @@
+package test.dr.app.beagle;
+
+import dr.app.beagle.tools.ParallelSequenceSimulator;
+import dr.app.beagle.tools.Partition;
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.io.NewickImporter;
+import dr.evomodel.branchmodel.HomogeneousBranchModel;
+import dr.evomodel.branchratemodel.DefaultBranchRateModel;
+import dr.evomodel.siteratemodel.GammaSiteRateModel;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.nucleotide.HKY;
+import dr.evomodel.tree.DefaultTreeModel;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks the alignments written by the ParallelSequenceSimulator don't depend on the number of
+ * threads, have the partitions' sites and taxa in the right places and the expected divergence.
+ *
+ * @author Andrew Rambaut
+ */
+public class ParallelSequenceSimulatorTest extends TestCase {
+
+    public void testSameForAnyThreadCount() throws Exception {
+        List<Partition> partitions = new ArrayList<Partition>();
+        partitions.add(createPartition("((A:0.1,B:0.2):0.1,(C:0.3,D:0.1):0.05);", 0, 499, 1, 4));
+
+        File file1 = File.createTempFile("simulated", ".nex");
+        File file2 = File.createTempFile("simulated", ".nex");
+        file1.deleteOnExit();
+        file2.deleteOnExit();
+
+        MathUtils.setSeed(1234);
+        new ParallelSequenceSimulator(partitions, SimpleAlignment.OutputType.NEXUS, 1, 64).simulate(file1);
+        MathUtils.setSeed(1234);
+        new ParallelSequenceSimulator(partitions, SimpleAlignment.OutputType.NEXUS, 3, 64).simulate(file2);
+
+        String nexus = readFile(file1);
+        assertEquals(nexus, readFile(file2));
+        assertTrue(nexus.startsWith("#NEXUS\nbegin data;\n\tdimensions ntax=4 nchar=500;\n"));
+        assertTrue(nexus.endsWith(";\nend;\n"));
+    }
+
+    public void testPartitionLayout() throws Exception {
+        List<Partition> partitions = new ArrayList<Partition>();
+        partitions.add(createPartition("((A:0.1,B:0.2):0.1,C:0.3);", 0, 9, 1, 1));
+        partitions.add(createPartition("((A:0.1,B:0.2):0.1,D:0.3);", 10, 19, 2, 1));
+
+        File file = File.createTempFile("simulated", ".fasta");
+        file.deleteOnExit();
+        new ParallelSequenceSimulator(partitions, SimpleAlignment.OutputType.FASTA, 2, 3).simulate(file);
+
+        Map<String, String> sequences = readFasta(file);
+        assertEquals(4, sequences.size());
+        for (String taxon : new String[] { "A", "B", "C", "D" }) {
+            String sequence = sequences.get(taxon);
+            assertEquals(20, sequence.length());
+            for (int i = 0; i < sequence.length(); i++) {
+                boolean inPartition = (i < 10 && !taxon.equals("D")) || (i >= 10 && i % 2 == 0 && !taxon.equals("C"));
+                assertEquals(!inPartition, sequence.charAt(i) == '-');
+            }
+        }
+    }
+
+    public void testDivergence() throws Exception {
+        int siteCount = 20000;
+        List<Partition> partitions = new ArrayList<Partition>();
+        partitions.add(createPartition("(A:0.1,B:0.2);", 0, siteCount - 1, 1, 1));
+
+        File file = File.createTempFile("simulated", ".fasta");
+        file.deleteOnExit();
+        MathUtils.setSeed(1234);
+        new ParallelSequenceSimulator(partitions, SimpleAlignment.OutputType.FASTA, 2, 1000).simulate(file);
+
+        Map<String, String> sequences = readFasta(file);
+        int differences = 0;
+        for (int i = 0; i < siteCount; i++) {
+            if (sequences.get("A").charAt(i) != sequences.get("B").charAt(i)) {
+                differences++;
+            }
+        }
+
+        // the Jukes-Cantor probability of a difference over the 0.3 substitutions between the tips
+        double expected = 0.75 * (1.0 - Math.exp(-4.0 / 3.0 * 0.3));
+        assertEquals(expected, (double) differences / siteCount, 0.015);
+    }
+
+    private static Partition createPartition(String newick, int from, int to, int every, int categoryCount) throws Exception {
+        DefaultTreeModel tree = new DefaultTreeModel(new NewickImporter(newick).importTree(null));
+        FrequencyModel frequencies = new FrequencyModel(Nucleotides.INSTANCE, new double[] { 0.25, 0.25, 0.25, 0.25 });
+        HKY hky = new HKY(1.0, frequencies);
+        GammaSiteRateModel siteRateModel = (categoryCount > 1 ?
+                new GammaSiteRateModel("siteModel", 0.5, categoryCount) : new GammaSiteRateModel("siteModel"));
+        return new Partition(tree, new HomogeneousBranchModel(hky), siteRateModel, new DefaultBranchRateModel(),
+                frequencies, from, to, every);
+    }
+
+    private static Map<String, String> readFasta(File file) throws Exception {
+        Map<String, String> sequences = new LinkedHashMap<String, String>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            sequences.put(line.substring(1).trim(), reader.readLine());
+        }
+        reader.close();
+        return sequences;
+    }
+
+    private static String readFile(File file) throws Exception {
+        StringBuilder builder = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            builder.append(line).append("\n");
+        }
+        reader.close();
+        return builder.toString();
+    }
+}
@@ -0,0 +1,56 @@
+package test.dr.app.beast;
+
+import dr.app.beast.BeastParser;
+import dr.app.beast.ParserIndex;
+import dr.xml.XMLObjectParser;
+import dr.xml.XMLParser;
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+import java.util.*;
+
+/**
+ * Checks that parsers registered lazily from an index give the same parser for each element
+ * as loading all the parsers at startup.
+ *
+ * @author Andrew Rambaut
+ */
+public class ParserIndexTest extends TestCase {
+
+    public void testIndexEntries() throws Exception {
+        byte[] content = ParserIndex.readContent(BeastParser.class.getResourceAsStream(
+                BeastParser.RELEASE + BeastParser.PARSER_PROPERTIES_SUFFIX));
+        List<ParserIndex.Entry> entries = ParserIndex.createEntries(content);
+        assertTrue(entries.size() > 0);
+
+        for (ParserIndex.Entry entry : entries) {
+            if (entry.getParserNames().length > 0) {
+                XMLObjectParser parser = entry.createParser();
+                assertTrue(Arrays.equals(entry.getParserNames(), parser.getParserNames()));
+            }
+        }
+
+        StringWriter writer = new StringWriter();
+        ParserIndex.write(entries, content, "test", writer);
+        assertTrue(writer.toString().contains("\t" + entries.get(0).getParserNames()[0]));
+    }
+
+    public void testLazyParsers() throws Exception {
+        System.setProperty(BeastParser.PARSER_INDEX_PROPERTY, "false");
+        Map<String, String> eager = getParserClasses(new BeastParser(new String[0], null, false, false, true, null));
+        System.clearProperty(BeastParser.PARSER_INDEX_PROPERTY);
+        Map<String, String> lazy = getParserClasses(new BeastParser(new String[0], null, false, false, true, null));
+
+        assertEquals(eager, lazy);
+    }
+
+    private static Map<String, String> getParserClasses(XMLParser xmlParser) {
+        Map<String, String> parserClasses = new TreeMap<String, String>();
+        Iterator iterator = xmlParser.getParserNames();
+        while (iterator.hasNext()) {
+            String name = (String) iterator.next();
+            parserClasses.put(name, xmlParser.getParser(name).getClass().getName());
+        }
+        return parserClasses;
+    }
+}
@@ -0,0 +1,168 @@
+package test.dr.app.tools;
+
+import dr.app.tools.LogCombiner;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Checks the removal of comments from tree lines and that combining tree files with the annotations
+ * stripped keeps the header of the first file and the branch lengths as they were written (unless
+ * a file numbers the taxa differently so its trees have to be renumbered).
+ *
+ * @author Andrew Rambaut
+ */
+public class LogCombinerTest extends TestCase {
+
+    private static final String HEADER =
+            "#NEXUS\n" +
+                    "\n" +
+                    "Begin taxa;\n" +
+                    "\tDimensions ntax=3;\n" +
+                    "\tTaxlabels\n" +
+                    "\t\tA\n" +
+                    "\t\t'B [c]'\n" +
+                    "\t\tC\n" +
+                    "\t\t;\n" +
+                    "End;\n" +
+                    "\n" +
+                    "Begin trees;\n" +
+                    "\tTranslate\n" +
+                    "\t\t1 A,\n" +
+                    "\t\t2 'B [c]',\n" +
+                    "\t\t3 C\n" +
+                    "\t\t;\n";
+
+    private File directory;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("logcombiner", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    public void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    public void testStripComments() {
+        assertEquals(" = [&R] ((1:0.1,2:0.2):0.05,3:0.3);",
+                LogCombiner.stripComments(" = [&R] ((1[&rate=1.0]:0.1,2[&rate=0.5,loc={1,2}]:0.2)[&rate=2]:0.05,3:0.3)[&rate=1];"));
+        assertEquals(" = [&U] (1:1,2:1);", LogCombiner.stripComments(" = [&lnP=-12.5] [&U] (1[comment]:1,2:1);"));
+        // the rooting comment is kept in either case
+        assertEquals(" = [&r] (1:1,2:1);", LogCombiner.stripComments(" = [&r] (1:1,2:1)[&height=1];"));
+        // brackets inside quoted labels aren't comments
+        assertEquals(" = [&R] ('B [c]':1,'it''s [&x]':1);",
+                LogCombiner.stripComments(" = [&R] ('B [c]'[&rate=1]:1,'it''s [&x]':1);"));
+        assertEquals(" = (1:1,2:1);", LogCombiner.stripComments(" = (1:1,2:1);"));
+    }
+
+    public void testStripTrees() throws IOException {
+        File first = new File(directory, "run1.trees");
+        Writer writer = new FileWriter(first);
+        writer.write(getTrees("1"));
+        writer.close();
+
+        // the second run is gzipped
+        File second = new File(directory, "run2.trees.gz");
+        writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(second)));
+        writer.write(getTrees("2"));
+        writer.close();
+
+        File output = new File(directory, "combined.trees");
+        new LogCombiner(new long[]{1000}, -1, new String[]{first.getPath(), second.getPath()}, output.getPath(),
+                true, false, true, false, false, 1.0, 2);
+
+        // the header is kept as it was and the branch lengths aren't reformatted
+        String expected = HEADER +
+                "tree STATE_1000 = [&R] ((1:0.10000000000000001,2:1.5E-4):0.25,3:0.3500001);\n" +
+                "tree STATE_2000 = [&R] ((1:0.2,3:0.2):0.1,2:0.3);\n" +
+                "tree STATE_3000 = [&R] ((1:0.10000000000000002,2:1.5E-4):0.25,3:0.3500002);\n" +
+                "tree STATE_4000 = [&R] ((1:0.2,3:0.2):0.1,2:0.3);\n" +
+                "End;\n";
+        assertEquals(expected, read(output));
+    }
+
+    public void testDifferentTranslateTables() throws IOException {
+        // (the tree importer doesn't allow brackets in quoted labels)
+        String header = HEADER.replace("'B [c]'", "B");
+
+        File first = new File(directory, "run1.trees");
+        Writer writer = new FileWriter(first);
+        writer.write(getTrees("1").replace(HEADER, header));
+        writer.close();
+
+        // the same taxa numbered differently so the trees have to be parsed to renumber them
+        File second = new File(directory, "run2.trees");
+        writer = new FileWriter(second);
+        writer.write(header.replace("1 A,", "3 A,").replace("3 C\n", "1 C\n") +
+                "tree STATE_0 [&lnP=-20.0] = [&R] ((3:0.1,2:0.1):0.1,1:0.2);\n" +
+                "tree STATE_1000 [&lnP=-10.0] = [&R] ((3[&rate=1.0]:0.5,1[&rate=0.5]:0.5)[&rate=2.0]:0.25,2:0.75)[&rate=1.0];\n" +
+                "End;\n");
+        writer.close();
+
+        File output = new File(directory, "combined.trees");
+        new LogCombiner(new long[]{1000}, -1, new String[]{first.getPath(), second.getPath()}, output.getPath(),
+                true, false, true, false, false, 1.0, 2);
+
+        String expected = header +
+                "tree STATE_1000 = [&R] ((1:0.10000000000000001,2:1.5E-4):0.25,3:0.3500001);\n" +
+                "tree STATE_2000 = [&R] ((1:0.2,3:0.2):0.1,2:0.3);\n" +
+                // the parsed trees are written as when converting trees
+                "tree STATE_3000 [&lnP=-10.0] = [&R] ((1:5E-1,3:5E-1):2.5E-1,2:7.5E-1);\n" +
+                "End;\n";
+        assertEquals(expected, read(output));
+    }
+
+    public void testTranslateTable() {
+        assertEquals(getTranslateTable("1", "A", "2", "B [c]", "3", "C"),
+                LogCombiner.getTranslateTable(Arrays.asList(HEADER.split("\n"))));
+        assertEquals(getTranslateTable("1", "it's", "2", "B"),
+                LogCombiner.getTranslateTable(Arrays.asList("begin trees;", "translate 1 'it''s', [a comment]", "2 B;")));
+        assertNull(LogCombiner.getTranslateTable(Arrays.asList("#NEXUS", "begin trees;")));
+    }
+
+    private static Map<String, String> getTranslateTable(String... entries) {
+        Map<String, String> translateTable = new HashMap<String, String>();
+        for (int i = 0; i < entries.length; i += 2) {
+            translateTable.put(entries[i], entries[i + 1]);
+        }
+        return translateTable;
+    }
+
+    /**
+     * Three trees with annotations (the first of which is burn-in) with a run number in the last
+     * digit of some of the branch lengths.
+     */
+    private static String getTrees(String run) {
+        return HEADER +
+                "tree STATE_0 [&lnP=-20.0] = [&R] ((1[&rate=1.0]:0.1,2[&rate=1.0]:0.1)[&rate=1.0]:0.1,3[&rate=1.0]:0.2)[&rate=1.0];\n" +
+                "tree STATE_1000 [&lnP=-10.0] = [&R] ((1[&rate=1.0]:0.1000000000000000" + run + ",2[&rate=0.5]:1.5E-4)[&rate=2.0]:0.25,3[&rate=1.0,loc={1,2}]:0.350000" + run + ")[&rate=1.0];\n" +
+                "tree STATE_2000 [&lnP=-11.0] = [&R] ((1[&rate=1.0]:0.2,3[&rate=1.0]:0.2)[&rate=1.0]:0.1,2[&rate=1.0]:0.3)[&rate=1.0];\n" +
+                "End;\n";
+    }
+
+    private static String read(File file) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        String line = reader.readLine();
+        while (line != null) {
+            sb.append(line).append("\n");
+            line = reader.readLine();
+        }
+        reader.close();
+        return sb.toString();
+    }
+}
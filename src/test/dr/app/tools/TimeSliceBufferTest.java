@@ -0,0 +1,60 @@
+package test.dr.app.tools;
+
+import dr.app.tools.TimeSliceBuffer;
+import junit.framework.TestCase;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that the slice values are returned in the order they were added, both when they are all
+ * held in memory and when the memory budget is exceeded and blocks are written to a temporary file.
+ *
+ * @author Andrew Rambaut
+ */
+public class TimeSliceBufferTest extends TestCase {
+
+    private static final int VALUE_COUNT = 10000;
+
+    public void testInMemory() {
+        AtomicLong memoryCount = new AtomicLong(0);
+        TimeSliceBuffer buffer = new TimeSliceBuffer(memoryCount, Long.MAX_VALUE);
+        addValues(buffer);
+        assertValues(buffer);
+        // the four full blocks of 4096 values are in memory
+        assertEquals(4 * 4096, memoryCount.get());
+    }
+
+    public void testSpillToDisk() {
+        AtomicLong memoryCount = new AtomicLong(0);
+        // only one block can be held in memory by the two buffers
+        TimeSliceBuffer first = new TimeSliceBuffer(memoryCount, 4096);
+        TimeSliceBuffer second = new TimeSliceBuffer(memoryCount, 4096);
+        addValues(first);
+        addValues(second);
+        assertEquals(4096, memoryCount.get());
+
+        assertValues(first);
+        assertValues(second);
+        // the values can be read back more than once
+        assertValues(second);
+    }
+
+    private static void addValues(TimeSliceBuffer buffer) {
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            buffer.add(new double[]{i, -0.5 * i});
+        }
+    }
+
+    private static void assertValues(TimeSliceBuffer buffer) {
+        assertEquals(VALUE_COUNT, buffer.getCount());
+        assertEquals(2, buffer.getDim());
+        assertTrue(buffer.isMultivariate());
+
+        double[][] values = buffer.getValues();
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            assertEquals(i, values[0][i], 0.0);
+            assertEquals(-0.5 * i, values[1][i], 0.0);
+        }
+        assertEquals("7.0\t-3.5", buffer.getString(7, values));
+    }
+}
@@ -0,0 +1,126 @@
+package test.dr.app.tools;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs TimeSlicer (in a separate process as it exits when done) on random trees with a bivariate
+ * location trait, imputing the values at the slices with noise, and checks that the output for a
+ * given seed is the same for any number of threads.
+ *
+ * @author Andrew Rambaut
+ */
+public class TimeSlicerTest extends TestCase {
+
+    private static final int TREE_COUNT = 40;
+    private static final int TAXON_COUNT = 8;
+
+    private File directory;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("timeslicer", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    public void tearDown() throws Exception {
+        delete(directory);
+        super.tearDown();
+    }
+
+    public void testThreadedMatchesSerial() throws Exception {
+        File treeFile = new File(directory, "trees.trees");
+        writeTrees(treeFile);
+
+        String serial = run(treeFile, "serial", 123, 1);
+        assertEquals(serial, run(treeFile, "repeated", 123, 1));
+        assertEquals(serial, run(treeFile, "threaded", 123, 3));
+
+        // the imputed values include noise
+        assertFalse(serial.equals(run(treeFile, "reseeded", 124, 1)));
+    }
+
+    /**
+     * @return the KML output (without the name of the document which is taken from the file name)
+     */
+    private String run(File treeFile, String name, long seed, int threadCount) throws Exception {
+        File outputFile = new File(directory, name + File.separator + "slices.kml");
+        outputFile.getParentFile().mkdir();
+
+        ProcessBuilder builder = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath(),
+                "-cp", System.getProperty("java.class.path"), "dr.app.tools.TimeSlicer",
+                "-burnin", "0", "-trait", "location", "-sliceHeights", "0.2,0.5,1.0",
+                "-impute", "true", "-points", "true", "-rateAttribute", "none",
+                "-seed", Long.toString(seed), "-threads", Integer.toString(threadCount),
+                treeFile.getAbsolutePath(), outputFile.getAbsolutePath());
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(new File(directory, name + ".out"));
+        assertEquals("TimeSlicer failed (see " + name + ".out)", 0, builder.start().waitFor());
+
+        StringBuilder sb = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new FileReader(outputFile));
+        String line = reader.readLine();
+        while (line != null) {
+            if (!line.contains(outputFile.getParent())) {
+                sb.append(line).append("\n");
+            }
+            line = reader.readLine();
+        }
+        reader.close();
+        return sb.toString();
+    }
+
+    /**
+     * Writes random trees with a location on every node and the precision of the diffusion.
+     */
+    private static void writeTrees(File file) throws IOException {
+        Random random = new Random(666);
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        writer.println("#NEXUS");
+        writer.println();
+        writer.println("begin trees;");
+        for (int t = 0; t < TREE_COUNT; t++) {
+            List<String> subtrees = new ArrayList<String>();
+            List<Double> heights = new ArrayList<Double>();
+            for (int i = 0; i < TAXON_COUNT; i++) {
+                subtrees.add("T" + i);
+                heights.add(0.0);
+            }
+            double height = 0.0;
+            while (subtrees.size() > 1) {
+                height += -Math.log(random.nextDouble()) / subtrees.size();
+                StringBuilder sb = new StringBuilder("(");
+                for (int k = 0; k < 2; k++) {
+                    int i = random.nextInt(subtrees.size());
+                    sb.append(subtrees.remove(i)).append(getLocation(random)).append(":").append(height - heights.remove(i));
+                    sb.append(k == 0 ? "," : ")");
+                }
+                subtrees.add(sb.toString());
+                heights.add(height);
+            }
+            writer.println("tree STATE_" + (t * 1000) + " [&precision={1.0,0.2,1.5}] = [&R] " + subtrees.get(0) + getLocation(random) + ";");
+        }
+        writer.println("end;");
+        writer.close();
+    }
+
+    private static String getLocation(Random random) {
+        return "[&location={" + random.nextGaussian() + "," + random.nextGaussian() + "}]";
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,97 @@
+package test.dr.app.tools;
+
+import dr.app.tools.TreeProcessingPipeline;
+import dr.evolution.tree.Tree;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the trees used by the pipeline (burn-in in trees and states, and thinning) and that the
+ * results don't depend on the number of threads.
+ *
+ * @author Andrew Rambaut
+ */
+public class TreeProcessingPipelineTest extends TestCase {
+
+    private static final int TREE_COUNT = 200;
+
+    public void testProcess() throws Exception {
+        String fileName = writeTrees();
+
+        for (int threadCount : new int[] { 1, 2, 4 }) {
+            TreeProcessingPipeline pipeline = new TreeProcessingPipeline(10, 50000, 3, threadCount);
+            TreeList trees = pipeline.process(fileName, new TreeProcessingPipeline.AccumulatorFactory<TreeList>() {
+                public TreeList createAccumulator(Tree firstTree) {
+                    return new TreeList();
+                }
+            });
+
+            List<Integer> expected = getExpectedIndices(10, 50, 3);
+            trees.indices.sort(null);
+            assertEquals(expected, trees.indices);
+            assertEquals(TREE_COUNT, pipeline.getTotalTrees());
+            assertEquals(expected.size(), pipeline.getTotalTreesUsed());
+            assertEquals(50, pipeline.getBurnin());
+            assertEquals((TREE_COUNT - 1) * 1000, pipeline.getLastState());
+        }
+    }
+
+    public void testMap() throws Exception {
+        String fileName = writeTrees();
+
+        for (int threadCount : new int[] { 1, 3 }) {
+            TreeProcessingPipeline pipeline = new TreeProcessingPipeline(20, 0, 1, threadCount);
+            final List<String> ids = new ArrayList<String>();
+            pipeline.map(fileName, new TreeProcessingPipeline.TreeFunction<String>() {
+                public String apply(Tree tree, int index) {
+                    return tree.getId();
+                }
+            }, ids::add);
+
+            assertEquals(TREE_COUNT - 20, ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                assertEquals("STATE_" + ((i + 20) * 1000), ids.get(i));
+            }
+        }
+    }
+
+    private static List<Integer> getExpectedIndices(int burninTrees, int burninStateTrees, int thin) {
+        List<Integer> indices = new ArrayList<Integer>();
+        for (int i = Math.max(burninTrees, burninStateTrees); i < TREE_COUNT; i++) {
+            if (i % thin == 0) {
+                indices.add(i);
+            }
+        }
+        return indices;
+    }
+
+    private static String writeTrees() throws Exception {
+        File file = File.createTempFile("pipeline", ".trees");
+        file.deleteOnExit();
+        PrintWriter writer = new PrintWriter(file);
+        writer.println("#NEXUS");
+        writer.println("Begin trees;");
+        for (int i = 0; i < TREE_COUNT; i++) {
+            writer.println("tree STATE_" + (i * 1000) + " = ((A:1,B:1):" + (i + 1) + ",C:" + (i + 2) + ");");
+        }
+        writer.println("End;");
+        writer.close();
+        return file.getAbsolutePath();
+    }
+
+    private static class TreeList implements TreeProcessingPipeline.Accumulator<TreeList> {
+        public void addTree(Tree tree, int index) {
+            indices.add(index);
+        }
+
+        public void merge(TreeList other) {
+            indices.addAll(other.indices);
+        }
+
+        final List<Integer> indices = new ArrayList<Integer>();
+    }
+}
@@ -0,0 +1,109 @@
+package test.dr.evolution;
+
+import dr.evolution.alignment.Patterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.io.Importer;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.parsimony.BitFitchParsimony;
+import dr.evolution.parsimony.FitchParsimony;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evomodel.tree.DefaultTreeModel;
+import dr.evomodel.tree.TreeModel;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares the bit-parallel Fitch parsimony with FitchParsimony on random data, including
+ * incremental rescoring of the same tree after NNI moves.
+ *
+ * @author Andrew Rambaut
+ */
+public class BitFitchParsimonyTest extends TestCase {
+
+    public void testRandomNNIs() throws IOException, Importer.ImportException {
+        Random random = new Random(1234);
+
+        StringBuilder newick = new StringBuilder();
+        int taxonCount = 30;
+        appendRandomClade(random, newick, 0, taxonCount, 100.0);
+        TreeModel tree = new DefaultTreeModel(new NewickImporter(newick + ";").importNextTree());
+
+        Patterns patterns = new Patterns(Nucleotides.INSTANCE, tree);
+        for (int i = 0; i < 150; i++) {
+            int[] pattern = new int[taxonCount];
+            for (int j = 0; j < taxonCount; j++) {
+                // mostly unambiguous with some ambiguity codes and gaps
+                pattern[j] = random.nextInt(10) == 0 ?
+                        random.nextInt(Nucleotides.INSTANCE.getAmbiguousStateCount()) : random.nextInt(4);
+            }
+            patterns.addPattern(pattern, 1.0 + random.nextInt(3));
+        }
+
+        BitFitchParsimony bitFitch = new BitFitchParsimony(patterns, false);
+        BitFitchParsimony bitFitchWithGaps = new BitFitchParsimony(patterns, true);
+
+        for (int move = 0; move < 200; move++) {
+            FitchParsimony fitch = new FitchParsimony(patterns, false);
+            FitchParsimony fitchWithGaps = new FitchParsimony(patterns, true);
+
+            assertEquals(fitch.getScore(tree), bitFitch.getScore(tree), 1E-10);
+            assertEquals(fitchWithGaps.getScore(tree), bitFitchWithGaps.getScore(tree), 1E-10);
+
+            double[] siteScores = fitch.getSiteScores(tree);
+            double[] bitSiteScores = bitFitch.getSiteScores(tree);
+            for (int i = 0; i < siteScores.length; i++) {
+                assertEquals(siteScores[i], bitSiteScores[i], 0.0);
+            }
+
+            for (int n = 0; n < tree.getNodeCount(); n++) {
+                NodeRef node = tree.getNode(n);
+                int[] states = fitch.getStates(tree, node);
+                int[] bitStates = bitFitch.getStates(tree, node);
+                for (int i = 0; i < states.length; i++) {
+                    assertEquals(states[i], bitStates[i]);
+                }
+            }
+
+            doNNI(random, tree);
+        }
+    }
+
+    private static void doNNI(Random random, TreeModel tree) {
+        while (true) {
+            NodeRef i = tree.getNode(random.nextInt(tree.getNodeCount()));
+            NodeRef iP = tree.getParent(i);
+            if (iP == null || tree.isRoot(iP)) {
+                continue;
+            }
+            NodeRef jP = tree.getParent(iP);
+            NodeRef j = tree.getChild(jP, 0) == iP ? tree.getChild(jP, 1) : tree.getChild(jP, 0);
+            if (tree.getNodeHeight(j) >= tree.getNodeHeight(iP)) {
+                continue;
+            }
+            tree.beginTreeEdit();
+            tree.removeChild(iP, i);
+            tree.removeChild(jP, j);
+            tree.addChild(jP, i);
+            tree.addChild(iP, j);
+            tree.endTreeEdit();
+            return;
+        }
+    }
+
+    private static void appendRandomClade(Random random, StringBuilder newick, int from, int to, double height) {
+        if (to - from == 1) {
+            newick.append("t").append(from).append(":").append(height);
+            return;
+        }
+        int split = from + 1 + random.nextInt(to - from - 1);
+        double childHeight = height * random.nextDouble();
+        newick.append("(");
+        appendRandomClade(random, newick, from, split, childHeight);
+        newick.append(",");
+        appendRandomClade(random, newick, split, to, childHeight);
+        newick.append("):").append(1.0);
+    }
+}
@@ -0,0 +1,139 @@
+package test.dr.evolution;
+
+import dr.evolution.alignment.Patterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.distance.DistanceMatrix;
+import dr.evolution.distance.F84DistanceMatrix;
+import dr.evolution.distance.JukesCantorDistanceMatrix;
+import dr.evolution.distance.PatristicDistanceMatrix;
+import dr.evolution.io.Importer;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.NeighborJoiningTree;
+import dr.evolution.tree.Tree;
+import dr.evolution.tree.UPGMATree;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Checks the distances calculated from packed patterns against a pattern by pattern loop and
+ * that neighbour-joining and UPGMA recover the trees that additive and ultrametric distances
+ * were taken from.
+ *
+ * @author Andrew Rambaut
+ */
+public class ClusteringTreeTest extends TestCase {
+
+    public void testDistances() throws IOException, Importer.ImportException {
+        Random random = new Random(1234);
+
+        Tree tree = getRandomTree(random, 70, false);
+        Patterns patterns = new Patterns(Nucleotides.INSTANCE, tree);
+        for (int i = 0; i < 300; i++) {
+            int[] pattern = new int[tree.getTaxonCount()];
+            for (int j = 0; j < pattern.length; j++) {
+                // mostly unambiguous with some ambiguity codes and gaps
+                pattern[j] = random.nextInt(10) == 0 ?
+                        random.nextInt(Nucleotides.INSTANCE.getAmbiguousStateCount()) : random.nextInt(4);
+            }
+            patterns.addPattern(pattern, 1.0 + random.nextInt(3));
+        }
+
+        DistanceMatrix distances = new DistanceMatrix(patterns);
+        DistanceMatrix jcDistances = new JukesCantorDistanceMatrix(patterns);
+        F84DistanceMatrix f84Distances = new F84DistanceMatrix(patterns);
+        f84Distances.setThreadCount(1);
+
+        for (int i = 0; i < patterns.getTaxonCount(); i++) {
+            for (int j = 0; j < patterns.getTaxonCount(); j++) {
+                double mismatches = 0.0;
+                double totalWeight = 0.0;
+                for (int k = 0; k < patterns.getPatternCount(); k++) {
+                    int state1 = patterns.getPatternState(i, k);
+                    int state2 = patterns.getPatternState(j, k);
+                    if (state1 < 4 && state2 < 4 && state1 != state2) {
+                        mismatches += patterns.getPatternWeight(k);
+                    }
+                    totalWeight += patterns.getPatternWeight(k);
+                }
+                double p = mismatches / totalWeight;
+
+                assertEquals(p, distances.getElement(i, j), 0.0);
+                assertEquals(p == 0.0 ? 0.0 : -0.75 * Math.log(1.0 - p / 0.75), jcDistances.getElement(i, j), 1E-12);
+                assertEquals(f84Distances.getElement(i, j), f84Distances.getElement(j, i), 0.0);
+            }
+        }
+    }
+
+    public void testNeighborJoining() throws IOException, Importer.ImportException {
+        Random random = new Random(1234);
+        for (int i = 0; i < 10; i++) {
+            Tree tree = getRandomTree(random, 100, false);
+            assertSameDistances(tree, new NeighborJoiningTree(getDistances(tree)));
+        }
+    }
+
+    public void testUPGMA() throws IOException, Importer.ImportException {
+        Random random = new Random(1234);
+        for (int i = 0; i < 10; i++) {
+            Tree tree = getRandomTree(random, 100, true);
+            Tree upgmaTree = new UPGMATree(getDistances(tree));
+            assertSameDistances(tree, upgmaTree);
+            assertEquals(tree.getNodeHeight(tree.getRoot()), upgmaTree.getNodeHeight(upgmaTree.getRoot()), 1E-10);
+        }
+    }
+
+    private static DistanceMatrix getDistances(Tree tree) {
+        DistanceMatrix patristic = new PatristicDistanceMatrix(tree);
+        DistanceMatrix distances = new DistanceMatrix(tree);
+        for (int i = 0; i < tree.getTaxonCount(); i++) {
+            for (int j = 0; j < tree.getTaxonCount(); j++) {
+                distances.setElement(i, j, patristic.getElement(i, j));
+            }
+        }
+        return distances;
+    }
+
+    /**
+     * a tree is determined by its patristic distances so this also compares the topologies
+     */
+    private static void assertSameDistances(Tree tree1, Tree tree2) {
+        DistanceMatrix distances1 = new PatristicDistanceMatrix(tree1);
+        DistanceMatrix distances2 = new PatristicDistanceMatrix(tree2);
+        for (int i = 0; i < tree1.getTaxonCount(); i++) {
+            int i2 = tree2.getTaxonIndex(tree1.getTaxonId(i));
+            for (int j = 0; j < tree1.getTaxonCount(); j++) {
+                int j2 = tree2.getTaxonIndex(tree1.getTaxonId(j));
+                assertEquals(distances1.getElement(i, j), distances2.getElement(i2, j2), 1E-10);
+            }
+        }
+    }
+
+    /**
+     * A random tree with distinct node heights. If it isn't ultrametric the tips are given
+     * random extra lengths.
+     */
+    private static Tree getRandomTree(Random random, int taxonCount, boolean ultrametric) throws IOException, Importer.ImportException {
+        StringBuilder newick = new StringBuilder();
+        appendRandomClade(random, newick, 0, taxonCount, 1.0, 1.0, ultrametric);
+        return new NewickImporter(newick + ";").importNextTree();
+    }
+
+    private static void appendRandomClade(Random random, StringBuilder newick, int from, int to,
+                                          double height, double parentHeight, boolean ultrametric) {
+        if (to - from == 1) {
+            newick.append("t").append(from).append(":").append(parentHeight + (ultrametric ? 0.0 : random.nextDouble()));
+            return;
+        }
+        int split = from + 1 + random.nextInt(to - from - 1);
+        newick.append("(");
+        appendRandomClade(random, newick, from, split, height * (0.1 + 0.9 * random.nextDouble()), height, ultrametric);
+        newick.append(",");
+        appendRandomClade(random, newick, split, to, height * (0.1 + 0.9 * random.nextDouble()), height, ultrametric);
+        newick.append(")");
+        if (parentHeight > height) {
+            newick.append(":").append(parentHeight - height);
+        }
+    }
+}
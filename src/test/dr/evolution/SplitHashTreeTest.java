@@ -0,0 +1,203 @@
+package test.dr.evolution;
+
+import dr.evolution.io.Importer;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.Clade;
+import dr.evolution.tree.Tree;
+import dr.evolution.tree.treemetrics.*;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Compares the distances calculated from clade hashes with direct calculations from the clades
+ * (indexed by taxon as the trees have their tips in different orders).
+ *
+ * @author Andrew Rambaut
+ */
+public class SplitHashTreeTest extends TestCase {
+
+    public void testBranchScore() throws IOException, Importer.ImportException {
+        Tree treeOne = new NewickImporter("((A:0.1,B:0.1):0.1,(C:0.1,D:0.1):0.1)").importNextTree();
+        Tree treeTwo = new NewickImporter("(((A:0.1,B:0.1):0.5,C:0.1):0.1,D:0.1)").importNextTree();
+
+        SplitHashTree.Encoder encoder = new SplitHashTree.Encoder(treeOne);
+        SplitHashTree one = encoder.encode(treeOne);
+        SplitHashTree two = encoder.encode(treeTwo);
+
+        assertEquals(1.0, one.getRobinsonFoulds(two), 0.0);
+        assertEquals(Math.sqrt(Math.pow(0.5 - 0.1, 2) + Math.pow(.1, 2) + Math.pow(.1, 2)), one.getBranchScore(two), 1E-10);
+    }
+
+    public void testRandomTrees() throws IOException, Importer.ImportException {
+        Random random = new Random(1234);
+        List<Tree> trees = new ArrayList<Tree>();
+        for (int i = 0; i < 20; i++) {
+            trees.add(new NewickImporter(getRandomTree(random, 12, i < 10 ? 5 : 12)).importNextTree());
+        }
+
+        SplitHashTree.Encoder encoder = new SplitHashTree.Encoder(trees.get(0));
+        List<SplitHashTree> encodedTrees = new ArrayList<SplitHashTree>();
+        for (Tree tree : trees) {
+            encodedTrees.add(encoder.encode(tree));
+        }
+
+        for (int i = 0; i < trees.size(); i++) {
+            for (int j = 0; j < trees.size(); j++) {
+                Tree tree1 = trees.get(i);
+                Tree tree2 = trees.get(j);
+                SplitHashTree encoded1 = encodedTrees.get(i);
+                SplitHashTree encoded2 = encodedTrees.get(j);
+
+                assertEquals(getRobinsonFoulds(tree1, tree2), encoded1.getRobinsonFoulds(encoded2), 0.0);
+                assertEquals(getCladeHeightDistance(tree1, tree2), encoded1.getCladeHeightDistance(encoded2), 1E-10);
+                assertEquals(getBranchScore(tree1, tree2), encoded1.getBranchScore(encoded2), 1E-10);
+            }
+        }
+
+        double[][] matrix = SplitHashTree.getDistanceMatrix(encodedTrees, TreeMetric.Type.CLADE_HEIGHT, 3);
+        for (int i = 0; i < trees.size(); i++) {
+            assertEquals(i, matrix[i].length);
+            for (int j = 0; j < i; j++) {
+                assertEquals(encodedTrees.get(i).getCladeHeightDistance(encodedTrees.get(j)), matrix[i][j], 0.0);
+            }
+        }
+    }
+
+    /**
+     * The clade based metrics calculated from the Clade objects give the same distances as the
+     * clade hashes (the tips are numbered in the same order in each tree as these metrics require).
+     */
+    public void testCladeMetrics() throws IOException, Importer.ImportException {
+        Random random = new Random(4321);
+        Tree first = new NewickImporter(getRandomTree(random, 40, 5)).importNextTree();
+        List<Tree> trees = new ArrayList<Tree>();
+        for (int i = 0; i < 10; i++) {
+            trees.add(new NewickImporter(getRandomTree(random, 40, i < 5 ? 5 : 40)).importTree(first));
+        }
+
+        TreeMetric[][] metrics = {
+                {new CladeHeightMetric(), new SplitHashMetric(TreeMetric.Type.CLADE_HEIGHT)},
+                {new BranchScoreMetric(), new SplitHashMetric(TreeMetric.Type.BRANCH_SCORE)},
+                {new RootedBranchScoreMetric(), new SplitHashMetric(TreeMetric.Type.ROOTED_BRANCH_SCORE)}
+        };
+        for (TreeMetric[] pair : metrics) {
+            for (Tree tree1 : trees) {
+                for (Tree tree2 : trees) {
+                    assertEquals(pair[0].toString(), pair[1].getMetric(tree1, tree2), pair[0].getMetric(tree1, tree2), 1E-10);
+                }
+            }
+        }
+    }
+
+    /**
+     * A random ultrametric tree in which the first 'fixed' taxa always form the same caterpillar
+     * so that the trees share some clades. The tips are listed in a random order.
+     */
+    private static String getRandomTree(Random random, int taxonCount, int fixed) {
+        List<String> lineages = new ArrayList<String>();
+        List<Double> heights = new ArrayList<Double>();
+        String clade = "t0";
+        double height = 0.0;
+        for (int i = 1; i < taxonCount; i++) {
+            if (i < fixed) {
+                clade = "(" + clade + ":" + 1.0 + ",t" + i + ":" + (height + 1.0) + ")";
+                height += 1.0;
+            } else {
+                lineages.add("t" + i);
+                heights.add(0.0);
+            }
+        }
+        lineages.add(clade);
+        heights.add(height);
+
+        height += 1.0;
+        while (lineages.size() > 1) {
+            int i = random.nextInt(lineages.size());
+            String left = lineages.remove(i) + ":" + (height - heights.remove(i));
+            int j = random.nextInt(lineages.size());
+            String right = lineages.remove(j) + ":" + (height - heights.remove(j));
+            lineages.add(random.nextBoolean() ? "(" + left + "," + right + ")" : "(" + right + "," + left + ")");
+            heights.add(height);
+            height += random.nextDouble();
+        }
+        return lineages.get(0) + ";";
+    }
+
+    private static double getRobinsonFoulds(Tree tree1, Tree tree2) {
+        Set<BitSet> clades = getBranchLengths(tree1, tree1).keySet();
+        clades.removeAll(getBranchLengths(tree2, tree1).keySet());
+        return clades.size();
+    }
+
+    private static double getCladeHeightDistance(Tree tree1, Tree tree2) {
+        return Math.sqrt(getCladeHeightSum(tree1, tree2) + getCladeHeightSum(tree2, tree1));
+    }
+
+    private static double getCladeHeightSum(Tree tree1, Tree tree2) {
+        List<Clade> clades1 = getClades(tree1, tree1);
+        List<Clade> clades2 = getClades(tree2, tree1);
+        double sum = 0.0;
+        for (Clade clade1 : clades1) {
+            Clade mrca = null;
+            for (Clade clade2 : clades2) {
+                BitSet bits = (BitSet) clade1.getBits().clone();
+                bits.andNot(clade2.getBits());
+                if (bits.isEmpty() && (mrca == null || clade2.getSize() < mrca.getSize())) {
+                    mrca = clade2;
+                }
+            }
+            sum += Math.pow(clade1.getHeight() - mrca.getHeight(), 2);
+        }
+        return sum;
+    }
+
+    private static double getBranchScore(Tree tree1, Tree tree2) {
+        Map<BitSet, Double> lengths1 = getBranchLengths(tree1, tree1);
+        Map<BitSet, Double> lengths2 = getBranchLengths(tree2, tree1);
+        Set<BitSet> clades = new HashSet<BitSet>(lengths1.keySet());
+        clades.addAll(lengths2.keySet());
+        double sum = 0.0;
+        for (BitSet clade : clades) {
+            double length1 = lengths1.containsKey(clade) ? lengths1.get(clade) : 0.0;
+            double length2 = lengths2.containsKey(clade) ? lengths2.get(clade) : 0.0;
+            sum += (length1 - length2) * (length1 - length2);
+        }
+        return Math.sqrt(sum);
+    }
+
+    private static Map<BitSet, Double> getBranchLengths(Tree tree, Tree taxa) {
+        Map<BitSet, Double> lengths = new HashMap<BitSet, Double>();
+        List<Clade> clades = getClades(tree, taxa);
+        for (Clade clade : clades) {
+            double parentHeight = clade.getHeight();
+            int parentSize = Integer.MAX_VALUE;
+            for (Clade parent : clades) {
+                BitSet bits = (BitSet) clade.getBits().clone();
+                bits.andNot(parent.getBits());
+                if (bits.isEmpty() && parent.getSize() > clade.getSize() && parent.getSize() < parentSize) {
+                    parentHeight = parent.getHeight();
+                    parentSize = parent.getSize();
+                }
+            }
+            lengths.put(clade.getBits(), parentHeight - clade.getHeight());
+        }
+        return lengths;
+    }
+
+    /**
+     * The clades of the tree with the bits given by the taxon index in the 'taxa' tree
+     */
+    private static List<Clade> getClades(Tree tree, Tree taxa) {
+        List<Clade> clades = new ArrayList<Clade>();
+        for (Clade clade : Clade.getCladeList(tree)) {
+            BitSet bits = new BitSet();
+            for (int i = clade.getBits().nextSetBit(0); i >= 0; i = clade.getBits().nextSetBit(i + 1)) {
+                bits.set(taxa.getTaxonIndex(tree.getNodeTaxon(tree.getExternalNode(i)).getId()));
+            }
+            clades.add(new Clade(bits, clade.getHeight()));
+        }
+        return clades;
+    }
+}
@@ -7,6 +7,7 @@ import dr.evolution.tree.Tree;
 
 import dr.evolution.tree.TreeUtils;
 import dr.evomodel.bigfasttree.*;
+import dr.evomodel.bigfasttree.constrainedtree.CladeAwareSubtreeLeap;
 import dr.evomodel.bigfasttree.constrainedtree.CladeNodeModel;
 import dr.evomodel.bigfasttree.constrainedtree.CladeRef;
 import dr.evomodel.bigfasttree.constrainedtree.ConstrainedTreeBranchLengthProvider;
@@ -14,10 +15,14 @@ import dr.evomodel.branchratemodel.BranchRateModel;
 import dr.evomodel.branchratemodel.StrictClockBranchRates;
 import dr.evomodel.tree.TreeModel;
 import dr.inference.model.Parameter;
+import dr.inference.operators.AdaptationMode;
+import dr.math.MathUtils;
 import dr.math.distributions.PoissonDistribution;
 import junit.framework.TestCase;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class ApproximatePoissonTreeLikelihoodTest extends TestCase {
     public void setUp() throws Exception {
@@ -360,6 +365,71 @@ public class ApproximatePoissonTreeLikelihoodTest extends TestCase {
         assertEquals(LL,newLL);
     }
 
+    public void testIncrementalUpdates() throws IOException, Importer.ImportException, TreeUtils.MissingTaxonException {
+        MathUtils.setSeed(1234);
+        int taxonCount = 300;
+
+        // a star tree of constraints so the operator can move any subtree
+        StringBuilder constraints = new StringBuilder("(");
+        List<String> lineages = new ArrayList<String>();
+        List<Double> heights = new ArrayList<Double>();
+        for (int i = 0; i < taxonCount; i++) {
+            constraints.append(i > 0 ? "," : "").append(i).append(":").append(MathUtils.nextDouble() * 0.01);
+            lineages.add(Integer.toString(i));
+            heights.add(0.0);
+        }
+        constraints.append(");");
+        double height = 0.0;
+        while (lineages.size() > 1) {
+            height += MathUtils.nextDouble() * 0.001;
+            int i = MathUtils.nextInt(lineages.size());
+            String left = lineages.remove(i) + ":" + (height - heights.remove(i));
+            int j = MathUtils.nextInt(lineages.size());
+            String right = lineages.remove(j) + ":" + (height - heights.remove(j));
+            lineages.add("(" + left + "," + right + ")");
+            heights.add(height);
+        }
+
+        tree = new NewickImporter(constraints.toString()).importTree(null);
+        treeModel = new BigFastTreeModel(new NewickImporter(lineages.get(0) + ";").importTree(null));
+        CladeNodeModel cladeModel = new CladeNodeModel(tree, treeModel);
+        BranchLengthProvider constrainedBranchLengthProvider = new ConstrainedTreeBranchLengthProvider(cladeModel);
+        Parameter rate = new Parameter.Default(1.0);
+        branchRateModel = new StrictClockBranchRates(rate);
+
+        approximatePoissonTreeLikelihood = new ApproximatePoissonTreeLikelihood("approximateTreeLikelihood",
+                1000, treeModel, branchRateModel, constrainedBranchLengthProvider);
+        ApproximatePoissonTreeLikelihood fullLikelihood = new ApproximatePoissonTreeLikelihood("fullLikelihood",
+                1000, treeModel, branchRateModel, constrainedBranchLengthProvider);
+        CladeAwareSubtreeLeap operator = new CladeAwareSubtreeLeap(cladeModel, 1.0, 0.01,
+                CladeAwareSubtreeLeap.DistanceKernelType.NORMAL, AdaptationMode.DEFAULT, 0.225, false);
+
+        for (int i = 0; i < 500; i++) {
+            approximatePoissonTreeLikelihood.getLogLikelihood();
+            approximatePoissonTreeLikelihood.storeModelState();
+
+            if (MathUtils.nextDouble() < 0.9) {
+                operator.doOperation();
+            } else {
+                rate.setParameterValue(0, 0.5 + MathUtils.nextDouble());
+            }
+
+            // the partial sums are the same however they were updated
+            fullLikelihood.makeDirty();
+            double logL = approximatePoissonTreeLikelihood.getLogLikelihood();
+            assertFalse(Double.isNaN(logL) || Double.isInfinite(logL));
+            assertEquals(fullLikelihood.getLogLikelihood(), logL, 0.0);
+
+            if (MathUtils.nextBoolean()) {
+                approximatePoissonTreeLikelihood.restoreModelState();
+                fullLikelihood.makeDirty();
+                assertEquals(fullLikelihood.getLogLikelihood(), approximatePoissonTreeLikelihood.getLogLikelihood(), 0.0);
+            } else {
+                approximatePoissonTreeLikelihood.acceptModelState();
+            }
+        }
+    }
+
     private Tree tree;
     private TreeModel treeModel;
     private BranchRateModel branchRateModel;
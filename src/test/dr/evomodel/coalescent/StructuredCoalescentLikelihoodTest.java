@@ -0,0 +1,127 @@
+package test.dr.evomodel.coalescent;
+
+import dr.evolution.alignment.SimpleSiteList;
+import dr.evolution.datatype.GeneralDataType;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.TreeUtils;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.TaxonList;
+import dr.evomodel.branchratemodel.DefaultBranchRateModel;
+import dr.evomodel.coalescent.basta.StructuredCoalescentLikelihood;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.SVSComplexSubstitutionModel;
+import dr.evomodel.tree.DefaultTreeModel;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Parameter;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the BASTA likelihood, as it reuses its migration matrices through changes to the tree and
+ * the migration rates and restores, with the likelihood calculated from scratch.
+ *
+ * @author Andrew Rambaut
+ */
+public class StructuredCoalescentLikelihoodTest extends TestCase {
+
+    public void testIncrementalLikelihood() throws Exception {
+        incrementalTester(30, 4, 200);
+    }
+
+    public void testManyDemes() throws Exception {
+        // enough lineages and demes for the work to be shared between threads
+        incrementalTester(200, 40, 10);
+    }
+
+    private void incrementalTester(int taxonCount, int demeCount, int iterations) throws Exception {
+        Random random = new Random(1234);
+
+        List<String> states = new ArrayList<String>();
+        for (int i = 0; i < demeCount; i++) {
+            states.add("deme" + i);
+        }
+        GeneralDataType dataType = new GeneralDataType(states);
+
+        Taxa taxa = new Taxa();
+        int[] pattern = new int[taxonCount];
+        List<String> lineages = new ArrayList<String>();
+        List<Double> heights = new ArrayList<Double>();
+        for (int i = 0; i < taxonCount; i++) {
+            taxa.addTaxon(new Taxon("taxon" + i));
+            pattern[i] = random.nextInt(demeCount);
+            lineages.add("taxon" + i);
+            // some tips are sampled at the same time
+            heights.add(i % 3 == 0 ? 0.0 : random.nextDouble());
+        }
+        while (lineages.size() > 1) {
+            int i = random.nextInt(lineages.size());
+            String left = lineages.remove(i);
+            double leftHeight = heights.remove(i);
+            int j = random.nextInt(lineages.size());
+            String right = lineages.remove(j);
+            double rightHeight = heights.remove(j);
+            double height = Math.max(leftHeight, rightHeight) + random.nextDouble() * 0.2;
+            lineages.add("(" + left + ":" + (height - leftHeight) + "," + right + ":" + (height - rightHeight) + ")");
+            heights.add(height);
+        }
+        DefaultTreeModel tree = new DefaultTreeModel(new NewickImporter(lineages.get(0) + ";").importTree(null));
+
+        SimpleSiteList patterns = new SimpleSiteList(dataType, taxa);
+        patterns.addPattern(pattern);
+
+        double[] frequencies = new double[demeCount];
+        for (int i = 0; i < demeCount; i++) {
+            frequencies[i] = 1.0 / demeCount;
+        }
+        Parameter rates = new Parameter.Default("migration rates", demeCount * (demeCount - 1));
+        for (int i = 0; i < rates.getDimension(); i++) {
+            rates.setParameterValue(i, 0.5 + random.nextDouble());
+        }
+        SVSComplexSubstitutionModel migrationModel = new SVSComplexSubstitutionModel("migrationModel", dataType,
+                new FrequencyModel(dataType, frequencies), rates, null);
+        Parameter popSizes = new Parameter.Default("population sizes", demeCount, 1.0);
+
+        StructuredCoalescentLikelihood likelihood = createLikelihood(tree, migrationModel, popSizes, patterns);
+
+        for (int i = 0; i < iterations; i++) {
+            assertEquals(createLikelihood(tree, migrationModel, popSizes, patterns).getLogLikelihood(),
+                    likelihood.getLogLikelihood(), 1E-10);
+
+            likelihood.storeModelState();
+
+            double u = random.nextDouble();
+            if (u < 0.7) {
+                NodeRef node = tree.getInternalNode(random.nextInt(tree.getInternalNodeCount()));
+                double lower = Math.max(tree.getNodeHeight(tree.getChild(node, 0)),
+                        tree.getNodeHeight(tree.getChild(node, 1)));
+                double upper = (tree.isRoot(node) ? lower + 1.0 : tree.getNodeHeight(tree.getParent(node)));
+                tree.setNodeHeight(node, lower + (upper - lower) * random.nextDouble());
+            } else if (u < 0.85) {
+                rates.setParameterValue(random.nextInt(rates.getDimension()), 0.5 + random.nextDouble());
+            } else {
+                popSizes.setParameterValue(random.nextInt(demeCount), 0.5 + random.nextDouble());
+            }
+
+            assertEquals(createLikelihood(tree, migrationModel, popSizes, patterns).getLogLikelihood(),
+                    likelihood.getLogLikelihood(), 1E-10);
+
+            if (random.nextBoolean()) {
+                likelihood.restoreModelState();
+            } else {
+                likelihood.acceptModelState();
+            }
+        }
+    }
+
+    private static StructuredCoalescentLikelihood createLikelihood(TreeModel tree, SVSComplexSubstitutionModel migrationModel,
+                                                                   Parameter popSizes, SimpleSiteList patterns)
+            throws TreeUtils.MissingTaxonException {
+        return new StructuredCoalescentLikelihood(tree, new DefaultBranchRateModel(), popSizes, patterns, null, "",
+                migrationModel, 2, null, new ArrayList<TaxonList>(), true);
+    }
+}
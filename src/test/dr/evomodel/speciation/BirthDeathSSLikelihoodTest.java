@@ -27,17 +27,22 @@ package test.dr.evomodel.speciation;
 
 import dr.evolution.io.NewickImporter;
 import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 import dr.evolution.util.Units;
 import dr.evomodel.speciation.BirthDeathSerialSamplingModel;
+import dr.evomodel.speciation.BirthDeathSerialSkylineModel;
 import dr.evomodel.speciation.SpeciationLikelihood;
 import dr.evomodel.speciation.SpeciationModel;
+import dr.evomodel.tree.DefaultTreeModel;
 import dr.inference.model.Likelihood;
 import dr.inference.model.Variable;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import java.util.Random;
+
 /**
  * YuleModel Tester.
  *
@@ -127,6 +132,70 @@ public class BirthDeathSSLikelihoodTest extends TestCase {
         assertEquals(logL, likelihood.getLogLikelihood());
     }
 
+    public void testIncrementalLikelihood() {
+        Variable<Double> b = new Variable.D("b", 2.0);
+        SpeciationModel speciationModel = new BirthDeathSerialSamplingModel(b, new Variable.D("d", 1.0),
+                new Variable.D("psi", 0.5), new Variable.D("p", 0.0), false, new Variable.D("r", 0.0), false,
+                new Variable.D("origin", 6.0), Units.Type.YEARS);
+        incrementalTester(speciationModel, b);
+    }
+
+    public void testIncrementalSkylineLikelihood() {
+        for (boolean timesStartFromOrigin : new boolean[] { false, true }) {
+            Variable<Double> lambda = new Variable.D(new double[] { 2.0, 1.5, 1.0 });
+            SpeciationModel speciationModel = new BirthDeathSerialSkylineModel(
+                    new Variable.D(new double[] { 0.0, 1.0, 3.0 }), lambda,
+                    new Variable.D(new double[] { 1.0, 0.5, 0.5 }), new Variable.D(new double[] { 0.5, 0.5, 0.2 }),
+                    new Variable.D("p", 0.5), new Variable.D("origin", 1.0), false, false,
+                    timesStartFromOrigin, Units.Type.YEARS);
+            incrementalTester(speciationModel, lambda);
+        }
+    }
+
+    /**
+     * Changes node heights and the given parameter, storing and restoring, and compares the likelihood
+     * (which only recalculates the terms of the changed nodes) with the model's full calculation.
+     */
+    private void incrementalTester(SpeciationModel speciationModel, Variable<Double> rate) {
+        DefaultTreeModel treeModel = new DefaultTreeModel(tree2);
+        Likelihood likelihood = new SpeciationLikelihood(treeModel, speciationModel, "bdss.like");
+
+        Random random = new Random(1234);
+        for (int i = 0; i < 500; i++) {
+            double logL = likelihood.getLogLikelihood();
+            assertEquals(getFullLogLikelihood(speciationModel, treeModel), logL, 1E-10);
+
+            likelihood.getModel().storeModelState();
+
+            if (random.nextDouble() < 0.9) {
+                NodeRef node = treeModel.getInternalNode(random.nextInt(treeModel.getInternalNodeCount()));
+                double lower = Math.max(treeModel.getNodeHeight(treeModel.getChild(node, 0)),
+                        treeModel.getNodeHeight(treeModel.getChild(node, 1)));
+                double upper = (treeModel.isRoot(node) ? lower + 2.0 : treeModel.getNodeHeight(treeModel.getParent(node)));
+                treeModel.setNodeHeight(node, lower + (upper - lower) * random.nextDouble());
+            } else {
+                rate.setValue(0, 0.5 + 2.0 * random.nextDouble());
+            }
+
+            logL = likelihood.getLogLikelihood();
+            assertEquals(getFullLogLikelihood(speciationModel, treeModel), logL, 1E-10);
+
+            if (random.nextBoolean()) {
+                likelihood.getModel().restoreModelState();
+            } else {
+                likelihood.getModel().acceptModelState();
+            }
+        }
+    }
+
+    private double getFullLogLikelihood(SpeciationModel speciationModel, Tree tree) {
+        if (speciationModel instanceof BirthDeathSerialSkylineModel) {
+            // don't use the epoch constants kept by the model
+            ((BirthDeathSerialSkylineModel) speciationModel).preCalculation(tree);
+        }
+        return speciationModel.calculateTreeLogLikelihood(tree);
+    }
+
     public static Test suite() {
         return new TestSuite(BirthDeathSSLikelihoodTest.class);
     }
@@ -5,8 +5,10 @@ import dr.evomodel.substmodel.nucleotide.HKY;
 import dr.evomodel.substmodel.FrequencyModel;
 import dr.evomodel.substmodel.MarkovJumpsSubstitutionModel;
 import dr.evolution.datatype.Nucleotides;
+import dr.inference.markovjumps.EigenMarkovJumps;
 import dr.inference.markovjumps.MarkovJumpsType;
 import dr.inference.markovjumps.MarkovJumpsCore;
+import dr.inference.model.Parameter;
 import dr.math.matrixAlgebra.Vector;
 
 /**
@@ -129,6 +131,52 @@ public class MarkovJumpsSubstitutionModelTest extends MathTestCase {
         assertEquals(1.0, marginalRate, tolerance);
     }
 
+    /**
+     * The entries from EigenMarkovJumps should match the whole matrices from MarkovJumpsCore,
+     * including after the substitution model has changed.
+     */
+    public void testEigenMarkovJumps() {
+        Parameter kappa = new Parameter.Default(2.0);
+        HKY substModel = new HKY(kappa,
+                new FrequencyModel(Nucleotides.INSTANCE,
+                        new double[]{0.3, 0.2, 0.25, 0.25})); // A,C,G,T
+
+        int states = substModel.getDataType().getStateCount();
+
+        for (MarkovJumpsType type : new MarkovJumpsType[] { MarkovJumpsType.COUNTS, MarkovJumpsType.REWARDS }) {
+            MarkovJumpsSubstitutionModel markovjumps = new MarkovJumpsSubstitutionModel(substModel, type);
+            if (type == MarkovJumpsType.COUNTS) {
+                double[] r = new double[states * states];
+                MarkovJumpsCore.fillRegistrationMatrix(r, states);
+                markovjumps.setRegistration(r);
+            } else {
+                markovjumps.setRegistration(new double[]{1.0, 0.0, 2.0, 0.5});
+            }
+
+            for (double k : new double[] { 2.0, 10.0 }) {
+                kappa.setParameterValue(0, k);
+
+                EigenMarkovJumps eigenMarkovJumps = markovjumps.getEigenMarkovJumps();
+                EigenMarkovJumps.Workspace workspace = eigenMarkovJumps.createWorkspace();
+
+                for (double time : new double[] { 0.01, 0.5, 3.0 }) {
+                    double[] p = new double[states * states];
+                    double[] c = new double[states * states];
+                    substModel.getTransitionProbabilities(time, p);
+                    markovjumps.computeCondStatMarkovJumps(time, p, c);
+
+                    workspace.setTime(time);
+                    for (int i = 0; i < states; i++) {
+                        for (int j = 0; j < states; j++) {
+                            assertEquals(c[i * states + j],
+                                    workspace.getCondStatMarkovJumps(i, j, p[i * states + j]), 1E-10);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
     private static double tolerance = 1E-6;
 
     private static double[] rMarkovJumpsJ = {
@@ -0,0 +1,243 @@
+package test.dr.evomodel.tree;
+
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.TreeUtils;
+import dr.evolution.util.Taxa;
+import dr.evomodel.operators.SubtreeSlideOperator;
+import dr.evomodel.tree.ArrayTreeModel;
+import dr.evomodel.tree.DefaultTreeModel;
+import dr.evomodel.tree.MRCATraitStatistic;
+import dr.evomodel.tree.NodeParameterProvider;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
+import dr.inference.model.VariableListener;
+import dr.inference.operators.AdaptationMode;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Applies the same changes (operator moves and changes to the node parameters) with stores,
+ * restores and accepts to an ArrayTreeModel and a DefaultTreeModel and checks they stay the same.
+ *
+ * @author Andrew Rambaut
+ */
+public class ArrayTreeModelTest extends TestCase {
+
+    public void testAgainstDefaultTreeModel() throws Exception {
+        Random random = new Random(1234);
+
+        String newick = getRandomTree(random, 30);
+        DefaultTreeModel defaultTree = new DefaultTreeModel("defaultTree", new NewickImporter(newick).importTree(null));
+        ArrayTreeModel arrayTree = new ArrayTreeModel("arrayTree", new NewickImporter(newick).importTree(null));
+
+        TreeParameters defaultParameters = new TreeParameters(defaultTree);
+        TreeParameters arrayParameters = new TreeParameters(arrayTree);
+
+        for (int i = 0; i < defaultTree.getNodeCount(); i++) {
+            double rate = random.nextDouble();
+            double[] trait = new double[] { random.nextGaussian(), random.nextGaussian() };
+            defaultTree.setNodeRate(defaultTree.getNode(i), rate);
+            arrayTree.setNodeRate(arrayTree.getNode(i), rate);
+            defaultTree.setMultivariateTrait(defaultTree.getNode(i), "trait", trait);
+            arrayTree.setMultivariateTrait(arrayTree.getNode(i), "trait", trait);
+        }
+
+        SubtreeSlideOperator defaultOperator = new SubtreeSlideOperator(defaultTree, 1.0, 1.0, true,
+                false, false, false, AdaptationMode.ADAPTATION_OFF, 0.234);
+        SubtreeSlideOperator arrayOperator = new SubtreeSlideOperator(arrayTree, 1.0, 1.0, true,
+                false, false, false, AdaptationMode.ADAPTATION_OFF, 0.234);
+
+        assertSameTree(defaultTree, arrayTree, defaultParameters, arrayParameters);
+
+        for (int i = 0; i < 1000; i++) {
+            defaultTree.storeModelState();
+            arrayTree.storeModelState();
+
+            double u = random.nextDouble();
+            if (u < 0.5) {
+                long seed = random.nextLong();
+                MathUtils.setSeed(seed);
+                defaultOperator.doOperation();
+                MathUtils.setSeed(seed);
+                arrayOperator.doOperation();
+            } else if (u < 0.7) {
+                int index = random.nextInt(defaultParameters.nodeHeights.getDimension());
+                setWithinBounds(random.nextDouble(), index, defaultParameters.nodeHeights, arrayParameters.nodeHeights);
+            } else if (u < 0.8) {
+                setWithinBounds(random.nextDouble(), 0, defaultParameters.rootHeight, arrayParameters.rootHeight);
+            } else if (u < 0.9) {
+                int index = random.nextInt(defaultParameters.rates.getDimension());
+                double value = random.nextDouble();
+                defaultParameters.rates.setParameterValue(index, value);
+                arrayParameters.rates.setParameterValue(index, value);
+            } else {
+                int index = random.nextInt(defaultParameters.traits.getDimension());
+                double value = random.nextGaussian();
+                defaultParameters.traits.setParameterValue(index, value);
+                arrayParameters.traits.setParameterValue(index, value);
+            }
+
+            assertSameTree(defaultTree, arrayTree, defaultParameters, arrayParameters);
+
+            if (random.nextBoolean()) {
+                defaultTree.restoreModelState();
+                arrayTree.restoreModelState();
+            } else {
+                defaultTree.acceptModelState();
+                arrayTree.acceptModelState();
+            }
+
+            assertSameTree(defaultTree, arrayTree, defaultParameters, arrayParameters);
+        }
+    }
+
+    public void testParameterEvents() throws Exception {
+        ArrayTreeModel tree = new ArrayTreeModel("tree",
+                new NewickImporter("((A:1,B:1):1,(C:0.5,D:0.5):1.5);").importTree(null));
+
+        Parameter rootHeight = tree.getRootHeightParameter();
+        Parameter nodeHeights = tree.createNodeHeightsParameter(true, true, false);
+        final List<Integer> rootEvents = new ArrayList<Integer>();
+        final List<Integer> nodeEvents = new ArrayList<Integer>();
+        rootHeight.addParameterListener(new VariableListener() {
+            public void variableChangedEvent(Variable variable, int index, Variable.ChangeType type) {
+                rootEvents.add(index);
+            }
+        });
+        nodeHeights.addParameterListener(new VariableListener() {
+            public void variableChangedEvent(Variable variable, int index, Variable.ChangeType type) {
+                nodeEvents.add(index);
+            }
+        });
+
+        // changes to the tree are seen by the parameters and vice versa
+        tree.setNodeHeight(tree.getRoot(), 3.0);
+        assertEquals(3.0, rootHeight.getParameterValue(0), 0.0);
+        assertEquals(1, rootEvents.size());
+        assertEquals(1, nodeEvents.size());
+        assertEquals(3.0, nodeHeights.getParameterValue(nodeEvents.get(0)), 0.0);
+
+        rootHeight.setParameterValue(0, 4.0);
+        assertEquals(4.0, tree.getNodeHeight(tree.getRoot()), 0.0);
+        assertEquals(2, rootEvents.size());
+        assertEquals(2, nodeEvents.size());
+
+        assertEquals(1.0, rootHeight.getBounds().getLowerLimit(0), 0.0);
+        assertEquals(Double.POSITIVE_INFINITY, rootHeight.getBounds().getUpperLimit(0));
+    }
+
+    public void testMRCATraitStatistic() throws Exception {
+        ArrayTreeModel tree = new ArrayTreeModel("tree",
+                new NewickImporter("((A:1,B:1):1,(C:0.5,D:0.5):1.5);").importTree(null));
+        tree.createNodeTraitsParameter("trait", 1, new double[] { 0.0 }, true, true, true, true);
+
+        Taxa taxa = new Taxa();
+        taxa.addTaxon(tree.getTaxon(tree.getTaxonIndex("C")));
+        taxa.addTaxon(tree.getTaxon(tree.getTaxonIndex("D")));
+        NodeRef mrca = TreeUtils.getCommonAncestorNode(tree, TreeUtils.getLeavesForTaxa(tree, taxa));
+        tree.setNodeTrait(mrca, "trait", 2.5);
+
+        MRCATraitStatistic statistic = new MRCATraitStatistic("mrca", "trait", tree, taxa);
+        assertEquals(2.5, statistic.getStatisticValue(0), 0.0);
+    }
+
+    private static void setWithinBounds(double u, int index, Parameter defaultParameter, Parameter arrayParameter) {
+        double lower = defaultParameter.getBounds().getLowerLimit(index);
+        double upper = defaultParameter.getBounds().getUpperLimit(index);
+        assertEquals(lower, arrayParameter.getBounds().getLowerLimit(index), 0.0);
+        assertEquals(upper, arrayParameter.getBounds().getUpperLimit(index));
+        if (Double.isInfinite(upper)) {
+            upper = lower + 1.0;
+        }
+        double value = lower + (upper - lower) * u;
+        defaultParameter.setParameterValue(index, value);
+        arrayParameter.setParameterValue(index, value);
+    }
+
+    private static void assertSameTree(TreeModel defaultTree, ArrayTreeModel arrayTree,
+                                       TreeParameters defaultParameters, TreeParameters arrayParameters) {
+        assertEquals(defaultTree.getRoot().getNumber(), arrayTree.getRoot().getNumber());
+        for (int i = 0; i < defaultTree.getNodeCount(); i++) {
+            NodeRef node1 = defaultTree.getNode(i);
+            NodeRef node2 = arrayTree.getNode(i);
+            assertEquals(defaultTree.getNodeHeight(node1), arrayTree.getNodeHeight(node2), 0.0);
+            assertEquals(defaultTree.getNodeRate(node1), arrayTree.getNodeRate(node2), 0.0);
+            assertEquals(defaultTree.getMultivariateNodeTrait(node1, "trait")[0],
+                    arrayTree.getMultivariateNodeTrait(node2, "trait")[0], 0.0);
+            assertEquals(defaultTree.getMultivariateNodeTrait(node1, "trait")[1],
+                    arrayTree.getMultivariateNodeTrait(node2, "trait")[1], 0.0);
+            assertEquals(getNumber(defaultTree.getParent(node1)), getNumber(arrayTree.getParent(node2)));
+            assertEquals(defaultTree.getChildCount(node1), arrayTree.getChildCount(node2));
+            for (int j = 0; j < defaultTree.getChildCount(node1); j++) {
+                assertEquals(getNumber(defaultTree.getChild(node1, j)), getNumber(arrayTree.getChild(node2, j)));
+            }
+            assertEquals(defaultTree.getNodeTaxon(node1), arrayTree.getNodeTaxon(node2));
+        }
+        assertSameValues(defaultParameters.rootHeight, arrayParameters.rootHeight);
+        assertSameValues(defaultParameters.nodeHeights, arrayParameters.nodeHeights);
+        assertSameValues(defaultParameters.leafHeights, arrayParameters.leafHeights);
+        assertSameValues(defaultParameters.rates, arrayParameters.rates);
+        assertSameValues(defaultParameters.traits, arrayParameters.traits);
+        assertEquals(defaultTree.getNodeHeight(defaultTree.getRoot()), arrayParameters.rootHeight.getParameterValue(0), 0.0);
+    }
+
+    private static void assertSameValues(Parameter parameter1, Parameter parameter2) {
+        assertEquals(parameter1.getDimension(), parameter2.getDimension());
+        for (int i = 0; i < parameter1.getDimension(); i++) {
+            assertEquals(parameter1.getParameterValue(i), parameter2.getParameterValue(i), 0.0);
+        }
+    }
+
+    private static int getNumber(NodeRef node) {
+        return node == null ? -1 : node.getNumber();
+    }
+
+    /**
+     * The parameters that the XML parser would create for a tree
+     */
+    private static class TreeParameters {
+        TreeParameters(NodeParameterProvider tree) {
+            rootHeight = tree.getRootHeightParameter();
+            nodeHeights = tree.createNodeHeightsParameter(false, true, false);
+            leafHeights = tree.createNodeHeightsParameter(false, false, true);
+            rates = tree.createNodeRatesParameter(new double[] { 1.0 }, false, true, true);
+            traits = tree.createNodeTraitsParameter("trait", 2, new double[] { 0.0 }, true, true, true, true);
+        }
+
+        final Parameter rootHeight;
+        final Parameter nodeHeights;
+        final Parameter leafHeights;
+        final Parameter rates;
+        final Parameter traits;
+    }
+
+    /**
+     * A random tree with some tips sampled at different times.
+     */
+    private static String getRandomTree(Random random, int taxonCount) {
+        List<String> lineages = new ArrayList<String>();
+        List<Double> heights = new ArrayList<Double>();
+        for (int i = 0; i < taxonCount; i++) {
+            lineages.add("taxon" + i);
+            heights.add(i % 3 == 0 ? 0.0 : random.nextDouble());
+        }
+        while (lineages.size() > 1) {
+            int i = random.nextInt(lineages.size());
+            String left = lineages.remove(i);
+            double leftHeight = heights.remove(i);
+            int j = random.nextInt(lineages.size());
+            String right = lineages.remove(j);
+            double rightHeight = heights.remove(j);
+            double height = Math.max(leftHeight, rightHeight) + 0.01 + random.nextDouble() * 0.2;
+            lineages.add("(" + left + ":" + (height - leftHeight) + "," + right + ":" + (height - rightHeight) + ")");
+            heights.add(height);
+        }
+        return lineages.get(0) + ";";
+    }
+}
@@ -0,0 +1,167 @@
+package test.dr.evomodel.tree;
+
+import dr.evolution.io.NexusImporter;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evomodel.tree.CompactTreeStore;
+import dr.evomodel.tree.EmpiricalTreeDistributionModel;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Compares the trees in a CompactTreeStore (in memory and memory mapped) with those read
+ * as tree objects.
+ *
+ * @author Andrew Rambaut
+ */
+public class CompactTreeStoreTest extends TestCase {
+
+    private static final int TAXON_COUNT = 20;
+    private static final int TREE_COUNT = 50;
+
+    public void setUp() throws Exception {
+        Random random = new Random(1234);
+
+        // the taxa in the file are listed in the reverse order of the taxon list
+        taxa = new Taxa();
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            taxa.addTaxon(new Taxon("taxon" + i));
+        }
+
+        StringBuilder nexus = new StringBuilder("#NEXUS\n\nBegin trees;\n\tTranslate\n");
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            nexus.append("\t\t").append(i + 1).append(" taxon").append(TAXON_COUNT - 1 - i)
+                    .append(i < TAXON_COUNT - 1 ? ",\n" : "\n\t\t;\n");
+        }
+        for (int i = 0; i < TREE_COUNT; i++) {
+            nexus.append("tree STATE_").append(i).append(" = [&R] ").append(getRandomTree(random)).append(";\n");
+        }
+        nexus.append("End;\n");
+        this.nexus = nexus.toString();
+
+        trees = new NexusImporter(new StringReader(this.nexus)).importTrees(taxa, true);
+    }
+
+    public void testStore() throws Exception {
+        CompactTreeStore store = CompactTreeStore.readTrees(new NexusImporter(new StringReader(nexus)), taxa);
+        assertEquals(TREE_COUNT, store.getTreeCount());
+
+        CompactTreeStore.StoredTree tree = store.createTree(0);
+        for (int i = 0; i < TREE_COUNT; i++) {
+            tree.setTree(i);
+            assertSameTree(trees[i], trees[i].getRoot(), tree, tree.getRoot());
+        }
+    }
+
+    public void testMappedStore() throws Exception {
+        File treeFile = File.createTempFile("compact", ".trees");
+        File binaryFile = new File(treeFile.getPath() + ".bin");
+        try {
+            Writer writer = new FileWriter(treeFile);
+            writer.write(nexus);
+            writer.close();
+
+            CompactTreeStore store = CompactTreeStore.mapTrees(treeFile, taxa, binaryFile);
+            long created = binaryFile.lastModified();
+            assertEquals(TREE_COUNT, store.getTreeCount());
+
+            // the binary file should be reused
+            Thread.sleep(10);
+            store = CompactTreeStore.mapTrees(treeFile, taxa, binaryFile);
+            assertEquals(created, binaryFile.lastModified());
+
+            CompactTreeStore.StoredTree tree = store.createTree(0);
+            for (int i = TREE_COUNT - 1; i >= 0; i--) {
+                tree.setTree(i);
+                assertSameTree(trees[i], trees[i].getRoot(), tree, tree.getRoot());
+            }
+        } finally {
+            binaryFile.delete();
+            treeFile.delete();
+        }
+    }
+
+    public void testModel() throws Exception {
+        CompactTreeStore store = CompactTreeStore.readTrees(new NexusImporter(new StringReader(nexus)), taxa);
+        EmpiricalTreeDistributionModel compactModel = new EmpiricalTreeDistributionModel(store, 3);
+        EmpiricalTreeDistributionModel model = new EmpiricalTreeDistributionModel(trees, 3);
+
+        assertSameTree(model, model.getRoot(), compactModel, compactModel.getRoot());
+        assertEquals(getInternalNodePostOrder(model), getInternalNodePostOrder(compactModel));
+
+        compactModel.storeModelState();
+        model.storeModelState();
+        for (int i = 0; i < 10; i++) {
+            dr.math.MathUtils.setSeed(i + 1);
+            compactModel.drawTreeIndex();
+            dr.math.MathUtils.setSeed(i + 1);
+            model.drawTreeIndex();
+            assertSameTree(model, model.getRoot(), compactModel, compactModel.getRoot());
+            assertEquals(getInternalNodePostOrder(model), getInternalNodePostOrder(compactModel));
+        }
+        compactModel.restoreModelState();
+        model.restoreModelState();
+        assertSameTree(trees[3], trees[3].getRoot(), compactModel, compactModel.getRoot());
+        assertSameTree(model, model.getRoot(), compactModel, compactModel.getRoot());
+    }
+
+    private static void assertSameTree(Tree tree1, NodeRef node1, Tree tree2, NodeRef node2) {
+        assertEquals(tree1.getNodeHeight(node1), tree2.getNodeHeight(node2), 0.0);
+        assertEquals(tree1.getChildCount(node1), tree2.getChildCount(node2));
+        if (tree1.isExternal(node1)) {
+            assertEquals(tree1.getNodeTaxon(node1).getId(), tree2.getNodeTaxon(node2).getId());
+            assertEquals(node1.getNumber(), node2.getNumber());
+        } else {
+            for (int i = 0; i < tree1.getChildCount(node1); i++) {
+                assertSameTree(tree1, tree1.getChild(node1, i), tree2, tree2.getChild(node2, i));
+            }
+        }
+    }
+
+    /**
+     * The post order as a list of the numbers of the external nodes below each internal node
+     */
+    private static List<Set<Integer>> getInternalNodePostOrder(EmpiricalTreeDistributionModel tree) {
+        List<Set<Integer>> postOrder = new ArrayList<Set<Integer>>();
+        for (int number : tree.getInternalNodePostOrder()) {
+            Set<Integer> tips = new TreeSet<Integer>();
+            for (NodeRef tip : dr.evolution.tree.TreeUtils.getExternalNodes(tree, tree.getNode(number))) {
+                tips.add(tip.getNumber());
+            }
+            postOrder.add(tips);
+        }
+        return postOrder;
+    }
+
+    private static String getRandomTree(Random random) {
+        List<String> lineages = new ArrayList<String>();
+        List<Double> heights = new ArrayList<Double>();
+        for (int i = 1; i <= TAXON_COUNT; i++) {
+            lineages.add(Integer.toString(i));
+            heights.add(random.nextDouble() * 0.1);
+        }
+        double height = 0.1;
+        while (lineages.size() > 1) {
+            int i = random.nextInt(lineages.size());
+            String left = lineages.remove(i) + ":" + (height - heights.remove(i));
+            int j = random.nextInt(lineages.size());
+            String right = lineages.remove(j) + ":" + (height - heights.remove(j));
+            lineages.add("(" + left + "," + right + ")");
+            heights.add(height);
+            height += random.nextDouble();
+        }
+        return lineages.get(0);
+    }
+
+    private Taxa taxa;
+    private String nexus;
+    private Tree[] trees;
+}
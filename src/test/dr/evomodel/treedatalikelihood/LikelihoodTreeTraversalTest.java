@@ -0,0 +1,107 @@
+package test.dr.evomodel.treedatalikelihood;
+
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evomodel.branchratemodel.DefaultBranchRateModel;
+import dr.evomodel.tree.DefaultTreeModel;
+import dr.evomodel.treedatalikelihood.DataLikelihoodDelegate;
+import dr.evomodel.treedatalikelihood.LikelihoodTreeTraversal;
+import dr.evomodel.treedatalikelihood.TreeTraversal;
+import junit.framework.TestCase;
+
+import java.util.*;
+
+/**
+ * Checks the operation arrays of the traversal against operations collected by level from a
+ * recursive traversal (the way they used to be) and against the object lists.
+ *
+ * @author Andrew Rambaut
+ */
+public class LikelihoodTreeTraversalTest extends TestCase {
+
+    public void testReverseLevelOrder() throws Exception {
+        DefaultTreeModel tree = new DefaultTreeModel(new NewickImporter(
+                "((((A:1,B:1):1,C:2):3,(D:4,(E:3,F:3):1):1):1,((G:1,H:1):4,I:5):1);").importTree(null));
+
+        LikelihoodTreeTraversal traversal = new LikelihoodTreeTraversal(tree, new DefaultBranchRateModel(),
+                TreeTraversal.TraversalType.REVERSE_LEVEL_ORDER);
+
+        Random random = new Random(1234);
+        for (int i = 0; i < 20; i++) {
+            Set<Integer> updated = new HashSet<Integer>();
+            if (i == 0) {
+                traversal.updateAllNodes();
+                for (int j = 0; j < tree.getNodeCount(); j++) {
+                    updated.add(j);
+                }
+            } else {
+                traversal.setAllNodesUpdated();
+                for (int j = 0; j < 1 + random.nextInt(3); j++) {
+                    NodeRef node = tree.getNode(random.nextInt(tree.getNodeCount()));
+                    traversal.updateNode(node);
+                    updated.add(node.getNumber());
+                }
+            }
+
+            traversal.dispatchTreeTraversalCollectBranchAndNodeOperations();
+
+            Map<Integer, List<int[]>> levels = new TreeMap<Integer, List<int[]>>(Collections.<Integer>reverseOrder());
+            collectLevelOrder(tree, tree.getRoot(), 0, updated, levels);
+
+            int[] operations = traversal.getNodeOperationArray();
+            int[] levelOffsets = traversal.getLevelOffsets();
+            assertEquals(levels.size(), traversal.getLevelCount());
+
+            int level = 0;
+            int k = 0;
+            for (List<int[]> ops : levels.values()) {
+                assertEquals(k, levelOffsets[level]);
+                for (int[] op : ops) {
+                    for (int j = 0; j < LikelihoodTreeTraversal.NODE_OPERATION_SIZE; j++) {
+                        assertEquals(op[j], operations[k * LikelihoodTreeTraversal.NODE_OPERATION_SIZE + j]);
+                    }
+                    k++;
+                }
+                level++;
+            }
+            assertEquals(k, traversal.getNodeOperationCount());
+            assertEquals(k, levelOffsets[traversal.getLevelCount()]);
+
+            List<DataLikelihoodDelegate.NodeOperation> nodeOperations = traversal.getNodeOperations();
+            assertEquals(k, nodeOperations.size());
+            for (int j = 0; j < k; j++) {
+                assertEquals(operations[j * LikelihoodTreeTraversal.NODE_OPERATION_SIZE], nodeOperations.get(j).getNodeNumber());
+            }
+
+            List<DataLikelihoodDelegate.BranchOperation> branchOperations = traversal.getBranchOperations();
+            assertEquals(traversal.getBranchOperationCount(), branchOperations.size());
+            for (int j = 0; j < branchOperations.size(); j++) {
+                int branch = traversal.getBranchNumbers()[j];
+                assertEquals(branch, branchOperations.get(j).getBranchNumber());
+                assertTrue(updated.contains(branch));
+                assertEquals(tree.getNodeHeight(tree.getParent(tree.getNode(branch))) - tree.getNodeHeight(tree.getNode(branch)),
+                        traversal.getBranchLengths()[j], 0.0);
+            }
+        }
+    }
+
+    private static boolean collectLevelOrder(Tree tree, NodeRef node, int level, Set<Integer> updated,
+                                             Map<Integer, List<int[]>> levels) {
+        boolean update = !tree.isRoot(node) && updated.contains(node.getNumber());
+        if (!tree.isExternal(node)) {
+            NodeRef child1 = tree.getChild(node, 0);
+            boolean update1 = collectLevelOrder(tree, child1, level + 1, updated, levels);
+            NodeRef child2 = tree.getChild(node, 1);
+            boolean update2 = collectLevelOrder(tree, child2, level + 1, updated, levels);
+            if (update1 || update2) {
+                if (!levels.containsKey(level)) {
+                    levels.put(level, new ArrayList<int[]>());
+                }
+                levels.get(level).add(new int[] { node.getNumber(), child1.getNumber(), child2.getNumber() });
+                update = true;
+            }
+        }
+        return update;
+    }
+}
@@ -0,0 +1,182 @@
+package test.dr.evomodel.treedatalikelihood;
+
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.io.NexusImporter;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evomodel.branchmodel.HomogeneousBranchModel;
+import dr.evomodel.branchratemodel.DefaultBranchRateModel;
+import dr.evomodel.siteratemodel.GammaSiteRateModel;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.nucleotide.HKY;
+import dr.evomodel.tree.EmpiricalTreeDistributionModel;
+import dr.evomodel.treedatalikelihood.BeagleDataLikelihoodDelegate;
+import dr.evomodel.treedatalikelihood.PreOrderSettings;
+import dr.evomodel.treedatalikelihood.TreeDataLikelihood;
+import dr.evomodel.treelikelihood.PartialsRescalingScheme;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the likelihoods calculated with the subtree partials cache with those calculated
+ * without it while jumping between trees that share subtrees, changing the substitution model
+ * and restoring.
+ *
+ * @author Andrew Rambaut
+ */
+public class SubtreePartialsCacheTest extends TestCase {
+
+    private static final int TAXON_COUNT = 24;
+    private static final int FIXED_TAXON_COUNT = 16;
+    private static final int TREE_COUNT = 10;
+    private static final int SITE_COUNT = 200;
+
+    public void setUp() throws Exception {
+        System.setProperty("java.only", "true");
+
+        Random random = new Random(1234);
+
+        taxa = new Taxa();
+        SimpleAlignment alignment = new SimpleAlignment();
+        alignment.setDataType(Nucleotides.INSTANCE);
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            Taxon taxon = new Taxon("taxon" + i);
+            taxa.addTaxon(taxon);
+
+            StringBuilder sequence = new StringBuilder();
+            for (int j = 0; j < SITE_COUNT; j++) {
+                sequence.append("ACGT".charAt(random.nextInt(4)));
+            }
+            alignment.addSequence(new Sequence(taxon, sequence.toString()));
+        }
+        patterns = new SitePatterns(alignment, null, 0, -1, 1, true);
+
+        StringBuilder nexus = new StringBuilder("#NEXUS\n\nBegin trees;\n");
+        for (int i = 0; i < TREE_COUNT; i++) {
+            nexus.append("tree STATE_").append(i).append(" = [&R] ").append(getRandomTree(random)).append(";\n");
+        }
+        nexus.append("End;\n");
+        trees = new NexusImporter(new StringReader(nexus.toString())).importTrees(taxa, true);
+    }
+
+    public void tearDown() {
+        System.clearProperty(CACHE_PROPERTY);
+    }
+
+    public void testTreeJumps() {
+        compareLikelihoods(PartialsRescalingScheme.DYNAMIC, true, "16", 0.5);
+    }
+
+    public void testTreeJumpsWithScaling() {
+        // a cache of the minimum size so the subtrees are often discarded
+        compareLikelihoods(PartialsRescalingScheme.ALWAYS, false, "1", 1.0);
+    }
+
+    private void compareLikelihoods(PartialsRescalingScheme scheme, boolean delayRescaling, String cacheSize,
+                                    double calculationFraction) {
+        System.setProperty(CACHE_PROPERTY, "0");
+        Parameter referenceKappa = new Parameter.Default(2.0);
+        EmpiricalTreeDistributionModel referenceTree = new EmpiricalTreeDistributionModel(trees, 0);
+        BeagleDataLikelihoodDelegate referenceDelegate = createDelegate(referenceTree, referenceKappa, scheme, delayRescaling);
+        TreeDataLikelihood reference = new TreeDataLikelihood(referenceDelegate, referenceTree, new DefaultBranchRateModel());
+
+        System.setProperty(CACHE_PROPERTY, cacheSize);
+        Parameter kappa = new Parameter.Default(2.0);
+        EmpiricalTreeDistributionModel tree = new EmpiricalTreeDistributionModel(trees, 0);
+        BeagleDataLikelihoodDelegate delegate = createDelegate(tree, kappa, scheme, delayRescaling);
+        TreeDataLikelihood likelihood = new TreeDataLikelihood(delegate, tree, new DefaultBranchRateModel());
+
+        Random random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            assertEquals(reference.getLogLikelihood(), likelihood.getLogLikelihood(), 1E-8);
+
+            reference.storeModelState();
+            likelihood.storeModelState();
+
+            if (random.nextDouble() < 0.8) {
+                MathUtils.setSeed(i + 1);
+                referenceTree.drawTreeIndex();
+                MathUtils.setSeed(i + 1);
+                tree.drawTreeIndex();
+            } else {
+                double value = 1.0 + 4.0 * random.nextDouble();
+                referenceKappa.setParameterValue(0, value);
+                kappa.setParameterValue(0, value);
+            }
+
+            assertEquals(reference.getLogLikelihood(), likelihood.getLogLikelihood(), 1E-8);
+
+            if (random.nextBoolean()) {
+                reference.restoreModelState();
+                likelihood.restoreModelState();
+            } else {
+                reference.acceptModelState();
+                likelihood.acceptModelState();
+            }
+        }
+
+        // some of the subtrees should have been found in the cache
+        assertTrue(delegate.getTotalCalculationCount() < referenceDelegate.getTotalCalculationCount() * calculationFraction);
+    }
+
+    private BeagleDataLikelihoodDelegate createDelegate(Tree tree, Parameter kappa,
+                                                        PartialsRescalingScheme scheme, boolean delayRescaling) {
+        FrequencyModel frequencies = new FrequencyModel(Nucleotides.INSTANCE, new double[]{0.1, 0.2, 0.3, 0.4});
+        HKY hky = new HKY(kappa, frequencies);
+        GammaSiteRateModel siteRateModel = new GammaSiteRateModel("siteModel", 0.5, 4);
+        siteRateModel.setSubstitutionModel(hky);
+
+        return new BeagleDataLikelihoodDelegate(tree, patterns, new HomogeneousBranchModel(hky), siteRateModel,
+                false, false, scheme, delayRescaling, PreOrderSettings.getDefault());
+    }
+
+    /**
+     * A random tree in which the first taxa always form the same subtree with the same branch
+     * lengths (so the trees share some subtrees). The remaining lineages join it in a random order.
+     */
+    private static String getRandomTree(Random random) {
+        List<String> lineages = new ArrayList<String>();
+        List<Double> heights = new ArrayList<Double>();
+        String clade = "taxon0";
+        double height = 0.0;
+        for (int i = 1; i < TAXON_COUNT; i++) {
+            if (i < FIXED_TAXON_COUNT) {
+                clade = "(" + clade + ":0.01,taxon" + i + ":" + (height + 0.01) + ")";
+                height += 0.01;
+            } else {
+                lineages.add("taxon" + i);
+                heights.add(0.0);
+            }
+        }
+        lineages.add(clade);
+        heights.add(height);
+
+        height += 0.01;
+        while (lineages.size() > 1) {
+            int i = random.nextInt(lineages.size());
+            String left = lineages.remove(i) + ":" + (height - heights.remove(i));
+            int j = random.nextInt(lineages.size());
+            String right = lineages.remove(j) + ":" + (height - heights.remove(j));
+            lineages.add("(" + left + "," + right + ")");
+            heights.add(height);
+            height += 0.05 * random.nextDouble();
+        }
+        return lineages.get(0);
+    }
+
+    private static final String CACHE_PROPERTY = "beagle.subtree.cache";
+
+    private Taxa taxa;
+    private SitePatterns patterns;
+    private Tree[] trees;
+}
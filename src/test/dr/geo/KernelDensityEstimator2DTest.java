@@ -0,0 +1,82 @@
+package test.dr.geo;
+
+import dr.geo.KernelDensityEstimator2D;
+import dr.math.MathUtils;
+import dr.math.distributions.NormalDistribution;
+import junit.framework.TestCase;
+
+/**
+ * Compares the binned (FFT) kernel density with direct summation (including for data outside the
+ * limits of the grid)
+ *
+ * @author Andrew Rambaut
+ */
+public class KernelDensityEstimator2DTest extends TestCase {
+
+    public void testBinnedDensity() {
+        MathUtils.setSeed(666);
+        int count = 5 * KernelDensityEstimator2D.BINNING_THRESHOLD;
+        double[] x = new double[count];
+        double[] y = new double[count];
+        simulate(x, y);
+
+        KernelDensityEstimator2D kde = new KernelDensityEstimator2D(x, y);
+        assertMatchesDirectSummation(kde, x, y);
+    }
+
+    public void testDataOutsideLimits() {
+        MathUtils.setSeed(666);
+        int count = 5 * KernelDensityEstimator2D.BINNING_THRESHOLD;
+        double[] x = new double[count];
+        double[] y = new double[count];
+        simulate(x, y);
+
+        // a grid over the middle of the data so many points are outside it (but still contribute)
+        double[] lims = {0.0, 6.0, -1.0, 3.0};
+        KernelDensityEstimator2D kde = new KernelDensityEstimator2D(x, y, null, 50, lims);
+        assertMatchesDirectSummation(kde, x, y);
+
+        // a grid so fine relative to the bandwidths that the density is summed directly
+        lims = new double[]{2.99, 3.01, 1.49, 1.51};
+        kde = new KernelDensityEstimator2D(x, y, null, 50, lims);
+        assertMatchesDirectSummation(kde, x, y);
+    }
+
+    /**
+     * A mixture of two correlated normals.
+     */
+    private static void simulate(double[] x, double[] y) {
+        for (int k = 0; k < x.length; k++) {
+            double offset = (k % 2 == 0 ? 0.0 : 6.0);
+            x[k] = MathUtils.nextGaussian() * 2.0 + offset;
+            y[k] = 0.5 * x[k] + MathUtils.nextGaussian();
+        }
+    }
+
+    private static void assertMatchesDirectSummation(KernelDensityEstimator2D kde, double[] x, double[] y) {
+        double[] gx = kde.getXGrid();
+        double[] gy = kde.getYGrid();
+        double[][] z = kde.getKDE();
+        double[] h = kde.getBandwidths();
+
+        double maxDensity = 0.0;
+        double maxError = 0.0;
+        for (int i = 0; i < gx.length; i++) {
+            for (int j = 0; j < gy.length; j++) {
+                double density = 0.0;
+                for (int k = 0; k < x.length; k++) {
+                    density += NormalDistribution.pdf((gx[i] - x[k]) / h[0], 0, 1) *
+                            NormalDistribution.pdf((gy[j] - y[k]) / h[1], 0, 1);
+                }
+                density /= x.length * h[0] * h[1];
+                maxDensity = Math.max(maxDensity, density);
+                maxError = Math.max(maxError, Math.abs(density - z[i][j]));
+            }
+        }
+
+        assertTrue("maximum error = " + maxError + " for a maximum density = " + maxDensity,
+                maxError < tolerance * maxDensity);
+    }
+
+    private static final double tolerance = 5E-3;
+}
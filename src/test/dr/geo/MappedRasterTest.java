@@ -0,0 +1,104 @@
+package test.dr.geo;
+
+import dr.geo.MappedRaster;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads small rasters through the memory mapped, tiled access
+ *
+ * @author Andrew Rambaut
+ */
+public class MappedRasterTest extends TestCase {
+
+    private static final int ROWS = 150;
+    private static final int COLUMNS = 200;
+
+    public void testIntegerRaster() throws IOException {
+        File file = writeRaster("raster", ByteOrder.BIG_ENDIAN, false);
+
+        // a small cache so tiles are dropped and read again
+        System.setProperty(MappedRaster.CACHE_SIZE_PROPERTY, "2");
+        MappedRaster raster = MappedRaster.readRaster(file.getPath());
+        System.clearProperty(MappedRaster.CACHE_SIZE_PROPERTY);
+
+        assertEquals(ROWS, raster.getRowCount());
+        assertEquals(COLUMNS, raster.getColumnCount());
+        for (int pass = 0; pass < 2; pass++) {
+            for (int row = 0; row < ROWS; row++) {
+                for (int column = 0; column < COLUMNS; column++) {
+                    if (row == 10 && column == 20) {
+                        assertTrue(Double.isNaN(raster.getValue(row, column)));
+                    } else {
+                        assertEquals(getValue(row, column), raster.getValue(row, column), 0.0);
+                    }
+                }
+            }
+        }
+        assertTrue(Double.isNaN(raster.getValue(-1, 0)));
+        assertTrue(Double.isNaN(raster.getValue(0, COLUMNS)));
+
+        // the centre of cell (row, column) is at (100 + column * 0.5, 50 - row * 0.5)
+        assertEquals(getValue(3, 4), raster.getValue(102.1, 48.4), 0.0);
+        double interpolated = 0.75 * (0.5 * getValue(3, 4) + 0.5 * getValue(3, 5)) +
+                0.25 * (0.5 * getValue(4, 4) + 0.5 * getValue(4, 5));
+        assertEquals(interpolated, raster.interpolate(102.25, 48.375), 1E-10);
+        assertEquals(getValue(0, 0), raster.interpolate(99.8, 50.2), 1E-10);
+        assertTrue(Double.isNaN(raster.interpolate(99.7, 50.0)));
+
+        // the cell with no data is left out
+        assertEquals(getValue(10, 21), raster.interpolate(100 + 20.5 * 0.5, 50 - 10 * 0.5), 1E-10);
+    }
+
+    public void testFloatRaster() throws IOException {
+        File file = writeRaster("floatraster", ByteOrder.LITTLE_ENDIAN, true);
+        MappedRaster raster = MappedRaster.readRaster(file.getPath());
+        assertEquals(getValue(ROWS - 1, COLUMNS - 1) + 0.5, raster.getValue(ROWS - 1, COLUMNS - 1), 0.0);
+        assertEquals(getValue(77, 133) + 0.5, raster.getValue(77, 133), 0.0);
+    }
+
+    private static double getValue(int row, int column) {
+        return row * 3 - column * 2;
+    }
+
+    private static File writeRaster(String name, ByteOrder byteOrder, boolean isFloat) throws IOException {
+        File file = File.createTempFile(name, ".bil");
+        file.deleteOnExit();
+        ByteBuffer buffer = ByteBuffer.allocate(ROWS * COLUMNS * (isFloat ? 4 : 2)).order(byteOrder);
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < COLUMNS; column++) {
+                double value = (row == 10 && column == 20 ? -9999 : getValue(row, column));
+                if (isFloat) {
+                    buffer.putFloat((float) (value + 0.5));
+                } else {
+                    buffer.putShort((short) value);
+                }
+            }
+        }
+        OutputStream out = new FileOutputStream(file);
+        out.write(buffer.array());
+        out.close();
+
+        String path = file.getPath();
+        File headerFile = new File(path.substring(0, path.lastIndexOf('.')) + ".hdr");
+        headerFile.deleteOnExit();
+        PrintWriter writer = new PrintWriter(new FileWriter(headerFile));
+        writer.println("BYTEORDER " + (byteOrder == ByteOrder.BIG_ENDIAN ? "M" : "I"));
+        writer.println("NROWS " + ROWS);
+        writer.println("NCOLS " + COLUMNS);
+        writer.println("NBITS " + (isFloat ? 32 : 16));
+        if (isFloat) {
+            writer.println("PIXELTYPE FLOAT");
+        }
+        writer.println("NODATA -9999");
+        writer.println("ULXMAP 100.0");
+        writer.println("ULYMAP 50.0");
+        writer.println("XDIM 0.5");
+        writer.println("YDIM 0.5");
+        writer.close();
+        return file;
+    }
+}
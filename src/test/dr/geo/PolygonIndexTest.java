@@ -0,0 +1,80 @@
+package test.dr.geo;
+
+import dr.geo.AbstractPolygon2D;
+import dr.geo.GeoSpatialDistribution;
+import dr.geo.MultiRegionGeoSpatialDistribution;
+import dr.geo.Polygon2D;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the indexed point-in-polygon tests with testing every edge of every polygon
+ *
+ * @author Andrew Rambaut
+ */
+public class PolygonIndexTest extends TestCase {
+
+    public void testIndexedRegions() {
+        MathUtils.setSeed(666);
+
+        List<AbstractPolygon2D> polygons = new ArrayList<AbstractPolygon2D>();
+        List<GeoSpatialDistribution> regions = new ArrayList<GeoSpatialDistribution>();
+        for (int i = 0; i < 40; i++) {
+            AbstractPolygon2D polygon = getRandomStar(MathUtils.nextDouble() * 100.0, MathUtils.nextDouble() * 50.0,
+                    1.0 + MathUtils.nextDouble() * 10.0, 10 + MathUtils.nextInt(300));
+            polygons.add(polygon);
+            regions.add(new GeoSpatialDistribution("test", polygon, true));
+        }
+
+        MultiRegionGeoSpatialDistribution union = new MultiRegionGeoSpatialDistribution("union", regions, true, false);
+        assertNotNull(union.getIndex());
+
+        int insideCount = 0;
+        for (int k = 0; k < 20000; k++) {
+            double[] x = new double[]{MathUtils.nextDouble() * 120.0 - 10.0, MathUtils.nextDouble() * 70.0 - 10.0};
+
+            boolean inAny = false;
+            for (AbstractPolygon2D polygon : polygons) {
+                boolean contains = contains(polygon, x[0], x[1]);
+                assertEquals(contains, polygon.containsPoint2D(new Point2D.Double(x[0], x[1])));
+                inAny |= contains;
+            }
+            assertEquals(inAny ? 0.0 : Double.NEGATIVE_INFINITY, union.logPdf(x));
+            if (inAny) {
+                insideCount++;
+            }
+        }
+        assertTrue(insideCount > 0);
+    }
+
+    private static AbstractPolygon2D getRandomStar(double cx, double cy, double radius, int vertexCount) {
+        List<Point2D> points = new ArrayList<Point2D>();
+        for (int i = 0; i < vertexCount; i++) {
+            double angle = 2.0 * Math.PI * i / vertexCount;
+            double r = radius * (0.3 + 0.7 * MathUtils.nextDouble());
+            points.add(new Point2D.Double(cx + r * Math.cos(angle), cy + r * Math.sin(angle)));
+        }
+        return new Polygon2D(points, false);
+    }
+
+    /**
+     * The crossing test over all the edges
+     */
+    private static boolean contains(AbstractPolygon2D polygon, double inX, double inY) {
+        int length = (int) polygon.getLength();
+        boolean contains = false;
+        for (int i = 0, j = length - 1; i < length; j = i++) {
+            Point2D pi = polygon.getPoint2D(i);
+            Point2D pj = polygon.getPoint2D(j);
+            if ((((pi.getY() <= inY) && (inY < pj.getY())) ||
+                    ((pj.getY() <= inY) && (inY < pi.getY()))) &&
+                    (inX < (pj.getX() - pi.getX()) * (inY - pi.getY()) / (pj.getY() - pi.getY()) + pi.getX()))
+                contains = !contains;
+        }
+        return contains;
+    }
+}
@@ -0,0 +1,214 @@
+package test.dr.inference.mcmc;
+
+import dr.app.beast.BeastParser;
+import dr.app.beast.BeastReplicator;
+import dr.app.checkpoint.BeastCheckpointer;
+import dr.math.MathUtils;
+import dr.xml.XMLParser;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs path sampling on a normal model with a known marginal likelihood with the path steps run
+ * sequentially and in concurrent blocks (on replicates of the model created by re-parsing the XML).
+ * The concurrent blocks use their own random number streams so the samples differ from the
+ * sequential run but the path-likelihood log must have the same rows (states and path parameters)
+ * in the same order, must be reproducible for a given seed and must give the same estimate.
+ *
+ * @author Andrew Rambaut
+ */
+public class MarginalLikelihoodEstimatorTest extends TestCase {
+
+    private static final long SEED = 666;
+
+    private static final int PATH_STEPS = 8;
+
+    // the source is the posterior, x ~ N(0, 1) with a likelihood N(x; 1, 0.5), and the destination the prior
+    private static final double LIKELIHOOD_MEAN = 1.0;
+    private static final double LIKELIHOOD_STDEV = 0.5;
+
+    private File directory;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("mle", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    public void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    public void testParallelPathSampling() throws Exception {
+        List<double[]> sequential = run("sequential", 1);
+        List<double[]> parallel = run("parallel", 3);
+        List<double[]> repeated = run("repeated", 3);
+
+        assertEquals((PATH_STEPS + 1) * 200, sequential.size());
+        assertEquals(sequential.size(), parallel.size());
+        for (int i = 0; i < sequential.size(); i++) {
+            // state and path parameter
+            assertEquals(sequential.get(i)[0], parallel.get(i)[0], 0.0);
+            assertEquals(sequential.get(i)[4], parallel.get(i)[4], 0.0);
+
+            // the same seed gives the same samples
+            for (int j = 0; j < parallel.get(i).length; j++) {
+                assertEquals(parallel.get(i)[j], repeated.get(i)[j], 0.0);
+            }
+        }
+
+        double expected = getExpectedEstimate(sequential);
+        assertEquals(expected, getEstimate(sequential), 0.1);
+        assertEquals(expected, getEstimate(parallel), 0.1);
+
+        // the replicates' own loggers (and those of the mcmc they take their operators from) write nothing
+        for (String name : directory.list()) {
+            assertFalse(name, name.contains(".rep"));
+        }
+    }
+
+    private List<double[]> run(String name, int threadCount) throws Exception {
+        File xmlFile = new File(directory, name + ".xml");
+        File logFile = new File(directory, name + ".mle.log");
+        PrintWriter writer = new PrintWriter(new FileWriter(xmlFile));
+        writer.println(getXML(name, threadCount, logFile));
+        writer.close();
+
+        MathUtils.setSeed(SEED);
+
+        XMLParser parser = new BeastParser(new String[]{xmlFile.getName()}, null, false, false, true, null);
+        new BeastCheckpointer();
+        new BeastReplicator(parser, xmlFile, null, false, false, true, null);
+
+        Reader reader = new FileReader(xmlFile);
+        parser.parse(reader, true);
+        reader.close();
+
+        return readLog(logFile);
+    }
+
+    private String getXML(String name, int threadCount, File logFile) {
+        return "<beast>\n" +
+                "  <dummyModel id=\"model\"><parameter id=\"x\" value=\"0.5\"/></dummyModel>\n" +
+                "  <posterior id=\"posterior\">\n" +
+                "    <prior id=\"prior\">\n" +
+                "      <dummyModel idref=\"model\"/>\n" +
+                "      <normalPrior mean=\"0.0\" stdev=\"1.0\"><parameter idref=\"x\"/></normalPrior>\n" +
+                "    </prior>\n" +
+                "    <likelihood id=\"likelihood\">\n" +
+                "      <normalPrior mean=\"" + LIKELIHOOD_MEAN + "\" stdev=\"" + LIKELIHOOD_STDEV + "\"><parameter idref=\"x\"/></normalPrior>\n" +
+                "    </likelihood>\n" +
+                "  </posterior>\n" +
+                "  <operators id=\"operators\">\n" +
+                "    <randomWalkOperator windowSize=\"1.0\" weight=\"1\"><parameter idref=\"x\"/></randomWalkOperator>\n" +
+                "  </operators>\n" +
+                "  <mcmc id=\"mcmc\" chainLength=\"1000\">\n" +
+                "    <posterior idref=\"posterior\"/>\n" +
+                "    <operators idref=\"operators\"/>\n" +
+                "    <log logEvery=\"100\" fileName=\"" + new File(directory, name + ".log").getAbsolutePath() + "\">\n" +
+                "      <parameter idref=\"x\"/>\n" +
+                "    </log>\n" +
+                "  </mcmc>\n" +
+                "  <marginalLikelihoodEstimator chainLength=\"20000\" burnin=\"2000\" pathSteps=\"" + PATH_STEPS +
+                "\" pathScheme=\"linear\" threads=\"" + threadCount + "\">\n" +
+                "    <samplers><mcmc idref=\"mcmc\"/></samplers>\n" +
+                "    <pathLikelihood id=\"pathLikelihood\">\n" +
+                "      <source><posterior idref=\"posterior\"/></source>\n" +
+                "      <destination><prior idref=\"prior\"/></destination>\n" +
+                "    </pathLikelihood>\n" +
+                "    <log logEvery=\"100\" fileName=\"" + logFile.getAbsolutePath() + "\">\n" +
+                "      <pathLikelihood idref=\"pathLikelihood\"/>\n" +
+                "    </log>\n" +
+                "  </marginalLikelihoodEstimator>\n" +
+                "</beast>\n";
+    }
+
+    /**
+     * @return the rows of the log (state, delta, source, destination, theta, path likelihood)
+     */
+    private static List<double[]> readLog(File logFile) throws IOException {
+        List<double[]> rows = new ArrayList<double[]>();
+        BufferedReader reader = new BufferedReader(new FileReader(logFile));
+        String line = reader.readLine();
+        while (line != null && (line.startsWith("#") || line.startsWith("state"))) {
+            line = reader.readLine();
+        }
+        while (line != null) {
+            String[] fields = line.trim().split("\t");
+            double[] row = new double[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                row[i] = Double.parseDouble(fields[i]);
+            }
+            rows.add(row);
+            line = reader.readLine();
+        }
+        reader.close();
+        return rows;
+    }
+
+    /**
+     * @return the thermodynamic integration estimate (trapezoid rule over the path parameters)
+     */
+    private static double getEstimate(List<double[]> rows) {
+        List<Double> thetas = new ArrayList<Double>();
+        List<Double> means = new ArrayList<Double>();
+        List<Integer> counts = new ArrayList<Integer>();
+        for (double[] row : rows) {
+            int last = thetas.size() - 1;
+            if (last < 0 || thetas.get(last) != row[4]) {
+                thetas.add(row[4]);
+                means.add(0.0);
+                counts.add(0);
+                last++;
+            }
+            means.set(last, means.get(last) + row[1]);
+            counts.set(last, counts.get(last) + 1);
+        }
+        double[] values = new double[thetas.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = means.get(i) / counts.get(i);
+        }
+        return integrate(thetas, values);
+    }
+
+    /**
+     * @return the trapezoid rule over the same path parameters applied to the exact expectation of
+     * the log likelihood under each power posterior.
+     */
+    private static double getExpectedEstimate(List<double[]> rows) {
+        List<Double> thetas = new ArrayList<Double>();
+        for (double[] row : rows) {
+            if (thetas.size() == 0 || thetas.get(thetas.size() - 1) != row[4]) {
+                thetas.add(row[4]);
+            }
+        }
+        double[] values = new double[thetas.size()];
+        double likelihoodPrecision = 1.0 / (LIKELIHOOD_STDEV * LIKELIHOOD_STDEV);
+        for (int i = 0; i < values.length; i++) {
+            double precision = 1.0 + thetas.get(i) * likelihoodPrecision;
+            double mean = thetas.get(i) * likelihoodPrecision * LIKELIHOOD_MEAN / precision;
+            double meanSquaredError = (mean - LIKELIHOOD_MEAN) * (mean - LIKELIHOOD_MEAN) + 1.0 / precision;
+            values[i] = -Math.log(LIKELIHOOD_STDEV * Math.sqrt(2.0 * Math.PI)) - 0.5 * likelihoodPrecision * meanSquaredError;
+        }
+        return integrate(thetas, values);
+    }
+
+    private static double integrate(List<Double> thetas, double[] values) {
+        double sum = 0.0;
+        for (int i = 1; i < values.length; i++) {
+            sum += 0.5 * (values[i] + values[i - 1]) * Math.abs(thetas.get(i) - thetas.get(i - 1));
+        }
+        return sum;
+    }
+}
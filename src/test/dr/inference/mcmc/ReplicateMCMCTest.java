@@ -0,0 +1,116 @@
+package test.dr.inference.mcmc;
+
+import dr.inference.distribution.DistributionLikelihood;
+import dr.inference.loggers.ArrayLogFormatter;
+import dr.inference.loggers.MCLogger;
+import dr.inference.mcmc.MCMC;
+import dr.inference.mcmc.MCMCOptions;
+import dr.inference.mcmc.ReplicateMCMC;
+import dr.inference.model.*;
+import dr.inference.operators.AdaptationMode;
+import dr.inference.operators.OperatorSchedule;
+import dr.inference.operators.RandomWalkOperator;
+import dr.inference.operators.SimpleOperatorSchedule;
+import dr.math.MathUtils;
+import dr.math.distributions.NormalDistribution;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs replicate chains on a normal model and checks the cross-chain diagnostics they report.
+ *
+ * @author Andrew Rambaut
+ */
+public class ReplicateMCMCTest {
+
+    private static final Pattern REPORT = Pattern.compile("joint R-hat = [0-9.E-]+, ESS = ([0-9.E-]+); max R-hat = ([0-9.E-]+)");
+
+    private static MCMC createChain(int index, double initialValue, double mean) {
+        Parameter x = new Parameter.Default("x", initialValue);
+        x.addBounds(new Parameter.DefaultBounds(Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 1));
+        DefaultModel model = new DefaultModel(x);
+
+        DistributionLikelihood prior = new DistributionLikelihood(new NormalDistribution(mean, 1.0));
+        prior.addData(x);
+
+        List<Likelihood> likelihoods = new ArrayList<Likelihood>();
+        likelihoods.add(new DummyLikelihood(model));
+        likelihoods.add(prior);
+        CompoundLikelihood posterior = new CompoundLikelihood(likelihoods);
+
+        OperatorSchedule schedule = new SimpleOperatorSchedule();
+        schedule.addOperator(new RandomWalkOperator(x, 2.0, RandomWalkOperator.BoundaryCondition.reflecting,
+                1.0, AdaptationMode.ADAPTATION_OFF));
+
+        MCLogger logger = new MCLogger(new ArrayLogFormatter(false), 10, false);
+        logger.add(x);
+
+        MCMC mcmc = new MCMC("mcmc" + index);
+        mcmc.setShowOperatorAnalysis(false);
+        mcmc.init(new MCMCOptions(20000), posterior, schedule, new MCLogger[]{logger});
+        return mcmc;
+    }
+
+    /**
+     * @return the highest R-hat of any column and the total ESS of the joint density in the final report
+     */
+    private static double[] runChains(double[] means) {
+        MathUtils.setSeed(666);
+
+        MCMC[] chains = new MCMC[means.length];
+        for (int i = 0; i < chains.length; i++) {
+            chains[i] = createChain(i, i % 2 == 0 ? -3.0 : 3.0, means[i]);
+        }
+
+        final List<String> messages = new ArrayList<String>();
+        Handler handler = new Handler() {
+            public void publish(LogRecord record) {
+                messages.add(record.getMessage());
+            }
+
+            public void flush() { }
+
+            public void close() { }
+        };
+        Logger logger = Logger.getLogger("dr.inference");
+        logger.addHandler(handler);
+        try {
+            new ReplicateMCMC(chains, ReplicateMCMC.DEFAULT_REPORT_INTERVAL).run();
+        } finally {
+            logger.removeHandler(handler);
+        }
+
+        double[] result = null;
+        for (String message : messages) {
+            Matcher matcher = REPORT.matcher(message);
+            if (matcher.find()) {
+                result = new double[]{Double.parseDouble(matcher.group(2)), Double.parseDouble(matcher.group(1))};
+            }
+        }
+        assertTrue("no report of the replicate chains", result != null);
+        return result;
+    }
+
+    @Test
+    public void testConvergedChains() {
+        double[] report = runChains(new double[]{0.0, 0.0, 0.0, 0.0});
+        assertEquals(1.0, report[0], 0.05);
+        assertTrue(report[1] > 100);
+    }
+
+    @Test
+    public void testUnconvergedChains() {
+        double[] report = runChains(new double[]{0.0, 0.0, 0.0, 3.0});
+        assertTrue(report[0] > 1.1);
+    }
+}
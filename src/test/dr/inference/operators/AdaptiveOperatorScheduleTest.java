@@ -0,0 +1,169 @@
+package test.dr.inference.operators;
+
+import dr.app.checkpoint.BeastCheckpointer;
+import dr.inference.distribution.DistributionLikelihood;
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.mcmc.MCMC;
+import dr.inference.mcmc.MCMCOptions;
+import dr.inference.model.*;
+import dr.inference.operators.*;
+import dr.inference.state.Factory;
+import dr.inference.state.StateLoaderSaver;
+import dr.math.MathUtils;
+import dr.math.distributions.NormalDistribution;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Feeds the adaptive operator schedule fixed times and acceptances (or jumps of a statistic) for
+ * two operators and checks the weights move towards the operator with the most mixing per unit
+ * time, that they are fixed after the adaptation period and that they are kept in a checkpoint.
+ *
+ * @author Andrew Rambaut
+ */
+public class AdaptiveOperatorScheduleTest extends TestCase {
+
+    private static final long ADAPTATION_LENGTH = 1000;
+
+    public void testCheaperOperatorGainsWeight() {
+        Parameter x = new Parameter.Default("x", 0.0);
+        AdaptiveOperatorSchedule schedule = new AdaptiveOperatorSchedule(0, 0.0, ADAPTATION_LENGTH, 100.0,
+                Collections.<Statistic>emptyList());
+        MCMCOperator cheap = createOperator(x, schedule);
+        MCMCOperator costly = createOperator(x, schedule);
+
+        for (int i = 0; i < ADAPTATION_LENGTH; i += 2) {
+            assertTrue(schedule.isAdapting());
+            // the same acceptance but one takes ten times as long
+            schedule.endStep(cheap, 1000, i % 4 == 0);
+            schedule.endStep(costly, 10000, i % 4 == 0);
+        }
+
+        assertFalse(schedule.isAdapting());
+        assertEquals(10.0, cheap.getWeight() / costly.getWeight(), 1E-8);
+        // the total weight is unchanged
+        assertEquals(2.0, cheap.getWeight() + costly.getWeight(), 1E-8);
+
+        assertWeightsFixed(schedule, cheap, costly);
+    }
+
+    public void testMixingOperatorGainsWeight() {
+        Parameter x = new Parameter.Default("x", 0.0);
+        List<Statistic> statistics = new ArrayList<Statistic>();
+        statistics.add(x);
+        AdaptiveOperatorSchedule schedule = new AdaptiveOperatorSchedule(0, 0.0, ADAPTATION_LENGTH, 100.0, statistics);
+        MCMCOperator wide = createOperator(x, schedule);
+        MCMCOperator narrow = createOperator(x, schedule);
+
+        for (int i = 0; i < ADAPTATION_LENGTH; i += 2) {
+            // the same time but one jumps twice as far (so four times the squared jump)
+            double sign = (i % 4 == 0 ? 1.0 : -1.0);
+            schedule.startStep();
+            x.setParameterValue(0, x.getParameterValue(0) + 2.0 * sign);
+            schedule.endStep(wide, 1000, true);
+            schedule.startStep();
+            x.setParameterValue(0, x.getParameterValue(0) - sign);
+            schedule.endStep(narrow, 1000, true);
+        }
+
+        assertEquals(4.0, wide.getWeight() / narrow.getWeight(), 1E-8);
+
+        assertWeightsFixed(schedule, wide, narrow);
+    }
+
+    public void testWeightsAreBounded() {
+        Parameter x = new Parameter.Default("x", 0.0);
+        AdaptiveOperatorSchedule schedule = new AdaptiveOperatorSchedule(0, 0.0, ADAPTATION_LENGTH, 1.5,
+                Collections.<Statistic>emptyList());
+        MCMCOperator cheap = createOperator(x, schedule);
+        MCMCOperator costly = createOperator(x, schedule);
+
+        for (int i = 0; i < ADAPTATION_LENGTH; i += 2) {
+            schedule.endStep(cheap, 1000, true);
+            schedule.endStep(costly, 1000000, true);
+        }
+
+        // each weight is within a factor of 1.5 of the original before the total is rescaled
+        assertEquals(1.5 * 1.5, cheap.getWeight() / costly.getWeight(), 1E-8);
+    }
+
+    public void testCheckpointKeepsAdaptedWeights() {
+        new BeastCheckpointer();
+        StateLoaderSaver saver = Factory.INSTANCE.getStateLoaderSaver();
+
+        MathUtils.setSeed(666);
+        MCMC adapted = createChain(2 * ADAPTATION_LENGTH);
+        adapted.run();
+
+        MarkovChain markovChain = adapted.getMarkovChain();
+        AdaptiveOperatorSchedule schedule = (AdaptiveOperatorSchedule) markovChain.getSchedule();
+        assertFalse(schedule.isAdapting());
+        saver.saveState(markovChain, markovChain.getCurrentLength(), markovChain.getCurrentScore());
+
+        MCMC resumed = createChain(ADAPTATION_LENGTH);
+        AdaptiveOperatorSchedule resumedSchedule = (AdaptiveOperatorSchedule) resumed.getMarkovChain().getSchedule();
+        assertTrue(resumedSchedule.isAdapting());
+        saver.loadState(resumed.getMarkovChain(), new double[1]);
+
+        assertFalse(resumedSchedule.isAdapting());
+        assertEquals(schedule.getAdaptationStepCount(), resumedSchedule.getAdaptationStepCount());
+        for (int i = 0; i < schedule.getOperatorCount(); i++) {
+            assertEquals(schedule.getOperator(i).getWeight(), resumedSchedule.getOperator(i).getWeight(), 0.0);
+        }
+        // the weights have moved from those given
+        assertFalse(schedule.getOperator(0).getWeight() == 1.0);
+    }
+
+    private static MCMCOperator createOperator(Parameter x, OperatorSchedule schedule) {
+        MCMCOperator operator = new RandomWalkOperator(x, 1.0, RandomWalkOperator.BoundaryCondition.reflecting,
+                1.0, AdaptationMode.ADAPTATION_OFF);
+        schedule.addOperator(operator);
+        return operator;
+    }
+
+    /**
+     * Steps after the adaptation period, even with very different times, don't change the weights.
+     */
+    private static void assertWeightsFixed(AdaptiveOperatorSchedule schedule, MCMCOperator first, MCMCOperator second) {
+        assertFalse(schedule.isAdapting());
+        double firstWeight = first.getWeight();
+        double secondWeight = second.getWeight();
+        for (int i = 0; i < ADAPTATION_LENGTH; i++) {
+            schedule.endStep(first, 1000000, false);
+            schedule.endStep(second, 1, true);
+        }
+        assertEquals(firstWeight, first.getWeight(), 0.0);
+        assertEquals(secondWeight, second.getWeight(), 0.0);
+    }
+
+    /**
+     * A normal model with a random walk and a scale operator (with quite different acceptance).
+     */
+    private static MCMC createChain(long chainLength) {
+        Parameter x = new Parameter.Default("x", 1.0);
+        x.addBounds(new Parameter.DefaultBounds(Double.POSITIVE_INFINITY, 0.0, 1));
+        DefaultModel model = new DefaultModel(x);
+
+        DistributionLikelihood prior = new DistributionLikelihood(new NormalDistribution(1.0, 0.1));
+        prior.addData(x);
+
+        List<Likelihood> likelihoods = new ArrayList<Likelihood>();
+        likelihoods.add(new DummyLikelihood(model));
+        likelihoods.add(prior);
+        CompoundLikelihood posterior = new CompoundLikelihood(likelihoods);
+
+        AdaptiveOperatorSchedule schedule = new AdaptiveOperatorSchedule(0, 0.0, ADAPTATION_LENGTH, 10.0,
+                Collections.<Statistic>emptyList());
+        schedule.addOperator(new RandomWalkOperator(x, 5.0, RandomWalkOperator.BoundaryCondition.reflecting,
+                1.0, AdaptationMode.ADAPTATION_OFF));
+        schedule.addOperator(new ScaleOperator(x, 0.9, AdaptationMode.ADAPTATION_OFF, 1.0));
+
+        MCMC mcmc = new MCMC("mcmc");
+        mcmc.setShowOperatorAnalysis(false);
+        mcmc.init(new MCMCOptions(chainLength), posterior, schedule, new dr.inference.loggers.Logger[0]);
+        return mcmc;
+    }
+}
@@ -0,0 +1,217 @@
+package test.dr.inference.parallel;
+
+import dr.app.beast.BeastParser;
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Model;
+import dr.inference.operators.MCMCOperator;
+import dr.inference.parallel.DistributedLikelihood;
+import dr.inference.parallel.LikelihoodClient;
+import dr.math.MathUtils;
+import dr.xml.XMLObject;
+import dr.xml.XMLParser;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Starts two worker processes on this machine, each hosting the tree data likelihood of a partition,
+ * and checks that the distributed likelihood matches the same likelihoods evaluated in this process
+ * as the tree and substitution model are changed by operators and the changes accepted or restored.
+ *
+ * @author Andrew Rambaut
+ */
+public class DistributedLikelihoodTest extends TestCase {
+
+    private static final int WORKER_COUNT = 2;
+    private static final int ITERATIONS = 500;
+
+    // the values of a trait for each of the taxa, A to F, in each partition
+    private static final double[][] TRAITS = {
+            {-1.0, 0.1}, {-1.2, -0.3}, {-2.0, 0.4}, {0.5, 1.1}, {1.5, 0.2}, {1.1, -0.7}
+    };
+
+    private File directory;
+    private final List<Process> workers = new ArrayList<Process>();
+
+    public void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("distributed", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    public void tearDown() throws Exception {
+        for (Process worker : workers) {
+            worker.destroy();
+            worker.waitFor();
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    public void testDistributedLikelihood() throws Exception {
+        int[] ports = new int[WORKER_COUNT];
+        for (int i = 0; i < ports.length; i++) {
+            ServerSocket socket = new ServerSocket(0);
+            ports[i] = socket.getLocalPort();
+            socket.close();
+        }
+
+        File xmlFile = new File(directory, "distributed.xml");
+        PrintWriter writer = new PrintWriter(new FileWriter(xmlFile));
+        writer.println(getXML(ports));
+        writer.close();
+
+        String classPath = System.getProperty("java.class.path");
+        for (int i = 0; i < ports.length; i++) {
+            ProcessBuilder builder = new ProcessBuilder(
+                    new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath(),
+                    "-cp", classPath, "dr.app.beast.BeastMain", "-worker", Integer.toString(ports[i]),
+                    xmlFile.getAbsolutePath());
+            builder.redirectErrorStream(true);
+            builder.redirectOutput(new File(directory, "worker" + i + ".out"));
+            workers.add(builder.start());
+        }
+
+        XMLParser parser = new BeastParser(new String[]{xmlFile.getName()}, null, false, false, false, null);
+        Reader reader = new FileReader(xmlFile);
+        Map<String, XMLObject> store = parser.parse(reader, false);
+        reader.close();
+
+        DistributedLikelihood distributed = (DistributedLikelihood) store.get("distributed").getNativeObject();
+        List<Likelihood> local = new ArrayList<Likelihood>();
+        for (int i = 0; i < WORKER_COUNT; i++) {
+            local.add((Likelihood) store.get("local" + i).getNativeObject());
+        }
+        List<MCMCOperator> operators = new ArrayList<MCMCOperator>();
+        for (String id : new String[]{"precisionScale", "rootMeanWalk", "rateScale", "heights", "narrow", "slide"}) {
+            operators.add((MCMCOperator) store.get(id).getNativeObject());
+        }
+
+        List<Likelihood> all = new ArrayList<Likelihood>(local);
+        all.add(distributed);
+        Model model = new CompoundLikelihood(all).getModel();
+
+        try {
+            assertLikelihoodsEqual(distributed, local, "initial state");
+
+            MathUtils.setSeed(666);
+            for (int i = 0; i < ITERATIONS; i++) {
+                model.storeModelState();
+
+                MCMCOperator operator = operators.get(i % operators.size());
+                operator.operate();
+                if (i % 4 != 0) {
+                    // otherwise the changes are still to be sent when the state is next stored
+                    assertLikelihoodsEqual(distributed, local, "after " + operator.getOperatorName() + " (" + i + ")");
+                }
+
+                if (MathUtils.nextBoolean()) {
+                    operator.reject();
+                    model.restoreModelState();
+                    assertLikelihoodsEqual(distributed, local, "after restore (" + i + ")");
+                } else {
+                    operator.accept(0.0);
+                    model.acceptModelState();
+                }
+                if (i % 100 == 99) {
+                    distributed.makeDirty();
+                    assertLikelihoodsEqual(distributed, local, "after makeDirty (" + i + ")");
+                }
+            }
+        } finally {
+            for (LikelihoodClient client : distributed.getClients()) {
+                client.close();
+            }
+        }
+    }
+
+    private static void assertLikelihoodsEqual(Likelihood distributed, List<Likelihood> local, String message) {
+        double expected = 0.0;
+        for (Likelihood likelihood : local) {
+            likelihood.makeDirty();
+            expected += likelihood.getLogLikelihood();
+        }
+        assertEquals(message, expected, distributed.getLogLikelihood(), Math.abs(expected) * 1E-10);
+    }
+
+    /**
+     * Each partition is a continuous trait (with its own diffusion model) on a shared tree. The workers
+     * host the likelihoods, worker0 and worker1, and the same partitions are evaluated in this process
+     * by local0 and local1.
+     */
+    private static String getXML(int[] ports) {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<beast>\n");
+        xml.append("  <taxa id=\"taxa\">\n");
+        for (int i = 0; i < TRAITS.length; i++) {
+            xml.append("    <taxon id=\"").append((char) ('A' + i)).append("\">");
+            for (int j = 0; j < WORKER_COUNT; j++) {
+                xml.append("<attr name=\"trait").append(j).append("\">").append(TRAITS[i][j]).append("</attr>");
+            }
+            xml.append("</taxon>\n");
+        }
+        xml.append("  </taxa>\n");
+        xml.append("  <newick id=\"startingTree\">((((A:0.1,B:0.1):0.1,C:0.2):0.1,D:0.3):0.2,(E:0.15,F:0.15):0.35);</newick>\n");
+        xml.append("  <treeModel id=\"treeModel\">\n");
+        xml.append("    <newick idref=\"startingTree\"/>\n");
+        xml.append("    <rootHeight><parameter id=\"treeModel.rootHeight\"/></rootHeight>\n");
+        xml.append("    <nodeHeights internalNodes=\"true\"><parameter id=\"treeModel.internalNodeHeights\"/></nodeHeights>\n");
+        xml.append("    <nodeHeights internalNodes=\"true\" rootNode=\"true\"><parameter id=\"treeModel.allInternalNodeHeights\"/></nodeHeights>\n");
+        for (int j = 0; j < WORKER_COUNT; j++) {
+            xml.append("    <nodeTraits name=\"trait").append(j).append("\" rootNode=\"false\" internalNodes=\"false\" leafNodes=\"true\" traitDimension=\"1\">");
+            xml.append("<parameter id=\"leafTraits").append(j).append("\"/></nodeTraits>\n");
+        }
+        xml.append("  </treeModel>\n");
+        xml.append("  <strictClockBranchRates id=\"branchRates\">\n");
+        xml.append("    <rate><parameter id=\"clock.rate\" value=\"1.0\" lower=\"0.0\"/></rate>\n");
+        xml.append("  </strictClockBranchRates>\n");
+        for (int j = 0; j < WORKER_COUNT; j++) {
+            xml.append("  <matrixParameter id=\"precision").append(j).append("\"><parameter id=\"precision").append(j)
+                    .append(".col1\" value=\"").append(1.0 + j).append("\" lower=\"0.0\"/></matrixParameter>\n");
+            xml.append("  <multivariateDiffusionModel id=\"diffusion").append(j).append("\">");
+            xml.append("<precisionMatrix><matrixParameter idref=\"precision").append(j).append("\"/></precisionMatrix>");
+            xml.append("</multivariateDiffusionModel>\n");
+            xml.append("  <parameter id=\"rootMean").append(j).append("\" value=\"0.0\"/>\n");
+        }
+        for (String name : new String[]{"worker", "local"}) {
+            for (int j = 0; j < WORKER_COUNT; j++) {
+                xml.append("  <traitDataLikelihood id=\"").append(name).append(j).append("\" traitName=\"trait").append(j).append("\">\n");
+                xml.append("    <multivariateDiffusionModel idref=\"diffusion").append(j).append("\"/>\n");
+                xml.append("    <treeModel idref=\"treeModel\"/>\n");
+                xml.append("    <strictClockBranchRates idref=\"branchRates\"/>\n");
+                xml.append("    <traitParameter><parameter idref=\"leafTraits").append(j).append("\"/></traitParameter>\n");
+                xml.append("    <conjugateRootPrior>");
+                xml.append("<meanParameter><parameter idref=\"rootMean").append(j).append("\"/></meanParameter>");
+                xml.append("<priorSampleSize><parameter value=\"0.1\"/></priorSampleSize>");
+                xml.append("</conjugateRootPrior>\n");
+                xml.append("  </traitDataLikelihood>\n");
+            }
+        }
+        xml.append("  <distributedLikelihood id=\"distributed\" timeout=\"60\">\n");
+        for (int j = 0; j < WORKER_COUNT; j++) {
+            xml.append("    <worker address=\"localhost:").append(ports[j]).append("\" likelihoods=\"worker").append(j).append("\"/>\n");
+        }
+        xml.append("  </distributedLikelihood>\n");
+        xml.append("  <scaleOperator id=\"precisionScale\" scaleFactor=\"0.75\" weight=\"1\"><parameter idref=\"precision0.col1\"/></scaleOperator>\n");
+        xml.append("  <randomWalkOperator id=\"rootMeanWalk\" windowSize=\"1.0\" weight=\"1\"><parameter idref=\"rootMean1\"/></randomWalkOperator>\n");
+        xml.append("  <scaleOperator id=\"rateScale\" scaleFactor=\"0.75\" weight=\"1\"><parameter idref=\"clock.rate\"/></scaleOperator>\n");
+        xml.append("  <uniformOperator id=\"heights\" weight=\"1\"><parameter idref=\"treeModel.internalNodeHeights\"/></uniformOperator>\n");
+        xml.append("  <narrowExchange id=\"narrow\" weight=\"1\"><treeModel idref=\"treeModel\"/></narrowExchange>\n");
+        xml.append("  <subtreeSlide id=\"slide\" size=\"0.1\" gaussian=\"true\" weight=\"1\"><treeModel idref=\"treeModel\"/></subtreeSlide>\n");
+        xml.append("</beast>\n");
+        return xml.toString();
+    }
+}
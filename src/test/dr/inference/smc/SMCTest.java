@@ -0,0 +1,304 @@
+package test.dr.inference.smc;
+
+import dr.app.checkpoint.BeastCheckpointer;
+import dr.inference.distribution.DistributionLikelihood;
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.model.*;
+import dr.inference.operators.AdaptationMode;
+import dr.inference.operators.RandomWalkOperator;
+import dr.inference.operators.SimpleOperatorSchedule;
+import dr.inference.smc.SMC;
+import dr.inference.smc.SMCOptions;
+import dr.inference.state.Factory;
+import dr.inference.state.ParticleStateLoaderSaver;
+import dr.inference.state.StateLoaderSaver;
+import dr.math.MathUtils;
+import dr.math.distributions.NormalDistribution;
+import dr.xml.Replicator;
+import dr.xml.XMLParseException;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the particle weight summaries and the systematic resampling used by SMC and runs the
+ * particles of a small model on a pool of replicates to check they are reweighted and resampled.
+ *
+ * @author Andrew Rambaut
+ */
+public class SMCTest extends TestCase {
+
+    private static final int PARTICLE_COUNT = 100;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        // sets Factory.INSTANCE
+        new BeastCheckpointer();
+    }
+
+    public void tearDown() throws Exception {
+        Replicator.INSTANCE = null;
+        super.tearDown();
+    }
+
+    public void testEqualWeights() {
+        double[] logWeights = new double[PARTICLE_COUNT];
+        Arrays.fill(logWeights, -1234.5);
+
+        assertEquals(PARTICLE_COUNT, SMC.getEffectiveSampleSize(logWeights), 1E-8);
+        assertEquals(-1234.5, SMC.getLogMeanWeight(logWeights), 1E-8);
+    }
+
+    public void testDominantWeight() {
+        double[] logWeights = new double[PARTICLE_COUNT];
+        Arrays.fill(logWeights, -1000.0);
+        logWeights[17] = 0.0;
+
+        assertEquals(1.0, SMC.getEffectiveSampleSize(logWeights), 1E-8);
+        assertEquals(-Math.log(PARTICLE_COUNT), SMC.getLogMeanWeight(logWeights), 1E-8);
+
+        // a weight of zero doesn't count
+        logWeights[17] = Double.NEGATIVE_INFINITY;
+        logWeights[3] = Math.log(3.0);
+        logWeights[4] = 0.0;
+        Arrays.fill(logWeights, 5, PARTICLE_COUNT, Double.NEGATIVE_INFINITY);
+        Arrays.fill(logWeights, 0, 3, Double.NEGATIVE_INFINITY);
+        // weights 3/4 and 1/4 give (1)^2 / (9/16 + 1/16)
+        assertEquals(1.6, SMC.getEffectiveSampleSize(logWeights), 1E-8);
+        assertEquals(Math.log(4.0 / PARTICLE_COUNT), SMC.getLogMeanWeight(logWeights), 1E-8);
+    }
+
+    public void testLogMeanWeight() {
+        double[] logWeights = { Math.log(1.0), Math.log(2.0), Math.log(3.0), Math.log(6.0) };
+        assertEquals(Math.log(3.0), SMC.getLogMeanWeight(logWeights), 1E-12);
+        // (sum w)^2 / sum w^2 = 144 / 50
+        assertEquals(144.0 / 50.0, SMC.getEffectiveSampleSize(logWeights), 1E-12);
+    }
+
+    public void testResampleCounts() {
+        MathUtils.setSeed(666);
+
+        List<Integer> particles = new ArrayList<Integer>();
+        double[] weights = new double[PARTICLE_COUNT];
+        double[] logWeights = new double[PARTICLE_COUNT];
+        double sum = 0.0;
+        for (int i = 0; i < PARTICLE_COUNT; i++) {
+            particles.add(i);
+            weights[i] = MathUtils.nextExponential(1.0);
+            sum += weights[i];
+        }
+        for (int i = 0; i < PARTICLE_COUNT; i++) {
+            weights[i] /= sum;
+            logWeights[i] = Math.log(weights[i]) - 50.0;
+        }
+
+        for (int repeat = 0; repeat < 20; repeat++) {
+            List<Integer> resampled = SMC.resample(particles, logWeights);
+            assertEquals(PARTICLE_COUNT, resampled.size());
+
+            int[] counts = new int[PARTICLE_COUNT];
+            for (int particle : resampled) {
+                counts[particle]++;
+            }
+            for (int i = 0; i < PARTICLE_COUNT; i++) {
+                double expected = PARTICLE_COUNT * weights[i];
+                assertTrue("particle " + i + " drawn " + counts[i] + " times for expected " + expected,
+                        counts[i] >= Math.floor(expected - 1E-10) && counts[i] <= Math.ceil(expected + 1E-10));
+            }
+        }
+    }
+
+    public void testResampleEqualWeights() {
+        MathUtils.setSeed(666);
+
+        List<Integer> particles = new ArrayList<Integer>();
+        for (int i = 0; i < PARTICLE_COUNT; i++) {
+            particles.add(i);
+        }
+        double[] logWeights = new double[PARTICLE_COUNT];
+
+        // each particle is kept once
+        assertEquals(particles, SMC.resample(particles, logWeights));
+    }
+
+    public void testParticleFile() throws Exception {
+        TestModel model = new TestModel(new SMCOptions(10), new ArrayList<ParticleStateLoaderSaver>());
+        MarkovChain mc = model.smc.getMarkovChain();
+
+        File file = File.createTempFile("particle", ".part");
+        try {
+            ParticleStateLoaderSaver particle = Factory.INSTANCE.getStateLoaderSaver(file, file);
+            model.setValues(1.5, 7.0);
+            particle.saveState(mc, 1000, -3.25, -0.75);
+
+            model.setValues(0.0, 0.0);
+            double[] savedLnL = new double[1];
+            double[] logWeight = new double[1];
+            assertEquals(1000, particle.loadState(mc, savedLnL, logWeight));
+            assertEquals(1.5, model.x.getParameterValue(0), 0.0);
+            assertEquals(7.0, model.y.getParameterValue(0), 0.0);
+            assertEquals(-3.25, savedLnL[0], 0.0);
+            assertEquals(-0.75, logWeight[0], 0.0);
+
+            // a state saved without a weight has a weight of zero
+            particle.saveState(mc, 2000, -1.0);
+            assertEquals(2000, particle.loadState(mc, savedLnL, logWeight));
+            assertEquals(0.0, logWeight[0], 0.0);
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testPooledReweighting() {
+        MathUtils.setSeed(666);
+        installReplicator(new SMCOptions(10, 3, 0.0));
+
+        final int particleCount = 8;
+        List<ParticleStateLoaderSaver> particles = new ArrayList<ParticleStateLoaderSaver>();
+        for (int i = 0; i < particleCount; i++) {
+            particles.add(new TestParticle());
+        }
+        TestModel model = new TestModel(new SMCOptions(10, 3, 0.0), particles);
+
+        // each particle was saved with a weight and a lnL that differs from the current one by an increment
+        double[] savedLogWeights = new double[particleCount];
+        double[] increments = new double[particleCount];
+        for (int i = 0; i < particleCount; i++) {
+            savedLogWeights[i] = -0.5 * i;
+            increments[i] = 0.25 * (i % 3) - 1.0;
+            model.saveParticle(particles.get(i), i, savedLogWeights[i], increments[i]);
+        }
+
+        model.smc.chain();
+
+        // no resampling so the particles stay in order and their weights accumulate
+        for (int i = 0; i < particleCount; i++) {
+            double[] logWeight = new double[1];
+            particles.get(i).loadState(model.smc.getMarkovChain(), new double[1], logWeight);
+            assertEquals(i, model.y.getParameterValue(0), 0.0);
+            assertEquals(savedLogWeights[i] + increments[i], logWeight[0], 1E-10);
+        }
+    }
+
+    public void testPooledResampling() {
+        MathUtils.setSeed(666);
+        installReplicator(new SMCOptions(10, 3, 1.0));
+
+        final int particleCount = 8;
+        final int dominant = 5;
+        List<ParticleStateLoaderSaver> particles = new ArrayList<ParticleStateLoaderSaver>();
+        for (int i = 0; i < particleCount; i++) {
+            particles.add(new TestParticle());
+        }
+        TestModel model = new TestModel(new SMCOptions(10, 3, 1.0), particles);
+
+        // one particle has almost all the weight (a small increment can't change that)
+        for (int i = 0; i < particleCount; i++) {
+            model.saveParticle(particles.get(i), i, i == dominant ? 0.0 : -1000.0, 0.1 * i);
+        }
+
+        model.smc.chain();
+
+        // all the particles are now copies of the dominant one and are equally weighted
+        for (int i = 0; i < particleCount; i++) {
+            double[] logWeight = new double[1];
+            particles.get(i).loadState(model.smc.getMarkovChain(), new double[1], logWeight);
+            assertEquals(dominant, model.y.getParameterValue(0), 0.0);
+            assertEquals(0.0, logWeight[0], 0.0);
+        }
+    }
+
+    /**
+     * Replicates are built in the same way as the original model and, as they would be by
+     * parsing the XML again, are registered as replicates.
+     */
+    private static void installReplicator(final SMCOptions options) {
+        Replicator.INSTANCE = new Replicator() {
+            @Override
+            public <T> T replicate(Class<T> target, int ordinal, int index, boolean logToFiles) throws XMLParseException {
+                TestModel replicate = new TestModel(options, new ArrayList<ParticleStateLoaderSaver>());
+                addReplicatedObjects(Arrays.asList(replicate.x, replicate.y));
+                addReplicatedObjects(Arrays.asList(replicate.xModel, replicate.yModel));
+                return target.cast(replicate.smc);
+            }
+        };
+    }
+
+    /**
+     * A normal prior on x (which is operated on) and a parameter y which is never changed so it
+     * labels the particle it belongs to.
+     */
+    private static class TestModel {
+        final Parameter x = new Parameter.Default("x", 0.0, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+        final Parameter y = new Parameter.Default("y", 0.0, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+        final DefaultModel xModel = new DefaultModel(x);
+        final DefaultModel yModel = new DefaultModel(y);
+        final Likelihood likelihood;
+        final SMC smc;
+
+        TestModel(SMCOptions options, List<ParticleStateLoaderSaver> particles) {
+            DistributionLikelihood prior = new DistributionLikelihood(new NormalDistribution(0.0, 1.0));
+            prior.addData(x);
+            List<Likelihood> likelihoods = new ArrayList<Likelihood>();
+            likelihoods.add(prior);
+            likelihoods.add(xModel);
+            likelihoods.add(yModel);
+            likelihood = new CompoundLikelihood(likelihoods);
+
+            SimpleOperatorSchedule schedule = new SimpleOperatorSchedule();
+            schedule.addOperator(new RandomWalkOperator(x, 0.5, RandomWalkOperator.BoundaryCondition.reflecting,
+                    1.0, AdaptationMode.ADAPTATION_OFF));
+
+            smc = new SMC("smc", particles);
+            smc.init(options, likelihood, schedule, null);
+        }
+
+        void setValues(double xValue, double yValue) {
+            x.setParameterValue(0, xValue);
+            y.setParameterValue(0, yValue);
+        }
+
+        /**
+         * Saves a particle labelled by y with a lnL that is the given increment less than its lnL
+         * under this model.
+         */
+        void saveParticle(ParticleStateLoaderSaver particle, int label, double logWeight, double increment) {
+            setValues(0.1 * label, label);
+            likelihood.makeDirty();
+            double lnL = likelihood.getLogLikelihood();
+            particle.saveState(smc.getMarkovChain(), 0, lnL - increment, logWeight);
+        }
+    }
+
+    /**
+     * A particle held in memory.
+     */
+    private static class TestParticle implements ParticleStateLoaderSaver {
+        private final StateLoaderSaver state = Factory.INSTANCE.getStateLoaderSaver();
+        private double logWeight = 0.0;
+
+        public boolean saveState(MarkovChain markovChain, long state, double lnL) {
+            return saveState(markovChain, state, lnL, 0.0);
+        }
+
+        public boolean saveState(MarkovChain markovChain, long state, double lnL, double logWeight) {
+            this.logWeight = logWeight;
+            return this.state.saveState(markovChain, state, lnL);
+        }
+
+        public long loadState(MarkovChain markovChain, double[] savedLnL) {
+            return state.loadState(markovChain, savedLnL);
+        }
+
+        public long loadState(MarkovChain markovChain, double[] savedLnL, double[] logWeight) {
+            logWeight[0] = this.logWeight;
+            return loadState(markovChain, savedLnL);
+        }
+
+        public void checkLoadState(double savedLnL, double lnL) {
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package test.dr.inference.trace;
+
+import dr.inference.trace.OnlineBatchMeans;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Checks the batch means ESS against the known ESS of an AR(1) process and the split R-hat
+ * against chains with and without a shift in their mean.
+ *
+ * @author Andrew Rambaut
+ */
+public class OnlineBatchMeansTest extends TestCase {
+
+    private static OnlineBatchMeans sampleAR1(Random random, double rho, int length, double offset) {
+        OnlineBatchMeans batchMeans = new OnlineBatchMeans();
+        double x = random.nextGaussian();
+        for (int t = 0; t < length; t++) {
+            x = rho * x + Math.sqrt(1.0 - rho * rho) * random.nextGaussian();
+            batchMeans.add(x + offset);
+        }
+        return batchMeans;
+    }
+
+    public void testESS() {
+        Random random = new Random(666);
+        int length = 200000;
+        double rho = 0.9;
+        OnlineBatchMeans batchMeans = sampleAR1(random, rho, length, 0.0);
+
+        assertEquals(length, batchMeans.getSampleCount());
+        assertEquals(0.0, batchMeans.getMean(0.0), 0.05);
+        assertEquals(1.0, batchMeans.getVariance(0.0), 0.05);
+
+        double expectedESS = length * (1.0 - rho) / (1.0 + rho);
+        assertEquals(expectedESS, batchMeans.getESS(0.0), expectedESS * 0.25);
+        assertEquals((1.0 + rho) / (1.0 - rho), batchMeans.getAutoCorrelationTime(0.0), 19.0 * 0.25);
+
+        // removing 10% burnin should remove about 10% of the ESS
+        assertEquals(batchMeans.getESS(0.0) * 0.9, batchMeans.getESS(0.1), expectedESS * 0.25);
+    }
+
+    public void testTooFewSamples() {
+        OnlineBatchMeans batchMeans = new OnlineBatchMeans();
+        for (int t = 0; t < OnlineBatchMeans.MIN_BATCH_COUNT - 1; t++) {
+            batchMeans.add(t);
+        }
+        assertTrue(Double.isNaN(batchMeans.getESS(0.0)));
+    }
+
+    public void testSplitRHat() {
+        Random random = new Random(666);
+        OnlineBatchMeans[] converged = new OnlineBatchMeans[4];
+        OnlineBatchMeans[] shifted = new OnlineBatchMeans[4];
+        for (int i = 0; i < converged.length; i++) {
+            converged[i] = sampleAR1(random, 0.5, 10000 + i * 1000, 0.0);
+            shifted[i] = sampleAR1(random, 0.5, 10000, i == 0 ? 1.0 : 0.0);
+        }
+        assertEquals(1.0, OnlineBatchMeans.getSplitRHat(converged, 0.1), 0.01);
+        assertTrue(OnlineBatchMeans.getSplitRHat(shifted, 0.1) > 1.1);
+
+        // a single chain with a trend in its mean
+        OnlineBatchMeans trend = new OnlineBatchMeans();
+        for (int t = 0; t < 10000; t++) {
+            trend.add(random.nextGaussian() + t / 2000.0);
+        }
+        assertTrue(OnlineBatchMeans.getSplitRHat(new OnlineBatchMeans[]{trend}, 0.0) > 1.1);
+    }
+}
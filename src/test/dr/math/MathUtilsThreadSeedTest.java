@@ -0,0 +1,104 @@
+package test.dr.math;
+
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks that the per-thread random number streams of MathUtils are reproducible, independent of
+ * the shared stream and of each other, and that clearing them reverts to the shared stream.
+ *
+ * @author Andrew Rambaut
+ */
+public class MathUtilsThreadSeedTest extends TestCase {
+
+    private static final int SAMPLE_COUNT = 100;
+
+    public void testThreadSeedIsReproducible() {
+        MathUtils.setThreadSeed(1234);
+        try {
+            double[] first = sample();
+            MathUtils.setThreadSeed(1234);
+            double[] second = sample();
+            assertArraysEqual(first, second);
+        } finally {
+            MathUtils.clearThreadSeed();
+        }
+    }
+
+    public void testThreadSeedDoesNotUseSharedStream() {
+        MathUtils.setSeed(666);
+        double[] shared = sample();
+
+        MathUtils.setSeed(666);
+        MathUtils.setThreadSeed(1234);
+        try {
+            sample();
+        } finally {
+            MathUtils.clearThreadSeed();
+        }
+        // the shared stream hasn't moved while the thread stream was in use
+        assertArraysEqual(shared, sample());
+    }
+
+    public void testClearThreadSeed() {
+        MathUtils.setThreadSeed(666);
+        double[] thread = sample();
+        MathUtils.clearThreadSeed();
+
+        MathUtils.setSeed(666);
+        assertArraysEqual(thread, sample());
+    }
+
+    public void testConcurrentThreads() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            Future<double[]>[] futures = new Future[8];
+            for (int i = 0; i < futures.length; i++) {
+                final long seed = 1000 + (i % 2);
+                futures[i] = pool.submit(new Callable<double[]>() {
+                    public double[] call() {
+                        MathUtils.setThreadSeed(seed);
+                        try {
+                            return sample();
+                        } finally {
+                            MathUtils.clearThreadSeed();
+                        }
+                    }
+                });
+            }
+
+            MathUtils.setThreadSeed(1000);
+            double[] expected0 = sample();
+            MathUtils.setThreadSeed(1001);
+            double[] expected1 = sample();
+            MathUtils.clearThreadSeed();
+
+            for (int i = 0; i < futures.length; i++) {
+                assertArraysEqual(i % 2 == 0 ? expected0 : expected1, futures[i].get());
+            }
+            assertFalse(expected0[0] == expected1[0]);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static double[] sample() {
+        double[] values = new double[SAMPLE_COUNT];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (i % 2 == 0 ? MathUtils.nextDouble() : MathUtils.nextGaussian());
+        }
+        return values;
+    }
+
+    private static void assertArraysEqual(double[] expected, double[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i], 0.0);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package test.dr.util;
+
+import dr.util.BackgroundWriter;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+/**
+ * Checks that the text written through a BackgroundWriter reaches the target in order (across many
+ * blocks, with flushes and by both strings and arrays) and that errors from the target are thrown.
+ *
+ * @author Andrew Rambaut
+ */
+public class BackgroundWriterTest extends TestCase {
+
+    public void testWrite() throws IOException {
+        final StringBuilder closed = new StringBuilder();
+        StringWriter target = new StringWriter() {
+            @Override
+            public void close() throws IOException {
+                closed.append("closed");
+                super.close();
+            }
+        };
+
+        String text = PrefetchReaderTest.getText(0, 100000);
+        Writer writer = new BackgroundWriter(target);
+        // pieces smaller than, equal to and larger than a block
+        int[] lengths = {1, 7, 100, 65535, 65536, 70000, 3};
+        int position = 0;
+        int k = 0;
+        while (position < text.length()) {
+            int end = Math.min(text.length(), position + lengths[k % lengths.length]);
+            if (k % 2 == 0) {
+                writer.write(text, position, end - position);
+            } else {
+                writer.write(text.substring(position, end).toCharArray());
+            }
+            if (k % 5 == 0) {
+                writer.flush();
+            }
+            position = end;
+            k++;
+        }
+        writer.close();
+
+        assertEquals(text, target.toString());
+        assertEquals("closed", closed.toString());
+
+        // closing again does nothing but writing fails
+        writer.close();
+        try {
+            writer.write("more");
+            fail("writing to a closed writer didn't throw");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testError() {
+        Writer target = new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        Writer writer = new BackgroundWriter(target);
+        try {
+            for (int i = 0; i < 1000000; i++) {
+                writer.write("a line of the output\n");
+            }
+            writer.close();
+            fail("the error from the target wasn't thrown");
+        } catch (IOException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+    }
+}
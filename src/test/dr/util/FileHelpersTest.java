@@ -0,0 +1,92 @@
+package test.dr.util;
+
+import dr.util.FileHelpers;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Checks that input files are decompressed if they are gzipped whatever their names and that
+ * output files are compressed if their names end with '.gz'.
+ *
+ * @author Andrew Rambaut
+ */
+public class FileHelpersTest extends TestCase {
+
+    private static final String TEXT = "#NEXUS\nbegin trees;\n\ttree STATE_0 = [&R] (A:1.0,B:1.0);\nend;\n";
+
+    private File directory;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("filehelpers", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    public void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    public void testPlainInput() throws IOException {
+        File file = new File(directory, "plain.trees.gz");
+        Writer writer = new FileWriter(file);
+        writer.write(TEXT);
+        writer.close();
+        assertEquals(TEXT, read(FileHelpers.getInputReader(file)));
+    }
+
+    public void testGzippedInput() throws IOException {
+        // recognised from the header rather than the name
+        File file = new File(directory, "gzipped.trees");
+        Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)));
+        writer.write(TEXT);
+        writer.close();
+        assertEquals(TEXT, read(FileHelpers.getInputReader(file)));
+    }
+
+    public void testShortInput() throws IOException {
+        File file = new File(directory, "short.log");
+        for (String text : new String[]{"", "x", "\u001f"}) {
+            Writer writer = new FileWriter(file);
+            writer.write(text);
+            writer.close();
+            assertEquals(text, read(FileHelpers.getInputReader(file)));
+        }
+    }
+
+    public void testOutput() throws IOException {
+        File plain = new File(directory, "combined.trees");
+        Writer writer = FileHelpers.getOutputWriter(plain);
+        writer.write(TEXT);
+        writer.close();
+        assertEquals(TEXT, read(new FileReader(plain)));
+
+        File gzipped = new File(directory, "combined.trees.gz");
+        writer = FileHelpers.getOutputWriter(gzipped);
+        writer.write(TEXT);
+        writer.close();
+        assertEquals(TEXT, read(new InputStreamReader(new GZIPInputStream(new FileInputStream(gzipped)))));
+        assertEquals(TEXT, read(FileHelpers.getInputReader(gzipped)));
+    }
+
+    private static String read(Reader reader) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c = reader.read();
+        while (c >= 0) {
+            sb.append((char) c);
+            c = reader.read();
+        }
+        reader.close();
+        return sb.toString();
+    }
+}
@@ -0,0 +1,106 @@
+package test.dr.util;
+
+import dr.util.PrefetchReader;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks that the text read through a PrefetchReader is that of the source (over many blocks and
+ * with several readers sharing a thread pool) and that errors from the source are passed on.
+ *
+ * @author Andrew Rambaut
+ */
+public class PrefetchReaderTest extends TestCase {
+
+    public void testRead() throws IOException {
+        String text = getText(1, 200000);
+        Reader reader = new PrefetchReader(new StringReader(text));
+        assertEquals(text, readAll(reader, 1000));
+        assertEquals(-1, reader.read());
+        reader.close();
+    }
+
+    public void testSharedExecutor() throws IOException {
+        // fewer threads than readers so the later ones only start once the earlier are read
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            String[] texts = new String[4];
+            Reader[] readers = new Reader[texts.length];
+            for (int i = 0; i < texts.length; i++) {
+                texts[i] = getText(i, 300000);
+                readers[i] = new PrefetchReader(new StringReader(texts[i]), executor);
+            }
+            for (int i = 0; i < texts.length; i++) {
+                assertEquals(texts[i], readAll(readers[i], 7919));
+                readers[i].close();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testError() {
+        Reader source = new Reader() {
+            private int count = 0;
+
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                if (count > 100000) {
+                    throw new IOException("corrupt input");
+                }
+                int length = Math.min(len, 1000);
+                count += length;
+                return length;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        Reader reader = new PrefetchReader(source);
+        try {
+            readAll(reader, 1000);
+            fail("the error from the source wasn't thrown");
+        } catch (IOException e) {
+            assertEquals("corrupt input", e.getMessage());
+        }
+    }
+
+    public void testClose() throws IOException {
+        // closing before the end stops the producer (which would otherwise block on the full queue)
+        Reader reader = new PrefetchReader(new StringReader(getText(2, 2000000)));
+        assertEquals('l', (char) reader.read());
+        reader.close();
+        try {
+            reader.read();
+            fail("reading a closed reader didn't throw");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    static String getText(int seed, int lineCount) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lineCount; i++) {
+            sb.append("line ").append(seed).append('.').append(i).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String readAll(Reader reader, int bufferSize) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[bufferSize];
+        int length = reader.read(buffer);
+        while (length >= 0) {
+            sb.append(buffer, 0, length);
+            length = reader.read(buffer);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,68 @@
+package test.dr.util;
+
+import dr.util.SharedThreadPool;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Checks the number of threads given by the thread.count property (as set by -threads) and that
+ * errors in the tasks on the shared pool are thrown when they are waited for.
+ *
+ * @author Andrew Rambaut
+ */
+public class SharedThreadPoolTest extends TestCase {
+
+    public void tearDown() throws Exception {
+        System.clearProperty(SharedThreadPool.THREAD_COUNT);
+        super.tearDown();
+    }
+
+    public void testThreadCount() {
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        System.clearProperty(SharedThreadPool.THREAD_COUNT);
+        assertEquals(processors, SharedThreadPool.getThreadCount());
+
+        System.setProperty(SharedThreadPool.THREAD_COUNT, "3");
+        assertEquals(3, SharedThreadPool.getThreadCount());
+
+        // no threading
+        System.setProperty(SharedThreadPool.THREAD_COUNT, "0");
+        assertEquals(1, SharedThreadPool.getThreadCount());
+
+        // automatic
+        System.setProperty(SharedThreadPool.THREAD_COUNT, "-1");
+        assertEquals(processors, SharedThreadPool.getThreadCount());
+
+        System.setProperty(SharedThreadPool.THREAD_COUNT, "many");
+        assertEquals(processors, SharedThreadPool.getThreadCount());
+    }
+
+    public void testWaitFor() {
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < 10; i++) {
+            final int value = i;
+            futures.add(SharedThreadPool.getPool().submit(new Callable<Integer>() {
+                public Integer call() {
+                    if (value == 7) {
+                        throw new IllegalStateException("task " + value + " failed");
+                    }
+                    return value;
+                }
+            }));
+        }
+
+        try {
+            SharedThreadPool.waitFor(futures, "testing");
+            fail("the error in the task wasn't thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("task 7 failed", e.getMessage());
+        }
+
+        SharedThreadPool.waitFor(futures.subList(0, 5), "testing");
+    }
+}